@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.disk;
+
+import com.facebook.binaryresource.BinaryResource;
+import com.facebook.cache.common.CacheKey;
+import com.facebook.cache.common.NoOpCacheErrorLogger;
+import com.facebook.cache.common.NoOpCacheEventListener;
+import com.facebook.cache.common.SimpleCacheKey;
+import com.facebook.cache.common.WriterCallbacks;
+import com.facebook.common.executors.CallerThreadExecutor;
+import com.facebook.common.file.FileTree;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link DiskStorageCache} insert and lookup over a temporary directory, with each
+ * {@link DiskStorage} implementation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DiskStorageCacheBenchmark {
+
+  private static final int KEY_COUNT = 256;
+  private static final long CACHE_SIZE = 64 * 1024 * 1024;
+
+  @Param({"DEFAULT", "JOURNAL", "PACKED"})
+  public String storage;
+
+  @Param({"4096"})
+  public int entrySize;
+
+  private File mDirectory;
+  private DiskStorageCache mCache;
+  private CacheKey[] mKeys;
+  private CacheKey[] mMissingKeys;
+  private byte[] mData;
+  private int mIndex;
+
+  @Setup
+  public void setUp() throws IOException {
+    mDirectory = File.createTempFile("disk-storage-cache-benchmark", "");
+    if (!mDirectory.delete() || !mDirectory.mkdir()) {
+      throw new IOException("Cannot create " + mDirectory);
+    }
+    mCache = new DiskStorageCache(
+        newStorage(mDirectory),
+        new DefaultEntryEvictionComparatorSupplier(),
+        new DiskStorageCache.Params(0, CACHE_SIZE, CACHE_SIZE),
+        NoOpCacheEventListener.getInstance(),
+        NoOpCacheErrorLogger.getInstance(),
+        null,
+        null,
+        CallerThreadExecutor.getInstance(),
+        false);
+    mKeys = new CacheKey[KEY_COUNT];
+    mMissingKeys = new CacheKey[KEY_COUNT];
+    mData = new byte[entrySize];
+    for (int i = 0; i < KEY_COUNT; i++) {
+      mKeys[i] = new SimpleCacheKey("http://example.com/image" + i + ".jpg");
+      mMissingKeys[i] = new SimpleCacheKey("http://example.com/missing" + i + ".jpg");
+      mCache.insert(mKeys[i], WriterCallbacks.from(mData));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    FileTree.deleteRecursively(mDirectory);
+  }
+
+  @Benchmark
+  public BinaryResource getResourceHit() {
+    return mCache.getResource(mKeys[nextIndex()]);
+  }
+
+  @Benchmark
+  public BinaryResource getResourceMiss() {
+    return mCache.getResource(mMissingKeys[nextIndex()]);
+  }
+
+  @Benchmark
+  public boolean hasKey() {
+    return mCache.hasKey(mKeys[nextIndex()]);
+  }
+
+  @Benchmark
+  public BinaryResource insert() throws IOException {
+    return mCache.insert(mKeys[nextIndex()], WriterCallbacks.from(mData));
+  }
+
+  private DiskStorage newStorage(File directory) {
+    switch (storage) {
+      case "JOURNAL":
+        return new DefaultDiskStorage(directory, 1, NoOpCacheErrorLogger.getInstance(), true);
+      case "PACKED":
+        return new PackedDiskStorage(
+            directory,
+            1,
+            PackedDiskStorage.DEFAULT_SEGMENT_SIZE,
+            CACHE_SIZE,
+            NoOpCacheErrorLogger.getInstance());
+      default:
+        return new DefaultDiskStorage(directory, 1, NoOpCacheErrorLogger.getInstance());
+    }
+  }
+
+  private int nextIndex() {
+    mIndex = (mIndex + 1) % KEY_COUNT;
+    return mIndex;
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.common.references;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link SharedReference} and {@link CloseableReference}: creation, clone and
+ * close. The multi-threaded variants show contention on shared state: every thread works on its
+ * own value, so any loss of scaling comes from the references. Other thread counts can be
+ * measured with -Pjmh.args="-t 2".
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CloseableReferenceBenchmark {
+
+  private static final ResourceReleaser<Object> NOOP_RELEASER = new ResourceReleaser<Object>() {
+    @Override
+    public void release(Object value) {
+    }
+  };
+
+  private Object mValue;
+  private CloseableReference<Object> mRef;
+
+  @Setup
+  public void setUp() {
+    mValue = new Object();
+    mRef = CloseableReference.of(mValue, NOOP_RELEASER);
+  }
+
+  @TearDown
+  public void tearDown() {
+    mRef.close();
+  }
+
+  @Benchmark
+  public void sharedReferenceNewAndDelete() {
+    new SharedReference<>(mValue, NOOP_RELEASER).deleteReference();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void sharedReferenceNewAndDelete_4Threads() {
+    new SharedReference<>(mValue, NOOP_RELEASER).deleteReference();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public void sharedReferenceNewAndDelete_8Threads() {
+    new SharedReference<>(mValue, NOOP_RELEASER).deleteReference();
+  }
+
+  @Benchmark
+  public void ofAndClose() {
+    CloseableReference.of(mValue, NOOP_RELEASER).close();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void ofAndClose_4Threads() {
+    CloseableReference.of(mValue, NOOP_RELEASER).close();
+  }
+
+  @Benchmark
+  public void cloneAndClose() {
+    mRef.clone().close();
+  }
+
+  @Benchmark
+  public void ofCloneAndClose() {
+    ofCloneAndCloseOnce();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void ofCloneAndClose_4Threads() {
+    ofCloneAndCloseOnce();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public void ofCloneAndClose_8Threads() {
+    ofCloneAndCloseOnce();
+  }
+
+  private void ofCloneAndCloseOnce() {
+    CloseableReference<Object> ref = CloseableReference.of(mValue, NOOP_RELEASER);
+    ref.clone().close();
+    ref.close();
+  }
+}
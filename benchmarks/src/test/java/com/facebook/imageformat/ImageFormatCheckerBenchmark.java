@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imageformat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for image format detection, directly with {@link DefaultImageFormatChecker} and
+ * through {@link ImageFormatChecker#getImageFormat(java.io.InputStream)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ImageFormatCheckerBenchmark {
+
+  @Param({"JPEG", "PNG", "GIF", "WEBP_EXTENDED", "UNKNOWN"})
+  public String format;
+
+  private DefaultImageFormatChecker mChecker;
+  private byte[] mImage;
+
+  @Setup
+  public void setUp() {
+    mChecker = new DefaultImageFormatChecker();
+    // only the header matters, pad with some content
+    mImage = Arrays.copyOf(getHeader(format), 1024);
+  }
+
+  @Benchmark
+  public ImageFormat determineFormat() {
+    return mChecker.determineFormat(mImage, mChecker.getHeaderSize());
+  }
+
+  @Benchmark
+  public ImageFormat getImageFormat() throws IOException {
+    return ImageFormatChecker.getImageFormat(new ByteArrayInputStream(mImage));
+  }
+
+  private static byte[] getHeader(String format) {
+    switch (format) {
+      case "JPEG":
+        return new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0};
+      case "PNG":
+        return new byte[] {
+            (byte) 0x89, 'P', 'N', 'G', (byte) 0x0D, (byte) 0x0A, (byte) 0x1A, (byte) 0x0A};
+      case "GIF":
+        return ImageFormatCheckerUtils.asciiBytes("GIF89a");
+      case "WEBP_EXTENDED":
+        byte[] header = new byte[21];
+        System.arraycopy(ImageFormatCheckerUtils.asciiBytes("RIFF"), 0, header, 0, 4);
+        System.arraycopy(ImageFormatCheckerUtils.asciiBytes("WEBPVP8X"), 0, header, 8, 8);
+        return header;
+      default:
+        return ImageFormatCheckerUtils.asciiBytes("unknown format");
+    }
+  }
+}
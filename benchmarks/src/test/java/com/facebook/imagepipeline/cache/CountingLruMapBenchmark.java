@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link CountingLruMap}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CountingLruMapBenchmark {
+
+  private static final int KEY_COUNT = 1024;
+
+  private CountingLruMap<Integer, byte[]> mMap;
+  private Integer[] mKeys;
+  private byte[] mValue;
+  private int mIndex;
+
+  @Setup
+  public void setUp() {
+    mMap = new CountingLruMap<>(
+        new ValueDescriptor<byte[]>() {
+          @Override
+          public int getSizeInBytes(byte[] value) {
+            return value.length;
+          }
+        });
+    mKeys = new Integer[KEY_COUNT];
+    mValue = new byte[16];
+    for (int i = 0; i < KEY_COUNT; i++) {
+      mKeys[i] = i;
+      mMap.put(mKeys[i], mValue);
+    }
+  }
+
+  @Benchmark
+  public byte[] get() {
+    return mMap.get(nextKey());
+  }
+
+  @Benchmark
+  public byte[] put() {
+    return mMap.put(nextKey(), mValue);
+  }
+
+  @Benchmark
+  public byte[] removeAndPut() {
+    Integer key = nextKey();
+    byte[] value = mMap.remove(key);
+    mMap.put(key, value);
+    return value;
+  }
+
+  @Benchmark
+  public Integer getFirstKey() {
+    return mMap.getFirstKey();
+  }
+
+  private Integer nextKey() {
+    mIndex = (mIndex + 1) & (KEY_COUNT - 1);
+    return mKeys[mIndex];
+  }
+}
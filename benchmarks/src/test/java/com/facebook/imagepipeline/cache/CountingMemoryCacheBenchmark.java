@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import com.facebook.common.internal.Supplier;
+import com.facebook.common.memory.MemoryTrimType;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.common.references.ResourceReleaser;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link CountingMemoryCache} get, cache and release, with each eviction policy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CountingMemoryCacheBenchmark {
+
+  private static final int KEY_COUNT = 1024;
+
+  private static final ResourceReleaser<Object> NOOP_RELEASER = new ResourceReleaser<Object>() {
+    @Override
+    public void release(Object value) {
+    }
+  };
+
+  @Param({"LRU", "TINY_LFU"})
+  public String evictionPolicy;
+
+  private CountingMemoryCache<Integer, Object> mCache;
+  private Integer[] mKeys;
+  private Integer[] mMissingKeys;
+
+  @State(Scope.Thread)
+  public static class Cursor {
+    private int mIndex;
+
+    int next() {
+      mIndex = (mIndex + 1) & (KEY_COUNT - 1);
+      return mIndex;
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    mCache = new CountingMemoryCache<>(
+        new ValueDescriptor<Object>() {
+          @Override
+          public int getSizeInBytes(Object value) {
+            return 1;
+          }
+        },
+        new CountingMemoryCache.CacheTrimStrategy() {
+          @Override
+          public double getTrimRatio(MemoryTrimType trimType) {
+            return 0;
+          }
+        },
+        new Supplier<MemoryCacheParams>() {
+          @Override
+          public MemoryCacheParams get() {
+            // room for all the keys, so that hits stay hits
+            return new MemoryCacheParams(
+                2 * KEY_COUNT,
+                2 * KEY_COUNT,
+                2 * KEY_COUNT,
+                2 * KEY_COUNT,
+                2 * KEY_COUNT);
+          }
+        },
+        null,
+        false,
+        "TINY_LFU".equals(evictionPolicy) ? new TinyLfuEvictionPolicy<Integer>() : null);
+    mKeys = new Integer[KEY_COUNT];
+    mMissingKeys = new Integer[KEY_COUNT];
+    for (int i = 0; i < KEY_COUNT; i++) {
+      mKeys[i] = i;
+      mMissingKeys[i] = KEY_COUNT + i;
+      CloseableReference<Object> valueRef = newValue();
+      CloseableReference.closeSafely(mCache.cache(mKeys[i], valueRef));
+      valueRef.close();
+    }
+  }
+
+  @Benchmark
+  public void getHitAndRelease(Cursor cursor) {
+    CloseableReference<Object> ref = mCache.get(mKeys[cursor.next()]);
+    CloseableReference.closeSafely(ref);
+  }
+
+  @Benchmark
+  public CloseableReference<Object> getMiss(Cursor cursor) {
+    return mCache.get(mMissingKeys[cursor.next()]);
+  }
+
+  @Benchmark
+  public void cacheAndRelease(Cursor cursor) {
+    CloseableReference<Object> valueRef = newValue();
+    CloseableReference<Object> cachedRef = mCache.cache(mKeys[cursor.next()], valueRef);
+    CloseableReference.closeSafely(cachedRef);
+    valueRef.close();
+  }
+
+  private static CloseableReference<Object> newValue() {
+    return CloseableReference.of(new Object(), NOOP_RELEASER);
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import com.facebook.imagepipeline.common.Priority;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time to first visible image under a prefetch storm: a burst of LOW priority
+ * decodes is queued just before the decode of a HIGH priority image, and the benchmark waits for
+ * the latter only. The prefetches are drained between invocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ExecutorSupplierBenchmark {
+
+  public enum SupplierType {
+    DEFAULT,
+    PRIORITY,
+  }
+
+  @Param({"DEFAULT", "PRIORITY"})
+  public SupplierType supplier;
+
+  @Param({"64"})
+  public int prefetchCount;
+
+  @Param({"100"})
+  public int decodeMicros;
+
+  private Executor mDecodeExecutor;
+  private CountDownLatch mPrefetchesDone;
+
+  @Setup
+  public void setUp() {
+    int numCpuBoundThreads = Runtime.getRuntime().availableProcessors();
+    ExecutorSupplier executorSupplier = supplier == SupplierType.DEFAULT
+        ? new DefaultExecutorSupplier(numCpuBoundThreads)
+        : new PriorityExecutorSupplier(numCpuBoundThreads);
+    mDecodeExecutor = executorSupplier.forDecode();
+  }
+
+  @Benchmark
+  public void timeToFirstVisibleImage() throws InterruptedException {
+    mPrefetchesDone = new CountDownLatch(prefetchCount);
+    for (int i = 0; i < prefetchCount; i++) {
+      mDecodeExecutor.execute(new Decode(Priority.LOW, mPrefetchesDone));
+    }
+    CountDownLatch visibleDone = new CountDownLatch(1);
+    mDecodeExecutor.execute(new Decode(Priority.HIGH, visibleDone));
+    visibleDone.await();
+  }
+
+  @TearDown(Level.Invocation)
+  public void awaitPrefetches() throws InterruptedException {
+    mPrefetchesDone.await();
+  }
+
+  private class Decode implements PrioritizedRunnable {
+
+    private final Priority mPriority;
+    private final CountDownLatch mDone;
+
+    private Decode(Priority priority, CountDownLatch done) {
+      mPriority = priority;
+      mDone = done;
+    }
+
+    @Override
+    public Priority getPriority() {
+      return mPriority;
+    }
+
+    @Override
+    public void run() {
+      long end = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(decodeMicros);
+      while (System.nanoTime() < end) {
+        // simulates the decode
+      }
+      mDone.countDown();
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.decoder;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the decode of every scan of a progressive JPEG as it is received, by decoding
+ * each prefix from its first byte again or by feeding only the new scans to one
+ * {@link JpegScanDecoder}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class IncrementalJpegDecoderBenchmark {
+
+  @Param({"512", "1024"})
+  public int imageSize;
+
+  @Param({"1", "4"})
+  public int sampleSize;
+
+  private byte[] mJpeg;
+  private byte[][] mPrefixes;
+  private byte[][] mDeltas;
+  private int[] mPixels;
+
+  @Setup
+  public void setUp() throws IOException {
+    mJpeg = newProgressiveJpeg(imageSize);
+    // each scan ends where the next one starts, the last one with the image
+    List<Integer> scanEnds = new ArrayList<>();
+    for (int i = 0; i < mJpeg.length - 1; i++) {
+      if ((mJpeg[i] & 0xFF) == 0xFF && (mJpeg[i + 1] & 0xFF) == 0xDA) {
+        scanEnds.add(i);
+      }
+    }
+    scanEnds.remove(0);
+    scanEnds.add(mJpeg.length);
+    mPrefixes = new byte[scanEnds.size()][];
+    mDeltas = new byte[scanEnds.size()][];
+    int previousEnd = 0;
+    for (int i = 0; i < scanEnds.size(); i++) {
+      mPrefixes[i] = Arrays.copyOf(mJpeg, scanEnds.get(i));
+      mDeltas[i] = Arrays.copyOfRange(mJpeg, previousEnd, scanEnds.get(i));
+      previousEnd = scanEnds.get(i);
+    }
+    mPixels = new int[imageSize * imageSize];
+  }
+
+  @Benchmark
+  public int decodeEachScanFromStart() throws IOException {
+    int scanCount = 0;
+    for (byte[] prefix : mPrefixes) {
+      JpegScanDecoder decoder = new JpegScanDecoder();
+      decoder.feed(prefix, prefix.length);
+      decoder.render(sampleSize, mPixels);
+      scanCount += decoder.getScanCount();
+    }
+    return scanCount;
+  }
+
+  @Benchmark
+  public int decodeEachScanIncrementally() throws IOException {
+    JpegScanDecoder decoder = new JpegScanDecoder();
+    for (byte[] delta : mDeltas) {
+      decoder.feed(delta, delta.length);
+      decoder.render(sampleSize, mPixels);
+    }
+    return decoder.getScanCount();
+  }
+
+  @Benchmark
+  public int decodeFinalImage() throws IOException {
+    JpegScanDecoder decoder = new JpegScanDecoder();
+    decoder.feed(mJpeg, mJpeg.length);
+    decoder.render(sampleSize, mPixels);
+    return decoder.getScanCount();
+  }
+
+  /**
+   * Encodes a photo-like image, smooth gradients with noise, as a progressive JPEG with the
+   * default scans of the JDK encoder.
+   */
+  private static byte[] newProgressiveJpeg(int size) throws IOException {
+    Random random = new Random(0);
+    BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < size; y++) {
+      for (int x = 0; x < size; x++) {
+        int r = (x * 255 / size + random.nextInt(16)) & 0xFF;
+        int g = (y * 255 / size + random.nextInt(16)) & 0xFF;
+        int b = ((x + y) * 127 / size + random.nextInt(16)) & 0xFF;
+        image.setRGB(x, y, (r << 16) | (g << 8) | b);
+      }
+    }
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    ImageOutputStream ios = ImageIO.createImageOutputStream(os);
+    try {
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      ios.close();
+      writer.dispose();
+    }
+    return os.toByteArray();
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.decoder;
+
+import com.facebook.common.memory.ByteArrayPool;
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.memory.MappedPooledByteBuffer;
+import com.facebook.imagepipeline.memory.PoolConfig;
+import com.facebook.imagepipeline.memory.PoolFactory;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link ProgressiveJpegParser#parseMoreData}, on a synthetic progressive JPEG
+ * received in chunks as from the network.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ProgressiveJpegParserBenchmark {
+
+  private static final int SCAN_COUNT = 10;
+
+  @Param({"65536"})
+  public int scanSize;
+
+  @Param({"16"})
+  public int chunkCount;
+
+  private ByteArrayPool mByteArrayPool;
+  private EncodedImage[] mChunks;
+
+  @Setup
+  public void setUp() {
+    PoolFactory poolFactory = new PoolFactory(PoolConfig.newBuilder().build());
+    mByteArrayPool = poolFactory.getSmallByteArrayPool();
+    byte[] jpeg = newProgressiveJpeg(SCAN_COUNT, scanSize);
+    // the data received so far, after each chunk
+    mChunks = new EncodedImage[chunkCount];
+    for (int i = 0; i < chunkCount; i++) {
+      int size = (int) ((long) jpeg.length * (i + 1) / chunkCount);
+      ByteBuffer buffer = ByteBuffer.wrap(jpeg, 0, size);
+      CloseableReference<PooledByteBuffer> ref =
+          CloseableReference.<PooledByteBuffer>of(
+              new MappedPooledByteBuffer(buffer, poolFactory.getPooledByteBufferFactory()));
+      mChunks[i] = new EncodedImage(ref);
+      ref.close();
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    for (EncodedImage chunk : mChunks) {
+      EncodedImage.closeSafely(chunk);
+    }
+  }
+
+  @Benchmark
+  public int parseChunks() {
+    ProgressiveJpegParser parser = new ProgressiveJpegParser(mByteArrayPool);
+    for (EncodedImage chunk : mChunks) {
+      parser.parseMoreData(chunk);
+    }
+    return parser.getBestScanNumber();
+  }
+
+  @Benchmark
+  public int parseAll() {
+    ProgressiveJpegParser parser = new ProgressiveJpegParser(mByteArrayPool);
+    parser.parseMoreData(mChunks[mChunks.length - 1]);
+    return parser.getBestScanNumber();
+  }
+
+  /**
+   * Creates the markers of a progressive JPEG, with random entropy coded data in each scan.
+   */
+  private static byte[] newProgressiveJpeg(int scanCount, int scanSize) {
+    Random random = new Random(0);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    writeMarker(os, 0xD8); // SOI
+    writeSegment(os, 0xE0, 14); // APP0
+    writeSegment(os, 0xDB, 65); // DQT
+    writeSegment(os, 0xC2, 15); // SOF2
+    for (int i = 0; i < scanCount; i++) {
+      writeSegment(os, 0xC4, 30); // DHT
+      writeSegment(os, 0xDA, 10); // SOS
+      for (int j = 0; j < scanSize; j++) {
+        int value = random.nextInt(256);
+        os.write(value);
+        if (value == 0xFF) {
+          // escape byte
+          os.write(0);
+        }
+      }
+    }
+    writeMarker(os, 0xD9); // EOI
+    return os.toByteArray();
+  }
+
+  private static void writeMarker(ByteArrayOutputStream os, int marker) {
+    os.write(0xFF);
+    os.write(marker);
+  }
+
+  private static void writeSegment(ByteArrayOutputStream os, int marker, int payloadSize) {
+    writeMarker(os, marker);
+    int size = payloadSize + 2;
+    os.write(size >> 8);
+    os.write(size & 0xFF);
+    for (int i = 0; i < payloadSize; i++) {
+      os.write(0);
+    }
+  }
+}
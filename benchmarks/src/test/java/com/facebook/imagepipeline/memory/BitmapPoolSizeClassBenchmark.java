@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory;
+
+import com.facebook.common.memory.NoOpMemoryTrimmableRegistry;
+import com.facebook.common.util.ByteConstants;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Simulates the bitmap pool on a trace of decoded image dimensions, with exact size buckets and
+ * with size classes, and reports how many bitmaps were reused rather than allocated as the
+ * secondary results of the benchmark.
+ *
+ * <p> Bitmaps can't be allocated on the JVM, so the pool hands out byte arrays, bucketed the same
+ * way as {@link BitmapPool}. The trace is a file with a "width height" line per decoded image,
+ * given with -Pjmh.args="-p traceFile=/path/to/trace". Without one, a synthetic feed of images of
+ * varied aspect ratios is used.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BitmapPoolSizeClassBenchmark {
+
+  private static final int SYNTHETIC_TRACE_LENGTH = 10000;
+  private static final int ARGB_8888_BYTES_PER_PIXEL = 4;
+
+  /** The common aspect ratios of the synthetic trace, as width:height */
+  private static final int[][] ASPECT_RATIOS = {{1, 1}, {4, 3}, {3, 4}, {16, 9}, {9, 16}, {4, 5}};
+
+  @Param({"false", "true"})
+  public boolean sizeClassesEnabled;
+
+  /** How many decoded bitmaps are in use at the same time, e.g. on screen */
+  @Param({"8"})
+  public int liveBitmaps;
+
+  /** The max size of the pool, used and free, before free bitmaps are trimmed */
+  @Param({"32"})
+  public int maxPoolSizeMb;
+
+  @Param({""})
+  public String traceFile;
+
+  private int[] mSizes;
+  private int mNextSize;
+  private TracePool mPool;
+  private ReuseRatioPoolStatsTracker mTracker;
+  private ArrayDeque<byte[]> mLiveValues;
+
+  @Setup
+  public void setUp() throws IOException {
+    mSizes = traceFile.isEmpty() ? getSyntheticTrace() : readTrace(traceFile);
+  }
+
+  @Setup(Level.Iteration)
+  public void setUpIteration() {
+    mTracker = new ReuseRatioPoolStatsTracker();
+    mPool = new TracePool(
+        new PoolParams(maxPoolSizeMb * ByteConstants.MB, Integer.MAX_VALUE, null),
+        mTracker,
+        sizeClassesEnabled);
+    mLiveValues = new ArrayDeque<>(liveBitmaps + 1);
+    mNextSize = 0;
+  }
+
+  /** Decodes the next image of the trace and releases the oldest one still in use */
+  @Benchmark
+  public byte[] decodeNext(ReuseCounters counters) {
+    final byte[] value = mPool.get(mSizes[mNextSize]);
+    mNextSize = (mNextSize + 1) % mSizes.length;
+    mLiveValues.addLast(value);
+    if (mLiveValues.size() > liveBitmaps) {
+      mPool.release(mLiveValues.removeFirst());
+    }
+    counters.reuses = mTracker.getReuseCount();
+    counters.bestFitReuses = mTracker.getBestFitReuseCount();
+    counters.bestFitWastedBytes = mTracker.getBestFitWastedBytes();
+    counters.allocs = mTracker.getAllocCount();
+    return value;
+  }
+
+  /** The counts of the pool over an iteration, reported along with the time per decode */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class ReuseCounters {
+
+    public long reuses;
+    public long bestFitReuses;
+    public long bestFitWastedBytes;
+    public long allocs;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      reuses = 0;
+      bestFitReuses = 0;
+      bestFitWastedBytes = 0;
+      allocs = 0;
+    }
+  }
+
+  private static int[] getSyntheticTrace() {
+    final Random random = new Random(0);
+    final int[] sizes = new int[SYNTHETIC_TRACE_LENGTH];
+    for (int i = 0; i < sizes.length; i++) {
+      final int[] aspectRatio = ASPECT_RATIOS[random.nextInt(ASPECT_RATIOS.length)];
+      // the long side of images downsampled for a screen, between 480 and 1080 pixels
+      final int longSide = 480 + random.nextInt(601);
+      final int shortSide = longSide * Math.min(aspectRatio[0], aspectRatio[1])
+          / Math.max(aspectRatio[0], aspectRatio[1]);
+      sizes[i] = longSide * shortSide * ARGB_8888_BYTES_PER_PIXEL;
+    }
+    return sizes;
+  }
+
+  private static int[] readTrace(String path) throws IOException {
+    final List<Integer> sizes = new ArrayList<>();
+    final BufferedReader reader = new BufferedReader(new FileReader(path));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final String[] dimensions = line.trim().split("\\s+");
+        if (dimensions.length == 2) {
+          sizes.add(
+              Integer.parseInt(dimensions[0])
+                  * Integer.parseInt(dimensions[1])
+                  * ARGB_8888_BYTES_PER_PIXEL);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    final int[] result = new int[sizes.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = sizes.get(i);
+    }
+    return result;
+  }
+
+  /** Pool of byte arrays bucketed like {@link BitmapPool} */
+  private static class TracePool extends BasePool<byte[]> {
+
+    private final boolean mSizeClassesEnabled;
+
+    TracePool(
+        PoolParams poolParams,
+        PoolStatsTracker poolStatsTracker,
+        boolean sizeClassesEnabled) {
+      super(NoOpMemoryTrimmableRegistry.getInstance(), poolParams, poolStatsTracker);
+      mSizeClassesEnabled = sizeClassesEnabled;
+      initialize();
+    }
+
+    @Override
+    protected byte[] alloc(int bucketedSize) {
+      return new byte[bucketedSize];
+    }
+
+    @Override
+    protected void free(byte[] value) {
+    }
+
+    @Override
+    protected int getBucketedSize(int requestSize) {
+      return mSizeClassesEnabled ? BitmapPool.getSizeClass(requestSize) : requestSize;
+    }
+
+    @Override
+    protected int getMaxBestFitBucketedSize(int bucketedSize) {
+      if (!mSizeClassesEnabled) {
+        return bucketedSize;
+      }
+      int maxBucketedSize = bucketedSize;
+      for (int i = 0; i < BitmapPool.BEST_FIT_SIZE_CLASS_COUNT; i++) {
+        maxBucketedSize = BitmapPool.getSizeClass(maxBucketedSize + 1);
+      }
+      return maxBucketedSize;
+    }
+
+    @Override
+    protected int getBucketedSizeForValue(byte[] value) {
+      return value.length;
+    }
+
+    @Override
+    protected int getSizeInBytes(int bucketedSize) {
+      return bucketedSize;
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory;
+
+import com.facebook.common.memory.ByteArrayPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link BasePool} get and release, through the small byte array pool
+ * ({@link GenericByteArrayPool}), with and without per-thread magazines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class GenericByteArrayPoolBenchmark {
+
+  @Param({"0", "4"})
+  public int magazineCapacity;
+
+  @Param({"16384"})
+  public int size;
+
+  private ByteArrayPool mPool;
+
+  @Setup
+  public void setUp() {
+    mPool = new PoolFactory(
+        PoolConfig.newBuilder()
+            .setThreadLocalMagazineCapacity(magazineCapacity)
+            .build())
+        .getSmallByteArrayPool();
+  }
+
+  @Benchmark
+  public void getAndRelease() {
+    mPool.release(mPool.get(size));
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void getAndRelease_4Threads() {
+    mPool.release(mPool.get(size));
+  }
+}
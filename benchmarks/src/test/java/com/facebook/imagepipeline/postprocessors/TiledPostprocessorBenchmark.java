@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.postprocessors;
+
+import com.facebook.imagepipeline.request.TiledPostprocessor;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the wall-clock time of the tiled postprocessors on a 12 megapixel image, by number of
+ * workers. A single worker is the single threaded baseline.
+ *
+ * <p> Bitmaps can't be allocated on the JVM, so the postprocessors run on arrays of pixels, through
+ * the same tiling as for bitmaps. The native blur can't run on the JVM either, so only the tiling
+ * of {@link TiledRoundAsCirclePostprocessor} is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TiledPostprocessorBenchmark {
+
+  private static final int WIDTH = 4000;
+  private static final int HEIGHT = 3000;
+
+  @Param({"1", "2", "4", "8"})
+  public int workerCount;
+
+  private ExecutorService mExecutor;
+  private int[] mSourcePixels;
+  private int[] mDestPixels;
+  private TiledPostprocessor mCirclePostprocessor;
+
+  @Setup
+  public void setUp() {
+    final Random random = new Random(0);
+    mSourcePixels = new int[WIDTH * HEIGHT];
+    for (int i = 0; i < mSourcePixels.length; i++) {
+      mSourcePixels[i] = random.nextInt();
+    }
+    mDestPixels = new int[WIDTH * HEIGHT];
+    mExecutor = Executors.newFixedThreadPool(Math.max(1, workerCount - 1));
+    mCirclePostprocessor = new TiledRoundAsCirclePostprocessor(mExecutor, workerCount);
+  }
+
+  @TearDown
+  public void tearDown() {
+    mExecutor.shutdownNow();
+  }
+
+  @Benchmark
+  public int[] roundAsCircle() {
+    mCirclePostprocessor.process(mDestPixels, mSourcePixels, WIDTH, HEIGHT);
+    return mDestPixels;
+  }
+}
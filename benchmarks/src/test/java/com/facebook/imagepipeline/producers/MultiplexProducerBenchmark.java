@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.listener.BaseRequestListener;
+import com.facebook.imagepipeline.request.ImageRequest;
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link MultiplexProducer}: several requests for the same key are attached to a
+ * single request to the input producer, and its result is delivered to all of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MultiplexProducerBenchmark {
+
+  @Param({"1", "8", "32"})
+  public int consumerCount;
+
+  private DeferredProducer mInputProducer;
+  private MultiplexProducer<String, Result> mMultiplexProducer;
+  private CountingConsumer mConsumer;
+  private ProducerListener mProducerListener;
+  private Result mResult;
+  private String[] mRequestIds;
+
+  @Setup
+  public void setUp() {
+    mInputProducer = new DeferredProducer();
+    mMultiplexProducer = new MultiplexProducer<String, Result>(mInputProducer) {
+      @Override
+      protected String getKey(ProducerContext producerContext) {
+        return "key";
+      }
+
+      @Override
+      protected Result cloneOrNull(Result result) {
+        return result;
+      }
+    };
+    mConsumer = new CountingConsumer();
+    mProducerListener = new BaseRequestListener();
+    mResult = new Result();
+    mRequestIds = new String[consumerCount];
+    for (int i = 0; i < consumerCount; i++) {
+      mRequestIds[i] = "request" + i;
+    }
+  }
+
+  @Benchmark
+  public int fanIn() {
+    for (int i = 0; i < consumerCount; i++) {
+      // contexts keep the callbacks registered by the multiplexer, use new ones every time
+      mMultiplexProducer.produceResults(
+          mConsumer,
+          new BaseProducerContext(
+              null,
+              mRequestIds[i],
+              mProducerListener,
+              null,
+              ImageRequest.RequestLevel.FULL_FETCH,
+              false,
+              true,
+              Priority.MEDIUM));
+    }
+    mInputProducer.mConsumer.onNewResult(mResult, Consumer.IS_LAST);
+    return mConsumer.mResultCount;
+  }
+
+  private static class Result implements Closeable {
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Holds the request, so that all the consumers attach to the same multiplexer.
+   */
+  private static class DeferredProducer implements Producer<Result> {
+    Consumer<Result> mConsumer;
+
+    @Override
+    public void produceResults(Consumer<Result> consumer, ProducerContext context) {
+      mConsumer = consumer;
+    }
+  }
+
+  private static class CountingConsumer implements Consumer<Result> {
+    int mResultCount;
+
+    @Override
+    public void onNewResult(Result newResult, @Status int status) {
+      mResultCount++;
+    }
+
+    @Override
+    public void onFailure(Throwable t) {
+    }
+
+    @Override
+    public void onCancellation() {
+    }
+
+    @Override
+    public void onProgressUpdate(float progress) {
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imageutils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the JPEG metadata parsing of {@link JfifUtil} and {@link TiffUtil}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class JfifUtilBenchmark {
+
+  // entries before the orientation in the IFD, as written by most cameras
+  private static final int IFD_ENTRY_COUNT = 10;
+  private static final int ORIENTATION_ROTATE_90 = 6;
+
+  private byte[] mJpeg;
+  private byte[] mTiff;
+
+  @Setup
+  public void setUp() {
+    mTiff = newTiff();
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    writeMarker(os, JfifUtil.MARKER_SOI);
+    writeMarker(os, 0xE0); // APP0
+    writeShort(os, 16);
+    os.write(new byte[14], 0, 14);
+    writeMarker(os, JfifUtil.MARKER_APP1);
+    writeShort(os, 2 + 6 + mTiff.length);
+    writeInt(os, JfifUtil.APP1_EXIF_MAGIC);
+    writeShort(os, 0);
+    os.write(mTiff, 0, mTiff.length);
+    writeMarker(os, 0xDB); // DQT
+    writeShort(os, 67);
+    os.write(new byte[65], 0, 65);
+    writeMarker(os, 0xC0); // SOF0
+    writeShort(os, 17);
+    os.write(new byte[15], 0, 15);
+    writeMarker(os, JfifUtil.MARKER_SOS);
+    mJpeg = os.toByteArray();
+  }
+
+  @Benchmark
+  public int getOrientation() {
+    return JfifUtil.getOrientation(mJpeg);
+  }
+
+  @Benchmark
+  public boolean moveToSOFn() throws IOException {
+    return JfifUtil.moveToMarker(new ByteArrayInputStream(mJpeg), JfifUtil.MARKER_SOFn);
+  }
+
+  @Benchmark
+  public int readOrientationFromTIFF() throws IOException {
+    return TiffUtil.readOrientationFromTIFF(new ByteArrayInputStream(mTiff), mTiff.length);
+  }
+
+  /**
+   * Creates big endian TIFF data with a single IFD ending with the orientation entry.
+   */
+  private static byte[] newTiff() {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    writeInt(os, TiffUtil.TIFF_BYTE_ORDER_BIG_END);
+    writeInt(os, 8); // offset of the first IFD
+    writeShort(os, IFD_ENTRY_COUNT + 1);
+    for (int i = 0; i < IFD_ENTRY_COUNT; i++) {
+      writeIfdEntry(os, 0x0100 + i, 0);
+    }
+    writeIfdEntry(os, TiffUtil.TIFF_TAG_ORIENTATION, ORIENTATION_ROTATE_90);
+    writeInt(os, 0); // no next IFD
+    return os.toByteArray();
+  }
+
+  private static void writeIfdEntry(ByteArrayOutputStream os, int tag, int value) {
+    writeShort(os, tag);
+    writeShort(os, TiffUtil.TIFF_TYPE_SHORT);
+    writeInt(os, 1); // count
+    writeShort(os, value);
+    writeShort(os, 0); // padding
+  }
+
+  private static void writeMarker(ByteArrayOutputStream os, int marker) {
+    os.write(JfifUtil.MARKER_FIRST_BYTE);
+    os.write(marker);
+  }
+
+  private static void writeShort(ByteArrayOutputStream os, int value) {
+    os.write((value >> 8) & 0xFF);
+    os.write(value & 0xFF);
+  }
+
+  private static void writeInt(ByteArrayOutputStream os, int value) {
+    writeShort(os, value >>> 16);
+    writeShort(os, value);
+  }
+}
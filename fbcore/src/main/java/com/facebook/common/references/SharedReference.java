@@ -11,7 +11,6 @@ import com.facebook.common.internal.Preconditions;
 import com.facebook.common.internal.VisibleForTesting;
 import com.facebook.common.logging.FLog;
 import java.util.IdentityHashMap;
-import java.util.Map;
 import javax.annotation.concurrent.GuardedBy;
 
 /**
@@ -93,11 +92,16 @@ import javax.annotation.concurrent.GuardedBy;
 @VisibleForTesting
 public class SharedReference<T> {
 
+  // Number of stripes of sLiveObjects, must be a power of 2
+  private static final int LIVE_OBJECTS_STRIPE_COUNT = 32;
+
   // Keeps references to all live objects so finalization of those Objects always happens after
   // SharedReference first disposes of it. Note, this does not prevent CloseableReference's from
   // being finalized when the reference is no longer reachable.
-  @GuardedBy("itself")
-  private static final Map<Object, Integer> sLiveObjects = new IdentityHashMap<>();
+  // The objects are spread over several maps by identity hash code, so that threads creating and
+  // disposing of references to different objects rarely contend on the same lock.
+  @GuardedBy("each stripe itself")
+  private static final IdentityHashMap<Object, Integer>[] sLiveObjects = newLiveObjectStripes();
 
   @GuardedBy("this")
   private T mValue;
@@ -120,6 +124,25 @@ public class SharedReference<T> {
     addLiveReference(value);
   }
 
+  @SuppressWarnings("unchecked")
+  private static IdentityHashMap<Object, Integer>[] newLiveObjectStripes() {
+    IdentityHashMap<Object, Integer>[] stripes = new IdentityHashMap[LIVE_OBJECTS_STRIPE_COUNT];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new IdentityHashMap<>();
+    }
+    return stripes;
+  }
+
+  /**
+   * Gets the map of live objects that the value belongs to.
+   */
+  private static IdentityHashMap<Object, Integer> getLiveObjectStripe(Object value) {
+    int hash = System.identityHashCode(value);
+    // spread the higher bits, as the lower ones alone may be poorly distributed
+    hash ^= (hash >>> 16);
+    return sLiveObjects[hash & (LIVE_OBJECTS_STRIPE_COUNT - 1)];
+  }
+
   /**
    * Increases the reference count of a live object in the static map. Adds it if it's not
    * being held.
@@ -127,12 +150,13 @@ public class SharedReference<T> {
    * @param value the value to add.
    */
   private static void addLiveReference(Object value) {
-    synchronized (sLiveObjects) {
-      Integer count = sLiveObjects.get(value);
+    final IdentityHashMap<Object, Integer> liveObjects = getLiveObjectStripe(value);
+    synchronized (liveObjects) {
+      Integer count = liveObjects.get(value);
       if (count == null) {
-        sLiveObjects.put(value, 1);
+        liveObjects.put(value, 1);
       } else {
-        sLiveObjects.put(value, count + 1);
+        liveObjects.put(value, count + 1);
       }
     }
   }
@@ -144,8 +168,9 @@ public class SharedReference<T> {
    * @param value the value to remove.
    */
   private static void removeLiveReference(Object value) {
-    synchronized (sLiveObjects) {
-      Integer count = sLiveObjects.get(value);
+    final IdentityHashMap<Object, Integer> liveObjects = getLiveObjectStripe(value);
+    synchronized (liveObjects) {
+      Integer count = liveObjects.get(value);
       if (count == null) {
         // Uh oh.
         FLog.wtf(
@@ -153,13 +178,26 @@ public class SharedReference<T> {
             "No entry in sLiveObjects for value of type %s",
             value.getClass());
       } else if (count == 1) {
-        sLiveObjects.remove(value);
+        liveObjects.remove(value);
       } else {
-        sLiveObjects.put(value, count - 1);
+        liveObjects.put(value, count - 1);
       }
     }
   }
 
+  /**
+   * A test-only method to get the number of live shared references to the value
+   * DO NOT USE in regular code
+   */
+  @VisibleForTesting
+  static int getLiveReferenceCountTestOnly(Object value) {
+    final IdentityHashMap<Object, Integer> liveObjects = getLiveObjectStripe(value);
+    synchronized (liveObjects) {
+      Integer count = liveObjects.get(value);
+      return count == null ? 0 : count;
+    }
+  }
+
   /**
    * Get the current referenced value. Null if there's no value.
    * @return the referenced value
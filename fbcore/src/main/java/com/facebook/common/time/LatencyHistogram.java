@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.common.time;
+
+import com.facebook.common.internal.Preconditions;
+import java.util.Arrays;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A histogram of durations in milliseconds, with a bounded relative error.
+ *
+ * <p> Values below {@link #SUB_BUCKET_COUNT} are counted exactly. Above that, every power of two
+ * is split into {@link #SUB_BUCKET_COUNT} linear sub-buckets, so that a value is known within
+ * 1/16th of itself, as in an HDR histogram. Values above {@link #MAX_TRACKABLE_VALUE_MS} are
+ * counted in the last bucket.
+ *
+ * <p> The counts are kept in a preallocated array: recording a value does not allocate.
+ */
+@ThreadSafe
+public class LatencyHistogram {
+
+  public static final int SUB_BUCKET_COUNT = 16;
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int MAX_VALUE_BITS = 22;
+
+  /** Largest value that is counted with the stated precision, a bit over an hour */
+  public static final long MAX_TRACKABLE_VALUE_MS = (1L << MAX_VALUE_BITS) - 1;
+
+  private static final int BUCKET_COUNT =
+      SUB_BUCKET_COUNT + (MAX_VALUE_BITS - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+  @GuardedBy("this")
+  private final long[] mCounts = new long[BUCKET_COUNT];
+  @GuardedBy("this")
+  private long mTotalCount;
+  @GuardedBy("this")
+  private long mSum;
+  @GuardedBy("this")
+  private long mMax;
+
+  /**
+   * Counts a value. Negative values are counted as 0.
+   * @param valueMs duration in milliseconds
+   */
+  public synchronized void record(long valueMs) {
+    valueMs = Math.max(valueMs, 0);
+    mCounts[getBucketIndex(valueMs)]++;
+    mTotalCount++;
+    mSum += valueMs;
+    mMax = Math.max(mMax, valueMs);
+  }
+
+  public synchronized long getTotalCount() {
+    return mTotalCount;
+  }
+
+  /**
+   * @return the largest recorded value, or 0 if there is none
+   */
+  public synchronized long getMax() {
+    return mMax;
+  }
+
+  /**
+   * @return the mean of the recorded values, or 0 if there is none
+   */
+  public synchronized double getMean() {
+    return mTotalCount == 0 ? 0 : (double) mSum / mTotalCount;
+  }
+
+  /**
+   * Gets the value below which the given percentage of the recorded values fall, rounded up to
+   * the largest value counted in the same bucket.
+   * @param percentile between 0 and 100
+   * @return the value at the percentile, or 0 if there is no recorded value
+   */
+  public synchronized long getValueAtPercentile(double percentile) {
+    Preconditions.checkArgument(percentile >= 0 && percentile <= 100);
+    if (mTotalCount == 0) {
+      return 0;
+    }
+    long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100 * mTotalCount));
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      count += mCounts[i];
+      if (count >= countAtPercentile) {
+        return Math.min(getHighestValueInBucket(i), mMax);
+      }
+    }
+    return mMax;
+  }
+
+  /**
+   * Adds the content of this histogram to another one, for instance to aggregate several
+   * histograms or to poll one without holding its lock while reporting. Only one of the two
+   * histograms is locked at a time, so histograms can be added to each other concurrently.
+   * @param other histogram to add the content of this one to
+   */
+  public void addTo(LatencyHistogram other) {
+    Preconditions.checkArgument(other != this);
+    other.add(snapshot(false), false);
+  }
+
+  /**
+   * Moves the content of this histogram to another one, replacing its content. Polling with this
+   * method gives the values recorded since the previous poll.
+   * @param other histogram to move the content of this one to
+   */
+  public void moveTo(LatencyHistogram other) {
+    Preconditions.checkArgument(other != this);
+    other.add(snapshot(true), true);
+  }
+
+  /**
+   * Removes all the recorded values.
+   */
+  public synchronized void reset() {
+    Arrays.fill(mCounts, 0);
+    mTotalCount = 0;
+    mSum = 0;
+    mMax = 0;
+  }
+
+  private synchronized LatencyHistogram snapshot(boolean reset) {
+    LatencyHistogram snapshot = new LatencyHistogram();
+    System.arraycopy(mCounts, 0, snapshot.mCounts, 0, BUCKET_COUNT);
+    snapshot.mTotalCount = mTotalCount;
+    snapshot.mSum = mSum;
+    snapshot.mMax = mMax;
+    if (reset) {
+      reset();
+    }
+    return snapshot;
+  }
+
+  private synchronized void add(LatencyHistogram snapshot, boolean replace) {
+    if (replace) {
+      reset();
+    }
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      mCounts[i] += snapshot.mCounts[i];
+    }
+    mTotalCount += snapshot.mTotalCount;
+    mSum += snapshot.mSum;
+    mMax = Math.max(mMax, snapshot.mMax);
+  }
+
+  static int getBucketIndex(long valueMs) {
+    if (valueMs < SUB_BUCKET_COUNT) {
+      return (int) valueMs;
+    }
+    if (valueMs > MAX_TRACKABLE_VALUE_MS) {
+      return BUCKET_COUNT - 1;
+    }
+    int shift = (63 - Long.numberOfLeadingZeros(valueMs)) - SUB_BUCKET_BITS;
+    int subBucket = (int) (valueMs >> shift) & (SUB_BUCKET_COUNT - 1);
+    return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  static long getHighestValueInBucket(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+    int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+    return ((long) (SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+  }
+}
@@ -94,6 +94,63 @@ public class SharedReferenceTest {
     Mockito.verify(releaser, Mockito.times(1)).release(thing);
   }
 
+  @Test
+  public void testLiveReferences() {
+    final Thing thing = new Thing("abc");
+    final SharedReference<Thing> tRef1 = new SharedReference<Thing>(thing, THING_RELEASER);
+    Assert.assertEquals(1, SharedReference.getLiveReferenceCountTestOnly(thing));
+
+    // another shared reference to the same value
+    final SharedReference<Thing> tRef2 = new SharedReference<Thing>(thing, THING_RELEASER);
+    Assert.assertEquals(2, SharedReference.getLiveReferenceCountTestOnly(thing));
+
+    // adding a reference doesn't add a live reference
+    tRef1.addReference();
+    Assert.assertEquals(2, SharedReference.getLiveReferenceCountTestOnly(thing));
+
+    tRef1.deleteReference();
+    tRef1.deleteReference();
+    Assert.assertEquals(1, SharedReference.getLiveReferenceCountTestOnly(thing));
+    tRef2.deleteReference();
+    Assert.assertEquals(0, SharedReference.getLiveReferenceCountTestOnly(thing));
+  }
+
+  @Test
+  public void testLiveReferences_ManyThreads() throws Exception {
+    final Thing[] things = new Thing[64];
+    for (int i = 0; i < things.length; i++) {
+      things[i] = new Thing("thing" + i);
+    }
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(
+          new Runnable() {
+            @Override
+            public void run() {
+              for (int j = 0; j < 1000; j++) {
+                Thing thing = things[j % things.length];
+                new SharedReference<Thing>(thing, NOOP_RELEASER).deleteReference();
+              }
+            }
+          });
+      threads[i].start();
+    }
+    // keep one reference to each value while the threads run
+    SharedReference[] refs = new SharedReference[things.length];
+    for (int i = 0; i < things.length; i++) {
+      refs[i] = new SharedReference<Thing>(things[i], NOOP_RELEASER);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    for (int i = 0; i < things.length; i++) {
+      Assert.assertEquals(1, SharedReference.getLiveReferenceCountTestOnly(things[i]));
+      refs[i].deleteReference();
+      Assert.assertEquals(0, SharedReference.getLiveReferenceCountTestOnly(things[i]));
+    }
+  }
+
   public static class Thing implements Closeable {
     private String mValue;
 
@@ -125,6 +182,12 @@ public class SharedReferenceTest {
     }
   }
 
+  private static final ResourceReleaser<Thing> NOOP_RELEASER = new ResourceReleaser<Thing>() {
+    @Override
+    public void release(Thing value) {
+    }
+  };
+
   public final ResourceReleaser<Thing> THING_RELEASER = new ResourceReleaser<Thing>() {
     @Override
     public void release(Thing value) {
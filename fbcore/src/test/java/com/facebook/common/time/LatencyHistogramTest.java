@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.common.time;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class LatencyHistogramTest {
+
+  private LatencyHistogram mHistogram;
+
+  @Before
+  public void setUp() {
+    mHistogram = new LatencyHistogram();
+  }
+
+  @Test
+  public void testEmpty() {
+    assertEquals(0, mHistogram.getTotalCount());
+    assertEquals(0, mHistogram.getMax());
+    assertEquals(0, mHistogram.getMean(), 0);
+    assertEquals(0, mHistogram.getValueAtPercentile(50));
+  }
+
+  @Test
+  public void testSmallValuesAreExact() {
+    for (int i = 1; i <= 10; i++) {
+      mHistogram.record(i);
+    }
+    assertEquals(10, mHistogram.getTotalCount());
+    assertEquals(10, mHistogram.getMax());
+    assertEquals(5.5, mHistogram.getMean(), 0.001);
+    assertEquals(5, mHistogram.getValueAtPercentile(50));
+    assertEquals(9, mHistogram.getValueAtPercentile(90));
+    assertEquals(10, mHistogram.getValueAtPercentile(100));
+    assertEquals(1, mHistogram.getValueAtPercentile(0));
+  }
+
+  @Test
+  public void testRelativeError() {
+    long[] values = {17, 100, 999, 12345, 600000};
+    for (long value : values) {
+      LatencyHistogram histogram = new LatencyHistogram();
+      histogram.record(value);
+      histogram.record(LatencyHistogram.MAX_TRACKABLE_VALUE_MS);
+      long valueAtPercentile = histogram.getValueAtPercentile(50);
+      assertTrue(valueAtPercentile >= value);
+      assertTrue(valueAtPercentile - value <= value / LatencyHistogram.SUB_BUCKET_COUNT);
+    }
+  }
+
+  @Test
+  public void testBuckets() {
+    long previousHighestValue = -1;
+    for (int index = 0; index < LatencyHistogram.getBucketIndex(Long.MAX_VALUE); index++) {
+      long highestValue = LatencyHistogram.getHighestValueInBucket(index);
+      assertEquals(index, LatencyHistogram.getBucketIndex(previousHighestValue + 1));
+      assertEquals(index, LatencyHistogram.getBucketIndex(highestValue));
+      previousHighestValue = highestValue;
+    }
+  }
+
+  @Test
+  public void testOutOfRangeValues() {
+    mHistogram.record(-5);
+    mHistogram.record(LatencyHistogram.MAX_TRACKABLE_VALUE_MS * 2);
+    assertEquals(2, mHistogram.getTotalCount());
+    assertEquals(0, mHistogram.getValueAtPercentile(50));
+    assertEquals(LatencyHistogram.MAX_TRACKABLE_VALUE_MS * 2, mHistogram.getMax());
+    assertEquals(
+        LatencyHistogram.MAX_TRACKABLE_VALUE_MS,
+        mHistogram.getValueAtPercentile(99));
+  }
+
+  @Test
+  public void testAddTo() {
+    mHistogram.record(10);
+    mHistogram.record(20);
+    LatencyHistogram other = new LatencyHistogram();
+    other.record(100);
+    mHistogram.addTo(other);
+    assertEquals(2, mHistogram.getTotalCount());
+    assertEquals(3, other.getTotalCount());
+    assertEquals(100, other.getMax());
+    assertEquals(20, other.getValueAtPercentile(60));
+  }
+
+  @Test
+  public void testMoveTo() {
+    mHistogram.record(10);
+    LatencyHistogram poll = new LatencyHistogram();
+    poll.record(1000);
+    mHistogram.moveTo(poll);
+    assertEquals(0, mHistogram.getTotalCount());
+    assertEquals(1, poll.getTotalCount());
+    assertEquals(10, poll.getMax());
+
+    mHistogram.record(20);
+    mHistogram.moveTo(poll);
+    assertEquals(1, poll.getTotalCount());
+    assertEquals(20, poll.getMax());
+  }
+
+  @Test(timeout = 10000)
+  public void testAddToEachOtherConcurrently() throws InterruptedException {
+    final LatencyHistogram other = new LatencyHistogram();
+    mHistogram.record(10);
+    other.record(20);
+    Thread thread = new Thread(
+        new Runnable() {
+          @Override
+          public void run() {
+            for (int i = 0; i < 1000; i++) {
+              other.addTo(mHistogram);
+            }
+          }
+        });
+    thread.start();
+    for (int i = 0; i < 1000; i++) {
+      mHistogram.addTo(other);
+    }
+    // the counts grow too fast to be checked, the test is that both threads finish
+    thread.join();
+  }
+}
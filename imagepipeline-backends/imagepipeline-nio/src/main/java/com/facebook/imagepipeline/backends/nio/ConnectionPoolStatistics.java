@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.backends.nio;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Snapshot of the state and counters of the connection pool of a {@link NioNetworkFetcher}.
+ */
+public class ConnectionPoolStatistics {
+
+  private final List<HostStatistics> mHostStatistics;
+
+  ConnectionPoolStatistics(List<HostStatistics> hostStatistics) {
+    mHostStatistics = Collections.unmodifiableList(hostStatistics);
+  }
+
+  /**
+   * @return the statistics of each host a request was sent to
+   */
+  public List<HostStatistics> getHostStatistics() {
+    return mHostStatistics;
+  }
+
+  public int getOpenConnectionCount() {
+    int count = 0;
+    for (int i = 0; i < mHostStatistics.size(); i++) {
+      count += mHostStatistics.get(i).getOpenConnectionCount();
+    }
+    return count;
+  }
+
+  public int getIdleConnectionCount() {
+    int count = 0;
+    for (int i = 0; i < mHostStatistics.size(); i++) {
+      count += mHostStatistics.get(i).getIdleConnectionCount();
+    }
+    return count;
+  }
+
+  public long getRequestCount() {
+    long count = 0;
+    for (int i = 0; i < mHostStatistics.size(); i++) {
+      count += mHostStatistics.get(i).getRequestCount();
+    }
+    return count;
+  }
+
+  public long getReceivedByteCount() {
+    long count = 0;
+    for (int i = 0; i < mHostStatistics.size(); i++) {
+      count += mHostStatistics.get(i).getReceivedByteCount();
+    }
+    return count;
+  }
+
+  @Override
+  public String toString() {
+    return mHostStatistics.toString();
+  }
+
+  /**
+   * Snapshot of the connections to a host, and counters of the requests sent to it.
+   */
+  public static class HostStatistics {
+
+    private final String mHost;
+    private final int mOpenConnectionCount;
+    private final int mIdleConnectionCount;
+    private final int mWaitingRequestCount;
+    private final long mConnectionCount;
+    private final long mRequestCount;
+    private final long mReusedConnectionRequestCount;
+    private final long mPipelinedRequestCount;
+    private final long mRetriedRequestCount;
+    private final long mFailedRequestCount;
+    private final long mReceivedByteCount;
+
+    HostStatistics(
+        String host,
+        int openConnectionCount,
+        int idleConnectionCount,
+        int waitingRequestCount,
+        long connectionCount,
+        long requestCount,
+        long reusedConnectionRequestCount,
+        long pipelinedRequestCount,
+        long retriedRequestCount,
+        long failedRequestCount,
+        long receivedByteCount) {
+      mHost = host;
+      mOpenConnectionCount = openConnectionCount;
+      mIdleConnectionCount = idleConnectionCount;
+      mWaitingRequestCount = waitingRequestCount;
+      mConnectionCount = connectionCount;
+      mRequestCount = requestCount;
+      mReusedConnectionRequestCount = reusedConnectionRequestCount;
+      mPipelinedRequestCount = pipelinedRequestCount;
+      mRetriedRequestCount = retriedRequestCount;
+      mFailedRequestCount = failedRequestCount;
+      mReceivedByteCount = receivedByteCount;
+    }
+
+    /**
+     * @return the host and port
+     */
+    public String getHost() {
+      return mHost;
+    }
+
+    /**
+     * @return the number of connections open or being opened to the host
+     */
+    public int getOpenConnectionCount() {
+      return mOpenConnectionCount;
+    }
+
+    /**
+     * @return the number of open connections without requests in flight
+     */
+    public int getIdleConnectionCount() {
+      return mIdleConnectionCount;
+    }
+
+    /**
+     * @return the number of requests waiting for a connection
+     */
+    public int getWaitingRequestCount() {
+      return mWaitingRequestCount;
+    }
+
+    /**
+     * @return the number of connections opened to the host so far
+     */
+    public long getConnectionCount() {
+      return mConnectionCount;
+    }
+
+    /**
+     * @return the number of requests sent to the host so far, including retries
+     */
+    public long getRequestCount() {
+      return mRequestCount;
+    }
+
+    /**
+     * @return the number of requests sent on a connection that had already been used
+     */
+    public long getReusedConnectionRequestCount() {
+      return mReusedConnectionRequestCount;
+    }
+
+    /**
+     * @return the number of requests sent while the response to another one was pending on the
+     *     same connection
+     */
+    public long getPipelinedRequestCount() {
+      return mPipelinedRequestCount;
+    }
+
+    /**
+     * @return the number of requests sent again because their connection was closed before their
+     *     response started
+     */
+    public long getRetriedRequestCount() {
+      return mRetriedRequestCount;
+    }
+
+    /**
+     * @return the number of requests that failed because of the network
+     */
+    public long getFailedRequestCount() {
+      return mFailedRequestCount;
+    }
+
+    /**
+     * @return the number of bytes received from the host, headers included
+     */
+    public long getReceivedByteCount() {
+      return mReceivedByteCount;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          (Locale) null,
+          "%s: %d open (%d idle), %d waiting, %d connections, %d requests (%d reused, "
+              + "%d pipelined, %d retried, %d failed), %d bytes",
+          mHost,
+          mOpenConnectionCount,
+          mIdleConnectionCount,
+          mWaitingRequestCount,
+          mConnectionCount,
+          mRequestCount,
+          mReusedConnectionRequestCount,
+          mPipelinedRequestCount,
+          mRetriedRequestCount,
+          mFailedRequestCount,
+          mReceivedByteCount);
+    }
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.backends.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import javax.annotation.Nullable;
+
+/**
+ * A keep-alive connection to a host, with the requests sent on it waiting for their responses.
+ *
+ * <p> Only accessed from the selector thread of the pool.
+ */
+class HttpConnection {
+
+  static final int READ_BUFFER_SIZE = 16 * 1024;
+
+  final HttpConnectionPool.HostPool mHostPool;
+  final HttpResponseParser mParser;
+  /** Reused for every read from the connection */
+  final ByteBuffer mReadBuffer;
+  /** The requests sent or being sent, in order, the first one being the one being responded */
+  final ArrayDeque<HttpExchange> mExchanges;
+  final ArrayDeque<ByteBuffer> mPendingWrites;
+
+  @Nullable SocketChannel mChannel;
+  @Nullable SelectionKey mKey;
+  boolean mIsConnected;
+  boolean mIsClosed;
+  /** Whether the server kept the connection alive after a response, so requests can be pipelined */
+  boolean mIsReusable;
+  int mServedCount;
+  long mLastActivityMs;
+
+  HttpConnection(HttpConnectionPool.HostPool hostPool, long nowMs) {
+    mHostPool = hostPool;
+    mParser = new HttpResponseParser();
+    mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    mExchanges = new ArrayDeque<>();
+    mPendingWrites = new ArrayDeque<>();
+    mLastActivityMs = nowMs;
+  }
+
+  boolean isIdle() {
+    return mIsConnected && !mIsClosed && mExchanges.isEmpty();
+  }
+
+  boolean canPipeline(int maxPipelinedRequests) {
+    return mIsConnected && !mIsClosed && mIsReusable && mExchanges.size() < maxPipelinedRequests;
+  }
+}
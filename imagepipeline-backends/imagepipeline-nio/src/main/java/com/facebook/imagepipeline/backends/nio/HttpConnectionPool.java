@@ -0,0 +1,655 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.backends.nio;
+
+import android.os.SystemClock;
+import com.facebook.common.logging.FLog;
+import com.facebook.imagepipeline.producers.FetchState;
+import com.facebook.imagepipeline.producers.NetworkFetcher;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Pool of keep-alive HTTP/1.1 connections, all served by a single selector thread.
+ *
+ * <p> The requests to a host wait in a queue until a connection takes them: an idle connection if
+ * there is one, else a new connection if the host has fewer than the max number of connections.
+ * Once that limit is reached, requests are pipelined on the connection with the fewest requests in
+ * flight, if the server kept it alive after a response and fewer than the max number of requests
+ * are in flight on it.
+ *
+ * <p> When a connection is closed, the requests on it whose response did not start yet are sent
+ * again on another connection, which covers servers closing idle or pipelined connections.
+ *
+ * <p> The state of the pool is confined to the selector thread; other threads post tasks to it.
+ * Host names are resolved on a separate executor so that the selector thread never blocks. They
+ * are resolved again for every new connection, so that the pool follows DNS changes as soon as the
+ * system resolver does.
+ */
+class HttpConnectionPool implements Runnable {
+
+  private static final String TAG = "HttpConnectionPool";
+  private static final long SELECT_TIMEOUT_MS = 1000;
+  private static final long STATISTICS_TIMEOUT_MS = 1000;
+  private static final long SHUTDOWN_TIMEOUT_MS = 1000;
+  private static final int MAX_RETRIES = 2;
+
+  private final int mMaxConnectionsPerHost;
+  private final int mMaxPipelinedRequests;
+  private final long mTimeoutMs;
+  private final long mKeepAliveMs;
+  private final Executor mResolverExecutor;
+  private final NetworkFetcher<FetchState> mFallbackFetcher;
+  private final ConcurrentLinkedQueue<Runnable> mTasks;
+
+  // only accessed from the selector thread
+  private final Map<String, HostPool> mHostPools;
+
+  @GuardedBy("this")
+  private @Nullable Selector mSelector;
+  @GuardedBy("this")
+  private @Nullable Thread mThread;
+  @GuardedBy("this")
+  private boolean mIsShutdown;
+
+  HttpConnectionPool(
+      int maxConnectionsPerHost,
+      int maxPipelinedRequests,
+      long timeoutMs,
+      long keepAliveMs,
+      Executor resolverExecutor,
+      NetworkFetcher<FetchState> fallbackFetcher) {
+    mMaxConnectionsPerHost = maxConnectionsPerHost;
+    mMaxPipelinedRequests = maxPipelinedRequests;
+    mTimeoutMs = timeoutMs;
+    mKeepAliveMs = keepAliveMs;
+    mResolverExecutor = resolverExecutor;
+    mFallbackFetcher = fallbackFetcher;
+    mTasks = new ConcurrentLinkedQueue<>();
+    mHostPools = new HashMap<>();
+  }
+
+  /**
+   * Queues the request, which is sent as soon as a connection to the host can take it.
+   */
+  void submit(final HttpExchange exchange) {
+    post(
+        new Runnable() {
+          @Override
+          public void run() {
+            HostPool hostPool = mHostPools.get(exchange.getHostKey());
+            if (hostPool == null) {
+              hostPool = new HostPool(exchange.mHost, exchange.mPort);
+              mHostPools.put(exchange.getHostKey(), hostPool);
+            }
+            hostPool.mWaiting.add(exchange);
+            dispatch(hostPool);
+          }
+        },
+        exchange);
+  }
+
+  void cancel(final HttpExchange exchange) {
+    post(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (exchange.isFinished()) {
+              return;
+            }
+            HttpConnection connection = exchange.mConnection;
+            exchange.cancel();
+            if (connection == null) {
+              HostPool hostPool = mHostPools.get(exchange.getHostKey());
+              if (hostPool != null) {
+                hostPool.mWaiting.remove(exchange);
+              }
+            } else if (connection.mExchanges.peek() == exchange) {
+              // no need to read the rest of the response, the requests behind it are sent again
+              closeConnection(connection, new IOException("Request cancelled"));
+            }
+            // otherwise the response is discarded once it is read
+          }
+        },
+        null);
+  }
+
+  /**
+   * @return a snapshot of the connections and counters of each host
+   */
+  ConnectionPoolStatistics getStatistics() {
+    synchronized (this) {
+      if (mThread == null || Thread.currentThread() == mThread) {
+        return new ConnectionPoolStatistics(snapshotHostStatistics());
+      }
+    }
+    final AtomicReference<List<ConnectionPoolStatistics.HostStatistics>> hostStatistics =
+        new AtomicReference<>();
+    final CountDownLatch latch = new CountDownLatch(1);
+    post(
+        new Runnable() {
+          @Override
+          public void run() {
+            hostStatistics.set(snapshotHostStatistics());
+            latch.countDown();
+          }
+        },
+        null);
+    try {
+      latch.await(STATISTICS_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+    List<ConnectionPoolStatistics.HostStatistics> snapshot = hostStatistics.get();
+    return new ConnectionPoolStatistics(
+        snapshot != null ? snapshot : new ArrayList<ConnectionPoolStatistics.HostStatistics>());
+  }
+
+  /**
+   * Closes all the connections and fails the requests in flight, waiting for the selector thread to
+   * be done with them. The pool cannot be used after.
+   */
+  void shutdown() {
+    Selector selector;
+    Thread thread;
+    synchronized (this) {
+      mIsShutdown = true;
+      selector = mSelector;
+      thread = mThread;
+    }
+    if (selector != null) {
+      selector.wakeup();
+    }
+    if (thread != null && thread != Thread.currentThread()) {
+      try {
+        thread.join(SHUTDOWN_TIMEOUT_MS);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    final Selector selector;
+    synchronized (this) {
+      selector = mSelector;
+    }
+    while (true) {
+      synchronized (this) {
+        if (mIsShutdown) {
+          break;
+        }
+      }
+      try {
+        selector.select(SELECT_TIMEOUT_MS);
+      } catch (IOException ioe) {
+        FLog.e(TAG, "Select failed", ioe);
+        break;
+      }
+      runTasks();
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        handleKey(key);
+      }
+      checkTimeouts(SystemClock.uptimeMillis());
+    }
+    closeAll(new IOException("Connection pool shut down"));
+    runTasks();
+    try {
+      selector.close();
+    } catch (IOException ioe) {
+      // ignored
+    }
+  }
+
+  /**
+   * Runs the task on the selector thread, starting it if needed.
+   *
+   * @param exchange the exchange to fail if the pool is shut down, or null
+   */
+  private void post(Runnable task, @Nullable HttpExchange exchange) {
+    Selector selector;
+    synchronized (this) {
+      if (mIsShutdown) {
+        selector = null;
+      } else {
+        if (mThread == null) {
+          try {
+            mSelector = Selector.open();
+          } catch (IOException ioe) {
+            if (exchange != null) {
+              exchange.fail(ioe);
+            }
+            return;
+          }
+          mThread = new Thread(this, "NioNetworkFetcher");
+          mThread.setDaemon(true);
+          mThread.start();
+        }
+        selector = mSelector;
+      }
+    }
+    if (selector == null) {
+      if (exchange != null) {
+        exchange.fail(new IOException("Connection pool shut down"));
+      }
+      return;
+    }
+    mTasks.add(task);
+    selector.wakeup();
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = mTasks.poll()) != null) {
+      task.run();
+    }
+  }
+
+  private void handleKey(SelectionKey key) {
+    HttpConnection connection = (HttpConnection) key.attachment();
+    try {
+      if (key.isValid() && key.isConnectable()) {
+        connection.mChannel.finishConnect();
+        onConnected(connection);
+      }
+      if (key.isValid() && key.isWritable()) {
+        write(connection);
+      }
+      if (key.isValid() && key.isReadable()) {
+        read(connection);
+      }
+    } catch (IOException ioe) {
+      closeConnection(connection, ioe);
+    } catch (RuntimeException re) {
+      FLog.e(TAG, "Failed to handle response", re);
+      closeConnection(connection, new IOException(re));
+    }
+  }
+
+  private void dispatch(HostPool hostPool) {
+    while (!hostPool.mWaiting.isEmpty()) {
+      HttpConnection connection = hostPool.findIdleConnection();
+      if (connection == null) {
+        if (hostPool.mConnections.size() < mMaxConnectionsPerHost) {
+          if (hostPool.mWaiting.size() > hostPool.mConnectingCount) {
+            openConnection(hostPool);
+            continue;
+          }
+          // the connections being opened will take the waiting requests
+          return;
+        }
+        connection = hostPool.findPipelinableConnection(mMaxPipelinedRequests);
+        if (connection == null) {
+          return;
+        }
+      }
+      send(connection, hostPool.mWaiting.poll());
+    }
+  }
+
+  private void send(HttpConnection connection, HttpExchange exchange) {
+    HostPool hostPool = connection.mHostPool;
+    hostPool.mRequestCount++;
+    if (!connection.mExchanges.isEmpty()) {
+      hostPool.mPipelinedRequestCount++;
+    }
+    if (connection.mServedCount > 0 || !connection.mExchanges.isEmpty()) {
+      hostPool.mReusedConnectionRequestCount++;
+    }
+    if (connection.mExchanges.isEmpty()) {
+      connection.mLastActivityMs = SystemClock.uptimeMillis();
+    }
+    exchange.mConnection = connection;
+    connection.mExchanges.add(exchange);
+    connection.mPendingWrites.add(ByteBuffer.wrap(exchange.mRequestBytes));
+    connection.mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+  }
+
+  private void openConnection(final HostPool hostPool) {
+    final HttpConnection connection = new HttpConnection(hostPool, SystemClock.uptimeMillis());
+    hostPool.mConnections.add(connection);
+    hostPool.mConnectingCount++;
+    hostPool.mConnectionCount++;
+    // the system resolver caches the address for as long as the DNS record allows
+    mResolverExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              final InetAddress address = InetAddress.getByName(hostPool.mHost);
+              post(
+                  new Runnable() {
+                    @Override
+                    public void run() {
+                      if (!connection.mIsClosed) {
+                        connect(connection, address);
+                      }
+                    }
+                  },
+                  null);
+            } catch (final IOException ioe) {
+              post(
+                  new Runnable() {
+                    @Override
+                    public void run() {
+                      closeConnection(connection, ioe);
+                    }
+                  },
+                  null);
+            }
+          }
+        });
+  }
+
+  private void connect(HttpConnection connection, InetAddress address) {
+    Selector selector;
+    synchronized (this) {
+      selector = mSelector;
+    }
+    try {
+      SocketChannel channel = SocketChannel.open();
+      connection.mChannel = channel;
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      boolean isConnected =
+          channel.connect(new InetSocketAddress(address, connection.mHostPool.mPort));
+      connection.mKey = channel.register(
+          selector,
+          isConnected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT,
+          connection);
+      connection.mLastActivityMs = SystemClock.uptimeMillis();
+      if (isConnected) {
+        onConnected(connection);
+      }
+    } catch (IOException ioe) {
+      closeConnection(connection, ioe);
+    }
+  }
+
+  private void onConnected(HttpConnection connection) {
+    connection.mIsConnected = true;
+    connection.mHostPool.mConnectingCount--;
+    connection.mLastActivityMs = SystemClock.uptimeMillis();
+    connection.mKey.interestOps(SelectionKey.OP_READ);
+    dispatch(connection.mHostPool);
+  }
+
+  private void write(HttpConnection connection) throws IOException {
+    while (!connection.mPendingWrites.isEmpty()) {
+      ByteBuffer request = connection.mPendingWrites.peek();
+      connection.mChannel.write(request);
+      if (request.hasRemaining()) {
+        return;
+      }
+      connection.mPendingWrites.poll();
+    }
+    connection.mKey.interestOps(SelectionKey.OP_READ);
+  }
+
+  private void read(HttpConnection connection) throws IOException {
+    final ByteBuffer buffer = connection.mReadBuffer;
+    buffer.clear();
+    final int count = connection.mChannel.read(buffer);
+    if (count < 0) {
+      onEndOfStream(connection);
+      return;
+    }
+    buffer.flip();
+    connection.mLastActivityMs = SystemClock.uptimeMillis();
+    connection.mHostPool.mReceivedByteCount += count;
+    while (buffer.hasRemaining() && !connection.mIsClosed) {
+      HttpExchange exchange = connection.mExchanges.peek();
+      if (exchange == null) {
+        throw new IOException("Unexpected bytes from " + connection.mHostPool.getKey());
+      }
+      if (connection.mParser.parse(buffer, exchange)) {
+        onResponseComplete(connection, exchange);
+      }
+    }
+  }
+
+  private void onEndOfStream(HttpConnection connection) {
+    HttpExchange exchange = connection.mExchanges.peek();
+    if (exchange != null && connection.mParser.onEndOfStream()) {
+      onResponseComplete(connection, exchange);
+    }
+    if (!connection.mIsClosed) {
+      closeConnection(connection, new EOFException("Connection closed by the server"));
+    }
+  }
+
+  private void onResponseComplete(HttpConnection connection, HttpExchange exchange) {
+    final boolean isKeepAlive = connection.mParser.isKeepAlive();
+    connection.mExchanges.poll();
+    connection.mParser.reset();
+    connection.mServedCount++;
+    exchange.mConnection = null;
+    if (isKeepAlive) {
+      connection.mIsReusable = true;
+    }
+    if (exchange.onComplete()) {
+      mFallbackFetcher.fetch(exchange.mFetchState, exchange.mCallback);
+    }
+    if (!isKeepAlive) {
+      closeConnection(connection, new EOFException("Connection closed by the server"));
+    } else {
+      dispatch(connection.mHostPool);
+    }
+  }
+
+  /**
+   * Closes the connection. The requests on it whose response did not start are sent again,
+   * unless they were already retried too many times.
+   */
+  private void closeConnection(HttpConnection connection, IOException cause) {
+    if (connection.mIsClosed) {
+      return;
+    }
+    connection.mIsClosed = true;
+    HostPool hostPool = connection.mHostPool;
+    hostPool.mConnections.remove(connection);
+    if (!connection.mIsConnected) {
+      hostPool.mConnectingCount--;
+    }
+    if (connection.mKey != null) {
+      connection.mKey.cancel();
+    }
+    if (connection.mChannel != null) {
+      try {
+        connection.mChannel.close();
+      } catch (IOException ioe) {
+        // ignored
+      }
+    }
+    ArrayDeque<HttpExchange> retries = new ArrayDeque<>();
+    for (HttpExchange exchange : connection.mExchanges) {
+      exchange.mConnection = null;
+      if (exchange.isFinished()) {
+        continue;
+      }
+      if (!exchange.hasResponse() && exchange.mRetryCount < MAX_RETRIES) {
+        exchange.mRetryCount++;
+        hostPool.mRetriedRequestCount++;
+        retries.add(exchange);
+      } else {
+        hostPool.mFailedRequestCount++;
+        exchange.fail(cause);
+      }
+    }
+    connection.mExchanges.clear();
+    connection.mPendingWrites.clear();
+    // keep the order of the requests
+    while (!retries.isEmpty()) {
+      hostPool.mWaiting.addFirst(retries.pollLast());
+    }
+    if (!connection.mIsConnected && !hostPool.hasConnectedConnection()) {
+      // the host cannot be reached
+      while (!hostPool.mWaiting.isEmpty()) {
+        hostPool.mFailedRequestCount++;
+        hostPool.mWaiting.poll().fail(cause);
+      }
+    }
+    dispatch(hostPool);
+  }
+
+  private void checkTimeouts(long nowMs) {
+    List<HttpConnection> expiredConnections = null;
+    for (HostPool hostPool : mHostPools.values()) {
+      for (int i = 0; i < hostPool.mConnections.size(); i++) {
+        HttpConnection connection = hostPool.mConnections.get(i);
+        long inactivityMs = nowMs - connection.mLastActivityMs;
+        boolean isBusy = !connection.mIsConnected || !connection.mExchanges.isEmpty();
+        if (inactivityMs > (isBusy ? mTimeoutMs : mKeepAliveMs)) {
+          if (expiredConnections == null) {
+            expiredConnections = new ArrayList<>();
+          }
+          expiredConnections.add(connection);
+        }
+      }
+    }
+    if (expiredConnections != null) {
+      for (int i = 0; i < expiredConnections.size(); i++) {
+        closeConnection(expiredConnections.get(i), new SocketTimeoutException());
+      }
+    }
+  }
+
+  private void closeAll(IOException cause) {
+    for (HostPool hostPool : mHostPools.values()) {
+      while (!hostPool.mConnections.isEmpty()) {
+        HttpConnection connection = hostPool.mConnections.get(0);
+        // not retried
+        for (HttpExchange exchange : connection.mExchanges) {
+          exchange.mRetryCount = MAX_RETRIES;
+        }
+        closeConnection(connection, cause);
+      }
+      while (!hostPool.mWaiting.isEmpty()) {
+        hostPool.mWaiting.poll().fail(cause);
+      }
+    }
+  }
+
+  private List<ConnectionPoolStatistics.HostStatistics> snapshotHostStatistics() {
+    List<ConnectionPoolStatistics.HostStatistics> hostStatistics =
+        new ArrayList<>(mHostPools.size());
+    for (HostPool hostPool : mHostPools.values()) {
+      hostStatistics.add(hostPool.snapshot());
+    }
+    return hostStatistics;
+  }
+
+  /**
+   * The connections to a host, the requests waiting for one, and their counters.
+   */
+  static class HostPool {
+
+    final String mHost;
+    final int mPort;
+    final List<HttpConnection> mConnections;
+    final ArrayDeque<HttpExchange> mWaiting;
+    int mConnectingCount;
+
+    long mConnectionCount;
+    long mRequestCount;
+    long mReusedConnectionRequestCount;
+    long mPipelinedRequestCount;
+    long mRetriedRequestCount;
+    long mFailedRequestCount;
+    long mReceivedByteCount;
+
+    private HostPool(String host, int port) {
+      mHost = host;
+      mPort = port;
+      mConnections = new ArrayList<>();
+      mWaiting = new ArrayDeque<>();
+    }
+
+    String getKey() {
+      return mHost + ":" + mPort;
+    }
+
+    private boolean hasConnectedConnection() {
+      for (int i = 0; i < mConnections.size(); i++) {
+        if (mConnections.get(i).mIsConnected) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Nullable
+    private HttpConnection findIdleConnection() {
+      for (int i = 0; i < mConnections.size(); i++) {
+        if (mConnections.get(i).isIdle()) {
+          return mConnections.get(i);
+        }
+      }
+      return null;
+    }
+
+    @Nullable
+    private HttpConnection findPipelinableConnection(int maxPipelinedRequests) {
+      HttpConnection bestConnection = null;
+      for (int i = 0; i < mConnections.size(); i++) {
+        HttpConnection connection = mConnections.get(i);
+        if (connection.canPipeline(maxPipelinedRequests)
+            && (bestConnection == null
+                || connection.mExchanges.size() < bestConnection.mExchanges.size())) {
+          bestConnection = connection;
+        }
+      }
+      return bestConnection;
+    }
+
+    private ConnectionPoolStatistics.HostStatistics snapshot() {
+      int idleConnectionCount = 0;
+      for (int i = 0; i < mConnections.size(); i++) {
+        if (mConnections.get(i).isIdle()) {
+          idleConnectionCount++;
+        }
+      }
+      return new ConnectionPoolStatistics.HostStatistics(
+          getKey(),
+          mConnections.size(),
+          idleConnectionCount,
+          mWaiting.size(),
+          mConnectionCount,
+          mRequestCount,
+          mReusedConnectionRequestCount,
+          mPipelinedRequestCount,
+          mRetriedRequestCount,
+          mFailedRequestCount,
+          mReceivedByteCount);
+    }
+  }
+}
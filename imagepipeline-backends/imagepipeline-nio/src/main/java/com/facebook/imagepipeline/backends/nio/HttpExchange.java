@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.backends.nio;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import com.facebook.common.executors.DefaultSerialExecutorService;
+import com.facebook.common.memory.ByteArrayPool;
+import com.facebook.imagepipeline.common.BytesRange;
+import com.facebook.imagepipeline.producers.Consumer;
+import com.facebook.imagepipeline.producers.NetworkFetcher;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import javax.annotation.Nullable;
+
+/**
+ * A request for an image sent over a pooled connection, and the handling of its response.
+ *
+ * <p> The body is pushed to the network fetch producer as it is read if the callback is a
+ * {@link NetworkFetcher.StreamingCallback}, and handed over as a whole otherwise. As the buffer of
+ * the connection is reused by the next read, each part of the body is copied to a chunk of the
+ * chunk pool, which goes back to the pool once the callback consumed it. All the methods
+ * are called on the selector thread. The callback is called on the callback executor instead, one
+ * call at a time and in order, so that the consumers never hold up the other connections. It is
+ * called at most once to end the fetch.
+ */
+class HttpExchange implements HttpResponseParser.Listener {
+
+  private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+  private static final int MODE_DELIVER = 0;
+  private static final int MODE_DISCARD = 1;
+  private static final int MODE_REDIRECT = 2;
+
+  final NioNetworkFetcher.NioFetchState mFetchState;
+  final NetworkFetcher.Callback mCallback;
+  final String mHost;
+  final int mPort;
+  final byte[] mRequestBytes;
+
+  /** The connection the request was sent on, null while it waits for one */
+  @Nullable HttpConnection mConnection;
+  int mRetryCount;
+
+  private int mMode;
+  private boolean mHasResponse;
+  private boolean mIsFinished;
+  private @Nullable BodyOutputStream mBufferedBody;
+
+  private final ByteArrayPool mChunkPool;
+  private final Executor mCallbackExecutor;
+  /** Set by the call of the callback that ends the fetch, on the callback executor */
+  private volatile boolean mIsCallbackFinished;
+
+  HttpExchange(
+      NioNetworkFetcher.NioFetchState fetchState,
+      NetworkFetcher.Callback callback,
+      @Nullable BytesRange bytesRange,
+      ByteArrayPool chunkPool,
+      Executor callbackExecutor) {
+    mFetchState = fetchState;
+    mCallback = callback;
+    mChunkPool = chunkPool;
+    mCallbackExecutor = new DefaultSerialExecutorService(callbackExecutor);
+    final Uri uri = fetchState.getUri();
+    mHost = uri.getHost();
+    mPort = uri.getPort() < 0 ? 80 : uri.getPort();
+    if (mHost == null || mHost.isEmpty()) {
+      throw new IllegalArgumentException("No host in " + uri);
+    }
+    mRequestBytes = buildRequest(uri, mHost, mPort, bytesRange).getBytes(US_ASCII);
+  }
+
+  /**
+   * @return the key of the connections the request can be sent on
+   */
+  String getHostKey() {
+    return mHost + ":" + mPort;
+  }
+
+  /**
+   * @return whether the response started, in which case the request cannot be retried
+   */
+  boolean hasResponse() {
+    return mHasResponse;
+  }
+
+  boolean isFinished() {
+    return mIsFinished;
+  }
+
+  @Override
+  public void onHeaders(HttpResponseParser parser) throws IOException {
+    mHasResponse = true;
+    if (mIsFinished) {
+      mMode = MODE_DISCARD;
+      return;
+    }
+    mFetchState.responseTime = SystemClock.elapsedRealtime();
+    final int statusCode = parser.getStatusCode();
+    if (statusCode >= 200 && statusCode < 300) {
+      mMode = MODE_DELIVER;
+      onSuccessHeaders(parser);
+    } else if (statusCode >= 300 && statusCode < 400 && parser.getHeader("location") != null) {
+      // the fallback fetcher follows redirects, across schemes and hosts
+      mMode = MODE_REDIRECT;
+    } else {
+      mMode = MODE_DISCARD;
+      fail(new IOException(String.format(
+          (Locale) null,
+          "Image URL %s returned HTTP code %d",
+          mFetchState.getUri(),
+          statusCode)));
+    }
+  }
+
+  @Override
+  public void onBody(ByteBuffer bytes) throws IOException {
+    if (mMode != MODE_DELIVER || mIsFinished || mIsCallbackFinished) {
+      // the rest of the body is discarded, but the connection stays usable
+      return;
+    }
+    if (mBufferedBody != null) {
+      mBufferedBody.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+      return;
+    }
+    // the buffer of the connection is reused by the next read
+    final int length = bytes.remaining();
+    final byte[] chunk = mChunkPool.get(length);
+    bytes.get(chunk, 0, length);
+    mCallbackExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              if (mIsCallbackFinished) {
+                return;
+              }
+              ((NetworkFetcher.StreamingCallback) mCallback).onResponseBytes(
+                  ByteBuffer.wrap(chunk, 0, length));
+            } catch (IOException ioe) {
+              mIsCallbackFinished = true;
+              mCallback.onFailure(ioe);
+            } finally {
+              mChunkPool.release(chunk);
+            }
+          }
+        });
+  }
+
+  /**
+   * Called once the whole response was read.
+   *
+   * @return true if the request has to be handed to the fallback fetcher to follow a redirect
+   */
+  boolean onComplete() {
+    if (mIsFinished) {
+      return false;
+    }
+    if (mMode == MODE_REDIRECT) {
+      mIsFinished = true;
+      return true;
+    }
+    mIsFinished = true;
+    final BodyOutputStream body = mBufferedBody;
+    mBufferedBody = null;
+    mCallbackExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (mIsCallbackFinished) {
+              return;
+            }
+            mIsCallbackFinished = true;
+            if (body == null) {
+              ((NetworkFetcher.StreamingCallback) mCallback).onResponseEnd();
+              return;
+            }
+            try {
+              mCallback.onResponse(body.toInputStream(), body.size());
+            } catch (IOException ioe) {
+              mCallback.onFailure(ioe);
+            }
+          }
+        });
+    return false;
+  }
+
+  void fail(final Throwable throwable) {
+    if (mIsFinished) {
+      return;
+    }
+    mIsFinished = true;
+    mBufferedBody = null;
+    mCallbackExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (mIsCallbackFinished) {
+              return;
+            }
+            mIsCallbackFinished = true;
+            mCallback.onFailure(throwable);
+          }
+        });
+  }
+
+  void cancel() {
+    if (mIsFinished) {
+      return;
+    }
+    mIsFinished = true;
+    mMode = MODE_DISCARD;
+    mBufferedBody = null;
+    mCallbackExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (mIsCallbackFinished) {
+              return;
+            }
+            mIsCallbackFinished = true;
+            mCallback.onCancellation();
+          }
+        });
+  }
+
+  private void onSuccessHeaders(HttpResponseParser parser) {
+    if (parser.getStatusCode() == 206) {
+      BytesRange responseRange = null;
+      try {
+        responseRange = BytesRange.fromContentRangeHeader(parser.getHeader("content-range"));
+      } catch (IllegalArgumentException iae) {
+        // treated as the whole image
+      }
+      if (responseRange != null
+          && !(responseRange.from == 0 && responseRange.to == BytesRange.TO_END_OF_CONTENT)) {
+        // Only treat as a partial image if the range is not all of the content
+        mFetchState.setResponseBytesRange(responseRange);
+        mFetchState.setOnNewResultStatusFlags(Consumer.IS_PARTIAL_RESULT);
+      }
+    }
+    final long contentLength = parser.getContentLength();
+    final int responseLength =
+        contentLength >= 0 && contentLength <= Integer.MAX_VALUE ? (int) contentLength : -1;
+    if (mCallback instanceof NetworkFetcher.StreamingCallback) {
+      mCallbackExecutor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              if (!mIsCallbackFinished) {
+                ((NetworkFetcher.StreamingCallback) mCallback).onResponseStart(responseLength);
+              }
+            }
+          });
+    } else {
+      mBufferedBody = new BodyOutputStream(responseLength > 0 ? responseLength : 32);
+    }
+  }
+
+  private static String buildRequest(
+      Uri uri,
+      String host,
+      int port,
+      @Nullable BytesRange bytesRange) {
+    String path = uri.getEncodedPath();
+    String query = uri.getEncodedQuery();
+    StringBuilder request = new StringBuilder(128)
+        .append("GET ")
+        .append(path == null || path.isEmpty() ? "/" : path);
+    if (query != null) {
+      request.append('?').append(query);
+    }
+    request.append(" HTTP/1.1\r\nHost: ").append(host);
+    if (port != 80) {
+      request.append(':').append(port);
+    }
+    request.append("\r\nAccept: image/*, */*\r\n");
+    if (bytesRange != null) {
+      request.append("Range: ").append(bytesRange.toHttpRangeHeaderValue()).append("\r\n");
+    }
+    return request.append("\r\n").toString();
+  }
+
+  /**
+   * Buffers a whole body, which is then read from the same array without copying it again.
+   */
+  private static class BodyOutputStream extends ByteArrayOutputStream {
+
+    BodyOutputStream(int size) {
+      super(size);
+    }
+
+    InputStream toInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.backends.nio;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Incremental parser of HTTP/1.1 responses, fed with the bytes of a connection as they are read.
+ *
+ * <p> The responses to pipelined requests follow each other on the connection: the parser stops at
+ * the end of each response and leaves the bytes after it in the buffer. It has to be reset before
+ * parsing the next one.
+ */
+class HttpResponseParser {
+
+  /**
+   * Receives the parts of the response being parsed.
+   */
+  interface Listener {
+
+    /**
+     * Called once the status line and the headers are parsed, before any bytes of the body.
+     */
+    void onHeaders(HttpResponseParser parser) throws IOException;
+
+    /**
+     * Called with bytes of the body, between the position and the limit of the buffer. The
+     * buffer belongs to the connection and must not be kept.
+     */
+    void onBody(ByteBuffer bytes) throws IOException;
+  }
+
+  private static final int STATE_STATUS_LINE = 0;
+  private static final int STATE_HEADERS = 1;
+  private static final int STATE_FIXED_LENGTH_BODY = 2;
+  private static final int STATE_CHUNK_SIZE = 3;
+  private static final int STATE_CHUNK_DATA = 4;
+  private static final int STATE_CHUNK_END = 5;
+  private static final int STATE_TRAILERS = 6;
+  private static final int STATE_BODY_UNTIL_EOF = 7;
+  private static final int STATE_DONE = 8;
+
+  private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+  private final StringBuilder mLine = new StringBuilder();
+  private final Map<String, String> mHeaders = new HashMap<>();
+  private int mState;
+  private boolean mIsHttp11;
+  private int mStatusCode;
+  private long mContentLength;
+  private long mBodyBytesLeft;
+
+  HttpResponseParser() {
+    reset();
+  }
+
+  /**
+   * Prepares the parser for the next response on the connection.
+   */
+  void reset() {
+    mLine.setLength(0);
+    mHeaders.clear();
+    mState = STATE_STATUS_LINE;
+    mIsHttp11 = false;
+    mStatusCode = 0;
+    mContentLength = -1;
+    mBodyBytesLeft = 0;
+  }
+
+  /**
+   * Parses the bytes between the position and the limit of the buffer, up to the end of the
+   * response.
+   *
+   * @return true if the response is complete, in which case the bytes after it are left in the
+   *     buffer
+   */
+  boolean parse(ByteBuffer buffer, Listener listener) throws IOException {
+    while (mState != STATE_DONE && buffer.hasRemaining()) {
+      switch (mState) {
+        case STATE_STATUS_LINE:
+          if (readLine(buffer) && mLine.length() > 0) {
+            parseStatusLine();
+            mState = STATE_HEADERS;
+          }
+          break;
+        case STATE_HEADERS:
+          if (readLine(buffer)) {
+            if (mLine.length() == 0) {
+              onHeadersEnd(listener);
+            } else {
+              parseHeader();
+            }
+          }
+          break;
+        case STATE_FIXED_LENGTH_BODY:
+        case STATE_CHUNK_DATA:
+          int length = (int) Math.min(buffer.remaining(), mBodyBytesLeft);
+          passBody(buffer, length, listener);
+          mBodyBytesLeft -= length;
+          if (mBodyBytesLeft == 0) {
+            mState = mState == STATE_CHUNK_DATA ? STATE_CHUNK_END : STATE_DONE;
+          }
+          break;
+        case STATE_CHUNK_SIZE:
+          if (readLine(buffer)) {
+            mBodyBytesLeft = parseChunkSize();
+            mState = mBodyBytesLeft == 0 ? STATE_TRAILERS : STATE_CHUNK_DATA;
+          }
+          break;
+        case STATE_CHUNK_END:
+          if (readLine(buffer)) {
+            if (mLine.length() > 0) {
+              throw new ProtocolException("Missing end of chunk");
+            }
+            mState = STATE_CHUNK_SIZE;
+          }
+          break;
+        case STATE_TRAILERS:
+          // the trailer fields are ignored, up to the empty line that ends the response
+          if (readLine(buffer) && consumeLine().isEmpty()) {
+            mState = STATE_DONE;
+          }
+          break;
+        case STATE_BODY_UNTIL_EOF:
+          passBody(buffer, buffer.remaining(), listener);
+          break;
+      }
+    }
+    return mState == STATE_DONE;
+  }
+
+  /**
+   * Called when the server closed the connection.
+   *
+   * @return true if that completes the response, whose body runs until the end of the connection
+   */
+  boolean onEndOfStream() {
+    if (mState == STATE_BODY_UNTIL_EOF) {
+      mState = STATE_DONE;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return whether the status line of the response was parsed
+   */
+  boolean hasStarted() {
+    return mState != STATE_STATUS_LINE || mLine.length() > 0;
+  }
+
+  int getStatusCode() {
+    return mStatusCode;
+  }
+
+  /**
+   * @return the length of the body, or -1 if it is not known in advance
+   */
+  long getContentLength() {
+    return mContentLength;
+  }
+
+  /**
+   * @param name the name of the header, in lower case
+   * @return the value of the header, or null if the response does not have it
+   */
+  @Nullable
+  String getHeader(String name) {
+    return mHeaders.get(name);
+  }
+
+  /**
+   * @return whether the connection can be used for another request after this response
+   */
+  boolean isKeepAlive() {
+    if (mState == STATE_BODY_UNTIL_EOF) {
+      return false;
+    }
+    String connection = mHeaders.get("connection");
+    if (connection != null) {
+      String value = connection.toLowerCase(Locale.US);
+      if (value.contains("close")) {
+        return false;
+      }
+      if (value.contains("keep-alive")) {
+        return true;
+      }
+    }
+    return mIsHttp11;
+  }
+
+  private boolean readLine(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      char c = (char) (buffer.get() & 0xff);
+      if (c == '\n') {
+        int length = mLine.length();
+        if (length > 0 && mLine.charAt(length - 1) == '\r') {
+          mLine.setLength(length - 1);
+        }
+        return true;
+      }
+      if (mLine.length() == MAX_LINE_LENGTH) {
+        throw new ProtocolException("Response line too long");
+      }
+      mLine.append(c);
+    }
+    return false;
+  }
+
+  private void parseStatusLine() throws IOException {
+    // HTTP/1.1 200 OK
+    String line = consumeLine();
+    if (!line.startsWith("HTTP/1.") || line.length() < 12 || line.charAt(8) != ' ') {
+      throw new ProtocolException("Unexpected status line: " + line);
+    }
+    mIsHttp11 = line.charAt(7) != '0';
+    try {
+      mStatusCode = Integer.parseInt(line.substring(9, 12));
+    } catch (NumberFormatException nfe) {
+      throw new ProtocolException("Unexpected status line: " + line);
+    }
+  }
+
+  private void parseHeader() throws IOException {
+    String line = consumeLine();
+    int separatorIndex = line.indexOf(':');
+    if (separatorIndex <= 0) {
+      throw new ProtocolException("Unexpected header: " + line);
+    }
+    String name = line.substring(0, separatorIndex).trim().toLowerCase(Locale.US);
+    String value = line.substring(separatorIndex + 1).trim();
+    String previousValue = mHeaders.get(name);
+    mHeaders.put(name, previousValue == null ? value : previousValue + ", " + value);
+  }
+
+  private void onHeadersEnd(Listener listener) throws IOException {
+    if (mStatusCode >= 100 && mStatusCode < 200) {
+      // informational response, the actual one follows
+      reset();
+      return;
+    }
+    String transferEncoding = mHeaders.get("transfer-encoding");
+    String contentLength = mHeaders.get("content-length");
+    if (mStatusCode == 204 || mStatusCode == 304) {
+      mContentLength = 0;
+      mState = STATE_DONE;
+    } else if (transferEncoding != null
+        && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+      mState = STATE_CHUNK_SIZE;
+    } else if (contentLength != null) {
+      try {
+        mContentLength = Long.parseLong(contentLength);
+      } catch (NumberFormatException nfe) {
+        throw new ProtocolException("Unexpected Content-Length: " + contentLength);
+      }
+      mBodyBytesLeft = mContentLength;
+      mState = mContentLength == 0 ? STATE_DONE : STATE_FIXED_LENGTH_BODY;
+    } else {
+      mState = STATE_BODY_UNTIL_EOF;
+    }
+    listener.onHeaders(this);
+  }
+
+  private long parseChunkSize() throws IOException {
+    String line = consumeLine();
+    int extensionIndex = line.indexOf(';');
+    String size = (extensionIndex < 0 ? line : line.substring(0, extensionIndex)).trim();
+    try {
+      long chunkSize = Long.parseLong(size, 16);
+      if (chunkSize < 0) {
+        throw new NumberFormatException();
+      }
+      return chunkSize;
+    } catch (NumberFormatException nfe) {
+      throw new ProtocolException("Unexpected chunk size: " + line);
+    }
+  }
+
+  private static void passBody(ByteBuffer buffer, int length, Listener listener)
+      throws IOException {
+    final int limit = buffer.limit();
+    final int end = buffer.position() + length;
+    buffer.limit(end);
+    try {
+      listener.onBody(buffer);
+    } finally {
+      buffer.limit(limit);
+      buffer.position(end);
+    }
+  }
+
+  private String consumeLine() {
+    String line = mLine.toString();
+    mLine.setLength(0);
+    return line;
+  }
+}
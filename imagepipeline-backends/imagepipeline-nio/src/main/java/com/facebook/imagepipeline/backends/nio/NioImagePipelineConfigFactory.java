@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.backends.nio;
+
+import android.content.Context;
+import com.facebook.imagepipeline.core.ImagePipelineConfig;
+
+/**
+ * Factory for getting an {@link com.facebook.imagepipeline.core.ImagePipelineConfig} that uses
+ * {@link NioNetworkFetcher}.
+ */
+public class NioImagePipelineConfigFactory {
+
+  public static ImagePipelineConfig.Builder newBuilder(Context context) {
+    return newBuilder(context, new NioNetworkFetcher());
+  }
+
+  public static ImagePipelineConfig.Builder newBuilder(
+      Context context,
+      NioNetworkFetcher nioNetworkFetcher) {
+    return ImagePipelineConfig.newBuilder(context).setNetworkFetcher(nioNetworkFetcher);
+  }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.backends.nio;
+
+import android.os.SystemClock;
+import android.util.SparseIntArray;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.memory.ByteArrayPool;
+import com.facebook.common.memory.NoOpMemoryTrimmableRegistry;
+import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.memory.GenericByteArrayPool;
+import com.facebook.imagepipeline.memory.NoOpPoolStatsTracker;
+import com.facebook.imagepipeline.memory.PoolParams;
+import com.facebook.imagepipeline.producers.BaseNetworkFetcher;
+import com.facebook.imagepipeline.producers.BaseProducerContextCallbacks;
+import com.facebook.imagepipeline.producers.Consumer;
+import com.facebook.imagepipeline.producers.FetchState;
+import com.facebook.imagepipeline.producers.HttpUrlConnectionNetworkFetcher;
+import com.facebook.imagepipeline.producers.NetworkFetcher;
+import com.facebook.imagepipeline.producers.ProducerContext;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.annotation.Nullable;
+
+/**
+ * Network fetcher that keeps a pool of HTTP/1.1 connections alive, all served by a single thread
+ * using non-blocking sockets.
+ *
+ * <p> Requests to a host share up to {@code maxConnectionsPerHost} connections. Once they are all
+ * busy, further requests are pipelined on the connections the server kept alive, which saves the
+ * round trips of connection setup for the many small images of a feed. The bodies are pushed to
+ * the pipeline as they are read: each read is copied from the buffer of the connection to a
+ * recycled chunk, which the callback executor hands to the pipeline and then returns to the pool
+ * of chunks.
+ *
+ * <p> Only plain http is handled by the pool: https requests, as well as redirected ones, are
+ * handed to the fallback fetcher. The callbacks of the pooled requests are called on the callback
+ * executor, so that the thread of the pool only reads and writes the connections.
+ */
+public class NioNetworkFetcher extends BaseNetworkFetcher<NioNetworkFetcher.NioFetchState> {
+
+  public static class NioFetchState extends FetchState {
+
+    public long submitTime;
+    public long responseTime;
+    public long fetchCompleteTime;
+
+    public NioFetchState(Consumer<EncodedImage> consumer, ProducerContext producerContext) {
+      super(consumer, producerContext);
+    }
+  }
+
+  private static final String QUEUE_TIME = "queue_time";
+  private static final String FETCH_TIME = "fetch_time";
+  private static final String TOTAL_TIME = "total_time";
+  private static final String IMAGE_SIZE = "image_size";
+
+  private static final String HTTP_SCHEME = "http";
+
+  private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+  private static final int DEFAULT_MAX_PIPELINED_REQUESTS = 4;
+  private static final int DEFAULT_TIMEOUT_MS = 30000;
+  private static final int KEEP_ALIVE_MS = 60000;
+  private static final int NUM_RESOLVER_THREADS = 2;
+  private static final int NUM_CALLBACK_THREADS = 2;
+  /** Max number of free chunks kept for the bodies being read */
+  private static final int MAX_FREE_CHUNKS = 8;
+
+  private final HttpConnectionPool mConnectionPool;
+  private final NetworkFetcher<FetchState> mFallbackFetcher;
+  private final ExecutorService mResolverExecutor;
+  private final Executor mCallbackExecutor;
+  private final ByteArrayPool mChunkPool;
+  /** The callback executor, if it was created by the fetcher */
+  private final @Nullable ExecutorService mOwnedCallbackExecutor;
+
+  public NioNetworkFetcher() {
+    this(
+        DEFAULT_MAX_CONNECTIONS_PER_HOST,
+        DEFAULT_MAX_PIPELINED_REQUESTS,
+        DEFAULT_TIMEOUT_MS,
+        new HttpUrlConnectionNetworkFetcher());
+  }
+
+  /**
+   * @param maxConnectionsPerHost max number of connections open to a host at the same time
+   * @param maxPipelinedRequests max number of requests in flight on a connection, 1 to disable
+   *     pipelining
+   * @param timeoutMs time after which a connection that does not make progress is closed
+   * @param fallbackFetcher fetcher for https and redirected requests
+   */
+  public NioNetworkFetcher(
+      int maxConnectionsPerHost,
+      int maxPipelinedRequests,
+      int timeoutMs,
+      NetworkFetcher<FetchState> fallbackFetcher) {
+    this(
+        maxConnectionsPerHost,
+        maxPipelinedRequests,
+        timeoutMs,
+        fallbackFetcher,
+        Executors.newFixedThreadPool(NUM_CALLBACK_THREADS),
+        true /* ownsCallbackExecutor */);
+  }
+
+  /**
+   * @param maxConnectionsPerHost max number of connections open to a host at the same time
+   * @param maxPipelinedRequests max number of requests in flight on a connection, 1 to disable
+   *     pipelining
+   * @param timeoutMs time after which a connection that does not make progress is closed
+   * @param fallbackFetcher fetcher for https and redirected requests
+   * @param callbackExecutor executor the callbacks of the pooled requests are called on, owned by
+   *     the caller
+   */
+  public NioNetworkFetcher(
+      int maxConnectionsPerHost,
+      int maxPipelinedRequests,
+      int timeoutMs,
+      NetworkFetcher<FetchState> fallbackFetcher,
+      Executor callbackExecutor) {
+    this(
+        maxConnectionsPerHost,
+        maxPipelinedRequests,
+        timeoutMs,
+        fallbackFetcher,
+        callbackExecutor,
+        false /* ownsCallbackExecutor */);
+  }
+
+  private NioNetworkFetcher(
+      int maxConnectionsPerHost,
+      int maxPipelinedRequests,
+      int timeoutMs,
+      NetworkFetcher<FetchState> fallbackFetcher,
+      Executor callbackExecutor,
+      boolean ownsCallbackExecutor) {
+    Preconditions.checkArgument(maxConnectionsPerHost > 0);
+    Preconditions.checkArgument(maxPipelinedRequests > 0);
+    Preconditions.checkArgument(timeoutMs > 0);
+    mFallbackFetcher = Preconditions.checkNotNull(fallbackFetcher);
+    mCallbackExecutor = Preconditions.checkNotNull(callbackExecutor);
+    mOwnedCallbackExecutor = ownsCallbackExecutor ? (ExecutorService) callbackExecutor : null;
+    mResolverExecutor = Executors.newFixedThreadPool(NUM_RESOLVER_THREADS);
+    mChunkPool = createChunkPool();
+    mConnectionPool = new HttpConnectionPool(
+        maxConnectionsPerHost,
+        maxPipelinedRequests,
+        timeoutMs,
+        KEEP_ALIVE_MS,
+        mResolverExecutor,
+        fallbackFetcher);
+  }
+
+  @Override
+  public NioFetchState createFetchState(
+      Consumer<EncodedImage> consumer,
+      ProducerContext context) {
+    return new NioFetchState(consumer, context);
+  }
+
+  @Override
+  public void fetch(final NioFetchState fetchState, final NetworkFetcher.Callback callback) {
+    fetchState.submitTime = SystemClock.elapsedRealtime();
+    if (!HTTP_SCHEME.equals(fetchState.getUri().getScheme())) {
+      mFallbackFetcher.fetch(fetchState, callback);
+      return;
+    }
+
+    final HttpExchange exchange;
+    try {
+      exchange = new HttpExchange(
+          fetchState,
+          callback,
+          fetchState.getContext().getImageRequest().getBytesRange(),
+          mChunkPool,
+          mCallbackExecutor);
+    } catch (Exception e) {
+      // handle error while creating the request
+      callback.onFailure(e);
+      return;
+    }
+
+    fetchState
+        .getContext()
+        .addCallbacks(
+            new BaseProducerContextCallbacks() {
+              @Override
+              public void onCancellationRequested() {
+                mConnectionPool.cancel(exchange);
+              }
+            });
+    mConnectionPool.submit(exchange);
+  }
+
+  @Override
+  public void onFetchCompletion(NioFetchState fetchState, int byteSize) {
+    fetchState.fetchCompleteTime = SystemClock.elapsedRealtime();
+  }
+
+  @Override
+  public Map<String, String> getExtraMap(NioFetchState fetchState, int byteSize) {
+    Map<String, String> extraMap = new HashMap<>(4);
+    extraMap.put(QUEUE_TIME, Long.toString(fetchState.responseTime - fetchState.submitTime));
+    extraMap.put(FETCH_TIME, Long.toString(fetchState.fetchCompleteTime - fetchState.responseTime));
+    extraMap.put(TOTAL_TIME, Long.toString(fetchState.fetchCompleteTime - fetchState.submitTime));
+    extraMap.put(IMAGE_SIZE, Integer.toString(byteSize));
+    return extraMap;
+  }
+
+  /**
+   * @return a snapshot of the connections of the pool, and of the counters of each host
+   */
+  public ConnectionPoolStatistics getStatistics() {
+    return mConnectionPool.getStatistics();
+  }
+
+  /**
+   * Creates the pool of the chunks the bodies are copied to, each as large as a read. A chunk is
+   * only allocated when none is free, and there is no hard cap, so that a slow consumer never
+   * fails a read.
+   */
+  private static ByteArrayPool createChunkPool() {
+    final SparseIntArray bucketSizes = new SparseIntArray(1);
+    bucketSizes.put(HttpConnection.READ_BUFFER_SIZE, MAX_FREE_CHUNKS);
+    return new GenericByteArrayPool(
+        NoOpMemoryTrimmableRegistry.getInstance(),
+        new PoolParams(
+            MAX_FREE_CHUNKS * HttpConnection.READ_BUFFER_SIZE,
+            Integer.MAX_VALUE,
+            bucketSizes),
+        NoOpPoolStatsTracker.getInstance());
+  }
+
+  /**
+   * Closes all the connections and fails the requests in flight, then stops the threads of the
+   * fetcher. The fetcher cannot be used after.
+   */
+  public void shutdown() {
+    mConnectionPool.shutdown();
+    mResolverExecutor.shutdown();
+    if (mOwnedCallbackExecutor != null) {
+      // the callbacks already queued still run
+      mOwnedCallbackExecutor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,11 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+/**
+ * Classes for the NetworkFetcher implementation with pooled non-blocking HTTP/1.1 connections
+ */
+package com.facebook.imagepipeline.backends.nio;
@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.backends.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import android.net.Uri;
+import android.util.SparseIntArray;
+import com.facebook.common.memory.NoOpMemoryTrimmableRegistry;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.memory.GenericByteArrayPool;
+import com.facebook.imagepipeline.memory.NoOpPoolStatsTracker;
+import com.facebook.imagepipeline.memory.PoolParams;
+import com.facebook.imagepipeline.memory.PoolStatsTracker;
+import com.facebook.imagepipeline.producers.Consumer;
+import com.facebook.imagepipeline.producers.NetworkFetcher;
+import com.facebook.imagepipeline.producers.ProducerListener;
+import com.facebook.imagepipeline.producers.SettableProducerContext;
+import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.imagepipeline.request.ImageRequestBuilder;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Tests {@link HttpConnectionPool} against a local server.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class HttpConnectionPoolTest {
+
+  private static final int IMAGE_SIZE = 40000;
+  private static final String CALLBACK_THREAD_NAME = "callback";
+
+  private byte[] mImage;
+  private HttpServer mServer;
+  private ExecutorService mServerExecutor;
+  private CountingExecutor mResolverExecutor;
+  private ExecutorService mCallbackExecutor;
+  private GenericByteArrayPool mChunkPool;
+  private HttpConnectionPool mConnectionPool;
+
+  @Before
+  public void setUp() throws IOException {
+    mImage = new byte[IMAGE_SIZE];
+    for (int i = 0; i < IMAGE_SIZE; i++) {
+      mImage[i] = (byte) i;
+    }
+    mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    mServer.createContext("/image", new ImageHandler(IMAGE_SIZE, false));
+    mServer.createContext("/chunked", new ImageHandler(0, false));
+    mServer.createContext("/close", new ImageHandler(IMAGE_SIZE, true));
+    mServerExecutor = Executors.newCachedThreadPool();
+    mServer.setExecutor(mServerExecutor);
+    mServer.start();
+    mResolverExecutor = new CountingExecutor(Executors.newCachedThreadPool());
+    mCallbackExecutor = Executors.newSingleThreadExecutor(
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, CALLBACK_THREAD_NAME);
+          }
+        });
+    SparseIntArray bucketSizes = new SparseIntArray();
+    bucketSizes.put(HttpConnection.READ_BUFFER_SIZE, 4);
+    mChunkPool = new GenericByteArrayPool(
+        NoOpMemoryTrimmableRegistry.getInstance(),
+        new PoolParams(4 * HttpConnection.READ_BUFFER_SIZE, Integer.MAX_VALUE, bucketSizes),
+        NoOpPoolStatsTracker.getInstance());
+    mConnectionPool = new HttpConnectionPool(
+        2 /* maxConnectionsPerHost */,
+        1 /* maxPipelinedRequests */,
+        10000 /* timeoutMs */,
+        60000 /* keepAliveMs */,
+        mResolverExecutor,
+        mock(NetworkFetcher.class));
+  }
+
+  @After
+  public void tearDown() {
+    mConnectionPool.shutdown();
+    mServer.stop(0);
+    mServerExecutor.shutdownNow();
+    mResolverExecutor.mDelegate.shutdownNow();
+    mCallbackExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testReusesKeepAliveConnection() throws Exception {
+    assertArrayEquals(mImage, fetch("/image").getBody());
+    assertArrayEquals(mImage, fetch("/image").getBody());
+
+    ConnectionPoolStatistics.HostStatistics statistics = getHostStatistics();
+    assertEquals(1, statistics.getConnectionCount());
+    assertEquals(2, statistics.getRequestCount());
+    assertEquals(1, statistics.getReusedConnectionRequestCount());
+    assertEquals(1, statistics.getIdleConnectionCount());
+  }
+
+  @Test
+  public void testChunkedResponse() throws Exception {
+    assertArrayEquals(mImage, fetch("/chunked").getBody());
+    assertArrayEquals(mImage, fetch("/chunked").getBody());
+
+    assertEquals(1, getHostStatistics().getConnectionCount());
+  }
+
+  @Test
+  public void testChunksAreRecycled() throws Exception {
+    assertArrayEquals(mImage, fetch("/image").getBody());
+    assertArrayEquals(mImage, fetch("/image").getBody());
+
+    Map<String, Integer> stats = mChunkPool.getStats();
+    assertEquals(0, (int) stats.get(PoolStatsTracker.USED_COUNT));
+    assertTrue(stats.get(PoolStatsTracker.FREE_COUNT) > 0);
+  }
+
+  @Test
+  public void testBodyIsHandedOverAsAWhole() throws Exception {
+    BufferingCallback callback = new BufferingCallback();
+    submit(getUri("/image", mServer.getAddress().getPort()), callback);
+    assertTrue(callback.mLatch.await(10, TimeUnit.SECONDS));
+
+    assertEquals(IMAGE_SIZE, callback.mResponseLength);
+    assertArrayEquals(mImage, callback.mBody);
+  }
+
+  @Test
+  public void testCallbacksAreCalledOnCallbackExecutor() throws Exception {
+    RecordingCallback callback = fetch("/image");
+
+    assertEquals(CALLBACK_THREAD_NAME, callback.mThreadName);
+  }
+
+  @Test
+  public void testResolvesHostForEachConnection() throws Exception {
+    assertArrayEquals(mImage, fetch("/close").getBody());
+    assertArrayEquals(mImage, fetch("/close").getBody());
+
+    assertEquals(2, getHostStatistics().getConnectionCount());
+    assertEquals(2, mResolverExecutor.mCount.get());
+  }
+
+  @Test
+  public void testUnreachableHostFails() throws Exception {
+    int port = mServer.getAddress().getPort();
+    mServer.stop(0);
+
+    RecordingCallback callback = fetch(getUri("/image", port));
+
+    assertNotNull(callback.mFailure);
+    assertNull(callback.getBody());
+    assertEquals(1, getHostStatistics().getFailedRequestCount());
+  }
+
+  private RecordingCallback fetch(String path) throws InterruptedException {
+    return fetch(getUri(path, mServer.getAddress().getPort()));
+  }
+
+  private RecordingCallback fetch(Uri uri) throws InterruptedException {
+    RecordingCallback callback = new RecordingCallback();
+    submit(uri, callback);
+    assertTrue(callback.mLatch.await(10, TimeUnit.SECONDS));
+    return callback;
+  }
+
+  private void submit(Uri uri, NetworkFetcher.Callback callback) {
+    SettableProducerContext producerContext = new SettableProducerContext(
+        ImageRequestBuilder.newBuilderWithSource(uri).build(),
+        "id",
+        mock(ProducerListener.class),
+        new Object(),
+        ImageRequest.RequestLevel.FULL_FETCH,
+        false /* isPrefetch */,
+        true /* isIntermediateResultExpected */,
+        Priority.MEDIUM);
+    NioNetworkFetcher.NioFetchState fetchState =
+        new NioNetworkFetcher.NioFetchState(mock(Consumer.class), producerContext);
+    mConnectionPool.submit(
+        new HttpExchange(
+            fetchState,
+            callback,
+            null /* bytesRange */,
+            mChunkPool,
+            mCallbackExecutor));
+  }
+
+  private ConnectionPoolStatistics.HostStatistics getHostStatistics() {
+    return mConnectionPool.getStatistics().getHostStatistics().get(0);
+  }
+
+  private static Uri getUri(String path, int port) {
+    return Uri.parse(String.format((Locale) null, "http://127.0.0.1:%d%s", port, path));
+  }
+
+  private class ImageHandler implements HttpHandler {
+
+    private final int mResponseLength;
+    private final boolean mClosesConnection;
+
+    private ImageHandler(int responseLength, boolean closesConnection) {
+      mResponseLength = responseLength;
+      mClosesConnection = closesConnection;
+    }
+
+    @Override
+    public void handle(com.sun.net.httpserver.HttpExchange exchange) throws IOException {
+      InputStream request = exchange.getRequestBody();
+      while (request.read() >= 0) {
+        // the request has no body
+      }
+      if (mClosesConnection) {
+        exchange.getResponseHeaders().set("Connection", "close");
+      }
+      exchange.sendResponseHeaders(200, mResponseLength);
+      OutputStream body = exchange.getResponseBody();
+      body.write(mImage);
+      body.close();
+    }
+  }
+
+  private static class RecordingCallback implements NetworkFetcher.StreamingCallback {
+
+    private final CountDownLatch mLatch = new CountDownLatch(1);
+    private final ByteArrayOutputStream mBody = new ByteArrayOutputStream();
+    private volatile boolean mIsComplete;
+    private volatile Throwable mFailure;
+    private volatile String mThreadName;
+
+    @Override
+    public void onResponseStart(int responseLength) {
+      mThreadName = Thread.currentThread().getName();
+    }
+
+    @Override
+    public void onResponseBytes(ByteBuffer bytes) {
+      synchronized (mBody) {
+        while (bytes.hasRemaining()) {
+          mBody.write(bytes.get());
+        }
+      }
+    }
+
+    @Override
+    public void onResponseEnd() {
+      mIsComplete = true;
+      mLatch.countDown();
+    }
+
+    @Override
+    public void onResponse(InputStream response, int responseLength) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void onFailure(Throwable throwable) {
+      mFailure = throwable;
+      mLatch.countDown();
+    }
+
+    @Override
+    public void onCancellation() {
+      mLatch.countDown();
+    }
+
+    private byte[] getBody() {
+      if (!mIsComplete) {
+        return null;
+      }
+      synchronized (mBody) {
+        return mBody.toByteArray();
+      }
+    }
+  }
+
+  private static class BufferingCallback implements NetworkFetcher.Callback {
+
+    private final CountDownLatch mLatch = new CountDownLatch(1);
+    private volatile byte[] mBody;
+    private volatile int mResponseLength;
+
+    @Override
+    public void onResponse(InputStream response, int responseLength) throws IOException {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      int b;
+      while ((b = response.read()) >= 0) {
+        body.write(b);
+      }
+      mBody = body.toByteArray();
+      mResponseLength = responseLength;
+      mLatch.countDown();
+    }
+
+    @Override
+    public void onFailure(Throwable throwable) {
+      mLatch.countDown();
+    }
+
+    @Override
+    public void onCancellation() {
+      mLatch.countDown();
+    }
+  }
+
+  private static class CountingExecutor implements Executor {
+
+    private final ExecutorService mDelegate;
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    private CountingExecutor(ExecutorService delegate) {
+      mDelegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      mCount.incrementAndGet();
+      mDelegate.execute(command);
+    }
+  }
+}
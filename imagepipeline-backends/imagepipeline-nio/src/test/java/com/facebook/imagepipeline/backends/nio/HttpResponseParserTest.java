@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.backends.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpResponseParserTest {
+
+  private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+  private HttpResponseParser mParser;
+  private RecordingListener mListener;
+
+  @Before
+  public void setUp() {
+    mParser = new HttpResponseParser();
+    mListener = new RecordingListener();
+  }
+
+  @Test
+  public void testFixedLengthBody() throws IOException {
+    ByteBuffer buffer = toBuffer("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello");
+
+    assertTrue(mParser.parse(buffer, mListener));
+
+    assertEquals(1, mListener.mHeadersCount);
+    assertEquals(200, mParser.getStatusCode());
+    assertEquals(5, mParser.getContentLength());
+    assertEquals("hello", mListener.getBody());
+    assertFalse(buffer.hasRemaining());
+  }
+
+  @Test
+  public void testChunkedBody() throws IOException {
+    ByteBuffer buffer = toBuffer(
+        "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "5;name=value\r\nhello\r\n6\r\n world\r\n0\r\n\r\n");
+
+    assertTrue(mParser.parse(buffer, mListener));
+
+    assertEquals(-1, mParser.getContentLength());
+    assertEquals("hello world", mListener.getBody());
+    assertFalse(buffer.hasRemaining());
+  }
+
+  @Test
+  public void testChunkedBodyWithTrailers() throws IOException {
+    ByteBuffer buffer = toBuffer(
+        "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "5\r\nhello\r\n0\r\nExpires: never\r\nX-Checksum: 42\r\n\r\n"
+            + "HTTP/1.1");
+
+    assertTrue(mParser.parse(buffer, mListener));
+
+    assertEquals("hello", mListener.getBody());
+    // the trailers are not headers of the response
+    assertEquals(null, mParser.getHeader("expires"));
+    assertEquals("HTTP/1.1", remainingToString(buffer));
+  }
+
+  @Test
+  public void testResponseSplitAcrossReads() throws IOException {
+    String response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+        + "5\r\nhello\r\nb\r\n split read\r\n0\r\nX-Checksum: 42\r\n\r\n";
+
+    // every byte in its own read
+    for (int i = 0; i < response.length() - 1; i++) {
+      assertFalse(mParser.parse(toBuffer(response.substring(i, i + 1)), mListener));
+    }
+    assertTrue(mParser.parse(toBuffer(response.substring(response.length() - 1)), mListener));
+
+    assertEquals(1, mListener.mHeadersCount);
+    assertEquals("hello split read", mListener.getBody());
+  }
+
+  @Test
+  public void testPipelinedResponsesOnKeepAliveConnection() throws IOException {
+    ByteBuffer buffer = toBuffer(
+        "HTTP/1.1 200 OK\r\nContent-Length: 3\r\n\r\nonc"
+            + "HTTP/1.1 206 Partial Content\r\nContent-Length: 3\r\n\r\ntwo");
+
+    assertTrue(mParser.parse(buffer, mListener));
+    assertEquals("onc", mListener.getBody());
+    assertTrue(mParser.isKeepAlive());
+
+    mParser.reset();
+    mListener = new RecordingListener();
+    assertTrue(mParser.parse(buffer, mListener));
+    assertEquals(206, mParser.getStatusCode());
+    assertEquals("two", mListener.getBody());
+    assertFalse(buffer.hasRemaining());
+  }
+
+  @Test
+  public void testKeepAlive() throws IOException {
+    assertTrue(parseHeaders("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n").isKeepAlive());
+    assertFalse(
+        parseHeaders("HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 0\r\n\r\n")
+            .isKeepAlive());
+    assertFalse(parseHeaders("HTTP/1.0 200 OK\r\nContent-Length: 0\r\n\r\n").isKeepAlive());
+    assertTrue(
+        parseHeaders("HTTP/1.0 200 OK\r\nConnection: Keep-Alive\r\nContent-Length: 0\r\n\r\n")
+            .isKeepAlive());
+    // the body ends with the connection
+    assertFalse(parseHeaders("HTTP/1.1 200 OK\r\n\r\n").isKeepAlive());
+  }
+
+  @Test
+  public void testBodyUntilEndOfStream() throws IOException {
+    assertFalse(mParser.parse(toBuffer("HTTP/1.0 200 OK\r\n\r\nhello"), mListener));
+
+    assertTrue(mParser.onEndOfStream());
+    assertEquals("hello", mListener.getBody());
+  }
+
+  @Test
+  public void testInformationalResponseIsSkipped() throws IOException {
+    ByteBuffer buffer = toBuffer(
+        "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+
+    assertTrue(mParser.parse(buffer, mListener));
+
+    assertEquals(1, mListener.mHeadersCount);
+    assertEquals(200, mParser.getStatusCode());
+    assertEquals("ok", mListener.getBody());
+  }
+
+  @Test
+  public void testRepeatedHeadersAreJoined() throws IOException {
+    parseHeaders("HTTP/1.1 200 OK\r\nVary: Accept\r\nvary: Range\r\nContent-Length: 0\r\n\r\n");
+
+    assertEquals("Accept, Range", mParser.getHeader("vary"));
+  }
+
+  @Test
+  public void testHasStarted() throws IOException {
+    assertFalse(mParser.hasStarted());
+    mParser.parse(toBuffer("HTTP/1."), mListener);
+    assertTrue(mParser.hasStarted());
+  }
+
+  @Test
+  public void testUnexpectedStatusLine() throws IOException {
+    try {
+      mParser.parse(toBuffer("SSH-2.0-OpenSSH\r\n"), mListener);
+      fail();
+    } catch (ProtocolException expected) {
+    }
+  }
+
+  @Test
+  public void testMissingEndOfChunk() throws IOException {
+    try {
+      mParser.parse(
+          toBuffer("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n2\r\nabc\r\n"),
+          mListener);
+      fail();
+    } catch (ProtocolException expected) {
+    }
+  }
+
+  private HttpResponseParser parseHeaders(String response) throws IOException {
+    mParser.reset();
+    mParser.parse(toBuffer(response), mListener);
+    return mParser;
+  }
+
+  private static ByteBuffer toBuffer(String string) {
+    return ByteBuffer.wrap(string.getBytes(US_ASCII));
+  }
+
+  private static String remainingToString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return new String(bytes, US_ASCII);
+  }
+
+  private static class RecordingListener implements HttpResponseParser.Listener {
+
+    private final ByteArrayOutputStream mBody = new ByteArrayOutputStream();
+    private int mHeadersCount;
+
+    @Override
+    public void onHeaders(HttpResponseParser parser) {
+      mHeadersCount++;
+    }
+
+    @Override
+    public void onBody(ByteBuffer bytes) {
+      while (bytes.hasRemaining()) {
+        mBody.write(bytes.get());
+      }
+    }
+
+    private String getBody() {
+      return new String(mBody.toByteArray(), US_ASCII);
+    }
+  }
+}
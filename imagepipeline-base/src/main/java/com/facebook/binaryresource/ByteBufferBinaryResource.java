@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.binaryresource;
+
+import com.facebook.common.internal.Preconditions;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * Implementation of BinaryResource based on a region of a (typically memory-mapped) ByteBuffer.
+ * Reads go straight to the buffer, without any system call. @see BinaryResource for more details.
+ */
+public class ByteBufferBinaryResource implements BinaryResource {
+  private final ByteBuffer mBuffer;
+
+  /**
+   * @param buffer the content, between its position and its limit. The buffer itself is not
+   *     modified, so that it can be shared with other resources.
+   */
+  public ByteBufferBinaryResource(ByteBuffer buffer) {
+    mBuffer = Preconditions.checkNotNull(buffer).asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns a new read-only view of the content, positioned at its start
+   */
+  public ByteBuffer getByteBuffer() {
+    return mBuffer.duplicate();
+  }
+
+  @Override
+  public InputStream openStream() {
+    return new ByteBufferInputStream(getByteBuffer());
+  }
+
+  @Override
+  public byte[] read() {
+    ByteBuffer buffer = getByteBuffer();
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  @Override
+  public long size() {
+    return mBuffer.remaining();
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer mBuffer;
+    private int mMark;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      mBuffer = buffer;
+      mMark = buffer.position();
+    }
+
+    @Override
+    public int read() {
+      if (!mBuffer.hasRemaining()) {
+        return -1;
+      }
+      return mBuffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+      if (offset < 0 || length < 0 || offset + length > buffer.length) {
+        throw new ArrayIndexOutOfBoundsException(
+            "length=" + buffer.length + "; regionStart=" + offset + "; regionLength=" + length);
+      }
+      if (length == 0) {
+        return 0;
+      }
+      if (!mBuffer.hasRemaining()) {
+        return -1;
+      }
+      int bytesToRead = Math.min(length, mBuffer.remaining());
+      mBuffer.get(buffer, offset, bytesToRead);
+      return bytesToRead;
+    }
+
+    @Override
+    public long skip(long byteCount) {
+      if (byteCount <= 0) {
+        return 0;
+      }
+      int bytesToSkip = (int) Math.min(byteCount, mBuffer.remaining());
+      mBuffer.position(mBuffer.position() + bytesToSkip);
+      return bytesToSkip;
+    }
+
+    @Override
+    public int available() {
+      return mBuffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+      return true;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+      mMark = mBuffer.position();
+    }
+
+    @Override
+    public void reset() {
+      mBuffer.position(mMark);
+    }
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.disk;
+
+import com.facebook.binaryresource.BinaryResource;
+import com.facebook.cache.common.CacheKey;
+import com.facebook.cache.common.WriterCallback;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A {@link FileCache} that can also work on several entries at once. Callers check for it, and
+ * fall back to the single entry methods of {@link FileCache} for the caches that don't implement
+ * it.
+ */
+public interface BatchFileCache extends FileCache {
+
+  /**
+   * Inserts several resources at once. This is cheaper than inserting them one by one: the cache
+   * checks whether it needs to evict entries once for the whole batch, and commits all the
+   * resources together.
+   * @param keys cache keys
+   * @param writers callbacks that write the resource of the key at the same index
+   * @return the inserted resources, in the order of the keys. The resource of a key that could not
+   *     be inserted is null.
+   * @throws IOException if the batch could not be inserted at all
+   */
+  List<BinaryResource> insertAll(List<CacheKey> keys, List<WriterCallback> writers)
+      throws IOException;
+
+  /**
+   * Returns the keys that are in the in-memory key index, looking them all up at once.
+   *
+   * Like {@link #hasKeySync}, a key missing from the result may yet be in the cache. Avoids a disk
+   * read.
+   * @param keys cache keys
+   * @return the keys found, in the order they were given
+   */
+  List<CacheKey> filterPresentSync(List<CacheKey> keys);
+
+  /**
+   * Returns the keys that are in the cache, looking them all up at once. This is cheaper than
+   * calling {@link #hasKey} for each of them. Keys missing from the in-memory key index may be
+   * looked up in the storage, so this should not be called from the UI thread.
+   * @param keys cache keys
+   * @return the keys found, in the order they were given
+   */
+  List<CacheKey> filterPresent(List<CacheKey> keys);
+}
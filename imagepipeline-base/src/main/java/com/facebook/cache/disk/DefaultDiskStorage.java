@@ -26,6 +26,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
@@ -82,6 +83,11 @@ public class DefaultDiskStorage implements DiskStorage {
   private final CacheErrorLogger mCacheErrorLogger;
   private final Clock mClock;
 
+  /**
+   * Journal of the entries, which saves walking the directory tree to list them. Null if disabled.
+   */
+  @Nullable private final DiskStorageJournal mJournal;
+
   /**
    * Instantiates a ShardedDiskStorage that will use the directory to save a map between
    * keys and files. The version is very important if clients change the format
@@ -96,6 +102,18 @@ public class DefaultDiskStorage implements DiskStorage {
       File rootDirectory,
       int version,
       CacheErrorLogger cacheErrorLogger) {
+    this(rootDirectory, version, cacheErrorLogger, false);
+  }
+
+  /**
+   * @param indexJournalEnabled whether to keep a journal of the entries, so that listing them at
+   *     startup does not need to walk the directory tree
+   */
+  public DefaultDiskStorage(
+      File rootDirectory,
+      int version,
+      CacheErrorLogger cacheErrorLogger,
+      boolean indexJournalEnabled) {
     Preconditions.checkNotNull(rootDirectory);
 
     mRootDirectory = rootDirectory;
@@ -109,9 +127,12 @@ public class DefaultDiskStorage implements DiskStorage {
     mCacheErrorLogger = cacheErrorLogger;
     recreateDirectoryIfVersionChanges();
     mClock = SystemClock.get();
+    mJournal = indexJournalEnabled
+        ? new DiskStorageJournal(mVersionDirectory, cacheErrorLogger)
+        : null;
   }
 
-  private static boolean isExternal(File directory, CacheErrorLogger cacheErrorLogger) {
+  static boolean isExternal(File directory, CacheErrorLogger cacheErrorLogger) {
     boolean state = false;
     String appCacheDirPath = null;
 
@@ -309,6 +330,9 @@ public class DefaultDiskStorage implements DiskStorage {
     }
 
     private boolean isExpectedFile(File file) {
+      if (mJournal != null && isJournalFile(file)) {
+        return true;
+      }
       FileInfo info = getShardFileInfo(file);
       if (info == null) {
         return false;
@@ -317,7 +341,14 @@ public class DefaultDiskStorage implements DiskStorage {
         return isRecentFile(file);
       }
       Preconditions.checkState(info.type == FileType.CONTENT);
-      return true;
+      // content files unknown to the journal were left behind by a crash, and can never be read
+      return mJournal == null || !mJournal.isReady() || mJournal.contains(info.resourceId);
+    }
+
+    private boolean isJournalFile(File file) {
+      return mVersionDirectory.equals(file.getParentFile()) &&
+          (DiskStorageJournal.JOURNAL_FILE_NAME.equals(file.getName()) ||
+              DiskStorageJournal.JOURNAL_TEMP_FILE_NAME.equals(file.getName()));
     }
 
     /**
@@ -382,9 +413,12 @@ public class DefaultDiskStorage implements DiskStorage {
   public BinaryResource getResource(String resourceId, Object debugInfo) {
     final File file = getContentFileFor(resourceId);
     if (file.exists()) {
-      file.setLastModified(mClock.now());
+      long now = mClock.now();
+      file.setLastModified(now);
+      maybeRecordRead(resourceId, now);
       return FileBinaryResource.createOrNull(file);
     }
+    maybeRecordRemove(resourceId);
     return null;
   }
 
@@ -407,8 +441,12 @@ public class DefaultDiskStorage implements DiskStorage {
   private boolean query(String resourceId, boolean touch) {
     File contentFile = getContentFileFor(resourceId);
     boolean exists = contentFile.exists();
-    if (touch && exists) {
-      contentFile.setLastModified(mClock.now());
+    if (!exists) {
+      maybeRecordRemove(resourceId);
+    } else if (touch) {
+      long now = mClock.now();
+      contentFile.setLastModified(now);
+      maybeRecordRead(resourceId, now);
     }
     return exists;
   }
@@ -418,21 +456,23 @@ public class DefaultDiskStorage implements DiskStorage {
     // it should be one entry return by us :)
     EntryImpl entryImpl = (EntryImpl) entry;
     FileBinaryResource resource = entryImpl.getResource();
-    return doRemove(resource.getFile());
+    return doRemove(entryImpl.getId(), resource.getFile());
   }
 
   @Override
   public long remove(final String resourceId) {
-    return doRemove(getContentFileFor(resourceId));
+    return doRemove(resourceId, getContentFileFor(resourceId));
   }
 
-  private long doRemove(final File contentFile) {
+  private long doRemove(String resourceId, final File contentFile) {
     if (!contentFile.exists()) {
+      maybeRecordRemove(resourceId);
       return 0;
     }
 
     final long fileSize = contentFile.length();
     if (contentFile.delete()) {
+      maybeRecordRemove(resourceId);
       return fileSize;
     }
 
@@ -441,6 +481,9 @@ public class DefaultDiskStorage implements DiskStorage {
 
   public void clearAll() {
     FileTree.deleteContents(mRootDirectory);
+    if (mJournal != null) {
+      mJournal.clear();
+    }
   }
 
   @Override
@@ -473,7 +516,7 @@ public class DefaultDiskStorage implements DiskStorage {
     return new DiskDumpInfoEntry(path, type, entryImpl.getSize(), firstBits);
   }
 
-  private String typeOfBytes(byte[] bytes) {
+  static String typeOfBytes(byte[] bytes) {
     if (bytes.length >= 2) {
       if (bytes[0] == (byte) 0xFF && bytes[1] == (byte) 0xD8) {
         return "jpg";
@@ -493,13 +536,77 @@ public class DefaultDiskStorage implements DiskStorage {
    * Returns a list of entries.
    *
    * <p>This list is immutable.
+   *
+   * <p>When listed from the journal, entries whose content file has been deleted behind the back of
+   * the storage, e.g. by the system when running low on storage, are dropped from the journal.
+   * That takes a single stat per entry, instead of listing every directory and reading the size
+   * and timestamp of every file.
    */
   public List<Entry> getEntries() throws IOException {
+    if (mJournal != null && ensureJournalReady()) {
+      List<DiskStorageJournal.Record> records = mJournal.getRecords();
+      List<Entry> entries = new ArrayList<>(records.size());
+      for (DiskStorageJournal.Record record : records) {
+        File contentFile = getContentFileFor(record.id);
+        if (!contentFile.exists()) {
+          mJournal.recordRemove(record.id);
+          continue;
+        }
+        entries.add(new EntryImpl(record.id, contentFile, record.size, record.timestamp));
+      }
+      // entries are listed periodically, which is a good time to persist the batched reads
+      mJournal.flush();
+      return Collections.unmodifiableList(entries);
+    }
+    return walkEntries();
+  }
+
+  private List<Entry> walkEntries() {
     EntriesCollector collector = new EntriesCollector();
     FileTree.walkFileTree(mVersionDirectory, collector);
     return collector.getEntries();
   }
 
+  /**
+   * Loads the journal if that has not happened yet. If the journal is missing or corrupt, it is
+   * rebuilt by walking the directory tree. Once a write error disabled the journal, nothing is
+   * recorded anymore, and only {@link #getEntries()} walks the directory tree.
+   *
+   * @return whether the journal can be used to list the entries
+   */
+  private boolean ensureJournalReady() {
+    Preconditions.checkNotNull(mJournal);
+    synchronized (mJournal) {
+      if (mJournal.isReady()) {
+        return true;
+      }
+      if (mJournal.isDisabled()) {
+        return false;
+      }
+      Collection<String> incompleteIds = mJournal.load();
+      if (incompleteIds != null) {
+        for (String resourceId : incompleteIds) {
+          getContentFileFor(resourceId).delete();
+        }
+      } else {
+        mJournal.rebuild(walkEntries());
+      }
+      return mJournal.isReady();
+    }
+  }
+
+  private void maybeRecordRead(String resourceId, long timestamp) {
+    if (mJournal != null && ensureJournalReady()) {
+      mJournal.recordRead(resourceId, timestamp);
+    }
+  }
+
+  private void maybeRecordRemove(String resourceId) {
+    if (mJournal != null && ensureJournalReady()) {
+      mJournal.recordRemove(resourceId);
+    }
+  }
+
   /**
    * Implementation of Entry listed by entriesIterator.
    */
@@ -511,11 +618,15 @@ public class DefaultDiskStorage implements DiskStorage {
     private long timestamp;
 
     private EntryImpl(String id, File cachedFile) {
+      this(id, cachedFile, -1, -1);
+    }
+
+    private EntryImpl(String id, File cachedFile, long size, long timestamp) {
       Preconditions.checkNotNull(cachedFile);
       this.id = Preconditions.checkNotNull(id);
       this.resource = FileBinaryResource.createOrNull(cachedFile);
-      this.size = -1;
-      this.timestamp = -1;
+      this.size = size;
+      this.timestamp = timestamp;
     }
 
     @Override
@@ -692,6 +803,11 @@ public class DefaultDiskStorage implements DiskStorage {
       // the temp resource must be ours!
       File targetFile = getContentFileFor(mResourceId);
 
+      boolean isJournaled = mJournal != null && ensureJournalReady();
+      if (isJournaled) {
+        // if the app dies before the commit is recorded, the content file will be discarded
+        mJournal.recordDirty(mResourceId);
+      }
       try {
         FileUtils.rename(mTemporaryFile, targetFile);
       } catch (FileUtils.RenameException re) {
@@ -715,7 +831,11 @@ public class DefaultDiskStorage implements DiskStorage {
         throw re;
       }
       if (targetFile.exists()) {
-        targetFile.setLastModified(mClock.now());
+        long now = mClock.now();
+        targetFile.setLastModified(now);
+        if (isJournaled) {
+          mJournal.recordClean(mResourceId, targetFile.length(), now);
+        }
       }
       return FileBinaryResource.createOrNull(targetFile);
     }
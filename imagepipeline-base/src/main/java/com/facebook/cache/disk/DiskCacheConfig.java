@@ -39,6 +39,8 @@ public class DiskCacheConfig {
   private final DiskTrimmableRegistry mDiskTrimmableRegistry;
   private final Context mContext;
   private final boolean mIndexPopulateAtStartupEnabled;
+  private final boolean mIndexJournalEnabled;
+  private final int mPackedStorageSegmentSize;
 
   private DiskCacheConfig(Builder builder) {
     mVersion = builder.mVersion;
@@ -63,6 +65,8 @@ public class DiskCacheConfig {
             builder.mDiskTrimmableRegistry;
     mContext = builder.mContext;
     mIndexPopulateAtStartupEnabled = builder.mIndexPopulateAtStartupEnabled;
+    mIndexJournalEnabled = builder.mIndexJournalEnabled;
+    mPackedStorageSegmentSize = builder.mPackedStorageSegmentSize;
   }
 
   public int getVersion() {
@@ -113,6 +117,14 @@ public class DiskCacheConfig {
     return mIndexPopulateAtStartupEnabled;
   }
 
+  public boolean getIndexJournalEnabled() {
+    return mIndexJournalEnabled;
+  }
+
+  public int getPackedStorageSegmentSize() {
+    return mPackedStorageSegmentSize;
+  }
+
   /**
    * Create a new builder.
    *
@@ -140,6 +152,8 @@ public class DiskCacheConfig {
     private CacheEventListener mCacheEventListener;
     private DiskTrimmableRegistry mDiskTrimmableRegistry;
     private boolean mIndexPopulateAtStartupEnabled;
+    private boolean mIndexJournalEnabled;
+    private int mPackedStorageSegmentSize = PackedDiskStorage.DEFAULT_SEGMENT_SIZE;
 
     private final @Nullable Context mContext;
 
@@ -248,6 +262,27 @@ public class DiskCacheConfig {
       return this;
     }
 
+    /**
+     * Keeps an append-only journal of the cached entries next to them, so that the index can be
+     * populated at startup without walking the cache directory. The directory is only walked if
+     * the journal is missing or corrupt.
+     */
+    public Builder setIndexJournalEnabled(boolean indexJournalEnabled) {
+      mIndexJournalEnabled = indexJournalEnabled;
+      return this;
+    }
+
+    /**
+     * Sets the size of the segment files of a {@link PackedDiskStorage}.
+     *
+     * <p>Entries are appended to the current segment until it is full. Larger segments mean fewer
+     * files, but more space to reclaim when compacting them.
+     */
+    public Builder setPackedStorageSegmentSize(int packedStorageSegmentSize) {
+      mPackedStorageSegmentSize = packedStorageSegmentSize;
+      return this;
+    }
+
     public DiskCacheConfig build() {
       Preconditions.checkState(
           mBaseDirectoryPathSupplier != null || mContext != null,
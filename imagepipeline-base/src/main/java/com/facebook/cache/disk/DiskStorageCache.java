@@ -16,6 +16,7 @@ import com.facebook.cache.common.CacheKeyUtil;
 import com.facebook.cache.common.WriterCallback;
 import com.facebook.common.disk.DiskTrimmable;
 import com.facebook.common.disk.DiskTrimmableRegistry;
+import com.facebook.common.internal.Preconditions;
 import com.facebook.common.internal.VisibleForTesting;
 import com.facebook.common.logging.FLog;
 import com.facebook.common.statfs.StatFsHelper;
@@ -39,7 +40,7 @@ import javax.annotation.concurrent.ThreadSafe;
  * Cache that manages disk storage.
  */
 @ThreadSafe
-public class DiskStorageCache implements FileCache, DiskTrimmable {
+public class DiskStorageCache implements BatchFileCache, DiskTrimmable {
 
   private static final Class<?> TAG = DiskStorageCache.class;
 
@@ -384,6 +385,95 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
     }
   }
 
+  @Override
+  public List<BinaryResource> insertAll(List<CacheKey> keys, List<WriterCallback> callbacks)
+      throws IOException {
+    Preconditions.checkArgument(keys.size() == callbacks.size());
+    final int count = keys.size();
+    List<BinaryResource> resources = new ArrayList<>(count);
+    if (count == 0) {
+      return resources;
+    }
+    // a single eviction check for the whole batch
+    maybeEvictFilesInCacheDir();
+
+    String[] resourceIds = new String[count];
+    synchronized (mLock) {
+      for (int i = 0; i < count; i++) {
+        // for multiple resource ids associated with the same image, we only write one file
+        resourceIds[i] = CacheKeyUtil.getFirstResourceId(keys.get(i));
+      }
+    }
+    SettableCacheEvent[] cacheEvents = new SettableCacheEvent[count];
+    DiskStorage.Inserter[] inserters = new DiskStorage.Inserter[count];
+    try {
+      // write the temp files outside of the lock, as insert does
+      for (int i = 0; i < count; i++) {
+        CacheKey key = keys.get(i);
+        cacheEvents[i] = SettableCacheEvent.obtain()
+            .setCacheKey(key)
+            .setResourceId(resourceIds[i]);
+        mCacheEventListener.onWriteAttempt(cacheEvents[i]);
+        try {
+          inserters[i] = mStorage.insert(resourceIds[i], key);
+          inserters[i].writeData(callbacks.get(i), key);
+        } catch (IOException ioe) {
+          onBatchWriteException(cacheEvents[i], ioe);
+          cleanUp(inserters[i]);
+          inserters[i] = null;
+        }
+      }
+
+      // commit all the files with a single acquisition of the lock
+      IOException[] commitExceptions = new IOException[count];
+      synchronized (mLock) {
+        for (int i = 0; i < count; i++) {
+          BinaryResource resource = null;
+          if (inserters[i] != null) {
+            try {
+              resource = inserters[i].commit(keys.get(i));
+              mResourceIndex.add(resourceIds[i]);
+              mCacheStats.increment(resource.size(), 1);
+            } catch (IOException ioe) {
+              commitExceptions[i] = ioe;
+            }
+          }
+          resources.add(resource);
+        }
+      }
+
+      for (int i = 0; i < count; i++) {
+        if (commitExceptions[i] != null) {
+          onBatchWriteException(cacheEvents[i], commitExceptions[i]);
+        } else if (resources.get(i) != null) {
+          cacheEvents[i].setItemSize(resources.get(i).size())
+              .setCacheSize(mCacheStats.getSize());
+          mCacheEventListener.onWriteSuccess(cacheEvents[i]);
+        }
+      }
+      return resources;
+    } finally {
+      for (int i = 0; i < count; i++) {
+        cleanUp(inserters[i]);
+        if (cacheEvents[i] != null) {
+          cacheEvents[i].recycle();
+        }
+      }
+    }
+  }
+
+  private void onBatchWriteException(SettableCacheEvent cacheEvent, IOException ioe) {
+    cacheEvent.setException(ioe);
+    mCacheEventListener.onWriteException(cacheEvent);
+    FLog.e(TAG, "Failed inserting a file into the cache", ioe);
+  }
+
+  private static void cleanUp(@Nullable DiskStorage.Inserter inserter) {
+    if (inserter != null && !inserter.cleanUp()) {
+      FLog.e(TAG, "Failed to delete temp file");
+    }
+  }
+
   @Override
   public void remove(CacheKey key) {
     synchronized (mLock) {
@@ -605,38 +695,79 @@ public class DiskStorageCache implements FileCache, DiskTrimmable {
   @Override
   public boolean hasKeySync(CacheKey key) {
     synchronized (mLock) {
-      String resourceId = null;
-      List<String> resourceIds = CacheKeyUtil.getResourceIds(key);
-      for (int i = 0; i< resourceIds.size(); i++) {
-        resourceId = resourceIds.get(i);
-        if (mResourceIndex.contains(resourceId)) {
-          return true;
+      return isInIndex(key);
+    }
+  }
+
+  @Override
+  public boolean hasKey(final CacheKey key) {
+    synchronized (mLock) {
+      return isInIndex(key) || isInStorage(key);
+    }
+  }
+
+  @Override
+  public List<CacheKey> filterPresentSync(List<CacheKey> keys) {
+    List<CacheKey> presentKeys = new ArrayList<>(keys.size());
+    synchronized (mLock) {
+      for (int i = 0; i < keys.size(); i++) {
+        if (isInIndex(keys.get(i))) {
+          presentKeys.add(keys.get(i));
         }
       }
-      return false;
     }
+    return presentKeys;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p> Once the index has been populated at startup, it lists all the resources of the storage,
+   * so the keys missing from it are missing from the storage as well and are not looked up there.
+   */
   @Override
-  public boolean hasKey(final CacheKey key) {
+  public List<CacheKey> filterPresent(List<CacheKey> keys) {
+    List<CacheKey> presentKeys = new ArrayList<>(keys.size());
     synchronized (mLock) {
-      if (hasKeySync(key)) {
+      boolean isIndexComplete = mIndexPopulateAtStartupEnabled && mIndexReady;
+      for (int i = 0; i < keys.size(); i++) {
+        CacheKey key = keys.get(i);
+        if (isInIndex(key) || (!isIndexComplete && isInStorage(key))) {
+          presentKeys.add(key);
+        }
+      }
+    }
+    return presentKeys;
+  }
+
+  @GuardedBy("mLock")
+  private boolean isInIndex(CacheKey key) {
+    List<String> resourceIds = CacheKeyUtil.getResourceIds(key);
+    for (int i = 0; i < resourceIds.size(); i++) {
+      if (mResourceIndex.contains(resourceIds.get(i))) {
         return true;
       }
-      try {
-        String resourceId = null;
-        List<String> resourceIds = CacheKeyUtil.getResourceIds(key);
-        for (int i = 0; i < resourceIds.size(); i++) {
-          resourceId = resourceIds.get(i);
-          if (mStorage.contains(resourceId, key)) {
-            mResourceIndex.add(resourceId);
-            return true;
-          }
+    }
+    return false;
+  }
+
+  /**
+   * Looks the key up in the storage, and adds it to the index if it is found there.
+   */
+  @GuardedBy("mLock")
+  private boolean isInStorage(CacheKey key) {
+    try {
+      List<String> resourceIds = CacheKeyUtil.getResourceIds(key);
+      for (int i = 0; i < resourceIds.size(); i++) {
+        String resourceId = resourceIds.get(i);
+        if (mStorage.contains(resourceId, key)) {
+          mResourceIndex.add(resourceId);
+          return true;
         }
-        return false;
-      } catch (IOException e) {
-        return false;
       }
+      return false;
+    } catch (IOException e) {
+      return false;
     }
   }
 
@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.disk;
+
+import com.facebook.cache.common.CacheErrorLogger;
+import com.facebook.common.file.FileUtils;
+import com.facebook.common.internal.Closeables;
+import com.facebook.common.internal.Files;
+import com.facebook.common.internal.VisibleForTesting;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Append-only journal of the entries of a {@link DefaultDiskStorage}, which allows listing the
+ * entries at startup without walking and stat-ing the whole directory tree.
+ *
+ * <p> The journal starts with a header line, followed by one record per line:
+ * <ul>
+ *   <li><code>DIRTY id</code>: a content file is about to be committed</li>
+ *   <li><code>CLEAN size timestamp id</code>: the content file has been committed</li>
+ *   <li><code>READ timestamp id</code>: the content file has been accessed</li>
+ *   <li><code>REMOVE id</code>: the content file has been deleted</li>
+ * </ul>
+ * A <code>DIRTY</code> record that is not followed by a <code>CLEAN</code> or <code>REMOVE</code>
+ * one means that the app died while committing, so the content file cannot be trusted. A last line
+ * without a terminating newline is ignored, as it was being written when the app died.
+ *
+ * <p> Reads are frequent and only affect the eviction order, so their records are kept in memory
+ * and appended in batches: once enough of them are pending, once the oldest of them is old enough,
+ * before any other record and on {@link #flush()}. Reads pending when the app dies are lost, which
+ * only makes the affected entries look older than they are.
+ *
+ * <p> Once enough records have been appended, and at least as many as there are live entries, the
+ * journal is compacted by writing the live entries to a temporary file, which then atomically
+ * replaces the journal.
+ *
+ * <p> A write error disables the journal until the next startup: it is deleted, and neither
+ * loaded nor rebuilt again, so that the storage does not walk the directory tree on every access.
+ */
+@ThreadSafe
+class DiskStorageJournal {
+
+  private static final Class<?> TAG = DiskStorageJournal.class;
+
+  @VisibleForTesting static final String HEADER = "fresco.disk.journal 1";
+  static final String JOURNAL_FILE_NAME = "journal";
+  static final String JOURNAL_TEMP_FILE_NAME = "journal.tmp";
+
+  private static final String DIRTY = "DIRTY";
+  private static final String CLEAN = "CLEAN";
+  private static final String READ = "READ";
+  private static final String REMOVE = "REMOVE";
+
+  @VisibleForTesting static final int COMPACTION_THRESHOLD = 2000;
+  @VisibleForTesting static final int READ_FLUSH_THRESHOLD = 64;
+  @VisibleForTesting static final long READ_FLUSH_INTERVAL_MS = 10 * 1000;
+
+  /** An entry as recorded by the journal. */
+  static class Record {
+    public final String id;
+    public final long size;
+    public final long timestamp;
+
+    Record(String id, long size, long timestamp) {
+      this.id = id;
+      this.size = size;
+      this.timestamp = timestamp;
+    }
+  }
+
+  private final File mJournalFile;
+  private final File mTempFile;
+  private final CacheErrorLogger mCacheErrorLogger;
+
+  @GuardedBy("this")
+  private final LinkedHashMap<String, Record> mRecords = new LinkedHashMap<>();
+  @GuardedBy("this")
+  private final Set<String> mDirtyIds = new HashSet<>();
+  // ids read since the last flush, whose records hold the timestamp of their latest read
+  @GuardedBy("this")
+  private final Set<String> mPendingReadIds = new LinkedHashSet<>();
+  @GuardedBy("this")
+  private long mFirstPendingReadTimestamp;
+  @GuardedBy("this")
+  @Nullable private Writer mWriter;
+  @GuardedBy("this")
+  @VisibleForTesting int mAppendedRecordCount;
+  @GuardedBy("this")
+  private boolean mIsDisabled;
+
+  DiskStorageJournal(File directory, CacheErrorLogger cacheErrorLogger) {
+    mJournalFile = new File(directory, JOURNAL_FILE_NAME);
+    mTempFile = new File(directory, JOURNAL_TEMP_FILE_NAME);
+    mCacheErrorLogger = cacheErrorLogger;
+  }
+
+  /** Returns whether the journal has been loaded or rebuilt, and can be trusted. */
+  synchronized boolean isReady() {
+    return mWriter != null;
+  }
+
+  /** Returns whether the journal was disabled by a write error. */
+  synchronized boolean isDisabled() {
+    return mIsDisabled;
+  }
+
+  /**
+   * Reads the journal from disk.
+   *
+   * @return the ids whose commit did not complete, or null if the journal is missing or corrupt
+   *     and needs to be rebuilt
+   */
+  @Nullable
+  synchronized Collection<String> load() {
+    if (mIsDisabled) {
+      return null;
+    }
+    mRecords.clear();
+    mDirtyIds.clear();
+    mPendingReadIds.clear();
+    mAppendedRecordCount = 0;
+    if (!mJournalFile.exists()) {
+      return null;
+    }
+    try {
+      String content = new String(Files.toByteArray(mJournalFile), "UTF-8");
+      int end = content.lastIndexOf('\n');
+      if (end < 0) {
+        throw new IOException("journal has no header");
+      }
+      String[] lines = content.substring(0, end).split("\n", -1);
+      if (!HEADER.equals(lines[0])) {
+        throw new IOException("unexpected journal header: " + lines[0]);
+      }
+      for (int i = 1; i < lines.length; i++) {
+        try {
+          applyLine(lines[i]);
+        } catch (NumberFormatException nfe) {
+          throw new IOException("malformed journal line: " + lines[i], nfe);
+        }
+      }
+      mAppendedRecordCount = lines.length - 1;
+      Collection<String> incompleteIds = new ArrayList<>(mDirtyIds);
+      for (String id : mDirtyIds) {
+        mRecords.remove(id);
+      }
+      mDirtyIds.clear();
+      boolean isTruncated = end != content.length() - 1;
+      if (isTruncated || !incompleteIds.isEmpty() || shouldCompact()) {
+        rewrite();
+      } else {
+        openWriter();
+      }
+      return incompleteIds;
+    } catch (IOException e) {
+      mCacheErrorLogger.logError(
+          CacheErrorLogger.CacheErrorCategory.READ_INVALID_ENTRY,
+          TAG,
+          "load: " + e.getMessage(),
+          e);
+      mRecords.clear();
+      mDirtyIds.clear();
+      return null;
+    }
+  }
+
+  private void applyLine(String line) throws IOException {
+    int firstSpace = line.indexOf(' ');
+    if (firstSpace <= 0) {
+      throw new IOException("malformed journal line: " + line);
+    }
+    String type = line.substring(0, firstSpace);
+    String rest = line.substring(firstSpace + 1);
+    if (DIRTY.equals(type)) {
+      mDirtyIds.add(rest);
+    } else if (REMOVE.equals(type)) {
+      mDirtyIds.remove(rest);
+      mRecords.remove(rest);
+    } else if (CLEAN.equals(type)) {
+      int second = rest.indexOf(' ');
+      int third = rest.indexOf(' ', second + 1);
+      if (second <= 0 || third <= second + 1) {
+        throw new IOException("malformed journal line: " + line);
+      }
+      String id = rest.substring(third + 1);
+      mDirtyIds.remove(id);
+      mRecords.remove(id);
+      mRecords.put(id, new Record(
+          id,
+          Long.parseLong(rest.substring(0, second)),
+          Long.parseLong(rest.substring(second + 1, third))));
+    } else if (READ.equals(type)) {
+      int second = rest.indexOf(' ');
+      if (second <= 0) {
+        throw new IOException("malformed journal line: " + line);
+      }
+      String id = rest.substring(second + 1);
+      Record record = mRecords.remove(id);
+      if (record != null) {
+        mRecords.put(id, new Record(id, record.size, Long.parseLong(rest.substring(0, second))));
+      }
+    } else {
+      throw new IOException("unknown journal record: " + line);
+    }
+  }
+
+  /** Replaces the journal with the given entries, e.g. after walking the directory tree. */
+  synchronized void rebuild(Collection<DiskStorage.Entry> entries) {
+    if (mIsDisabled) {
+      return;
+    }
+    mRecords.clear();
+    mDirtyIds.clear();
+    for (DiskStorage.Entry entry : entries) {
+      mRecords.put(entry.getId(), new Record(entry.getId(), entry.getSize(), entry.getTimestamp()));
+    }
+    try {
+      rewrite();
+    } catch (IOException ioe) {
+      onWriteError("rebuild", ioe);
+    }
+  }
+
+  /** Removes all the entries. */
+  synchronized void clear() {
+    rebuild(new ArrayList<DiskStorage.Entry>());
+  }
+
+  /** Returns the entries in the order of their last access, least recent first. */
+  synchronized List<Record> getRecords() {
+    return new ArrayList<>(mRecords.values());
+  }
+
+  /** Returns whether the id is either committed or being committed. */
+  synchronized boolean contains(String id) {
+    return mRecords.containsKey(id) || mDirtyIds.contains(id);
+  }
+
+  synchronized void recordDirty(String id) {
+    mDirtyIds.add(id);
+    append(DIRTY + ' ' + id);
+  }
+
+  synchronized void recordClean(String id, long size, long timestamp) {
+    mDirtyIds.remove(id);
+    mRecords.remove(id);
+    mRecords.put(id, new Record(id, size, timestamp));
+    append(CLEAN + ' ' + size + ' ' + timestamp + ' ' + id);
+  }
+
+  synchronized void recordRead(String id, long timestamp) {
+    Record record = mRecords.remove(id);
+    if (record == null) {
+      return;
+    }
+    mRecords.put(id, new Record(id, record.size, timestamp));
+    if (mWriter == null) {
+      return;
+    }
+    if (mPendingReadIds.isEmpty()) {
+      mFirstPendingReadTimestamp = timestamp;
+    }
+    mPendingReadIds.remove(id);
+    mPendingReadIds.add(id);
+    if (mPendingReadIds.size() >= READ_FLUSH_THRESHOLD ||
+        timestamp - mFirstPendingReadTimestamp >= READ_FLUSH_INTERVAL_MS) {
+      flush();
+    }
+  }
+
+  synchronized void recordRemove(String id) {
+    boolean wasDirty = mDirtyIds.remove(id);
+    if (mRecords.remove(id) == null && !wasDirty) {
+      return;
+    }
+    append(REMOVE + ' ' + id);
+  }
+
+  /** Appends the pending reads to the journal. */
+  synchronized void flush() {
+    if (mWriter == null || mPendingReadIds.isEmpty()) {
+      return;
+    }
+    try {
+      writePendingReads();
+      mWriter.flush();
+      maybeCompact();
+    } catch (IOException ioe) {
+      onWriteError("flush", ioe);
+    }
+  }
+
+  @GuardedBy("this")
+  private void append(String line) {
+    if (mWriter == null) {
+      return;
+    }
+    try {
+      writePendingReads();
+      writeLine(line);
+      mWriter.flush();
+      maybeCompact();
+    } catch (IOException ioe) {
+      onWriteError("append", ioe);
+    }
+  }
+
+  @GuardedBy("this")
+  private void writePendingReads() throws IOException {
+    for (String id : mPendingReadIds) {
+      Record record = mRecords.get(id);
+      if (record != null) {
+        writeLine(READ + ' ' + record.timestamp + ' ' + id);
+      }
+    }
+    mPendingReadIds.clear();
+  }
+
+  @GuardedBy("this")
+  private void writeLine(String line) throws IOException {
+    mWriter.write(line);
+    mWriter.write('\n');
+    mAppendedRecordCount++;
+  }
+
+  @GuardedBy("this")
+  private void maybeCompact() throws IOException {
+    if (shouldCompact()) {
+      rewrite();
+    }
+  }
+
+  @GuardedBy("this")
+  private boolean shouldCompact() {
+    return mAppendedRecordCount >= COMPACTION_THRESHOLD &&
+        mAppendedRecordCount >= mRecords.size();
+  }
+
+  /** Writes the current state to a new journal, and atomically replaces the old one with it. */
+  @GuardedBy("this")
+  private void rewrite() throws IOException {
+    closeWriter();
+    // the records already hold the timestamps of the pending reads
+    mPendingReadIds.clear();
+    FileUtils.mkdirs(mTempFile.getParentFile());
+    FileOutputStream tempStream = new FileOutputStream(mTempFile);
+    try {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(tempStream, "UTF-8"));
+      writer.write(HEADER);
+      writer.write('\n');
+      for (Record record : mRecords.values()) {
+        writer.write(CLEAN + ' ' + record.size + ' ' + record.timestamp + ' ' + record.id + '\n');
+      }
+      for (String id : mDirtyIds) {
+        writer.write(DIRTY + ' ' + id + '\n');
+      }
+      writer.flush();
+      tempStream.getFD().sync();
+    } finally {
+      tempStream.close();
+    }
+    FileUtils.rename(mTempFile, mJournalFile);
+    mAppendedRecordCount = 0;
+    openWriter();
+  }
+
+  @GuardedBy("this")
+  private void openWriter() throws IOException {
+    mWriter = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(mJournalFile, true), "UTF-8"));
+  }
+
+  /**
+   * Disables the journal after a write failure, and deletes it so that the next startup falls back
+   * to walking the directory tree.
+   */
+  @GuardedBy("this")
+  private void onWriteError(String message, IOException ioe) {
+    mCacheErrorLogger.logError(
+        CacheErrorLogger.CacheErrorCategory.WRITE_INVALID_ENTRY,
+        TAG,
+        message + ": " + ioe.getMessage(),
+        ioe);
+    mIsDisabled = true;
+    closeWriter();
+    mRecords.clear();
+    mDirtyIds.clear();
+    mPendingReadIds.clear();
+    mJournalFile.delete();
+  }
+
+  @GuardedBy("this")
+  private void closeWriter() {
+    if (mWriter != null) {
+      try {
+        Closeables.close(mWriter, true);
+      } catch (IOException ioe) {
+        // not thrown when swallowing
+      }
+      mWriter = null;
+    }
+  }
+}
@@ -30,6 +30,7 @@ public class DynamicDefaultDiskStorage implements DiskStorage {
   private final Supplier<File> mBaseDirectoryPathSupplier;
   private final String mBaseDirectoryName;
   private final CacheErrorLogger mCacheErrorLogger;
+  private final boolean mIndexJournalEnabled;
 
   @VisibleForTesting
   volatile State mCurrentState;
@@ -52,7 +53,17 @@ public class DynamicDefaultDiskStorage implements DiskStorage {
       Supplier<File> baseDirectoryPathSupplier,
       String baseDirectoryName,
       CacheErrorLogger cacheErrorLogger) {
+    this(version, baseDirectoryPathSupplier, baseDirectoryName, cacheErrorLogger, false);
+  }
+
+  public DynamicDefaultDiskStorage(
+      int version,
+      Supplier<File> baseDirectoryPathSupplier,
+      String baseDirectoryName,
+      CacheErrorLogger cacheErrorLogger,
+      boolean indexJournalEnabled) {
     mVersion = version;
+    mIndexJournalEnabled = indexJournalEnabled;
     mCacheErrorLogger = cacheErrorLogger;
     mBaseDirectoryPathSupplier = baseDirectoryPathSupplier;
     mBaseDirectoryName = baseDirectoryName;
@@ -177,7 +188,11 @@ public class DynamicDefaultDiskStorage implements DiskStorage {
   private void createStorage() throws IOException {
     File rootDirectory = new File(mBaseDirectoryPathSupplier.get(), mBaseDirectoryName);
     createRootDirectoryIfNecessary(rootDirectory);
-    DiskStorage storage = new DefaultDiskStorage(rootDirectory, mVersion, mCacheErrorLogger);
+    DiskStorage storage = new DefaultDiskStorage(
+        rootDirectory,
+        mVersion,
+        mCacheErrorLogger,
+        mIndexJournalEnabled);
     mCurrentState = new State(rootDirectory, storage);
   }
 
@@ -0,0 +1,929 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.disk;
+
+import com.facebook.binaryresource.BinaryResource;
+import com.facebook.binaryresource.ByteBufferBinaryResource;
+import com.facebook.cache.common.CacheErrorLogger;
+import com.facebook.cache.common.WriterCallback;
+import com.facebook.common.file.FileTree;
+import com.facebook.common.file.FileUtils;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.Supplier;
+import com.facebook.common.internal.Suppliers;
+import com.facebook.common.internal.VisibleForTesting;
+import com.facebook.common.time.Clock;
+import com.facebook.common.time.SystemClock;
+import com.facebook.common.util.ByteConstants;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Disk storage that packs all the entries into a small number of large, memory-mapped segment
+ * files, instead of having one file per entry like {@link DefaultDiskStorage}.
+ *
+ * <p> Entries are streamed straight into the current segment, and read straight from the mapped
+ * region through {@link ByteBufferBinaryResource}s. An in-memory index maps each resource id to the
+ * location of its latest record. It is rebuilt at startup by walking the record headers of the
+ * segments, which only touches a few pages per segment.
+ *
+ * <p> Each record is laid out as follows:
+ * <pre>
+ *   int    magic
+ *   byte   state (pending, live or deleted)
+ *   long   timestamp of the last access
+ *   int    data length (-1 while being written)
+ *   short  id length
+ *   byte[] id (UTF-8)
+ *   byte[] data
+ * </pre>
+ * A record is written as pending, and only marked as live once complete and forced to disk, so
+ * that a write interrupted by the app or the device dying is ignored at startup. Removing an entry
+ * marks its record as deleted in place.
+ *
+ * <p> The space of deleted records is reclaimed incrementally, on the threads writing and removing
+ * entries: the live records of the segment with the smallest share of live bytes are copied to the
+ * current segment, and the file is deleted. That happens once less than half of a segment is live,
+ * and more eagerly once the segment files take more space than the size limit of the cache plus a
+ * segment. Resources that were read from a deleted segment stay valid, since the mapping outlives
+ * the file.
+ */
+@ThreadSafe
+public class PackedDiskStorage implements DiskStorage {
+
+  private static final Class<?> TAG = PackedDiskStorage.class;
+
+  public static final int DEFAULT_SEGMENT_SIZE = 4 * ByteConstants.MB;
+
+  private static final String SEGMENT_FILE_EXTENSION = ".seg";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @VisibleForTesting static final int RECORD_MAGIC = 0x46504B31;
+  @VisibleForTesting static final int STATE_OFFSET = 4;
+  private static final int TIMESTAMP_OFFSET = 5;
+  private static final int DATA_LENGTH_OFFSET = 13;
+  private static final int ID_LENGTH_OFFSET = 17;
+  @VisibleForTesting static final int RECORD_HEADER_SIZE = 19;
+  private static final int MAX_ID_LENGTH = 0xFFFF;
+  private static final int UNKNOWN_DATA_LENGTH = -1;
+
+  @VisibleForTesting static final byte STATE_PENDING = 0;
+  @VisibleForTesting static final byte STATE_LIVE = 1;
+  @VisibleForTesting static final byte STATE_DELETED = 2;
+
+  /** Segments with less live bytes than this share of their size get compacted. */
+  @VisibleForTesting static final float COMPACTION_MAX_LIVE_RATIO = 0.5f;
+  /** Same as {@link #COMPACTION_MAX_LIVE_RATIO}, while the segments exceed the size limit. */
+  @VisibleForTesting static final float OVER_BUDGET_COMPACTION_MAX_LIVE_RATIO = 0.875f;
+  /** Bytes of records scanned by a compaction step, at most one record more. */
+  private static final int COMPACTION_STEP_BYTES = 512 * ByteConstants.KB;
+
+  private final Supplier<File> mRootDirectorySupplier;
+  private final int mVersion;
+  private final int mSegmentSize;
+  private final long mMaxSizeBytes;
+  private final CacheErrorLogger mCacheErrorLogger;
+  private final Clock mClock;
+
+  // Taken before the storage lock by whoever appends records, so that a record can be streamed
+  // into the active segment without blocking the readers.
+  private final Object mAppendLock = new Object();
+
+  @GuardedBy("this")
+  @Nullable private File mRootDirectory;
+  @GuardedBy("this")
+  @Nullable private File mVersionDirectory;
+  @GuardedBy("this")
+  private final Map<String, Location> mIndex = new HashMap<>();
+  @GuardedBy("this")
+  private final TreeMap<Integer, Segment> mSegments = new TreeMap<>();
+  @GuardedBy("this")
+  @Nullable private Segment mActiveSegment;
+  @GuardedBy("this")
+  private boolean mIsInitialized;
+  @GuardedBy("this")
+  private boolean mIsExternal;
+
+  @GuardedBy("mAppendLock")
+  @Nullable private Segment mCompactingSegment;
+  @GuardedBy("mAppendLock")
+  private int mCompactionPosition;
+
+  /**
+   * Instantiates a packed disk storage. Nothing is read from disk until the storage is first used.
+   *
+   * @param rootDirectory root directory to create all content under
+   * @param version version of the format used in the files. If passed a different version
+   *     files produced by the previous version will not be read.
+   * @param segmentSize size of the segment files, unless an entry needs a larger one
+   * @param maxSizeBytes size limit of the cache using the storage
+   * @param cacheErrorLogger logger for various events
+   */
+  public PackedDiskStorage(
+      File rootDirectory,
+      int version,
+      int segmentSize,
+      long maxSizeBytes,
+      CacheErrorLogger cacheErrorLogger) {
+    this(
+        Suppliers.of(Preconditions.checkNotNull(rootDirectory)),
+        version,
+        segmentSize,
+        maxSizeBytes,
+        cacheErrorLogger);
+  }
+
+  /**
+   * Instantiates a packed disk storage whose root directory is only resolved when the storage is
+   * first used, which usually happens on a background thread.
+   */
+  public PackedDiskStorage(
+      Supplier<File> rootDirectorySupplier,
+      int version,
+      int segmentSize,
+      long maxSizeBytes,
+      CacheErrorLogger cacheErrorLogger) {
+    Preconditions.checkArgument(segmentSize > RECORD_HEADER_SIZE);
+    mRootDirectorySupplier = Preconditions.checkNotNull(rootDirectorySupplier);
+    mVersion = version;
+    mSegmentSize = segmentSize;
+    mMaxSizeBytes = maxSizeBytes;
+    mCacheErrorLogger = cacheErrorLogger;
+    mClock = SystemClock.get();
+  }
+
+  @VisibleForTesting
+  static String getVersionSubdirectoryName(int version) {
+    return String.format((Locale) null, "packed.v1.%d", version);
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return true;
+  }
+
+  @Override
+  public synchronized boolean isExternal() {
+    ensureInitialized();
+    return mIsExternal;
+  }
+
+  @Override
+  public String getStorageName() {
+    String directoryName = getRootDirectory().getAbsolutePath();
+    return "_" + directoryName.substring(directoryName.lastIndexOf('/') + 1, directoryName.length())
+        + "_" + directoryName.hashCode();
+  }
+
+  @Override
+  public synchronized @Nullable BinaryResource getResource(String resourceId, Object debugInfo) {
+    ensureInitialized();
+    Location location = mIndex.get(resourceId);
+    if (location == null) {
+      return null;
+    }
+    updateTimestamp(location, mClock.now());
+    return location.createResource();
+  }
+
+  @Override
+  public synchronized boolean contains(String resourceId, Object debugInfo) {
+    ensureInitialized();
+    return mIndex.containsKey(resourceId);
+  }
+
+  @Override
+  public synchronized boolean touch(String resourceId, Object debugInfo) {
+    ensureInitialized();
+    Location location = mIndex.get(resourceId);
+    if (location == null) {
+      return false;
+    }
+    updateTimestamp(location, mClock.now());
+    return true;
+  }
+
+  @Override
+  public synchronized void purgeUnexpectedResources() {
+    ensureInitialized();
+    File versionDirectory = getVersionDirectory();
+    File[] rootFiles = getRootDirectory().listFiles();
+    if (rootFiles != null) {
+      for (File file : rootFiles) {
+        if (!file.equals(versionDirectory)) {
+          FileTree.deleteRecursively(file);
+        }
+      }
+    }
+    File[] files = versionDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        Integer number = getSegmentNumber(file);
+        Segment segment = number == null ? null : mSegments.get(number);
+        if (segment == null || !segment.file.equals(file)) {
+          FileTree.deleteRecursively(file);
+        }
+      }
+    }
+  }
+
+  @Override
+  public Inserter insert(String resourceId, Object debugInfo) {
+    return new InserterImpl(resourceId);
+  }
+
+  @Override
+  public synchronized List<Entry> getEntries() {
+    ensureInitialized();
+    List<Entry> entries = new ArrayList<>(mIndex.size());
+    for (Map.Entry<String, Location> indexEntry : mIndex.entrySet()) {
+      entries.add(new EntryImpl(indexEntry.getKey(), indexEntry.getValue()));
+    }
+    return entries;
+  }
+
+  @Override
+  public long remove(Entry entry) {
+    return remove(entry.getId());
+  }
+
+  @Override
+  public long remove(String resourceId) {
+    long removedBytes;
+    synchronized (this) {
+      ensureInitialized();
+      Location location = mIndex.remove(resourceId);
+      if (location == null) {
+        return 0;
+      }
+      markDeleted(location);
+      removedBytes = location.dataLength;
+    }
+    compactIncrementally();
+    return removedBytes;
+  }
+
+  @Override
+  public synchronized void clearAll() {
+    mIndex.clear();
+    mSegments.clear();
+    mActiveSegment = null;
+    FileTree.deleteContents(getVersionDirectory());
+  }
+
+  @Override
+  public DiskDumpInfo getDumpInfo() throws IOException {
+    List<Entry> entries = getEntries();
+    DiskDumpInfo dumpInfo = new DiskDumpInfo();
+    for (Entry entry : entries) {
+      EntryImpl entryImpl = (EntryImpl) entry;
+      byte[] bytes = entryImpl.getResource().read();
+      String type = DefaultDiskStorage.typeOfBytes(bytes);
+      String firstBits = "";
+      if (type.equals("undefined") && bytes.length >= 4) {
+        firstBits = String.format(
+            (Locale) null, "0x%02X 0x%02X 0x%02X 0x%02X", bytes[0], bytes[1], bytes[2], bytes[3]);
+      }
+      String path = entryImpl.location.segment.file.getPath() + "@" + entryImpl.location.offset;
+      if (!dumpInfo.typeCounts.containsKey(type)) {
+        dumpInfo.typeCounts.put(type, 0);
+      }
+      dumpInfo.typeCounts.put(type, dumpInfo.typeCounts.get(type) + 1);
+      dumpInfo.entries.add(new DiskDumpInfoEntry(path, type, entryImpl.getSize(), firstBits));
+    }
+    return dumpInfo;
+  }
+
+  /** Returns the number of segment files. */
+  @VisibleForTesting
+  synchronized int getSegmentCount() {
+    return mSegments.size();
+  }
+
+  private synchronized File getRootDirectory() {
+    if (mRootDirectory == null) {
+      mRootDirectory = mRootDirectorySupplier.get();
+      mVersionDirectory = new File(mRootDirectory, getVersionSubdirectoryName(mVersion));
+    }
+    return mRootDirectory;
+  }
+
+  private synchronized File getVersionDirectory() {
+    getRootDirectory();
+    return mVersionDirectory;
+  }
+
+  /**
+   * Creates the directories and indexes the existing segments, the first time the storage is used.
+   */
+  @GuardedBy("this")
+  private void ensureInitialized() {
+    if (mIsInitialized) {
+      return;
+    }
+    mIsInitialized = true;
+    File rootDirectory = getRootDirectory();
+    File versionDirectory = getVersionDirectory();
+    mIsExternal = DefaultDiskStorage.isExternal(rootDirectory, mCacheErrorLogger);
+    if (!versionDirectory.exists()) {
+      // the content of other versions cannot be read anyway
+      FileTree.deleteRecursively(rootDirectory);
+      try {
+        FileUtils.mkdirs(versionDirectory);
+      } catch (FileUtils.CreateDirectoryException cde) {
+        mCacheErrorLogger.logError(
+            CacheErrorLogger.CacheErrorCategory.WRITE_CREATE_DIR,
+            TAG,
+            "version directory could not be created: " + versionDirectory,
+            null);
+      }
+      return;
+    }
+    File[] files = versionDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    TreeMap<Integer, File> segmentFiles = new TreeMap<>();
+    for (File file : files) {
+      Integer number = getSegmentNumber(file);
+      if (number != null) {
+        segmentFiles.put(number, file);
+      }
+    }
+    // later records of an id override earlier ones, so the segments are loaded in order
+    for (Map.Entry<Integer, File> segmentFile : segmentFiles.entrySet()) {
+      try {
+        loadSegment(segmentFile.getKey(), segmentFile.getValue());
+      } catch (IOException ioe) {
+        mCacheErrorLogger.logError(
+            CacheErrorLogger.CacheErrorCategory.READ_FILE,
+            TAG,
+            "failed to load segment " + segmentFile.getValue(),
+            ioe);
+        segmentFile.getValue().delete();
+      }
+    }
+    if (!mSegments.isEmpty()) {
+      mActiveSegment = mSegments.lastEntry().getValue();
+    }
+  }
+
+  @GuardedBy("this")
+  private void loadSegment(int number, File file) throws IOException {
+    Segment segment = mapSegment(number, file, (int) file.length());
+    ByteBuffer buffer = segment.buffer;
+    int capacity = buffer.capacity();
+    int position = 0;
+    while (position + RECORD_HEADER_SIZE <= capacity &&
+        buffer.getInt(position) == RECORD_MAGIC) {
+      int dataLength = buffer.getInt(position + DATA_LENGTH_OFFSET);
+      int idLength = buffer.getShort(position + ID_LENGTH_OFFSET) & MAX_ID_LENGTH;
+      long end = (long) position + RECORD_HEADER_SIZE + idLength + dataLength;
+      if (dataLength < 0 || end > capacity) {
+        break;
+      }
+      if (buffer.get(position + STATE_OFFSET) == STATE_LIVE) {
+        String id = readId(buffer, position, idLength);
+        Location location = new Location(
+            segment,
+            position,
+            position + RECORD_HEADER_SIZE + idLength,
+            dataLength,
+            buffer.getLong(position + TIMESTAMP_OFFSET));
+        segment.liveBytes += location.getRecordLength();
+        Location previous = mIndex.put(id, location);
+        if (previous != null) {
+          // the app died between writing the new record and deleting the old one
+          markDeleted(previous);
+        }
+      }
+      position = (int) end;
+    }
+    segment.writePosition = position;
+    if (position + 4 <= capacity && buffer.getInt(position) != 0) {
+      // leftovers of an interrupted write, which must not be mistaken for records later on
+      zero(buffer, position, capacity);
+    }
+    mSegments.put(number, segment);
+  }
+
+  private static String readId(ByteBuffer buffer, int recordOffset, int idLength) {
+    byte[] idBytes = new byte[idLength];
+    ByteBuffer duplicate = buffer.duplicate();
+    duplicate.position(recordOffset + RECORD_HEADER_SIZE);
+    duplicate.get(idBytes);
+    return new String(idBytes, UTF_8);
+  }
+
+  private static void zero(ByteBuffer buffer, int start, int end) {
+    ByteBuffer range = buffer.duplicate();
+    range.position(start);
+    range.limit(end);
+    byte[] zeros = new byte[Math.min(range.remaining(), 4 * ByteConstants.KB)];
+    while (range.hasRemaining()) {
+      range.put(zeros, 0, Math.min(zeros.length, range.remaining()));
+    }
+  }
+
+  @Nullable
+  private static Integer getSegmentNumber(File file) {
+    String name = file.getName();
+    if (!file.isFile() || !name.endsWith(SEGMENT_FILE_EXTENSION)) {
+      return null;
+    }
+    try {
+      return Integer.parseInt(name.substring(0, name.length() - SEGMENT_FILE_EXTENSION.length()));
+    } catch (NumberFormatException nfe) {
+      return null;
+    }
+  }
+
+  private static Segment mapSegment(int number, File file, int capacity) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      // mapping beyond the end of the file grows it to the requested capacity
+      MappedByteBuffer buffer =
+          randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      return new Segment(number, file, buffer);
+    } finally {
+      // the mapping stays valid after the channel is closed
+      randomAccessFile.close();
+    }
+  }
+
+  private static byte[] getIdBytes(String resourceId) {
+    byte[] idBytes = resourceId.getBytes(UTF_8);
+    Preconditions.checkArgument(idBytes.length <= MAX_ID_LENGTH);
+    return idBytes;
+  }
+
+  /** Returns the active segment, after starting a new one if it has less than the given room. */
+  @GuardedBy("this")
+  private Segment reserve(long length) throws IOException {
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("entry too large: " + length);
+    }
+    if (mActiveSegment == null || mActiveSegment.getRemaining() < length) {
+      startSegment(Math.max(mSegmentSize, (int) length));
+    }
+    return mActiveSegment;
+  }
+
+  @GuardedBy("this")
+  private Segment startSegment(int capacity) throws IOException {
+    int number = mSegments.isEmpty() ? 0 : mSegments.lastKey() + 1;
+    File versionDirectory = getVersionDirectory();
+    FileUtils.mkdirs(versionDirectory);
+    mActiveSegment =
+        mapSegment(number, new File(versionDirectory, number + SEGMENT_FILE_EXTENSION), capacity);
+    mSegments.put(number, mActiveSegment);
+    return mActiveSegment;
+  }
+
+  private static void writeHeader(
+      ByteBuffer buffer,
+      int offset,
+      long timestamp,
+      int dataLength,
+      byte[] idBytes) {
+    ByteBuffer header = buffer.duplicate();
+    header.position(offset);
+    header.putInt(RECORD_MAGIC)
+        .put(STATE_PENDING)
+        .putLong(timestamp)
+        .putInt(dataLength)
+        .putShort((short) idBytes.length)
+        .put(idBytes);
+  }
+
+  /** Appends a complete pending record to the active segment. */
+  @GuardedBy("this")
+  private Location appendPending(byte[] idBytes, ByteBuffer data, long timestamp)
+      throws IOException {
+    int dataLength = data.remaining();
+    Segment segment = reserve((long) RECORD_HEADER_SIZE + idBytes.length + dataLength);
+    int offset = segment.writePosition;
+    writeHeader(segment.buffer, offset, timestamp, dataLength, idBytes);
+    ByteBuffer buffer = segment.buffer.duplicate();
+    buffer.position(offset + RECORD_HEADER_SIZE + idBytes.length);
+    buffer.put(data);
+    return segment.addPending(offset, idBytes.length, dataLength, timestamp);
+  }
+
+  /**
+   * Indexes a pending record whose data has been forced to disk, replacing the previous record of
+   * the id if any.
+   *
+   * @return false if the segment has been deleted in the meantime
+   */
+  @GuardedBy("this")
+  private boolean markLive(String resourceId, Location location) {
+    Segment segment = location.segment;
+    segment.pendingCount--;
+    if (mSegments.get(segment.number) != segment) {
+      return false;
+    }
+    segment.buffer.put(location.offset + STATE_OFFSET, STATE_LIVE);
+    Location previous = mIndex.put(resourceId, location);
+    if (previous != null) {
+      markDeleted(previous);
+    }
+    return true;
+  }
+
+  @GuardedBy("this")
+  private void discardPending(Location location) {
+    location.segment.pendingCount--;
+    markDeleted(location);
+  }
+
+  @GuardedBy("this")
+  private void updateTimestamp(Location location, long timestamp) {
+    location.timestamp = timestamp;
+    location.segment.buffer.putLong(location.offset + TIMESTAMP_OFFSET, timestamp);
+  }
+
+  @GuardedBy("this")
+  private void markDeleted(Location location) {
+    location.segment.buffer.put(location.offset + STATE_OFFSET, STATE_DELETED);
+    location.segment.liveBytes -= location.getRecordLength();
+  }
+
+  private BinaryResource commit(String resourceId, Location location) throws IOException {
+    // the data must be on disk before the record is marked as live
+    location.segment.buffer.force();
+    BinaryResource resource;
+    synchronized (this) {
+      if (!markLive(resourceId, location)) {
+        throw new IOException("storage cleared while inserting " + resourceId);
+      }
+      resource = location.createResource();
+    }
+    compactIncrementally();
+    return resource;
+  }
+
+  /**
+   * Returns the segment to compact: the one with the smallest share of live bytes, if small enough.
+   * The active segment and segments with records being written are never compacted.
+   */
+  @GuardedBy("this")
+  @Nullable
+  private Segment findCompactionCandidate() {
+    Segment candidate = null;
+    long totalBytes = 0;
+    for (Segment segment : mSegments.values()) {
+      totalBytes += segment.buffer.capacity();
+      if (segment != mActiveSegment &&
+          segment.pendingCount == 0 &&
+          (candidate == null || segment.getLiveRatio() < candidate.getLiveRatio())) {
+        candidate = segment;
+      }
+    }
+    if (candidate == null) {
+      return null;
+    }
+    float maxLiveRatio = totalBytes > mMaxSizeBytes + mSegmentSize
+        ? OVER_BUDGET_COMPACTION_MAX_LIVE_RATIO
+        : COMPACTION_MAX_LIVE_RATIO;
+    return candidate.getLiveRatio() < maxLiveRatio ? candidate : null;
+  }
+
+  /**
+   * Copies some of the live records of the segment being compacted to the active segment, and
+   * deletes the segment once all of its records have been moved. The storage lock is released
+   * between records, so that readers are not blocked for the whole copy.
+   */
+  private void compactIncrementally() {
+    synchronized (mAppendLock) {
+      int scannedBytes = 0;
+      while (scannedBytes < COMPACTION_STEP_BYTES) {
+        String id;
+        Location original;
+        Location copy;
+        synchronized (this) {
+          Segment segment = mCompactingSegment;
+          if (segment == null || mSegments.get(segment.number) != segment) {
+            segment = mCompactingSegment = findCompactionCandidate();
+            mCompactionPosition = 0;
+            if (segment == null) {
+              return;
+            }
+          }
+          if (mCompactionPosition >= segment.writePosition) {
+            deleteSegment(segment);
+            mCompactingSegment = null;
+            continue;
+          }
+          int position = mCompactionPosition;
+          ByteBuffer buffer = segment.buffer;
+          int dataLength = buffer.getInt(position + DATA_LENGTH_OFFSET);
+          int idLength = buffer.getShort(position + ID_LENGTH_OFFSET) & MAX_ID_LENGTH;
+          int dataOffset = position + RECORD_HEADER_SIZE + idLength;
+          mCompactionPosition = dataOffset + dataLength;
+          scannedBytes += mCompactionPosition - position;
+          if (buffer.get(position + STATE_OFFSET) != STATE_LIVE) {
+            continue;
+          }
+          id = readId(buffer, position, idLength);
+          original = mIndex.get(id);
+          if (original == null || original.segment != segment || original.offset != position) {
+            continue;
+          }
+          ByteBuffer data = buffer.duplicate();
+          data.position(dataOffset);
+          data.limit(dataOffset + dataLength);
+          try {
+            copy = appendPending(getIdBytes(id), data, original.timestamp);
+          } catch (IOException ioe) {
+            mCacheErrorLogger.logError(
+                CacheErrorLogger.CacheErrorCategory.WRITE_INVALID_ENTRY,
+                TAG,
+                "failed to compact segment " + segment.file,
+                ioe);
+            mCompactingSegment = null;
+            return;
+          }
+        }
+        copy.segment.buffer.force();
+        synchronized (this) {
+          if (mIndex.get(id) == original) {
+            markLive(id, copy);
+          } else {
+            // removed or overwritten while being copied
+            discardPending(copy);
+          }
+        }
+      }
+    }
+  }
+
+  @GuardedBy("this")
+  private void deleteSegment(Segment segment) {
+    mSegments.remove(segment.number);
+    if (!segment.file.delete()) {
+      mCacheErrorLogger.logError(
+          CacheErrorLogger.CacheErrorCategory.DELETE_FILE,
+          TAG,
+          "failed to delete segment " + segment.file,
+          null);
+    }
+  }
+
+  private static class Segment {
+    final int number;
+    final File file;
+    final MappedByteBuffer buffer;
+    // guarded by the storage
+    int writePosition;
+    int liveBytes;
+    int pendingCount;
+
+    Segment(int number, File file, MappedByteBuffer buffer) {
+      this.number = number;
+      this.file = file;
+      this.buffer = buffer;
+    }
+
+    int getRemaining() {
+      return buffer.capacity() - writePosition;
+    }
+
+    float getLiveRatio() {
+      return (float) liveBytes / buffer.capacity();
+    }
+
+    /** Accounts for a pending record written at the write position. */
+    Location addPending(int offset, int idLength, int dataLength, long timestamp) {
+      Location location = new Location(
+          this,
+          offset,
+          offset + RECORD_HEADER_SIZE + idLength,
+          dataLength,
+          timestamp);
+      writePosition = offset + location.getRecordLength();
+      liveBytes += location.getRecordLength();
+      pendingCount++;
+      return location;
+    }
+  }
+
+  private static class Location {
+    final Segment segment;
+    final int offset;
+    final int dataOffset;
+    final int dataLength;
+    long timestamp;
+
+    Location(Segment segment, int offset, int dataOffset, int dataLength, long timestamp) {
+      this.segment = segment;
+      this.offset = offset;
+      this.dataOffset = dataOffset;
+      this.dataLength = dataLength;
+      this.timestamp = timestamp;
+    }
+
+    int getRecordLength() {
+      return dataOffset + dataLength - offset;
+    }
+
+    BinaryResource createResource() {
+      ByteBuffer buffer = segment.buffer.duplicate();
+      buffer.position(dataOffset);
+      buffer.limit(dataOffset + dataLength);
+      return new ByteBufferBinaryResource(buffer);
+    }
+  }
+
+  private static class EntryImpl implements Entry {
+    private final String id;
+    private final Location location;
+    private final long timestamp;
+
+    private EntryImpl(String id, Location location) {
+      this.id = id;
+      this.location = location;
+      this.timestamp = location.timestamp;
+    }
+
+    @Override
+    public String getId() {
+      return id;
+    }
+
+    @Override
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    @Override
+    public long getSize() {
+      return location.dataLength;
+    }
+
+    @Override
+    public BinaryResource getResource() {
+      return location.createResource();
+    }
+  }
+
+  private class InserterImpl implements Inserter {
+
+    private final String mResourceId;
+    private @Nullable Location mPendingLocation;
+
+    InserterImpl(String resourceId) {
+      mResourceId = resourceId;
+    }
+
+    @Override
+    public void writeData(WriterCallback callback, Object debugInfo) throws IOException {
+      cleanUp();
+      synchronized (mAppendLock) {
+        RecordOutputStream outputStream = new RecordOutputStream(getIdBytes(mResourceId));
+        boolean isComplete = false;
+        try {
+          callback.write(outputStream);
+          isComplete = true;
+        } catch (IOException ioe) {
+          mCacheErrorLogger.logError(
+              CacheErrorLogger.CacheErrorCategory.WRITE_CALLBACK_ERROR,
+              TAG,
+              "updateResource",
+              ioe);
+          throw ioe;
+        } finally {
+          if (isComplete) {
+            mPendingLocation = outputStream.finish();
+          } else {
+            outputStream.abandon();
+          }
+        }
+      }
+    }
+
+    @Override
+    public BinaryResource commit(Object debugInfo) throws IOException {
+      if (mPendingLocation == null) {
+        throw new IOException("no data written for " + mResourceId);
+      }
+      Location location = mPendingLocation;
+      mPendingLocation = null;
+      return PackedDiskStorage.this.commit(mResourceId, location);
+    }
+
+    @Override
+    public boolean cleanUp() {
+      if (mPendingLocation != null) {
+        synchronized (PackedDiskStorage.this) {
+          discardPending(mPendingLocation);
+        }
+        mPendingLocation = null;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Streams a record into the active segment, holding the append lock. The header is written
+   * upfront with an unknown data length, so that the record is discarded at startup if the app
+   * dies before it is complete. A record that outgrows the active segment is moved to a new,
+   * larger one.
+   */
+  private class RecordOutputStream extends OutputStream {
+
+    private final byte[] mIdBytes;
+    private Segment mSegment;
+    private int mOffset;
+    private int mPosition;
+
+    RecordOutputStream(byte[] idBytes) throws IOException {
+      mIdBytes = idBytes;
+      synchronized (PackedDiskStorage.this) {
+        ensureInitialized();
+        mSegment = reserve(RECORD_HEADER_SIZE + idBytes.length);
+        mOffset = mSegment.writePosition;
+        writeHeader(mSegment.buffer, mOffset, 0, UNKNOWN_DATA_LENGTH, idBytes);
+      }
+      mPosition = mOffset + RECORD_HEADER_SIZE + idBytes.length;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      ensureCapacity(1);
+      mSegment.buffer.put(mPosition, (byte) b);
+      mPosition++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ensureCapacity(len);
+      ByteBuffer buffer = mSegment.buffer.duplicate();
+      buffer.position(mPosition);
+      buffer.put(b, off, len);
+      mPosition += len;
+    }
+
+    private void ensureCapacity(int count) throws IOException {
+      if ((long) mPosition + count <= mSegment.buffer.capacity()) {
+        return;
+      }
+      long recordLength = (long) mPosition - mOffset + count;
+      if (recordLength > Integer.MAX_VALUE) {
+        throw new IOException("entry too large: " + recordLength);
+      }
+      synchronized (PackedDiskStorage.this) {
+        // what has been written to the previous segment lies past its write position, behind a
+        // header of unknown length, and is ignored
+        Segment segment = startSegment(
+            (int) Math.min(Math.max(mSegmentSize, 2 * recordLength), Integer.MAX_VALUE));
+        ByteBuffer written = mSegment.buffer.duplicate();
+        written.position(mOffset);
+        written.limit(mPosition);
+        ByteBuffer target = segment.buffer.duplicate();
+        target.put(written);
+        mPosition -= mOffset;
+        mOffset = 0;
+        mSegment = segment;
+      }
+    }
+
+    /** Completes the header, and returns the location of the pending record. */
+    Location finish() {
+      synchronized (PackedDiskStorage.this) {
+        int dataLength = mPosition - mOffset - RECORD_HEADER_SIZE - mIdBytes.length;
+        long timestamp = mClock.now();
+        mSegment.buffer.putLong(mOffset + TIMESTAMP_OFFSET, timestamp);
+        mSegment.buffer.putInt(mOffset + DATA_LENGTH_OFFSET, dataLength);
+        return mSegment.addPending(mOffset, mIdBytes.length, dataLength, timestamp);
+      }
+    }
+
+    /** Erases what has been written, so that the space can be reused. */
+    void abandon() {
+      synchronized (PackedDiskStorage.this) {
+        zero(mSegment.buffer, mOffset, mPosition);
+      }
+    }
+  }
+}
@@ -34,6 +34,22 @@ public class BitmapCountingMemoryCacheFactory {
      PlatformBitmapFactory platformBitmapFactory,
      boolean isExternalCreatedBitmapLogEnabled,
      CountingMemoryCache.CacheTrimStrategy trimStrategy) {
+    return get(
+        bitmapMemoryCacheParamsSupplier,
+        memoryTrimmableRegistry,
+        platformBitmapFactory,
+        isExternalCreatedBitmapLogEnabled,
+        trimStrategy,
+        CountingMemoryCacheOptions.<CacheKey>defaults());
+  }
+
+  public static CountingMemoryCache<CacheKey, CloseableImage> get(
+     Supplier<MemoryCacheParams> bitmapMemoryCacheParamsSupplier,
+     MemoryTrimmableRegistry memoryTrimmableRegistry,
+     PlatformBitmapFactory platformBitmapFactory,
+     boolean isExternalCreatedBitmapLogEnabled,
+     CountingMemoryCache.CacheTrimStrategy trimStrategy,
+     CountingMemoryCacheOptions<CacheKey> options) {
 
     ValueDescriptor<CloseableImage> valueDescriptor =
         new ValueDescriptor<CloseableImage>() {
@@ -43,13 +59,26 @@ public class BitmapCountingMemoryCacheFactory {
           }
         };
 
-    CountingMemoryCache<CacheKey, CloseableImage> countingCache =
-        new CountingMemoryCache<>(
-            valueDescriptor,
-            trimStrategy,
-            bitmapMemoryCacheParamsSupplier,
-            platformBitmapFactory,
-            isExternalCreatedBitmapLogEnabled);
+    CountingMemoryCache<CacheKey, CloseableImage> countingCache;
+    if (options.getSegmentCount() > 1) {
+      countingCache =
+          new SegmentedCountingMemoryCache<>(
+              valueDescriptor,
+              trimStrategy,
+              bitmapMemoryCacheParamsSupplier,
+              platformBitmapFactory,
+              isExternalCreatedBitmapLogEnabled,
+              options.getSegmentCount());
+    } else {
+      countingCache =
+          new CountingMemoryCache<>(
+              valueDescriptor,
+              trimStrategy,
+              bitmapMemoryCacheParamsSupplier,
+              platformBitmapFactory,
+              isExternalCreatedBitmapLogEnabled,
+              options.getEvictionPolicy());
+    }
 
      memoryTrimmableRegistry.registerMemoryTrimmable(countingCache);
 
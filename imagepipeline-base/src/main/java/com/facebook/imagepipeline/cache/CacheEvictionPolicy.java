@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import javax.annotation.Nullable;
+
+/**
+ * Policy used by {@link CountingMemoryCache} to decide which of the exclusively owned entries
+ * gets evicted next.
+ *
+ * <p> All the methods are called while holding the cache lock, so implementations do not need to
+ * be thread-safe, but they must not call back into the cache.
+ *
+ * @param <K> the key type
+ */
+public interface CacheEvictionPolicy<K> {
+
+  /**
+   * Called on every lookup of the given key.
+   *
+   * @param isCached whether the key was found in the cache, in which case its entry is now in use
+   */
+  void onAccess(K key, boolean isCached);
+
+  /**
+   * Called when a value for the given key has been inserted into the cache. The entry is in use by
+   * the client that inserted it.
+   */
+  void onInsert(K key);
+
+  /**
+   * Called when the last client of the entry of the given key has released it, so that the entry
+   * is exclusively owned by the cache and can be evicted. Entries stay exclusively owned until the
+   * next access or insertion of their key.
+   */
+  void onExclusive(K key);
+
+  /** Called when the cache no longer tracks the given key. */
+  void onRemove(K key);
+
+  /**
+   * Selects the next entry to evict. The cache still calls {@link #onRemove} for the selected key
+   * once evicted.
+   *
+   * @param exclusiveEntries the entries that can be evicted, in LRU order
+   * @return a key contained in <code>exclusiveEntries</code>, or null to fall back to the least
+   *     recently used entry
+   */
+  @Nullable
+  K selectVictim(CountingLruMap<K, ?> exclusiveEntries);
+}
@@ -19,6 +19,8 @@ import com.facebook.common.references.CloseableReference;
 import com.facebook.common.references.ResourceReleaser;
 import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
 import java.util.concurrent.TimeUnit;
@@ -30,7 +32,7 @@ import javax.annotation.concurrent.ThreadSafe;
  * Layer of memory cache stack responsible for managing eviction of the the cached items.
  *
  * <p> This layer is responsible for LRU eviction strategy and for maintaining the size boundaries
- * of the cached items.
+ * of the cached items. The eviction order can be customized with a {@link CacheEvictionPolicy}.
  *
  * <p> Only the exclusively owned elements, i.e. the elements not referenced by any client, can be
  * evicted.
@@ -94,6 +96,32 @@ public class CountingMemoryCache<K, V> implements MemoryCache<K, V>, MemoryTrimm
     }
   }
 
+  /**
+   * A cached item as seen by {@link #getEntrySnapshots()}, for tools that inspect the content of
+   * the cache.
+   */
+  public static class EntrySnapshot<K, V> {
+    public final K key;
+    // A clone of the cached reference, to be closed by the caller.
+    public final CloseableReference<V> valueRef;
+    // Whether the item was used by at least one client.
+    public final boolean isShared;
+
+    @VisibleForTesting
+    EntrySnapshot(K key, CloseableReference<V> valueRef, boolean isShared) {
+      this.key = key;
+      this.valueRef = valueRef;
+      this.isShared = isShared;
+    }
+
+    static <K, V> EntrySnapshot<K, V> of(Entry<K, V> entry) {
+      return new EntrySnapshot<>(
+          entry.key,
+          Preconditions.checkNotNull(CloseableReference.cloneOrNull(entry.valueRef)),
+          entry.clientCount > 0);
+    }
+  }
+
   // How often the cache checks for a new cache configuration.
   @VisibleForTesting
   static final long PARAMS_INTERCHECK_INTERVAL_MS = TimeUnit.MINUTES.toMillis(5);
@@ -123,13 +151,35 @@ public class CountingMemoryCache<K, V> implements MemoryCache<K, V>, MemoryTrimm
   @GuardedBy("this")
   private long mLastCacheParamsCheck;
 
+  // Decides the eviction order; plain LRU if null.
+  @GuardedBy("this")
+  @Nullable
+  private final CacheEvictionPolicy<K> mEvictionPolicy;
+
   public CountingMemoryCache(
       ValueDescriptor<V> valueDescriptor,
       CacheTrimStrategy cacheTrimStrategy,
       Supplier<MemoryCacheParams> memoryCacheParamsSupplier,
       PlatformBitmapFactory platformBitmapFactory,
       boolean isExternalCreatedBitmapLogEnabled) {
+    this(
+        valueDescriptor,
+        cacheTrimStrategy,
+        memoryCacheParamsSupplier,
+        platformBitmapFactory,
+        isExternalCreatedBitmapLogEnabled,
+        null);
+  }
+
+  public CountingMemoryCache(
+      ValueDescriptor<V> valueDescriptor,
+      CacheTrimStrategy cacheTrimStrategy,
+      Supplier<MemoryCacheParams> memoryCacheParamsSupplier,
+      PlatformBitmapFactory platformBitmapFactory,
+      boolean isExternalCreatedBitmapLogEnabled,
+      @Nullable CacheEvictionPolicy<K> evictionPolicy) {
     mValueDescriptor = valueDescriptor;
+    mEvictionPolicy = evictionPolicy;
     mExclusiveEntries = new CountingLruMap<>(wrapValueDescriptor(valueDescriptor));
     mCachedEntries = new CountingLruMap<>(wrapValueDescriptor(valueDescriptor));
     mCacheTrimStrategy = cacheTrimStrategy;
@@ -205,6 +255,11 @@ public class CountingMemoryCache<K, V> implements MemoryCache<K, V>, MemoryTrimm
         Entry<K, V> newEntry = Entry.of(key, valueRef, observer);
         mCachedEntries.put(key, newEntry);
         clientRef = newClientReference(newEntry);
+        if (mEvictionPolicy != null) {
+          mEvictionPolicy.onInsert(key);
+        }
+      } else if (oldEntry != null && mEvictionPolicy != null) {
+        mEvictionPolicy.onRemove(key);
       }
     }
     CloseableReference.closeSafely(oldRefToClose);
@@ -238,6 +293,9 @@ public class CountingMemoryCache<K, V> implements MemoryCache<K, V>, MemoryTrimm
       if (entry != null) {
         clientRef = newClientReference(entry);
       }
+      if (mEvictionPolicy != null) {
+        mEvictionPolicy.onAccess(key, entry != null);
+      }
     }
     maybeNotifyExclusiveEntryRemoval(oldExclusive);
     maybeUpdateCacheParams();
@@ -278,6 +336,9 @@ public class CountingMemoryCache<K, V> implements MemoryCache<K, V>, MemoryTrimm
   private synchronized boolean maybeAddToExclusives(Entry<K, V> entry) {
     if (!entry.isOrphan && entry.clientCount == 0) {
       mExclusiveEntries.put(entry.key, entry);
+      if (mEvictionPolicy != null) {
+        mEvictionPolicy.onExclusive(entry.key);
+      }
       return true;
     }
     return false;
@@ -304,6 +365,9 @@ public class CountingMemoryCache<K, V> implements MemoryCache<K, V>, MemoryTrimm
         // we just do a move
         clientRef = entry.valueRef;
         removed = true;
+        if (mEvictionPolicy != null) {
+          mEvictionPolicy.onRemove(key);
+        }
       }
     }
     if (removed) {
@@ -325,6 +389,7 @@ public class CountingMemoryCache<K, V> implements MemoryCache<K, V>, MemoryTrimm
       oldExclusives = mExclusiveEntries.removeAll(predicate);
       oldEntries = mCachedEntries.removeAll(predicate);
       makeOrphans(oldEntries);
+      maybeNotifyPolicyOfRemoval(oldEntries);
     }
     maybeClose(oldEntries);
     maybeNotifyExclusiveEntryRemoval(oldExclusives);
@@ -341,6 +406,7 @@ public class CountingMemoryCache<K, V> implements MemoryCache<K, V>, MemoryTrimm
       oldExclusives = mExclusiveEntries.clear();
       oldEntries = mCachedEntries.clear();
       makeOrphans(oldEntries);
+      maybeNotifyPolicyOfRemoval(oldEntries);
     }
     maybeClose(oldEntries);
     maybeNotifyExclusiveEntryRemoval(oldExclusives);
@@ -364,6 +430,7 @@ public class CountingMemoryCache<K, V> implements MemoryCache<K, V>, MemoryTrimm
    * @param key returns true if an item with the given key matches
    * @return true is any items matches from the cache
    */
+  @Override
   public synchronized boolean contains(K key) {
     return mCachedEntries.contains(key);
   }
@@ -435,13 +502,29 @@ public class CountingMemoryCache<K, V> implements MemoryCache<K, V>, MemoryTrimm
     }
     ArrayList<Entry<K, V>> oldEntries = new ArrayList<>();
     while (mExclusiveEntries.getCount() > count || mExclusiveEntries.getSizeInBytes() > size) {
-      K key = mExclusiveEntries.getFirstKey();
+      K key = null;
+      if (mEvictionPolicy != null) {
+        key = mEvictionPolicy.selectVictim(mExclusiveEntries);
+      }
+      if (key == null) {
+        key = mExclusiveEntries.getFirstKey();
+      }
       mExclusiveEntries.remove(key);
       oldEntries.add(mCachedEntries.remove(key));
     }
+    maybeNotifyPolicyOfRemoval(oldEntries);
     return oldEntries;
   }
 
+  /** Tells the eviction policy (if any) that the given entries are no longer tracked. */
+  private synchronized void maybeNotifyPolicyOfRemoval(@Nullable ArrayList<Entry<K, V>> entries) {
+    if (mEvictionPolicy != null && entries != null) {
+      for (Entry<K, V> entry : entries) {
+        mEvictionPolicy.onRemove(entry.key);
+      }
+    }
+  }
+
   /**
    * Notifies the client that the cache no longer tracks the given items.
    *
@@ -513,6 +596,40 @@ public class CountingMemoryCache<K, V> implements MemoryCache<K, V>, MemoryTrimm
     return (entry.isOrphan && entry.clientCount == 0) ? entry.valueRef : null;
   }
 
+  /** Gets the cache constraints currently in effect. */
+  public synchronized MemoryCacheParams getMemoryCacheParams() {
+    return mMemoryCacheParams;
+  }
+
+  /**
+   * Gets a snapshot of all the currently cached items, in LRU order.
+   *
+   * <p> It is the caller's responsibility to close the value references of the snapshots.
+   */
+  public synchronized List<EntrySnapshot<K, V>> getEntrySnapshots() {
+    final List<Map.Entry<K, Entry<K, V>>> cachedEntries =
+        mCachedEntries.getMatchingEntries(null);
+    final List<EntrySnapshot<K, V>> snapshots = new ArrayList<>(cachedEntries.size());
+    for (Map.Entry<K, Entry<K, V>> cachedEntry : cachedEntries) {
+      snapshots.add(EntrySnapshot.of(cachedEntry.getValue()));
+    }
+    return snapshots;
+  }
+
+  /**
+   * Gets the bitmaps created outside of the cache that are still alive, with their caller context.
+   * Only tracked if the external created bitmap log is enabled.
+   */
+  public synchronized Map<Bitmap, Object> getOtherEntries() {
+    final Map<Bitmap, Object> otherEntries = new HashMap<>();
+    for (Map.Entry<Bitmap, Object> entry : mOtherEntries.entrySet()) {
+      if (entry != null && !entry.getKey().isRecycled()) {
+        otherEntries.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return otherEntries;
+  }
+
   /** Gets the total number of all currently cached items. */
   public synchronized int getCount() {
     return mCachedEntries.getCount();
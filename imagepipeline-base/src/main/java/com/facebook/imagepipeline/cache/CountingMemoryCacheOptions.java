@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import com.facebook.common.internal.Preconditions;
+import javax.annotation.Nullable;
+
+/**
+ * Options of the {@link CountingMemoryCache} created by the memory cache factories, beyond the
+ * size constraints of its {@link MemoryCacheParams}.
+ *
+ * <p> The eviction policy keeps the state of a single cache, so each cache needs its own options.
+ *
+ * @param <K> the key type
+ */
+public class CountingMemoryCacheOptions<K> {
+
+  private final int mSegmentCount;
+  private final @Nullable CacheEvictionPolicy<K> mEvictionPolicy;
+
+  private CountingMemoryCacheOptions(Builder<K> builder) {
+    mSegmentCount = builder.mSegmentCount;
+    mEvictionPolicy = builder.mEvictionPolicy;
+  }
+
+  /**
+   * Gets the options of a single-lock LRU cache.
+   */
+  public static <K> CountingMemoryCacheOptions<K> defaults() {
+    return CountingMemoryCacheOptions.<K>newBuilder().build();
+  }
+
+  public static <K> Builder<K> newBuilder() {
+    return new Builder<>();
+  }
+
+  /**
+   * Gets the number of segments. If greater than 1, a {@link SegmentedCountingMemoryCache} with
+   * this many segments is created.
+   */
+  public int getSegmentCount() {
+    return mSegmentCount;
+  }
+
+  /**
+   * Gets the eviction policy of the cache, LRU if null. Segmented caches are always LRU and ignore
+   * it.
+   */
+  @Nullable
+  public CacheEvictionPolicy<K> getEvictionPolicy() {
+    return mEvictionPolicy;
+  }
+
+  public static class Builder<K> {
+
+    private int mSegmentCount = 1;
+    private @Nullable CacheEvictionPolicy<K> mEvictionPolicy;
+
+    private Builder() {
+    }
+
+    public Builder<K> setSegmentCount(int segmentCount) {
+      Preconditions.checkArgument(segmentCount > 0);
+      mSegmentCount = segmentCount;
+      return this;
+    }
+
+    public Builder<K> setEvictionPolicy(@Nullable CacheEvictionPolicy<K> evictionPolicy) {
+      mEvictionPolicy = evictionPolicy;
+      return this;
+    }
+
+    public CountingMemoryCacheOptions<K> build() {
+      return new CountingMemoryCacheOptions<>(this);
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import com.facebook.common.internal.VisibleForTesting;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Probabilistic estimate of how often each key has been seen recently.
+ *
+ * <p> This is a count-min sketch with four 4-bit counters per key, packed sixteen to a long. Once
+ * the number of recorded events reaches ten times the capacity, all the counters are halved so
+ * that the history ages and keys that used to be popular can be replaced.
+ */
+@NotThreadSafe
+public class FrequencySketch {
+
+  @VisibleForTesting
+  static final int MAX_FREQUENCY = 15;
+
+  private static final int SAMPLE_SIZE_MULTIPLIER = 10;
+  private static final long[] SEEDS = {
+      0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final long ONE_MASK = 0x1111111111111111L;
+
+  private long[] mTable;
+  private int mTableMask;
+  private int mSampleSize;
+  private int mSize;
+
+  public FrequencySketch(int capacity) {
+    ensureCapacity(capacity);
+  }
+
+  /**
+   * Grows the sketch so that it can track the given number of keys accurately.
+   *
+   * <p> The recorded history is kept: a key is counted at the same positions of the new table
+   * modulo the size of the old one, so each slot of the new table starts with the counters of the
+   * old slot it maps to.
+   */
+  public void ensureCapacity(int capacity) {
+    int tableSize = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    if (mTable != null && mTable.length >= tableSize) {
+      return;
+    }
+    long[] table = new long[tableSize];
+    if (mTable != null) {
+      for (int i = 0; i < tableSize; i += mTable.length) {
+        System.arraycopy(mTable, 0, table, i, mTable.length);
+      }
+    }
+    mTable = table;
+    mTableMask = tableSize - 1;
+    mSampleSize = SAMPLE_SIZE_MULTIPLIER * tableSize;
+  }
+
+  /** Returns the estimated number of occurrences of the key, up to {@link #MAX_FREQUENCY}. */
+  public int frequency(Object key) {
+    int hash = spread(key.hashCode());
+    int start = (hash & 3) << 2;
+    int frequency = MAX_FREQUENCY;
+    for (int i = 0; i < 4; i++) {
+      int index = indexOf(hash, i);
+      int count = (int) ((mTable[index] >>> ((start + i) << 2)) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  /** Records an occurrence of the key. */
+  public void increment(Object key) {
+    int hash = spread(key.hashCode());
+    int start = (hash & 3) << 2;
+    boolean added = false;
+    for (int i = 0; i < 4; i++) {
+      added |= incrementAt(indexOf(hash, i), start + i);
+    }
+    if (added && ++mSize == mSampleSize) {
+      reset();
+    }
+  }
+
+  private boolean incrementAt(int index, int counter) {
+    int offset = counter << 2;
+    long mask = 0xfL << offset;
+    if ((mTable[index] & mask) != mask) {
+      mTable[index] += 1L << offset;
+      return true;
+    }
+    return false;
+  }
+
+  /** Halves all the counters. */
+  @VisibleForTesting
+  void reset() {
+    int oddCounters = 0;
+    for (int i = 0; i < mTable.length; i++) {
+      oddCounters += Long.bitCount(mTable[i] & ONE_MASK);
+      mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+    }
+    mSize = Math.max(0, (mSize >>> 1) - (oddCounters >>> 2));
+  }
+
+  private int indexOf(int hash, int i) {
+    long value = (hash + SEEDS[i]) * SEEDS[i];
+    value += value >>> 32;
+    return ((int) value) & mTableMask;
+  }
+
+  private static int spread(int x) {
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    return (x >>> 16) ^ x;
+  }
+}
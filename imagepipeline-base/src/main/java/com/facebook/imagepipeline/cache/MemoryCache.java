@@ -58,4 +58,12 @@ public interface MemoryCache<K, V> {
    * @return true if the predicate was found in the cache, false otherwise
    */
   public boolean contains(Predicate<K> predicate);
+
+  /**
+   * Check if the cache contains an item for the given key, without getting a reference to it.
+   *
+   * @param key
+   * @return true if an item with the given key is in the cache, false otherwise
+   */
+  public boolean contains(K key);
 }
@@ -0,0 +1,590 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import android.os.SystemClock;
+import com.android.internal.util.Predicate;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.Supplier;
+import com.facebook.common.internal.VisibleForTesting;
+import com.facebook.common.memory.MemoryTrimType;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.common.references.ResourceReleaser;
+import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * {@link CountingMemoryCache} that shards its entries across a number of independently locked
+ * segments.
+ *
+ * <p> Each segment keeps its own LRU queue of all the cached items and of the exclusively owned
+ * items, and is guarded by its own monitor. Operations on keys that fall into different segments
+ * therefore never contend with each other.
+ *
+ * <p> The size constraints given by {@link MemoryCacheParams} apply to the cache as a whole. The
+ * global counts and sizes are maintained with atomic counters so that they can be checked without
+ * taking any lock. When the constraints are exceeded, the exclusively owned items are evicted from
+ * the segments in a round-robin fashion, so the eviction order is only LRU within a segment.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+@ThreadSafe
+public class SegmentedCountingMemoryCache<K, V> extends CountingMemoryCache<K, V> {
+
+  /**
+   * A shard of the cache. All the fields are guarded by the segment's own monitor.
+   */
+  @VisibleForTesting
+  static class Segment<K, V> {
+    // Contains the items that are not being used by any client and are hence viable for eviction.
+    final CountingLruMap<K, Entry<K, V>> exclusiveEntries;
+    // Contains all the cached items including the exclusively owned ones.
+    final CountingLruMap<K, Entry<K, V>> cachedEntries;
+
+    private Segment(ValueDescriptor<Entry<K, V>> entryValueDescriptor) {
+      exclusiveEntries = new CountingLruMap<>(entryValueDescriptor);
+      cachedEntries = new CountingLruMap<>(entryValueDescriptor);
+    }
+  }
+
+  @VisibleForTesting
+  final Segment<K, V>[] mSegments;
+  private final int mSegmentMask;
+
+  private final ValueDescriptor<V> mValueDescriptor;
+  private final CacheTrimStrategy mCacheTrimStrategy;
+
+  // Global accounting of all the segments.
+  private final AtomicInteger mCount = new AtomicInteger();
+  private final AtomicInteger mSizeInBytes = new AtomicInteger();
+  private final AtomicInteger mEvictionQueueCount = new AtomicInteger();
+  private final AtomicInteger mEvictionQueueSizeInBytes = new AtomicInteger();
+
+  // The segment to evict from next.
+  private final AtomicInteger mEvictionCursor = new AtomicInteger();
+
+  // Cache size constraints.
+  private final Supplier<MemoryCacheParams> mMemoryCacheParamsSupplier;
+  private volatile MemoryCacheParams mSegmentedCacheParams;
+  private final AtomicLong mLastCacheParamsCheck;
+
+  /**
+   * @param segmentCount the number of segments, rounded up to the next power of two
+   */
+  @SuppressWarnings("unchecked")
+  public SegmentedCountingMemoryCache(
+      ValueDescriptor<V> valueDescriptor,
+      CacheTrimStrategy cacheTrimStrategy,
+      Supplier<MemoryCacheParams> memoryCacheParamsSupplier,
+      PlatformBitmapFactory platformBitmapFactory,
+      boolean isExternalCreatedBitmapLogEnabled,
+      int segmentCount) {
+    super(
+        valueDescriptor,
+        cacheTrimStrategy,
+        memoryCacheParamsSupplier,
+        platformBitmapFactory,
+        isExternalCreatedBitmapLogEnabled);
+    Preconditions.checkArgument(segmentCount > 0);
+    int size = 1;
+    while (size < segmentCount) {
+      size <<= 1;
+    }
+    mValueDescriptor = valueDescriptor;
+    mCacheTrimStrategy = cacheTrimStrategy;
+    mMemoryCacheParamsSupplier = memoryCacheParamsSupplier;
+    mSegmentedCacheParams = mMemoryCacheParamsSupplier.get();
+    mLastCacheParamsCheck = new AtomicLong(SystemClock.uptimeMillis());
+    ValueDescriptor<Entry<K, V>> entryValueDescriptor = new ValueDescriptor<Entry<K, V>>() {
+      @Override
+      public int getSizeInBytes(Entry<K, V> entry) {
+        return mValueDescriptor.getSizeInBytes(entry.valueRef.get());
+      }
+    };
+    mSegments = new Segment[size];
+    for (int i = 0; i < size; i++) {
+      mSegments[i] = new Segment<>(entryValueDescriptor);
+    }
+    mSegmentMask = size - 1;
+  }
+
+  /** Gets the segment the given key belongs to. */
+  @VisibleForTesting
+  Segment<K, V> segmentFor(K key) {
+    int hash = key.hashCode();
+    // spread the higher bits since only the lower ones are used for indexing
+    hash ^= (hash >>> 16);
+    return mSegments[hash & mSegmentMask];
+  }
+
+  @Override
+  public CloseableReference<V> cache(
+      final K key,
+      final CloseableReference<V> valueRef,
+      final EntryStateObserver<K> observer) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(valueRef);
+
+    maybeUpdateCacheParams();
+
+    final Segment<K, V> segment = segmentFor(key);
+    Entry<K, V> oldExclusive;
+    CloseableReference<V> oldRefToClose = null;
+    CloseableReference<V> clientRef = null;
+    synchronized (segment) {
+      // remove the old item (if any) as it is stale now
+      oldExclusive = removeExclusive(segment, key);
+      Entry<K, V> oldEntry = removeCached(segment, key);
+      if (oldEntry != null) {
+        makeOrphan(oldEntry);
+        oldRefToClose = referenceToClose(oldEntry);
+      }
+
+      if (canCacheNewValue(valueRef.get())) {
+        Entry<K, V> newEntry = Entry.of(key, valueRef, observer);
+        putCached(segment, newEntry);
+        clientRef = newClientReference(newEntry);
+      }
+    }
+    CloseableReference.closeSafely(oldRefToClose);
+    maybeNotifyExclusiveEntryRemoval(oldExclusive);
+
+    maybeEvictEntries();
+    return clientRef;
+  }
+
+  /**
+   * Checks the cache constraints to determine whether the new value can be cached or not.
+   *
+   * <p> The check is done against the global counters without locking the other segments, so
+   * concurrent insertions into different segments may overshoot the constraints slightly.
+   */
+  private boolean canCacheNewValue(V value) {
+    final MemoryCacheParams params = mSegmentedCacheParams;
+    int newValueSize = mValueDescriptor.getSizeInBytes(value);
+    return (newValueSize <= params.maxCacheEntrySize) &&
+        (getInUseCount() <= params.maxCacheEntries - 1) &&
+        (getInUseSizeInBytes() <= params.maxCacheSize - newValueSize);
+  }
+
+  @Nullable
+  @Override
+  public CloseableReference<V> get(final K key) {
+    Preconditions.checkNotNull(key);
+    final Segment<K, V> segment = segmentFor(key);
+    Entry<K, V> oldExclusive;
+    CloseableReference<V> clientRef = null;
+    synchronized (segment) {
+      oldExclusive = removeExclusive(segment, key);
+      Entry<K, V> entry = segment.cachedEntries.get(key);
+      if (entry != null) {
+        clientRef = newClientReference(entry);
+      }
+    }
+    maybeNotifyExclusiveEntryRemoval(oldExclusive);
+    maybeUpdateCacheParams();
+    maybeEvictEntries();
+    return clientRef;
+  }
+
+  /**
+   * Creates a new reference for the client.
+   *
+   * <p> Must be called while holding the lock of the segment the entry belongs to.
+   */
+  private CloseableReference<V> newClientReference(final Entry<K, V> entry) {
+    increaseClientCount(entry);
+    return CloseableReference.of(
+        entry.valueRef.get(),
+        new ResourceReleaser<V>() {
+          @Override
+          public void release(V unused) {
+            releaseClientReference(entry);
+          }
+        });
+  }
+
+  /** Called when the client closes its reference. */
+  private void releaseClientReference(final Entry<K, V> entry) {
+    Preconditions.checkNotNull(entry);
+    final Segment<K, V> segment = segmentFor(entry.key);
+    boolean isExclusiveAdded = false;
+    CloseableReference<V> oldRefToClose;
+    synchronized (segment) {
+      decreaseClientCount(entry);
+      if (!entry.isOrphan && entry.clientCount == 0) {
+        putExclusive(segment, entry);
+        isExclusiveAdded = true;
+      }
+      oldRefToClose = referenceToClose(entry);
+    }
+    CloseableReference.closeSafely(oldRefToClose);
+    if (isExclusiveAdded && entry.observer != null) {
+      entry.observer.onExclusivityChanged(entry.key, true);
+    }
+    maybeUpdateCacheParams();
+    maybeEvictEntries();
+  }
+
+  @Nullable
+  @Override
+  public CloseableReference<V> reuse(K key) {
+    Preconditions.checkNotNull(key);
+    final Segment<K, V> segment = segmentFor(key);
+    CloseableReference<V> clientRef = null;
+    Entry<K, V> oldExclusive;
+    synchronized (segment) {
+      oldExclusive = removeExclusive(segment, key);
+      if (oldExclusive != null) {
+        Entry<K, V> entry = removeCached(segment, key);
+        Preconditions.checkNotNull(entry);
+        Preconditions.checkState(entry.clientCount == 0);
+        // optimization: instead of cloning and then closing the original reference,
+        // we just do a move
+        clientRef = entry.valueRef;
+      }
+    }
+    maybeNotifyExclusiveEntryRemoval(oldExclusive);
+    return clientRef;
+  }
+
+  @Override
+  public int removeAll(Predicate<K> predicate) {
+    ArrayList<Entry<K, V>> oldExclusives = new ArrayList<>();
+    ArrayList<Entry<K, V>> oldEntries = new ArrayList<>();
+    for (Segment<K, V> segment : mSegments) {
+      synchronized (segment) {
+        ArrayList<Entry<K, V>> segmentExclusives = segment.exclusiveEntries.removeAll(predicate);
+        ArrayList<Entry<K, V>> segmentEntries = segment.cachedEntries.removeAll(predicate);
+        onEntriesRemoved(segmentExclusives, segmentEntries);
+        oldExclusives.addAll(segmentExclusives);
+        oldEntries.addAll(segmentEntries);
+      }
+    }
+    maybeClose(oldEntries);
+    maybeNotifyExclusiveEntryRemoval(oldExclusives);
+    maybeUpdateCacheParams();
+    maybeEvictEntries();
+    return oldEntries.size();
+  }
+
+  @Override
+  public void clear() {
+    ArrayList<Entry<K, V>> oldExclusives = new ArrayList<>();
+    ArrayList<Entry<K, V>> oldEntries = new ArrayList<>();
+    for (Segment<K, V> segment : mSegments) {
+      synchronized (segment) {
+        ArrayList<Entry<K, V>> segmentExclusives = segment.exclusiveEntries.clear();
+        ArrayList<Entry<K, V>> segmentEntries = segment.cachedEntries.clear();
+        onEntriesRemoved(segmentExclusives, segmentEntries);
+        oldExclusives.addAll(segmentExclusives);
+        oldEntries.addAll(segmentEntries);
+      }
+    }
+    maybeClose(oldEntries);
+    maybeNotifyExclusiveEntryRemoval(oldExclusives);
+    maybeUpdateCacheParams();
+  }
+
+  /**
+   * Updates the global accounting and marks the entries as orphans after they were removed in bulk
+   * from a segment.
+   */
+  @GuardedBy("segment")
+  private void onEntriesRemoved(
+      ArrayList<Entry<K, V>> removedExclusives,
+      ArrayList<Entry<K, V>> removedEntries) {
+    for (Entry<K, V> entry : removedExclusives) {
+      mEvictionQueueCount.decrementAndGet();
+      mEvictionQueueSizeInBytes.addAndGet(-getEntrySizeInBytes(entry));
+    }
+    for (Entry<K, V> entry : removedEntries) {
+      mCount.decrementAndGet();
+      mSizeInBytes.addAndGet(-getEntrySizeInBytes(entry));
+      makeOrphan(entry);
+    }
+  }
+
+  @Override
+  public boolean contains(Predicate<K> predicate) {
+    for (Segment<K, V> segment : mSegments) {
+      synchronized (segment) {
+        if (!segment.cachedEntries.getMatchingEntries(predicate).isEmpty()) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean contains(K key) {
+    final Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      return segment.cachedEntries.contains(key);
+    }
+  }
+
+  @Override
+  public void trim(MemoryTrimType trimType) {
+    final double trimRatio = mCacheTrimStrategy.getTrimRatio(trimType);
+    int targetCacheSize = (int) (mSizeInBytes.get() * (1 - trimRatio));
+    int targetEvictionQueueSize = Math.max(0, targetCacheSize - getInUseSizeInBytes());
+    ArrayList<Entry<K, V>> oldEntries =
+        trimExclusivelyOwnedEntries(Integer.MAX_VALUE, targetEvictionQueueSize);
+    maybeClose(oldEntries);
+    maybeNotifyExclusiveEntryRemoval(oldEntries);
+    maybeUpdateCacheParams();
+    maybeEvictEntries();
+  }
+
+  /**
+   * Updates the cache params (constraints) if enough time has passed since the last update.
+   *
+   * <p> Only the thread that wins the race for the check timestamp queries the supplier.
+   */
+  private void maybeUpdateCacheParams() {
+    final long lastCacheParamsCheck = mLastCacheParamsCheck.get();
+    final long now = SystemClock.uptimeMillis();
+    if (lastCacheParamsCheck + PARAMS_INTERCHECK_INTERVAL_MS > now) {
+      return;
+    }
+    if (mLastCacheParamsCheck.compareAndSet(lastCacheParamsCheck, now)) {
+      mSegmentedCacheParams = mMemoryCacheParamsSupplier.get();
+    }
+  }
+
+  /**
+   * Removes the exclusively owned items until the cache constraints are met.
+   *
+   * <p> This method invokes the external {@link CloseableReference#close} method,
+   * so it must not be called while holding any of the segment locks.
+   */
+  private void maybeEvictEntries() {
+    final MemoryCacheParams params = mSegmentedCacheParams;
+    int maxCount = Math.min(
+        params.maxEvictionQueueEntries,
+        params.maxCacheEntries - getInUseCount());
+    int maxSize = Math.min(
+        params.maxEvictionQueueSize,
+        params.maxCacheSize - getInUseSizeInBytes());
+    ArrayList<Entry<K, V>> oldEntries = trimExclusivelyOwnedEntries(maxCount, maxSize);
+    maybeClose(oldEntries);
+    maybeNotifyExclusiveEntryRemoval(oldEntries);
+  }
+
+  /**
+   * Removes the exclusively owned items until there is at most <code>count</code> of them
+   * and they occupy no more than <code>size</code> bytes.
+   *
+   * <p> The segments are visited in a round-robin fashion, evicting the least recently used
+   * exclusively owned item of each, and only one segment lock is held at a time. The removed items
+   * are returned instead of being closed.
+   */
+  @Nullable
+  private ArrayList<Entry<K, V>> trimExclusivelyOwnedEntries(int count, int size) {
+    count = Math.max(count, 0);
+    size = Math.max(size, 0);
+    ArrayList<Entry<K, V>> oldEntries = null;
+    int emptySegmentsInARow = 0;
+    while ((mEvictionQueueCount.get() > count || mEvictionQueueSizeInBytes.get() > size) &&
+        emptySegmentsInARow < mSegments.length) {
+      final Segment<K, V> segment =
+          mSegments[mEvictionCursor.getAndIncrement() & mSegmentMask];
+      Entry<K, V> oldEntry = null;
+      synchronized (segment) {
+        K key = segment.exclusiveEntries.getFirstKey();
+        if (key != null) {
+          removeExclusive(segment, key);
+          oldEntry = removeCached(segment, key);
+          makeOrphan(oldEntry);
+        }
+      }
+      if (oldEntry == null) {
+        emptySegmentsInARow++;
+      } else {
+        emptySegmentsInARow = 0;
+        if (oldEntries == null) {
+          oldEntries = new ArrayList<>();
+        }
+        oldEntries.add(oldEntry);
+      }
+    }
+    return oldEntries;
+  }
+
+  /**
+   * Notifies the client that the cache no longer tracks the given items.
+   *
+   * <p> This method invokes the external {@link CloseableReference#close} method,
+   * so it must not be called while holding any of the segment locks.
+   */
+  private void maybeClose(@Nullable ArrayList<Entry<K, V>> oldEntries) {
+    if (oldEntries != null) {
+      for (Entry<K, V> oldEntry : oldEntries) {
+        final CloseableReference<V> refToClose;
+        synchronized (segmentFor(oldEntry.key)) {
+          refToClose = referenceToClose(oldEntry);
+        }
+        CloseableReference.closeSafely(refToClose);
+      }
+    }
+  }
+
+  private void maybeNotifyExclusiveEntryRemoval(@Nullable ArrayList<Entry<K, V>> entries) {
+    if (entries != null) {
+      for (Entry<K, V> entry : entries) {
+        maybeNotifyExclusiveEntryRemoval(entry);
+      }
+    }
+  }
+
+  private static <K, V> void maybeNotifyExclusiveEntryRemoval(@Nullable Entry<K, V> entry) {
+    if (entry != null && entry.observer != null) {
+      entry.observer.onExclusivityChanged(entry.key, false);
+    }
+  }
+
+  @GuardedBy("segment")
+  private void putCached(Segment<K, V> segment, Entry<K, V> entry) {
+    segment.cachedEntries.put(entry.key, entry);
+    mCount.incrementAndGet();
+    mSizeInBytes.addAndGet(getEntrySizeInBytes(entry));
+  }
+
+  @GuardedBy("segment")
+  @Nullable
+  private Entry<K, V> removeCached(Segment<K, V> segment, K key) {
+    Entry<K, V> entry = segment.cachedEntries.remove(key);
+    if (entry != null) {
+      mCount.decrementAndGet();
+      mSizeInBytes.addAndGet(-getEntrySizeInBytes(entry));
+    }
+    return entry;
+  }
+
+  @GuardedBy("segment")
+  private void putExclusive(Segment<K, V> segment, Entry<K, V> entry) {
+    segment.exclusiveEntries.put(entry.key, entry);
+    mEvictionQueueCount.incrementAndGet();
+    mEvictionQueueSizeInBytes.addAndGet(getEntrySizeInBytes(entry));
+  }
+
+  @GuardedBy("segment")
+  @Nullable
+  private Entry<K, V> removeExclusive(Segment<K, V> segment, K key) {
+    Entry<K, V> entry = segment.exclusiveEntries.remove(key);
+    if (entry != null) {
+      mEvictionQueueCount.decrementAndGet();
+      mEvictionQueueSizeInBytes.addAndGet(-getEntrySizeInBytes(entry));
+    }
+    return entry;
+  }
+
+  private int getEntrySizeInBytes(Entry<K, V> entry) {
+    return mValueDescriptor.getSizeInBytes(entry.valueRef.get());
+  }
+
+  /** Marks the entry as orphan. */
+  @GuardedBy("segment")
+  private static <K, V> void makeOrphan(Entry<K, V> entry) {
+    Preconditions.checkNotNull(entry);
+    Preconditions.checkState(!entry.isOrphan);
+    entry.isOrphan = true;
+  }
+
+  /** Increases the entry's client count. */
+  @GuardedBy("segment")
+  private static <K, V> void increaseClientCount(Entry<K, V> entry) {
+    Preconditions.checkNotNull(entry);
+    Preconditions.checkState(!entry.isOrphan);
+    entry.clientCount++;
+  }
+
+  /** Decreases the entry's client count. */
+  @GuardedBy("segment")
+  private static <K, V> void decreaseClientCount(Entry<K, V> entry) {
+    Preconditions.checkNotNull(entry);
+    Preconditions.checkState(entry.clientCount > 0);
+    entry.clientCount--;
+  }
+
+  /** Returns the value reference of the entry if it should be closed, null otherwise. */
+  @GuardedBy("segment")
+  @Nullable
+  private static <K, V> CloseableReference<V> referenceToClose(Entry<K, V> entry) {
+    Preconditions.checkNotNull(entry);
+    return (entry.isOrphan && entry.clientCount == 0) ? entry.valueRef : null;
+  }
+
+  @Override
+  public MemoryCacheParams getMemoryCacheParams() {
+    return mSegmentedCacheParams;
+  }
+
+  /**
+   * Gets a snapshot of all the currently cached items, segment by segment, in LRU order within
+   * each segment. Only one segment lock is held at a time.
+   */
+  @Override
+  public List<EntrySnapshot<K, V>> getEntrySnapshots() {
+    final List<EntrySnapshot<K, V>> snapshots = new ArrayList<>(getCount());
+    for (Segment<K, V> segment : mSegments) {
+      synchronized (segment) {
+        for (Map.Entry<K, Entry<K, V>> cachedEntry :
+            segment.cachedEntries.getMatchingEntries(null)) {
+          snapshots.add(EntrySnapshot.of(cachedEntry.getValue()));
+        }
+      }
+    }
+    return snapshots;
+  }
+
+  /** Gets the number of segments. */
+  public int getSegmentCount() {
+    return mSegments.length;
+  }
+
+  @Override
+  public int getCount() {
+    return mCount.get();
+  }
+
+  @Override
+  public int getSizeInBytes() {
+    return mSizeInBytes.get();
+  }
+
+  @Override
+  public int getInUseCount() {
+    return mCount.get() - mEvictionQueueCount.get();
+  }
+
+  @Override
+  public int getInUseSizeInBytes() {
+    return mSizeInBytes.get() - mEvictionQueueSizeInBytes.get();
+  }
+
+  @Override
+  public int getEvictionQueueCount() {
+    return mEvictionQueueCount.get();
+  }
+
+  @Override
+  public int getEvictionQueueSizeInBytes() {
+    return mEvictionQueueSizeInBytes.get();
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.VisibleForTesting;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Scan resistant eviction policy in the style of W-TinyLFU.
+ *
+ * <p> Newly inserted keys enter a small LRU window. Once the window holds more than its share of
+ * the tracked keys, its least recently used key is a candidate for the main region: when the cache
+ * has to evict, the candidate competes with the least recently used key of the main region, and
+ * only the one that has been requested more often (according to a {@link FrequencySketch}) stays.
+ * Once the cache is full, every key enters the main region through such a duel, so a long scroll
+ * through images that are seen only once cannot flush the frequently used ones.
+ *
+ * <p> The main region is a segmented LRU: keys hit while on probation are promoted to the
+ * protected segment, and the protected segment overflows back into probation.
+ *
+ * <p> Only exclusively owned entries can be evicted. Each region hence orders only its exclusively
+ * owned keys, and keys in use are set aside until their entry is exclusively owned again, so that
+ * victims are found in constant time.
+ *
+ * @param <K> the key type
+ */
+@NotThreadSafe
+public class TinyLfuEvictionPolicy<K> implements CacheEvictionPolicy<K> {
+
+  private static final int DEFAULT_INITIAL_CAPACITY = 256;
+  private static final int DEFAULT_WINDOW_PERCENTAGE = 1;
+  private static final int PROTECTED_PERCENTAGE = 80;
+
+  @VisibleForTesting
+  enum Region {
+    WINDOW,
+    PROBATION,
+    PROTECTED,
+  }
+
+  private final int mWindowPercentage;
+  @VisibleForTesting
+  final FrequencySketch mSketch;
+
+  // The region of every tracked key, including the keys in use.
+  @VisibleForTesting
+  final HashMap<K, Region> mRegions = new HashMap<>();
+
+  // The exclusively owned keys of each region, in LRU order.
+  @VisibleForTesting
+  final LinkedHashSet<K> mWindow = new LinkedHashSet<>();
+  @VisibleForTesting
+  final LinkedHashSet<K> mProbation = new LinkedHashSet<>();
+  @VisibleForTesting
+  final LinkedHashSet<K> mProtected = new LinkedHashSet<>();
+
+  // The number of tracked keys of each region, including the keys in use.
+  private int mWindowSize;
+  private int mProbationSize;
+  private int mProtectedSize;
+
+  public TinyLfuEvictionPolicy() {
+    this(DEFAULT_INITIAL_CAPACITY, DEFAULT_WINDOW_PERCENTAGE);
+  }
+
+  /**
+   * @param initialCapacity number of keys the frequency sketch is sized for initially
+   * @param windowPercentage share of the tracked keys kept in the admission window
+   */
+  public TinyLfuEvictionPolicy(int initialCapacity, int windowPercentage) {
+    Preconditions.checkArgument(windowPercentage > 0 && windowPercentage < 100);
+    mWindowPercentage = windowPercentage;
+    mSketch = new FrequencySketch(initialCapacity);
+  }
+
+  @Override
+  public void onAccess(K key, boolean isCached) {
+    mSketch.increment(key);
+    if (!isCached) {
+      return;
+    }
+    Region region = mRegions.get(key);
+    if (region == null) {
+      return;
+    }
+    // the entry is in use by the client of the lookup now
+    getExclusiveKeys(region).remove(key);
+    if (region == Region.PROBATION) {
+      moveTo(key, Region.PROBATION, Region.PROTECTED);
+      maybeDemoteProtected();
+    }
+  }
+
+  @Override
+  public void onInsert(K key) {
+    // the lookup that missed the key has already been counted by the sketch
+    Region region = mRegions.get(key);
+    if (region != null) {
+      // a new value for a tracked key, in use by the client that inserted it
+      getExclusiveKeys(region).remove(key);
+      return;
+    }
+    mRegions.put(key, Region.WINDOW);
+    mWindowSize++;
+    mSketch.ensureCapacity(mRegions.size());
+  }
+
+  @Override
+  public void onExclusive(K key) {
+    Region region = mRegions.get(key);
+    if (region != null) {
+      LinkedHashSet<K> exclusiveKeys = getExclusiveKeys(region);
+      exclusiveKeys.remove(key);
+      exclusiveKeys.add(key);
+    }
+  }
+
+  @Override
+  public void onRemove(K key) {
+    Region region = mRegions.remove(key);
+    if (region != null) {
+      getExclusiveKeys(region).remove(key);
+      addToSize(region, -1);
+    }
+  }
+
+  @Nullable
+  @Override
+  public K selectVictim(CountingLruMap<K, ?> exclusiveEntries) {
+    K candidate = mWindowSize > getMaxWindowSize() ? first(mWindow) : null;
+    K victim = first(mProbation);
+    if (victim == null) {
+      victim = first(mProtected);
+    }
+    K evicted;
+    if (candidate == null) {
+      evicted = victim != null ? victim : first(mWindow);
+    } else if (victim == null) {
+      if (mProbationSize + mProtectedSize == 0) {
+        // The cache filled up for the first time: the keys that overflowed the window meanwhile
+        // become the main region, as they would have been admitted while there was room.
+        fillMainRegion(candidate);
+      }
+      evicted = candidate;
+    } else if (mSketch.frequency(candidate) > mSketch.frequency(victim)) {
+      // the candidate is admitted as it is more popular than the key it replaces
+      moveTo(candidate, Region.WINDOW, Region.PROBATION);
+      evicted = victim;
+    } else {
+      evicted = candidate;
+    }
+    if (evicted != null) {
+      onRemove(evicted);
+    }
+    return evicted;
+  }
+
+  /** Moves the window overflow to probation, except for the given candidate. */
+  private void fillMainRegion(K candidate) {
+    final int maxWindowSize = getMaxWindowSize();
+    Iterator<K> iterator = mWindow.iterator();
+    while (mWindowSize > maxWindowSize + 1 && iterator.hasNext()) {
+      K key = iterator.next();
+      if (key != candidate) {
+        iterator.remove();
+        mRegions.put(key, Region.PROBATION);
+        mWindowSize--;
+        mProbationSize++;
+        mProbation.add(key);
+      }
+    }
+  }
+
+  private int getMaxWindowSize() {
+    return Math.max(1, mRegions.size() * mWindowPercentage / 100);
+  }
+
+  /** Moves the least recently used protected keys to probation while there are too many. */
+  private void maybeDemoteProtected() {
+    int maxProtectedSize =
+        Math.max(1, (mProbationSize + mProtectedSize) * PROTECTED_PERCENTAGE / 100);
+    while (mProtectedSize > maxProtectedSize && !mProtected.isEmpty()) {
+      moveTo(first(mProtected), Region.PROTECTED, Region.PROBATION);
+    }
+  }
+
+  /** Moves the key to another region, as its most recently used key if exclusively owned. */
+  private void moveTo(K key, Region from, Region to) {
+    mRegions.put(key, to);
+    addToSize(from, -1);
+    addToSize(to, 1);
+    if (getExclusiveKeys(from).remove(key)) {
+      getExclusiveKeys(to).add(key);
+    }
+  }
+
+  private LinkedHashSet<K> getExclusiveKeys(Region region) {
+    switch (region) {
+      case WINDOW:
+        return mWindow;
+      case PROBATION:
+        return mProbation;
+      default:
+        return mProtected;
+    }
+  }
+
+  private void addToSize(Region region, int delta) {
+    switch (region) {
+      case WINDOW:
+        mWindowSize += delta;
+        break;
+      case PROBATION:
+        mProbationSize += delta;
+        break;
+      default:
+        mProtectedSize += delta;
+        break;
+    }
+  }
+
+  @Nullable
+  private static <K> K first(LinkedHashSet<K> keys) {
+    Iterator<K> iterator = keys.iterator();
+    return iterator.hasNext() ? iterator.next() : null;
+  }
+}
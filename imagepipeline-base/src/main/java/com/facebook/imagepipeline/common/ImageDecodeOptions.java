@@ -8,6 +8,8 @@
 package com.facebook.imagepipeline.common;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
+import com.facebook.common.internal.Objects;
 import com.facebook.imagepipeline.decoder.ImageDecoder;
 import java.util.Locale;
 import javax.annotation.Nullable;
@@ -60,6 +62,17 @@ public class ImageDecodeOptions {
    */
   public final @Nullable ImageDecoder customImageDecoder;
 
+  /**
+   * The region of the image to decode, in pixels of the encoded image, or null to decode the whole
+   * image. Formats that can't be decoded by region are decoded whole.
+   */
+  public final @Nullable Rect regionToDecode;
+
+  /**
+   * The power of two the region to decode is subsampled by. Only applies to a region to decode.
+   */
+  public final int regionSampleSize;
+
   public ImageDecodeOptions(ImageDecodeOptionsBuilder b) {
     this.minDecodeIntervalMs = b.getMinDecodeIntervalMs();
     this.decodePreviewFrame = b.getDecodePreviewFrame();
@@ -68,6 +81,8 @@ public class ImageDecodeOptions {
     this.forceStaticImage = b.getForceStaticImage();
     this.bitmapConfig = b.getBitmapConfig();
     this.customImageDecoder = b.getCustomImageDecoder();
+    this.regionToDecode = b.getRegionToDecode();
+    this.regionSampleSize = b.getRegionSampleSize();
   }
 
   /**
@@ -101,6 +116,8 @@ public class ImageDecodeOptions {
     if (forceStaticImage != that.forceStaticImage) return false;
     if (bitmapConfig != that.bitmapConfig) return false;
     if (customImageDecoder != that.customImageDecoder) return false;
+    if (!Objects.equal(regionToDecode, that.regionToDecode)) return false;
+    if (regionSampleSize != that.regionSampleSize) return false;
     return true;
   }
 
@@ -113,6 +130,8 @@ public class ImageDecodeOptions {
     result = 31 * result + (forceStaticImage ? 1 : 0);
     result = 31 * result + bitmapConfig.ordinal();
     result = 31 * result + (customImageDecoder != null ? customImageDecoder.hashCode() : 0);
+    result = 31 * result + (regionToDecode != null ? regionToDecode.hashCode() : 0);
+    result = 31 * result + regionSampleSize;
     return result;
   }
 
@@ -120,13 +139,15 @@ public class ImageDecodeOptions {
   public String toString() {
     return String.format(
         (Locale) null,
-        "%d-%b-%b-%b-%b-%s-%s",
+        "%d-%b-%b-%b-%b-%s-%s-%s-%d",
         minDecodeIntervalMs,
         decodePreviewFrame,
         useLastFrameForPreview,
         decodeAllFrames,
         forceStaticImage,
         bitmapConfig.name(),
-        customImageDecoder);
+        customImageDecoder,
+        regionToDecode,
+        regionSampleSize);
   }
 }
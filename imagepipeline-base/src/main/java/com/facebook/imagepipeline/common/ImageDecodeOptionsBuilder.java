@@ -8,6 +8,8 @@
 package com.facebook.imagepipeline.common;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
+import com.facebook.common.internal.Preconditions;
 import com.facebook.imagepipeline.decoder.ImageDecoder;
 import javax.annotation.Nullable;
 
@@ -23,6 +25,8 @@ public class ImageDecodeOptionsBuilder {
   private boolean mForceStaticImage;
   private Bitmap.Config mBitmapConfig = Bitmap.Config.ARGB_8888;
   private @Nullable ImageDecoder mCustomImageDecoder;
+  private @Nullable Rect mRegionToDecode;
+  private int mRegionSampleSize = 1;
 
   public ImageDecodeOptionsBuilder() {
   }
@@ -40,6 +44,8 @@ public class ImageDecodeOptionsBuilder {
     mForceStaticImage = options.forceStaticImage;
     mBitmapConfig = options.bitmapConfig;
     mCustomImageDecoder = options.customImageDecoder;
+    mRegionToDecode = options.regionToDecode;
+    mRegionSampleSize = options.regionSampleSize;
     return this;
   }
 
@@ -192,6 +198,53 @@ public class ImageDecodeOptionsBuilder {
     return this;
   }
 
+  /**
+   * Gets the region of the image to decode.
+   *
+   * @return the region to decode or null to decode the whole image
+   */
+  @Nullable
+  public Rect getRegionToDecode() {
+    return mRegionToDecode;
+  }
+
+  /**
+   * Sets the region of the image to decode, in pixels of the encoded image before any rotation.
+   *
+   * <p/> The region is part of the bitmap memory cache key, but not of the encoded one, so the
+   * regions of an image are cached separately and share the encoded image.
+   *
+   * @param regionToDecode the region to decode or null to decode the whole image
+   * @return this builder
+   */
+  public ImageDecodeOptionsBuilder setRegionToDecode(@Nullable Rect regionToDecode) {
+    mRegionToDecode = regionToDecode == null ? null : new Rect(regionToDecode);
+    return this;
+  }
+
+  /**
+   * Gets the sample size of the region to decode.
+   *
+   * @return the sample size of the region to decode
+   */
+  public int getRegionSampleSize() {
+    return mRegionSampleSize;
+  }
+
+  /**
+   * Sets the sample size of the region to decode, e.g. 2 to decode it at half its width and half
+   * its height. Only applies to a region to decode.
+   *
+   * @param regionSampleSize the sample size, a power of two
+   * @return this builder
+   */
+  public ImageDecodeOptionsBuilder setRegionSampleSize(int regionSampleSize) {
+    Preconditions.checkArgument(
+        regionSampleSize > 0 && (regionSampleSize & (regionSampleSize - 1)) == 0);
+    mRegionSampleSize = regionSampleSize;
+    return this;
+  }
+
   /**
    * Builds the immutable {@link ImageDecodeOptions} instance.
    *
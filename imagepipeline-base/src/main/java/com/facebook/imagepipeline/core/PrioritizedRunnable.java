@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import com.facebook.imagepipeline.common.Priority;
+
+/**
+ * A {@link Runnable} that a {@link PriorityExecutor} queues according to its priority.
+ *
+ * <p> The priority is read when the runnable is submitted, and again when it is passed to
+ * {@link PriorityExecutor#reprioritize}.
+ */
+public interface PrioritizedRunnable extends Runnable {
+
+  /**
+   * @return the current priority of the work
+   */
+  Priority getPriority();
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.VisibleForTesting;
+import com.facebook.imagepipeline.common.Priority;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * An {@link Executor} backed by a fixed number of threads, that runs the queued work in order of
+ * {@link Priority} rather than in submission order.
+ *
+ * <p> Work submitted as a {@link PrioritizedRunnable} is queued at its current priority, any other
+ * work is queued at {@link #DEFAULT_PRIORITY}. Work of the same priority runs in submission order.
+ * When the priority of queued work changes, {@link #reprioritize} moves it to its new place.
+ * The oldest work of a priority is passed over by work of higher priorities at most
+ * {@link #MAX_PASSED_OVER_COUNT} times in a row, so that a steady stream of visible images can't
+ * starve prefetches entirely.
+ *
+ * <p> Executors created with the same {@link WorkStealingGroup} steal queued work from each other
+ * once all of their own work has been started: an idle decode thread can run a queued
+ * postprocessor, and vice versa.
+ *
+ * <p> Like the threads of {@link java.util.concurrent.Executors#newFixedThreadPool}, the threads
+ * are started on demand and then kept for the lifetime of the executor.
+ */
+@ThreadSafe
+public class PriorityExecutor implements Executor {
+
+  /**
+   * The priority of work that is not a {@link PrioritizedRunnable}. Such work is not tied to a
+   * request, so it yields to the work of requests for visible images, and is only kept from
+   * starving by {@link #MAX_PASSED_OVER_COUNT}.
+   */
+  public static final Priority DEFAULT_PRIORITY = Priority.MEDIUM;
+
+  /**
+   * How many times in a row the oldest work of a priority can be passed over by work of a higher
+   * priority, before it runs anyway.
+   */
+  @VisibleForTesting
+  static final int MAX_PASSED_OVER_COUNT = 8;
+
+  private static final Priority[] PRIORITIES = Priority.values();
+
+  /**
+   * A set of executors that steal work from each other. The executors of a group share a lock.
+   */
+  @ThreadSafe
+  public static class WorkStealingGroup {
+
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    @GuardedBy("mLock")
+    private final List<PriorityExecutor> mExecutors = new ArrayList<>(2);
+
+    private void add(PriorityExecutor executor) {
+      mLock.lock();
+      try {
+        mExecutors.add(executor);
+      } finally {
+        mLock.unlock();
+      }
+    }
+
+    /**
+     * Takes the highest priority work queued in the other executors of the group.
+     */
+    @GuardedBy("mLock")
+    @Nullable
+    private Runnable steal(PriorityExecutor thief) {
+      PriorityExecutor victim = null;
+      int victimPriority = -1;
+      for (int i = 0; i < mExecutors.size(); i++) {
+        PriorityExecutor executor = mExecutors.get(i);
+        if (executor != thief) {
+          int priority = executor.getHighestQueuedPriority();
+          if (priority > victimPriority) {
+            victim = executor;
+            victimPriority = priority;
+          }
+        }
+      }
+      return victim == null ? null : victim.pollLocked();
+    }
+
+    /**
+     * Wakes up an idle thread of another executor of the group, so that it steals the work that
+     * has just been queued in the given executor.
+     */
+    @GuardedBy("mLock")
+    private void signalThief(PriorityExecutor victim) {
+      for (int i = 0; i < mExecutors.size(); i++) {
+        PriorityExecutor executor = mExecutors.get(i);
+        if (executor != victim && executor.mIdleThreadCount > 0) {
+          executor.mWorkAvailable.signal();
+          return;
+        }
+      }
+    }
+  }
+
+  private final WorkStealingGroup mGroup;
+  private final ReentrantLock mLock;
+  private final Condition mWorkAvailable;
+  private final int mMaxThreadCount;
+  private final ThreadFactory mThreadFactory;
+  private final Runnable mWorkerRunnable;
+
+  // one queue per priority, indexed by ordinal
+  @GuardedBy("mLock")
+  private final ArrayDeque<Runnable>[] mQueues;
+  // how many times in a row the head of each queue was passed over, indexed by ordinal
+  @GuardedBy("mLock")
+  private final int[] mPassedOverCounts;
+  @GuardedBy("mLock")
+  private int mQueuedCount;
+  @GuardedBy("mLock")
+  private int mThreadCount;
+  @GuardedBy("mLock")
+  private int mIdleThreadCount;
+
+  /**
+   * Creates an executor that does not steal work
+   * @param maxThreadCount the number of threads
+   * @param threadFactory the factory of the threads
+   */
+  public PriorityExecutor(int maxThreadCount, ThreadFactory threadFactory) {
+    this(maxThreadCount, threadFactory, new WorkStealingGroup());
+  }
+
+  /**
+   * @param maxThreadCount the number of threads
+   * @param threadFactory the factory of the threads
+   * @param group the executors to steal work from, and to share work with
+   */
+  @SuppressWarnings("unchecked")
+  public PriorityExecutor(
+      int maxThreadCount,
+      ThreadFactory threadFactory,
+      WorkStealingGroup group) {
+    Preconditions.checkArgument(maxThreadCount > 0);
+    mMaxThreadCount = maxThreadCount;
+    mThreadFactory = Preconditions.checkNotNull(threadFactory);
+    mGroup = Preconditions.checkNotNull(group);
+    mLock = group.mLock;
+    mWorkAvailable = mLock.newCondition();
+    mQueues = new ArrayDeque[PRIORITIES.length];
+    for (int i = 0; i < mQueues.length; i++) {
+      mQueues[i] = new ArrayDeque<>();
+    }
+    mPassedOverCounts = new int[PRIORITIES.length];
+    mWorkerRunnable = new Runnable() {
+      @Override
+      public void run() {
+        runWorker();
+      }
+    };
+    group.add(this);
+  }
+
+  @Override
+  public void execute(Runnable runnable) {
+    Priority priority = getPriority(Preconditions.checkNotNull(runnable));
+    boolean startThread = false;
+    mLock.lock();
+    try {
+      addLastLocked(priority, runnable);
+      mQueuedCount++;
+      if (mIdleThreadCount > 0) {
+        mWorkAvailable.signal();
+      }
+      if (mQueuedCount > mIdleThreadCount && mThreadCount < mMaxThreadCount) {
+        mThreadCount++;
+        startThread = true;
+      } else if (mIdleThreadCount == 0) {
+        mGroup.signalThief(this);
+      }
+    } finally {
+      mLock.unlock();
+    }
+    if (startThread) {
+      startThread();
+    }
+  }
+
+  /**
+   * Moves queued work to the queue of its current priority. Work that is already running, or
+   * that is not queued in this executor, is left alone.
+   * @param runnable work submitted to this executor
+   * @return true if the work was queued
+   */
+  public boolean reprioritize(PrioritizedRunnable runnable) {
+    Priority priority = runnable.getPriority();
+    mLock.lock();
+    try {
+      for (int i = 0; i < mQueues.length; i++) {
+        if (mQueues[i].removeFirstOccurrence(runnable)) {
+          addLastLocked(priority, runnable);
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Gets the number of queued runnables of the given priority
+   */
+  @VisibleForTesting
+  int getQueuedCount(Priority priority) {
+    mLock.lock();
+    try {
+      return mQueues[priority.ordinal()].size();
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  @VisibleForTesting
+  int getThreadCount() {
+    mLock.lock();
+    try {
+      return mThreadCount;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  private static Priority getPriority(Runnable runnable) {
+    if (runnable instanceof PrioritizedRunnable) {
+      Priority priority = ((PrioritizedRunnable) runnable).getPriority();
+      if (priority != null) {
+        return priority;
+      }
+    }
+    return DEFAULT_PRIORITY;
+  }
+
+  private void startThread() {
+    mThreadFactory.newThread(mWorkerRunnable).start();
+  }
+
+  private void runWorker() {
+    try {
+      while (true) {
+        Runnable runnable;
+        mLock.lock();
+        try {
+          while ((runnable = pollOrStealLocked()) == null) {
+            mIdleThreadCount++;
+            try {
+              mWorkAvailable.awaitUninterruptibly();
+            } finally {
+              mIdleThreadCount--;
+            }
+          }
+        } finally {
+          mLock.unlock();
+        }
+        runnable.run();
+      }
+    } finally {
+      // the work threw: replace this thread if there is still work to do, as a thread pool would
+      boolean startThread;
+      mLock.lock();
+      try {
+        startThread = mQueuedCount > mIdleThreadCount;
+        if (!startThread) {
+          mThreadCount--;
+        }
+      } finally {
+        mLock.unlock();
+      }
+      if (startThread) {
+        startThread();
+      }
+    }
+  }
+
+  @GuardedBy("mLock")
+  @Nullable
+  private Runnable pollOrStealLocked() {
+    Runnable runnable = pollLocked();
+    return runnable != null ? runnable : mGroup.steal(this);
+  }
+
+  @GuardedBy("mLock")
+  private void addLastLocked(Priority priority, Runnable runnable) {
+    ArrayDeque<Runnable> queue = mQueues[priority.ordinal()];
+    if (queue.isEmpty()) {
+      mPassedOverCounts[priority.ordinal()] = 0;
+    }
+    queue.addLast(runnable);
+  }
+
+  @GuardedBy("mLock")
+  @Nullable
+  private Runnable pollLocked() {
+    int highest = getHighestQueuedPriority();
+    if (highest < 0) {
+      return null;
+    }
+    // the lowest priority that has been passed over too many times goes first
+    int selected = highest;
+    for (int i = 0; i < highest; i++) {
+      if (!mQueues[i].isEmpty() && mPassedOverCounts[i] >= MAX_PASSED_OVER_COUNT) {
+        selected = i;
+        break;
+      }
+    }
+    for (int i = 0; i < selected; i++) {
+      if (!mQueues[i].isEmpty()) {
+        mPassedOverCounts[i]++;
+      }
+    }
+    mPassedOverCounts[selected] = 0;
+    mQueuedCount--;
+    return mQueues[selected].pollFirst();
+  }
+
+  /**
+   * @return the ordinal of the highest priority with queued work, or -1 if there is none
+   */
+  @GuardedBy("mLock")
+  private int getHighestQueuedPriority() {
+    if (mQueuedCount == 0) {
+      return -1;
+    }
+    for (int i = mQueues.length - 1; i >= 0; i--) {
+      if (!mQueues[i].isEmpty()) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
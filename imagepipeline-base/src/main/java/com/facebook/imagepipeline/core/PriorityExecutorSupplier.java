@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import android.os.Process;
+import java.util.concurrent.Executor;
+
+/**
+ * Implementation of {@link ExecutorSupplier} that runs the queued work in order of priority.
+ *
+ * <p> It has the same threads as {@link DefaultExecutorSupplier}, but each executor is a
+ * {@link PriorityExecutor}: work of visible images does not wait behind the prefetches queued
+ * before it. The decode and background executors, which are both CPU-bound, steal work from each
+ * other when one of them is idle.
+ */
+public class PriorityExecutorSupplier implements ExecutorSupplier {
+  // Allows for simultaneous reads and writes.
+  private static final int NUM_IO_BOUND_THREADS = 2;
+  private static final int NUM_LIGHTWEIGHT_BACKGROUND_THREADS = 1;
+
+  private final PriorityExecutor mIoBoundExecutor;
+  private final PriorityExecutor mDecodeExecutor;
+  private final PriorityExecutor mBackgroundExecutor;
+  private final PriorityExecutor mLightWeightBackgroundExecutor;
+
+  public PriorityExecutorSupplier(int numCpuBoundThreads) {
+    mIoBoundExecutor =
+        new PriorityExecutor(
+            NUM_IO_BOUND_THREADS,
+            new PriorityThreadFactory(
+                Process.THREAD_PRIORITY_BACKGROUND, "FrescoIoBoundExecutor", true));
+    PriorityExecutor.WorkStealingGroup cpuBoundGroup = new PriorityExecutor.WorkStealingGroup();
+    mDecodeExecutor =
+        new PriorityExecutor(
+            numCpuBoundThreads,
+            new PriorityThreadFactory(
+                Process.THREAD_PRIORITY_BACKGROUND, "FrescoDecodeExecutor", true),
+            cpuBoundGroup);
+    mBackgroundExecutor =
+        new PriorityExecutor(
+            numCpuBoundThreads,
+            new PriorityThreadFactory(
+                Process.THREAD_PRIORITY_BACKGROUND, "FrescoBackgroundExecutor", true),
+            cpuBoundGroup);
+    mLightWeightBackgroundExecutor =
+        new PriorityExecutor(
+            NUM_LIGHTWEIGHT_BACKGROUND_THREADS,
+            new PriorityThreadFactory(
+                Process.THREAD_PRIORITY_BACKGROUND, "FrescoLightWeightBackgroundExecutor", true));
+  }
+
+  @Override
+  public Executor forLocalStorageRead() {
+    return mIoBoundExecutor;
+  }
+
+  @Override
+  public Executor forLocalStorageWrite() {
+    return mIoBoundExecutor;
+  }
+
+  @Override
+  public Executor forDecode() {
+    return mDecodeExecutor;
+  }
+
+  @Override
+  public Executor forBackgroundTasks() {
+    return mBackgroundExecutor;
+  }
+
+  @Override
+  public Executor forLightweightBackgroundTasks() {
+    return mLightWeightBackgroundExecutor;
+  }
+}
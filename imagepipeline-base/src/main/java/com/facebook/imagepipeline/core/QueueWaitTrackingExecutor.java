@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import android.os.SystemClock;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.time.LatencyHistogram;
+import com.facebook.imagepipeline.common.Priority;
+import java.util.concurrent.Executor;
+
+/**
+ * Executor that measures how long the work submitted to it waits before it starts to run.
+ *
+ * <p> {@link PrioritizedRunnable}s keep their priority. Work that must be reprioritized while it
+ * is queued, see {@link PriorityExecutor#reprioritize}, has to be submitted to the delegate
+ * directly and record its wait in {@link #getQueueWaitHistogram()} itself.
+ */
+public class QueueWaitTrackingExecutor implements Executor {
+
+  private final Executor mDelegate;
+  private final LatencyHistogram mQueueWaitHistogram;
+
+  public QueueWaitTrackingExecutor(Executor delegate) {
+    mDelegate = Preconditions.checkNotNull(delegate);
+    mQueueWaitHistogram = new LatencyHistogram();
+  }
+
+  @Override
+  public void execute(final Runnable runnable) {
+    final long submitTime = SystemClock.uptimeMillis();
+    if (runnable instanceof PrioritizedRunnable) {
+      mDelegate.execute(
+          new PrioritizedRunnable() {
+            @Override
+            public Priority getPriority() {
+              return ((PrioritizedRunnable) runnable).getPriority();
+            }
+
+            @Override
+            public void run() {
+              mQueueWaitHistogram.record(SystemClock.uptimeMillis() - submitTime);
+              runnable.run();
+            }
+          });
+    } else {
+      mDelegate.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              mQueueWaitHistogram.record(SystemClock.uptimeMillis() - submitTime);
+              runnable.run();
+            }
+          });
+    }
+  }
+
+  public Executor getDelegate() {
+    return mDelegate;
+  }
+
+  /**
+   * @return the histogram of the time the work waited, in milliseconds
+   */
+  public LatencyHistogram getQueueWaitHistogram() {
+    return mQueueWaitHistogram;
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import com.facebook.common.internal.Preconditions;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link ExecutorSupplier} that wraps the executors of another one in
+ * {@link QueueWaitTrackingExecutor}s, to measure how long the work of each section of the
+ * pipeline waits for a thread.
+ *
+ * <p> Each method has its own histogram, even if the wrapped supplier returns the same executor
+ * from several methods.
+ */
+public class QueueWaitTrackingExecutorSupplier implements ExecutorSupplier {
+
+  private final QueueWaitTrackingExecutor mLocalStorageReadExecutor;
+  private final QueueWaitTrackingExecutor mLocalStorageWriteExecutor;
+  private final QueueWaitTrackingExecutor mDecodeExecutor;
+  private final QueueWaitTrackingExecutor mBackgroundExecutor;
+  private final QueueWaitTrackingExecutor mLightWeightBackgroundExecutor;
+
+  public QueueWaitTrackingExecutorSupplier(ExecutorSupplier executorSupplier) {
+    Preconditions.checkNotNull(executorSupplier);
+    mLocalStorageReadExecutor =
+        new QueueWaitTrackingExecutor(executorSupplier.forLocalStorageRead());
+    mLocalStorageWriteExecutor =
+        new QueueWaitTrackingExecutor(executorSupplier.forLocalStorageWrite());
+    mDecodeExecutor = new QueueWaitTrackingExecutor(executorSupplier.forDecode());
+    mBackgroundExecutor = new QueueWaitTrackingExecutor(executorSupplier.forBackgroundTasks());
+    mLightWeightBackgroundExecutor =
+        new QueueWaitTrackingExecutor(executorSupplier.forLightweightBackgroundTasks());
+  }
+
+  @Override
+  public QueueWaitTrackingExecutor forLocalStorageRead() {
+    return mLocalStorageReadExecutor;
+  }
+
+  @Override
+  public QueueWaitTrackingExecutor forLocalStorageWrite() {
+    return mLocalStorageWriteExecutor;
+  }
+
+  @Override
+  public QueueWaitTrackingExecutor forDecode() {
+    return mDecodeExecutor;
+  }
+
+  @Override
+  public QueueWaitTrackingExecutor forBackgroundTasks() {
+    return mBackgroundExecutor;
+  }
+
+  @Override
+  public QueueWaitTrackingExecutor forLightweightBackgroundTasks() {
+    return mLightWeightBackgroundExecutor;
+  }
+}
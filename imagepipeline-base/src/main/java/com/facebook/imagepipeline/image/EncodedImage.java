@@ -48,8 +48,10 @@ public class EncodedImage implements Closeable {
   public static final int UNKNOWN_WIDTH = -1;
   public static final int UNKNOWN_HEIGHT = -1;
   public static final int UNKNOWN_STREAM_SIZE = -1;
+  public static final int UNKNOWN_EXPECTED_SIZE = -1;
 
   public static final int DEFAULT_SAMPLE_SIZE = 1;
+  public static final int UNKNOWN_TARGET_SIZE = -1;
 
   // Only one of this will be set. The EncodedImage can either be backed by a ByteBuffer or a
   // Supplier of InputStream, but not both.
@@ -62,8 +64,12 @@ public class EncodedImage implements Closeable {
   private int mWidth = UNKNOWN_WIDTH;
   private int mHeight = UNKNOWN_HEIGHT;
   private int mSampleSize = DEFAULT_SAMPLE_SIZE;
+  private int mTargetWidth = UNKNOWN_TARGET_SIZE;
+  private int mTargetHeight = UNKNOWN_TARGET_SIZE;
   private int mStreamSize = UNKNOWN_STREAM_SIZE;
+  private int mExpectedSize = UNKNOWN_EXPECTED_SIZE;
   private @Nullable BytesRange mBytesRange;
+  private @Nullable String mContentValidator;
 
   public EncodedImage(CloseableReference<PooledByteBuffer> pooledByteBufferRef) {
     Preconditions.checkArgument(CloseableReference.isValid(pooledByteBufferRef));
@@ -196,6 +202,16 @@ public class EncodedImage implements Closeable {
     this.mSampleSize = sampleSize;
   }
 
+  /**
+   * Sets the size to decode the image at, after subsampling it by the sample size
+   *
+   * <p> The size is that of the encoded image, before its rotation.
+   */
+  public void setTargetSize(int targetWidth, int targetHeight) {
+    this.mTargetWidth = targetWidth;
+    this.mTargetHeight = targetHeight;
+  }
+
   /**
    * Sets the size of an image if backed by an InputStream
    *
@@ -209,6 +225,21 @@ public class EncodedImage implements Closeable {
     mBytesRange = bytesRange;
   }
 
+  /**
+   * Sets the validator of the content the image was downloaded from, such as its ETag, which tells
+   * whether a later download of the same URI is for the same content
+   */
+  public void setContentValidator(@Nullable String contentValidator) {
+    mContentValidator = contentValidator;
+  }
+
+  /**
+   * Sets the size the image will have once complete, for an intermediate result of a download
+   */
+  public void setExpectedSize(int expectedSize) {
+    mExpectedSize = expectedSize;
+  }
+
   /**
    * Returns the image format if known, otherwise ImageFormat.UNKNOWN.
    */
@@ -252,11 +283,41 @@ public class EncodedImage implements Closeable {
     return mSampleSize;
   }
 
+  /**
+   * Returns the width to decode the image at if set, else -1.
+   */
+  public int getTargetWidth() {
+    return mTargetWidth;
+  }
+
+  /**
+   * Returns the height to decode the image at if set, else -1.
+   */
+  public int getTargetHeight() {
+    return mTargetHeight;
+  }
+
   @Nullable
   public BytesRange getBytesRange() {
     return mBytesRange;
   }
 
+  /**
+   * Returns the validator of the content the image was downloaded from if known, else null.
+   */
+  @Nullable
+  public String getContentValidator() {
+    return mContentValidator;
+  }
+
+  /**
+   * Returns the size the image will have once complete if it is still being downloaded and that
+   * size is known, else -1.
+   */
+  public int getExpectedSize() {
+    return mExpectedSize;
+  }
+
   /**
    * Returns true if the image is a JPEG and its data is already complete at the specified length,
    * false otherwise.
@@ -391,8 +452,12 @@ public class EncodedImage implements Closeable {
     mRotationAngle = encodedImage.getRotationAngle();
     mExifOrientation = encodedImage.getExifOrientation();
     mSampleSize = encodedImage.getSampleSize();
+    mTargetWidth = encodedImage.getTargetWidth();
+    mTargetHeight = encodedImage.getTargetHeight();
     mStreamSize = encodedImage.getSize();
     mBytesRange = encodedImage.getBytesRange();
+    mContentValidator = encodedImage.getContentValidator();
+    mExpectedSize = encodedImage.getExpectedSize();
   }
 
   /**
@@ -84,6 +84,19 @@ public class DefaultDiskStorageTest {
     };
   }
 
+  private Supplier<DefaultDiskStorage> getJournaledStorageSupplier(final int version) {
+    return new Supplier<DefaultDiskStorage>() {
+      @Override
+      public DefaultDiskStorage get() {
+        return new DefaultDiskStorage(
+            mDirectory,
+            version,
+            mock(CacheErrorLogger.class),
+            true);
+      }
+    };
+  }
+
   @Test
   public void testStartup() throws Exception {
     // create a bogus file
@@ -525,6 +538,130 @@ public class DefaultDiskStorageTest {
     Assert.assertEquals(files.get(2), entriesAfterRemoval.get(1).getResource().getFile());
   }
 
+  @Test
+  public void testJournalRestoresEntries() throws Exception {
+    DefaultDiskStorage storage = getJournaledStorageSupplier(1).get();
+    when(mClock.now()).thenReturn(1000L);
+    writeToStorage(storage, "resource1", new byte[100]);
+    when(mClock.now()).thenReturn(2000L);
+    writeToStorage(storage, "resource2", new byte[200]);
+    when(mClock.now()).thenReturn(3000L);
+    Assert.assertNotNull(storage.getResource("resource1", null));
+    // listing the entries persists the batched reads
+    storage.getEntries();
+
+    // a new instance lists the entries from the journal, least recently used first
+    List<DiskStorage.Entry> entries =
+        new ArrayList<>(getJournaledStorageSupplier(1).get().getEntries());
+    assertEquals(2, entries.size());
+    assertEquals("resource2", entries.get(0).getId());
+    assertEquals(200, entries.get(0).getSize());
+    assertEquals(2000L, entries.get(0).getTimestamp());
+    assertEquals("resource1", entries.get(1).getId());
+    assertEquals(100, entries.get(1).getSize());
+    assertEquals(3000L, entries.get(1).getTimestamp());
+  }
+
+  @Test
+  public void testJournalRecordsRemoval() throws Exception {
+    DefaultDiskStorage storage = getJournaledStorageSupplier(1).get();
+    writeToStorage(storage, "resource1", new byte[100]);
+    writeToStorage(storage, "resource2", new byte[200]);
+    storage.remove("resource1");
+
+    List<DiskStorage.Entry> entries =
+        new ArrayList<>(getJournaledStorageSupplier(1).get().getEntries());
+    assertEquals(1, entries.size());
+    assertEquals("resource2", entries.get(0).getId());
+  }
+
+  @Test
+  public void testJournalDiscardsIncompleteCommit() throws Exception {
+    DefaultDiskStorage storage = getJournaledStorageSupplier(1).get();
+    writeToStorage(storage, "resource1", new byte[100]);
+    File file2 = writeFileToStorage(storage, "resource2", new byte[200]);
+    // the app died after renaming the content file, but before recording the commit
+    File journal = getJournalFile(1);
+    String content = new String(Files.toByteArray(journal), "UTF-8");
+    FileOutputStream fos = new FileOutputStream(journal);
+    try {
+      fos.write(content.substring(0, content.lastIndexOf("CLEAN")).getBytes("UTF-8"));
+    } finally {
+      fos.close();
+    }
+
+    List<DiskStorage.Entry> entries =
+        new ArrayList<>(getJournaledStorageSupplier(1).get().getEntries());
+    assertEquals(1, entries.size());
+    assertEquals("resource1", entries.get(0).getId());
+    assertFalse(file2.exists());
+  }
+
+  @Test
+  public void testCorruptJournalFallsBackToWalk() throws Exception {
+    DefaultDiskStorage storage = getJournaledStorageSupplier(1).get();
+    writeToStorage(storage, "resource1", new byte[100]);
+    FileOutputStream fos = new FileOutputStream(getJournalFile(1));
+    try {
+      fos.write("garbage\n".getBytes("UTF-8"));
+    } finally {
+      fos.close();
+    }
+
+    List<DiskStorage.Entry> entries =
+        new ArrayList<>(getJournaledStorageSupplier(1).get().getEntries());
+    assertEquals(1, entries.size());
+    assertEquals("resource1", entries.get(0).getId());
+    assertEquals(100, entries.get(0).getSize());
+    // the journal has been rebuilt
+    String content = new String(Files.toByteArray(getJournalFile(1)), "UTF-8");
+    assertTrue(content.startsWith(DiskStorageJournal.HEADER));
+    assertTrue(content.contains("resource1"));
+  }
+
+  @Test
+  public void testJournalDropsExternallyDeletedFiles() throws Exception {
+    DefaultDiskStorage storage = getJournaledStorageSupplier(1).get();
+    File file1 = writeFileToStorage(storage, "resource1", new byte[100]);
+    writeToStorage(storage, "resource2", new byte[200]);
+    assertTrue(file1.delete());
+
+    List<DiskStorage.Entry> entries = new ArrayList<>(storage.getEntries());
+    assertEquals(1, entries.size());
+    assertEquals("resource2", entries.get(0).getId());
+    entries = new ArrayList<>(getJournaledStorageSupplier(1).get().getEntries());
+    assertEquals(1, entries.size());
+    assertEquals("resource2", entries.get(0).getId());
+  }
+
+  @Test
+  public void testPurgeKeepsJournalAndRemovesUnknownFiles() throws Exception {
+    DefaultDiskStorage storage = getJournaledStorageSupplier(1).get();
+    File file1 = writeFileToStorage(storage, "resource1", new byte[100]);
+    File unknownFile = new File(file1.getParentFile(), "unknown.cnt");
+    Assert.assertTrue(unknownFile.createNewFile());
+
+    purgeUnexpectedFiles(storage);
+    assertTrue(getJournalFile(1).exists());
+    assertTrue(file1.exists());
+    assertFalse(unknownFile.exists());
+  }
+
+  @Test
+  public void testClearAllWithJournal() throws Exception {
+    DefaultDiskStorage storage = getJournaledStorageSupplier(1).get();
+    writeToStorage(storage, "resource1", new byte[100]);
+    storage.clearAll();
+    assertEquals(0, storage.getEntries().size());
+    assertEquals(0, getJournaledStorageSupplier(1).get().getEntries().size());
+  }
+
+  private File getJournalFile(int version) {
+    return new File(
+        new File(mDirectory, DefaultDiskStorage.getVersionSubdirectoryName(version)),
+        DiskStorageJournal.JOURNAL_FILE_NAME);
+  }
+
   private static FileBinaryResource writeToStorage(
       final DefaultDiskStorage storage,
       final String resourceId,
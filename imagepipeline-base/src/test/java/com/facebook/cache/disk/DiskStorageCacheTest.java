@@ -47,6 +47,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.CyclicBarrier;
@@ -327,6 +328,75 @@ public class DiskStorageCacheTest {
     assertArrayEquals(value2, getContents(mCache.getResource(matchingSimpleKey)));
   }
 
+  @Test
+  public void testInsertAll() throws Exception {
+    CacheKey key1 = new SimpleCacheKey("foo");
+    CacheKey key2 = new SimpleCacheKey("bar");
+    CacheKey key3 = new SimpleCacheKey("baz");
+    byte[] value1 = new byte[51];
+    value1[10] = 'a';
+    byte[] value3 = new byte[53];
+    value3[10] = 'c';
+    final IOException writeException = new IOException();
+    List<BinaryResource> resources = mCache.insertAll(
+        Arrays.asList(key1, key2, key3),
+        Arrays.asList(
+            WriterCallbacks.from(value1),
+            new WriterCallback() {
+              @Override
+              public void write(OutputStream os) throws IOException {
+                throw writeException;
+              }
+            },
+            WriterCallbacks.from(value3)));
+
+    assertEquals(3, resources.size());
+    assertArrayEquals(value1, getContents(resources.get(0)));
+    assertNull(resources.get(1));
+    assertArrayEquals(value3, getContents(resources.get(2)));
+    assertArrayEquals(value1, getContents(getResource(key1)));
+    assertNull(getResource(key2));
+    assertArrayEquals(value3, getContents(getResource(key3)));
+    assertTrue(mCache.hasKeySync(key1));
+    assertFalse(mCache.hasKeySync(key2));
+    assertTrue(mCache.hasKeySync(key3));
+    assertEquals(104, mCache.getSize());
+
+    ArgumentCaptor<CacheEvent> cacheEventCaptor = ArgumentCaptor.forClass(CacheEvent.class);
+    verify(mCacheEventListener, times(3)).onWriteAttempt(cacheEventCaptor.capture());
+    verify(mCacheEventListener).onWriteException(cacheEventCaptor.capture());
+    verify(mCacheEventListener, times(2)).onWriteSuccess(cacheEventCaptor.capture());
+    List<CacheEvent> cacheEvents = cacheEventCaptor.getAllValues();
+    assertEquals(6, cacheEvents.size());
+    CacheEventAssert.assertThat(cacheEvents.get(0)).hasCacheKey(key1);
+    CacheEventAssert.assertThat(cacheEvents.get(1)).hasCacheKey(key2);
+    CacheEventAssert.assertThat(cacheEvents.get(2)).hasCacheKey(key3);
+    CacheEventAssert.assertThat(cacheEvents.get(3)).hasCacheKey(key2).hasException(writeException);
+    CacheEventAssert.assertThat(cacheEvents.get(4)).hasCacheKey(key1).hasItemSize(51);
+    CacheEventAssert.assertThat(cacheEvents.get(5)).hasCacheKey(key3).hasItemSize(53);
+  }
+
+  @Test
+  public void testInsertAllEvictsBeforeTheBatch() throws Exception {
+    when(mClock.now()).thenReturn(TimeUnit.DAYS.toMillis(1));
+    CacheKey key1 = putOneThingInCache();
+    when(mClock.now()).thenReturn(TimeUnit.DAYS.toMillis(2));
+    CacheKey key2 = new SimpleCacheKey("bar");
+    mCache.insert(key2, WriterCallbacks.from(new byte[102]));
+    // now over limit: the batch evicts key1 before it is inserted
+    when(mClock.now()).thenReturn(TimeUnit.DAYS.toMillis(3));
+    CacheKey key3 = new SimpleCacheKey("duck");
+    CacheKey key4 = new SimpleCacheKey("goose");
+    mCache.insertAll(
+        Arrays.asList(key3, key4),
+        Arrays.asList(WriterCallbacks.from(new byte[50]), WriterCallbacks.from(new byte[50])));
+    assertFalse(mCache.hasKeySync(key1));
+    assertTrue(mCache.hasKeySync(key2));
+    assertTrue(mCache.hasKeySync(key3));
+    assertTrue(mCache.hasKeySync(key4));
+    assertEquals(202, mCache.getSize());
+  }
+
   @Test
   public void testCacheFileWithIOException() throws IOException {
     CacheKey key1 = new SimpleCacheKey("aaa");
@@ -604,6 +674,34 @@ public class DiskStorageCacheTest {
     assertTrue(cache2.hasKeySync(key));
   }
 
+  @Test
+  public void testFilterPresentWithoutPopulateAtStartup() throws Exception {
+    CacheKey key1 = putOneThingInCache();
+    CacheKey key2 = new SimpleCacheKey("bar");
+    // A new cache object in the same directory. Equivalent to a process restart.
+    DiskStorageCache cache2 = createDiskCache(mStorage, false);
+    List<CacheKey> keys = Arrays.asList(key2, key1);
+    assertTrue(cache2.filterPresentSync(keys).isEmpty());
+    assertEquals(Arrays.asList(key1), cache2.filterPresent(keys));
+    // filterPresent() adds the keys found to the index
+    assertEquals(Arrays.asList(key1), cache2.filterPresentSync(keys));
+  }
+
+  @Test
+  public void testFilterPresentWithPopulatedIndexSkipsStorage() throws Exception {
+    CacheKey key1 = putOneThingInCache();
+    DiskStorageCache cache2 = createDiskCache(mStorage, true);
+    mBackgroundExecutor.runUntilIdle();
+    assertTrue(cache2.isIndexReady());
+    // inserted behind the back of cache2, so missing from its index
+    CacheKey key2 = new SimpleCacheKey("bar");
+    mCache.insert(key2, WriterCallbacks.from(new byte[10]));
+    List<CacheKey> keys = Arrays.asList(key1, key2);
+    assertEquals(Arrays.asList(key1), cache2.filterPresentSync(keys));
+    assertEquals(Arrays.asList(key1), cache2.filterPresent(keys));
+    assertTrue(cache2.hasKey(key2));
+  }
+
   @Test
   public void testGetResourceWithoutAwaitingIndex() throws Exception {
     CacheKey key = putOneThingInCache();
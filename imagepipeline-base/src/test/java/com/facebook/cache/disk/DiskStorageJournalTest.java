@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.disk;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import com.facebook.binaryresource.BinaryResource;
+import com.facebook.cache.common.CacheErrorLogger;
+import com.facebook.common.file.FileTree;
+import com.facebook.common.internal.Files;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import org.junit.*;
+import org.junit.runner.*;
+import org.robolectric.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class DiskStorageJournalTest {
+
+  private File mDirectory;
+  private CacheErrorLogger mCacheErrorLogger;
+  private DiskStorageJournal mJournal;
+
+  @Before
+  public void setUp() {
+    mDirectory =
+        new File(RuntimeEnvironment.application.getCacheDir(), "disk-storage-journal-test");
+    FileTree.deleteRecursively(mDirectory);
+    assertTrue(mDirectory.mkdirs());
+    mCacheErrorLogger = mock(CacheErrorLogger.class);
+    mJournal = new DiskStorageJournal(mDirectory, mCacheErrorLogger);
+  }
+
+  @Test
+  public void testMissingJournal() {
+    assertNull(mJournal.load());
+    assertFalse(mJournal.isReady());
+    verifyZeroInteractions(mCacheErrorLogger);
+  }
+
+  @Test
+  public void testRecordsSurviveReload() {
+    mJournal.clear();
+    mJournal.recordDirty("a");
+    mJournal.recordClean("a", 10, 100);
+    mJournal.recordDirty("b");
+    mJournal.recordClean("b", 20, 200);
+    mJournal.recordRead("a", 300);
+    mJournal.flush();
+
+    DiskStorageJournal journal = new DiskStorageJournal(mDirectory, mCacheErrorLogger);
+    Collection<String> incompleteIds = journal.load();
+    assertNotNull(incompleteIds);
+    assertTrue(incompleteIds.isEmpty());
+    assertTrue(journal.isReady());
+    List<DiskStorageJournal.Record> records = journal.getRecords();
+    assertEquals(2, records.size());
+    assertRecord(records.get(0), "b", 20, 200);
+    assertRecord(records.get(1), "a", 10, 300);
+  }
+
+  @Test
+  public void testRemove() {
+    mJournal.clear();
+    mJournal.recordClean("a", 10, 100);
+    mJournal.recordClean("b", 20, 200);
+    mJournal.recordRemove("a");
+    assertFalse(mJournal.contains("a"));
+
+    DiskStorageJournal journal = new DiskStorageJournal(mDirectory, mCacheErrorLogger);
+    journal.load();
+    List<DiskStorageJournal.Record> records = journal.getRecords();
+    assertEquals(1, records.size());
+    assertRecord(records.get(0), "b", 20, 200);
+  }
+
+  @Test
+  public void testIdsWithSpaces() {
+    mJournal.clear();
+    mJournal.recordClean("a b c", 10, 100);
+
+    DiskStorageJournal journal = new DiskStorageJournal(mDirectory, mCacheErrorLogger);
+    journal.load();
+    assertRecord(journal.getRecords().get(0), "a b c", 10, 100);
+  }
+
+  @Test
+  public void testIncompleteCommit() throws IOException {
+    mJournal.clear();
+    mJournal.recordClean("a", 10, 100);
+    mJournal.recordDirty("b");
+    assertTrue(mJournal.contains("b"));
+
+    DiskStorageJournal journal = new DiskStorageJournal(mDirectory, mCacheErrorLogger);
+    Collection<String> incompleteIds = journal.load();
+    assertEquals(1, incompleteIds.size());
+    assertTrue(incompleteIds.contains("b"));
+    assertFalse(journal.contains("b"));
+    assertEquals(1, journal.getRecords().size());
+    // the journal has been rewritten without the incomplete commit
+    assertFalse(readJournal().contains("DIRTY"));
+  }
+
+  @Test
+  public void testTruncatedLastLineIsIgnored() throws IOException {
+    mJournal.clear();
+    mJournal.recordClean("a", 10, 100);
+    appendToJournal("CLEAN 20 20");
+
+    DiskStorageJournal journal = new DiskStorageJournal(mDirectory, mCacheErrorLogger);
+    assertNotNull(journal.load());
+    List<DiskStorageJournal.Record> records = journal.getRecords();
+    assertEquals(1, records.size());
+    assertRecord(records.get(0), "a", 10, 100);
+    assertTrue(readJournal().endsWith("\n"));
+    verifyZeroInteractions(mCacheErrorLogger);
+  }
+
+  @Test
+  public void testBadHeader() throws IOException {
+    FileOutputStream fos = new FileOutputStream(new File(mDirectory, "journal"));
+    try {
+      fos.write("something else\nCLEAN 10 100 a\n".getBytes("UTF-8"));
+    } finally {
+      fos.close();
+    }
+    assertNull(mJournal.load());
+    assertTrue(mJournal.getRecords().isEmpty());
+    verify(mCacheErrorLogger).logError(
+        eq(CacheErrorLogger.CacheErrorCategory.READ_INVALID_ENTRY),
+        any(Class.class),
+        anyString(),
+        any(Throwable.class));
+  }
+
+  @Test
+  public void testMalformedRecord() throws IOException {
+    mJournal.clear();
+    appendToJournal("CLEAN x 100 a\n");
+    assertNull(new DiskStorageJournal(mDirectory, mCacheErrorLogger).load());
+  }
+
+  @Test
+  public void testCompaction() throws IOException {
+    mJournal.clear();
+    mJournal.recordClean("a", 10, 100);
+    for (int i = 1; i < DiskStorageJournal.COMPACTION_THRESHOLD; i++) {
+      mJournal.recordRead("a", 100 + i);
+      mJournal.flush();
+    }
+    // the journal only contains the header and the live entry after compaction
+    assertEquals(0, mJournal.mAppendedRecordCount);
+    long lastTimestamp = 100 + DiskStorageJournal.COMPACTION_THRESHOLD - 1;
+    assertEquals(
+        DiskStorageJournal.HEADER + "\nCLEAN 10 " + lastTimestamp + " a\n",
+        readJournal());
+    assertFalse(new File(mDirectory, DiskStorageJournal.JOURNAL_TEMP_FILE_NAME).exists());
+  }
+
+  @Test
+  public void testReadsAreBatched() throws IOException {
+    mJournal.clear();
+    mJournal.recordClean("a", 10, 100);
+    mJournal.recordClean("b", 20, 200);
+    String content = readJournal();
+    for (int i = 1; i < DiskStorageJournal.READ_FLUSH_THRESHOLD; i++) {
+      mJournal.recordRead(i % 2 == 0 ? "a" : "b", 200 + i);
+    }
+    assertEquals(content, readJournal());
+    // repeated reads of an entry are written once, with the timestamp of the latest read
+    mJournal.flush();
+    int last = DiskStorageJournal.READ_FLUSH_THRESHOLD - 1;
+    assertEquals(
+        content + "READ " + (199 + last) + " a\nREAD " + (200 + last) + " b\n",
+        readJournal());
+  }
+
+  @Test
+  public void testPendingReadsAreFlushedAfterInterval() throws IOException {
+    mJournal.clear();
+    mJournal.recordClean("a", 10, 100);
+    mJournal.recordRead("a", 1000);
+    String content = readJournal();
+    mJournal.recordRead("a", 1000 + DiskStorageJournal.READ_FLUSH_INTERVAL_MS);
+    assertEquals(
+        content + "READ " + (1000 + DiskStorageJournal.READ_FLUSH_INTERVAL_MS) + " a\n",
+        readJournal());
+  }
+
+  @Test
+  public void testPendingReadsAreFlushedBeforeOtherRecords() throws IOException {
+    mJournal.clear();
+    mJournal.recordClean("a", 10, 100);
+    mJournal.recordRead("a", 300);
+    mJournal.recordClean("b", 20, 200);
+
+    DiskStorageJournal journal = new DiskStorageJournal(mDirectory, mCacheErrorLogger);
+    journal.load();
+    List<DiskStorageJournal.Record> records = journal.getRecords();
+    assertEquals(2, records.size());
+    assertRecord(records.get(0), "a", 10, 300);
+    assertRecord(records.get(1), "b", 20, 200);
+  }
+
+  @Test
+  public void testRebuild() {
+    mJournal.clear();
+    mJournal.recordClean("a", 10, 100);
+    mJournal.rebuild(Arrays.<DiskStorage.Entry>asList(new TestEntry("b", 20, 200)));
+    assertFalse(mJournal.contains("a"));
+
+    DiskStorageJournal journal = new DiskStorageJournal(mDirectory, mCacheErrorLogger);
+    journal.load();
+    List<DiskStorageJournal.Record> records = journal.getRecords();
+    assertEquals(1, records.size());
+    assertRecord(records.get(0), "b", 20, 200);
+  }
+
+  @Test
+  public void testWriteErrorDisablesJournal() throws IOException {
+    File file = new File(mDirectory, "file");
+    assertTrue(file.createNewFile());
+    DiskStorageJournal journal =
+        new DiskStorageJournal(new File(file, "directory"), mCacheErrorLogger);
+    journal.clear();
+    assertTrue(journal.isDisabled());
+    assertFalse(journal.isReady());
+    verify(mCacheErrorLogger).logError(
+        eq(CacheErrorLogger.CacheErrorCategory.WRITE_INVALID_ENTRY),
+        eq(DiskStorageJournal.class),
+        anyString(),
+        any(IOException.class));
+
+    // the journal stays disabled even once it could be written again
+    assertTrue(file.delete());
+    assertNull(journal.load());
+    journal.rebuild(Arrays.<DiskStorage.Entry>asList(new TestEntry("a", 10, 100)));
+    assertFalse(journal.isReady());
+    assertFalse(journal.contains("a"));
+    assertFalse(new File(new File(file, "directory"), "journal").exists());
+  }
+
+  private String readJournal() throws IOException {
+    return new String(Files.toByteArray(new File(mDirectory, "journal")), "UTF-8");
+  }
+
+  private void appendToJournal(String content) throws IOException {
+    FileOutputStream fos = new FileOutputStream(new File(mDirectory, "journal"), true);
+    try {
+      fos.write(content.getBytes("UTF-8"));
+    } finally {
+      fos.close();
+    }
+  }
+
+  private static void assertRecord(
+      DiskStorageJournal.Record record,
+      String id,
+      long size,
+      long timestamp) {
+    assertEquals(id, record.id);
+    assertEquals(size, record.size);
+    assertEquals(timestamp, record.timestamp);
+  }
+
+  private static class TestEntry implements DiskStorage.Entry {
+    private final String mId;
+    private final long mSize;
+    private final long mTimestamp;
+
+    TestEntry(String id, long size, long timestamp) {
+      mId = id;
+      mSize = size;
+      mTimestamp = timestamp;
+    }
+
+    @Override
+    public String getId() {
+      return mId;
+    }
+
+    @Override
+    public long getTimestamp() {
+      return mTimestamp;
+    }
+
+    @Override
+    public long getSize() {
+      return mSize;
+    }
+
+    @Override
+    public BinaryResource getResource() {
+      return null;
+    }
+  }
+}
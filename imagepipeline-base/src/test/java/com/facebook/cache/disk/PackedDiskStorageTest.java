@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.cache.disk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import com.facebook.binaryresource.BinaryResource;
+import com.facebook.binaryresource.ByteBufferBinaryResource;
+import com.facebook.cache.common.CacheErrorLogger;
+import com.facebook.cache.common.WriterCallback;
+import com.facebook.common.file.FileTree;
+import com.facebook.common.internal.Supplier;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class PackedDiskStorageTest {
+
+  private static final int SEGMENT_SIZE = 1024;
+  private static final long MAX_SIZE = 100 * SEGMENT_SIZE;
+
+  private File mDirectory;
+
+  @Before
+  public void setUp() {
+    mDirectory =
+        new File(RuntimeEnvironment.application.getCacheDir(), "packed-disk-storage-test");
+    FileTree.deleteRecursively(mDirectory);
+  }
+
+  @Test
+  public void testInsertAndRead() throws Exception {
+    PackedDiskStorage storage = newStorage();
+    byte[] value = newValue(100, 1);
+    BinaryResource committed = insert(storage, "resource1", value);
+    assertArrayEquals(value, committed.read());
+
+    BinaryResource resource = storage.getResource("resource1", null);
+    assertTrue(resource instanceof ByteBufferBinaryResource);
+    assertEquals(100, resource.size());
+    assertArrayEquals(value, resource.read());
+    assertTrue(storage.contains("resource1", null));
+    assertTrue(storage.touch("resource1", null));
+    assertNull(storage.getResource("resource2", null));
+    assertFalse(storage.contains("resource2", null));
+    assertFalse(storage.touch("resource2", null));
+  }
+
+  @Test
+  public void testEntriesSurviveRestart() throws Exception {
+    PackedDiskStorage storage = newStorage();
+    Map<String, byte[]> values = new HashMap<>();
+    for (int i = 0; i < 10; i++) {
+      values.put("resource" + i, newValue(100 + i, i));
+      insert(storage, "resource" + i, values.get("resource" + i));
+    }
+    assertTrue(storage.getSegmentCount() > 1);
+    List<DiskStorage.Entry> entries = storage.getEntries();
+
+    PackedDiskStorage reopened = newStorage();
+    assertEquals(10, reopened.getEntries().size());
+    for (DiskStorage.Entry entry : entries) {
+      byte[] value = values.get(entry.getId());
+      BinaryResource resource = reopened.getResource(entry.getId(), null);
+      assertArrayEquals(value, resource.read());
+    }
+    for (DiskStorage.Entry entry : reopened.getEntries()) {
+      assertEquals(values.get(entry.getId()).length, entry.getSize());
+    }
+  }
+
+  @Test
+  public void testTimestampIsPersisted() throws Exception {
+    PackedDiskStorage storage = newStorage();
+    insert(storage, "resource1", newValue(10, 0));
+    storage.touch("resource1", null);
+    long timestamp = storage.getEntries().get(0).getTimestamp();
+
+    assertEquals(timestamp, newStorage().getEntries().get(0).getTimestamp());
+  }
+
+  @Test
+  public void testOverwrite() throws Exception {
+    PackedDiskStorage storage = newStorage();
+    insert(storage, "resource1", newValue(100, 1));
+    byte[] newValue = newValue(50, 2);
+    insert(storage, "resource1", newValue);
+    assertEquals(1, storage.getEntries().size());
+    assertArrayEquals(newValue, storage.getResource("resource1", null).read());
+
+    PackedDiskStorage reopened = newStorage();
+    assertEquals(1, reopened.getEntries().size());
+    assertArrayEquals(newValue, reopened.getResource("resource1", null).read());
+  }
+
+  @Test
+  public void testRemove() throws Exception {
+    PackedDiskStorage storage = newStorage();
+    insert(storage, "resource1", newValue(100, 1));
+    insert(storage, "resource2", newValue(200, 2));
+    assertEquals(100, storage.remove("resource1"));
+    assertEquals(0, storage.remove("resource1"));
+    assertFalse(storage.contains("resource1", null));
+
+    PackedDiskStorage reopened = newStorage();
+    assertFalse(reopened.contains("resource1", null));
+    assertTrue(reopened.contains("resource2", null));
+    assertEquals(200, reopened.remove(reopened.getEntries().get(0)));
+  }
+
+  @Test
+  public void testLargeEntryGetsItsOwnSegment() throws Exception {
+    PackedDiskStorage storage = newStorage();
+    byte[] value = newValue(3 * SEGMENT_SIZE, 7);
+    insert(storage, "resource1", value);
+    assertArrayEquals(value, storage.getResource("resource1", null).read());
+    assertArrayEquals(value, newStorage().getResource("resource1", null).read());
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    PackedDiskStorage storage = newStorage();
+    for (int i = 0; i < 12; i++) {
+      insert(storage, "resource" + i, newValue(200, i));
+    }
+    int segmentCount = storage.getSegmentCount();
+    BinaryResource resource1 = storage.getResource("resource1", null);
+
+    // leave one live entry in the first segments, which get compacted by the removals
+    for (int i = 0; i < 8; i++) {
+      if (i != 1) {
+        storage.remove("resource" + i);
+      }
+    }
+
+    assertTrue(storage.getSegmentCount() < segmentCount);
+    assertEquals(5, storage.getEntries().size());
+    assertArrayEquals(newValue(200, 1), storage.getResource("resource1", null).read());
+    // resources read before the compaction are still valid
+    assertArrayEquals(newValue(200, 1), resource1.read());
+
+    PackedDiskStorage reopened = newStorage();
+    assertEquals(5, reopened.getEntries().size());
+    assertArrayEquals(newValue(200, 1), reopened.getResource("resource1", null).read());
+    for (int i = 8; i < 12; i++) {
+      assertArrayEquals(newValue(200, i), reopened.getResource("resource" + i, null).read());
+    }
+  }
+
+  @Test
+  public void testCompactionKeepsSegmentsWithinSizeLimit() throws Exception {
+    PackedDiskStorage storage = newStorage();
+    PackedDiskStorage limitedStorage = newStorage(
+        new File(mDirectory, "limited"),
+        2 * SEGMENT_SIZE,
+        mock(CacheErrorLogger.class));
+    for (int i = 0; i < 24; i++) {
+      insert(storage, "resource" + i, newValue(200, i));
+      insert(limitedStorage, "resource" + i, newValue(200, i));
+    }
+    int segmentCount = storage.getSegmentCount();
+    // a quarter of each segment is removed, which is not enough to compact it on its own
+    for (int i = 0; i < 24; i += 4) {
+      storage.remove("resource" + i);
+      limitedStorage.remove("resource" + i);
+    }
+    assertEquals(segmentCount, storage.getSegmentCount());
+    assertTrue(limitedStorage.getSegmentCount() < segmentCount);
+
+    PackedDiskStorage reopened =
+        newStorage(new File(mDirectory, "limited"), 2 * SEGMENT_SIZE, mock(CacheErrorLogger.class));
+    assertEquals(18, reopened.getEntries().size());
+    for (int i = 1; i < 24; i++) {
+      if (i % 4 != 0) {
+        assertArrayEquals(newValue(200, i), reopened.getResource("resource" + i, null).read());
+      }
+    }
+  }
+
+  @Test
+  public void testEntryOutgrowingSegmentIsMoved() throws Exception {
+    PackedDiskStorage storage = newStorage();
+    insert(storage, "resource1", newValue(500, 1));
+    final byte[] value = newValue(3 * SEGMENT_SIZE, 2);
+    DiskStorage.Inserter inserter = storage.insert("resource2", null);
+    inserter.writeData(
+        new WriterCallback() {
+          @Override
+          public void write(OutputStream os) throws IOException {
+            for (int i = 0; i < value.length; i += 100) {
+              os.write(value, i, Math.min(100, value.length - i));
+            }
+          }
+        },
+        null);
+    inserter.commit(null);
+    assertArrayEquals(value, storage.getResource("resource2", null).read());
+
+    PackedDiskStorage reopened = newStorage();
+    assertEquals(2, reopened.getEntries().size());
+    assertArrayEquals(newValue(500, 1), reopened.getResource("resource1", null).read());
+    assertArrayEquals(value, reopened.getResource("resource2", null).read());
+  }
+
+  @Test
+  public void testFailedWriteIsDiscarded() throws Exception {
+    CacheErrorLogger cacheErrorLogger = mock(CacheErrorLogger.class);
+    PackedDiskStorage storage = newStorage(mDirectory, MAX_SIZE, cacheErrorLogger);
+    DiskStorage.Inserter inserter = storage.insert("resource1", null);
+    try {
+      inserter.writeData(
+          new WriterCallback() {
+            @Override
+            public void write(OutputStream os) throws IOException {
+              os.write(newValue(100, 1));
+              throw new IOException();
+            }
+          },
+          null);
+      fail();
+    } catch (IOException expected) {
+      // expected
+    }
+    assertTrue(inserter.cleanUp());
+    assertFalse(storage.contains("resource1", null));
+    insert(storage, "resource2", newValue(10, 2));
+
+    PackedDiskStorage reopened = newStorage();
+    assertEquals(1, reopened.getEntries().size());
+    assertArrayEquals(newValue(10, 2), reopened.getResource("resource2", null).read());
+  }
+
+  @Test
+  public void testPendingInsertsAreCommittedInAnyOrder() throws Exception {
+    PackedDiskStorage storage = newStorage();
+    DiskStorage.Inserter inserter1 = startInsert(storage, "resource1", newValue(100, 1));
+    DiskStorage.Inserter inserter2 = startInsert(storage, "resource2", newValue(100, 2));
+    DiskStorage.Inserter inserter3 = startInsert(storage, "resource3", newValue(100, 3));
+    assertFalse(storage.contains("resource1", null));
+    inserter2.commit(null);
+    inserter1.commit(null);
+    inserter3.cleanUp();
+
+    PackedDiskStorage reopened = newStorage();
+    assertEquals(2, reopened.getEntries().size());
+    assertArrayEquals(newValue(100, 1), reopened.getResource("resource1", null).read());
+    assertArrayEquals(newValue(100, 2), reopened.getResource("resource2", null).read());
+    assertFalse(reopened.contains("resource3", null));
+  }
+
+  @Test
+  public void testRootDirectoryIsResolvedOnFirstUse() throws Exception {
+    @SuppressWarnings("unchecked")
+    Supplier<File> rootDirectorySupplier = mock(Supplier.class);
+    when(rootDirectorySupplier.get()).thenReturn(mDirectory);
+    PackedDiskStorage storage = new PackedDiskStorage(
+        rootDirectorySupplier,
+        1,
+        SEGMENT_SIZE,
+        MAX_SIZE,
+        mock(CacheErrorLogger.class));
+    verifyZeroInteractions(rootDirectorySupplier);
+
+    assertFalse(storage.contains("resource1", null));
+    verify(rootDirectorySupplier).get();
+  }
+
+  @Test
+  public void testInterruptedWriteIsIgnored() throws Exception {
+    PackedDiskStorage storage = newStorage();
+    insert(storage, "resource1", newValue(100, 1));
+    int recordLength = PackedDiskStorage.RECORD_HEADER_SIZE + "resource1".length() + 100;
+
+    // the app died in the middle of writing a second record
+    RandomAccessFile file = new RandomAccessFile(getSegmentFile(0), "rw");
+    try {
+      file.seek(recordLength);
+      file.writeInt(PackedDiskStorage.RECORD_MAGIC);
+      file.writeByte(PackedDiskStorage.STATE_PENDING);
+      file.writeLong(0);
+      file.writeInt(100);
+      file.writeShort("resource2".length());
+      file.write("resource2".getBytes("UTF-8"));
+    } finally {
+      file.close();
+    }
+
+    PackedDiskStorage reopened = newStorage();
+    assertEquals(1, reopened.getEntries().size());
+    assertFalse(reopened.contains("resource2", null));
+    // new records are appended after the leftovers
+    insert(reopened, "resource3", newValue(10, 3));
+    PackedDiskStorage reopenedAgain = newStorage();
+    assertEquals(2, reopenedAgain.getEntries().size());
+    assertArrayEquals(newValue(10, 3), reopenedAgain.getResource("resource3", null).read());
+  }
+
+  @Test
+  public void testCommitWithoutData() throws Exception {
+    PackedDiskStorage storage = newStorage();
+    DiskStorage.Inserter inserter = storage.insert("resource1", null);
+    try {
+      inserter.commit(null);
+      fail();
+    } catch (IOException expected) {
+      // expected
+    }
+    assertTrue(inserter.cleanUp());
+    assertFalse(storage.contains("resource1", null));
+  }
+
+  @Test
+  public void testClearAll() throws Exception {
+    PackedDiskStorage storage = newStorage();
+    insert(storage, "resource1", newValue(100, 1));
+    storage.clearAll();
+    assertEquals(0, storage.getEntries().size());
+    assertEquals(0, storage.getSegmentCount());
+    assertEquals(0, newStorage().getEntries().size());
+    insert(storage, "resource2", newValue(100, 2));
+    assertTrue(newStorage().contains("resource2", null));
+  }
+
+  @Test
+  public void testPurgeUnexpectedResources() throws Exception {
+    PackedDiskStorage storage = newStorage();
+    insert(storage, "resource1", newValue(100, 1));
+    File otherVersion = new File(mDirectory, PackedDiskStorage.getVersionSubdirectoryName(2));
+    assertTrue(otherVersion.mkdirs());
+    File unexpectedFile = new File(getSegmentFile(0).getParentFile(), "unexpected");
+    assertTrue(unexpectedFile.createNewFile());
+
+    storage.purgeUnexpectedResources();
+    assertFalse(otherVersion.exists());
+    assertFalse(unexpectedFile.exists());
+    assertTrue(getSegmentFile(0).exists());
+    assertArrayEquals(newValue(100, 1), storage.getResource("resource1", null).read());
+  }
+
+  @Test
+  public void testVersionChangeDeletesOldContent() throws Exception {
+    insert(newStorage(), "resource1", newValue(100, 1));
+    PackedDiskStorage storage = new PackedDiskStorage(
+        mDirectory,
+        2,
+        SEGMENT_SIZE,
+        MAX_SIZE,
+        mock(CacheErrorLogger.class));
+    assertEquals(0, storage.getEntries().size());
+    assertFalse(getSegmentFile(0).exists());
+  }
+
+  private PackedDiskStorage newStorage() {
+    return newStorage(mDirectory, MAX_SIZE, mock(CacheErrorLogger.class));
+  }
+
+  private static PackedDiskStorage newStorage(
+      File directory,
+      long maxSize,
+      CacheErrorLogger cacheErrorLogger) {
+    return new PackedDiskStorage(directory, 1, SEGMENT_SIZE, maxSize, cacheErrorLogger);
+  }
+
+  private File getSegmentFile(int number) {
+    return new File(
+        new File(mDirectory, PackedDiskStorage.getVersionSubdirectoryName(1)),
+        number + ".seg");
+  }
+
+  private static BinaryResource insert(
+      DiskStorage storage,
+      String resourceId,
+      byte[] value) throws IOException {
+    return startInsert(storage, resourceId, value).commit(null);
+  }
+
+  private static DiskStorage.Inserter startInsert(
+      DiskStorage storage,
+      String resourceId,
+      final byte[] value) throws IOException {
+    DiskStorage.Inserter inserter = storage.insert(resourceId, null);
+    inserter.writeData(
+        new WriterCallback() {
+          @Override
+          public void write(OutputStream os) throws IOException {
+            os.write(value);
+          }
+        },
+        null);
+    return inserter;
+  }
+
+  private static byte[] newValue(int size, int seed) {
+    byte[] value = new byte[size];
+    for (int i = 0; i < size; i++) {
+      value[i] = (byte) (seed * 31 + i);
+    }
+    return value;
+  }
+}
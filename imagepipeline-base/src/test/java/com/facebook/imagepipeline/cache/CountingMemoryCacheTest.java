@@ -34,6 +34,7 @@ import com.facebook.common.memory.MemoryTrimType;
 import com.facebook.common.references.CloseableReference;
 import com.facebook.common.references.ResourceReleaser;
 import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory;
+import java.util.List;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -751,6 +752,35 @@ public class CountingMemoryCacheTest {
     assertFalse(mCache.contains(KEYS[0]));
   }
 
+  @Test
+  public void testGetEntrySnapshots() {
+    CloseableReference<Integer> originalRef0 = newReference(100);
+    CloseableReference<Integer> originalRef1 = newReference(200);
+    CloseableReference<Integer> sharedRef = mCache.cache(KEYS[0], originalRef0);
+    mCache.cache(KEYS[1], originalRef1).close();
+    originalRef0.close();
+    originalRef1.close();
+
+    List<CountingMemoryCache.EntrySnapshot<String, Integer>> snapshots =
+        mCache.getEntrySnapshots();
+    assertEquals(2, snapshots.size());
+    assertEquals(KEYS[0], snapshots.get(0).key);
+    assertEquals(100, (int) snapshots.get(0).valueRef.get());
+    assertTrue(snapshots.get(0).isShared);
+    assertEquals(KEYS[1], snapshots.get(1).key);
+    assertEquals(200, (int) snapshots.get(1).valueRef.get());
+    assertFalse(snapshots.get(1).isShared);
+    for (CountingMemoryCache.EntrySnapshot<String, Integer> snapshot : snapshots) {
+      snapshot.valueRef.close();
+    }
+
+    // the snapshots do not hold on to the values
+    sharedRef.close();
+    mCache.clear();
+    verify(mReleaser).release(100);
+    verify(mReleaser).release(200);
+  }
+
   private CloseableReference<Integer> newReference(int size) {
     return CloseableReference.of(size, mReleaser);
   }
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class FrequencySketchTest {
+
+  private FrequencySketch mSketch;
+
+  @Before
+  public void setUp() {
+    mSketch = new FrequencySketch(64);
+  }
+
+  @Test
+  public void testUnseenKey() {
+    assertEquals(0, mSketch.frequency("key"));
+  }
+
+  @Test
+  public void testIncrement() {
+    mSketch.increment("key");
+    mSketch.increment("key");
+    mSketch.increment("key");
+    assertEquals(3, mSketch.frequency("key"));
+    assertEquals(0, mSketch.frequency("other"));
+  }
+
+  @Test
+  public void testFrequencySaturates() {
+    for (int i = 0; i < 2 * FrequencySketch.MAX_FREQUENCY; i++) {
+      mSketch.increment("key");
+    }
+    assertEquals(FrequencySketch.MAX_FREQUENCY, mSketch.frequency("key"));
+  }
+
+  @Test
+  public void testReset() {
+    for (int i = 0; i < 8; i++) {
+      mSketch.increment("key");
+    }
+    mSketch.reset();
+    assertEquals(4, mSketch.frequency("key"));
+  }
+
+  @Test
+  public void testHistoryAges() {
+    for (int i = 0; i < 10; i++) {
+      mSketch.increment("hot");
+    }
+    // enough distinct keys to trigger at least one reset
+    for (int i = 0; i < 10 * 64; i++) {
+      mSketch.increment("key" + i);
+    }
+    assertTrue(mSketch.frequency("hot") < 10);
+  }
+
+  @Test
+  public void testEnsureCapacityKeepsHistory() {
+    mSketch.increment("key");
+    mSketch.ensureCapacity(32);
+    assertEquals(1, mSketch.frequency("key"));
+    mSketch.ensureCapacity(1024);
+    assertEquals(1, mSketch.frequency("key"));
+    assertEquals(0, mSketch.frequency("other"));
+  }
+}
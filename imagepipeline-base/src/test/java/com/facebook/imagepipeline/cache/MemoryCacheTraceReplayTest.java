@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+import com.facebook.cache.common.CacheKey;
+import com.facebook.cache.common.SimpleCacheKey;
+import com.facebook.imagepipeline.cache.MemoryCacheTraceReplayer.Request;
+import com.facebook.imagepipeline.cache.MemoryCacheTraceReplayer.Result;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Compares the hit ratio of the TinyLFU policy against plain LRU.
+ *
+ * <p> To evaluate a recorded trace, run with <code>-Dfresco.memorycache.trace=path/to/trace</code>
+ * and optionally <code>-Dfresco.memorycache.entries=N</code> and
+ * <code>-Dfresco.memorycache.size=bytes</code>.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest=Config.NONE)
+public class MemoryCacheTraceReplayTest {
+
+  private static final String TRACE_PROPERTY = "fresco.memorycache.trace";
+  private static final String ENTRIES_PROPERTY = "fresco.memorycache.entries";
+  private static final String SIZE_PROPERTY = "fresco.memorycache.size";
+
+  private static final int HOT_KEY_COUNT = 50;
+  private static final int SCAN_LENGTH = 4000;
+  private static final int CACHE_ENTRIES = 100;
+
+  @Test
+  public void testReadTrace() throws IOException {
+    List<Request> trace = MemoryCacheTraceReplayer.readTrace(
+        new StringReader("# comment\nhttp://a\n\nhttp://b 300\n"));
+    assertEquals(2, trace.size());
+    assertEquals(new SimpleCacheKey("http://a"), trace.get(0).key);
+    assertEquals(1, trace.get(0).sizeInBytes);
+    assertEquals(new SimpleCacheKey("http://b"), trace.get(1).key);
+    assertEquals(300, trace.get(1).sizeInBytes);
+  }
+
+  @Test
+  public void testTinyLfuIsScanResistant() {
+    List<Request> trace = new ArrayList<>();
+    for (int pass = 0; pass < 10; pass++) {
+      for (int i = 0; i < HOT_KEY_COUNT; i++) {
+        trace.add(request("hot" + i));
+      }
+    }
+    // a long scroll through images seen only once, while the hot images keep being requested
+    for (int i = 0; i < SCAN_LENGTH; i++) {
+      trace.add(request("scan" + i));
+      if (i % 4 == 0) {
+        trace.add(request("hot" + (i / 4) % HOT_KEY_COUNT));
+      }
+    }
+    MemoryCacheParams params = newParams(CACHE_ENTRIES, Integer.MAX_VALUE);
+
+    Result lru = MemoryCacheTraceReplayer.replay(trace, params, null);
+    Result tinyLfu =
+        MemoryCacheTraceReplayer.replay(trace, params, new TinyLfuEvictionPolicy<CacheKey>());
+
+    assertTrue(
+        "LRU: " + lru + ", TinyLFU: " + tinyLfu,
+        tinyLfu.getHitRatio() > lru.getHitRatio() + 0.1);
+  }
+
+  @Test
+  public void testReplayRecordedTrace() throws IOException {
+    String tracePath = System.getProperty(TRACE_PROPERTY);
+    assumeNotNull(tracePath);
+    List<Request> trace;
+    FileReader reader = new FileReader(tracePath);
+    try {
+      trace = MemoryCacheTraceReplayer.readTrace(reader);
+    } finally {
+      reader.close();
+    }
+    MemoryCacheParams params = newParams(
+        Integer.getInteger(ENTRIES_PROPERTY, 256),
+        Integer.getInteger(SIZE_PROPERTY, Integer.MAX_VALUE));
+
+    Result lru = MemoryCacheTraceReplayer.replay(trace, params, null);
+    Result tinyLfu =
+        MemoryCacheTraceReplayer.replay(trace, params, new TinyLfuEvictionPolicy<CacheKey>());
+    assertTrue(
+        "LRU: " + lru + ", TinyLFU: " + tinyLfu,
+        tinyLfu.getHitRatio() >= lru.getHitRatio());
+  }
+
+  private static Request request(String uri) {
+    return new Request(new SimpleCacheKey(uri), 1);
+  }
+
+  private static MemoryCacheParams newParams(int maxEntries, int maxSize) {
+    return new MemoryCacheParams(maxSize, maxEntries, maxSize, maxEntries, maxSize);
+  }
+}
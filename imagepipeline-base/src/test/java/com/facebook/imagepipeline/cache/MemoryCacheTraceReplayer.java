@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import com.facebook.cache.common.CacheKey;
+import com.facebook.cache.common.SimpleCacheKey;
+import com.facebook.common.internal.Supplier;
+import com.facebook.common.memory.MemoryTrimType;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.common.references.ResourceReleaser;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Replays a recorded trace of cache key requests against a {@link CountingMemoryCache} and
+ * reports the hit ratio, so that eviction policies can be compared on real access patterns.
+ *
+ * <p> The trace contains one request per line: the URI of the {@link CacheKey}, optionally
+ * followed by a space and the size of the value in bytes. Empty lines and lines starting with
+ * <code>#</code> are ignored.
+ *
+ * <p> Every request is a lookup followed by an insertion on a miss, and the client reference is
+ * released right away, as if the image had been scrolled off-screen.
+ */
+public class MemoryCacheTraceReplayer {
+
+  private static final int DEFAULT_VALUE_SIZE = 1;
+
+  /** A single request of the trace. */
+  public static class Request {
+    public final CacheKey key;
+    public final int sizeInBytes;
+
+    public Request(CacheKey key, int sizeInBytes) {
+      this.key = key;
+      this.sizeInBytes = sizeInBytes;
+    }
+  }
+
+  /** Outcome of a replay. */
+  public static class Result {
+    public final int requestCount;
+    public final int hitCount;
+
+    public Result(int requestCount, int hitCount) {
+      this.requestCount = requestCount;
+      this.hitCount = hitCount;
+    }
+
+    public double getHitRatio() {
+      return requestCount == 0 ? 0 : (double) hitCount / requestCount;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d/%d hits (%.2f%%)", hitCount, requestCount, 100 * getHitRatio());
+    }
+  }
+
+  private static final ValueDescriptor<Integer> VALUE_DESCRIPTOR =
+      new ValueDescriptor<Integer>() {
+        @Override
+        public int getSizeInBytes(Integer value) {
+          return value;
+        }
+      };
+
+  private static final CountingMemoryCache.CacheTrimStrategy NO_TRIM_STRATEGY =
+      new CountingMemoryCache.CacheTrimStrategy() {
+        @Override
+        public double getTrimRatio(MemoryTrimType trimType) {
+          return 0;
+        }
+      };
+
+  private static final ResourceReleaser<Integer> NO_OP_RELEASER =
+      new ResourceReleaser<Integer>() {
+        @Override
+        public void release(Integer value) {
+        }
+      };
+
+  /** Parses a trace in the format described above. */
+  public static List<Request> readTrace(Reader reader) throws IOException {
+    BufferedReader bufferedReader = new BufferedReader(reader);
+    List<Request> trace = new ArrayList<>();
+    String line;
+    while ((line = bufferedReader.readLine()) != null) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      int separator = line.lastIndexOf(' ');
+      if (separator > 0) {
+        trace.add(new Request(
+            new SimpleCacheKey(line.substring(0, separator)),
+            Integer.parseInt(line.substring(separator + 1))));
+      } else {
+        trace.add(new Request(new SimpleCacheKey(line), DEFAULT_VALUE_SIZE));
+      }
+    }
+    return trace;
+  }
+
+  /**
+   * Replays the trace against a new cache.
+   *
+   * @param evictionPolicy the policy to evaluate, null for the default LRU
+   */
+  public static Result replay(
+      List<Request> trace,
+      final MemoryCacheParams params,
+      @Nullable CacheEvictionPolicy<CacheKey> evictionPolicy) {
+    CountingMemoryCache<CacheKey, Integer> cache =
+        new CountingMemoryCache<>(
+            VALUE_DESCRIPTOR,
+            NO_TRIM_STRATEGY,
+            new Supplier<MemoryCacheParams>() {
+              @Override
+              public MemoryCacheParams get() {
+                return params;
+              }
+            },
+            null,
+            false,
+            evictionPolicy);
+    int hitCount = 0;
+    for (Request request : trace) {
+      CloseableReference<Integer> ref = cache.get(request.key);
+      if (ref != null) {
+        hitCount++;
+      } else {
+        CloseableReference<Integer> original =
+            CloseableReference.of(request.sizeInBytes, NO_OP_RELEASER);
+        ref = cache.cache(request.key, original);
+        original.close();
+      }
+      CloseableReference.closeSafely(ref);
+    }
+    return new Result(trace.size(), hitCount);
+  }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.os.SystemClock;
+import com.facebook.common.internal.Supplier;
+import com.facebook.common.memory.MemoryTrimType;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.common.references.ResourceReleaser;
+import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@PrepareForTest({SystemClock.class})
+@PowerMockIgnore({ "org.mockito.*", "org.robolectric.*", "android.*" })
+@Config(manifest=Config.NONE)
+public class SegmentedCountingMemoryCacheTest {
+
+  private static final int CACHE_MAX_SIZE = 1200;
+  private static final int CACHE_MAX_COUNT = 4;
+  private static final int CACHE_EVICTION_QUEUE_MAX_SIZE = 1100;
+  private static final int CACHE_EVICTION_QUEUE_MAX_COUNT = 3;
+  private static final int CACHE_ENTRY_MAX_SIZE = 1000;
+  private static final int SEGMENT_COUNT = 4;
+
+  @Mock public ResourceReleaser<Integer> mReleaser;
+  @Mock public CountingMemoryCache.CacheTrimStrategy mCacheTrimStrategy;
+  @Mock public Supplier<MemoryCacheParams> mParamsSupplier;
+  @Mock public CountingMemoryCache.EntryStateObserver<String> mEntryStateObserver;
+
+  @Rule
+  public PowerMockRule rule = new PowerMockRule();
+
+  private SegmentedCountingMemoryCache<String, Integer> mCache;
+
+  private static final String KEY = "KEY";
+  private static final String[] KEYS =
+      new String[] {"k0", "k1", "k2", "k3", "k4", "k5", "k6", "k7", "k8", "k9"};
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    PowerMockito.mockStatic(SystemClock.class);
+    PowerMockito.when(SystemClock.uptimeMillis()).thenReturn(0L);
+    ValueDescriptor<Integer> valueDescriptor =
+        new ValueDescriptor<Integer>() {
+          @Override
+          public int getSizeInBytes(Integer value) {
+            return value;
+          }
+        };
+    MemoryCacheParams params = new MemoryCacheParams(
+        CACHE_MAX_SIZE,
+        CACHE_MAX_COUNT,
+        CACHE_EVICTION_QUEUE_MAX_SIZE,
+        CACHE_EVICTION_QUEUE_MAX_COUNT,
+        CACHE_ENTRY_MAX_SIZE);
+    when(mParamsSupplier.get()).thenReturn(params);
+    mCache = new SegmentedCountingMemoryCache<>(
+        valueDescriptor,
+        mCacheTrimStrategy,
+        mParamsSupplier,
+        mock(PlatformBitmapFactory.class),
+        false,
+        SEGMENT_COUNT);
+  }
+
+  @Test
+  public void testSegmentCountIsRoundedUpToPowerOfTwo() {
+    SegmentedCountingMemoryCache<String, Integer> cache = new SegmentedCountingMemoryCache<>(
+        new ValueDescriptor<Integer>() {
+          @Override
+          public int getSizeInBytes(Integer value) {
+            return value;
+          }
+        },
+        mCacheTrimStrategy,
+        mParamsSupplier,
+        mock(PlatformBitmapFactory.class),
+        false,
+        5);
+    assertEquals(8, cache.getSegmentCount());
+  }
+
+  @Test
+  public void testKeysAreSpreadAcrossSegments() {
+    int usedSegments = 0;
+    for (SegmentedCountingMemoryCache.Segment<String, Integer> segment : mCache.mSegments) {
+      for (String key : KEYS) {
+        if (mCache.segmentFor(key) == segment) {
+          usedSegments++;
+          break;
+        }
+      }
+    }
+    assertTrue("keys should map to more than one segment", usedSegments > 1);
+  }
+
+  @Test
+  public void testCache() {
+    cache(KEY, 100);
+    assertTotalSize(1, 100);
+    assertExclusivelyOwnedSize(0, 0);
+    assertSharedWithCount(KEY, 100, 1);
+    verify(mReleaser, never()).release(anyInt());
+  }
+
+  @Test
+  public void testClosingClientReference() {
+    CloseableReference<Integer> cachedRef = cache(KEY, 100);
+    cachedRef.close();
+    assertTotalSize(1, 100);
+    assertExclusivelyOwnedSize(1, 100);
+    assertExclusivelyOwned(KEY, 100);
+    verify(mReleaser, never()).release(anyInt());
+  }
+
+  @Test
+  public void testGet() {
+    CloseableReference<Integer> cachedRef = cache(KEY, 100);
+    cachedRef.close();
+    CloseableReference<Integer> gotRef = mCache.get(KEY);
+    assertNotNull(gotRef);
+    assertEquals(100, (int) gotRef.get());
+    assertSharedWithCount(KEY, 100, 1);
+    assertExclusivelyOwnedSize(0, 0);
+    assertNull(mCache.get(KEYS[0]));
+  }
+
+  @Test
+  public void testToggleExclusive() {
+    CloseableReference<Integer> cachedRef = cache(KEY, 100, mEntryStateObserver);
+    cachedRef.close();
+    verify(mEntryStateObserver).onExclusivityChanged(KEY, true);
+    mCache.get(KEY);
+    verify(mEntryStateObserver).onExclusivityChanged(KEY, false);
+  }
+
+  @Test
+  public void testCanReuseExclusive() {
+    CloseableReference<Integer> cachedRef = cache(KEY, 100, mEntryStateObserver);
+    assertNull(mCache.reuse(KEY));
+    cachedRef.close();
+    cachedRef = mCache.reuse(KEY);
+    assertNotNull(cachedRef);
+    verify(mEntryStateObserver).onExclusivityChanged(KEY, false);
+    assertTotalSize(0, 0);
+    assertExclusivelyOwnedSize(0, 0);
+    cachedRef.close();
+    verify(mReleaser).release(100);
+  }
+
+  @Test
+  public void testCachingSameKeyTwice() {
+    CloseableReference<Integer> cachedRef1 = cache(KEY, 110);
+    CountingMemoryCache.Entry<String, Integer> entry1 =
+        mCache.segmentFor(KEY).cachedEntries.get(KEY);
+    CloseableReference<Integer> cachedRef2 = cache(KEY, 120);
+    assertTrue(entry1.isOrphan);
+    assertTotalSize(1, 120);
+    assertSharedWithCount(KEY, 120, 1);
+    verify(mReleaser, never()).release(anyInt());
+    cachedRef1.close();
+    verify(mReleaser).release(110);
+    cachedRef2.close();
+    verify(mReleaser, never()).release(120);
+  }
+
+  @Test
+  public void testDoesNotCacheBigValues() {
+    assertNull(cache(KEY, CACHE_ENTRY_MAX_SIZE + 1));
+  }
+
+  @Test
+  public void testEviction_ByTotalCountAcrossSegments() {
+    CloseableReference<Integer>[] refs = new CloseableReference[5];
+    for (int i = 0; i < 5; i++) {
+      refs[i] = cache(KEYS[i], 100 + i);
+    }
+    // the count limit is global, so the fifth item cannot be cached while the others are in use
+    assertNull(refs[4]);
+    assertTotalSize(4, 406);
+    for (int i = 0; i < 4; i++) {
+      refs[i].close();
+    }
+    // at most 3 items can be exclusively owned
+    assertTotalSize(3, mCache.getSizeInBytes());
+    assertExclusivelyOwnedSize(3, mCache.getSizeInBytes());
+    // the rejected value plus one evicted value
+    verify(mReleaser).release(104);
+    verify(mReleaser, times(2)).release(anyInt());
+  }
+
+  @Test
+  public void testEviction_ByTotalSizeAcrossSegments() {
+    CloseableReference<Integer> ref1 = cache(KEYS[1], 400);
+    CloseableReference<Integer> ref2 = cache(KEYS[2], 500);
+    CloseableReference<Integer> ref3 = cache(KEYS[3], 100);
+    assertNull(cache(KEYS[4], 700));
+    ref1.close();
+    ref2.close();
+    ref3.close();
+    assertExclusivelyOwnedSize(3, 1000);
+
+    // there is room for the new value only after evicting enough exclusively owned items
+    CloseableReference<Integer> ref4 = cache(KEYS[4], 700);
+    assertNotNull(ref4);
+    assertTrue(mCache.getSizeInBytes() <= CACHE_MAX_SIZE);
+    assertSharedWithCount(KEYS[4], 700, 1);
+    ref4.close();
+  }
+
+  @Test
+  public void testRemoveAllMatchingPredicate() {
+    CloseableReference<Integer> ref1 = cache(KEYS[1], 110);
+    CloseableReference<Integer> ref2 = cache(KEYS[2], 120);
+    ref2.close();
+    CloseableReference<Integer> ref3 = cache(KEYS[3], 130);
+    ref3.close();
+
+    int numEvictedEntries = mCache.removeAll(
+        new com.android.internal.util.Predicate<String>() {
+          @Override
+          public boolean apply(String key) {
+            return key.equals(KEYS[1]) || key.equals(KEYS[2]);
+          }
+        });
+    assertEquals(2, numEvictedEntries);
+    assertTotalSize(1, 130);
+    assertExclusivelyOwnedSize(1, 130);
+    assertExclusivelyOwned(KEYS[3], 130);
+    verify(mReleaser).release(120);
+    verify(mReleaser, never()).release(110);
+    ref1.close();
+    verify(mReleaser).release(110);
+  }
+
+  @Test
+  public void testClear() {
+    CloseableReference<Integer> ref1 = cache(KEYS[1], 110);
+    CloseableReference<Integer> ref2 = cache(KEYS[2], 120);
+    ref2.close();
+
+    mCache.clear();
+    assertTotalSize(0, 0);
+    assertExclusivelyOwnedSize(0, 0);
+    verify(mReleaser).release(120);
+    ref1.close();
+    verify(mReleaser).release(110);
+  }
+
+  @Test
+  public void testTrimming() {
+    MemoryTrimType memoryTrimType = MemoryTrimType.OnCloseToDalvikHeapLimit;
+    CloseableReference<Integer> ref1 = cache(KEYS[1], 100);
+    CloseableReference<Integer> ref2 = cache(KEYS[2], 200);
+    CloseableReference<Integer> ref3 = cache(KEYS[3], 300);
+    ref2.close();
+    ref3.close();
+
+    when(mCacheTrimStrategy.getTrimRatio(memoryTrimType)).thenReturn(1.00);
+    mCache.trim(memoryTrimType);
+    assertTotalSize(1, 100);
+    assertExclusivelyOwnedSize(0, 0);
+    assertSharedWithCount(KEYS[1], 100, 1);
+    verify(mReleaser).release(200);
+    verify(mReleaser).release(300);
+    ref1.close();
+  }
+
+  @Test
+  public void testContains() {
+    assertFalse(mCache.contains(KEY));
+    CloseableReference<Integer> newRef = cache(KEY, 100);
+    assertTrue(mCache.contains(KEY));
+    assertFalse(mCache.contains(KEYS[0]));
+    newRef.close();
+    assertTrue(mCache.contains(KEY));
+    mCache.reuse(KEY).close();
+    assertFalse(mCache.contains(KEY));
+  }
+
+  @Test
+  public void testGetEntrySnapshots() {
+    CloseableReference<Integer> sharedRef = cache(KEYS[0], 100);
+    cache(KEYS[1], 200).close();
+    assertSame(mParamsSupplier.get(), mCache.getMemoryCacheParams());
+
+    List<CountingMemoryCache.EntrySnapshot<String, Integer>> snapshots =
+        mCache.getEntrySnapshots();
+    assertEquals(2, snapshots.size());
+    for (CountingMemoryCache.EntrySnapshot<String, Integer> snapshot : snapshots) {
+      assertEquals(KEYS[0].equals(snapshot.key), snapshot.isShared);
+      assertEquals(KEYS[0].equals(snapshot.key) ? 100 : 200, (int) snapshot.valueRef.get());
+      snapshot.valueRef.close();
+    }
+
+    // the snapshots do not hold on to the values
+    sharedRef.close();
+    mCache.clear();
+    verify(mReleaser).release(100);
+    verify(mReleaser).release(200);
+  }
+
+  /** Caches a new value and closes the original reference. */
+  private CloseableReference<Integer> cache(String key, int size) {
+    return cache(key, size, null);
+  }
+
+  private CloseableReference<Integer> cache(
+      String key,
+      int size,
+      CountingMemoryCache.EntryStateObserver<String> observer) {
+    CloseableReference<Integer> originalRef = CloseableReference.of(size, mReleaser);
+    CloseableReference<Integer> cachedRef = mCache.cache(key, originalRef, observer);
+    originalRef.close();
+    return cachedRef;
+  }
+
+  private void assertSharedWithCount(String key, Integer value, int count) {
+    SegmentedCountingMemoryCache.Segment<String, Integer> segment = mCache.segmentFor(key);
+    assertTrue("key not found in the cache", segment.cachedEntries.contains(key));
+    assertFalse("key found in the exclusives", segment.exclusiveEntries.contains(key));
+    CountingMemoryCache.Entry<String, Integer> entry = segment.cachedEntries.get(key);
+    assertEquals("value mismatch", value, entry.valueRef.get());
+    assertEquals("client count mismatch", count, entry.clientCount);
+    assertFalse("entry is an orphan", entry.isOrphan);
+  }
+
+  private void assertExclusivelyOwned(String key, Integer value) {
+    SegmentedCountingMemoryCache.Segment<String, Integer> segment = mCache.segmentFor(key);
+    assertTrue("key not found in the exclusives", segment.exclusiveEntries.contains(key));
+    CountingMemoryCache.Entry<String, Integer> entry = segment.cachedEntries.get(key);
+    assertSame("entry mismatch", entry, segment.exclusiveEntries.get(key));
+    assertEquals("value mismatch", value, entry.valueRef.get());
+    assertEquals("client count greater than zero", 0, entry.clientCount);
+  }
+
+  private void assertTotalSize(int count, int bytes) {
+    assertEquals("total cache count mismatch", count, mCache.getCount());
+    assertEquals("total cache size mismatch", bytes, mCache.getSizeInBytes());
+  }
+
+  private void assertExclusivelyOwnedSize(int count, int bytes) {
+    assertEquals("total exclusives count mismatch", count, mCache.getEvictionQueueCount());
+    assertEquals("total exclusives size mismatch", bytes, mCache.getEvictionQueueSizeInBytes());
+  }
+}
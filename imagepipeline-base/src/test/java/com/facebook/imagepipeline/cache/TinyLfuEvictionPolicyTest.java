@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class TinyLfuEvictionPolicyTest {
+
+  private TinyLfuEvictionPolicy<String> mPolicy;
+  private CountingLruMap<String, Integer> mExclusiveEntries;
+
+  @Before
+  public void setUp() {
+    mPolicy = new TinyLfuEvictionPolicy<>(64, 10);
+    mExclusiveEntries = new CountingLruMap<>(
+        new ValueDescriptor<Integer>() {
+          @Override
+          public int getSizeInBytes(Integer value) {
+            return value;
+          }
+        });
+  }
+
+  @Test
+  public void testInsertGoesToWindow() {
+    insert("k0");
+    assertEquals(TinyLfuEvictionPolicy.Region.WINDOW, mPolicy.mRegions.get("k0"));
+    assertTrue(mPolicy.mWindow.contains("k0"));
+    assertTrue(mPolicy.mProbation.isEmpty());
+    assertTrue(mPolicy.mProtected.isEmpty());
+  }
+
+  @Test
+  public void testInsertedKeyIsInUseUntilReleased() {
+    miss("k0");
+    mPolicy.onInsert("k0");
+    assertFalse(mPolicy.mWindow.contains("k0"));
+    assertNull(mPolicy.selectVictim(mExclusiveEntries));
+    release("k0");
+    assertTrue(mPolicy.mWindow.contains("k0"));
+  }
+
+  @Test
+  public void testWindowOverflowIsNotAdmittedWithoutDuel() {
+    insert("k0");
+    insert("k1");
+    insert("k2");
+    insert("k3");
+    assertTrue(mPolicy.mProbation.isEmpty());
+    assertEquals(4, mPolicy.mWindow.size());
+  }
+
+  @Test
+  public void testWindowOverflowFillsEmptyMainRegion() {
+    insert("k0");
+    insert("k1");
+    insert("k2");
+    insert("k3");
+    // the cache filled up, so the overflow of the window becomes the main region
+    assertEquals("k0", select());
+    assertEquals(TinyLfuEvictionPolicy.Region.PROBATION, mPolicy.mRegions.get("k1"));
+    assertEquals(TinyLfuEvictionPolicy.Region.PROBATION, mPolicy.mRegions.get("k2"));
+    assertEquals(TinyLfuEvictionPolicy.Region.WINDOW, mPolicy.mRegions.get("k3"));
+  }
+
+  @Test
+  public void testFrequentCandidateIsAdmitted() {
+    fillMainRegion("k0");
+    miss("k1");
+    miss("k1");
+    insert("k1");
+    insert("k2");
+    // k1 is requested more often than k0, so k0 is evicted in its favour
+    assertEquals("k0", select());
+    assertEquals(TinyLfuEvictionPolicy.Region.PROBATION, mPolicy.mRegions.get("k1"));
+  }
+
+  @Test
+  public void testInfrequentCandidateIsRejected() {
+    miss("k0");
+    miss("k0");
+    fillMainRegion("k0");
+    insert("k1");
+    insert("k2");
+    assertEquals("k1", select());
+    assertEquals(TinyLfuEvictionPolicy.Region.PROBATION, mPolicy.mRegions.get("k0"));
+  }
+
+  @Test
+  public void testTieFavoursMainRegion() {
+    fillMainRegion("k0");
+    insert("k1");
+    insert("k2");
+    assertEquals("k1", select());
+  }
+
+  @Test
+  public void testCandidateInUseDuelsOnceReleased() {
+    fillMainRegion("k0");
+    miss("k1");
+    miss("k1");
+    miss("k1");
+    mPolicy.onInsert("k1");
+    insert("k2");
+    // k1 is in use, so the least recently used exclusively owned key of the window competes
+    assertEquals("k2", select());
+    release("k1");
+    insert("k3");
+    assertEquals("k0", select());
+    assertEquals(TinyLfuEvictionPolicy.Region.PROBATION, mPolicy.mRegions.get("k1"));
+  }
+
+  @Test
+  public void testMissIsCountedOnce() {
+    insert("k0");
+    assertEquals(1, mPolicy.mSketch.frequency("k0"));
+    access("k0");
+    assertEquals(2, mPolicy.mSketch.frequency("k0"));
+  }
+
+  @Test
+  public void testProbationHitIsPromoted() {
+    fillMainRegion("k0");
+    access("k0");
+    assertEquals(TinyLfuEvictionPolicy.Region.PROTECTED, mPolicy.mRegions.get("k0"));
+    assertFalse(mPolicy.mProtected.contains("k0"));
+    release("k0");
+    assertTrue(mPolicy.mProtected.contains("k0"));
+    assertFalse(mPolicy.mProbation.contains("k0"));
+  }
+
+  @Test
+  public void testProtectedOverflowIsDemoted() {
+    fillMainRegion("k0", "k1");
+    access("k0");
+    release("k0");
+    access("k1");
+    release("k1");
+    // only 80% of the main region can be protected
+    assertTrue(mPolicy.mProbation.contains("k0"));
+    assertTrue(mPolicy.mProtected.contains("k1"));
+  }
+
+  @Test
+  public void testSelectedVictimIsNoLongerTracked() {
+    insert("k0");
+    assertEquals("k0", select());
+    assertTrue(mPolicy.mRegions.isEmpty());
+    assertNull(select());
+  }
+
+  @Test
+  public void testNoVictim() {
+    miss("k0");
+    mPolicy.onInsert("k0");
+    assertNull(select());
+  }
+
+  @Test
+  public void testRemove() {
+    fillMainRegion("k0");
+    insert("k1");
+    access("k0");
+    mPolicy.onRemove("k0");
+    mPolicy.onRemove("k1");
+    assertTrue(mPolicy.mRegions.isEmpty());
+    assertTrue(mPolicy.mWindow.isEmpty());
+    assertTrue(mPolicy.mProbation.isEmpty());
+    assertTrue(mPolicy.mProtected.isEmpty());
+  }
+
+  /**
+   * Has the keys admitted to the main region as the cache fills up for the first time, leaving
+   * the window empty.
+   */
+  private void fillMainRegion(String... keys) {
+    insert("first");
+    for (String key : keys) {
+      insert(key);
+    }
+    insert("last");
+    assertEquals("first", select());
+    mPolicy.onRemove("last");
+    mExclusiveEntries.remove("last");
+    for (String key : keys) {
+      assertEquals(TinyLfuEvictionPolicy.Region.PROBATION, mPolicy.mRegions.get(key));
+    }
+  }
+
+  /** Selects and evicts a victim, as the cache does. */
+  private String select() {
+    String victim = mPolicy.selectVictim(mExclusiveEntries);
+    if (victim != null) {
+      assertTrue(mExclusiveEntries.contains(victim));
+      mExclusiveEntries.remove(victim);
+      mPolicy.onRemove(victim);
+    }
+    return victim;
+  }
+
+  /** Inserts the key and releases it, as a miss followed by a fetch does. */
+  private void insert(String key) {
+    miss(key);
+    mPolicy.onInsert(key);
+    release(key);
+  }
+
+  private void release(String key) {
+    mPolicy.onExclusive(key);
+    mExclusiveEntries.put(key, 1);
+  }
+
+  private void miss(String key) {
+    mPolicy.onAccess(key, false);
+  }
+
+  private void access(String key) {
+    mPolicy.onAccess(key, true);
+    mExclusiveEntries.remove(key);
+  }
+}
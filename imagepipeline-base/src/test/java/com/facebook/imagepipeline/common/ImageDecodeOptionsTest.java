@@ -9,6 +9,7 @@ package com.facebook.imagepipeline.common;
 import static org.fest.assertions.api.Assertions.assertThat;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import com.facebook.imagepipeline.decoder.ImageDecoder;
 import org.junit.Before;
 import org.junit.Test;
@@ -64,6 +65,33 @@ public class ImageDecodeOptionsTest {
     assertThat(newOptions).isNotEqualTo(originalOptions);
   }
 
+  @Test
+  public void testSetFrom_whenRegionChanged_thenNotEqual() throws Exception {
+    ImageDecodeOptions originalOptions = createSampleDecodeOptions();
+
+    ImageDecodeOptions newOptions =
+        ImageDecodeOptions.newBuilder()
+            .setFrom(originalOptions)
+            .setRegionToDecode(new Rect(0, 0, 512, 256))
+            .build();
+
+    assertThat(newOptions).isNotEqualTo(originalOptions);
+  }
+
+  @Test
+  public void testSetRegionToDecode_copiesRegion() throws Exception {
+    Rect region = new Rect(0, 0, 256, 256);
+    ImageDecodeOptions options = ImageDecodeOptions.newBuilder().setRegionToDecode(region).build();
+    region.offset(256, 0);
+
+    assertThat(options.regionToDecode).isEqualTo(new Rect(0, 0, 256, 256));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSetRegionSampleSize_notPowerOfTwo() throws Exception {
+    ImageDecodeOptions.newBuilder().setRegionSampleSize(3);
+  }
+
   private ImageDecodeOptions createSampleDecodeOptions() {
     return ImageDecodeOptions.newBuilder()
         .setBitmapConfig(mBitmapConfig)
@@ -72,6 +100,8 @@ public class ImageDecodeOptionsTest {
         .setDecodePreviewFrame(true)
         .setForceStaticImage(true)
         .setMinDecodeIntervalMs(MIN_DECODE_INTERVAL_MS)
+        .setRegionSampleSize(2)
+        .setRegionToDecode(new Rect(0, 0, 256, 256))
         .setUseLastFrameForPreview(true)
         .build();
   }
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import static org.junit.Assert.*;
+
+import com.facebook.imagepipeline.common.Priority;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PriorityExecutorTest {
+
+  private static final long TIMEOUT_MS = 5000;
+
+  private List<String> mRunOrder;
+  private CountDownLatch mBlockerLatch;
+
+  @Before
+  public void setUp() {
+    mRunOrder = Collections.synchronizedList(new ArrayList<String>());
+    mBlockerLatch = new CountDownLatch(1);
+  }
+
+  @After
+  public void tearDown() {
+    mBlockerLatch.countDown();
+  }
+
+  @Test
+  public void testRunsInOrderOfPriority() throws Exception {
+    PriorityExecutor executor = new PriorityExecutor(1, newThreadFactory("worker"));
+    block(executor);
+    executor.execute(new Task("low1", Priority.LOW));
+    executor.execute(new Task("medium", Priority.MEDIUM));
+    executor.execute(new Task("low2", Priority.LOW));
+    executor.execute(new Task("high", Priority.HIGH));
+    assertEquals(2, executor.getQueuedCount(Priority.LOW));
+    assertEquals(1, executor.getQueuedCount(Priority.HIGH));
+
+    CountDownLatch done = runAfter(executor, Priority.LOW);
+    mBlockerLatch.countDown();
+    assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    assertEquals(Arrays.asList("high", "medium", "low1", "low2"), mRunOrder);
+  }
+
+  @Test
+  public void testLowPriorityIsNotStarved() throws Exception {
+    PriorityExecutor executor = new PriorityExecutor(1, newThreadFactory("worker"));
+    block(executor);
+    executor.execute(new Task("low", Priority.LOW));
+    List<String> expectedRunOrder = new ArrayList<>();
+    for (int i = 0; i < PriorityExecutor.MAX_PASSED_OVER_COUNT + 2; i++) {
+      executor.execute(new Task("high" + i, Priority.HIGH));
+      expectedRunOrder.add("high" + i);
+    }
+    expectedRunOrder.add(PriorityExecutor.MAX_PASSED_OVER_COUNT, "low");
+
+    CountDownLatch done = runAfter(executor, Priority.LOW);
+    mBlockerLatch.countDown();
+    assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    assertEquals(expectedRunOrder, mRunOrder);
+  }
+
+  @Test
+  public void testDefaultPriority() throws Exception {
+    PriorityExecutor executor = new PriorityExecutor(1, newThreadFactory("worker"));
+    block(executor);
+    executor.execute(new Task("low", Priority.LOW));
+    executor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            mRunOrder.add("plain");
+          }
+        });
+    executor.execute(new Task("high", Priority.HIGH));
+    assertEquals(Priority.MEDIUM, PriorityExecutor.DEFAULT_PRIORITY);
+    assertEquals(1, executor.getQueuedCount(Priority.MEDIUM));
+
+    CountDownLatch done = runAfter(executor, Priority.LOW);
+    mBlockerLatch.countDown();
+    assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    assertEquals(Arrays.asList("high", "plain", "low"), mRunOrder);
+  }
+
+  @Test
+  public void testReprioritize() throws Exception {
+    PriorityExecutor executor = new PriorityExecutor(1, newThreadFactory("worker"));
+    block(executor);
+    Task prefetch = new Task("prefetch", Priority.LOW);
+    executor.execute(prefetch);
+    executor.execute(new Task("medium", Priority.MEDIUM));
+    prefetch.mPriority = Priority.HIGH;
+    assertTrue(executor.reprioritize(prefetch));
+    assertEquals(0, executor.getQueuedCount(Priority.LOW));
+    assertEquals(1, executor.getQueuedCount(Priority.HIGH));
+
+    CountDownLatch done = runAfter(executor, Priority.LOW);
+    mBlockerLatch.countDown();
+    assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    assertEquals(Arrays.asList("prefetch", "medium"), mRunOrder);
+    // not queued anymore
+    assertFalse(executor.reprioritize(prefetch));
+  }
+
+  @Test
+  public void testStartsThreadsOnDemand() throws Exception {
+    PriorityExecutor executor = new PriorityExecutor(3, newThreadFactory("worker"));
+    assertEquals(0, executor.getThreadCount());
+    block(executor);
+    assertEquals(1, executor.getThreadCount());
+    CountDownLatch done = runAfter(executor, Priority.LOW);
+    assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    assertEquals(2, executor.getThreadCount());
+  }
+
+  @Test
+  public void testStealsWorkWhenIdle() throws Exception {
+    PriorityExecutor.WorkStealingGroup group = new PriorityExecutor.WorkStealingGroup();
+    PriorityExecutor decodeExecutor = new PriorityExecutor(1, newThreadFactory("decode"), group);
+    PriorityExecutor backgroundExecutor =
+        new PriorityExecutor(1, newThreadFactory("background"), group);
+    block(decodeExecutor);
+    // start the thread of the background executor, and let it go idle
+    assertTrue(runAfter(backgroundExecutor, Priority.LOW).await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+    final List<String> threadNames = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch done = new CountDownLatch(1);
+    decodeExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            threadNames.add(Thread.currentThread().getName());
+            done.countDown();
+          }
+        });
+    assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    assertEquals(Arrays.asList("background"), threadNames);
+  }
+
+  @Test
+  public void testReplacesThreadAfterFailure() throws Exception {
+    final List<Throwable> uncaught = Collections.synchronizedList(new ArrayList<Throwable>());
+    final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+    final ThreadFactory threadFactory = newThreadFactory("worker");
+    PriorityExecutor executor =
+        new PriorityExecutor(
+            1,
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable runnable) {
+                Thread thread = threadFactory.newThread(runnable);
+                thread.setUncaughtExceptionHandler(
+                    new Thread.UncaughtExceptionHandler() {
+                      @Override
+                      public void uncaughtException(Thread thread, Throwable throwable) {
+                        uncaught.add(throwable);
+                      }
+                    });
+                threads.add(thread);
+                return thread;
+              }
+            });
+    block(executor);
+    final RuntimeException exception = new RuntimeException();
+    executor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            throw exception;
+          }
+        });
+    CountDownLatch done = runAfter(executor, Priority.LOW);
+    mBlockerLatch.countDown();
+    assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    threads.get(0).join(TIMEOUT_MS);
+    assertEquals(Arrays.asList(exception), uncaught);
+    assertEquals(2, threads.size());
+    assertEquals(1, executor.getThreadCount());
+  }
+
+  /**
+   * Occupies a thread of the executor until mBlockerLatch is released
+   */
+  private void block(PriorityExecutor executor) throws InterruptedException {
+    final CountDownLatch started = new CountDownLatch(1);
+    executor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            started.countDown();
+            try {
+              mBlockerLatch.await();
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+    assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+  }
+
+  private static CountDownLatch runAfter(PriorityExecutor executor, final Priority priority) {
+    final CountDownLatch done = new CountDownLatch(1);
+    executor.execute(
+        new PrioritizedRunnable() {
+          @Override
+          public Priority getPriority() {
+            return priority;
+          }
+
+          @Override
+          public void run() {
+            done.countDown();
+          }
+        });
+    return done;
+  }
+
+  private static ThreadFactory newThreadFactory(final String name) {
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  private class Task implements PrioritizedRunnable {
+
+    private final String mName;
+    private volatile Priority mPriority;
+
+    private Task(String name, Priority priority) {
+      mName = name;
+      mPriority = priority;
+    }
+
+    @Override
+    public Priority getPriority() {
+      return mPriority;
+    }
+
+    @Override
+    public void run() {
+      mRunOrder.add(mName);
+    }
+  }
+}
@@ -260,12 +260,15 @@ public class EncodedImageTest {
     encodedImage.setWidth(1);
     encodedImage.setHeight(2);
     encodedImage.setSampleSize(3);
+    encodedImage.setTargetSize(1, 1);
     EncodedImage encodedImage2 = new EncodedImage(mByteBufferRef);
     encodedImage2.copyMetaDataFrom(encodedImage);
     assertEquals(encodedImage.getImageFormat(), encodedImage2.getImageFormat());
     assertEquals(encodedImage.getWidth(), encodedImage2.getWidth());
     assertEquals(encodedImage.getHeight(), encodedImage2.getHeight());
     assertEquals(encodedImage.getSampleSize(), encodedImage2.getSampleSize());
+    assertEquals(encodedImage.getTargetWidth(), encodedImage2.getTargetWidth());
+    assertEquals(encodedImage.getTargetHeight(), encodedImage2.getTargetHeight());
     assertEquals(encodedImage.getSize(), encodedImage2.getSize());
     assertEquals(encodedImage.getExifOrientation(), encodedImage2.getExifOrientation());
 
@@ -91,6 +91,24 @@ public class BitmapMemoryCacheKey implements CacheKey {
     return mSourceString;
   }
 
+  @Nullable
+  public ResizeOptions getResizeOptions() {
+    return mResizeOptions;
+  }
+
+  public RotationOptions getRotationOptions() {
+    return mRotationOptions;
+  }
+
+  public ImageDecodeOptions getImageDecodeOptions() {
+    return mImageDecodeOptions;
+  }
+
+  @Nullable
+  public CacheKey getPostprocessorCacheKey() {
+    return mPostprocessorCacheKey;
+  }
+
   @Nullable
   public String getPostprocessorName() {
     return mPostprocessorName;
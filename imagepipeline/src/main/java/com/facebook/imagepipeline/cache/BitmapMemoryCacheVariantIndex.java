@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import com.facebook.cache.common.CacheKey;
+import com.facebook.common.internal.Objects;
+import com.facebook.common.internal.VisibleForTesting;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.common.ResizeOptions;
+import com.facebook.imagepipeline.image.CloseableImage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Index of the sizes at which each source is decoded in the bitmap memory cache.
+ *
+ * <p> Since {@link BitmapMemoryCacheKey} includes the {@link ResizeOptions}, a request for a small
+ * version of an image misses the cache even if a larger version of the same image is in it. This
+ * index allows to find that larger version, which can be displayed scaled down instead of fetching
+ * and decoding the image again.
+ *
+ * <p> The index is only a hint: it does not hold on to the images, and entries for images evicted
+ * from the cache are dropped when they are found missing. Only final, full quality images without
+ * postprocessing are indexed.
+ */
+@ThreadSafe
+public class BitmapMemoryCacheVariantIndex {
+
+  @VisibleForTesting static final int MAX_SOURCES = 256;
+  @VisibleForTesting static final int MAX_VARIANTS_PER_SOURCE = 4;
+
+  private final MemoryCache<CacheKey, CloseableImage> mMemoryCache;
+
+  @GuardedBy("this")
+  private final LinkedHashMap<String, List<Variant>> mVariants;
+
+  public BitmapMemoryCacheVariantIndex(MemoryCache<CacheKey, CloseableImage> memoryCache) {
+    mMemoryCache = memoryCache;
+    mVariants = new LinkedHashMap<String, List<Variant>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, List<Variant>> eldest) {
+        return size() > MAX_SOURCES;
+      }
+    };
+  }
+
+  /**
+   * Records that an image was cached with the given key.
+   * @param cacheKey the key the image is cached with
+   * @param image the cached image
+   */
+  public void addVariant(BitmapMemoryCacheKey cacheKey, CloseableImage image) {
+    if (cacheKey.getPostprocessorCacheKey() != null
+        || image.isStateful()
+        || !image.getQualityInfo().isOfFullQuality()) {
+      return;
+    }
+    Variant variant = new Variant(cacheKey, image.getWidth(), image.getHeight());
+    synchronized (this) {
+      List<Variant> variants = mVariants.get(cacheKey.getUriString());
+      if (variants == null) {
+        variants = new ArrayList<>(MAX_VARIANTS_PER_SOURCE);
+        mVariants.put(cacheKey.getUriString(), variants);
+      }
+      for (int i = 0; i < variants.size(); i++) {
+        if (variants.get(i).mCacheKey.equals(cacheKey)) {
+          variants.remove(i);
+          break;
+        }
+      }
+      if (variants.size() >= MAX_VARIANTS_PER_SOURCE) {
+        variants.remove(0);
+      }
+      variants.add(variant);
+    }
+  }
+
+  /**
+   * Gets the smallest image in the cache that is at least as large as the one requested with the
+   * given key, and was decoded with the same options otherwise.
+   * @param cacheKey the key of the requested image
+   * @return a reference to the cached image, or null if there is none
+   */
+  @Nullable
+  public CloseableReference<CloseableImage> getLargerVariant(BitmapMemoryCacheKey cacheKey) {
+    ResizeOptions resizeOptions = cacheKey.getResizeOptions();
+    if (resizeOptions == null || cacheKey.getPostprocessorCacheKey() != null) {
+      // only a variant decoded at full size would do, and it would have the same key
+      return null;
+    }
+    while (true) {
+      Variant variant = findLargerVariant(cacheKey, resizeOptions);
+      if (variant == null) {
+        return null;
+      }
+      CloseableReference<CloseableImage> reference = mMemoryCache.get(variant.mCacheKey);
+      if (reference != null) {
+        return reference;
+      }
+      removeVariant(variant);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int getVariantCount(String sourceString) {
+    List<Variant> variants = mVariants.get(sourceString);
+    return variants == null ? 0 : variants.size();
+  }
+
+  @Nullable
+  private synchronized Variant findLargerVariant(
+      BitmapMemoryCacheKey cacheKey,
+      ResizeOptions resizeOptions) {
+    List<Variant> variants = mVariants.get(cacheKey.getUriString());
+    if (variants == null) {
+      return null;
+    }
+    Variant bestVariant = null;
+    for (int i = 0; i < variants.size(); i++) {
+      Variant variant = variants.get(i);
+      if (variant.mWidth >= resizeOptions.width
+          && variant.mHeight >= resizeOptions.height
+          && isCompatible(cacheKey, variant.mCacheKey)
+          && (bestVariant == null || variant.getArea() < bestVariant.getArea())) {
+        bestVariant = variant;
+      }
+    }
+    return bestVariant;
+  }
+
+  private synchronized void removeVariant(Variant variant) {
+    List<Variant> variants = mVariants.get(variant.mCacheKey.getUriString());
+    if (variants != null) {
+      variants.remove(variant);
+      if (variants.isEmpty()) {
+        mVariants.remove(variant.mCacheKey.getUriString());
+      }
+    }
+  }
+
+  private static boolean isCompatible(
+      BitmapMemoryCacheKey requestedKey,
+      BitmapMemoryCacheKey variantKey) {
+    return Objects.equal(requestedKey.getRotationOptions(), variantKey.getRotationOptions())
+        && Objects.equal(requestedKey.getImageDecodeOptions(), variantKey.getImageDecodeOptions());
+  }
+
+  private static class Variant {
+
+    private final BitmapMemoryCacheKey mCacheKey;
+    private final int mWidth;
+    private final int mHeight;
+
+    private Variant(BitmapMemoryCacheKey cacheKey, int width, int height) {
+      mCacheKey = cacheKey;
+      mWidth = width;
+      mHeight = height;
+    }
+
+    private long getArea() {
+      return (long) mWidth * mHeight;
+    }
+  }
+}
@@ -7,25 +7,38 @@
 
 package com.facebook.imagepipeline.cache;
 
+import bolts.Continuation;
 import bolts.Task;
 import com.facebook.binaryresource.BinaryResource;
+import com.facebook.binaryresource.ByteBufferBinaryResource;
+import com.facebook.binaryresource.FileBinaryResource;
 import com.facebook.cache.common.CacheKey;
 import com.facebook.cache.common.WriterCallback;
+import com.facebook.cache.disk.BatchFileCache;
 import com.facebook.cache.disk.FileCache;
 import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.VisibleForTesting;
 import com.facebook.common.logging.FLog;
 import com.facebook.common.memory.PooledByteBuffer;
 import com.facebook.common.memory.PooledByteBufferFactory;
 import com.facebook.common.memory.PooledByteStreams;
 import com.facebook.common.references.CloseableReference;
 import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.memory.MappedPooledByteBuffer;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * BufferedDiskCache provides get and put operations to take care of scheduling disk-cache
@@ -34,6 +47,13 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class BufferedDiskCache {
   private static final Class<?> TAG = BufferedDiskCache.class;
 
+  // max number of writes inserted into the file cache at once, in write-behind mode
+  private static final int MAX_WRITE_BATCH_SIZE = 32;
+
+  // files smaller than this are read into a pooled buffer even if mapped reads are enabled: for
+  // them, setting up and tearing down a mapping costs more than the copy it saves
+  @VisibleForTesting static final int MIN_MAPPED_READ_SIZE = 64 * 1024;
+
   private final FileCache mFileCache;
   private final PooledByteBufferFactory mPooledByteBufferFactory;
   private final PooledByteStreams mPooledByteStreams;
@@ -41,6 +61,15 @@ public class BufferedDiskCache {
   private final Executor mWriteExecutor;
   private final StagingArea mStagingArea;
   private final ImageCacheStatsTracker mImageCacheStatsTracker;
+  private final boolean mMappedReadsEnabled;
+  private final boolean mWriteBehindEnabled;
+  private final Runnable mWriteBatchRunnable;
+
+  // writes waiting for the next batch, in write-behind mode. They are still in the staging area.
+  @GuardedBy("mPendingWrites")
+  private final LinkedHashMap<CacheKey, EncodedImage> mPendingWrites = new LinkedHashMap<>();
+  @GuardedBy("mPendingWrites")
+  private boolean mWriteBatchScheduled;
 
   public BufferedDiskCache(
       FileCache fileCache,
@@ -49,13 +78,69 @@ public class BufferedDiskCache {
       Executor readExecutor,
       Executor writeExecutor,
       ImageCacheStatsTracker imageCacheStatsTracker) {
+    this(
+        fileCache,
+        pooledByteBufferFactory,
+        pooledByteStreams,
+        readExecutor,
+        writeExecutor,
+        imageCacheStatsTracker,
+        false);
+  }
+
+  /**
+   * @param mappedReadsEnabled whether to memory-map the content of disk cache hits instead of
+   *     copying it into a pooled buffer
+   */
+  public BufferedDiskCache(
+      FileCache fileCache,
+      PooledByteBufferFactory pooledByteBufferFactory,
+      PooledByteStreams pooledByteStreams,
+      Executor readExecutor,
+      Executor writeExecutor,
+      ImageCacheStatsTracker imageCacheStatsTracker,
+      boolean mappedReadsEnabled) {
+    this(
+        fileCache,
+        pooledByteBufferFactory,
+        pooledByteStreams,
+        readExecutor,
+        writeExecutor,
+        imageCacheStatsTracker,
+        mappedReadsEnabled,
+        false);
+  }
+
+  /**
+   * @param mappedReadsEnabled whether to memory-map the content of disk cache hits instead of
+   *     copying it into a pooled buffer
+   * @param writeBehindEnabled whether to coalesce the writes that are pending on the write
+   *     executor into batches, see {@link #put}
+   */
+  public BufferedDiskCache(
+      FileCache fileCache,
+      PooledByteBufferFactory pooledByteBufferFactory,
+      PooledByteStreams pooledByteStreams,
+      Executor readExecutor,
+      Executor writeExecutor,
+      ImageCacheStatsTracker imageCacheStatsTracker,
+      boolean mappedReadsEnabled,
+      boolean writeBehindEnabled) {
     mFileCache = fileCache;
     mPooledByteBufferFactory = pooledByteBufferFactory;
     mPooledByteStreams = pooledByteStreams;
     mReadExecutor = readExecutor;
     mWriteExecutor = writeExecutor;
     mImageCacheStatsTracker = imageCacheStatsTracker;
+    mMappedReadsEnabled = mappedReadsEnabled;
+    mWriteBehindEnabled = writeBehindEnabled;
     mStagingArea = StagingArea.getInstance();
+    mWriteBatchRunnable = new Runnable() {
+      @Override
+      public void run() {
+        writePendingBatch();
+      }
+    };
   }
 
   /**
@@ -106,6 +191,73 @@ public class BufferedDiskCache {
     }
   }
 
+  /**
+   * Returns the keys that are in the staging area or in the in-memory key index, looking them all
+   * up at once.
+   *
+   * Not guaranteed to be correct. The cache may yet have a key missing from the result. But the
+   * keys in it are definitely in the cache.
+   *
+   * Avoids a disk read.
+   * @param keys
+   * @return the keys found, in the order they were given
+   */
+  public List<CacheKey> filterPresentSync(List<CacheKey> keys) {
+    List<CacheKey> keysNotStaged = new ArrayList<>(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      if (!mStagingArea.containsKey(keys.get(i))) {
+        keysNotStaged.add(keys.get(i));
+      }
+    }
+    if (keysNotStaged.size() == keys.size()) {
+      return filterPresentInFileCacheSync(keys);
+    }
+    return retainKeys(keys, keysNotStaged, filterPresentInFileCacheSync(keysNotStaged));
+  }
+
+  /**
+   * Performs a key-value look up of several keys at once. The keys that are not found in the
+   * staging area or in the in-memory key index are all checked in a single task scheduled on a
+   * background thread, instead of one task per key. Any error manifests itself as a cache miss,
+   * i.e. the returned Task resolves to the keys found before the error.
+   * @param keys
+   * @return Task that resolves to the keys found, in the order they were given
+   */
+  public Task<List<CacheKey>> filterPresent(final List<CacheKey> keys) {
+    final List<CacheKey> presentKeys = filterPresentSync(keys);
+    if (presentKeys.size() == keys.size()) {
+      return Task.forResult(presentKeys);
+    }
+    try {
+      return Task.call(
+          new Callable<List<CacheKey>>() {
+            @Override
+            public List<CacheKey> call() throws Exception {
+              return filterPresentInStagingAreaAndFileCache(keys, presentKeys);
+            }
+          },
+          mReadExecutor);
+    } catch (Exception exception) {
+      FLog.w(TAG, exception, "Failed to schedule disk-cache read for %d keys", keys.size());
+      return Task.forResult(presentKeys);
+    }
+  }
+
+  /**
+   * Checks whether all the keys are in the cache. See {@link #filterPresent}.
+   * @param keys
+   * @return Task that resolves to true if all the keys are found, or false otherwise
+   */
+  public Task<Boolean> containsAll(final List<CacheKey> keys) {
+    return filterPresent(keys).onSuccess(
+        new Continuation<List<CacheKey>, Boolean>() {
+          @Override
+          public Boolean then(Task<List<CacheKey>> task) throws Exception {
+            return task.getResult().size() == keys.size();
+          }
+        });
+  }
+
   /**
    * Performs disk cache check synchronously.
    * @param key
@@ -134,6 +286,74 @@ public class BufferedDiskCache {
     return getAsync(key, isCancelled);
   }
 
+  private List<CacheKey> filterPresentInStagingAreaAndFileCache(
+      List<CacheKey> keys,
+      List<CacheKey> presentKeys) {
+    List<CacheKey> keysToCheck = new ArrayList<>(keys.size() - presentKeys.size());
+    for (int i = 0, j = 0; i < keys.size(); i++) {
+      if (j < presentKeys.size() && keys.get(i) == presentKeys.get(j)) {
+        j++;
+      } else if (!mStagingArea.containsKey(keys.get(i))) {
+        keysToCheck.add(keys.get(i));
+      }
+    }
+    try {
+      return retainKeys(keys, keysToCheck, filterPresentInFileCache(keysToCheck));
+    } catch (Exception exception) {
+      FLog.w(TAG, exception, "Exception checking %d keys in the disk cache", keysToCheck.size());
+      return presentKeys;
+    }
+  }
+
+  private List<CacheKey> filterPresentInFileCacheSync(List<CacheKey> keys) {
+    if (mFileCache instanceof BatchFileCache) {
+      return ((BatchFileCache) mFileCache).filterPresentSync(keys);
+    }
+    List<CacheKey> presentKeys = new ArrayList<>(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      if (mFileCache.hasKeySync(keys.get(i))) {
+        presentKeys.add(keys.get(i));
+      }
+    }
+    return presentKeys;
+  }
+
+  private List<CacheKey> filterPresentInFileCache(List<CacheKey> keys) {
+    if (mFileCache instanceof BatchFileCache) {
+      return ((BatchFileCache) mFileCache).filterPresent(keys);
+    }
+    List<CacheKey> presentKeys = new ArrayList<>(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      if (mFileCache.hasKey(keys.get(i))) {
+        presentKeys.add(keys.get(i));
+      }
+    }
+    return presentKeys;
+  }
+
+  /**
+   * @return the keys, in order, minus the checked keys that were not found
+   */
+  private static List<CacheKey> retainKeys(
+      List<CacheKey> keys,
+      List<CacheKey> checkedKeys,
+      List<CacheKey> foundKeys) {
+    List<CacheKey> result = new ArrayList<>(keys.size());
+    for (int i = 0, j = 0, k = 0; i < keys.size(); i++) {
+      CacheKey key = keys.get(i);
+      if (j < checkedKeys.size() && key == checkedKeys.get(j)) {
+        j++;
+        if (k < foundKeys.size() && key == foundKeys.get(k)) {
+          k++;
+          result.add(key);
+        }
+      } else {
+        result.add(key);
+      }
+    }
+    return result;
+  }
+
   /**
    * Performs key-value loop up in staging area and file cache.
    * Any error manifests itself as a miss, i.e. returns false.
@@ -216,6 +436,11 @@ public class BufferedDiskCache {
   /**
    * Associates encodedImage with given key in disk cache. Disk write is performed on background
    * thread, so the caller of this method is not blocked
+   *
+   * <p> In write-behind mode, the writes that are put while a batch is waiting for the write
+   * executor join that batch, and are inserted into the file cache together. A newer write for a
+   * key replaces the pending one. The images are served from the staging area until their batch
+   * has been inserted.
    */
   public void put(
       final CacheKey key,
@@ -226,6 +451,11 @@ public class BufferedDiskCache {
     // Store encodedImage in staging area
     mStagingArea.put(key, encodedImage);
 
+    if (mWriteBehindEnabled) {
+      putPendingWrite(key, encodedImage);
+      return;
+    }
+
     // Write to disk cache. This will be executed on background thread, so increment the ref count.
     // When this write completes (with success/failure), then we will bump down the ref count
     // again.
@@ -256,12 +486,122 @@ public class BufferedDiskCache {
     }
   }
 
+  private void putPendingWrite(CacheKey key, EncodedImage encodedImage) {
+    // the pending write holds a reference, which is closed once it has been written
+    EncodedImage pendingEncodedImage = EncodedImage.cloneOrNull(encodedImage);
+    EncodedImage droppedEncodedImage;
+    boolean shouldSchedule;
+    synchronized (mPendingWrites) {
+      droppedEncodedImage = mPendingWrites.put(key, pendingEncodedImage);
+      shouldSchedule = !mWriteBatchScheduled;
+      mWriteBatchScheduled = true;
+    }
+    EncodedImage.closeSafely(droppedEncodedImage);
+    if (shouldSchedule) {
+      scheduleWriteBatch();
+    }
+  }
+
+  private void scheduleWriteBatch() {
+    try {
+      mWriteExecutor.execute(mWriteBatchRunnable);
+    } catch (Exception exception) {
+      // We failed to enqueue cache write. Log failure and drop the pending writes
+      // TODO: 3697790
+      FLog.w(TAG, exception, "Failed to schedule disk-cache write batch");
+      List<EncodedImage> droppedEncodedImages;
+      List<CacheKey> droppedKeys;
+      synchronized (mPendingWrites) {
+        droppedKeys = new ArrayList<>(mPendingWrites.keySet());
+        droppedEncodedImages = new ArrayList<>(mPendingWrites.values());
+        mPendingWrites.clear();
+        mWriteBatchScheduled = false;
+      }
+      for (int i = 0; i < droppedKeys.size(); i++) {
+        mStagingArea.remove(droppedKeys.get(i), droppedEncodedImages.get(i));
+        EncodedImage.closeSafely(droppedEncodedImages.get(i));
+      }
+    }
+  }
+
+  /**
+   * Writes the oldest pending writes to the disk cache, and schedules the next batch if there are
+   * more left.
+   */
+  private void writePendingBatch() {
+    List<CacheKey> keys;
+    List<EncodedImage> encodedImages;
+    boolean hasMore;
+    synchronized (mPendingWrites) {
+      int batchSize = Math.min(mPendingWrites.size(), MAX_WRITE_BATCH_SIZE);
+      keys = new ArrayList<>(batchSize);
+      encodedImages = new ArrayList<>(batchSize);
+      Iterator<Map.Entry<CacheKey, EncodedImage>> iterator =
+          mPendingWrites.entrySet().iterator();
+      while (keys.size() < batchSize) {
+        Map.Entry<CacheKey, EncodedImage> entry = iterator.next();
+        keys.add(entry.getKey());
+        encodedImages.add(entry.getValue());
+        iterator.remove();
+      }
+      hasMore = !mPendingWrites.isEmpty();
+      mWriteBatchScheduled = hasMore;
+    }
+    if (keys.isEmpty()) {
+      // the pending writes were removed in the meantime
+      return;
+    }
+    try {
+      writeToDiskCache(keys, encodedImages);
+    } finally {
+      for (int i = 0; i < keys.size(); i++) {
+        mStagingArea.remove(keys.get(i), encodedImages.get(i));
+        EncodedImage.closeSafely(encodedImages.get(i));
+      }
+    }
+    if (hasMore) {
+      scheduleWriteBatch();
+    }
+  }
+
+  /**
+   * Drops the pending write of the key, if any
+   */
+  private void removePendingWrite(CacheKey key) {
+    if (!mWriteBehindEnabled) {
+      return;
+    }
+    EncodedImage droppedEncodedImage;
+    synchronized (mPendingWrites) {
+      droppedEncodedImage = mPendingWrites.remove(key);
+    }
+    EncodedImage.closeSafely(droppedEncodedImage);
+  }
+
+  /**
+   * Drops all the pending writes
+   */
+  private void clearPendingWrites() {
+    if (!mWriteBehindEnabled) {
+      return;
+    }
+    List<EncodedImage> droppedEncodedImages;
+    synchronized (mPendingWrites) {
+      droppedEncodedImages = new ArrayList<>(mPendingWrites.values());
+      mPendingWrites.clear();
+    }
+    for (int i = 0; i < droppedEncodedImages.size(); i++) {
+      EncodedImage.closeSafely(droppedEncodedImages.get(i));
+    }
+  }
+
   /**
    * Removes the item from the disk cache and the staging area.
    */
   public Task<Void> remove(final CacheKey key) {
     Preconditions.checkNotNull(key);
     mStagingArea.remove(key);
+    removePendingWrite(key);
     try {
       return Task.call(
           new Callable<Void>() {
@@ -286,6 +626,7 @@ public class BufferedDiskCache {
    */
   public Task<Void> clearAll() {
     mStagingArea.clearAll();
+    clearPendingWrites();
     try {
       return Task.call(
           new Callable<Void>() {
@@ -328,12 +669,14 @@ public class BufferedDiskCache {
         mImageCacheStatsTracker.onDiskCacheHit();
       }
 
-      PooledByteBuffer byteBuffer;
-      final InputStream is = diskCacheResource.openStream();
-      try {
-        byteBuffer = mPooledByteBufferFactory.newByteBuffer(is, (int) diskCacheResource.size());
-      } finally {
-        is.close();
+      PooledByteBuffer byteBuffer = mMappedReadsEnabled ? mapResource(diskCacheResource) : null;
+      if (byteBuffer == null) {
+        final InputStream is = diskCacheResource.openStream();
+        try {
+          byteBuffer = mPooledByteBufferFactory.newByteBuffer(is, (int) diskCacheResource.size());
+        } finally {
+          is.close();
+        }
       }
 
       FLog.v(TAG, "Successful read from disk cache for %s", key.getUriString());
@@ -348,6 +691,29 @@ public class BufferedDiskCache {
     }
   }
 
+  /**
+   * Maps the content of the resource instead of copying it, if the storage backs it with a mapped
+   * buffer, or with a file of at least {@link #MIN_MAPPED_READ_SIZE} bytes. The content is only
+   * copied with the pooled byte buffer factory if native code needs it, which is the case of
+   * animated images.
+   *
+   * @return the mapped content, or null if it should be copied
+   */
+  @Nullable
+  private PooledByteBuffer mapResource(BinaryResource resource) throws IOException {
+    if (resource instanceof ByteBufferBinaryResource) {
+      return new MappedPooledByteBuffer(
+          ((ByteBufferBinaryResource) resource).getByteBuffer(),
+          mPooledByteBufferFactory);
+    } else if (resource instanceof FileBinaryResource
+        && resource.size() >= MIN_MAPPED_READ_SIZE) {
+      return MappedPooledByteBuffer.map(
+          ((FileBinaryResource) resource).getFile(),
+          mPooledByteBufferFactory);
+    }
+    return null;
+  }
+
   /**
    * Writes to disk cache
    * @throws IOException
@@ -372,4 +738,42 @@ public class BufferedDiskCache {
       FLog.w(TAG, ioe, "Failed to write to disk-cache for key %s", key.getUriString());
     }
   }
+
+  /**
+   * Writes a batch to disk cache
+   */
+  private void writeToDiskCache(List<CacheKey> keys, List<EncodedImage> encodedImages) {
+    if (!(mFileCache instanceof BatchFileCache)) {
+      for (int i = 0; i < keys.size(); i++) {
+        writeToDiskCache(keys.get(i), encodedImages.get(i));
+      }
+      return;
+    }
+    FLog.v(TAG, "About to write a batch of %d to disk-cache", keys.size());
+    List<WriterCallback> writers = new ArrayList<>(keys.size());
+    for (int i = 0; i < encodedImages.size(); i++) {
+      final EncodedImage encodedImage = encodedImages.get(i);
+      writers.add(
+          new WriterCallback() {
+            @Override
+            public void write(OutputStream os) throws IOException {
+              mPooledByteStreams.copy(encodedImage.getInputStream(), os);
+            }
+          });
+    }
+    try {
+      List<BinaryResource> resources = ((BatchFileCache) mFileCache).insertAll(keys, writers);
+      for (int i = 0; i < keys.size(); i++) {
+        if (resources.get(i) != null) {
+          FLog.v(TAG, "Successful disk-cache write for key %s", keys.get(i).getUriString());
+        } else {
+          FLog.w(TAG, "Failed to write to disk-cache for key %s", keys.get(i).getUriString());
+        }
+      }
+    } catch (IOException ioe) {
+      // Log failure
+      // TODO: 3697790
+      FLog.w(TAG, ioe, "Failed to write a batch of %d to disk-cache", keys.size());
+    }
+  }
 }
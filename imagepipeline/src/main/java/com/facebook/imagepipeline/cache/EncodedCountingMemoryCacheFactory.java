@@ -19,6 +19,18 @@ public class EncodedCountingMemoryCacheFactory {
        Supplier<MemoryCacheParams> encodedMemoryCacheParamsSupplier,
        MemoryTrimmableRegistry memoryTrimmableRegistry,
        PlatformBitmapFactory platformBitmapFactory) {
+    return get(
+        encodedMemoryCacheParamsSupplier,
+        memoryTrimmableRegistry,
+        platformBitmapFactory,
+        CountingMemoryCacheOptions.<CacheKey>defaults());
+  }
+
+  public static CountingMemoryCache<CacheKey, PooledByteBuffer> get(
+       Supplier<MemoryCacheParams> encodedMemoryCacheParamsSupplier,
+       MemoryTrimmableRegistry memoryTrimmableRegistry,
+       PlatformBitmapFactory platformBitmapFactory,
+       CountingMemoryCacheOptions<CacheKey> options) {
 
     ValueDescriptor<PooledByteBuffer> valueDescriptor =
         new ValueDescriptor<PooledByteBuffer>() {
@@ -30,13 +42,26 @@ public class EncodedCountingMemoryCacheFactory {
 
     CountingMemoryCache.CacheTrimStrategy trimStrategy = new NativeMemoryCacheTrimStrategy();
 
-    CountingMemoryCache<CacheKey, PooledByteBuffer> countingCache =
-        new CountingMemoryCache<>(
-            valueDescriptor,
-            trimStrategy,
-            encodedMemoryCacheParamsSupplier,
-            platformBitmapFactory,
-            false);
+    CountingMemoryCache<CacheKey, PooledByteBuffer> countingCache;
+    if (options.getSegmentCount() > 1) {
+      countingCache =
+          new SegmentedCountingMemoryCache<>(
+              valueDescriptor,
+              trimStrategy,
+              encodedMemoryCacheParamsSupplier,
+              platformBitmapFactory,
+              false,
+              options.getSegmentCount());
+    } else {
+      countingCache =
+          new CountingMemoryCache<>(
+              valueDescriptor,
+              trimStrategy,
+              encodedMemoryCacheParamsSupplier,
+              platformBitmapFactory,
+              false,
+              options.getEvictionPolicy());
+    }
 
     memoryTrimmableRegistry.registerMemoryTrimmable(countingCache);
 
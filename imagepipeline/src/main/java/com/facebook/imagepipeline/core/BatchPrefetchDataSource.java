@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import com.facebook.common.executors.CallerThreadExecutor;
+import com.facebook.common.internal.VisibleForTesting;
+import com.facebook.datasource.AbstractDataSource;
+import com.facebook.datasource.BaseDataSubscriber;
+import com.facebook.datasource.DataSource;
+import com.facebook.imagepipeline.listener.BaseRequestListener;
+import com.facebook.imagepipeline.listener.RequestListener;
+import com.facebook.imagepipeline.listener.RequestTraceListener;
+import com.facebook.imagepipeline.producers.RequestTrace;
+import com.facebook.imagepipeline.request.ImageRequest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Data source for a batch of prefetch requests.
+ *
+ * <p> The requests are submitted in order, no more than {@link PrefetchBudget#maxInFlightRequests}
+ * at a time. Once the requests of the batch fetched {@link PrefetchBudget#maxBytes} from the
+ * network, the requests not submitted yet are dropped. The progress is the fraction of the requests
+ * of the batch that are done, whether they succeeded, failed, were dropped or were skipped because
+ * the image was already cached or another request of the batch fetches it. The data source
+ * finishes once all of them are done; the failure of some requests does not fail the batch.
+ *
+ * <p> With a byte budget, a request only frees its slot once its trace reported the bytes it
+ * fetched, which happens right after its result. The budget is hence checked before the next
+ * request is submitted.
+ *
+ * <p> Closing the data source cancels the requests in flight and drops the others.
+ */
+@ThreadSafe
+public class BatchPrefetchDataSource extends AbstractDataSource<Void> {
+
+  /**
+   * Submits a single request of the batch to the pipeline.
+   */
+  interface PrefetchSubmitter {
+
+    /**
+     * @param imageRequest the request to prefetch
+     * @param requestListener listener to notify about the request, in addition to the listeners
+     *     of the pipeline. Its trace, if it requires one, is expected once the request started.
+     */
+    DataSource<Void> submit(ImageRequest imageRequest, RequestListener requestListener);
+  }
+
+  private final PrefetchSubmitter mSubmitter;
+  private final PrefetchBudget mBudget;
+  private final int mRequestCount;
+  private final int mSkippedCount;
+
+  @GuardedBy("this")
+  private final Queue<ImageRequest> mPendingRequests;
+  @GuardedBy("this")
+  private final Set<RequestTracker> mRequestsInFlight;
+  @GuardedBy("this")
+  private int mSucceededCount;
+  @GuardedBy("this")
+  private int mFailedCount;
+  @GuardedBy("this")
+  private int mDroppedCount;
+  @GuardedBy("this")
+  private long mFetchedByteCount;
+
+  /**
+   * @param imageRequests the requests to prefetch, already deduplicated
+   * @param skippedCount number of requests of the batch that were left out because their image was
+   *     already cached or duplicated another request, counted as done for the progress
+   */
+  BatchPrefetchDataSource(
+      PrefetchSubmitter submitter,
+      List<ImageRequest> imageRequests,
+      int skippedCount,
+      PrefetchBudget budget) {
+    mSubmitter = submitter;
+    mBudget = budget;
+    mPendingRequests = new ArrayDeque<>(imageRequests);
+    mRequestsInFlight = new HashSet<>();
+    mRequestCount = imageRequests.size() + skippedCount;
+    mSkippedCount = skippedCount;
+  }
+
+  /**
+   * Submits the first requests of the batch. Must be called once, right after construction.
+   */
+  void start() {
+    submitPendingRequests();
+  }
+
+  /**
+   * @return the number of requests of the batch that were skipped because the image was cached or
+   *     another request of the batch fetches it
+   */
+  public int getSkippedCount() {
+    return mSkippedCount;
+  }
+
+  /**
+   * @return the number of requests of the batch that were dropped because of the byte budget
+   */
+  public synchronized int getDroppedCount() {
+    return mDroppedCount;
+  }
+
+  /**
+   * @return the number of requests of the batch that failed
+   */
+  public synchronized int getFailedCount() {
+    return mFailedCount;
+  }
+
+  /**
+   * @return the number of bytes fetched from the network by the batch so far
+   */
+  public synchronized long getFetchedByteCount() {
+    return mFetchedByteCount;
+  }
+
+  @VisibleForTesting
+  synchronized int getInFlightCount() {
+    return mRequestsInFlight.size();
+  }
+
+  @Override
+  public boolean close() {
+    List<DataSource<Void>> dataSourcesInFlight;
+    synchronized (this) {
+      if (!super.close()) {
+        return false;
+      }
+      mPendingRequests.clear();
+      dataSourcesInFlight = new ArrayList<>(mRequestsInFlight.size());
+      for (RequestTracker requestTracker : mRequestsInFlight) {
+        dataSourcesInFlight.add(requestTracker.mDataSource);
+      }
+      mRequestsInFlight.clear();
+    }
+    for (int i = 0; i < dataSourcesInFlight.size(); i++) {
+      dataSourcesInFlight.get(i).close();
+    }
+    return true;
+  }
+
+  private void submitPendingRequests() {
+    while (true) {
+      ImageRequest imageRequest;
+      synchronized (this) {
+        if (isClosed() || mRequestsInFlight.size() >= mBudget.maxInFlightRequests) {
+          return;
+        }
+        imageRequest = mPendingRequests.poll();
+      }
+      if (imageRequest == null) {
+        onRequestDone();
+        return;
+      }
+      RequestTracker requestTracker = new RequestTracker();
+      DataSource<Void> dataSource = mSubmitter.submit(imageRequest, requestTracker);
+      synchronized (this) {
+        if (isClosed()) {
+          dataSource.close();
+          return;
+        }
+        requestTracker.mDataSource = dataSource;
+        mRequestsInFlight.add(requestTracker);
+      }
+      dataSource.subscribe(
+          new RequestSubscriber(requestTracker),
+          CallerThreadExecutor.getInstance());
+    }
+  }
+
+  private void onRequestFinished(RequestTracker requestTracker, boolean succeeded) {
+    boolean isSlotFreed;
+    synchronized (this) {
+      if (requestTracker.mIsFinished || !mRequestsInFlight.contains(requestTracker)) {
+        return;
+      }
+      requestTracker.mIsFinished = true;
+      if (succeeded) {
+        mSucceededCount++;
+      } else {
+        mFailedCount++;
+      }
+      isSlotFreed = maybeFreeSlot(requestTracker);
+    }
+    onRequestDone();
+    if (isSlotFreed) {
+      submitPendingRequests();
+    }
+  }
+
+  private void onRequestTraceComplete(RequestTracker requestTracker, long byteCount) {
+    boolean hasDroppedRequests;
+    boolean isSlotFreed;
+    synchronized (this) {
+      if (requestTracker.mIsTraceComplete) {
+        return;
+      }
+      requestTracker.mIsTraceComplete = true;
+      hasDroppedRequests = byteCount != RequestTrace.UNSET && onBytesFetched(byteCount);
+      isSlotFreed = maybeFreeSlot(requestTracker);
+    }
+    if (hasDroppedRequests || isSlotFreed) {
+      onRequestDone();
+    }
+    if (isSlotFreed) {
+      submitPendingRequests();
+    }
+  }
+
+  /**
+   * Frees the slot of a finished request, unless the bytes it fetched are still to be reported.
+   *
+   * @return whether the slot was freed
+   */
+  @GuardedBy("this")
+  private boolean maybeFreeSlot(RequestTracker requestTracker) {
+    if (!requestTracker.mIsFinished
+        || (requestTracker.isTraced() && !requestTracker.mIsTraceComplete)) {
+      return false;
+    }
+    return mRequestsInFlight.remove(requestTracker);
+  }
+
+  /**
+   * Updates the progress, and finishes the batch if nothing is left to run.
+   */
+  private void onRequestDone() {
+    float progress;
+    boolean isFinished;
+    synchronized (this) {
+      int doneCount = mSkippedCount + mSucceededCount + mFailedCount + mDroppedCount;
+      progress = mRequestCount == 0 ? 1f : (float) doneCount / mRequestCount;
+      isFinished = mPendingRequests.isEmpty() && mRequestsInFlight.isEmpty();
+    }
+    if (isFinished) {
+      setResult(null, /* isLast */ true);
+    } else {
+      setProgress(progress);
+    }
+  }
+
+  /**
+   * @return whether the pending requests were dropped because the byte budget is exhausted
+   */
+  @GuardedBy("this")
+  private boolean onBytesFetched(long byteCount) {
+    mFetchedByteCount += byteCount;
+    if (!mBudget.hasByteLimit()
+        || mFetchedByteCount < mBudget.maxBytes
+        || mPendingRequests.isEmpty()) {
+      return false;
+    }
+    mDroppedCount += mPendingRequests.size();
+    mPendingRequests.clear();
+    return true;
+  }
+
+  private class RequestSubscriber extends BaseDataSubscriber<Void> {
+
+    private final RequestTracker mRequestTracker;
+
+    private RequestSubscriber(RequestTracker requestTracker) {
+      mRequestTracker = requestTracker;
+    }
+
+    @Override
+    protected void onNewResultImpl(DataSource<Void> dataSource) {
+      if (dataSource.isFinished()) {
+        onRequestFinished(mRequestTracker, /* succeeded */ true);
+      }
+    }
+
+    @Override
+    protected void onFailureImpl(DataSource<Void> dataSource) {
+      onRequestFinished(mRequestTracker, /* succeeded */ false);
+    }
+
+    @Override
+    public void onCancellation(DataSource<Void> dataSource) {
+      onRequestFinished(mRequestTracker, /* succeeded */ false);
+    }
+  }
+
+  /**
+   * Tracks a single request of the batch, and counts the bytes it fetched from the network.
+   */
+  private class RequestTracker extends BaseRequestListener implements RequestTraceListener {
+
+    @GuardedBy("BatchPrefetchDataSource.this")
+    private DataSource<Void> mDataSource;
+    @GuardedBy("BatchPrefetchDataSource.this")
+    private boolean mIsStarted;
+    @GuardedBy("BatchPrefetchDataSource.this")
+    private boolean mIsFinished;
+    @GuardedBy("BatchPrefetchDataSource.this")
+    private boolean mIsTraceComplete;
+
+    /**
+     * @return whether the trace of the request is expected, which is only the case once the
+     *     pipeline started the request
+     */
+    @GuardedBy("BatchPrefetchDataSource.this")
+    private boolean isTraced() {
+      return mIsStarted && mBudget.hasByteLimit();
+    }
+
+    @Override
+    public void onRequestStart(
+        ImageRequest request,
+        Object callerContext,
+        String requestId,
+        boolean isPrefetch) {
+      synchronized (BatchPrefetchDataSource.this) {
+        mIsStarted = true;
+      }
+    }
+
+    @Override
+    public boolean requiresRequestTrace(String requestId) {
+      return mBudget.hasByteLimit();
+    }
+
+    @Override
+    public void onRequestTraceComplete(RequestTrace requestTrace) {
+      BatchPrefetchDataSource.this.onRequestTraceComplete(
+          this,
+          requestTrace.getByteCount(RequestTrace.STAGE_NETWORK_FETCH));
+    }
+  }
+}
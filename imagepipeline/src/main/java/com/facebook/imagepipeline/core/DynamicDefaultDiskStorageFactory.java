@@ -21,6 +21,7 @@ public class DynamicDefaultDiskStorageFactory implements DiskStorageFactory {
         diskCacheConfig.getVersion(),
         diskCacheConfig.getBaseDirectoryPathSupplier(),
         diskCacheConfig.getBaseDirectoryName(),
-        diskCacheConfig.getCacheErrorLogger());
+        diskCacheConfig.getCacheErrorLogger(),
+        diskCacheConfig.getIndexJournalEnabled());
   }
 }
@@ -12,12 +12,14 @@ import bolts.Continuation;
 import bolts.Task;
 import com.android.internal.util.Predicate;
 import com.facebook.cache.common.CacheKey;
+import com.facebook.common.executors.CallerThreadExecutor;
 import com.facebook.common.internal.Objects;
 import com.facebook.common.internal.Preconditions;
 import com.facebook.common.internal.Supplier;
 import com.facebook.common.memory.PooledByteBuffer;
 import com.facebook.common.references.CloseableReference;
 import com.facebook.common.util.UriUtil;
+import com.facebook.datasource.BaseDataSubscriber;
 import com.facebook.datasource.DataSource;
 import com.facebook.datasource.DataSources;
 import com.facebook.datasource.SimpleDataSource;
@@ -29,16 +31,26 @@ import com.facebook.imagepipeline.datasource.CloseableProducerToDataSourceAdapte
 import com.facebook.imagepipeline.datasource.ProducerToDataSourceAdapter;
 import com.facebook.imagepipeline.image.CloseableImage;
 import com.facebook.imagepipeline.listener.ForwardingRequestListener;
+import com.facebook.imagepipeline.listener.ProducerLatencyTracker;
 import com.facebook.imagepipeline.listener.RequestListener;
+import com.facebook.imagepipeline.listener.RequestTraceListener;
 import com.facebook.imagepipeline.producers.Producer;
+import com.facebook.imagepipeline.producers.RequestTrace;
 import com.facebook.imagepipeline.producers.SettableProducerContext;
 import com.facebook.imagepipeline.producers.ThreadHandoffProducerQueue;
 import com.facebook.imagepipeline.request.ImageRequest;
 import com.facebook.imagepipeline.request.ImageRequestBuilder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
@@ -60,6 +72,10 @@ public class ImagePipeline {
   private final CacheKeyFactory mCacheKeyFactory;
   private final ThreadHandoffProducerQueue mThreadHandoffProducerQueue;
   private final Supplier<Boolean> mSuppressBitmapPrefetchingSupplier;
+  private final @Nullable ProducerLatencyTracker mProducerLatencyTracker;
+  private final @Nullable BufferedDiskCache mPostprocessedImageBufferedDiskCache;
+  @GuardedBy("mPrefetchBatches")
+  private final Map<Object, BatchPrefetchDataSource> mPrefetchBatches;
   private AtomicLong mIdCounter;
 
   public ImagePipeline(
@@ -73,9 +89,74 @@ public class ImagePipeline {
       CacheKeyFactory cacheKeyFactory,
       ThreadHandoffProducerQueue threadHandoffProducerQueue,
       Supplier<Boolean> suppressBitmapPrefetchingSupplier) {
+    this(
+        producerSequenceFactory,
+        requestListeners,
+        isPrefetchEnabledSupplier,
+        bitmapMemoryCache,
+        encodedMemoryCache,
+        mainBufferedDiskCache,
+        smallImageBufferedDiskCache,
+        cacheKeyFactory,
+        threadHandoffProducerQueue,
+        suppressBitmapPrefetchingSupplier,
+        (ProducerLatencyTracker) null,
+        null);
+  }
+
+  /**
+   * Creates the pipeline with the optional components that {@link ImagePipelineFactory} sets up
+   * from its {@link ImagePipelineConfig}.
+   */
+  ImagePipeline(
+      ProducerSequenceFactory producerSequenceFactory,
+      Set<RequestListener> requestListeners,
+      Supplier<Boolean> isPrefetchEnabledSupplier,
+      MemoryCache<CacheKey, CloseableImage> bitmapMemoryCache,
+      MemoryCache<CacheKey, PooledByteBuffer> encodedMemoryCache,
+      BufferedDiskCache mainBufferedDiskCache,
+      BufferedDiskCache smallImageBufferedDiskCache,
+      CacheKeyFactory cacheKeyFactory,
+      ThreadHandoffProducerQueue threadHandoffProducerQueue,
+      Supplier<Boolean> suppressBitmapPrefetchingSupplier,
+      ImagePipelineConfig config,
+      @Nullable BufferedDiskCache postprocessedImageBufferedDiskCache) {
+    this(
+        producerSequenceFactory,
+        requestListeners,
+        isPrefetchEnabledSupplier,
+        bitmapMemoryCache,
+        encodedMemoryCache,
+        mainBufferedDiskCache,
+        smallImageBufferedDiskCache,
+        cacheKeyFactory,
+        threadHandoffProducerQueue,
+        suppressBitmapPrefetchingSupplier,
+        config.getProducerLatencyTracker(),
+        postprocessedImageBufferedDiskCache);
+  }
+
+  private ImagePipeline(
+      ProducerSequenceFactory producerSequenceFactory,
+      Set<RequestListener> requestListeners,
+      Supplier<Boolean> isPrefetchEnabledSupplier,
+      MemoryCache<CacheKey, CloseableImage> bitmapMemoryCache,
+      MemoryCache<CacheKey, PooledByteBuffer> encodedMemoryCache,
+      BufferedDiskCache mainBufferedDiskCache,
+      BufferedDiskCache smallImageBufferedDiskCache,
+      CacheKeyFactory cacheKeyFactory,
+      ThreadHandoffProducerQueue threadHandoffProducerQueue,
+      Supplier<Boolean> suppressBitmapPrefetchingSupplier,
+      @Nullable ProducerLatencyTracker producerLatencyTracker,
+      @Nullable BufferedDiskCache postprocessedImageBufferedDiskCache) {
     mIdCounter = new AtomicLong();
     mProducerSequenceFactory = producerSequenceFactory;
+    if (producerLatencyTracker != null) {
+      requestListeners = new HashSet<>(requestListeners);
+      requestListeners.add(producerLatencyTracker);
+    }
     mRequestListener = new ForwardingRequestListener(requestListeners);
+    mProducerLatencyTracker = producerLatencyTracker;
     mIsPrefetchEnabledSupplier = isPrefetchEnabledSupplier;
     mBitmapMemoryCache = bitmapMemoryCache;
     mEncodedMemoryCache = encodedMemoryCache;
@@ -84,6 +165,19 @@ public class ImagePipeline {
     mCacheKeyFactory = cacheKeyFactory;
     mThreadHandoffProducerQueue = threadHandoffProducerQueue;
     mSuppressBitmapPrefetchingSupplier = suppressBitmapPrefetchingSupplier;
+    mPostprocessedImageBufferedDiskCache = postprocessedImageBufferedDiskCache;
+    mPrefetchBatches = new HashMap<>();
+  }
+
+  /**
+   * Gets the latency histograms of the stages of the requests, if enabled with
+   * {@link ImagePipelineExperiments.Builder#setProducerLatencyTrackingEnabled}.
+   *
+   * @return the tracker of the latencies, or null if they are not tracked
+   */
+  @Nullable
+  public ProducerLatencyTracker getProducerLatencyTracker() {
+    return mProducerLatencyTracker;
   }
 
   /**
@@ -293,7 +387,8 @@ public class ImagePipeline {
           imageRequest,
           ImageRequest.RequestLevel.FULL_FETCH,
           callerContext,
-          Priority.MEDIUM);
+          Priority.MEDIUM,
+          null);
     } catch (Exception exception) {
       return DataSources.immediateFailedDataSource(exception);
     }
@@ -339,12 +434,101 @@ public class ImagePipeline {
           imageRequest,
           ImageRequest.RequestLevel.FULL_FETCH,
           callerContext,
-          priority);
+          priority,
+          null);
     } catch (Exception exception) {
       return DataSources.immediateFailedDataSource(exception);
     }
   }
 
+  /**
+   * Submits a batch of requests for prefetching to the bitmap cache.
+   *
+   * <p> The requests whose image is already in the bitmap memory cache, and those with the same
+   * cache key as an earlier request of the batch, are skipped. The others are submitted in order,
+   * within the given budget.
+   *
+   * @param imageRequests the requests to submit
+   * @param budget limits on the requests of the batch running at the same time and on the bytes
+   *     they fetch
+   * @return a DataSource that finishes once all the requests of the batch are done, and whose
+   *     progress is the fraction of them that are done. Closing it cancels the batch.
+   */
+  public DataSource<Void> prefetchBatchToBitmapCache(
+      List<ImageRequest> imageRequests,
+      Object callerContext,
+      PrefetchBudget budget) {
+    return prefetchBatchToBitmapCache(imageRequests, callerContext, budget, null);
+  }
+
+  /**
+   * Submits a batch of requests for prefetching to the bitmap cache, cancelling the previous batch
+   * submitted with the same key. See {@link #prefetchBatchToBitmapCache(List, Object,
+   * PrefetchBudget)}.
+   *
+   * @param batchKey key identifying what the batch is for, such as a feed, or null to not cancel
+   *     any batch
+   */
+  public DataSource<Void> prefetchBatchToBitmapCache(
+      List<ImageRequest> imageRequests,
+      Object callerContext,
+      PrefetchBudget budget,
+      @Nullable Object batchKey) {
+    if (!mIsPrefetchEnabledSupplier.get()) {
+      return DataSources.immediateFailedDataSource(PREFETCH_EXCEPTION);
+    }
+    return submitPrefetchBatch(
+        imageRequests,
+        callerContext,
+        budget,
+        batchKey,
+        /* toBitmapCache */ !mSuppressBitmapPrefetchingSupplier.get());
+  }
+
+  /**
+   * Submits a batch of requests for prefetching to the disk cache.
+   *
+   * <p> The requests whose image is already in the encoded memory cache or known to be in the disk
+   * cache, and those with the same cache key as an earlier request of the batch, are skipped. The
+   * others are submitted in order, within the given budget.
+   *
+   * @param imageRequests the requests to submit
+   * @param budget limits on the requests of the batch running at the same time and on the bytes
+   *     they fetch
+   * @return a DataSource that finishes once all the requests of the batch are done, and whose
+   *     progress is the fraction of them that are done. Closing it cancels the batch.
+   */
+  public DataSource<Void> prefetchBatchToDiskCache(
+      List<ImageRequest> imageRequests,
+      Object callerContext,
+      PrefetchBudget budget) {
+    return prefetchBatchToDiskCache(imageRequests, callerContext, budget, null);
+  }
+
+  /**
+   * Submits a batch of requests for prefetching to the disk cache, cancelling the previous batch
+   * submitted with the same key. See {@link #prefetchBatchToDiskCache(List, Object,
+   * PrefetchBudget)}.
+   *
+   * @param batchKey key identifying what the batch is for, such as a feed, or null to not cancel
+   *     any batch
+   */
+  public DataSource<Void> prefetchBatchToDiskCache(
+      List<ImageRequest> imageRequests,
+      Object callerContext,
+      PrefetchBudget budget,
+      @Nullable Object batchKey) {
+    if (!mIsPrefetchEnabledSupplier.get()) {
+      return DataSources.immediateFailedDataSource(PREFETCH_EXCEPTION);
+    }
+    return submitPrefetchBatch(
+        imageRequests,
+        callerContext,
+        budget,
+        batchKey,
+        /* toBitmapCache */ false);
+  }
+
   /**
    * Removes all images with the specified {@link Uri} from memory cache.
    *
@@ -376,6 +560,12 @@ public class ImagePipeline {
     CacheKey cacheKey = mCacheKeyFactory.getEncodedCacheKey(imageRequest, null);
     mMainBufferedDiskCache.remove(cacheKey);
     mSmallImageBufferedDiskCache.remove(cacheKey);
+    if (mPostprocessedImageBufferedDiskCache != null
+        && imageRequest.getPostprocessor() != null
+        && imageRequest.getPostprocessor().getPostprocessorCacheKey() != null) {
+      mPostprocessedImageBufferedDiskCache.remove(
+          mCacheKeyFactory.getPostprocessedBitmapCacheKey(imageRequest, null));
+    }
   }
 
   /**
@@ -412,6 +602,9 @@ public class ImagePipeline {
   public void clearDiskCaches() {
     mMainBufferedDiskCache.clearAll();
     mSmallImageBufferedDiskCache.clearAll();
+    if (mPostprocessedImageBufferedDiskCache != null) {
+      mPostprocessedImageBufferedDiskCache.clearAll();
+    }
   }
 
   /**
@@ -454,12 +647,7 @@ public class ImagePipeline {
       return false;
     }
     final CacheKey cacheKey = mCacheKeyFactory.getBitmapCacheKey(imageRequest, null);
-    CloseableReference<CloseableImage> ref = mBitmapMemoryCache.get(cacheKey);
-    try {
-      return CloseableReference.isValid(ref);
-    } finally {
-      CloseableReference.closeSafely(ref);
-    }
+    return mBitmapMemoryCache.contains(cacheKey);
   }
 
   /**
@@ -561,6 +749,86 @@ public class ImagePipeline {
     return dataSource;
   }
 
+  /**
+   * Returns the requests whose image is stored in the disk cache, looking them all up at once. This
+   * is much cheaper than calling {@link #isInDiskCache(ImageRequest)} for each of them: each disk
+   * cache checks all the keys in a single background task.
+   *
+   * @param imageRequests the requests for the images to be looked up
+   * @return the requests whose image was found in the disk cache, in the order they were given
+   */
+  public DataSource<List<ImageRequest>> filterInDiskCache(final List<ImageRequest> imageRequests) {
+    final List<CacheKey> cacheKeys = new ArrayList<>(imageRequests.size());
+    for (int i = 0; i < imageRequests.size(); i++) {
+      cacheKeys.add(mCacheKeyFactory.getEncodedCacheKey(imageRequests.get(i), null));
+    }
+    final SimpleDataSource<List<ImageRequest>> dataSource = SimpleDataSource.create();
+    final Set<CacheKey> presentKeys = new HashSet<>();
+    mMainBufferedDiskCache.filterPresent(cacheKeys)
+        .continueWithTask(
+            new Continuation<List<CacheKey>, Task<List<CacheKey>>>() {
+              @Override
+              public Task<List<CacheKey>> then(Task<List<CacheKey>> task) throws Exception {
+                if (!task.isCancelled() && !task.isFaulted()) {
+                  presentKeys.addAll(task.getResult());
+                }
+                List<CacheKey> missingKeys = new ArrayList<>(cacheKeys.size());
+                for (int i = 0; i < cacheKeys.size(); i++) {
+                  if (!presentKeys.contains(cacheKeys.get(i))) {
+                    missingKeys.add(cacheKeys.get(i));
+                  }
+                }
+                if (missingKeys.isEmpty()) {
+                  return Task.forResult(missingKeys);
+                }
+                return mSmallImageBufferedDiskCache.filterPresent(missingKeys);
+              }
+            })
+        .continueWith(
+            new Continuation<List<CacheKey>, Void>() {
+              @Override
+              public Void then(Task<List<CacheKey>> task) throws Exception {
+                if (!task.isCancelled() && !task.isFaulted()) {
+                  presentKeys.addAll(task.getResult());
+                }
+                List<ImageRequest> presentRequests = new ArrayList<>(presentKeys.size());
+                for (int i = 0; i < imageRequests.size(); i++) {
+                  if (presentKeys.contains(cacheKeys.get(i))) {
+                    presentRequests.add(imageRequests.get(i));
+                  }
+                }
+                dataSource.setResult(presentRequests);
+                return null;
+              }
+            });
+    return dataSource;
+  }
+
+  /**
+   * Returns whether the images of all the requests are stored in the disk cache. See
+   * {@link #filterInDiskCache(List)}.
+   *
+   * @param imageRequests the requests for the images to be looked up
+   * @return true if all the images were found in the disk cache, false otherwise
+   */
+  public DataSource<Boolean> containsAllInDiskCache(final List<ImageRequest> imageRequests) {
+    final SimpleDataSource<Boolean> dataSource = SimpleDataSource.create();
+    filterInDiskCache(imageRequests).subscribe(
+        new BaseDataSubscriber<List<ImageRequest>>() {
+          @Override
+          protected void onNewResultImpl(DataSource<List<ImageRequest>> presentRequests) {
+            dataSource.setResult(presentRequests.getResult().size() == imageRequests.size());
+          }
+
+          @Override
+          protected void onFailureImpl(DataSource<List<ImageRequest>> presentRequests) {
+            dataSource.setResult(false);
+          }
+        },
+        CallerThreadExecutor.getInstance());
+    return dataSource;
+  }
+
   private <T> DataSource<CloseableReference<T>> submitFetchRequest(
       Producer<CloseableReference<T>> producerSequence,
       ImageRequest imageRequest,
@@ -575,10 +843,11 @@ public class ImagePipeline {
           ImageRequest.RequestLevel.getMax(
               imageRequest.getLowestPermittedRequestLevel(),
               lowestPermittedRequestLevelOnSubmit);
+      String requestId = generateUniqueFutureId();
       SettableProducerContext settableProducerContext =
           new SettableProducerContext(
               imageRequest,
-              generateUniqueFutureId(),
+              requestId,
               finalRequestListener,
               callerContext,
               lowestPermittedRequestLevel,
@@ -586,7 +855,8 @@ public class ImagePipeline {
               imageRequest.getProgressiveRenderingEnabled()
                   || imageRequest.getMediaVariations() != null
                   || !UriUtil.isNetworkUri(imageRequest.getSourceUri()),
-              imageRequest.getPriority());
+              imageRequest.getPriority(),
+              obtainRequestTrace(finalRequestListener, requestId));
       return CloseableProducerToDataSourceAdapter.create(
           producerSequence, settableProducerContext, finalRequestListener);
     } catch (Exception exception) {
@@ -599,23 +869,27 @@ public class ImagePipeline {
       ImageRequest imageRequest,
       ImageRequest.RequestLevel lowestPermittedRequestLevelOnSubmit,
       Object callerContext,
-      Priority priority) {
-    final RequestListener requestListener = getRequestListenerForRequest(imageRequest, null);
+      Priority priority,
+      @Nullable RequestListener batchRequestListener) {
+    final RequestListener requestListener =
+        getRequestListenerForRequest(imageRequest, batchRequestListener);
 
     try {
       ImageRequest.RequestLevel lowestPermittedRequestLevel =
           ImageRequest.RequestLevel.getMax(
               imageRequest.getLowestPermittedRequestLevel(),
               lowestPermittedRequestLevelOnSubmit);
+      String requestId = generateUniqueFutureId();
       SettableProducerContext settableProducerContext = new SettableProducerContext(
           imageRequest,
-          generateUniqueFutureId(),
+          requestId,
           requestListener,
           callerContext,
           lowestPermittedRequestLevel,
         /* isPrefetch */ true,
         /* isIntermediateResultExpected */ false,
-          priority);
+          priority,
+          obtainRequestTrace(requestListener, requestId));
       return ProducerToDataSourceAdapter.create(
           producerSequence,
           settableProducerContext,
@@ -625,6 +899,122 @@ public class ImagePipeline {
     }
   }
 
+  private DataSource<Void> submitPrefetchBatch(
+      List<ImageRequest> imageRequests,
+      final Object callerContext,
+      PrefetchBudget budget,
+      @Nullable Object batchKey,
+      final boolean toBitmapCache) {
+    List<ImageRequest> requestsToSubmit = new ArrayList<>(imageRequests.size());
+    List<CacheKey> keysToSubmit = new ArrayList<>(imageRequests.size());
+    Set<CacheKey> cacheKeys = new HashSet<>();
+    for (int i = 0; i < imageRequests.size(); i++) {
+      ImageRequest imageRequest = imageRequests.get(i);
+      CacheKey cacheKey = toBitmapCache
+          ? mCacheKeyFactory.getBitmapCacheKey(imageRequest, callerContext)
+          : mCacheKeyFactory.getEncodedCacheKey(imageRequest, callerContext);
+      if (cacheKeys.add(cacheKey)
+          && !(toBitmapCache
+              ? mBitmapMemoryCache.contains(cacheKey)
+              : mEncodedMemoryCache.contains(cacheKey))) {
+        requestsToSubmit.add(imageRequest);
+        keysToSubmit.add(cacheKey);
+      }
+    }
+    if (!toBitmapCache) {
+      requestsToSubmit = filterNotInDiskCacheSync(requestsToSubmit, keysToSubmit);
+    }
+    BatchPrefetchDataSource batch = new BatchPrefetchDataSource(
+        new BatchPrefetchDataSource.PrefetchSubmitter() {
+          @Override
+          public DataSource<Void> submit(
+              ImageRequest imageRequest,
+              RequestListener requestListener) {
+            try {
+              Producer<Void> producerSequence = toBitmapCache
+                  ? mProducerSequenceFactory.getDecodedImagePrefetchProducerSequence(imageRequest)
+                  : mProducerSequenceFactory.getEncodedImagePrefetchProducerSequence(imageRequest);
+              return submitPrefetchRequest(
+                  producerSequence,
+                  imageRequest,
+                  ImageRequest.RequestLevel.FULL_FETCH,
+                  callerContext,
+                  Priority.MEDIUM,
+                  requestListener);
+            } catch (Exception exception) {
+              return DataSources.immediateFailedDataSource(exception);
+            }
+          }
+        },
+        requestsToSubmit,
+        imageRequests.size() - requestsToSubmit.size(),
+        budget);
+    if (batchKey != null) {
+      BatchPrefetchDataSource previousBatch;
+      synchronized (mPrefetchBatches) {
+        // drop the batches that are over so that the map does not grow with their keys
+        for (Iterator<BatchPrefetchDataSource> iterator = mPrefetchBatches.values().iterator();
+            iterator.hasNext(); ) {
+          BatchPrefetchDataSource otherBatch = iterator.next();
+          if (otherBatch.isFinished() || otherBatch.isClosed()) {
+            iterator.remove();
+          }
+        }
+        previousBatch = mPrefetchBatches.put(batchKey, batch);
+      }
+      if (previousBatch != null) {
+        previousBatch.close();
+      }
+    }
+    batch.start();
+    return batch;
+  }
+
+  /**
+   * Filters out the requests whose image is in the in-memory index of its disk cache, looking up
+   * all the keys of each disk cache at once and without reading from the disk.
+   */
+  private List<ImageRequest> filterNotInDiskCacheSync(
+      List<ImageRequest> imageRequests,
+      List<CacheKey> cacheKeys) {
+    List<CacheKey> mainCacheKeys = new ArrayList<>(cacheKeys.size());
+    List<CacheKey> smallCacheKeys = new ArrayList<>();
+    for (int i = 0; i < imageRequests.size(); i++) {
+      if (imageRequests.get(i).getCacheChoice() == ImageRequest.CacheChoice.SMALL) {
+        smallCacheKeys.add(cacheKeys.get(i));
+      } else {
+        mainCacheKeys.add(cacheKeys.get(i));
+      }
+    }
+    Set<CacheKey> presentKeys = new HashSet<>();
+    if (!mainCacheKeys.isEmpty()) {
+      presentKeys.addAll(mMainBufferedDiskCache.filterPresentSync(mainCacheKeys));
+    }
+    if (!smallCacheKeys.isEmpty()) {
+      presentKeys.addAll(mSmallImageBufferedDiskCache.filterPresentSync(smallCacheKeys));
+    }
+    if (presentKeys.isEmpty()) {
+      return imageRequests;
+    }
+    List<ImageRequest> missingRequests = new ArrayList<>(imageRequests.size());
+    for (int i = 0; i < imageRequests.size(); i++) {
+      if (!presentKeys.contains(cacheKeys.get(i))) {
+        missingRequests.add(imageRequests.get(i));
+      }
+    }
+    return missingRequests;
+  }
+
+  @Nullable
+  private static RequestTrace obtainRequestTrace(
+      RequestListener requestListener, String requestId) {
+    if (requestListener instanceof RequestTraceListener
+        && ((RequestTraceListener) requestListener).requiresRequestTrace(requestId)) {
+      return RequestTrace.obtain(requestId);
+    }
+    return null;
+  }
+
   private RequestListener getRequestListenerForRequest(
       ImageRequest imageRequest, @Nullable RequestListener requestListener) {
     if (requestListener == null) {
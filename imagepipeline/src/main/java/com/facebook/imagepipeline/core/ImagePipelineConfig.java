@@ -34,6 +34,7 @@ import com.facebook.imagepipeline.decoder.ImageDecoder;
 import com.facebook.imagepipeline.decoder.ImageDecoderConfig;
 import com.facebook.imagepipeline.decoder.ProgressiveJpegConfig;
 import com.facebook.imagepipeline.decoder.SimpleProgressiveJpegConfig;
+import com.facebook.imagepipeline.listener.ProducerLatencyTracker;
 import com.facebook.imagepipeline.listener.RequestListener;
 import com.facebook.imagepipeline.memory.PoolConfig;
 import com.facebook.imagepipeline.memory.PoolFactory;
@@ -74,6 +75,7 @@ public class ImagePipelineConfig {
   private final FileCacheFactory mFileCacheFactory;
   private final Supplier<MemoryCacheParams> mEncodedMemoryCacheParamsSupplier;
   private final ExecutorSupplier mExecutorSupplier;
+  private final @Nullable ProducerLatencyTracker mProducerLatencyTracker;
   private final ImageCacheStatsTracker mImageCacheStatsTracker;
   @Nullable private final ImageDecoder mImageDecoder;
   private final Supplier<Boolean> mIsPrefetchEnabledSupplier;
@@ -83,6 +85,7 @@ public class ImagePipelineConfig {
   private final int mHttpNetworkTimeout;
   @Nullable private final PlatformBitmapFactory mPlatformBitmapFactory;
   private final PoolFactory mPoolFactory;
+  @Nullable private final DiskCacheConfig mPostprocessedImageDiskCacheConfig;
   private final ProgressiveJpegConfig mProgressiveJpegConfig;
   private final Set<RequestListener> mRequestListeners;
   private final boolean mResizeAndRotateEnabledForNetwork;
@@ -148,15 +151,19 @@ public class ImagePipelineConfig {
         builder.mHttpConnectionTimeout < 0
             ? HttpUrlConnectionNetworkFetcher.HTTP_DEFAULT_TIMEOUT
             : builder.mHttpConnectionTimeout;
-    mNetworkFetcher =
-        builder.mNetworkFetcher == null
-            ? new HttpUrlConnectionNetworkFetcher(mHttpNetworkTimeout)
-            : builder.mNetworkFetcher;
+    if (builder.mNetworkFetcher != null) {
+      mNetworkFetcher = builder.mNetworkFetcher;
+    } else if (mImagePipelineExperiments.isAdaptiveConcurrencyLimitEnabled()) {
+      mNetworkFetcher = HttpUrlConnectionNetworkFetcher.createAdaptive(mHttpNetworkTimeout);
+    } else {
+      mNetworkFetcher = new HttpUrlConnectionNetworkFetcher(mHttpNetworkTimeout);
+    }
     mPlatformBitmapFactory = builder.mPlatformBitmapFactory;
     mPoolFactory =
         builder.mPoolFactory == null ?
             new PoolFactory(PoolConfig.newBuilder().build()) :
             builder.mPoolFactory;
+    mPostprocessedImageDiskCacheConfig = builder.mPostprocessedImageDiskCacheConfig;
     mProgressiveJpegConfig =
         builder.mProgressiveJpegConfig == null ?
             new SimpleProgressiveJpegConfig() :
@@ -173,9 +180,18 @@ public class ImagePipelineConfig {
     mImageDecoderConfig = builder.mImageDecoderConfig;
     // Below this comment can't be built in alphabetical order, because of dependencies
     int numCpuBoundThreads = mPoolFactory.getFlexByteArrayPoolMaxNumThreads();
-    mExecutorSupplier =
+    ExecutorSupplier executorSupplier =
         builder.mExecutorSupplier == null ?
             new DefaultExecutorSupplier(numCpuBoundThreads) : builder.mExecutorSupplier;
+    if (mImagePipelineExperiments.isProducerLatencyTrackingEnabled()) {
+      QueueWaitTrackingExecutorSupplier queueWaitTrackingExecutorSupplier =
+          new QueueWaitTrackingExecutorSupplier(executorSupplier);
+      executorSupplier = queueWaitTrackingExecutorSupplier;
+      mProducerLatencyTracker = new ProducerLatencyTracker(queueWaitTrackingExecutorSupplier);
+    } else {
+      mProducerLatencyTracker = null;
+    }
+    mExecutorSupplier = executorSupplier;
     // Here we manage the WebpBitmapFactory implementation if any
     WebpBitmapFactory webpBitmapFactory = mImagePipelineExperiments.getWebpBitmapFactory();
     if (webpBitmapFactory != null) {
@@ -258,6 +274,11 @@ public class ImagePipelineConfig {
     return mExecutorSupplier;
   }
 
+  @Nullable
+  public ProducerLatencyTracker getProducerLatencyTracker() {
+    return mProducerLatencyTracker;
+  }
+
   public ImageCacheStatsTracker getImageCacheStatsTracker() {
     return mImageCacheStatsTracker;
   }
@@ -292,6 +313,11 @@ public class ImagePipelineConfig {
     return mPoolFactory;
   }
 
+  @Nullable
+  public DiskCacheConfig getPostprocessedImageDiskCacheConfig() {
+    return mPostprocessedImageDiskCacheConfig;
+  }
+
   public ProgressiveJpegConfig getProgressiveJpegConfig() {
     return mProgressiveJpegConfig;
   }
@@ -358,6 +384,7 @@ public class ImagePipelineConfig {
     private NetworkFetcher mNetworkFetcher;
     private PlatformBitmapFactory mPlatformBitmapFactory;
     private PoolFactory mPoolFactory;
+    private DiskCacheConfig mPostprocessedImageDiskCacheConfig;
     private ProgressiveJpegConfig mProgressiveJpegConfig;
     private Set<RequestListener> mRequestListeners;
     private boolean mResizeAndRotateEnabledForNetwork = true;
@@ -467,6 +494,17 @@ public class ImagePipelineConfig {
       return this;
     }
 
+    /**
+     * Enables a disk cache for the results of postprocessors that have a cache key, so that they
+     * outlive the memory cache and app restarts. On a hit, neither the source image nor the
+     * postprocessor are requested. Postprocessed results are only cached in memory by default.
+     */
+    public Builder setPostprocessedImageDiskCacheConfig(
+        DiskCacheConfig postprocessedImageDiskCacheConfig) {
+      mPostprocessedImageDiskCacheConfig = postprocessedImageDiskCacheConfig;
+      return this;
+    }
+
     public Builder setProgressiveJpegConfig(ProgressiveJpegConfig progressiveJpegConfig) {
       mProgressiveJpegConfig = progressiveJpegConfig;
       return this;
@@ -21,8 +21,10 @@ import com.facebook.imagepipeline.cache.CacheKeyFactory;
 import com.facebook.imagepipeline.cache.MediaVariationsIndex;
 import com.facebook.imagepipeline.cache.MemoryCache;
 import com.facebook.imagepipeline.decoder.ImageDecoder;
+import com.facebook.imagepipeline.decoder.IncrementalJpegDecoder;
 import com.facebook.imagepipeline.decoder.ProgressiveJpegConfig;
 import com.facebook.imagepipeline.image.CloseableImage;
+import javax.annotation.Nullable;
 
 /**
  * Encapsulates additional elements of the {@link ImagePipelineConfig} which are currently in an
@@ -48,6 +50,18 @@ public class ImagePipelineExperiments {
   private final boolean mPartialImageCachingEnabled;
   private final Supplier<Boolean> mSmartResizingEnabled;
   private final ProducerFactoryMethod mProducerFactoryMethod;
+  private final int mMemoryCacheSegmentCount;
+  private final boolean mBitmapMemoryCacheTinyLfuEnabled;
+  private final boolean mEncodedMemoryCacheTinyLfuEnabled;
+  private final boolean mDiskCacheMappedReadsEnabled;
+  private final boolean mDiskCacheWriteBehindEnabled;
+  private final boolean mProducerLatencyTrackingEnabled;
+  private final boolean mAdaptiveConcurrencyLimitEnabled;
+  private final boolean mBitmapMemoryCacheVariantsEnabled;
+  private final boolean mResumableDownloadsEnabled;
+  private final boolean mAdaptiveProgressiveDecodingEnabled;
+  private final @Nullable IncrementalJpegDecoder.Factory mIncrementalJpegDecoderFactory;
+  private final boolean mDecodeAtTargetSizeEnabled;
 
   private ImagePipelineExperiments(Builder builder) {
     mWebpSupportEnabled = builder.mWebpSupportEnabled;
@@ -78,6 +92,18 @@ public class ImagePipelineExperiments {
     } else {
       mProducerFactoryMethod = builder.mProducerFactoryMethod;
     }
+    mMemoryCacheSegmentCount = builder.mMemoryCacheSegmentCount;
+    mBitmapMemoryCacheTinyLfuEnabled = builder.mBitmapMemoryCacheTinyLfuEnabled;
+    mEncodedMemoryCacheTinyLfuEnabled = builder.mEncodedMemoryCacheTinyLfuEnabled;
+    mDiskCacheMappedReadsEnabled = builder.mDiskCacheMappedReadsEnabled;
+    mDiskCacheWriteBehindEnabled = builder.mDiskCacheWriteBehindEnabled;
+    mProducerLatencyTrackingEnabled = builder.mProducerLatencyTrackingEnabled;
+    mAdaptiveConcurrencyLimitEnabled = builder.mAdaptiveConcurrencyLimitEnabled;
+    mBitmapMemoryCacheVariantsEnabled = builder.mBitmapMemoryCacheVariantsEnabled;
+    mResumableDownloadsEnabled = builder.mResumableDownloadsEnabled;
+    mAdaptiveProgressiveDecodingEnabled = builder.mAdaptiveProgressiveDecodingEnabled;
+    mIncrementalJpegDecoderFactory = builder.mIncrementalJpegDecoderFactory;
+    mDecodeAtTargetSizeEnabled = builder.mDecodeAtTargetSizeEnabled;
   }
 
   public boolean isExternalCreatedBitmapLogEnabled() {
@@ -132,6 +158,54 @@ public class ImagePipelineExperiments {
     return mProducerFactoryMethod;
   }
 
+  public int getMemoryCacheSegmentCount() {
+    return mMemoryCacheSegmentCount;
+  }
+
+  public boolean isBitmapMemoryCacheTinyLfuEnabled() {
+    return mBitmapMemoryCacheTinyLfuEnabled;
+  }
+
+  public boolean isEncodedMemoryCacheTinyLfuEnabled() {
+    return mEncodedMemoryCacheTinyLfuEnabled;
+  }
+
+  public boolean isDiskCacheMappedReadsEnabled() {
+    return mDiskCacheMappedReadsEnabled;
+  }
+
+  public boolean isDiskCacheWriteBehindEnabled() {
+    return mDiskCacheWriteBehindEnabled;
+  }
+
+  public boolean isProducerLatencyTrackingEnabled() {
+    return mProducerLatencyTrackingEnabled;
+  }
+
+  public boolean isAdaptiveConcurrencyLimitEnabled() {
+    return mAdaptiveConcurrencyLimitEnabled;
+  }
+
+  public boolean isBitmapMemoryCacheVariantsEnabled() {
+    return mBitmapMemoryCacheVariantsEnabled;
+  }
+
+  public boolean isResumableDownloadsEnabled() {
+    return mResumableDownloadsEnabled;
+  }
+
+  public boolean isAdaptiveProgressiveDecodingEnabled() {
+    return mAdaptiveProgressiveDecodingEnabled;
+  }
+
+  public @Nullable IncrementalJpegDecoder.Factory getIncrementalJpegDecoderFactory() {
+    return mIncrementalJpegDecoderFactory;
+  }
+
+  public boolean isDecodeAtTargetSizeEnabled() {
+    return mDecodeAtTargetSizeEnabled;
+  }
+
   public static ImagePipelineExperiments.Builder newBuilder(
       ImagePipelineConfig.Builder configBuilder) {
     return new ImagePipelineExperiments.Builder(configBuilder);
@@ -159,6 +233,18 @@ public class ImagePipelineExperiments {
     private boolean mPartialImageCachingEnabled = false;
     private Supplier<Boolean> mSmartResizingEnabled = Suppliers.BOOLEAN_FALSE;
     private ProducerFactoryMethod mProducerFactoryMethod;
+    private int mMemoryCacheSegmentCount = 1;
+    private boolean mBitmapMemoryCacheTinyLfuEnabled = false;
+    private boolean mEncodedMemoryCacheTinyLfuEnabled = false;
+    private boolean mDiskCacheMappedReadsEnabled = false;
+    private boolean mDiskCacheWriteBehindEnabled = false;
+    private boolean mProducerLatencyTrackingEnabled = false;
+    private boolean mAdaptiveConcurrencyLimitEnabled = false;
+    private boolean mBitmapMemoryCacheVariantsEnabled = false;
+    private boolean mResumableDownloadsEnabled = false;
+    private boolean mAdaptiveProgressiveDecodingEnabled = false;
+    private @Nullable IncrementalJpegDecoder.Factory mIncrementalJpegDecoderFactory = null;
+    private boolean mDecodeAtTargetSizeEnabled = false;
 
     public Builder(ImagePipelineConfig.Builder configBuilder) {
       mConfigBuilder = configBuilder;
@@ -284,6 +370,164 @@ public class ImagePipelineExperiments {
       return mConfigBuilder;
     }
 
+    /**
+     * Splits the bitmap and encoded memory caches into the given number of independently locked
+     * segments, which reduces lock contention when many threads access the caches at once.
+     *
+     * @param memoryCacheSegmentCount the number of segments, values smaller than 2 keep the
+     *     caches unsegmented
+     * @return The Builder itself for chaining
+     */
+    public ImagePipelineConfig.Builder setMemoryCacheSegmentCount(int memoryCacheSegmentCount) {
+      mMemoryCacheSegmentCount = memoryCacheSegmentCount;
+      return mConfigBuilder;
+    }
+
+    /**
+     * Makes the bitmap memory cache evict according to a TinyLFU admission policy instead of
+     * plain LRU, so that scrolling through many images that are shown only once does not flush
+     * the frequently used ones. Ignored if the memory caches are segmented.
+     *
+     * @return The Builder itself for chaining
+     */
+    public ImagePipelineConfig.Builder setBitmapMemoryCacheTinyLfuEnabled(
+        boolean bitmapMemoryCacheTinyLfuEnabled) {
+      mBitmapMemoryCacheTinyLfuEnabled = bitmapMemoryCacheTinyLfuEnabled;
+      return mConfigBuilder;
+    }
+
+    /**
+     * Same as {@link #setBitmapMemoryCacheTinyLfuEnabled(boolean)}, for the encoded memory cache.
+     *
+     * @return The Builder itself for chaining
+     */
+    public ImagePipelineConfig.Builder setEncodedMemoryCacheTinyLfuEnabled(
+        boolean encodedMemoryCacheTinyLfuEnabled) {
+      mEncodedMemoryCacheTinyLfuEnabled = encodedMemoryCacheTinyLfuEnabled;
+      return mConfigBuilder;
+    }
+
+    /**
+     * Makes disk cache hits memory-map the cached content instead of copying it into a pooled
+     * buffer before decoding. Small files are still copied, as mapping them costs more than the
+     * copy. Animated images are still copied when they are decoded.
+     *
+     * @return The Builder itself for chaining
+     */
+    public ImagePipelineConfig.Builder setDiskCacheMappedReadsEnabled(
+        boolean diskCacheMappedReadsEnabled) {
+      mDiskCacheMappedReadsEnabled = diskCacheMappedReadsEnabled;
+      return mConfigBuilder;
+    }
+
+    /**
+     * Makes the disk caches coalesce the writes that are waiting for the write executor into
+     * batches, which are inserted into the disk cache with a single eviction check each.
+     *
+     * @return The Builder itself for chaining
+     */
+    public ImagePipelineConfig.Builder setDiskCacheWriteBehindEnabled(
+        boolean diskCacheWriteBehindEnabled) {
+      mDiskCacheWriteBehindEnabled = diskCacheWriteBehindEnabled;
+      return mConfigBuilder;
+    }
+
+    /**
+     * Records latency histograms of the stages of all the requests, which separate the time each
+     * stage waited for a thread from the time it ran. The histograms are available from
+     * {@link ImagePipeline#getProducerLatencyTracker()}.
+     *
+     * @return The Builder itself for chaining
+     */
+    public ImagePipelineConfig.Builder setProducerLatencyTrackingEnabled(
+        boolean producerLatencyTrackingEnabled) {
+      mProducerLatencyTrackingEnabled = producerLatencyTrackingEnabled;
+      return mConfigBuilder;
+    }
+
+    /**
+     * Adapts the number of simultaneous network downloads and local image transformations to
+     * their observed latency, instead of using a fixed number. This only applies to the default
+     * network fetcher, not to one set with
+     * {@link ImagePipelineConfig.Builder#setNetworkFetcher}.
+     *
+     * @return The Builder itself for chaining
+     */
+    public ImagePipelineConfig.Builder setAdaptiveConcurrencyLimitEnabled(
+        boolean adaptiveConcurrencyLimitEnabled) {
+      mAdaptiveConcurrencyLimitEnabled = adaptiveConcurrencyLimitEnabled;
+      return mConfigBuilder;
+    }
+
+    /**
+     * Serves a request that misses the bitmap memory cache with a larger version of the same
+     * image, decoded for another request with larger resize options, if one is in the cache.
+     *
+     * @return The Builder itself for chaining
+     */
+    public ImagePipelineConfig.Builder setBitmapMemoryCacheVariantsEnabled(
+        boolean bitmapMemoryCacheVariantsEnabled) {
+      mBitmapMemoryCacheVariantsEnabled = bitmapMemoryCacheVariantsEnabled;
+      return mConfigBuilder;
+    }
+
+    /**
+     * Keeps the bytes received by network downloads that are cancelled or fail in the partial disk
+     * cache, so that the next request for the image only downloads the remainder with a range
+     * request. Requires {@link #setPartialImageCachingEnabled(boolean)}, and a network fetcher
+     * that sends the bytes range of the request.
+     *
+     * @return The Builder itself for chaining
+     */
+    public ImagePipelineConfig.Builder setResumableDownloadsEnabled(
+        boolean resumableDownloadsEnabled) {
+      mResumableDownloadsEnabled = resumableDownloadsEnabled;
+      return mConfigBuilder;
+    }
+
+    /**
+     * Skips the intermediate decodes of progressive JPEGs from the network that are not likely to
+     * be seen: those of images not displayed, those of images whose last bytes are about to
+     * arrive, and those that would follow the previous one too closely given the measured decode
+     * time.
+     *
+     * @return The Builder itself for chaining
+     */
+    public ImagePipelineConfig.Builder setAdaptiveProgressiveDecodingEnabled(
+        boolean adaptiveProgressiveDecodingEnabled) {
+      mAdaptiveProgressiveDecodingEnabled = adaptiveProgressiveDecodingEnabled;
+      return mConfigBuilder;
+    }
+
+    /**
+     * Decodes the intermediate scans of progressive JPEGs from the network with decoders that keep
+     * their state between scans, so that each decode only processes the new scans, instead of
+     * decoding the image from its first byte again. The final image is still decoded by the
+     * regular decoder. See {@link com.facebook.imagepipeline.decoder.JavaIncrementalJpegDecoder}.
+     *
+     * @return The Builder itself for chaining
+     */
+    public ImagePipelineConfig.Builder setIncrementalJpegDecoderFactory(
+        @Nullable IncrementalJpegDecoder.Factory incrementalJpegDecoderFactory) {
+      mIncrementalJpegDecoderFactory = incrementalJpegDecoderFactory;
+      return mConfigBuilder;
+    }
+
+    /**
+     * Decodes static PNG, WebP and BMP images at the exact size of the resize options of the
+     * request, as JPEG images are resized by the transcoder, instead of at the closest sample
+     * size. The decoder subsamples the image by a power of two no smaller than the target size and
+     * scales it down to the target size in the same pass. Only the decoder of Lollipop and above
+     * supports it.
+     *
+     * @return The Builder itself for chaining
+     */
+    public ImagePipelineConfig.Builder setDecodeAtTargetSizeEnabled(
+        boolean decodeAtTargetSizeEnabled) {
+      mDecodeAtTargetSizeEnabled = decodeAtTargetSizeEnabled;
+      return mConfigBuilder;
+    }
+
     public ImagePipelineExperiments build() {
       return new ImagePipelineExperiments(this);
     }
@@ -31,12 +31,14 @@ import com.facebook.imagepipeline.cache.BitmapCountingMemoryCacheFactory;
 import com.facebook.imagepipeline.cache.BitmapMemoryCacheFactory;
 import com.facebook.imagepipeline.cache.BufferedDiskCache;
 import com.facebook.imagepipeline.cache.CountingMemoryCache;
+import com.facebook.imagepipeline.cache.CountingMemoryCacheOptions;
 import com.facebook.imagepipeline.cache.EncodedCountingMemoryCacheFactory;
 import com.facebook.imagepipeline.cache.EncodedMemoryCacheFactory;
 import com.facebook.imagepipeline.cache.MediaVariationsIndex;
 import com.facebook.imagepipeline.cache.MediaVariationsIndexDatabase;
 import com.facebook.imagepipeline.cache.MemoryCache;
 import com.facebook.imagepipeline.cache.NoOpMediaVariationsIndex;
+import com.facebook.imagepipeline.cache.TinyLfuEvictionPolicy;
 import com.facebook.imagepipeline.decoder.DefaultImageDecoder;
 import com.facebook.imagepipeline.decoder.ImageDecoder;
 import com.facebook.imagepipeline.drawable.DrawableFactory;
@@ -110,6 +112,8 @@ public class ImagePipelineFactory {
   private ProducerSequenceFactory mProducerSequenceFactory;
   private BufferedDiskCache mSmallImageBufferedDiskCache;
   private FileCache mSmallImageFileCache;
+  private BufferedDiskCache mPostprocessedImageBufferedDiskCache;
+  private FileCache mPostprocessedImageFileCache;
   private MediaVariationsIndex mMediaVariationsIndex;
 
   private PlatformBitmapFactory mPlatformBitmapFactory;
@@ -149,7 +153,9 @@ public class ImagePipelineFactory {
               mConfig.getMemoryTrimmableRegistry(),
               getPlatformBitmapFactory(),
               mConfig.getExperiments().isExternalCreatedBitmapLogEnabled(),
-              mConfig.getBitmapMemoryCacheTrimStrategy());
+              mConfig.getBitmapMemoryCacheTrimStrategy(),
+              newCountingMemoryCacheOptions(
+                  mConfig.getExperiments().isBitmapMemoryCacheTinyLfuEnabled()));
     }
     return mBitmapCountingMemoryCache;
   }
@@ -170,11 +176,21 @@ public class ImagePipelineFactory {
           EncodedCountingMemoryCacheFactory.get(
               mConfig.getEncodedMemoryCacheParamsSupplier(),
               mConfig.getMemoryTrimmableRegistry(),
-              getPlatformBitmapFactory());
+              getPlatformBitmapFactory(),
+              newCountingMemoryCacheOptions(
+                  mConfig.getExperiments().isEncodedMemoryCacheTinyLfuEnabled()));
     }
     return mEncodedCountingMemoryCache;
   }
 
+  private CountingMemoryCacheOptions<CacheKey> newCountingMemoryCacheOptions(
+      boolean tinyLfuEnabled) {
+    return CountingMemoryCacheOptions.<CacheKey>newBuilder()
+        .setSegmentCount(Math.max(mConfig.getExperiments().getMemoryCacheSegmentCount(), 1))
+        .setEvictionPolicy(tinyLfuEnabled ? new TinyLfuEvictionPolicy<CacheKey>() : null)
+        .build();
+  }
+
   public MemoryCache<CacheKey, PooledByteBuffer> getEncodedMemoryCache() {
     if (mEncodedMemoryCache == null) {
       mEncodedMemoryCache =
@@ -230,7 +246,9 @@ public class ImagePipelineFactory {
               mConfig.getPoolFactory().getPooledByteStreams(),
               mConfig.getExecutorSupplier().forLocalStorageRead(),
               mConfig.getExecutorSupplier().forLocalStorageWrite(),
-              mConfig.getImageCacheStatsTracker());
+              mConfig.getImageCacheStatsTracker(),
+              mConfig.getExperiments().isDiskCacheMappedReadsEnabled(),
+              mConfig.getExperiments().isDiskCacheWriteBehindEnabled());
     }
     return mMainBufferedDiskCache;
   }
@@ -256,7 +274,9 @@ public class ImagePipelineFactory {
               getSmallImageBufferedDiskCache(),
               mConfig.getCacheKeyFactory(),
               mThreadHandoffProducerQueue,
-              Suppliers.of(false));
+              Suppliers.of(false),
+              mConfig,
+              getPostprocessedImageBufferedDiskCache());
     }
     return mImagePipeline;
   }
@@ -370,11 +390,10 @@ public class ImagePipelineFactory {
               getProducerFactory(),
               mConfig.getNetworkFetcher(),
               mConfig.isResizeAndRotateEnabledForNetwork(),
-              mConfig.getExperiments().isWebpSupportEnabled(),
               mThreadHandoffProducerQueue,
-              mConfig.getExperiments().getUseDownsamplingRatioForResizing(),
               useBitmapPrepareToDraw,
-              mConfig.getExperiments().isPartialImageCachingEnabled());
+              mConfig.getExperiments(),
+              getPostprocessedImageBufferedDiskCache());
     }
     return mProducerSequenceFactory;
   }
@@ -396,11 +415,44 @@ public class ImagePipelineFactory {
               mConfig.getPoolFactory().getPooledByteStreams(),
               mConfig.getExecutorSupplier().forLocalStorageRead(),
               mConfig.getExecutorSupplier().forLocalStorageWrite(),
-              mConfig.getImageCacheStatsTracker());
+              mConfig.getImageCacheStatsTracker(),
+              mConfig.getExperiments().isDiskCacheMappedReadsEnabled(),
+              mConfig.getExperiments().isDiskCacheWriteBehindEnabled());
     }
     return mSmallImageBufferedDiskCache;
   }
 
+  /**
+   * @return the file cache of the results of postprocessors, or null if they are not cached on
+   *     disk
+   */
+  @Nullable
+  public FileCache getPostprocessedImageFileCache() {
+    final DiskCacheConfig diskCacheConfig = mConfig.getPostprocessedImageDiskCacheConfig();
+    if (mPostprocessedImageFileCache == null && diskCacheConfig != null) {
+      mPostprocessedImageFileCache = mConfig.getFileCacheFactory().get(diskCacheConfig);
+    }
+    return mPostprocessedImageFileCache;
+  }
+
+  @Nullable
+  private BufferedDiskCache getPostprocessedImageBufferedDiskCache() {
+    final FileCache fileCache = getPostprocessedImageFileCache();
+    if (mPostprocessedImageBufferedDiskCache == null && fileCache != null) {
+      mPostprocessedImageBufferedDiskCache =
+          new BufferedDiskCache(
+              fileCache,
+              mConfig.getPoolFactory().getPooledByteBufferFactory(),
+              mConfig.getPoolFactory().getPooledByteStreams(),
+              mConfig.getExecutorSupplier().forLocalStorageRead(),
+              mConfig.getExecutorSupplier().forLocalStorageWrite(),
+              mConfig.getImageCacheStatsTracker(),
+              mConfig.getExperiments().isDiskCacheMappedReadsEnabled(),
+              mConfig.getExperiments().isDiskCacheWriteBehindEnabled());
+    }
+    return mPostprocessedImageBufferedDiskCache;
+  }
+
   public MediaVariationsIndex getMediaVariationsIndex() {
     if (mMediaVariationsIndex == null) {
       mMediaVariationsIndex =
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+package com.facebook.imagepipeline.core;
+
+import com.facebook.cache.disk.DiskCacheConfig;
+import com.facebook.cache.disk.DiskStorage;
+import com.facebook.cache.disk.PackedDiskStorage;
+import com.facebook.common.internal.Supplier;
+import java.io.File;
+
+/**
+ * Factory for a DiskStorage packing all the entries into a few large segment files.
+ *
+ * <p>To use it, pass <code>new DiskStorageCacheFactory(new PackedDiskStorageFactory())</code> to
+ * {@link ImagePipelineConfig.Builder#setFileCacheFactory}. The size of the segments is set with
+ * {@link DiskCacheConfig.Builder#setPackedStorageSegmentSize}.
+ *
+ * <p>The space of removed entries is reclaimed on the threads of the disk cache, and the segment
+ * files are kept close to the default size limit of the config.
+ */
+public class PackedDiskStorageFactory implements DiskStorageFactory {
+
+  @Override
+  public DiskStorage get(final DiskCacheConfig diskCacheConfig) {
+    // resolving the base directory may hit the disk, so it is left to the first use of the storage
+    Supplier<File> rootDirectorySupplier = new Supplier<File>() {
+      @Override
+      public File get() {
+        return new File(
+            diskCacheConfig.getBaseDirectoryPathSupplier().get(),
+            diskCacheConfig.getBaseDirectoryName());
+      }
+    };
+    return new PackedDiskStorage(
+        rootDirectorySupplier,
+        diskCacheConfig.getVersion(),
+        diskCacheConfig.getPackedStorageSegmentSize(),
+        diskCacheConfig.getDefaultSizeLimit(),
+        diskCacheConfig.getCacheErrorLogger());
+  }
+}
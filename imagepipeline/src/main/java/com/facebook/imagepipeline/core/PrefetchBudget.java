@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.util.HashCodeUtil;
+import java.util.Locale;
+
+/**
+ * Limits for a batch of prefetch requests.
+ *
+ * <p> Bounds the number of requests of the batch that run at the same time, and the number of bytes
+ * the batch fetches from the network. Once the byte budget is spent, the requests of the batch that
+ * were not submitted yet are dropped.
+ */
+public class PrefetchBudget {
+
+  public static final int UNLIMITED_BYTES = -1;
+
+  /* max number of requests of the batch running at the same time */
+  public final int maxInFlightRequests;
+
+  /* max number of bytes fetched from the network by the batch, or UNLIMITED_BYTES */
+  public final long maxBytes;
+
+  /**
+   * @return a budget bounding the number of requests running at the same time only
+   */
+  public static PrefetchBudget forMaxInFlightRequests(int maxInFlightRequests) {
+    return new PrefetchBudget(maxInFlightRequests, UNLIMITED_BYTES);
+  }
+
+  public PrefetchBudget(int maxInFlightRequests, long maxBytes) {
+    Preconditions.checkArgument(maxInFlightRequests > 0);
+    Preconditions.checkArgument(maxBytes > 0 || maxBytes == UNLIMITED_BYTES);
+    this.maxInFlightRequests = maxInFlightRequests;
+    this.maxBytes = maxBytes;
+  }
+
+  public boolean hasByteLimit() {
+    return maxBytes != UNLIMITED_BYTES;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other == this) {
+      return true;
+    }
+    if (!(other instanceof PrefetchBudget)) {
+      return false;
+    }
+    PrefetchBudget that = (PrefetchBudget) other;
+    return this.maxInFlightRequests == that.maxInFlightRequests
+        && this.maxBytes == that.maxBytes;
+  }
+
+  @Override
+  public int hashCode() {
+    return HashCodeUtil.hashCode(maxInFlightRequests, maxBytes);
+  }
+
+  @Override
+  public String toString() {
+    return String.format((Locale) null, "%d requests, %d bytes", maxInFlightRequests, maxBytes);
+  }
+}
@@ -18,14 +18,17 @@ import com.facebook.common.memory.PooledByteBuffer;
 import com.facebook.common.memory.PooledByteBufferFactory;
 import com.facebook.common.references.CloseableReference;
 import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory;
+import com.facebook.imagepipeline.cache.BitmapMemoryCacheVariantIndex;
 import com.facebook.imagepipeline.cache.BufferedDiskCache;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
 import com.facebook.imagepipeline.cache.MediaVariationsIndex;
 import com.facebook.imagepipeline.cache.MemoryCache;
 import com.facebook.imagepipeline.decoder.ImageDecoder;
+import com.facebook.imagepipeline.decoder.IncrementalJpegDecoder;
 import com.facebook.imagepipeline.decoder.ProgressiveJpegConfig;
 import com.facebook.imagepipeline.image.CloseableImage;
 import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.producers.AdaptiveConcurrencyLimiter;
 import com.facebook.imagepipeline.producers.AddImageTransformMetaDataProducer;
 import com.facebook.imagepipeline.producers.BitmapMemoryCacheGetProducer;
 import com.facebook.imagepipeline.producers.BitmapMemoryCacheKeyMultiplexProducer;
@@ -50,6 +53,7 @@ import com.facebook.imagepipeline.producers.NetworkFetchProducer;
 import com.facebook.imagepipeline.producers.NetworkFetcher;
 import com.facebook.imagepipeline.producers.NullProducer;
 import com.facebook.imagepipeline.producers.PartialDiskCacheProducer;
+import com.facebook.imagepipeline.producers.PostprocessedBitmapDiskCacheProducer;
 import com.facebook.imagepipeline.producers.PostprocessedBitmapMemoryCacheProducer;
 import com.facebook.imagepipeline.producers.PostprocessorProducer;
 import com.facebook.imagepipeline.producers.Producer;
@@ -62,10 +66,12 @@ import com.facebook.imagepipeline.producers.ThrottlingProducer;
 import com.facebook.imagepipeline.producers.ThumbnailBranchProducer;
 import com.facebook.imagepipeline.producers.ThumbnailProducer;
 import com.facebook.imagepipeline.producers.WebpTranscodeProducer;
+import javax.annotation.Nullable;
 
 public class ProducerFactory {
 
   private static final int MAX_SIMULTANEOUS_REQUESTS = 5;
+  private static final int MAX_ADAPTIVE_SIMULTANEOUS_REQUESTS = 16;
 
   // Local dependencies
   private ContentResolver mContentResolver;
@@ -160,6 +166,16 @@ public class ProducerFactory {
     return new BitmapMemoryCacheGetProducer(mBitmapMemoryCache, mCacheKeyFactory, inputProducer);
   }
 
+  public BitmapMemoryCacheGetProducer newBitmapMemoryCacheGetProducer(
+      Producer<CloseableReference<CloseableImage>> inputProducer,
+      BitmapMemoryCacheVariantIndex variantIndex) {
+    return new BitmapMemoryCacheGetProducer(
+        mBitmapMemoryCache,
+        mCacheKeyFactory,
+        inputProducer,
+        variantIndex);
+  }
+
   public BitmapMemoryCacheKeyMultiplexProducer newBitmapMemoryCacheKeyMultiplexProducer(
       Producer<CloseableReference<CloseableImage>> inputProducer) {
     return new BitmapMemoryCacheKeyMultiplexProducer(mCacheKeyFactory, inputProducer);
@@ -170,6 +186,20 @@ public class ProducerFactory {
     return new BitmapMemoryCacheProducer(mBitmapMemoryCache, mCacheKeyFactory, inputProducer);
   }
 
+  public BitmapMemoryCacheProducer newBitmapMemoryCacheProducer(
+      Producer<CloseableReference<CloseableImage>> inputProducer,
+      BitmapMemoryCacheVariantIndex variantIndex) {
+    return new BitmapMemoryCacheProducer(
+        mBitmapMemoryCache,
+        mCacheKeyFactory,
+        inputProducer,
+        variantIndex);
+  }
+
+  public BitmapMemoryCacheVariantIndex newBitmapMemoryCacheVariantIndex() {
+    return new BitmapMemoryCacheVariantIndex(mBitmapMemoryCache);
+  }
+
   public static BranchOnSeparateImagesProducer newBranchOnSeparateImagesProducer(
       Producer<EncodedImage> inputProducer1,
       Producer<EncodedImage> inputProducer2) {
@@ -181,6 +211,14 @@ public class ProducerFactory {
   }
 
   public DecodeProducer newDecodeProducer(Producer<EncodedImage> inputProducer) {
+    return newDecodeProducer(inputProducer, false, null, false);
+  }
+
+  public DecodeProducer newDecodeProducer(
+      Producer<EncodedImage> inputProducer,
+      boolean adaptiveProgressiveDecodingEnabled,
+      @Nullable IncrementalJpegDecoder.Factory incrementalJpegDecoderFactory,
+      boolean decodeAtTargetSizeEnabled) {
     return new DecodeProducer(
         mByteArrayPool,
         mExecutorSupplier.forDecode(),
@@ -190,7 +228,11 @@ public class ProducerFactory {
         mResizeAndRotateEnabledForNetwork,
         mDecodeCancellationEnabled,
         inputProducer,
-        mExperimentalSmartResizingEnabled);
+        mExperimentalSmartResizingEnabled,
+        adaptiveProgressiveDecodingEnabled,
+        incrementalJpegDecoderFactory,
+        mPlatformBitmapFactory,
+        decodeAtTargetSizeEnabled);
   }
 
   public DiskCacheReadProducer newDiskCacheReadProducer(
@@ -308,10 +350,17 @@ public class ProducerFactory {
   }
 
   public NetworkFetchProducer newNetworkFetchProducer(NetworkFetcher networkFetcher) {
+    return newNetworkFetchProducer(networkFetcher, false);
+  }
+
+  public NetworkFetchProducer newNetworkFetchProducer(
+      NetworkFetcher networkFetcher,
+      boolean resumableDownloadsEnabled) {
     return new NetworkFetchProducer(
         mPooledByteBufferFactory,
         mByteArrayPool,
-        networkFetcher);
+        networkFetcher,
+        resumableDownloadsEnabled);
   }
 
   public static <T> NullProducer<T> newNullProducer() {
@@ -324,6 +373,18 @@ public class ProducerFactory {
         mBitmapMemoryCache, mCacheKeyFactory, inputProducer);
   }
 
+  public PostprocessedBitmapDiskCacheProducer newPostprocessedBitmapDiskCacheProducer(
+      Producer<CloseableReference<CloseableImage>> inputProducer,
+      BufferedDiskCache postprocessedImageBufferedDiskCache) {
+    return new PostprocessedBitmapDiskCacheProducer(
+        postprocessedImageBufferedDiskCache,
+        mCacheKeyFactory,
+        mImageDecoder,
+        mPooledByteBufferFactory,
+        mExecutorSupplier.forBackgroundTasks(),
+        inputProducer);
+  }
+
   public PostprocessorProducer newPostprocessorProducer(
       Producer<CloseableReference<CloseableImage>> inputProducer) {
     return new PostprocessorProducer(
@@ -361,6 +422,14 @@ public class ProducerFactory {
         inputProducer);
   }
 
+  public <T> ThrottlingProducer<T> newAdaptiveThrottlingProducer(
+      Producer<T> inputProducer) {
+    return new ThrottlingProducer<T>(
+        new AdaptiveConcurrencyLimiter(1, MAX_ADAPTIVE_SIMULTANEOUS_REQUESTS),
+        mExecutorSupplier.forLightweightBackgroundTasks(),
+        inputProducer);
+  }
+
   public WebpTranscodeProducer newWebpTranscodeProducer(
       Producer<EncodedImage> inputProducer) {
     return new WebpTranscodeProducer(
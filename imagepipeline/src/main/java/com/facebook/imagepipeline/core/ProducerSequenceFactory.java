@@ -24,6 +24,9 @@ import com.facebook.common.media.MediaUtils;
 import com.facebook.common.memory.PooledByteBuffer;
 import com.facebook.common.references.CloseableReference;
 import com.facebook.common.webp.WebpSupportStatus;
+import com.facebook.imagepipeline.cache.BitmapMemoryCacheVariantIndex;
+import com.facebook.imagepipeline.cache.BufferedDiskCache;
+import com.facebook.imagepipeline.decoder.IncrementalJpegDecoder;
 import com.facebook.imagepipeline.image.CloseableImage;
 import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.producers.BitmapMemoryCacheKeyMultiplexProducer;
@@ -50,6 +53,7 @@ import com.facebook.imagepipeline.producers.ThumbnailProducer;
 import com.facebook.imagepipeline.request.ImageRequest;
 import java.util.HashMap;
 import java.util.Map;
+import javax.annotation.Nullable;
 
 public class ProducerSequenceFactory {
 
@@ -62,6 +66,13 @@ public class ProducerSequenceFactory {
   private final ThreadHandoffProducerQueue mThreadHandoffProducerQueue;
   private final boolean mUseDownsamplingRatio;
   private final boolean mUseBitmapPrepareToDraw;
+  private final boolean mAdaptiveConcurrencyLimitEnabled;
+  private final boolean mResumableDownloadsEnabled;
+  private final boolean mAdaptiveProgressiveDecodingEnabled;
+  private final @Nullable IncrementalJpegDecoder.Factory mIncrementalJpegDecoderFactory;
+  private final @Nullable BufferedDiskCache mPostprocessedImageBufferedDiskCache;
+  private final boolean mDecodeAtTargetSizeEnabled;
+  private final @Nullable BitmapMemoryCacheVariantIndex mBitmapMemoryCacheVariantIndex;
 
   // Saved sequences
   @VisibleForTesting Producer<CloseableReference<CloseableImage>> mNetworkFetchSequence;
@@ -102,6 +113,75 @@ public class ProducerSequenceFactory {
       boolean useDownsamplingRatio,
       boolean useBitmapPrepareToDraw,
       boolean partialImageCachingEnabled) {
+    this(
+        contentResolver,
+        producerFactory,
+        networkFetcher,
+        resizeAndRotateEnabledForNetwork,
+        webpSupportEnabled,
+        threadHandoffProducerQueue,
+        useDownsamplingRatio,
+        useBitmapPrepareToDraw,
+        partialImageCachingEnabled,
+        false,
+        false,
+        false,
+        false,
+        null,
+        null,
+        false);
+  }
+
+  /**
+   * Creates the sequences with the options of the experiments.
+   * @param postprocessedImageBufferedDiskCache disk cache of the postprocessed images, or null to
+   *     not cache them on disk
+   */
+  ProducerSequenceFactory(
+      ContentResolver contentResolver,
+      ProducerFactory producerFactory,
+      NetworkFetcher networkFetcher,
+      boolean resizeAndRotateEnabledForNetwork,
+      ThreadHandoffProducerQueue threadHandoffProducerQueue,
+      boolean useBitmapPrepareToDraw,
+      ImagePipelineExperiments experiments,
+      @Nullable BufferedDiskCache postprocessedImageBufferedDiskCache) {
+    this(
+        contentResolver,
+        producerFactory,
+        networkFetcher,
+        resizeAndRotateEnabledForNetwork,
+        experiments.isWebpSupportEnabled(),
+        threadHandoffProducerQueue,
+        experiments.getUseDownsamplingRatioForResizing(),
+        useBitmapPrepareToDraw,
+        experiments.isPartialImageCachingEnabled(),
+        experiments.isAdaptiveConcurrencyLimitEnabled(),
+        experiments.isBitmapMemoryCacheVariantsEnabled(),
+        experiments.isResumableDownloadsEnabled(),
+        experiments.isAdaptiveProgressiveDecodingEnabled(),
+        experiments.getIncrementalJpegDecoderFactory(),
+        postprocessedImageBufferedDiskCache,
+        experiments.isDecodeAtTargetSizeEnabled());
+  }
+
+  private ProducerSequenceFactory(
+      ContentResolver contentResolver,
+      ProducerFactory producerFactory,
+      NetworkFetcher networkFetcher,
+      boolean resizeAndRotateEnabledForNetwork,
+      boolean webpSupportEnabled,
+      ThreadHandoffProducerQueue threadHandoffProducerQueue,
+      boolean useDownsamplingRatio,
+      boolean useBitmapPrepareToDraw,
+      boolean partialImageCachingEnabled,
+      boolean adaptiveConcurrencyLimitEnabled,
+      boolean bitmapMemoryCacheVariantsEnabled,
+      boolean resumableDownloadsEnabled,
+      boolean adaptiveProgressiveDecodingEnabled,
+      @Nullable IncrementalJpegDecoder.Factory incrementalJpegDecoderFactory,
+      @Nullable BufferedDiskCache postprocessedImageBufferedDiskCache,
+      boolean decodeAtTargetSizeEnabled) {
     mContentResolver = contentResolver;
     mProducerFactory = producerFactory;
     mNetworkFetcher = networkFetcher;
@@ -114,6 +194,17 @@ public class ProducerSequenceFactory {
     mUseDownsamplingRatio = useDownsamplingRatio;
     mUseBitmapPrepareToDraw = useBitmapPrepareToDraw;
     mPartialImageCachingEnabled = partialImageCachingEnabled;
+    mAdaptiveConcurrencyLimitEnabled = adaptiveConcurrencyLimitEnabled;
+    // the received bytes are kept by the partial disk cache
+    mResumableDownloadsEnabled = partialImageCachingEnabled && resumableDownloadsEnabled;
+    mAdaptiveProgressiveDecodingEnabled = adaptiveProgressiveDecodingEnabled;
+    mIncrementalJpegDecoderFactory = incrementalJpegDecoderFactory;
+    mPostprocessedImageBufferedDiskCache = postprocessedImageBufferedDiskCache;
+    mDecodeAtTargetSizeEnabled = decodeAtTargetSizeEnabled;
+    mBitmapMemoryCacheVariantIndex =
+        bitmapMemoryCacheVariantsEnabled
+            ? producerFactory.newBitmapMemoryCacheVariantIndex()
+            : null;
   }
 
   /**
@@ -323,7 +414,9 @@ public class ProducerSequenceFactory {
     if (mCommonNetworkFetchToEncodedMemorySequence == null) {
       Producer<EncodedImage> inputProducer =
           newEncodedCacheMultiplexToTranscodeSequence(
-              mProducerFactory.newNetworkFetchProducer(mNetworkFetcher));
+              mProducerFactory.newNetworkFetchProducer(
+                  mNetworkFetcher,
+                  mResumableDownloadsEnabled));
       mCommonNetworkFetchToEncodedMemorySequence =
           ProducerFactory.newAddImageTransformMetaDataProducer(inputProducer);
 
@@ -543,7 +636,11 @@ public class ProducerSequenceFactory {
    */
   private Producer<CloseableReference<CloseableImage>> newBitmapCacheGetToDecodeSequence(
       Producer<EncodedImage> inputProducer) {
-    DecodeProducer decodeProducer = mProducerFactory.newDecodeProducer(inputProducer);
+    DecodeProducer decodeProducer = mProducerFactory.newDecodeProducer(
+        inputProducer,
+        mAdaptiveProgressiveDecodingEnabled,
+        mIncrementalJpegDecoderFactory,
+        mDecodeAtTargetSizeEnabled);
     return newBitmapCacheGetToBitmapCacheSequence(decodeProducer);
   }
 
@@ -586,14 +683,22 @@ public class ProducerSequenceFactory {
   private Producer<CloseableReference<CloseableImage>> newBitmapCacheGetToBitmapCacheSequence(
       Producer<CloseableReference<CloseableImage>> inputProducer) {
     BitmapMemoryCacheProducer bitmapMemoryCacheProducer =
-        mProducerFactory.newBitmapMemoryCacheProducer(inputProducer);
+        mBitmapMemoryCacheVariantIndex != null
+            ? mProducerFactory.newBitmapMemoryCacheProducer(
+                inputProducer,
+                mBitmapMemoryCacheVariantIndex)
+            : mProducerFactory.newBitmapMemoryCacheProducer(inputProducer);
     BitmapMemoryCacheKeyMultiplexProducer bitmapKeyMultiplexProducer =
         mProducerFactory.newBitmapMemoryCacheKeyMultiplexProducer(bitmapMemoryCacheProducer);
     ThreadHandoffProducer<CloseableReference<CloseableImage>> threadHandoffProducer =
         mProducerFactory.newBackgroundThreadHandoffProducer(
             bitmapKeyMultiplexProducer,
             mThreadHandoffProducerQueue);
-    return mProducerFactory.newBitmapMemoryCacheGetProducer(threadHandoffProducer);
+    return mBitmapMemoryCacheVariantIndex != null
+        ? mProducerFactory.newBitmapMemoryCacheGetProducer(
+            threadHandoffProducer,
+            mBitmapMemoryCacheVariantIndex)
+        : mProducerFactory.newBitmapMemoryCacheGetProducer(threadHandoffProducer);
   }
 
   /**
@@ -617,7 +722,9 @@ public class ProducerSequenceFactory {
             mUseDownsamplingRatio);
     ThrottlingProducer<EncodedImage>
         localImageThrottlingProducer =
-        mProducerFactory.newThrottlingProducer(localImageProducer);
+        mAdaptiveConcurrencyLimitEnabled
+            ? mProducerFactory.newAdaptiveThrottlingProducer(localImageProducer)
+            : mProducerFactory.newThrottlingProducer(localImageProducer);
     return mProducerFactory.newBranchOnSeparateImagesProducer(
         newLocalThumbnailProducer(thumbnailProducers),
         localImageThrottlingProducer);
@@ -635,13 +742,19 @@ public class ProducerSequenceFactory {
   }
 
   /**
-   * post-processor producer -> copy producer -> inputProducer
+   * post-processed bitmap memory cache -> (post-processed bitmap disk cache) ->
+   * post-processor producer -> inputProducer
    */
   private synchronized Producer<CloseableReference<CloseableImage>> getPostprocessorSequence(
       Producer<CloseableReference<CloseableImage>> inputProducer) {
     if (!mPostprocessorSequences.containsKey(inputProducer)) {
-      PostprocessorProducer postprocessorProducer =
+      Producer<CloseableReference<CloseableImage>> postprocessorProducer =
           mProducerFactory.newPostprocessorProducer(inputProducer);
+      if (mPostprocessedImageBufferedDiskCache != null) {
+        postprocessorProducer = mProducerFactory.newPostprocessedBitmapDiskCacheProducer(
+            postprocessorProducer,
+            mPostprocessedImageBufferedDiskCache);
+      }
       PostprocessedBitmapMemoryCacheProducer postprocessedBitmapMemoryCacheProducer =
           mProducerFactory.newPostprocessorBitmapMemoryCacheProducer(postprocessorProducer);
       mPostprocessorSequences.put(inputProducer, postprocessedBitmapMemoryCacheProducer);
@@ -10,9 +10,11 @@ package com.facebook.imagepipeline.datasource;
 import com.facebook.common.internal.Preconditions;
 import com.facebook.datasource.AbstractDataSource;
 import com.facebook.imagepipeline.listener.RequestListener;
+import com.facebook.imagepipeline.listener.RequestTraceListener;
 import com.facebook.imagepipeline.producers.BaseConsumer;
 import com.facebook.imagepipeline.producers.Consumer;
 import com.facebook.imagepipeline.producers.Producer;
+import com.facebook.imagepipeline.producers.RequestTrace;
 import com.facebook.imagepipeline.producers.SettableProducerContext;
 import com.facebook.imagepipeline.request.HasImageRequest;
 import com.facebook.imagepipeline.request.ImageRequest;
@@ -77,6 +79,7 @@ public abstract class AbstractProducerToDataSourceAdapter<T> extends AbstractDat
             mSettableProducerContext.getImageRequest(),
             mSettableProducerContext.getId(),
             mSettableProducerContext.isPrefetch());
+        onRequestTraceComplete();
       }
     }
   }
@@ -88,6 +91,7 @@ public abstract class AbstractProducerToDataSourceAdapter<T> extends AbstractDat
           mSettableProducerContext.getId(),
           throwable,
           mSettableProducerContext.isPrefetch());
+      onRequestTraceComplete();
     }
   }
 
@@ -108,7 +112,23 @@ public abstract class AbstractProducerToDataSourceAdapter<T> extends AbstractDat
     if (!super.isFinished()) {
       mRequestListener.onRequestCancellation(mSettableProducerContext.getId());
       mSettableProducerContext.cancel();
+      onRequestTraceComplete();
     }
     return true;
   }
+
+  /**
+   * Hands the trace of the request, if any, over to the listener and recycles it. Called once, when
+   * the request completes.
+   */
+  private void onRequestTraceComplete() {
+    RequestTrace requestTrace = mSettableProducerContext.getRequestTrace();
+    if (requestTrace == null) {
+      return;
+    }
+    if (mRequestListener instanceof RequestTraceListener) {
+      ((RequestTraceListener) mRequestListener).onRequestTraceComplete(requestTrace);
+    }
+    requestTrace.recycle();
+  }
 }
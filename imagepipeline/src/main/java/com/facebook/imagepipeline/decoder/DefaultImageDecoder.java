@@ -144,7 +144,10 @@ public class DefaultImageDecoder implements ImageDecoder {
       final EncodedImage encodedImage,
       ImageDecodeOptions options) {
     CloseableReference<Bitmap> bitmapReference =
-        mPlatformDecoder.decodeFromEncodedImage(encodedImage, options.bitmapConfig, null);
+        mPlatformDecoder.decodeFromEncodedImage(
+            encodedImage,
+            options.bitmapConfig,
+            options.regionToDecode);
     try {
       return new CloseableStaticBitmap(
           bitmapReference,
@@ -171,7 +174,7 @@ public class DefaultImageDecoder implements ImageDecoder {
       ImageDecodeOptions options) {
     CloseableReference<Bitmap> bitmapReference =
         mPlatformDecoder.decodeJPEGFromEncodedImage(
-            encodedImage, options.bitmapConfig, null, length);
+            encodedImage, options.bitmapConfig, options.regionToDecode, length);
     try {
       return new CloseableStaticBitmap(
           bitmapReference,
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.decoder;
+
+import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory;
+import com.facebook.imagepipeline.common.ImageDecodeOptions;
+import com.facebook.imagepipeline.image.CloseableImage;
+import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.image.QualityInfo;
+import java.io.Closeable;
+import javax.annotation.Nullable;
+
+/**
+ * Decoder of the intermediate scans of one progressive JPEG that keeps its state between decodes.
+ *
+ * <p> It is given growing prefixes of the same image, each ending at the end of a scan as found by
+ * {@link ProgressiveJpegParser}, and only processes the bytes added since the previous decode.
+ * Rendering the final image is left to the regular {@link ImageDecoder}.
+ */
+public interface IncrementalJpegDecoder extends ImageDecoder, Closeable {
+
+  /**
+   * Decodes the scans of the image received so far.
+   *
+   * @param encodedImage the image, starting with the bytes of the previous decodes
+   * @param length the end of the last scan to decode
+   * @return the decoded image, or null if the image cannot be decoded incrementally, in which case
+   *     it should be decoded by the regular decoder
+   */
+  @Override
+  @Nullable
+  CloseableImage decode(
+      EncodedImage encodedImage,
+      int length,
+      QualityInfo qualityInfo,
+      ImageDecodeOptions options);
+
+  /**
+   * Releases the state kept for the image.
+   */
+  @Override
+  void close();
+
+  /**
+   * Creates a decoder for each image.
+   */
+  interface Factory {
+
+    /**
+     * @param platformBitmapFactory the factory the decoder should create its bitmaps with
+     */
+    IncrementalJpegDecoder create(PlatformBitmapFactory platformBitmapFactory);
+  }
+}
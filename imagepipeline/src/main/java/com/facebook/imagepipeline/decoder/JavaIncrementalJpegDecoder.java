@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.decoder;
+
+import android.graphics.Bitmap;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.logging.FLog;
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory;
+import com.facebook.imagepipeline.common.ImageDecodeOptions;
+import com.facebook.imagepipeline.image.CloseableImage;
+import com.facebook.imagepipeline.image.CloseableStaticBitmap;
+import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.image.QualityInfo;
+import java.io.IOException;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * {@link IncrementalJpegDecoder} implemented in Java with {@link JpegScanDecoder}.
+ *
+ * <p> Only images in ARGB_8888 are decoded. Once the image is found not to be supported or to be
+ * malformed, the decoder returns null for the remaining scans.
+ *
+ * <p> The bitmaps come from the {@link PlatformBitmapFactory}, and the scans are all rendered into
+ * the same array of pixels.
+ */
+@ThreadSafe
+public class JavaIncrementalJpegDecoder implements IncrementalJpegDecoder {
+
+  private static final String TAG = "JavaIncrementalJpegDecoder";
+
+  private final PlatformBitmapFactory mPlatformBitmapFactory;
+
+  @GuardedBy("this")
+  private @Nullable JpegScanDecoder mScanDecoder;
+  /** The pixels of the last render, reused as long as the size of the output does not change */
+  @GuardedBy("this")
+  private @Nullable int[] mPixels;
+
+  public JavaIncrementalJpegDecoder(PlatformBitmapFactory platformBitmapFactory) {
+    mPlatformBitmapFactory = Preconditions.checkNotNull(platformBitmapFactory);
+    mScanDecoder = new JpegScanDecoder();
+  }
+
+  @Override
+  public synchronized @Nullable CloseableImage decode(
+      EncodedImage encodedImage,
+      int length,
+      QualityInfo qualityInfo,
+      ImageDecodeOptions options) {
+    if (mScanDecoder == null || options.bitmapConfig != Bitmap.Config.ARGB_8888) {
+      return null;
+    }
+    try {
+      if (!feed(encodedImage, length)) {
+        mScanDecoder = null;
+        return null;
+      }
+    } catch (IOException e) {
+      onDecodeError(e);
+      return null;
+    } catch (RuntimeException e) {
+      // malformed data the scan decoder does not check for
+      onDecodeError(e);
+      return null;
+    }
+    if (mScanDecoder.getScanCount() == 0) {
+      return null;
+    }
+    final int sampleSize = encodedImage.getSampleSize();
+    final int width = mScanDecoder.getOutputWidth(sampleSize);
+    final int height = mScanDecoder.getOutputHeight(sampleSize);
+    // the scan decoder bounds the size of the image
+    final int pixelCount = width * height;
+    if (mPixels == null || mPixels.length != pixelCount) {
+      mPixels = new int[pixelCount];
+    }
+    mScanDecoder.render(sampleSize, mPixels);
+    final CloseableReference<Bitmap> bitmapRef =
+        mPlatformBitmapFactory.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    try {
+      bitmapRef.get().setPixels(mPixels, 0, width, 0, 0, width, height);
+      return new CloseableStaticBitmap(
+          bitmapRef,
+          qualityInfo,
+          encodedImage.getRotationAngle(),
+          encodedImage.getExifOrientation());
+    } finally {
+      CloseableReference.closeSafely(bitmapRef);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    mScanDecoder = null;
+    mPixels = null;
+  }
+
+  @GuardedBy("this")
+  private void onDecodeError(Exception e) {
+    FLog.w(TAG, e, "Cannot decode the scans of the image incrementally");
+    mScanDecoder = null;
+    mPixels = null;
+  }
+
+  /**
+   * Feeds the bytes not processed yet to the scan decoder.
+   *
+   * @return false if the image is not supported
+   */
+  @GuardedBy("this")
+  private boolean feed(EncodedImage encodedImage, int length) throws IOException {
+    final int offset = mScanDecoder.getConsumedLength();
+    if (length > offset) {
+      CloseableReference<PooledByteBuffer> bufferRef = encodedImage.getByteBufferRef();
+      if (bufferRef == null) {
+        return false;
+      }
+      final byte[] data = new byte[length - offset];
+      try {
+        bufferRef.get().read(offset, data, 0, data.length);
+      } finally {
+        bufferRef.close();
+      }
+      mScanDecoder.feed(data, data.length);
+    }
+    return mScanDecoder.isSupported();
+  }
+
+  /**
+   * Creates {@link JavaIncrementalJpegDecoder}s.
+   */
+  public static class Factory implements IncrementalJpegDecoder.Factory {
+
+    @Override
+    public IncrementalJpegDecoder create(PlatformBitmapFactory platformBitmapFactory) {
+      return new JavaIncrementalJpegDecoder(platformBitmapFactory);
+    }
+  }
+}
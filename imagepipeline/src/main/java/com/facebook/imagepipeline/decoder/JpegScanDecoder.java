@@ -0,0 +1,917 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.decoder;
+
+import com.facebook.imageutils.JfifUtil;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Pure Java decoder of progressive JPEGs that keeps its state between scans.
+ *
+ * <p> The bytes of the image are fed as they arrive, each byte once: every new scan is entropy
+ * decoded into the DCT coefficients accumulated by the previous ones, so decoding a scan only
+ * costs the scan itself. Rendering keeps the samples of each component, and only transforms again
+ * the blocks whose coefficients the new scans changed; blocks with only a DC coefficient, common in
+ * the first scans, are rendered without an IDCT, and a sample size of 8 or more only uses the DC
+ * coefficients. The color conversion still costs the size of the output.
+ *
+ * <p> Supports 8-bit Huffman-coded progressive JPEGs, grayscale or YCbCr (or RGB with the Adobe
+ * marker), of up to {@link #MAX_DIMENSION} pixels a side and {@link #MAX_PIXEL_COUNT} pixels.
+ * Other images are reported as not supported.
+ */
+@NotThreadSafe
+public class JpegScanDecoder {
+
+  private static final int[] ZIGZAG_TO_NATURAL = {
+    0, 1, 8, 16, 9, 2, 3, 10,
+    17, 24, 32, 25, 18, 11, 4, 5,
+    12, 19, 26, 33, 40, 48, 41, 34,
+    27, 20, 13, 6, 7, 14, 21, 28,
+    35, 42, 49, 56, 57, 50, 43, 36,
+    29, 22, 15, 23, 30, 37, 44, 51,
+    58, 59, 52, 45, 38, 31, 39, 46,
+    53, 60, 61, 54, 47, 55, 62, 63,
+  };
+
+  private static final int MARKER_SOF2 = 0xC2;
+  private static final int MARKER_DHT = 0xC4;
+  private static final int MARKER_JPG = 0xC8;
+  private static final int MARKER_DAC = 0xCC;
+  private static final int MARKER_SOF15 = 0xCF;
+  private static final int MARKER_DQT = 0xDB;
+  private static final int MARKER_DRI = 0xDD;
+  private static final int MARKER_APP14 = 0xEE;
+
+  /**
+   * Largest width or height of the images decoded. The coefficients of the whole image are kept,
+   * so the frame header is not trusted to size them.
+   */
+  public static final int MAX_DIMENSION = 8192;
+  /** Largest number of pixels of the images decoded */
+  public static final int MAX_PIXEL_COUNT = 4096 * 4096;
+
+  /** IDCT basis, {@code IDCT_TABLE[x * 8 + u]} is the weight of frequency u for sample x */
+  private static final float[] IDCT_TABLE = new float[64];
+
+  static {
+    for (int x = 0; x < 8; x++) {
+      for (int u = 0; u < 8; u++) {
+        double cu = u == 0 ? 1 / Math.sqrt(2) : 1;
+        IDCT_TABLE[x * 8 + u] = (float) (cu * Math.cos((2 * x + 1) * u * Math.PI / 16) / 2);
+      }
+    }
+  }
+
+  private final int[][] mQuantizationTables = new int[4][];
+  private final HuffmanTable[] mDcTables = new HuffmanTable[4];
+  private final HuffmanTable[] mAcTables = new HuffmanTable[4];
+
+  private int mConsumedLength;
+  private boolean mIsStartOfImageRead;
+  private boolean mIsEndOfImageRead;
+  private boolean mIsSupported;
+  private @Nullable Component[] mComponents;
+  private int mWidth;
+  private int mHeight;
+  private int mMaxH;
+  private int mMaxV;
+  private int mMcusPerLine;
+  private int mMcusPerColumn;
+  private int mRestartInterval;
+  private int mScanCount;
+  private boolean mIsRgb;
+
+  // state of the scan being decoded
+  private int mEobRun;
+
+  public JpegScanDecoder() {
+    mIsSupported = true;
+  }
+
+  /**
+   * @return the number of bytes of the image processed so far. The next call to {@link #feed}
+   *     should pass the bytes from there on.
+   */
+  public int getConsumedLength() {
+    return mConsumedLength;
+  }
+
+  /**
+   * @return false if the image cannot be decoded by this decoder, in which case it stops
+   *     processing the bytes fed
+   */
+  public boolean isSupported() {
+    return mIsSupported;
+  }
+
+  public boolean isEndOfImageRead() {
+    return mIsEndOfImageRead;
+  }
+
+  /**
+   * @return the number of scans decoded so far
+   */
+  public int getScanCount() {
+    return mScanCount;
+  }
+
+  public int getWidth() {
+    return mWidth;
+  }
+
+  public int getHeight() {
+    return mHeight;
+  }
+
+  /**
+   * Processes the next bytes of the image.
+   *
+   * <p> The data has to end where a marker starts, or at the end of the image, as it does at the
+   * end of a scan found by {@link ProgressiveJpegParser}: a scan whose end is not followed by a
+   * marker is assumed to end with the data. A segment not complete in the data is processed with
+   * the next call.
+   *
+   * @param data the bytes of the image from {@link #getConsumedLength()} on
+   * @param length the number of bytes in data
+   * @throws IOException if the image is malformed
+   */
+  public void feed(byte[] data, int length) throws IOException {
+    int pos = 0;
+    while (mIsSupported && !mIsEndOfImageRead && pos + 1 < length) {
+      if (!mIsStartOfImageRead) {
+        if ((data[pos] & 0xFF) != JfifUtil.MARKER_FIRST_BYTE
+            || (data[pos + 1] & 0xFF) != JfifUtil.MARKER_SOI) {
+          throw new IOException("Not a JPEG");
+        }
+        mIsStartOfImageRead = true;
+        pos += 2;
+        continue;
+      }
+      if ((data[pos] & 0xFF) != JfifUtil.MARKER_FIRST_BYTE) {
+        throw new IOException("Marker expected at " + (mConsumedLength + pos));
+      }
+      final int marker = data[pos + 1] & 0xFF;
+      if (marker == JfifUtil.MARKER_FIRST_BYTE) {
+        // fill byte
+        pos++;
+        continue;
+      }
+      if (marker == JfifUtil.MARKER_EOI) {
+        mIsEndOfImageRead = true;
+        pos += 2;
+        break;
+      }
+      if (marker == JfifUtil.MARKER_TEM
+          || (marker >= JfifUtil.MARKER_RST0 && marker <= JfifUtil.MARKER_RST7)) {
+        pos += 2;
+        continue;
+      }
+      if (pos + 4 > length) {
+        break;
+      }
+      final int segmentStart = pos + 4;
+      final int segmentEnd = pos + 2 + readUnsignedShort(data, pos + 2);
+      if (segmentEnd > length) {
+        break;
+      }
+      if (marker == JfifUtil.MARKER_SOS) {
+        int scanEnd = findScanEnd(data, segmentEnd, length);
+        decodeScan(data, segmentStart, segmentEnd, scanEnd);
+        pos = scanEnd;
+        continue;
+      }
+      if (marker == MARKER_SOF2) {
+        readFrame(data, segmentStart);
+      } else if (marker >= JfifUtil.MARKER_SOFn && marker <= MARKER_SOF15
+          && marker != MARKER_DHT && marker != MARKER_JPG) {
+        // baseline, lossless, hierarchical or arithmetic coded
+        mIsSupported = false;
+      } else if (marker == MARKER_DHT) {
+        readHuffmanTables(data, segmentStart, segmentEnd);
+      } else if (marker == MARKER_DQT) {
+        readQuantizationTables(data, segmentStart, segmentEnd);
+      } else if (marker == MARKER_DRI) {
+        mRestartInterval = readUnsignedShort(data, segmentStart);
+      } else if (marker == MARKER_APP14) {
+        readAdobeSegment(data, segmentStart, segmentEnd);
+      }
+      pos = segmentEnd;
+    }
+    mConsumedLength += pos;
+  }
+
+  /**
+   * @return the width of the image rendered with the given sample size
+   */
+  public int getOutputWidth(int sampleSize) {
+    return (mWidth + sampleSize - 1) / sampleSize;
+  }
+
+  /**
+   * @return the height of the image rendered with the given sample size
+   */
+  public int getOutputHeight(int sampleSize) {
+    return (mHeight + sampleSize - 1) / sampleSize;
+  }
+
+  /**
+   * Renders the scans decoded so far.
+   *
+   * @param sampleSize the number of pixels of the image in each dimension per output pixel
+   * @param pixels receives the ARGB pixels, row by row, of at least the output width times the
+   *     output height
+   */
+  public void render(int sampleSize, int[] pixels) {
+    if (mComponents == null || mScanCount == 0) {
+      throw new IllegalStateException("No scan decoded");
+    }
+    final boolean isDcOnly = sampleSize >= 8;
+    final int blockSize = isDcOnly ? 1 : 8;
+    final int outputWidth = getOutputWidth(sampleSize);
+    final int outputHeight = getOutputHeight(sampleSize);
+    final int componentCount = mComponents.length;
+    final byte[][] planes = new byte[componentCount][];
+    final int[][] columnOffsets = new int[componentCount][];
+    final int[] planeWidths = new int[componentCount];
+    for (int i = 0; i < componentCount; i++) {
+      Component component = mComponents[i];
+      planeWidths[i] = component.blocksPerLineForMcu * blockSize;
+      planes[i] = renderPlane(component, isDcOnly);
+      // the column of the plane of each output column
+      columnOffsets[i] = new int[outputWidth];
+      for (int x = 0; x < outputWidth; x++) {
+        int column = x * sampleSize * component.h / mMaxH;
+        columnOffsets[i][x] = isDcOnly ? column / 8 : column;
+      }
+    }
+    final int[] rowOffsets = new int[componentCount];
+    for (int y = 0; y < outputHeight; y++) {
+      for (int i = 0; i < componentCount; i++) {
+        int row = y * sampleSize * mComponents[i].v / mMaxV;
+        rowOffsets[i] = (isDcOnly ? row / 8 : row) * planeWidths[i];
+      }
+      final int outputRowOffset = y * outputWidth;
+      if (componentCount == 1) {
+        final byte[] plane = planes[0];
+        final int[] columns = columnOffsets[0];
+        for (int x = 0; x < outputWidth; x++) {
+          int gray = plane[rowOffsets[0] + columns[x]] & 0xFF;
+          pixels[outputRowOffset + x] = 0xFF000000 | (gray << 16) | (gray << 8) | gray;
+        }
+      } else {
+        for (int x = 0; x < outputWidth; x++) {
+          int c0 = planes[0][rowOffsets[0] + columnOffsets[0][x]] & 0xFF;
+          int c1 = planes[1][rowOffsets[1] + columnOffsets[1][x]] & 0xFF;
+          int c2 = planes[2][rowOffsets[2] + columnOffsets[2][x]] & 0xFF;
+          pixels[outputRowOffset + x] = mIsRgb ? toArgb(c0, c1, c2) : yCbCrToArgb(c0, c1, c2);
+        }
+      }
+    }
+  }
+
+  private void readFrame(byte[] data, int pos) throws IOException {
+    if (mComponents != null) {
+      throw new IOException("Several frames");
+    }
+    final int precision = data[pos] & 0xFF;
+    mHeight = readUnsignedShort(data, pos + 1);
+    mWidth = readUnsignedShort(data, pos + 3);
+    final int componentCount = data[pos + 5] & 0xFF;
+    if (precision != 8 || mHeight == 0 || mWidth == 0
+        || (componentCount != 1 && componentCount != 3)
+        || mWidth > MAX_DIMENSION || mHeight > MAX_DIMENSION
+        || (long) mWidth * mHeight > MAX_PIXEL_COUNT) {
+      mIsSupported = false;
+      return;
+    }
+    final Component[] components = new Component[componentCount];
+    pos += 6;
+    for (int i = 0; i < componentCount; i++, pos += 3) {
+      Component component = new Component();
+      component.id = data[pos] & 0xFF;
+      component.h = (data[pos + 1] & 0xFF) >> 4;
+      component.v = data[pos + 1] & 0x0F;
+      component.quantizationTableIndex = data[pos + 2] & 0x03;
+      if (component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4) {
+        throw new IOException("Invalid sampling factors");
+      }
+      mMaxH = Math.max(mMaxH, component.h);
+      mMaxV = Math.max(mMaxV, component.v);
+      components[i] = component;
+    }
+    mMcusPerLine = (mWidth + 8 * mMaxH - 1) / (8 * mMaxH);
+    mMcusPerColumn = (mHeight + 8 * mMaxV - 1) / (8 * mMaxV);
+    for (Component component : components) {
+      int componentWidth = (mWidth * component.h + mMaxH - 1) / mMaxH;
+      int componentHeight = (mHeight * component.v + mMaxV - 1) / mMaxV;
+      component.blocksPerLine = (componentWidth + 7) / 8;
+      component.blocksPerColumn = (componentHeight + 7) / 8;
+      component.blocksPerLineForMcu = mMcusPerLine * component.h;
+      component.blocksPerColumnForMcu = mMcusPerColumn * component.v;
+      final int blockCount =
+          multiplyExact(component.blocksPerLineForMcu, component.blocksPerColumnForMcu);
+      component.coefficients = new short[multiplyExact(blockCount, 64)];
+      component.changedBlocks = new boolean[blockCount];
+    }
+    mComponents = components;
+  }
+
+  private void readHuffmanTables(byte[] data, int pos, int end) throws IOException {
+    while (pos < end) {
+      final int tableClass = (data[pos] & 0xFF) >> 4;
+      final int index = data[pos] & 0x03;
+      final int[] counts = new int[16];
+      int symbolCount = 0;
+      for (int i = 0; i < 16; i++) {
+        counts[i] = data[pos + 1 + i] & 0xFF;
+        symbolCount += counts[i];
+      }
+      pos += 17;
+      if (pos + symbolCount > end) {
+        throw new IOException("Invalid Huffman table");
+      }
+      final int[] symbols = new int[symbolCount];
+      for (int i = 0; i < symbolCount; i++) {
+        symbols[i] = data[pos + i] & 0xFF;
+      }
+      pos += symbolCount;
+      HuffmanTable table = new HuffmanTable(counts, symbols);
+      if (tableClass == 0) {
+        mDcTables[index] = table;
+      } else {
+        mAcTables[index] = table;
+      }
+    }
+  }
+
+  private void readQuantizationTables(byte[] data, int pos, int end) {
+    while (pos < end) {
+      final int precision = (data[pos] & 0xFF) >> 4;
+      final int index = data[pos] & 0x03;
+      pos++;
+      final int[] table = new int[64];
+      for (int i = 0; i < 64; i++) {
+        if (precision == 0) {
+          table[ZIGZAG_TO_NATURAL[i]] = data[pos++] & 0xFF;
+        } else {
+          table[ZIGZAG_TO_NATURAL[i]] = readUnsignedShort(data, pos);
+          pos += 2;
+        }
+      }
+      mQuantizationTables[index] = table;
+    }
+  }
+
+  private void readAdobeSegment(byte[] data, int pos, int end) {
+    // "Adobe", version, flags0, flags1, transform
+    if (end - pos >= 12
+        && data[pos] == 'A' && data[pos + 1] == 'd' && data[pos + 2] == 'o'
+        && data[pos + 3] == 'b' && data[pos + 4] == 'e') {
+      mIsRgb = data[pos + 11] == 0;
+    }
+  }
+
+  /**
+   * @return the offset of the marker that ends the entropy-coded data starting at pos, or the
+   *     length of the data if there is none
+   */
+  private static int findScanEnd(byte[] data, int pos, int length) {
+    while (pos + 1 < length) {
+      if ((data[pos] & 0xFF) == JfifUtil.MARKER_FIRST_BYTE) {
+        int next = data[pos + 1] & 0xFF;
+        if (next == JfifUtil.MARKER_ESCAPE_BYTE
+            || (next >= JfifUtil.MARKER_RST0 && next <= JfifUtil.MARKER_RST7)) {
+          pos += 2;
+          continue;
+        }
+        if (next != JfifUtil.MARKER_FIRST_BYTE) {
+          return pos;
+        }
+      }
+      pos++;
+    }
+    return length;
+  }
+
+  private void decodeScan(byte[] data, int pos, int headerEnd, int scanEnd) throws IOException {
+    if (mComponents == null) {
+      throw new IOException("Scan before frame");
+    }
+    final int componentCount = data[pos] & 0xFF;
+    if (componentCount < 1 || componentCount > mComponents.length) {
+      throw new IOException("Invalid scan");
+    }
+    final Component[] scanComponents = new Component[componentCount];
+    pos++;
+    for (int i = 0; i < componentCount; i++, pos += 2) {
+      Component component = findComponent(data[pos] & 0xFF);
+      component.dcTable = mDcTables[(data[pos + 1] & 0xFF) >> 4];
+      component.acTable = mAcTables[data[pos + 1] & 0x03];
+      scanComponents[i] = component;
+    }
+    final int spectralStart = data[pos] & 0xFF;
+    final int spectralEnd = data[pos + 1] & 0xFF;
+    final int successiveHigh = (data[pos + 2] & 0xFF) >> 4;
+    final int successiveLow = data[pos + 2] & 0x0F;
+    final boolean isDc = spectralStart == 0;
+    if ((isDc && spectralEnd != 0)
+        || (!isDc && (componentCount != 1 || spectralEnd > 63 || spectralStart > spectralEnd))) {
+      throw new IOException("Invalid spectral selection");
+    }
+    for (Component component : scanComponents) {
+      if ((isDc && successiveHigh == 0 && component.dcTable == null)
+          || (!isDc && component.acTable == null)) {
+        throw new IOException("Missing Huffman table");
+      }
+      component.dcPredictor = 0;
+    }
+
+    final BitReader reader = new BitReader(data, headerEnd, scanEnd);
+    mEobRun = 0;
+    int mcusToRestart = mRestartInterval;
+    if (componentCount == 1) {
+      // non-interleaved, one block per MCU in the raster order of the component
+      final Component component = scanComponents[0];
+      for (int row = 0; row < component.blocksPerColumn; row++) {
+        for (int column = 0; column < component.blocksPerLine; column++) {
+          if (mRestartInterval > 0 && mcusToRestart-- == 0) {
+            restart(reader, scanComponents);
+            mcusToRestart = mRestartInterval - 1;
+          }
+          final int offset = (row * component.blocksPerLineForMcu + column) * 64;
+          decodeBlock(
+              reader, component, offset,
+              spectralStart, spectralEnd, successiveHigh, successiveLow);
+        }
+      }
+    } else {
+      for (int mcuRow = 0; mcuRow < mMcusPerColumn; mcuRow++) {
+        for (int mcuColumn = 0; mcuColumn < mMcusPerLine; mcuColumn++) {
+          if (mRestartInterval > 0 && mcusToRestart-- == 0) {
+            restart(reader, scanComponents);
+            mcusToRestart = mRestartInterval - 1;
+          }
+          for (Component component : scanComponents) {
+            for (int v = 0; v < component.v; v++) {
+              for (int h = 0; h < component.h; h++) {
+                final int row = mcuRow * component.v + v;
+                final int column = mcuColumn * component.h + h;
+                final int offset = (row * component.blocksPerLineForMcu + column) * 64;
+                decodeBlock(
+                    reader, component, offset,
+                    spectralStart, spectralEnd, successiveHigh, successiveLow);
+              }
+            }
+          }
+        }
+      }
+    }
+    mScanCount++;
+  }
+
+  private void restart(BitReader reader, Component[] scanComponents) {
+    reader.skipRestartMarker();
+    mEobRun = 0;
+    for (Component component : scanComponents) {
+      component.dcPredictor = 0;
+    }
+  }
+
+  private void decodeBlock(
+      BitReader reader,
+      Component component,
+      int offset,
+      int spectralStart,
+      int spectralEnd,
+      int successiveHigh,
+      int successiveLow) throws IOException {
+    final short[] coefficients = component.coefficients;
+    final boolean isChanged;
+    if (spectralStart == 0) {
+      if (successiveHigh == 0) {
+        // first DC scan
+        final int size = component.dcTable.decode(reader);
+        component.dcPredictor += size == 0 ? 0 : reader.receiveExtend(size);
+        coefficients[offset] = (short) (component.dcPredictor << successiveLow);
+        isChanged = true;
+      } else {
+        // DC refinement
+        isChanged = reader.readBit() != 0;
+        if (isChanged) {
+          coefficients[offset] |= 1 << successiveLow;
+        }
+      }
+    } else if (successiveHigh == 0) {
+      isChanged = decodeAcFirst(reader, component.acTable, coefficients, offset,
+          spectralStart, spectralEnd, successiveLow);
+    } else {
+      isChanged = decodeAcRefinement(reader, component.acTable, coefficients, offset,
+          spectralStart, spectralEnd, successiveLow);
+    }
+    if (isChanged) {
+      component.changedBlocks[offset / 64] = true;
+    }
+  }
+
+  /**
+   * @return whether a coefficient of the block was set
+   */
+  private boolean decodeAcFirst(
+      BitReader reader,
+      HuffmanTable table,
+      short[] coefficients,
+      int offset,
+      int spectralStart,
+      int spectralEnd,
+      int successiveLow) throws IOException {
+    if (mEobRun > 0) {
+      mEobRun--;
+      return false;
+    }
+    boolean isChanged = false;
+    int k = spectralStart;
+    while (k <= spectralEnd) {
+      final int symbol = table.decode(reader);
+      final int run = symbol >> 4;
+      final int size = symbol & 0x0F;
+      if (size == 0) {
+        if (run < 15) {
+          mEobRun = (1 << run) - 1;
+          if (run > 0) {
+            mEobRun += reader.receive(run);
+          }
+          break;
+        }
+        k += 16;
+        continue;
+      }
+      k += run;
+      if (k > 63) {
+        throw new IOException("Invalid AC coefficient index");
+      }
+      coefficients[offset + ZIGZAG_TO_NATURAL[k]] =
+          (short) (reader.receiveExtend(size) * (1 << successiveLow));
+      isChanged = true;
+      k++;
+    }
+    return isChanged;
+  }
+
+  /**
+   * @return whether a coefficient of the block was set or refined
+   */
+  private boolean decodeAcRefinement(
+      BitReader reader,
+      HuffmanTable table,
+      short[] coefficients,
+      int offset,
+      int spectralStart,
+      int spectralEnd,
+      int successiveLow) throws IOException {
+    final int positiveBit = 1 << successiveLow;
+    final int negativeBit = -1 << successiveLow;
+    boolean isChanged = false;
+    int k = spectralStart;
+    if (mEobRun == 0) {
+      for (; k <= spectralEnd; k++) {
+        final int symbol = table.decode(reader);
+        int run = symbol >> 4;
+        final int size = symbol & 0x0F;
+        int value = 0;
+        if (size != 0) {
+          if (size != 1) {
+            throw new IOException("Invalid refinement coefficient");
+          }
+          value = reader.readBit() != 0 ? positiveBit : negativeBit;
+        } else if (run != 15) {
+          mEobRun = 1 << run;
+          if (run > 0) {
+            mEobRun += reader.receive(run);
+          }
+          break;
+        }
+        // skip the zero coefficients of the run, refining the non zero ones on the way
+        while (k <= spectralEnd) {
+          final int index = offset + ZIGZAG_TO_NATURAL[k];
+          if (coefficients[index] != 0) {
+            isChanged |= refine(reader, coefficients, index, positiveBit, negativeBit);
+          } else {
+            if (run == 0) {
+              break;
+            }
+            run--;
+          }
+          k++;
+        }
+        if (value != 0 && k <= spectralEnd) {
+          coefficients[offset + ZIGZAG_TO_NATURAL[k]] = (short) value;
+          isChanged = true;
+        }
+      }
+    }
+    if (mEobRun > 0) {
+      // refine the remaining non zero coefficients of the band
+      for (; k <= spectralEnd; k++) {
+        final int index = offset + ZIGZAG_TO_NATURAL[k];
+        if (coefficients[index] != 0) {
+          isChanged |= refine(reader, coefficients, index, positiveBit, negativeBit);
+        }
+      }
+      mEobRun--;
+    }
+    return isChanged;
+  }
+
+  /**
+   * @return whether the coefficient changed
+   */
+  private static boolean refine(
+      BitReader reader,
+      short[] coefficients,
+      int index,
+      int positiveBit,
+      int negativeBit) {
+    if (reader.readBit() != 0 && (coefficients[index] & positiveBit) == 0) {
+      coefficients[index] += coefficients[index] >= 0 ? positiveBit : negativeBit;
+      return true;
+    }
+    return false;
+  }
+
+  private Component findComponent(int id) throws IOException {
+    for (Component component : mComponents) {
+      if (component.id == id) {
+        return component;
+      }
+    }
+    throw new IOException("Unknown component " + id);
+  }
+
+  /**
+   * Renders the blocks of the component changed since the previous render.
+   *
+   * @return the samples of the component, one per block if isDcOnly
+   */
+  private byte[] renderPlane(Component component, boolean isDcOnly) {
+    final int[] quantizationTable = mQuantizationTables[component.quantizationTableIndex];
+    final short[] coefficients = component.coefficients;
+    final boolean[] changedBlocks = component.changedBlocks;
+    final int blocksPerLine = component.blocksPerLineForMcu;
+    final int blockCount = blocksPerLine * component.blocksPerColumnForMcu;
+    if (component.plane == null || component.isPlaneDcOnly != isDcOnly) {
+      component.plane = new byte[isDcOnly ? blockCount : blockCount * 64];
+      component.isPlaneDcOnly = isDcOnly;
+      Arrays.fill(changedBlocks, true);
+    }
+    final byte[] plane = component.plane;
+    if (isDcOnly) {
+      for (int block = 0; block < blockCount; block++) {
+        if (changedBlocks[block]) {
+          changedBlocks[block] = false;
+          plane[block] = getDcSample(coefficients[block * 64], quantizationTable);
+        }
+      }
+      return plane;
+    }
+    final int planeWidth = blocksPerLine * 8;
+    final float[] dequantized = new float[64];
+    final float[] rows = new float[64];
+    for (int block = 0; block < blockCount; block++) {
+      if (!changedBlocks[block]) {
+        continue;
+      }
+      changedBlocks[block] = false;
+      final int coefficientOffset = block * 64;
+      final int planeOffset =
+          (block / blocksPerLine) * 8 * planeWidth + (block % blocksPerLine) * 8;
+      boolean hasAc = false;
+      for (int i = 1; i < 64; i++) {
+        if (coefficients[coefficientOffset + i] != 0) {
+          hasAc = true;
+          break;
+        }
+      }
+      if (!hasAc) {
+        final byte value = getDcSample(coefficients[coefficientOffset], quantizationTable);
+        for (int y = 0; y < 8; y++) {
+          for (int x = 0; x < 8; x++) {
+            plane[planeOffset + y * planeWidth + x] = value;
+          }
+        }
+        continue;
+      }
+      for (int i = 0; i < 64; i++) {
+        dequantized[i] = coefficients[coefficientOffset + i] * quantizationTable[i];
+      }
+      // 1D IDCT of the rows, then of the columns
+      int lastNonZeroRow = 0;
+      for (int v = 0; v < 8; v++) {
+        boolean isZeroRow = true;
+        for (int u = 0; u < 8; u++) {
+          isZeroRow &= dequantized[v * 8 + u] == 0;
+        }
+        if (isZeroRow) {
+          Arrays.fill(rows, v * 8, v * 8 + 8, 0f);
+          continue;
+        }
+        lastNonZeroRow = v;
+        for (int x = 0; x < 8; x++) {
+          float sum = 0;
+          for (int u = 0; u < 8; u++) {
+            sum += IDCT_TABLE[x * 8 + u] * dequantized[v * 8 + u];
+          }
+          rows[v * 8 + x] = sum;
+        }
+      }
+      for (int x = 0; x < 8; x++) {
+        for (int y = 0; y < 8; y++) {
+          float sum = 0;
+          for (int v = 0; v <= lastNonZeroRow; v++) {
+            sum += IDCT_TABLE[y * 8 + v] * rows[v * 8 + x];
+          }
+          plane[planeOffset + y * planeWidth + x] = toSample(sum + 128);
+        }
+      }
+    }
+    return plane;
+  }
+
+  /**
+   * @return the value of the samples of a block with only a DC coefficient
+   */
+  private static byte getDcSample(short dc, int[] quantizationTable) {
+    return toSample(dc * quantizationTable[0] / 8f + 128);
+  }
+
+  private static byte toSample(float value) {
+    int rounded = Math.round(value);
+    return (byte) (rounded < 0 ? 0 : rounded > 255 ? 255 : rounded);
+  }
+
+  private static int yCbCrToArgb(int y, int cb, int cr) {
+    cb -= 128;
+    cr -= 128;
+    // JFIF conversion, in 16.16 fixed point
+    int r = y + ((91881 * cr + 32768) >> 16);
+    int g = y - ((22554 * cb + 46802 * cr - 32768) >> 16);
+    int b = y + ((116130 * cb + 32768) >> 16);
+    return toArgb(clamp(r), clamp(g), clamp(b));
+  }
+
+  private static int clamp(int value) {
+    return value < 0 ? 0 : value > 255 ? 255 : value;
+  }
+
+  private static int toArgb(int r, int g, int b) {
+    return 0xFF000000 | (r << 16) | (g << 8) | b;
+  }
+
+  /**
+   * Multiplies the sizes, as {@code Math.multiplyExact} does on API 24 and above.
+   *
+   * @throws IOException if the product overflows
+   */
+  private static int multiplyExact(int a, int b) throws IOException {
+    final long product = (long) a * b;
+    if (product != (int) product) {
+      throw new IOException("Image too large");
+    }
+    return (int) product;
+  }
+
+  private static int readUnsignedShort(byte[] data, int pos) {
+    return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+  }
+
+  private static class Component {
+    int id;
+    int h;
+    int v;
+    int quantizationTableIndex;
+    int blocksPerLine;
+    int blocksPerColumn;
+    int blocksPerLineForMcu;
+    int blocksPerColumnForMcu;
+    short[] coefficients;
+    boolean[] changedBlocks;
+    @Nullable byte[] plane;
+    boolean isPlaneDcOnly;
+    int dcPredictor;
+    @Nullable HuffmanTable dcTable;
+    @Nullable HuffmanTable acTable;
+  }
+
+  private static class HuffmanTable {
+
+    private final int[] mSymbols;
+    private final int[] mMaxCodes = new int[17];
+    private final int[] mMinCodes = new int[17];
+    private final int[] mSymbolOffsets = new int[17];
+
+    HuffmanTable(int[] counts, int[] symbols) {
+      mSymbols = symbols;
+      int code = 0;
+      int symbolOffset = 0;
+      for (int length = 1; length <= 16; length++) {
+        final int count = counts[length - 1];
+        mSymbolOffsets[length] = symbolOffset;
+        mMinCodes[length] = code;
+        code += count;
+        symbolOffset += count;
+        mMaxCodes[length] = count > 0 ? code - 1 : -1;
+        code <<= 1;
+      }
+    }
+
+    int decode(BitReader reader) throws IOException {
+      int code = 0;
+      for (int length = 1; length <= 16; length++) {
+        code = (code << 1) | reader.readBit();
+        if (code <= mMaxCodes[length]) {
+          return mSymbols[mSymbolOffsets[length] + code - mMinCodes[length]];
+        }
+      }
+      throw new IOException("Invalid Huffman code");
+    }
+  }
+
+  /**
+   * Reads the bits of entropy-coded data, skipping the stuffed zero bytes. Past the end of the data
+   * or at a marker, it reads zeros.
+   */
+  private static class BitReader {
+
+    private final byte[] mData;
+    private final int mEnd;
+    private int mPos;
+    private int mBits;
+    private int mBitCount;
+
+    BitReader(byte[] data, int start, int end) {
+      mData = data;
+      mPos = start;
+      mEnd = end;
+    }
+
+    int readBit() {
+      if (mBitCount == 0) {
+        mBits = nextByte();
+        mBitCount = 8;
+      }
+      mBitCount--;
+      return (mBits >> mBitCount) & 1;
+    }
+
+    int receive(int count) {
+      int value = 0;
+      for (int i = 0; i < count; i++) {
+        value = (value << 1) | readBit();
+      }
+      return value;
+    }
+
+    int receiveExtend(int size) {
+      final int value = receive(size);
+      return value < 1 << (size - 1) ? value - (1 << size) + 1 : value;
+    }
+
+    void skipRestartMarker() {
+      mBitCount = 0;
+      while (mPos + 1 < mEnd) {
+        if ((mData[mPos] & 0xFF) == JfifUtil.MARKER_FIRST_BYTE) {
+          int next = mData[mPos + 1] & 0xFF;
+          if (next >= JfifUtil.MARKER_RST0 && next <= JfifUtil.MARKER_RST7) {
+            mPos += 2;
+            return;
+          }
+        }
+        mPos++;
+      }
+    }
+
+    private int nextByte() {
+      if (mPos >= mEnd) {
+        return 0;
+      }
+      final int value = mData[mPos] & 0xFF;
+      if (value != JfifUtil.MARKER_FIRST_BYTE) {
+        mPos++;
+        return value;
+      }
+      if (mPos + 1 < mEnd && mData[mPos + 1] == JfifUtil.MARKER_ESCAPE_BYTE) {
+        mPos += 2;
+        return value;
+      }
+      // a marker, left for the restart handling
+      return 0;
+    }
+  }
+}
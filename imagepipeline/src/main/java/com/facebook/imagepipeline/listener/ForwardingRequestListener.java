@@ -8,6 +8,7 @@
 package com.facebook.imagepipeline.listener;
 
 import com.facebook.common.logging.FLog;
+import com.facebook.imagepipeline.producers.RequestTrace;
 import com.facebook.imagepipeline.request.ImageRequest;
 import java.util.ArrayList;
 import java.util.List;
@@ -15,7 +16,7 @@ import java.util.Map;
 import java.util.Set;
 import javax.annotation.Nullable;
 
-public class ForwardingRequestListener implements RequestListener {
+public class ForwardingRequestListener implements RequestListener, RequestTraceListener {
   private static final String TAG = "ForwardingRequestListener";
 
   private final List<RequestListener> mRequestListeners;
@@ -201,6 +202,36 @@ public class ForwardingRequestListener implements RequestListener {
     return false;
   }
 
+  @Override
+  public boolean requiresRequestTrace(String requestId) {
+    final int numberOfListeners = mRequestListeners.size();
+    for (int i = 0; i < numberOfListeners; ++i) {
+      RequestListener listener = mRequestListeners.get(i);
+      if (listener instanceof RequestTraceListener
+          && ((RequestTraceListener) listener).requiresRequestTrace(requestId)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void onRequestTraceComplete(RequestTrace requestTrace) {
+    final int numberOfListeners = mRequestListeners.size();
+    for (int i = 0; i < numberOfListeners; ++i) {
+      RequestListener listener = mRequestListeners.get(i);
+      if (!(listener instanceof RequestTraceListener)) {
+        continue;
+      }
+      try {
+        ((RequestTraceListener) listener).onRequestTraceComplete(requestTrace);
+      } catch (Exception exception) {
+        // Don't punish the other listeners if we're given a bad one.
+        onException("InternalListener exception in onRequestTraceComplete", exception);
+      }
+    }
+  }
+
   private void onException(String message, Throwable t) {
     FLog.e(TAG, message, t);
   }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.listener;
+
+import com.facebook.common.time.LatencyHistogram;
+import com.facebook.imagepipeline.core.QueueWaitTrackingExecutorSupplier;
+import com.facebook.imagepipeline.producers.RequestTrace;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Aggregates the {@link RequestTrace}s of all the requests into latency histograms.
+ *
+ * <p> For each stage, the time the stage took to run is kept apart from the time its work waited
+ * for a thread. The time requests spent in the queues of the pipeline itself, such as the pending
+ * queue of a throttling producer, is kept per {@link RequestTrace.Wait}. If the executors of the
+ * pipeline are wrapped in a {@link QueueWaitTrackingExecutorSupplier}, the wait of all the work
+ * submitted to each executor is available from it as well.
+ *
+ * <p> The histograms are cumulative. Poll them with {@link LatencyHistogram#moveTo} to get the
+ * values recorded since the previous poll.
+ */
+@ThreadSafe
+public class ProducerLatencyTracker extends BaseRequestListener implements RequestTraceListener {
+
+  private final LatencyHistogram[] mExecutionHistograms;
+  private final LatencyHistogram[] mQueueWaitHistograms;
+  private final LatencyHistogram[] mWaitHistograms;
+  private final @Nullable QueueWaitTrackingExecutorSupplier mExecutorSupplier;
+
+  public ProducerLatencyTracker(@Nullable QueueWaitTrackingExecutorSupplier executorSupplier) {
+    mExecutorSupplier = executorSupplier;
+    mExecutionHistograms = newHistograms(RequestTrace.STAGE_COUNT);
+    mQueueWaitHistograms = newHistograms(RequestTrace.STAGE_COUNT);
+    mWaitHistograms = newHistograms(RequestTrace.WAIT_COUNT);
+  }
+
+  @Override
+  public boolean requiresRequestTrace(String requestId) {
+    return true;
+  }
+
+  @Override
+  public void onRequestTraceComplete(RequestTrace requestTrace) {
+    for (int stage = 0; stage < RequestTrace.STAGE_COUNT; stage++) {
+      int status = requestTrace.getStatus(stage);
+      long durationMs = requestTrace.getDurationMs(stage);
+      if ((status == RequestTrace.STATUS_SUCCESS || status == RequestTrace.STATUS_FAILURE)
+          && durationMs != RequestTrace.UNSET) {
+        mExecutionHistograms[stage].record(durationMs);
+      }
+      long queueWaitMs = requestTrace.getQueueWaitMs(stage);
+      if (queueWaitMs != RequestTrace.UNSET) {
+        mQueueWaitHistograms[stage].record(queueWaitMs);
+      }
+    }
+    for (int wait = 0; wait < RequestTrace.WAIT_COUNT; wait++) {
+      long waitMs = requestTrace.getWaitMs(wait);
+      if (waitMs != RequestTrace.UNSET) {
+        mWaitHistograms[wait].record(waitMs);
+      }
+    }
+  }
+
+  /**
+   * @return the histogram of the time the stage took to run, in milliseconds. Stages that were
+   *     cancelled are not counted.
+   */
+  public LatencyHistogram getExecutionHistogram(@RequestTrace.Stage int stage) {
+    return mExecutionHistograms[stage];
+  }
+
+  /**
+   * @return the histogram of the time the work of the stage waited for a thread, in milliseconds
+   */
+  public LatencyHistogram getQueueWaitHistogram(@RequestTrace.Stage int stage) {
+    return mQueueWaitHistograms[stage];
+  }
+
+  /**
+   * @return the histogram of the time requests spent in the given queue, in milliseconds
+   */
+  public LatencyHistogram getWaitHistogram(@RequestTrace.Wait int wait) {
+    return mWaitHistograms[wait];
+  }
+
+  /**
+   * @return the executors of the pipeline, which hold the queue wait of each of them, or null if
+   *     the pipeline was given executors that do not track their queue wait
+   */
+  @Nullable
+  public QueueWaitTrackingExecutorSupplier getExecutorSupplier() {
+    return mExecutorSupplier;
+  }
+
+  private static LatencyHistogram[] newHistograms(int count) {
+    LatencyHistogram[] histograms = new LatencyHistogram[count];
+    for (int i = 0; i < count; i++) {
+      histograms[i] = new LatencyHistogram();
+    }
+    return histograms;
+  }
+}
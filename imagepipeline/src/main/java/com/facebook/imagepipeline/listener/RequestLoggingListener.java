@@ -10,6 +10,7 @@ package com.facebook.imagepipeline.listener;
 import android.os.SystemClock;
 import android.util.Pair;
 import com.facebook.common.logging.FLog;
+import com.facebook.imagepipeline.producers.RequestTrace;
 import com.facebook.imagepipeline.request.ImageRequest;
 import java.util.HashMap;
 import java.util.Map;
@@ -19,7 +20,7 @@ import javax.annotation.concurrent.GuardedBy;
 /**
  * Logging for {@link ImageRequest}s.
  */
-public class RequestLoggingListener implements RequestListener {
+public class RequestLoggingListener implements RequestListener, RequestTraceListener {
   private static final String TAG = "RequestLoggingListener";
 
   @GuardedBy("this")
@@ -225,6 +226,49 @@ public class RequestLoggingListener implements RequestListener {
     return FLog.isLoggable(FLog.VERBOSE);
   }
 
+  @Override
+  public boolean requiresRequestTrace(String requestId) {
+    return FLog.isLoggable(FLog.VERBOSE);
+  }
+
+  @Override
+  public void onRequestTraceComplete(RequestTrace requestTrace) {
+    if (FLog.isLoggable(FLog.VERBOSE)) {
+      for (int stage = 0; stage < RequestTrace.STAGE_COUNT; stage++) {
+        if (requestTrace.getStatus(stage) == RequestTrace.STATUS_NONE) {
+          continue;
+        }
+        FLog.v(
+            TAG,
+            "onRequestTraceComplete: {requestId: %s, stage: %s, status: %d, elapsedTime: %d ms, " +
+                "queueWait: %d ms, bytes: %d, cacheHit: %s}",
+            requestTrace.getRequestId(),
+            RequestTrace.getStageName(stage),
+            requestTrace.getStatus(stage),
+            requestTrace.getDurationMs(stage),
+            requestTrace.getQueueWaitMs(stage),
+            requestTrace.getByteCount(stage),
+            requestTrace.getCacheHit(stage));
+      }
+      FLog.v(
+          TAG,
+          "onRequestTraceComplete: {requestId: %s, sampleSize: %d}",
+          requestTrace.getRequestId(),
+          requestTrace.getSampleSize());
+      for (int wait = 0; wait < RequestTrace.WAIT_COUNT; wait++) {
+        if (requestTrace.getWaitMs(wait) == RequestTrace.UNSET) {
+          continue;
+        }
+        FLog.v(
+            TAG,
+            "onRequestTraceComplete: {requestId: %s, wait: %s, elapsedTime: %d ms}",
+            requestTrace.getRequestId(),
+            RequestTrace.getWaitName(wait),
+            requestTrace.getWaitMs(wait));
+      }
+    }
+  }
+
   private static long getElapsedTime(@Nullable Long startTime, long endTime) {
     if (startTime != null) {
       return endTime - startTime;
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.listener;
+
+import com.facebook.imagepipeline.producers.RequestTrace;
+
+/**
+ * Optional interface for {@link RequestListener}s that consume the typed {@link RequestTrace} of
+ * requests instead of, or in addition to, the extra maps of the producer callbacks.
+ *
+ * <p> A request is traced if one of its listeners requires it. The pipeline then records the
+ * trace while the producers run, and hands it over once the request has succeeded, failed or been
+ * cancelled.
+ */
+public interface RequestTraceListener {
+
+  /**
+   * @param requestId unique id generated automatically for each request submission
+   * @return true if the request should be traced
+   */
+  boolean requiresRequestTrace(String requestId);
+
+  /**
+   * Called once the request has completed, right after {@code onRequestSuccess},
+   * {@code onRequestFailure} or {@code onRequestCancellation}. The trace is recycled when this
+   * method returns: implementations must copy the values they need and not keep a reference to it.
+   * @param requestTrace trace of the request
+   */
+  void onRequestTraceComplete(RequestTrace requestTrace);
+}
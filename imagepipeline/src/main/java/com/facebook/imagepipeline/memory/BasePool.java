@@ -23,6 +23,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.NotThreadSafe;
 
@@ -71,6 +72,7 @@ import javax.annotation.concurrent.NotThreadSafe;
  *   params</li>
  *   <li>{@link #isReusable(Object)} - used to determine if a value can be reused or must be
  *   freed</li>
+ *   <li>{@link #getMaxBestFitBucketedSize(int)} - used to reuse values of larger buckets</li>
  * </ul>
  * <p>
  * InUse values
@@ -106,6 +108,26 @@ import javax.annotation.concurrent.NotThreadSafe;
  *   If the BucketSizes parameter is null, then the pool will dynamically create buckets on demand.
  *   </li>
  * </ul>
+ * <p>
+ * Magazines
+ * Optionally, each thread can keep a few values per bucketed size in a {@link Magazine}, a small
+ * free list private to the thread. A {@link #get(int)} served by the magazine and a
+ * {@link #release(Object)} absorbed by it don't take the pool monitor: the magazine validates the
+ * value itself, and only takes back the values it handed out on its thread. Magazines refill from
+ * the buckets, and spill to them, in batches, under the pool monitor. Values in magazines are
+ * still accounted as 'in use', so the caps above apply unchanged, but a release goes to the
+ * buckets as usual when the pool is over its soft cap. For the {@link PoolStatsTracker}, a value
+ * in a magazine is free: its release and its reuse are counted by the magazine, and reported the
+ * next time its thread takes the pool monitor, or when the magazine is drained. Values go back to
+ * the buckets on
+ * {@link #trim(MemoryTrimType)}, when an allocation would otherwise exceed the hard cap, or when
+ * the thread of their magazine has finished. Magazines are enabled with
+ * {@link #setThreadLocalMagazineCapacity(int)}.
+ * <p>
+ * Best fit
+ * Subclasses can let a {@link #get(int)} whose bucket has no free value reuse a value of a larger
+ * bucket, up to {@link #getMaxBestFitBucketedSize(int)}, instead of allocating. The smallest such
+ * value is used, and stays accounted in its own bucket.
  */
 public abstract class BasePool<V> implements Pool<V> {
   private final Class<?> TAG = this.getClass();
@@ -153,6 +175,32 @@ public abstract class BasePool<V> implements Pool<V> {
 
   private final PoolStatsTracker mPoolStatsTracker;
 
+  /**
+   * The per-thread magazines, null if magazines are disabled
+   */
+  @Nullable
+  private volatile ThreadLocal<Magazine<V>> mMagazines;
+
+  /**
+   * All the magazines created so far, so that their values can be moved back to the buckets
+   */
+  @GuardedBy("this")
+  private final List<Magazine<V>> mAllMagazines;
+
+  /**
+   * Whether the pool was over its soft cap when its size last changed, for the magazines to check
+   * without the pool monitor
+   */
+  private volatile boolean mIsMaxSizeSoftCapExceeded;
+
+  /**
+   * Scratch arrays to collect the stats of the magazines before reporting them
+   */
+  @GuardedBy("this")
+  private final SparseIntArray mMagazineReuseCounts;
+  @GuardedBy("this")
+  private final SparseIntArray mMagazineReleaseCounts;
+
   /**
    * Creates a new instance of the pool.
    * @param poolParams pool parameters
@@ -174,6 +222,10 @@ public abstract class BasePool<V> implements Pool<V> {
 
     mFree = new Counter();
     mUsed = new Counter();
+
+    mAllMagazines = new ArrayList<>();
+    mMagazineReuseCounts = new SparseIntArray();
+    mMagazineReleaseCounts = new SparseIntArray();
   }
 
   /**
@@ -184,6 +236,34 @@ public abstract class BasePool<V> implements Pool<V> {
     mPoolStatsTracker.setBasePool(this);
   }
 
+  /**
+   * Enables the per-thread magazines. This must be called before the pool is used.
+   * <p>
+   * Each magazine holds its values until its thread uses them, or until the pool is trimmed. The
+   * magazines of threads that have finished are dropped, and their values moved back to the
+   * buckets, when another thread gets its magazine or when the pool is trimmed.
+   * @param capacity max number of values a thread keeps for each bucketed size, 0 for no
+   *     magazines
+   */
+  void setThreadLocalMagazineCapacity(final int capacity) {
+    Preconditions.checkArgument(capacity >= 0);
+    if (capacity == 0) {
+      mMagazines = null;
+      return;
+    }
+    mMagazines = new ThreadLocal<Magazine<V>>() {
+      @Override
+      protected Magazine<V> initialValue() {
+        Magazine<V> magazine = new Magazine<>(capacity, Thread.currentThread());
+        synchronized (BasePool.this) {
+          dropDeadMagazines();
+          mAllMagazines.add(magazine);
+        }
+        return magazine;
+      }
+    };
+  }
+
   /**
    * Gets a new 'value' from the pool, if available. Allocates a new value if necessary.
    * If we need to perform an allocation,
@@ -197,17 +277,38 @@ public abstract class BasePool<V> implements Pool<V> {
    * @throws InvalidSizeException
    */
   public V get(int size) {
-    ensurePoolSizeInvariant();
-
     int bucketedSize = getBucketedSize(size);
     int sizeInBytes = -1;
 
+    final Magazine<V> magazine = getMagazine();
+    if (magazine != null) {
+      V value = magazine.pop(bucketedSize);
+      if (value != null) {
+        if (FLog.isLoggable(FLog.VERBOSE)) {
+          FLog.v(
+              TAG,
+              "get (magazine) (object, size) = (%x, %s)",
+              System.identityHashCode(value),
+              bucketedSize);
+        }
+        return value;
+      }
+    }
+
+    ensurePoolSizeInvariant();
+
     synchronized (this) {
+      if (magazine != null) {
+        reportMagazineStats(magazine);
+      }
       Bucket<V> bucket = getBucket(bucketedSize);
 
       if (bucket != null) {
         // find an existing value that we can reuse
         V value = bucket.get();
+        if (value == null) {
+          value = getFromBestFitBucket(bucketedSize);
+        }
         if (value != null) {
           Preconditions.checkState(mInUseValues.add(value));
 
@@ -218,6 +319,13 @@ public abstract class BasePool<V> implements Pool<V> {
           mUsed.increment(sizeInBytes);
           mFree.decrement(sizeInBytes);
           mPoolStatsTracker.onValueReuse(sizeInBytes);
+          if (magazine != null) {
+            // refill from the bucket that served the value, which is larger on a best-fit reuse
+            magazine.addSize(bucketedSize);
+            refillMagazine(magazine, getBucket(bucketedSize));
+            magazine.lend(bucketedSize, value);
+          }
+          onPoolSizeChanged();
           logStats();
           if (FLog.isLoggable(FLog.VERBOSE)) {
             FLog.v(
@@ -232,7 +340,7 @@ public abstract class BasePool<V> implements Pool<V> {
       }
       // check to see if we can allocate a value of the given size without exceeding the hard cap
       sizeInBytes = getSizeInBytes(bucketedSize);
-      if (!canAllocate(sizeInBytes)) {
+      if (!canAllocate(sizeInBytes) && (!drainMagazines() || !canAllocate(sizeInBytes))) {
         throw new PoolSizeViolationException(
             mPoolParams.maxSizeHardCap,
             mUsed.mNumBytes,
@@ -244,6 +352,9 @@ public abstract class BasePool<V> implements Pool<V> {
       mUsed.increment(sizeInBytes);
       if (bucket != null) {
         bucket.incrementInUseCount();
+        if (magazine != null) {
+          magazine.addSize(bucketedSize);
+        }
       }
     }
 
@@ -262,6 +373,7 @@ public abstract class BasePool<V> implements Pool<V> {
         if (bucket != null) {
           bucket.decrementInUseCount();
         }
+        onPoolSizeChanged();
       }
       Throwables.propagateIfPossible(e);
     }
@@ -273,9 +385,13 @@ public abstract class BasePool<V> implements Pool<V> {
     // be able to trim back memory usage.
     synchronized(this) {
       Preconditions.checkState(mInUseValues.add(value));
+      if (magazine != null) {
+        magazine.lend(bucketedSize, value);
+      }
       // If we're over the pool's max size, try to trim the pool appropriately
       trimToSoftCap();
       mPoolStatsTracker.onAlloc(sizeInBytes);
+      onPoolSizeChanged();
       logStats();
       if (FLog.isLoggable(FLog.VERBOSE)) {
         FLog.v(
@@ -304,9 +420,54 @@ public abstract class BasePool<V> implements Pool<V> {
     Preconditions.checkNotNull(value);
 
     final int bucketedSize = getBucketedSizeForValue(value);
+    final Magazine<V> magazine = getMagazine();
+    if (magazine != null && isReusable(value)) {
+      // values the magazine didn't hand out, and any value while the pool is over its soft cap,
+      // take the usual path
+      if (!mIsMaxSizeSoftCapExceeded && magazine.release(bucketedSize, value)) {
+        if (FLog.isLoggable(FLog.VERBOSE)) {
+          FLog.v(
+              TAG,
+              "release (magazine) (object, size) = (%x, %s)",
+              System.identityHashCode(value),
+              bucketedSize);
+        }
+        return;
+      }
+      synchronized (this) {
+        reportMagazineStats(magazine);
+        if (magazine.getSize(bucketedSize) >= magazine.mCapacity) {
+          // the magazine is full for this size: spill its oldest half along with the value
+          final List<V> spilled = new ArrayList<>();
+          magazine.removeOldest(bucketedSize, magazine.mCapacity / 2, spilled);
+          for (int i = 0; i < spilled.size(); ++i) {
+            releaseToPool(spilled.get(i), bucketedSize, false);
+          }
+        }
+      }
+    }
+    releaseToPool(value, bucketedSize, true);
+  }
+
+  /**
+   * Releases the given value to the buckets of the pool, bypassing the magazines
+   * @param value the value to release to the pool
+   * @param bucketedSize the bucketed size of the value
+   * @param reportRelease false if the value comes from a magazine, where its release was already
+   *     counted
+   */
+  private void releaseToPool(V value, int bucketedSize, boolean reportRelease) {
     final int sizeInBytes = getSizeInBytes(bucketedSize);
     synchronized (this) {
       final Bucket<V> bucket = getBucketIfPresent(bucketedSize);
+      if (reportRelease && isHeldByMagazine(value)) {
+        FLog.e(
+            TAG,
+            "release (ignored, value already released) (object, size) = (%x, %s)",
+            System.identityHashCode(value),
+            bucketedSize);
+        return;
+      }
       if (!mInUseValues.remove(value)) {
         // This value was not 'known' to the pool (i.e.) allocated via the pool.
         // Something is going wrong, so let's free the value and report soft error.
@@ -349,7 +510,9 @@ public abstract class BasePool<V> implements Pool<V> {
           bucket.release(value);
           mFree.increment(sizeInBytes);
           mUsed.decrement(sizeInBytes);
-          mPoolStatsTracker.onValueRelease(sizeInBytes);
+          if (reportRelease) {
+            mPoolStatsTracker.onValueRelease(sizeInBytes);
+          }
           if (FLog.isLoggable(FLog.VERBOSE)) {
             FLog.v(
                 TAG,
@@ -359,6 +522,7 @@ public abstract class BasePool<V> implements Pool<V> {
           }
         }
       }
+      onPoolSizeChanged();
       logStats();
     }
   }
@@ -412,6 +576,17 @@ public abstract class BasePool<V> implements Pool<V> {
    */
   protected abstract int getSizeInBytes(int bucketedSize);
 
+  /**
+   * Gets the largest bucketed size whose free values may be used for a request of the given
+   * bucketed size, when its own bucket has no free value. Subclasses can override this to enable
+   * best-fit reuse; by default only values of the exact bucketed size are reused.
+   * @param bucketedSize the bucketed size of the request
+   * @return the largest bucketed size to reuse values of
+   */
+  protected int getMaxBestFitBucketedSize(int bucketedSize) {
+    return bucketedSize;
+  }
+
   /**
    * The pool parameters may have changed. Subclasses can override this to update any state they
    * were maintaining
@@ -479,6 +654,8 @@ public abstract class BasePool<V> implements Pool<V> {
    */
   @VisibleForTesting
   void trimToNothing() {
+    drainMagazines();
+
     final List<Bucket<V>> bucketsToTrim = new ArrayList<>(mBuckets.size());
     final SparseIntArray inUseCounts = new SparseIntArray();
 
@@ -496,6 +673,7 @@ public abstract class BasePool<V> implements Pool<V> {
 
       // free up the stats
       mFree.reset();
+      onPoolSizeChanged();
       logStats();
     }
 
@@ -521,6 +699,134 @@ public abstract class BasePool<V> implements Pool<V> {
   }
 
 
+  /**
+   * Gets the magazine of the current thread
+   * @return the magazine, or null if magazines are disabled
+   */
+  @Nullable
+  private Magazine<V> getMagazine() {
+    final ThreadLocal<Magazine<V>> magazines = mMagazines;
+    return magazines == null ? null : magazines.get();
+  }
+
+  /**
+   * Moves up to half the capacity of the magazine from the bucket to the magazine. The values
+   * are accounted as used, but their reuse is only reported when they are handed out.
+   * @param magazine the magazine of the current thread
+   * @param bucket the bucket to take the values from
+   */
+  @GuardedBy("this")
+  private void refillMagazine(Magazine<V> magazine, Bucket<V> bucket) {
+    for (int i = 0; i < magazine.mCapacity / 2; ++i) {
+      V value = bucket.get();
+      if (value == null) {
+        break;
+      }
+      int bucketedSize = getBucketedSizeForValue(value);
+      if (!magazine.offer(bucketedSize, value)) {
+        bucket.release(value);
+        break;
+      }
+      Preconditions.checkState(mInUseValues.add(value));
+      int sizeInBytes = getSizeInBytes(bucketedSize);
+      mUsed.increment(sizeInBytes);
+      mFree.decrement(sizeInBytes);
+    }
+  }
+
+  /**
+   * Moves the values of all the magazines back to the buckets (or frees them, as
+   * {@link #release(Object)} would)
+   * @return true if any value was moved
+   */
+  private synchronized boolean drainMagazines() {
+    if (mAllMagazines.isEmpty()) {
+      return false;
+    }
+    final List<V> values = new ArrayList<>();
+    for (int i = 0; i < mAllMagazines.size(); ++i) {
+      mAllMagazines.get(i).removeAll(values);
+      reportMagazineStats(mAllMagazines.get(i));
+    }
+    releaseMagazineValues(values);
+    dropDeadMagazines();
+    return !values.isEmpty();
+  }
+
+  /**
+   * Drops the magazines of the threads that have finished, moving their values back to the
+   * buckets
+   */
+  @GuardedBy("this")
+  private void dropDeadMagazines() {
+    final List<V> values = new ArrayList<>();
+    for (int i = mAllMagazines.size() - 1; i >= 0; --i) {
+      Magazine<V> magazine = mAllMagazines.get(i);
+      if (!magazine.isOwnerAlive()) {
+        magazine.removeAll(values);
+        reportMagazineStats(magazine);
+        mAllMagazines.remove(i);
+      }
+    }
+    releaseMagazineValues(values);
+  }
+
+  @GuardedBy("this")
+  private void releaseMagazineValues(List<V> values) {
+    for (int i = 0; i < values.size(); ++i) {
+      V value = values.get(i);
+      releaseToPool(value, getBucketedSizeForValue(value), false);
+    }
+  }
+
+  /**
+   * Checks whether a value released to the pool is still held by a magazine, i.e. whether it was
+   * already released. Otherwise, the magazine that handed it out can no longer take it back.
+   * @param value the value released to the pool
+   * @return true if a magazine holds the value
+   */
+  @GuardedBy("this")
+  private boolean isHeldByMagazine(V value) {
+    for (int i = 0; i < mAllMagazines.size(); ++i) {
+      if (mAllMagazines.get(i).holdsOrForget(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reports the reuses and releases counted by the given magazine to the stats tracker
+   * @param magazine the magazine
+   */
+  @GuardedBy("this")
+  private void reportMagazineStats(Magazine<V> magazine) {
+    magazine.takeCounts(mMagazineReuseCounts, mMagazineReleaseCounts);
+    for (int i = 0; i < mMagazineReuseCounts.size(); ++i) {
+      final int sizeInBytes = getSizeInBytes(mMagazineReuseCounts.keyAt(i));
+      for (int j = 0; j < mMagazineReuseCounts.valueAt(i); ++j) {
+        mPoolStatsTracker.onValueReuse(sizeInBytes);
+      }
+    }
+    for (int i = 0; i < mMagazineReleaseCounts.size(); ++i) {
+      final int sizeInBytes = getSizeInBytes(mMagazineReleaseCounts.keyAt(i));
+      for (int j = 0; j < mMagazineReleaseCounts.valueAt(i); ++j) {
+        mPoolStatsTracker.onValueRelease(sizeInBytes);
+      }
+    }
+    mMagazineReuseCounts.clear();
+    mMagazineReleaseCounts.clear();
+  }
+
+  /**
+   * Updates the soft cap state read by the magazines, after the size of the pool has changed
+   */
+  @GuardedBy("this")
+  private void onPoolSizeChanged() {
+    mIsMaxSizeSoftCapExceeded =
+        (mUsed.mNumBytes + mFree.mNumBytes) > mPoolParams.maxSizeSoftCap;
+  }
+
   /**
    * Trim the (free portion of the) pool so that the pool size is at or below the soft cap.
    * This will try to free up values in the free portion of the pool, until
@@ -583,6 +889,7 @@ public abstract class BasePool<V> implements Pool<V> {
     }
 
     // dump stats at the end
+    onPoolSizeChanged();
     logStats();
     if (FLog.isLoggable(FLog.VERBOSE)) {
       FLog.v(
@@ -603,6 +910,37 @@ public abstract class BasePool<V> implements Pool<V> {
     return mBuckets.get(bucketedSize);
   }
 
+  /**
+   * Gets a free value from the smallest bucket larger than the given bucketed size, and at most
+   * {@link #getMaxBestFitBucketedSize(int)}, that has one
+   * @param bucketedSize the bucketed size of the request
+   * @return a value from a larger bucket, or null if there isn't one
+   */
+  @Nullable
+  private synchronized V getFromBestFitBucket(int bucketedSize) {
+    final int maxBucketedSize = getMaxBestFitBucketedSize(bucketedSize);
+    if (maxBucketedSize <= bucketedSize) {
+      return null;
+    }
+    // buckets are sorted by bucketed size
+    final int index = mBuckets.indexOfKey(bucketedSize);
+    if (index < 0) {
+      return null;
+    }
+    for (int i = index + 1; i < mBuckets.size() && mBuckets.keyAt(i) <= maxBucketedSize; ++i) {
+      final V value = mBuckets.valueAt(i).get();
+      if (value != null) {
+        if (mPoolStatsTracker instanceof BestFitPoolStatsTracker) {
+          ((BestFitPoolStatsTracker) mPoolStatsTracker).onBestFitValueReuse(
+              getSizeInBytes(bucketedSize),
+              getSizeInBytes(mBuckets.keyAt(i)));
+        }
+        return value;
+      }
+    }
+    return null;
+  }
+
   /**
    * Gets the freelist for the specified bucket. Create the freelist if there isn't one
    * @param bucketedSize the bucket size
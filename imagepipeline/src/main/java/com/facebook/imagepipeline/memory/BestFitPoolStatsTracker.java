@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory;
+
+/**
+ * A {@link PoolStatsTracker} that is also told about best-fit reuse. Pools check for it, so
+ * trackers that only implement {@link PoolStatsTracker} keep working unchanged.
+ */
+public interface BestFitPoolStatsTracker extends PoolStatsTracker {
+
+  /**
+   * Called when a request is served by a value of a larger bucket, in addition to
+   * {@link #onValueReuse(int)}
+   * @param requestedSizeInBytes the size in bytes of the bucket of the request
+   * @param sizeInBytes the size in bytes of the value reused
+   */
+  void onBestFitValueReuse(int requestedSizeInBytes, int sizeInBytes);
+}
@@ -10,6 +10,7 @@ package com.facebook.imagepipeline.memory;
 import android.annotation.TargetApi;
 import android.graphics.Bitmap;
 import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.VisibleForTesting;
 import com.facebook.common.memory.MemoryTrimmableRegistry;
 import com.facebook.imageutils.BitmapUtil;
 import javax.annotation.concurrent.ThreadSafe;
@@ -22,11 +23,30 @@ import javax.annotation.concurrent.ThreadSafe;
  * get() allows for a bitmap in the pool to be reused if it matches the desired
  * dimensions; if no such bitmap is found in the pool, a new one is allocated.
  * release() returns a bitmap to the pool.
+ * <p>
+ * By default each distinct size in bytes has its own bucket, so bitmaps are only reused for
+ * images of the exact same size. With size classes, sizes are rounded up to a few classes per
+ * power of two, and a request whose class has no free bitmap reuses one of the next larger
+ * classes. Callers reconfigure the bitmap to the dimensions they need, as they already do for
+ * exact sizes.
  */
 @ThreadSafe
 @TargetApi(21)
 public class BitmapPool extends BasePool<Bitmap> {
 
+  /** Each power of two is divided into this many size classes */
+  @VisibleForTesting
+  static final int SIZE_CLASSES_PER_POWER_OF_TWO = 4;
+
+  /** The smallest step between two size classes, a multiple of the bytes of any pixel */
+  private static final int MIN_SIZE_CLASS_STEP = 4;
+
+  /** The number of larger size classes searched for a free bitmap */
+  @VisibleForTesting
+  static final int BEST_FIT_SIZE_CLASS_COUNT = 2;
+
+  private final boolean mSizeClassesEnabled;
+
   /**
    * Creates an instance of a bitmap pool.
    * @param memoryTrimmableRegistry the memory manager to register with
@@ -36,7 +56,23 @@ public class BitmapPool extends BasePool<Bitmap> {
       MemoryTrimmableRegistry memoryTrimmableRegistry,
       PoolParams poolParams,
       PoolStatsTracker poolStatsTracker) {
+    this(memoryTrimmableRegistry, poolParams, poolStatsTracker, false);
+  }
+
+  /**
+   * Creates an instance of a bitmap pool.
+   * @param memoryTrimmableRegistry the memory manager to register with
+   * @param poolParams pool parameters
+   * @param sizeClassesEnabled whether to bucket bitmaps by size class and reuse bitmaps of larger
+   *     size classes
+   */
+  public BitmapPool(
+      MemoryTrimmableRegistry memoryTrimmableRegistry,
+      PoolParams poolParams,
+      PoolStatsTracker poolStatsTracker,
+      boolean sizeClassesEnabled) {
     super(memoryTrimmableRegistry, poolParams, poolStatsTracker);
+    mSizeClassesEnabled = sizeClassesEnabled;
     initialize();
   }
 
@@ -71,7 +107,40 @@ public class BitmapPool extends BasePool<Bitmap> {
    */
   @Override
   protected int getBucketedSize(int requestSize) {
-    return requestSize;
+    return mSizeClassesEnabled ? getSizeClass(requestSize) : requestSize;
+  }
+
+  /**
+   * Gets the largest size class a bitmap can be reused from, when size classes are enabled
+   * @param bucketedSize the bucketed size of the request
+   * @return the largest bucketed size to reuse bitmaps of
+   */
+  @Override
+  protected int getMaxBestFitBucketedSize(int bucketedSize) {
+    if (!mSizeClassesEnabled) {
+      return bucketedSize;
+    }
+    int maxBucketedSize = bucketedSize;
+    for (int i = 0; i < BEST_FIT_SIZE_CLASS_COUNT && maxBucketedSize < Integer.MAX_VALUE; i++) {
+      maxBucketedSize = getSizeClass(maxBucketedSize + 1);
+    }
+    return maxBucketedSize;
+  }
+
+  /**
+   * Rounds the size up to its size class. Each power of two is divided into
+   * {@link #SIZE_CLASSES_PER_POWER_OF_TWO} classes, so a bitmap is at most 25% larger than
+   * requested.
+   * @param size the size in bytes
+   * @return the size class
+   */
+  @VisibleForTesting
+  static int getSizeClass(int size) {
+    final int step = Math.max(
+        Integer.highestOneBit(size) / SIZE_CLASSES_PER_POWER_OF_TWO,
+        MIN_SIZE_CLASS_STEP);
+    final long sizeClass = ((long) size + step - 1) / step * step;
+    return (int) Math.min(sizeClass, Integer.MAX_VALUE);
   }
 
   /**
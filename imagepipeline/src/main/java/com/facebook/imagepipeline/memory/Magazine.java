@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory;
+
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.Sets;
+import com.facebook.common.internal.VisibleForTesting;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * The Magazine is a small per-thread cache of values in front of the buckets of a
+ * {@link BasePool}. Each thread using the pool gets its own magazine, so that values released and
+ * requested again by the same thread skip the pool monitor.
+ * <p>
+ * The magazine keeps a short free list per bucketed size, holding at most mCapacity values.
+ * Only the sizes that the pool has a bucket for are cached - see {@link #addSize(int)}.
+ * <p>
+ * From the point of view of the pool, values in a magazine are still in use: they are counted in
+ * the 'used' portion of the pool and of their bucket. This keeps the size caps and the bucket
+ * lengths of the pool exact.
+ * <p>
+ * The magazine validates its values by itself: it only takes back the values it handed out, and
+ * tracks the values it holds so that the pool can reject a second release. It also counts the
+ * values it hands out and takes back, which the pool reports to its {@link PoolStatsTracker} in
+ * batches. Hence {@link #pop(int)} and {@link #release(int, Object)} never need the pool monitor.
+ * <p>
+ * A magazine is only used by its own thread, except when the pool drains all the magazines on
+ * trim, drops the magazine once its thread has finished, or checks a value released on another
+ * thread. The lock is hence uncontended in the common case.
+ * @param <V> type of values in the magazine
+ */
+@ThreadSafe
+@VisibleForTesting
+class Magazine<V> {
+
+  public final int mCapacity; // max number of values kept for a given size
+
+  @GuardedBy("this")
+  private final SparseArray<ArrayList<V>> mValues;
+
+  /**
+   * The values held by this magazine, in any of the lists above
+   */
+  @GuardedBy("this")
+  private final Set<V> mHeldValues;
+
+  /**
+   * The values handed out to the thread of this magazine, and not released since
+   */
+  @GuardedBy("this")
+  private final Set<V> mLentValues;
+
+  /**
+   * Number of values handed out and taken back, by bucketed size, not yet reported to the pool
+   */
+  @GuardedBy("this")
+  private final SparseIntArray mReuseCounts;
+  @GuardedBy("this")
+  private final SparseIntArray mReleaseCounts;
+
+  private final WeakReference<Thread> mOwner;
+
+  /**
+   * @param capacity max number of values kept for each bucketed size
+   * @param owner the thread using this magazine
+   */
+  public Magazine(int capacity, Thread owner) {
+    Preconditions.checkArgument(capacity > 0);
+    mCapacity = capacity;
+    mValues = new SparseArray<>();
+    mHeldValues = Sets.newIdentityHashSet();
+    mLentValues = Sets.newIdentityHashSet();
+    mReuseCounts = new SparseIntArray();
+    mReleaseCounts = new SparseIntArray();
+    mOwner = new WeakReference<>(Preconditions.checkNotNull(owner));
+  }
+
+  /**
+   * Checks whether the thread using this magazine is still running. The magazine of a finished
+   * thread is never used again.
+   */
+  public boolean isOwnerAlive() {
+    Thread owner = mOwner.get();
+    return owner != null && owner.isAlive();
+  }
+
+  /**
+   * Allows values of the given bucketed size to be cached in this magazine
+   * @param bucketedSize the bucketed size
+   */
+  public synchronized void addSize(int bucketedSize) {
+    if (mValues.get(bucketedSize) == null) {
+      mValues.put(bucketedSize, new ArrayList<V>(mCapacity));
+    }
+  }
+
+  /**
+   * Gets a value of the given bucketed size, if any. The value can be released back to this
+   * magazine.
+   * @param bucketedSize the bucketed size
+   * @return a value from the magazine, or null if there isn't one
+   */
+  @Nullable
+  public synchronized V pop(int bucketedSize) {
+    ArrayList<V> values = mValues.get(bucketedSize);
+    if (values == null || values.isEmpty()) {
+      return null;
+    }
+    V value = values.remove(values.size() - 1);
+    mHeldValues.remove(value);
+    mLentValues.add(value);
+    increment(mReuseCounts, bucketedSize);
+    return value;
+  }
+
+  /**
+   * Records that the pool handed out the given value to the thread of this magazine, so that the
+   * value can be released back to this magazine
+   * @param bucketedSize the bucketed size of the value
+   * @param value the value
+   */
+  public synchronized void lend(int bucketedSize, V value) {
+    if (mValues.get(bucketedSize) != null) {
+      mLentValues.add(value);
+    }
+  }
+
+  /**
+   * Takes back a value handed out by this magazine, or by the pool on the thread of this magazine,
+   * if there is room for it
+   * @param bucketedSize the bucketed size of the value
+   * @param value the value
+   * @return true if the value was taken back, false if it was not handed out from here, or if the
+   *     magazine is full for its size
+   */
+  public synchronized boolean release(int bucketedSize, V value) {
+    ArrayList<V> values = mValues.get(bucketedSize);
+    if (values == null || values.size() >= mCapacity || !mLentValues.remove(value)) {
+      return false;
+    }
+    values.add(value);
+    mHeldValues.add(value);
+    increment(mReleaseCounts, bucketedSize);
+    return true;
+  }
+
+  /**
+   * Checks whether the given value is held by this magazine, and forgets it otherwise: a value
+   * released to the pool through another path can no longer be released to this magazine
+   * @param value the value
+   * @return true if the value is held by this magazine
+   */
+  public synchronized boolean holdsOrForget(V value) {
+    if (mHeldValues.contains(value)) {
+      return true;
+    }
+    mLentValues.remove(value);
+    return false;
+  }
+
+  /**
+   * Adds a value taken from the pool to the magazine, if there is room for it
+   * @param bucketedSize the bucketed size of the value
+   * @param value the value
+   * @return true if the value was added, false if its size is not cached or the magazine is full
+   *     for that size
+   */
+  public synchronized boolean offer(int bucketedSize, V value) {
+    ArrayList<V> values = mValues.get(bucketedSize);
+    if (values == null || values.size() >= mCapacity) {
+      return false;
+    }
+    values.add(value);
+    mHeldValues.add(value);
+    return true;
+  }
+
+  /**
+   * Gets the number of values of the given bucketed size in the magazine
+   * @param bucketedSize the bucketed size
+   */
+  public synchronized int getSize(int bucketedSize) {
+    ArrayList<V> values = mValues.get(bucketedSize);
+    return values == null ? 0 : values.size();
+  }
+
+  /**
+   * Removes the oldest values of the given size from the magazine
+   * @param bucketedSize the bucketed size
+   * @param count max number of values to remove
+   * @param removed list to add the removed values to
+   */
+  public synchronized void removeOldest(int bucketedSize, int count, List<V> removed) {
+    ArrayList<V> values = mValues.get(bucketedSize);
+    if (values == null) {
+      return;
+    }
+    count = Math.min(count, values.size());
+    List<V> oldest = values.subList(0, count);
+    mHeldValues.removeAll(oldest);
+    removed.addAll(oldest);
+    oldest.clear();
+  }
+
+  /**
+   * Removes all the values from the magazine
+   * @param removed list to add the removed values to
+   */
+  public synchronized void removeAll(List<V> removed) {
+    for (int i = 0; i < mValues.size(); ++i) {
+      ArrayList<V> values = mValues.valueAt(i);
+      removed.addAll(values);
+      values.clear();
+    }
+    mHeldValues.clear();
+  }
+
+  /**
+   * Moves the counts of values handed out and taken back since the last call to the given arrays
+   * @param reuseCounts number of values handed out, by bucketed size
+   * @param releaseCounts number of values taken back, by bucketed size
+   */
+  public synchronized void takeCounts(SparseIntArray reuseCounts, SparseIntArray releaseCounts) {
+    moveCounts(mReuseCounts, reuseCounts);
+    moveCounts(mReleaseCounts, releaseCounts);
+  }
+
+  private static void increment(SparseIntArray counts, int bucketedSize) {
+    counts.put(bucketedSize, counts.get(bucketedSize) + 1);
+  }
+
+  private static void moveCounts(SparseIntArray from, SparseIntArray to) {
+    for (int i = 0; i < from.size(); ++i) {
+      to.put(from.keyAt(i), to.get(from.keyAt(i)) + from.valueAt(i));
+    }
+    from.clear();
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory;
+
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.Throwables;
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.memory.PooledByteBufferFactory;
+import com.facebook.common.memory.PooledByteBufferInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * An implementation of {@link PooledByteBuffer} that reads from a read-only view of a (typically
+ * memory-mapped) {@link ByteBuffer}, so that the content of a file does not need to be copied
+ * before it is decoded.
+ *
+ * <p> The buffer is not pooled: closing this instance drops the reference to the mapping, which
+ * is unmapped once the last buffer sharing it has been closed and garbage collected. Wrap it in
+ * a {@link com.facebook.common.references.CloseableReference} to share it.
+ *
+ * <p> The content is not in native memory that can be handed out to native code, so
+ * {@link #getNativePtr()} hands out the pointer of a pooled copy, made on first use.
+ */
+@ThreadSafe
+public class MappedPooledByteBuffer implements PooledByteBuffer {
+
+  private final int mSize;
+  private final PooledByteBufferFactory mNativeCopyFactory;
+
+  @GuardedBy("this")
+  @Nullable private ByteBuffer mBuffer;
+  @GuardedBy("this")
+  @Nullable private PooledByteBuffer mNativeCopy;
+
+  /**
+   * @param buffer the content, between its position and its limit. The buffer itself is not
+   *     modified.
+   * @param nativeCopyFactory factory of the copy handed out to native code, if ever needed
+   */
+  public MappedPooledByteBuffer(ByteBuffer buffer, PooledByteBufferFactory nativeCopyFactory) {
+    mBuffer = Preconditions.checkNotNull(buffer).slice().asReadOnlyBuffer();
+    mSize = mBuffer.capacity();
+    mNativeCopyFactory = Preconditions.checkNotNull(nativeCopyFactory);
+  }
+
+  /**
+   * Maps the whole file read-only. The mapping stays valid after the file is deleted.
+   */
+  public static MappedPooledByteBuffer map(File file, PooledByteBufferFactory nativeCopyFactory)
+      throws IOException {
+    FileInputStream inputStream = new FileInputStream(file);
+    try {
+      FileChannel channel = inputStream.getChannel();
+      return new MappedPooledByteBuffer(
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+          nativeCopyFactory);
+    } finally {
+      // the mapping stays valid after the channel is closed
+      inputStream.close();
+    }
+  }
+
+  @Override
+  public synchronized int size() {
+    ensureValid();
+    return mSize;
+  }
+
+  @Override
+  public synchronized byte read(int offset) {
+    ensureValid();
+    Preconditions.checkArgument(offset >= 0);
+    Preconditions.checkArgument(offset < mSize);
+    return mBuffer.get(offset);
+  }
+
+  @Override
+  public synchronized void read(int offset, byte[] buffer, int bufferOffset, int length) {
+    ensureValid();
+    Preconditions.checkArgument(offset >= 0 && length >= 0);
+    Preconditions.checkArgument(offset + length <= mSize);
+    ByteBuffer source = mBuffer.duplicate();
+    source.position(offset);
+    source.get(buffer, bufferOffset, length);
+  }
+
+  /**
+   * Gets a new read-only view of the content, positioned at its start.
+   */
+  public synchronized ByteBuffer getByteBuffer() {
+    ensureValid();
+    return mBuffer.duplicate();
+  }
+
+  /**
+   * Gets the native pointer of a copy of the content, which is made on the first call and released
+   * with this instance. Only the decoders of animated images need the content in native memory.
+   */
+  @Override
+  public synchronized long getNativePtr() {
+    ensureValid();
+    if (mNativeCopy == null) {
+      try {
+        mNativeCopy =
+            mNativeCopyFactory.newByteBuffer(new PooledByteBufferInputStream(this), mSize);
+      } catch (IOException ioe) {
+        throw Throwables.propagate(ioe);
+      }
+    }
+    return mNativeCopy.getNativePtr();
+  }
+
+  @Override
+  public synchronized boolean isClosed() {
+    return mBuffer == null;
+  }
+
+  /**
+   * Closes this instance, drops the reference to the mapping and releases the native copy.
+   * Note: It is not an error to close an already closed bytebuffer
+   */
+  @Override
+  public synchronized void close() {
+    mBuffer = null;
+    if (mNativeCopy != null) {
+      mNativeCopy.close();
+      mNativeCopy = null;
+    }
+  }
+
+  synchronized void ensureValid() {
+    if (isClosed()) {
+      throw new ClosedException();
+    }
+  }
+}
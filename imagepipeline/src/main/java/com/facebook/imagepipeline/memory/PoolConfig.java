@@ -21,6 +21,7 @@ public class PoolConfig {
   // There are a lot of parameters in this class. Please follow strict alphabetical order.
 
   private final PoolParams mBitmapPoolParams;
+  private final boolean mBitmapPoolSizeClassesEnabled;
   private final PoolStatsTracker mBitmapPoolStatsTracker;
   private final PoolParams mFlexByteArrayPoolParams;
   private final MemoryTrimmableRegistry mMemoryTrimmableRegistry;
@@ -28,12 +29,14 @@ public class PoolConfig {
   private final PoolStatsTracker mNativeMemoryChunkPoolStatsTracker;
   private final PoolParams mSmallByteArrayPoolParams;
   private final PoolStatsTracker mSmallByteArrayPoolStatsTracker;
+  private final int mThreadLocalMagazineCapacity;
 
   private PoolConfig(Builder builder) {
     mBitmapPoolParams =
         builder.mBitmapPoolParams == null ?
             DefaultBitmapPoolParams.get() :
             builder.mBitmapPoolParams;
+    mBitmapPoolSizeClassesEnabled = builder.mBitmapPoolSizeClassesEnabled;
     mBitmapPoolStatsTracker =
         builder.mBitmapPoolStatsTracker == null ?
             NoOpPoolStatsTracker.getInstance() :
@@ -62,12 +65,17 @@ public class PoolConfig {
         builder.mSmallByteArrayPoolStatsTracker == null ?
             NoOpPoolStatsTracker.getInstance() :
             builder.mSmallByteArrayPoolStatsTracker;
+    mThreadLocalMagazineCapacity = builder.mThreadLocalMagazineCapacity;
   }
 
   public PoolParams getBitmapPoolParams() {
     return mBitmapPoolParams;
   }
 
+  public boolean isBitmapPoolSizeClassesEnabled() {
+    return mBitmapPoolSizeClassesEnabled;
+  }
+
   public PoolStatsTracker getBitmapPoolStatsTracker() {
     return mBitmapPoolStatsTracker;
   }
@@ -96,6 +104,10 @@ public class PoolConfig {
     return mSmallByteArrayPoolStatsTracker;
   }
 
+  public int getThreadLocalMagazineCapacity() {
+    return mThreadLocalMagazineCapacity;
+  }
+
   public static Builder newBuilder() {
     return new Builder();
   }
@@ -103,6 +115,7 @@ public class PoolConfig {
   public static class Builder {
 
     private PoolParams mBitmapPoolParams;
+    private boolean mBitmapPoolSizeClassesEnabled;
     private PoolStatsTracker mBitmapPoolStatsTracker;
     private PoolParams mFlexByteArrayPoolParams;
     private MemoryTrimmableRegistry mMemoryTrimmableRegistry;
@@ -110,6 +123,7 @@ public class PoolConfig {
     private PoolStatsTracker mNativeMemoryChunkPoolStatsTracker;
     private PoolParams mSmallByteArrayPoolParams;
     private PoolStatsTracker mSmallByteArrayPoolStatsTracker;
+    private int mThreadLocalMagazineCapacity;
 
     private Builder() {
     }
@@ -119,6 +133,17 @@ public class PoolConfig {
       return this;
     }
 
+    /**
+     * Buckets bitmaps by size class rather than by exact size, and lets a request reuse a free
+     * bitmap of one of the next larger size classes. Bitmaps are then reused across images of
+     * similar but not identical dimensions, at the cost of up to 25% of unused memory each.
+     * Disabled by default.
+     */
+    public Builder setBitmapPoolSizeClassesEnabled(boolean bitmapPoolSizeClassesEnabled) {
+      mBitmapPoolSizeClassesEnabled = bitmapPoolSizeClassesEnabled;
+      return this;
+    }
+
     public Builder setBitmapPoolStatsTracker(
         PoolStatsTracker bitmapPoolStatsTracker) {
       mBitmapPoolStatsTracker = Preconditions.checkNotNull(bitmapPoolStatsTracker);
@@ -159,6 +184,18 @@ public class PoolConfig {
       return this;
     }
 
+    /**
+     * Lets each thread keep up to the given number of free values per size in front of the
+     * bitmap, native memory chunk and small byte array pools, so that most gets and releases
+     * don't contend on the pool. The values kept count as used in the pool stats.
+     * Disabled (0) by default.
+     */
+    public Builder setThreadLocalMagazineCapacity(int threadLocalMagazineCapacity) {
+      Preconditions.checkArgument(threadLocalMagazineCapacity >= 0);
+      mThreadLocalMagazineCapacity = threadLocalMagazineCapacity;
+      return this;
+    }
+
     public PoolConfig build() {
       return new PoolConfig(this);
     }
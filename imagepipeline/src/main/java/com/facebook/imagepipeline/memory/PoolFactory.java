@@ -38,7 +38,9 @@ public class PoolFactory {
       mBitmapPool = new BitmapPool(
           mConfig.getMemoryTrimmableRegistry(),
           mConfig.getBitmapPoolParams(),
-          mConfig.getBitmapPoolStatsTracker());
+          mConfig.getBitmapPoolStatsTracker(),
+          mConfig.isBitmapPoolSizeClassesEnabled());
+      mBitmapPool.setThreadLocalMagazineCapacity(mConfig.getThreadLocalMagazineCapacity());
     }
     return mBitmapPool;
   }
@@ -62,6 +64,8 @@ public class PoolFactory {
           mConfig.getMemoryTrimmableRegistry(),
           mConfig.getNativeMemoryChunkPoolParams(),
           mConfig.getNativeMemoryChunkPoolStatsTracker());
+      mNativeMemoryChunkPool.setThreadLocalMagazineCapacity(
+          mConfig.getThreadLocalMagazineCapacity());
     }
     return mNativeMemoryChunkPool;
   }
@@ -93,10 +97,12 @@ public class PoolFactory {
 
   public ByteArrayPool getSmallByteArrayPool() {
     if (mSmallByteArrayPool == null) {
-      mSmallByteArrayPool = new GenericByteArrayPool(
+      GenericByteArrayPool smallByteArrayPool = new GenericByteArrayPool(
           mConfig.getMemoryTrimmableRegistry(),
           mConfig.getSmallByteArrayPoolParams(),
           mConfig.getSmallByteArrayPoolStatsTracker());
+      smallByteArrayPool.setThreadLocalMagazineCapacity(mConfig.getThreadLocalMagazineCapacity());
+      mSmallByteArrayPool = smallByteArrayPool;
     }
     return mSmallByteArrayPool;
   }
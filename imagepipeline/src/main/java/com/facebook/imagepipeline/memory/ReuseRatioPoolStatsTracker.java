@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * PoolStatsTracker that counts how many of the values handed out by a pool were reused rather
+ * than allocated.
+ *
+ * <p> Values served by the thread local magazines of the pool are counted as reused when the
+ * magazine hands them out.
+ */
+@ThreadSafe
+public class ReuseRatioPoolStatsTracker implements BestFitPoolStatsTracker {
+
+  @GuardedBy("this")
+  private long mReuseCount;
+  @GuardedBy("this")
+  private long mBestFitReuseCount;
+  @GuardedBy("this")
+  private long mBestFitWastedBytes;
+  @GuardedBy("this")
+  private long mAllocCount;
+
+  @Override
+  public void setBasePool(BasePool basePool) {
+  }
+
+  @Override
+  public synchronized void onValueReuse(int bucketedSize) {
+    mReuseCount++;
+  }
+
+  @Override
+  public void onSoftCapReached() {
+  }
+
+  @Override
+  public void onHardCapReached() {
+  }
+
+  @Override
+  public synchronized void onAlloc(int size) {
+    mAllocCount++;
+  }
+
+  @Override
+  public void onFree(int sizeInBytes) {
+  }
+
+  @Override
+  public void onValueRelease(int sizeInBytes) {
+  }
+
+  @Override
+  public synchronized void onBestFitValueReuse(int requestedSizeInBytes, int sizeInBytes) {
+    mBestFitReuseCount++;
+    mBestFitWastedBytes += sizeInBytes - requestedSizeInBytes;
+  }
+
+  /**
+   * @return the number of values reused, best-fit reuses included
+   */
+  public synchronized long getReuseCount() {
+    return mReuseCount;
+  }
+
+  /**
+   * @return the number of values reused from a larger bucket
+   */
+  public synchronized long getBestFitReuseCount() {
+    return mBestFitReuseCount;
+  }
+
+  /**
+   * @return the total number of bytes by which best-fit reuses exceeded the bucket requested
+   */
+  public synchronized long getBestFitWastedBytes() {
+    return mBestFitWastedBytes;
+  }
+
+  public synchronized long getAllocCount() {
+    return mAllocCount;
+  }
+
+  /**
+   * @return the share of the values handed out that were reused, or 0 if there was none
+   */
+  public synchronized float getReuseRatio() {
+    final long count = mReuseCount + mAllocCount;
+    return count == 0 ? 0 : (float) mReuseCount / count;
+  }
+
+  public synchronized void reset() {
+    mReuseCount = 0;
+    mBestFitReuseCount = 0;
+    mBestFitWastedBytes = 0;
+    mAllocCount = 0;
+  }
+}
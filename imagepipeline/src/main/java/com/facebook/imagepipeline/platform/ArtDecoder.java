@@ -139,8 +139,10 @@ public class ArtDecoder implements PlatformDecoder {
     int targetWidth = options.outWidth;
     int targetHeight = options.outHeight;
     if (regionToDecode != null) {
-      targetWidth = regionToDecode.width();
-      targetHeight = regionToDecode.height();
+      // the region decoder subsamples the region as the whole image, rounding down
+      final int sampleSize = Math.max(options.inSampleSize, 1);
+      targetWidth = Math.max(regionToDecode.width() / sampleSize, 1);
+      targetHeight = Math.max(regionToDecode.height() / sampleSize, 1);
     }
     int sizeInBytes =
         BitmapUtil.getSizeInByteForBitmap(targetWidth, targetHeight, options.inPreferredConfig);
@@ -149,6 +151,7 @@ public class ArtDecoder implements PlatformDecoder {
       throw new NullPointerException("BitmapPool.get returned null");
     }
     options.inBitmap = bitmapToReuse;
+    final int bitmapDensity = bitmapToReuse.getDensity();
 
     Bitmap decodedBitmap = null;
     ByteBuffer byteBuffer = mDecodeBuffers.acquire();
@@ -204,6 +207,10 @@ public class ArtDecoder implements PlatformDecoder {
       decodedBitmap.recycle();
       throw new IllegalStateException();
     }
+    if (options.inDensity != 0) {
+      // BitmapFactory sets the target density to the bitmap, which would scale it when drawn
+      decodedBitmap.setDensity(bitmapDensity);
+    }
 
     return CloseableReference.of(decodedBitmap, mBitmapPool);
   }
@@ -225,6 +232,17 @@ public class ArtDecoder implements PlatformDecoder {
     }
 
     options.inJustDecodeBounds = false;
+    final int targetWidth = encodedImage.getTargetWidth();
+    if (targetWidth > 0 && targetWidth < options.outWidth) {
+      // Scale the subsampled image down to the target size while decoding it, as BitmapFactory
+      // scales resources from their density to that of the screen.
+      options.inScaled = true;
+      options.inDensity = options.outWidth;
+      options.inTargetDensity = targetWidth;
+      final float scale = (float) targetWidth / options.outWidth;
+      options.outWidth = targetWidth;
+      options.outHeight = Math.max((int) (options.outHeight * scale + 0.5f), 1);
+    }
     options.inDither = true;
     options.inPreferredConfig = bitmapConfig;
     options.inMutable = true;
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.postprocessors;
+
+import com.facebook.cache.common.CacheKey;
+import com.facebook.cache.common.SimpleCacheKey;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.imagepipeline.nativecode.NativeBlurFilter;
+import com.facebook.imagepipeline.request.TiledPostprocessor;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import javax.annotation.Nullable;
+
+/**
+ * A post processor performing the iterative box blur of {@link IterativeBoxBlurPostProcessor} on
+ * several cores, for large bitmaps.
+ *
+ * <p> Each tile is blurred with {@link NativeBlurFilter#iterativeBoxBlur}. Each iteration spreads
+ * a pixel over {@code blurRadius} rows, so tiles get a halo of {@code iterations * blurRadius}
+ * rows, and the result does not depend on the number of tiles.
+ */
+public class TiledIterativeBoxBlurPostprocessor extends TiledPostprocessor {
+
+  private static final int DEFAULT_ITERATIONS = 3;
+
+  private final int mIterations;
+  private final int mBlurRadius;
+
+  private CacheKey mCacheKey;
+
+  /**
+   * @param executor the executor to fork the workers to
+   */
+  public TiledIterativeBoxBlurPostprocessor(int blurRadius, Executor executor) {
+    this(DEFAULT_ITERATIONS, blurRadius, executor, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param executor the executor to fork the workers to
+   * @param maxWorkerCount the max number of threads to blur the tiles on
+   */
+  public TiledIterativeBoxBlurPostprocessor(
+      int iterations,
+      int blurRadius,
+      Executor executor,
+      int maxWorkerCount) {
+    super(executor, maxWorkerCount);
+    Preconditions.checkArgument(iterations > 0);
+    Preconditions.checkArgument(blurRadius > 0);
+    mIterations = iterations;
+    mBlurRadius = blurRadius;
+  }
+
+  @Override
+  protected int getHalo() {
+    return mIterations * mBlurRadius;
+  }
+
+  @Override
+  protected void processTile(Tile tile) {
+    NativeBlurFilter.iterativeBoxBlur(tile.getBitmap(), mIterations, mBlurRadius);
+  }
+
+  @Override
+  public String getName() {
+    return "TiledIterativeBoxBlurPostprocessor";
+  }
+
+  @Nullable
+  @Override
+  public CacheKey getPostprocessorCacheKey() {
+    if (mCacheKey == null) {
+      final String key = String.format((Locale) null, "tiled-i%dr%d", mIterations, mBlurRadius);
+      mCacheKey = new SimpleCacheKey(key);
+    }
+    return mCacheKey;
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.postprocessors;
+
+import com.facebook.cache.common.CacheKey;
+import com.facebook.cache.common.SimpleCacheKey;
+import com.facebook.common.internal.VisibleForTesting;
+import com.facebook.imagepipeline.request.TiledPostprocessor;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import javax.annotation.Nullable;
+
+/**
+ * Postprocessor that rounds a given image as a circle, like {@link RoundAsCirclePostprocessor},
+ * on several cores for large bitmaps. Each row only depends on itself, so tiles have no halo.
+ */
+public class TiledRoundAsCirclePostprocessor extends TiledPostprocessor {
+
+  private static final int TRANSPARENT_PIXEL_COLOR = 0;
+
+  private @Nullable CacheKey mCacheKey;
+
+  /**
+   * @param executor the executor to fork the workers to
+   */
+  public TiledRoundAsCirclePostprocessor(Executor executor) {
+    super(executor);
+  }
+
+  /**
+   * @param executor the executor to fork the workers to
+   * @param maxWorkerCount the max number of threads to process the tiles on
+   */
+  public TiledRoundAsCirclePostprocessor(Executor executor, int maxWorkerCount) {
+    super(executor, maxWorkerCount);
+  }
+
+  @Override
+  protected void processTile(Tile tile) {
+    final int width = tile.getWidth();
+    for (int i = 0; i < tile.getRowCount(); i++) {
+      toCircle(
+          tile.getPixels(),
+          (tile.getFirstRow() + i) * width,
+          width,
+          tile.getTop() + i,
+          tile.getBitmapHeight());
+    }
+  }
+
+  @Override
+  public String getName() {
+    return "TiledRoundAsCirclePostprocessor";
+  }
+
+  @Nullable
+  @Override
+  public CacheKey getPostprocessorCacheKey() {
+    if (mCacheKey == null) {
+      mCacheKey = new SimpleCacheKey("TiledRoundAsCirclePostprocessor");
+    }
+    return mCacheKey;
+  }
+
+  /**
+   * Makes the pixels of the given row of the bitmap that are outside of the circle centered in
+   * the bitmap transparent. The circle has the diameter of the shorter side of the bitmap.
+   *
+   * @param pixels the pixels containing the row
+   * @param offset the offset of the row in the pixels
+   */
+  @VisibleForTesting
+  static void toCircle(int[] pixels, int offset, int width, int row, int height) {
+    final long radius = Math.min(width, height) / 2;
+    final long dy = row - height / 2;
+    final long remaining = radius * radius - dy * dy;
+    if (remaining <= 0) {
+      Arrays.fill(pixels, offset, offset + width, TRANSPARENT_PIXEL_COLOR);
+      return;
+    }
+    // the largest dx such that dx * dx + dy * dy < radius * radius
+    long maxDx = (long) Math.sqrt(remaining);
+    while (maxDx * maxDx >= remaining) {
+      maxDx--;
+    }
+    final int centerX = width / 2;
+    final int left = (int) Math.max(centerX - maxDx, 0);
+    final int right = (int) Math.min(centerX + maxDx + 1, width);
+    Arrays.fill(pixels, offset, offset + left, TRANSPARENT_PIXEL_COLOR);
+    Arrays.fill(pixels, offset + right, offset + width, TRANSPARENT_PIXEL_COLOR);
+  }
+}
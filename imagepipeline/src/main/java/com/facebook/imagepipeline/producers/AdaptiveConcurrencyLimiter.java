@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.VisibleForTesting;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Limit on the number of simultaneous requests that adapts to the observed latency of the
+ * requests, with additive increase and multiplicative decrease (AIMD).
+ *
+ * <p> The limiter keeps a baseline latency, which is the latency of a request when nothing else
+ * competes for the same resource. To measure it, the limit starts at its minimum and, as in TCP
+ * slow start, grows by one for every request completing in time, that is it doubles every round
+ * trip, until the resource is first saturated. After that, as long as the requests complete within
+ * {@link #LATENCY_TOLERANCE} times the baseline, the resource is not saturated: while the limit is
+ * in use, it grows by one for every limit requests, that is by about one per round trip. Once the
+ * latency goes above that, requests are queueing behind each other and adding more of them does
+ * not increase the throughput anymore, so the limit is cut by {@link #BACKOFF_RATIO}. A request
+ * dropped because of a timeout cuts the limit too. The limit is cut at most once for all the
+ * requests that were in flight when it was last cut, since they were all slowed down by the same
+ * congestion.
+ *
+ * <p> The baseline is the lowest latency seen. If even the fastest request of a window of
+ * {@link #BASELINE_WINDOW_SIZE} requests is above the tolerance, the resource itself got slower,
+ * for instance when moving from Wi-Fi to a cellular network, and the baseline is reset to it.
+ *
+ * <p> Callers report each request with {@link #onRequestStart()} and then exactly one of
+ * {@link #onRequestSuccess}, {@link #onRequestDropped} or {@link #onRequestIgnored()}. Times are
+ * in milliseconds from any monotonic clock, as long as it is the same for all the calls.
+ */
+@ThreadSafe
+public class AdaptiveConcurrencyLimiter {
+
+  /** Latency, relative to the baseline, above which the resource is considered saturated */
+  @VisibleForTesting static final double LATENCY_TOLERANCE = 2.0;
+  /** Ratio the limit is multiplied by when the resource is saturated */
+  @VisibleForTesting static final double BACKOFF_RATIO = 0.75;
+  /** Number of requests over which the baseline is checked */
+  @VisibleForTesting static final int BASELINE_WINDOW_SIZE = 50;
+
+  private static final long UNSET = -1;
+
+  private final int mMinLimit;
+  private final int mMaxLimit;
+
+  @GuardedBy("this")
+  private double mLimit;
+  @GuardedBy("this")
+  private int mInFlightCount;
+  @GuardedBy("this")
+  private long mBaselineLatencyMs = UNSET;
+  @GuardedBy("this")
+  private long mWindowMinLatencyMs = Long.MAX_VALUE;
+  @GuardedBy("this")
+  private int mWindowSampleCount;
+  @GuardedBy("this")
+  private long mLastDecreaseTimeMs = UNSET;
+  @GuardedBy("this")
+  private boolean mSlowStart = true;
+
+  /**
+   * @param minLimit limit to start with, and lowest value it can be cut down to, at least 1
+   * @param maxLimit highest value the limit can grow to
+   */
+  public AdaptiveConcurrencyLimiter(int minLimit, int maxLimit) {
+    Preconditions.checkArgument(minLimit >= 1 && minLimit <= maxLimit);
+    mMinLimit = minLimit;
+    mMaxLimit = maxLimit;
+    mLimit = minLimit;
+  }
+
+  /**
+   * @return the number of requests that can currently run simultaneously
+   */
+  public synchronized int getLimit() {
+    return (int) mLimit;
+  }
+
+  public int getMinLimit() {
+    return mMinLimit;
+  }
+
+  public int getMaxLimit() {
+    return mMaxLimit;
+  }
+
+  /**
+   * @return the number of requests that were started and did not complete yet
+   */
+  public synchronized int getInFlightCount() {
+    return mInFlightCount;
+  }
+
+  /**
+   * @return the latency of a request on an idle resource, or -1 if no request completed yet
+   */
+  public synchronized long getBaselineLatencyMs() {
+    return mBaselineLatencyMs;
+  }
+
+  /**
+   * Called when a request starts to use the resource.
+   */
+  public synchronized void onRequestStart() {
+    mInFlightCount++;
+  }
+
+  /**
+   * Called when a request completed.
+   * @param startTimeMs time at which the request started
+   * @param endTimeMs time at which it completed
+   */
+  public void onRequestSuccess(long startTimeMs, long endTimeMs) {
+    onRequestSuccess(startTimeMs, endTimeMs, endTimeMs - startTimeMs);
+  }
+
+  /**
+   * Called when a request completed, with a latency that is normalized so that requests of
+   * different costs can be compared, for instance by the size of the response.
+   * @param startTimeMs time at which the request started
+   * @param endTimeMs time at which it completed
+   * @param latencyMs latency compared with the baseline
+   */
+  public synchronized void onRequestSuccess(long startTimeMs, long endTimeMs, long latencyMs) {
+    int inFlightCount = mInFlightCount;
+    onRequestEnd();
+    latencyMs = Math.max(latencyMs, 0);
+    updateBaseline(latencyMs);
+    if (latencyMs > mBaselineLatencyMs * LATENCY_TOLERANCE) {
+      decreaseLimit(startTimeMs, endTimeMs);
+    } else if (inFlightCount * 2 >= mLimit) {
+      // only grow the limit while it is what bounds the number of requests
+      mLimit = Math.min(mLimit + (mSlowStart ? 1 : 1 / mLimit), mMaxLimit);
+    }
+  }
+
+  /**
+   * Called when a request failed because the resource is overloaded, for instance on a timeout.
+   * @param startTimeMs time at which the request started
+   * @param endTimeMs time at which it failed
+   */
+  public synchronized void onRequestDropped(long startTimeMs, long endTimeMs) {
+    onRequestEnd();
+    decreaseLimit(startTimeMs, endTimeMs);
+  }
+
+  /**
+   * Called when a request ended without telling anything about the load of the resource, for
+   * instance when it was cancelled or failed for an unrelated reason.
+   */
+  public synchronized void onRequestIgnored() {
+    onRequestEnd();
+  }
+
+  @GuardedBy("this")
+  private void onRequestEnd() {
+    Preconditions.checkState(mInFlightCount > 0);
+    mInFlightCount--;
+  }
+
+  @GuardedBy("this")
+  private void updateBaseline(long latencyMs) {
+    if (mBaselineLatencyMs == UNSET || latencyMs < mBaselineLatencyMs) {
+      mBaselineLatencyMs = latencyMs;
+    }
+    mWindowMinLatencyMs = Math.min(mWindowMinLatencyMs, latencyMs);
+    if (++mWindowSampleCount >= BASELINE_WINDOW_SIZE) {
+      if (mWindowMinLatencyMs > mBaselineLatencyMs * LATENCY_TOLERANCE) {
+        mBaselineLatencyMs = mWindowMinLatencyMs;
+      }
+      mWindowMinLatencyMs = Long.MAX_VALUE;
+      mWindowSampleCount = 0;
+    }
+  }
+
+  @GuardedBy("this")
+  private void decreaseLimit(long startTimeMs, long endTimeMs) {
+    if (startTimeMs < mLastDecreaseTimeMs) {
+      // already accounted for by the previous decrease
+      return;
+    }
+    mLimit = Math.max(mLimit * BACKOFF_RATIO, mMinLimit);
+    mLastDecreaseTimeMs = endTimeMs;
+    mSlowStart = false;
+  }
+}
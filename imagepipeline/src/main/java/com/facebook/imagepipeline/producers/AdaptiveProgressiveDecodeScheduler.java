@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+package com.facebook.imagepipeline.producers;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Decides which scans of progressive JPEGs being downloaded are worth an intermediate decode.
+ *
+ * <p> Each intermediate decode is a full decode of the bytes received so far, which on slow CPUs
+ * keeps the decode threads busy with scans that are replaced before anybody sees them. A new scan
+ * is decoded only if:
+ * <ul>
+ *   <li> the image is visible, that is requested with high priority and not as a prefetch,
+ *   <li> the final bytes are not expected before the intermediate decode would be done, given the
+ *   remaining bytes and the download rate, since it would then only delay the final decode,
+ *   <li> it is the first scan decoded or the first one of good enough quality, or enough time
+ *   passed since the last decode for intermediate decodes to take a bounded share of the time.
+ * </ul>
+ *
+ * <p> The decode time of an image is measured on its first decode. Until then it is estimated from
+ * the decode time per pixel of the images decoded before.
+ */
+@ThreadSafe
+public class AdaptiveProgressiveDecodeScheduler {
+
+  /** The weight of a new decode in the moving average of the decode time per pixel */
+  private static final float DECODE_TIME_SMOOTHING_FACTOR = 0.25f;
+
+  /**
+   * The final bytes are considered to arrive soon if they are expected before this many times the
+   * decode time
+   */
+  private static final int FINAL_RESULT_SOON_FACTOR = 2;
+
+  /** Intermediate decodes of an image take at most the inverse of this share of the time */
+  private static final int MIN_DECODE_INTERVAL_FACTOR = 3;
+
+  @GuardedBy("this")
+  private float mDecodeNanosPerPixel;
+
+  public AdaptiveProgressiveDecodeScheduler() {
+    mDecodeNanosPerPixel = 0;
+  }
+
+  /**
+   * @return the state to keep for the decodes of one image
+   */
+  public ImageState newImageState() {
+    return new ImageState();
+  }
+
+  /**
+   * @return the estimated decode time of an image of the given number of pixels, or -1 if no image
+   *     was decoded yet
+   */
+  synchronized long estimateDecodeTimeMs(int pixelCount) {
+    if (mDecodeNanosPerPixel <= 0 || pixelCount <= 0) {
+      return -1;
+    }
+    return (long) (mDecodeNanosPerPixel * pixelCount / 1000000);
+  }
+
+  synchronized void onDecodeFinished(int pixelCount, long decodeTimeMs) {
+    if (pixelCount <= 0) {
+      return;
+    }
+    float nanosPerPixel = decodeTimeMs * 1000000f / pixelCount;
+    mDecodeNanosPerPixel = mDecodeNanosPerPixel <= 0
+        ? nanosPerPixel
+        : mDecodeNanosPerPixel
+            + DECODE_TIME_SMOOTHING_FACTOR * (nanosPerPixel - mDecodeNanosPerPixel);
+  }
+
+  /**
+   * The download and decodes of one image.
+   */
+  @ThreadSafe
+  public class ImageState {
+
+    @GuardedBy("this")
+    private int mFirstSize;
+    @GuardedBy("this")
+    private long mFirstDataTimeMs;
+    @GuardedBy("this")
+    private int mSize;
+    @GuardedBy("this")
+    private int mExpectedSize;
+    @GuardedBy("this")
+    private long mLastDataTimeMs;
+    @GuardedBy("this")
+    private long mDecodeTimeMs;
+    @GuardedBy("this")
+    private long mLastScheduledDecodeTimeMs;
+    @GuardedBy("this")
+    private boolean mHasScheduledDecode;
+    @GuardedBy("this")
+    private boolean mHasScheduledGoodEnoughDecode;
+
+    private ImageState() {
+      mFirstSize = -1;
+      mExpectedSize = -1;
+      mDecodeTimeMs = -1;
+    }
+
+    /**
+     * Records the bytes received so far.
+     *
+     * @param size the number of bytes received
+     * @param expectedSize the size of the complete image, or -1 if unknown
+     * @param nowMs the current time
+     */
+    public synchronized void onNewData(int size, int expectedSize, long nowMs) {
+      if (mFirstSize < 0) {
+        mFirstSize = size;
+        mFirstDataTimeMs = nowMs;
+      }
+      mSize = size;
+      mExpectedSize = expectedSize;
+      mLastDataTimeMs = nowMs;
+    }
+
+    /**
+     * Decides whether a new scan should be decoded, and records the decode as scheduled if so.
+     *
+     * @param isGoodEnoughQuality whether the scan is of good enough quality
+     * @param pixelCount the number of pixels of the image, or -1 if unknown
+     * @param isVisible whether the image is expected to be displayed now
+     * @param nowMs the current time
+     */
+    public synchronized boolean shouldDecodeScan(
+        boolean isGoodEnoughQuality,
+        int pixelCount,
+        boolean isVisible,
+        long nowMs) {
+      if (!isVisible) {
+        return false;
+      }
+      final long decodeTimeMs =
+          mDecodeTimeMs >= 0 ? mDecodeTimeMs : estimateDecodeTimeMs(pixelCount);
+      final long finalResultDelayMs = estimateFinalResultDelayMs();
+      if (finalResultDelayMs >= 0
+          && finalResultDelayMs <= FINAL_RESULT_SOON_FACTOR * Math.max(decodeTimeMs, 0)) {
+        return false;
+      }
+      final boolean isFirstGoodEnough = isGoodEnoughQuality && !mHasScheduledGoodEnoughDecode;
+      if (mHasScheduledDecode
+          && !isFirstGoodEnough
+          && decodeTimeMs > 0
+          && nowMs - mLastScheduledDecodeTimeMs < MIN_DECODE_INTERVAL_FACTOR * decodeTimeMs) {
+        return false;
+      }
+      mHasScheduledDecode = true;
+      mHasScheduledGoodEnoughDecode |= isGoodEnoughQuality;
+      mLastScheduledDecodeTimeMs = nowMs;
+      return true;
+    }
+
+    /**
+     * Records the time taken by a decode of the image.
+     */
+    public void onDecodeFinished(int pixelCount, long decodeTimeMs) {
+      synchronized (this) {
+        mDecodeTimeMs = decodeTimeMs;
+      }
+      AdaptiveProgressiveDecodeScheduler.this.onDecodeFinished(pixelCount, decodeTimeMs);
+    }
+
+    /**
+     * @return the estimated time until the last bytes are received, or -1 if unknown
+     */
+    @GuardedBy("this")
+    private long estimateFinalResultDelayMs() {
+      if (mExpectedSize <= 0) {
+        return -1;
+      }
+      final int remainingSize = mExpectedSize - mSize;
+      if (remainingSize <= 0) {
+        return 0;
+      }
+      final long elapsedMs = mLastDataTimeMs - mFirstDataTimeMs;
+      final int receivedSize = mSize - mFirstSize;
+      if (elapsedMs <= 0 || receivedSize <= 0) {
+        return -1;
+      }
+      return remainingSize * elapsedMs / receivedSize;
+    }
+  }
+}
@@ -23,6 +23,7 @@ public class BaseProducerContext implements ProducerContext {
   private final ProducerListener mProducerListener;
   private final Object mCallerContext;
   private final ImageRequest.RequestLevel mLowestPermittedRequestLevel;
+  private final @Nullable RequestTrace mRequestTrace;
 
   @GuardedBy("this")
   private boolean mIsPrefetch;
@@ -44,11 +45,34 @@ public class BaseProducerContext implements ProducerContext {
       boolean isPrefetch,
       boolean isIntermediateResultExpected,
       Priority priority) {
+    this(
+        imageRequest,
+        id,
+        producerListener,
+        callerContext,
+        lowestPermittedRequestLevel,
+        isPrefetch,
+        isIntermediateResultExpected,
+        priority,
+        null);
+  }
+
+  public BaseProducerContext(
+      ImageRequest imageRequest,
+      String id,
+      ProducerListener producerListener,
+      Object callerContext,
+      ImageRequest.RequestLevel lowestPermittedRequestLevel,
+      boolean isPrefetch,
+      boolean isIntermediateResultExpected,
+      Priority priority,
+      @Nullable RequestTrace requestTrace) {
     mImageRequest = imageRequest;
     mId = id;
     mProducerListener = producerListener;
     mCallerContext = callerContext;
     mLowestPermittedRequestLevel = lowestPermittedRequestLevel;
+    mRequestTrace = requestTrace;
 
     mIsPrefetch = isPrefetch;
     mPriority = priority;
@@ -98,6 +122,12 @@ public class BaseProducerContext implements ProducerContext {
     return mIsIntermediateResultExpected;
   }
 
+  @Override
+  @Nullable
+  public RequestTrace getRequestTrace() {
+    return mRequestTrace;
+  }
+
   public synchronized boolean isCancelled() {
     return mIsCancelled;
   }
@@ -117,6 +147,13 @@ public class BaseProducerContext implements ProducerContext {
     }
   }
 
+  /**
+   * Removes callbacks that were added with {@link #addCallbacks}, once they are not needed anymore.
+   */
+  public synchronized void removeCallbacks(ProducerContextCallbacks callbacks) {
+    mCallbacks.remove(callbacks);
+  }
+
   /**
    * Cancels the request processing and calls appropriate callbacks.
    */
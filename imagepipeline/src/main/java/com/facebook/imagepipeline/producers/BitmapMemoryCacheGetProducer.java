@@ -9,9 +9,11 @@ package com.facebook.imagepipeline.producers;
 
 import com.facebook.cache.common.CacheKey;
 import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.cache.BitmapMemoryCacheVariantIndex;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
 import com.facebook.imagepipeline.cache.MemoryCache;
 import com.facebook.imagepipeline.image.CloseableImage;
+import javax.annotation.Nullable;
 
 /**
  * Bitmap memory cache producer that is read-only.
@@ -27,6 +29,14 @@ public class BitmapMemoryCacheGetProducer extends BitmapMemoryCacheProducer {
     super(memoryCache, cacheKeyFactory, inputProducer);
   }
 
+  public BitmapMemoryCacheGetProducer(
+      MemoryCache<CacheKey, CloseableImage> memoryCache,
+      CacheKeyFactory cacheKeyFactory,
+      Producer<CloseableReference<CloseableImage>> inputProducer,
+      @Nullable BitmapMemoryCacheVariantIndex variantIndex) {
+    super(memoryCache, cacheKeyFactory, inputProducer, variantIndex);
+  }
+
   @Override
   protected Consumer<CloseableReference<CloseableImage>> wrapConsumer(
       final Consumer<CloseableReference<CloseableImage>> consumer,
@@ -10,14 +10,20 @@ package com.facebook.imagepipeline.producers;
 import com.facebook.cache.common.CacheKey;
 import com.facebook.common.internal.ImmutableMap;
 import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.cache.BitmapMemoryCacheKey;
+import com.facebook.imagepipeline.cache.BitmapMemoryCacheVariantIndex;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
 import com.facebook.imagepipeline.cache.MemoryCache;
 import com.facebook.imagepipeline.image.CloseableImage;
 import com.facebook.imagepipeline.image.QualityInfo;
 import com.facebook.imagepipeline.request.ImageRequest;
+import javax.annotation.Nullable;
 
 /**
  * Memory cache producer for the bitmap memory cache.
+ *
+ * <p> Given a {@link BitmapMemoryCacheVariantIndex}, a request that misses the cache is served
+ * with a larger version of the same image if one is in the cache.
  */
 public class BitmapMemoryCacheProducer implements Producer<CloseableReference<CloseableImage>> {
 
@@ -27,14 +33,24 @@ public class BitmapMemoryCacheProducer implements Producer<CloseableReference<Cl
   private final MemoryCache<CacheKey, CloseableImage> mMemoryCache;
   private final CacheKeyFactory mCacheKeyFactory;
   private final Producer<CloseableReference<CloseableImage>> mInputProducer;
+  private final @Nullable BitmapMemoryCacheVariantIndex mVariantIndex;
 
   public BitmapMemoryCacheProducer(
       MemoryCache<CacheKey, CloseableImage> memoryCache,
       CacheKeyFactory cacheKeyFactory,
       Producer<CloseableReference<CloseableImage>> inputProducer) {
+    this(memoryCache, cacheKeyFactory, inputProducer, null);
+  }
+
+  public BitmapMemoryCacheProducer(
+      MemoryCache<CacheKey, CloseableImage> memoryCache,
+      CacheKeyFactory cacheKeyFactory,
+      Producer<CloseableReference<CloseableImage>> inputProducer,
+      @Nullable BitmapMemoryCacheVariantIndex variantIndex) {
     mMemoryCache = memoryCache;
     mCacheKeyFactory = cacheKeyFactory;
     mInputProducer = inputProducer;
+    mVariantIndex = variantIndex;
   }
 
   @Override
@@ -45,11 +61,17 @@ public class BitmapMemoryCacheProducer implements Producer<CloseableReference<Cl
     final ProducerListener listener = producerContext.getListener();
     final String requestId = producerContext.getId();
     listener.onProducerStart(requestId, getProducerName());
+    RequestTrace.recordStageStart(producerContext, RequestTrace.STAGE_BITMAP_MEMORY_CACHE);
     final ImageRequest imageRequest = producerContext.getImageRequest();
     final Object callerContext = producerContext.getCallerContext();
     final CacheKey cacheKey = mCacheKeyFactory.getBitmapCacheKey(imageRequest, callerContext);
 
     CloseableReference<CloseableImage> cachedReference = mMemoryCache.get(cacheKey);
+    if (cachedReference == null
+        && mVariantIndex != null
+        && cacheKey instanceof BitmapMemoryCacheKey) {
+      cachedReference = mVariantIndex.getLargerVariant((BitmapMemoryCacheKey) cacheKey);
+    }
 
     if (cachedReference != null) {
       boolean isFinal = cachedReference.get().getQualityInfo().isOfFullQuality();
@@ -60,6 +82,8 @@ public class BitmapMemoryCacheProducer implements Producer<CloseableReference<Cl
             listener.requiresExtraMap(requestId)
                 ? ImmutableMap.of(EXTRA_CACHED_VALUE_FOUND, "true")
                 : null);
+        RequestTrace.recordCacheLookup(
+            producerContext, RequestTrace.STAGE_BITMAP_MEMORY_CACHE, true);
         listener.onUltimateProducerReached(requestId, getProducerName(), true);
         consumer.onProgressUpdate(1f);
       }
@@ -78,6 +102,8 @@ public class BitmapMemoryCacheProducer implements Producer<CloseableReference<Cl
           listener.requiresExtraMap(requestId)
               ? ImmutableMap.of(EXTRA_CACHED_VALUE_FOUND, "false")
               : null);
+      RequestTrace.recordCacheLookup(
+          producerContext, RequestTrace.STAGE_BITMAP_MEMORY_CACHE, false);
       listener.onUltimateProducerReached(requestId, getProducerName(), false);
       consumer.onNewResult(null, Consumer.IS_LAST);
       return;
@@ -90,6 +116,7 @@ public class BitmapMemoryCacheProducer implements Producer<CloseableReference<Cl
         listener.requiresExtraMap(requestId)
             ? ImmutableMap.of(EXTRA_CACHED_VALUE_FOUND, "false")
             : null);
+    RequestTrace.recordCacheLookup(producerContext, RequestTrace.STAGE_BITMAP_MEMORY_CACHE, false);
     mInputProducer.produceResults(wrappedConsumer, producerContext);
   }
 
@@ -138,6 +165,11 @@ public class BitmapMemoryCacheProducer implements Producer<CloseableReference<Cl
             mMemoryCache.cache(cacheKey, newResult);
         try {
           if (isLast) {
+            if (newCachedResult != null
+                && mVariantIndex != null
+                && cacheKey instanceof BitmapMemoryCacheKey) {
+              mVariantIndex.addVariant((BitmapMemoryCacheKey) cacheKey, newCachedResult.get());
+            }
             getConsumer().onProgressUpdate(1f);
           }
           getConsumer().onNewResult(
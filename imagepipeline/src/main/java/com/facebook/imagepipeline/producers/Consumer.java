@@ -47,6 +47,7 @@ public interface Consumer<T> {
       IS_PLACEHOLDER,
       IS_PARTIAL_RESULT,
       IS_RESIZING_DONE,
+      IS_RESUMABLE_PREFIX,
     }
   )
   @interface Status {}
@@ -79,6 +80,12 @@ public interface Consumer<T> {
   int IS_PARTIAL_RESULT = 1 << 3;
   /** Status flag that indicates whether the given image has been resized. */
   int IS_RESIZING_DONE = 1 << 4;
+  /**
+   * Status flag to show the result is the data received so far by a download that is being
+   * cancelled or failed, passed on so that the download can be resumed later. Only set together
+   * with IS_PARTIAL_RESULT and if IS_LAST is not set.
+   */
+  int IS_RESUMABLE_PREFIX = 1 << 5;
 
   /**
    * Called by a producer whenever new data is produced. This method should not throw an exception.
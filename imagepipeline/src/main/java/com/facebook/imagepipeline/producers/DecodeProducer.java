@@ -10,6 +10,7 @@ package com.facebook.imagepipeline.producers;
 import static com.facebook.imagepipeline.producers.JobScheduler.JobRunnable;
 
 import android.graphics.Bitmap;
+import android.os.SystemClock;
 import com.facebook.common.internal.ImmutableMap;
 import com.facebook.common.internal.Preconditions;
 import com.facebook.common.internal.Supplier;
@@ -20,10 +21,13 @@ import com.facebook.common.util.ExceptionWithNoStacktrace;
 import com.facebook.common.util.UriUtil;
 import com.facebook.imageformat.DefaultImageFormats;
 import com.facebook.imageformat.ImageFormat;
+import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory;
 import com.facebook.imagepipeline.common.ImageDecodeOptions;
+import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.common.ResizeOptions;
 import com.facebook.imagepipeline.decoder.DecodeException;
 import com.facebook.imagepipeline.decoder.ImageDecoder;
+import com.facebook.imagepipeline.decoder.IncrementalJpegDecoder;
 import com.facebook.imagepipeline.decoder.ProgressiveJpegConfig;
 import com.facebook.imagepipeline.decoder.ProgressiveJpegParser;
 import com.facebook.imagepipeline.image.CloseableImage;
@@ -41,7 +45,11 @@ import javax.annotation.concurrent.GuardedBy;
 /**
  * Decodes images.
  *
- * <p/> Progressive JPEGs are decoded progressively as new data arrives.
+ * <p/> Progressive JPEGs are decoded progressively as new data arrives. With an
+ * {@link AdaptiveProgressiveDecodeScheduler}, the intermediate scans of network images are only
+ * decoded when the result is likely to be seen. With an {@link IncrementalJpegDecoder}, the
+ * intermediate scans of network images are decoded incrementally, each decode only processing the
+ * bytes of the new scans.
  */
 public class DecodeProducer implements Producer<CloseableReference<CloseableImage>> {
 
@@ -65,6 +73,10 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
   private final boolean mDownsampleEnabledForNetwork;
   private final boolean mDecodeCancellationEnabled;
   private final Supplier<Boolean> mExperimentalSmartResizingEnabled;
+  private final @Nullable AdaptiveProgressiveDecodeScheduler mAdaptiveProgressiveDecodeScheduler;
+  private final @Nullable IncrementalJpegDecoder.Factory mIncrementalJpegDecoderFactory;
+  private final @Nullable PlatformBitmapFactory mPlatformBitmapFactory;
+  private final boolean mDecodeAtTargetSizeEnabled;
 
   public DecodeProducer(
       final ByteArrayPool byteArrayPool,
@@ -76,6 +88,46 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
       final boolean decodeCancellationEnabled,
       final Producer<EncodedImage> inputProducer,
       final Supplier<Boolean> experimentalSmartResizingEnabled) {
+    this(
+        byteArrayPool,
+        executor,
+        imageDecoder,
+        progressiveJpegConfig,
+        downsampleEnabled,
+        downsampleEnabledForNetwork,
+        decodeCancellationEnabled,
+        inputProducer,
+        experimentalSmartResizingEnabled,
+        false,
+        null,
+        null,
+        false);
+  }
+
+  /**
+   * @param adaptiveProgressiveDecodingEnabled whether to skip the intermediate decodes of network
+   *     images that are not likely to be seen, see {@link AdaptiveProgressiveDecodeScheduler}
+   * @param incrementalJpegDecoderFactory if not null, creates the decoders of the intermediate
+   *     scans of network images
+   * @param platformBitmapFactory creates the bitmaps of the incremental decoders, required with
+   *     their factory
+   * @param decodeAtTargetSizeEnabled whether to decode static PNG, WebP and BMP images at the
+   *     exact size of the resize options of the request, rather than at a sample size only
+   */
+  public DecodeProducer(
+      final ByteArrayPool byteArrayPool,
+      final Executor executor,
+      final ImageDecoder imageDecoder,
+      final ProgressiveJpegConfig progressiveJpegConfig,
+      final boolean downsampleEnabled,
+      final boolean downsampleEnabledForNetwork,
+      final boolean decodeCancellationEnabled,
+      final Producer<EncodedImage> inputProducer,
+      final Supplier<Boolean> experimentalSmartResizingEnabled,
+      final boolean adaptiveProgressiveDecodingEnabled,
+      final @Nullable IncrementalJpegDecoder.Factory incrementalJpegDecoderFactory,
+      final @Nullable PlatformBitmapFactory platformBitmapFactory,
+      final boolean decodeAtTargetSizeEnabled) {
     mByteArrayPool = Preconditions.checkNotNull(byteArrayPool);
     mExecutor = Preconditions.checkNotNull(executor);
     mImageDecoder = Preconditions.checkNotNull(imageDecoder);
@@ -85,6 +137,13 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
     mInputProducer = Preconditions.checkNotNull(inputProducer);
     mDecodeCancellationEnabled = decodeCancellationEnabled;
     mExperimentalSmartResizingEnabled = experimentalSmartResizingEnabled;
+    mAdaptiveProgressiveDecodeScheduler =
+        adaptiveProgressiveDecodingEnabled ? new AdaptiveProgressiveDecodeScheduler() : null;
+    Preconditions.checkArgument(
+        incrementalJpegDecoderFactory == null || platformBitmapFactory != null);
+    mIncrementalJpegDecoderFactory = incrementalJpegDecoderFactory;
+    mPlatformBitmapFactory = platformBitmapFactory;
+    mDecodeAtTargetSizeEnabled = decodeAtTargetSizeEnabled;
   }
 
   @Override
@@ -105,7 +164,13 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
           producerContext,
           jpegParser,
           mProgressiveJpegConfig,
-          mDecodeCancellationEnabled);
+          mDecodeCancellationEnabled,
+          mAdaptiveProgressiveDecodeScheduler != null
+              ? mAdaptiveProgressiveDecodeScheduler.newImageState()
+              : null,
+          mIncrementalJpegDecoderFactory != null
+              ? mIncrementalJpegDecoderFactory.create(mPlatformBitmapFactory)
+              : null);
     }
     mInputProducer.produceResults(progressiveDecoder, producerContext);
   }
@@ -139,10 +204,20 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
             @Override
             public void run(EncodedImage encodedImage, @Status int status) {
               if (encodedImage != null) {
-                if (mDownsampleEnabled
+                ImageRequest request = producerContext.getImageRequest();
+                if (mImageDecodeOptions.regionToDecode != null) {
+                  encodedImage.setSampleSize(
+                      DownsampleUtil.determineSampleSize(request, encodedImage));
+                } else if (mDecodeAtTargetSizeEnabled
+                    && isDecodableAtTargetSize(encodedImage.getImageFormat())) {
+                  if (mDownsampleEnabledForNetwork
+                      || !UriUtil.isNetworkUri(request.getSourceUri())) {
+                    // the decoder scales the subsampled image down to the exact target size
+                    DownsampleUtil.determineTargetSize(request, encodedImage);
+                  }
+                } else if (mDownsampleEnabled
                     || (mExperimentalSmartResizingEnabled.get()
                         && !statusHasFlag(status, Consumer.IS_RESIZING_DONE))) {
-                  ImageRequest request = producerContext.getImageRequest();
                   if (mDownsampleEnabledForNetwork
                       || !UriUtil.isNetworkUri(request.getSourceUri())) {
                     encodedImage.setSampleSize(
@@ -153,7 +228,11 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
               }
             }
           };
-      mJobScheduler = new JobScheduler(mExecutor, job, mImageDecodeOptions.minDecodeIntervalMs);
+      mJobScheduler =
+          new JobScheduler(
+              ProducerContextExecutor.forContext(mExecutor, producerContext),
+              job,
+              mImageDecodeOptions.minDecodeIntervalMs);
       mProducerContext.addCallbacks(
           new BaseProducerContextCallbacks() {
             @Override
@@ -218,28 +297,11 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
       if (isFinished() || !EncodedImage.isValid(encodedImage)) {
         return;
       }
-      final String imageFormatStr;
-      ImageFormat imageFormat = encodedImage.getImageFormat();
-      if (imageFormat != null) {
-        imageFormatStr = imageFormat.getName();
-      } else {
-        imageFormatStr = "unknown";
-      }
-      final String encodedImageSize = encodedImage.getWidth() + "x" + encodedImage.getHeight();
-      final String sampleSize = String.valueOf(encodedImage.getSampleSize());
       final boolean isLast = isLast(status);
       final boolean isLastAndComplete = isLast && !statusHasFlag(status, IS_PARTIAL_RESULT);
       final boolean isPlaceholder = statusHasFlag(status, IS_PLACEHOLDER);
-      final String requestedSizeStr;
-      final ResizeOptions resizeOptions = mProducerContext.getImageRequest().getResizeOptions();
-      if (resizeOptions != null) {
-        requestedSizeStr = resizeOptions.width + "x" + resizeOptions.height;
-      } else {
-        requestedSizeStr = "unknown";
-      }
       try {
         long queueTime = mJobScheduler.getQueuedTime();
-        String requestUri = String.valueOf(mProducerContext.getImageRequest().getSourceUri());
         int length = isLastAndComplete || isPlaceholder
             ? encodedImage.getSize()
             : getIntermediateImageEndOffset(encodedImage);
@@ -248,17 +310,26 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
             : getQualityInfo();
 
         mProducerListener.onProducerStart(mProducerContext.getId(), PRODUCER_NAME);
+        RequestTrace.recordStageStart(mProducerContext, RequestTrace.STAGE_DECODE);
+        RequestTrace.recordQueueWait(
+            mProducerContext, RequestTrace.STAGE_DECODE, mJobScheduler.getExecutorQueuedTime());
+        RequestTrace.recordWait(
+            mProducerContext, RequestTrace.WAIT_DECODE_INTERVAL, mJobScheduler.getDelayedTime());
+        RequestTrace.recordByteCount(mProducerContext, RequestTrace.STAGE_DECODE, length);
+        RequestTrace.recordSampleSize(mProducerContext, encodedImage.getSampleSize());
         CloseableImage image = null;
         try {
           try {
-            image = mImageDecoder.decode(encodedImage, length, quality, mImageDecodeOptions);
+            final long decodeStartTimeMs = SystemClock.uptimeMillis();
+            image = decode(encodedImage, length, quality, isNotLast(status) && !isPlaceholder);
+            onDecodeFinished(encodedImage, SystemClock.uptimeMillis() - decodeStartTimeMs);
           } catch (DecodeException e) {
             EncodedImage failedEncodedImage = e.getEncodedImage();
             FLog.w(
                 TAG,
                 "%s, {uri: %s, firstEncodedBytes: %s, length: %d}",
                 e.getMessage(),
-                requestUri,
+                mProducerContext.getImageRequest().getSourceUri(),
                 failedEncodedImage.getFirstBytesAsHexString(
                     DECODE_EXCEPTION_MESSAGE_NUM_HEADER_BYTES),
                 failedEncodedImage.getSize());
@@ -268,31 +339,21 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
             status |= Consumer.IS_RESIZING_DONE;
           }
         } catch (Exception e) {
-          Map<String, String> extraMap = getExtraMap(
-              image,
-              queueTime,
-              quality,
-              isLast,
-              imageFormatStr,
-              encodedImageSize,
-              requestedSizeStr,
-              sampleSize);
+          Map<String, String> extraMap =
+              getExtraMap(image, queueTime, quality, isLast, encodedImage);
           mProducerListener.
               onProducerFinishWithFailure(mProducerContext.getId(), PRODUCER_NAME, e, extraMap);
+          RequestTrace.recordStageFinish(
+              mProducerContext, RequestTrace.STAGE_DECODE, RequestTrace.STATUS_FAILURE);
           handleError(e);
           return;
         }
-        Map<String, String> extraMap = getExtraMap(
-            image,
-            queueTime,
-            quality,
-            isLast,
-            imageFormatStr,
-            encodedImageSize,
-            requestedSizeStr,
-            sampleSize);
+        Map<String, String> extraMap =
+            getExtraMap(image, queueTime, quality, isLast, encodedImage);
         mProducerListener.
             onProducerFinishWithSuccess(mProducerContext.getId(), PRODUCER_NAME, extraMap);
+        RequestTrace.recordStageFinish(
+            mProducerContext, RequestTrace.STAGE_DECODE, RequestTrace.STATUS_SUCCESS);
         handleResult(image, status);
       } finally {
         EncodedImage.closeSafely(encodedImage);
@@ -304,13 +365,18 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
         long queueTime,
         QualityInfo quality,
         boolean isFinal,
-        String imageFormatName,
-        String encodedImageSize,
-        String requestImageSize,
-        String sampleSize) {
+        EncodedImage encodedImage) {
       if (!mProducerListener.requiresExtraMap(mProducerContext.getId())) {
         return null;
       }
+      ImageFormat imageFormat = encodedImage.getImageFormat();
+      String imageFormatName = imageFormat != null ? imageFormat.getName() : "unknown";
+      String encodedImageSize = encodedImage.getWidth() + "x" + encodedImage.getHeight();
+      String sampleSize = String.valueOf(encodedImage.getSampleSize());
+      ResizeOptions resizeOptions = mProducerContext.getImageRequest().getResizeOptions();
+      String requestImageSize = resizeOptions != null
+          ? resizeOptions.width + "x" + resizeOptions.height
+          : "unknown";
       String queueStr = String.valueOf(queueTime);
       String qualityStr = String.valueOf(quality.isOfGoodEnoughQuality());
       String finalStr = String.valueOf(isFinal);
@@ -362,6 +428,7 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
         mIsFinished = true;
       }
       mJobScheduler.clearJob();
+      onFinished();
     }
 
     /**
@@ -393,6 +460,27 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
       getConsumer().onCancellation();
     }
 
+    /**
+     * Decodes the first length bytes of the image.
+     *
+     * @param isIntermediate whether the result is an intermediate one, more data being expected
+     */
+    protected CloseableImage decode(
+        EncodedImage encodedImage,
+        int length,
+        QualityInfo quality,
+        boolean isIntermediate) {
+      return mImageDecoder.decode(encodedImage, length, quality, mImageDecodeOptions);
+    }
+
+    /** Called once the decoder is finished, whatever the reason. */
+    protected void onFinished() {
+    }
+
+    /** Called after each successful decode, with the time it took. */
+    protected void onDecodeFinished(EncodedImage encodedImage, long decodeTimeMs) {
+    }
+
     protected abstract int getIntermediateImageEndOffset(EncodedImage encodedImage);
 
     protected abstract QualityInfo getQualityInfo();
@@ -430,6 +518,9 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
 
     private final ProgressiveJpegParser mProgressiveJpegParser;
     private final ProgressiveJpegConfig mProgressiveJpegConfig;
+    private final ProducerContext mProducerContext;
+    private final @Nullable AdaptiveProgressiveDecodeScheduler.ImageState mImageState;
+    private final @Nullable IncrementalJpegDecoder mIncrementalJpegDecoder;
     private int mLastScheduledScanNumber;
 
     public NetworkImagesProgressiveDecoder(
@@ -437,10 +528,15 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
         final ProducerContext producerContext,
         final ProgressiveJpegParser progressiveJpegParser,
         final ProgressiveJpegConfig progressiveJpegConfig,
-        final boolean decodeCancellationEnabled) {
+        final boolean decodeCancellationEnabled,
+        final @Nullable AdaptiveProgressiveDecodeScheduler.ImageState imageState,
+        final @Nullable IncrementalJpegDecoder incrementalJpegDecoder) {
       super(consumer, producerContext, decodeCancellationEnabled);
       mProgressiveJpegParser = Preconditions.checkNotNull(progressiveJpegParser);
       mProgressiveJpegConfig = Preconditions.checkNotNull(progressiveJpegConfig);
+      mProducerContext = producerContext;
+      mImageState = imageState;
+      mIncrementalJpegDecoder = incrementalJpegDecoder;
       mLastScheduledScanNumber = 0;
     }
 
@@ -451,6 +547,12 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
           && !statusHasFlag(status, IS_PLACEHOLDER)
           && EncodedImage.isValid(encodedImage)
           && encodedImage.getImageFormat() == DefaultImageFormats.JPEG) {
+        if (mImageState != null) {
+          mImageState.onNewData(
+              encodedImage.getSize(),
+              encodedImage.getExpectedSize(),
+              SystemClock.uptimeMillis());
+        }
         if (!mProgressiveJpegParser.parseMoreData(encodedImage)) {
           return false;
         }
@@ -465,11 +567,52 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
           // are still more scans to be read (the end marker is not reached)
           return false;
         }
+        if (mImageState != null
+            && !mProgressiveJpegParser.isEndMarkerRead()
+            && !shouldDecodeScan(encodedImage, scanNum)) {
+          // The scan is not likely to be seen before the next one or the final image
+          return false;
+        }
         mLastScheduledScanNumber = scanNum;
       }
       return ret;
     }
 
+    @Override
+    protected CloseableImage decode(
+        EncodedImage encodedImage,
+        int length,
+        QualityInfo quality,
+        boolean isIntermediate) {
+      final ImageDecodeOptions options = mProducerContext.getImageRequest().getImageDecodeOptions();
+      if (isIntermediate
+          && mIncrementalJpegDecoder != null
+          && encodedImage.getImageFormat() == DefaultImageFormats.JPEG
+          && options.customImageDecoder == null
+          && options.regionToDecode == null) {
+        CloseableImage image =
+            mIncrementalJpegDecoder.decode(encodedImage, length, quality, options);
+        if (image != null) {
+          return image;
+        }
+      }
+      return super.decode(encodedImage, length, quality, isIntermediate);
+    }
+
+    @Override
+    protected void onFinished() {
+      if (mIncrementalJpegDecoder != null) {
+        mIncrementalJpegDecoder.close();
+      }
+    }
+
+    @Override
+    protected void onDecodeFinished(EncodedImage encodedImage, long decodeTimeMs) {
+      if (mImageState != null) {
+        mImageState.onDecodeFinished(getPixelCount(encodedImage), decodeTimeMs);
+      }
+    }
+
     @Override
     protected int getIntermediateImageEndOffset(EncodedImage encodedImage) {
       return mProgressiveJpegParser.getBestScanEndOffset();
@@ -479,5 +622,29 @@ public class DecodeProducer implements Producer<CloseableReference<CloseableImag
     protected QualityInfo getQualityInfo() {
       return mProgressiveJpegConfig.getQualityInfo(mProgressiveJpegParser.getBestScanNumber());
     }
+
+    private boolean shouldDecodeScan(EncodedImage encodedImage, int scanNumber) {
+      return mImageState.shouldDecodeScan(
+          mProgressiveJpegConfig.getQualityInfo(scanNumber).isOfGoodEnoughQuality(),
+          getPixelCount(encodedImage),
+          !mProducerContext.isPrefetch() && mProducerContext.getPriority() == Priority.HIGH,
+          SystemClock.uptimeMillis());
+    }
+  }
+
+  /**
+   * JPEG images are resized exactly by the transcoder of {@link ResizeAndRotateProducer}, and
+   * animated images are not decoded by the platform decoder.
+   */
+  private static boolean isDecodableAtTargetSize(ImageFormat imageFormat) {
+    return imageFormat == DefaultImageFormats.PNG
+        || imageFormat == DefaultImageFormats.BMP
+        || DefaultImageFormats.isStaticWebpFormat(imageFormat);
+  }
+
+  private static int getPixelCount(EncodedImage encodedImage) {
+    return encodedImage.getWidth() > 0 && encodedImage.getHeight() > 0
+        ? encodedImage.getWidth() * encodedImage.getHeight()
+        : -1;
   }
 }
@@ -65,6 +65,7 @@ public class DiskCacheReadProducer implements Producer<EncodedImage> {
     }
 
     producerContext.getListener().onProducerStart(producerContext.getId(), PRODUCER_NAME);
+    RequestTrace.recordStageStart(producerContext, RequestTrace.STAGE_DISK_CACHE);
 
     final CacheKey cacheKey =
         mCacheKeyFactory.getEncodedCacheKey(imageRequest, producerContext.getCallerContext());
@@ -90,9 +91,13 @@ public class DiskCacheReadProducer implements Producer<EncodedImage> {
           throws Exception {
         if (isTaskCancelled(task)) {
           listener.onProducerFinishWithCancellation(requestId, PRODUCER_NAME, null);
+          RequestTrace.recordStageFinish(
+              producerContext, RequestTrace.STAGE_DISK_CACHE, RequestTrace.STATUS_CANCELLATION);
           consumer.onCancellation();
         } else if (task.isFaulted()) {
           listener.onProducerFinishWithFailure(requestId, PRODUCER_NAME, task.getError(), null);
+          RequestTrace.recordStageFinish(
+              producerContext, RequestTrace.STAGE_DISK_CACHE, RequestTrace.STATUS_FAILURE);
           mInputProducer.produceResults(consumer, producerContext);
         } else {
           EncodedImage cachedReference = task.getResult();
@@ -101,6 +106,9 @@ public class DiskCacheReadProducer implements Producer<EncodedImage> {
                 requestId,
                 PRODUCER_NAME,
                 getExtraMap(listener, requestId, true, cachedReference.getSize()));
+            RequestTrace.recordByteCount(
+                producerContext, RequestTrace.STAGE_DISK_CACHE, cachedReference.getSize());
+            RequestTrace.recordCacheLookup(producerContext, RequestTrace.STAGE_DISK_CACHE, true);
             listener.onUltimateProducerReached(requestId, PRODUCER_NAME, true);
             consumer.onProgressUpdate(1);
             consumer.onNewResult(cachedReference, Consumer.IS_LAST);
@@ -110,6 +118,7 @@ public class DiskCacheReadProducer implements Producer<EncodedImage> {
                 requestId,
                 PRODUCER_NAME,
                 getExtraMap(listener, requestId, false, 0));
+            RequestTrace.recordCacheLookup(producerContext, RequestTrace.STAGE_DISK_CACHE, false);
             mInputProducer.produceResults(consumer, producerContext);
           }
         }
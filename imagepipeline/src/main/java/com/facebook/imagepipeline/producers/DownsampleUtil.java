@@ -31,6 +31,10 @@ public class DownsampleUtil {
    * @return
    */
   public static int determineSampleSize(ImageRequest imageRequest, EncodedImage encodedImage) {
+    if (imageRequest.getImageDecodeOptions().regionToDecode != null) {
+      // the request is for a region of the image, at the sample size it asks for
+      return imageRequest.getImageDecodeOptions().regionSampleSize;
+    }
     if (!EncodedImage.isMetaDataAvailable(encodedImage)) {
       return DEFAULT_SAMPLE_SIZE;
     }
@@ -59,6 +63,38 @@ public class DownsampleUtil {
     return sampleSize;
   }
 
+  /**
+   * Set the size to decode the encodedImage (actual image) at so that it exactly covers the
+   * requested size of the imageRequest, and the sample size to subsample it to no less than that
+   * size before it is scaled down to it.
+   *
+   * @param imageRequest the request containing the requested dimensions
+   * @param encodedImage the encoded image with the actual dimensions
+   * @return true if the image is larger than the requested size, and hence was given a target size
+   */
+  public static boolean determineTargetSize(ImageRequest imageRequest, EncodedImage encodedImage) {
+    if (!EncodedImage.isMetaDataAvailable(encodedImage)) {
+      return false;
+    }
+    float ratio = determineDownsampleRatio(imageRequest, encodedImage);
+    final int maxDimension = Math.max(encodedImage.getHeight(), encodedImage.getWidth());
+    final ResizeOptions resizeOptions = imageRequest.getResizeOptions();
+    final float maxBitmapSize = resizeOptions != null
+        ? resizeOptions.maxBitmapSize
+        : BitmapUtil.MAX_BITMAP_SIZE;
+    if (maxDimension * ratio > maxBitmapSize) {
+      ratio = maxBitmapSize / maxDimension;
+    }
+    if (ratio >= 1.0f) {
+      return false;
+    }
+    encodedImage.setSampleSize(ratioToSampleSizeForTargetSize(ratio));
+    encodedImage.setTargetSize(
+        Math.max(Math.round(encodedImage.getWidth() * ratio), 1),
+        Math.max(Math.round(encodedImage.getHeight() * ratio), 1));
+    return true;
+  }
+
   @VisibleForTesting
   static float determineDownsampleRatio(
       ImageRequest imageRequest, EncodedImage encodedImage) {
@@ -126,6 +162,18 @@ public class DownsampleUtil {
     }
   }
 
+  /**
+   * The largest power of two sample size that does not subsample the image below the ratio.
+   */
+  @VisibleForTesting
+  static int ratioToSampleSizeForTargetSize(float ratio) {
+    int sampleSize = 1;
+    while (1.0f / (2 * sampleSize) >= ratio) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
   private static int getRotationAngle(ImageRequest imageRequest, EncodedImage encodedImage) {
     if (!imageRequest.getRotationOptions().useImageMetadata()) {
       return 0;
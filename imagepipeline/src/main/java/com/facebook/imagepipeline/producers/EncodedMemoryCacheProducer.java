@@ -45,6 +45,7 @@ public class EncodedMemoryCacheProducer implements Producer<EncodedImage> {
     final String requestId = producerContext.getId();
     final ProducerListener listener = producerContext.getListener();
     listener.onProducerStart(requestId, PRODUCER_NAME);
+    RequestTrace.recordStageStart(producerContext, RequestTrace.STAGE_ENCODED_MEMORY_CACHE);
     final ImageRequest imageRequest = producerContext.getImageRequest();
     final CacheKey cacheKey =
         mCacheKeyFactory.getEncodedCacheKey(imageRequest, producerContext.getCallerContext());
@@ -60,6 +61,12 @@ public class EncodedMemoryCacheProducer implements Producer<EncodedImage> {
               listener.requiresExtraMap(requestId)
                   ? ImmutableMap.of(EXTRA_CACHED_VALUE_FOUND, "true")
                   : null);
+          RequestTrace.recordByteCount(
+              producerContext,
+              RequestTrace.STAGE_ENCODED_MEMORY_CACHE,
+              cachedEncodedImage.getSize());
+          RequestTrace.recordCacheLookup(
+              producerContext, RequestTrace.STAGE_ENCODED_MEMORY_CACHE, true);
           listener.onUltimateProducerReached(requestId, PRODUCER_NAME, true);
           consumer.onProgressUpdate(1f);
           consumer.onNewResult(cachedEncodedImage, Consumer.IS_LAST);
@@ -77,6 +84,8 @@ public class EncodedMemoryCacheProducer implements Producer<EncodedImage> {
             listener.requiresExtraMap(requestId)
                 ? ImmutableMap.of(EXTRA_CACHED_VALUE_FOUND, "false")
                 : null);
+        RequestTrace.recordCacheLookup(
+            producerContext, RequestTrace.STAGE_ENCODED_MEMORY_CACHE, false);
         listener.onUltimateProducerReached(requestId, PRODUCER_NAME, false);
         consumer.onNewResult(null, Consumer.IS_LAST);
         return;
@@ -91,6 +100,8 @@ public class EncodedMemoryCacheProducer implements Producer<EncodedImage> {
           listener.requiresExtraMap(requestId)
               ? ImmutableMap.of(EXTRA_CACHED_VALUE_FOUND, "false")
               : null);
+      RequestTrace.recordCacheLookup(
+          producerContext, RequestTrace.STAGE_ENCODED_MEMORY_CACHE, false);
       mInputProducer.produceResults(consumerOfInputProducer, producerContext);
     } finally {
       CloseableReference.closeSafely(cachedReference);
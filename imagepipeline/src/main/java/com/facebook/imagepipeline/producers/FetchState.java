@@ -24,6 +24,9 @@ public class FetchState {
   private long mLastIntermediateResultTimeMs;
   private int mOnNewResultStatusFlags;
   private @Nullable BytesRange mResponseBytesRange;
+  private @Nullable String mResponseContentValidator;
+  private int mResponseContentLength;
+  private volatile boolean mIsCancelled;
 
   public FetchState(
       Consumer<EncodedImage> consumer,
@@ -31,6 +34,14 @@ public class FetchState {
     mConsumer = consumer;
     mContext = context;
     mLastIntermediateResultTimeMs = 0;
+    mResponseContentLength = -1;
+    mContext.addCallbacks(
+        new BaseProducerContextCallbacks() {
+          @Override
+          public void onCancellationRequested() {
+            mIsCancelled = true;
+          }
+        });
   }
 
   public Consumer<EncodedImage> getConsumer() {
@@ -49,6 +60,14 @@ public class FetchState {
     return mContext.getListener();
   }
 
+  /**
+   * @return whether the cancellation of the request was requested, in which case the fetch should
+   *     stop as soon as possible
+   */
+  public boolean isCancelled() {
+    return mIsCancelled;
+  }
+
   public Uri getUri() {
     return mContext.getImageRequest().getSourceUri();
   }
@@ -85,4 +104,39 @@ public class FetchState {
   public void setResponseBytesRange(BytesRange bytesRange) {
     mResponseBytesRange = bytesRange;
   }
+
+  /**
+   * @return the validator of the content the bytes range of the request belongs to, which the
+   *     fetcher should send with the range, or null if there is none
+   */
+  @Nullable
+  public String getRequestContentValidator() {
+    return mContext instanceof SettableProducerContext
+        ? ((SettableProducerContext) mContext).getContentValidator()
+        : null;
+  }
+
+  @Nullable
+  public String getResponseContentValidator() {
+    return mResponseContentValidator;
+  }
+
+  /**
+   * EXPERIMENTAL: Allows the fetcher to identify the content of the response, such as with its
+   * ETag, so that a download resumed from the bytes received can check it gets the same content.
+   */
+  public void setResponseContentValidator(@Nullable String contentValidator) {
+    mResponseContentValidator = contentValidator;
+  }
+
+  /**
+   * @return the length of the response body, or -1 if it is not known
+   */
+  public int getResponseContentLength() {
+    return mResponseContentLength;
+  }
+
+  public void setResponseContentLength(int responseContentLength) {
+    mResponseContentLength = responseContentLength;
+  }
 }
@@ -8,27 +8,57 @@
 package com.facebook.imagepipeline.producers;
 
 import android.net.Uri;
+import android.os.SystemClock;
+import com.facebook.common.internal.Preconditions;
 import com.facebook.common.internal.VisibleForTesting;
 import com.facebook.common.util.UriUtil;
+import com.facebook.imagepipeline.common.BytesRange;
 import com.facebook.imagepipeline.image.EncodedImage;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Locale;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * Network fetcher that uses the simplest Android stack.
  *
  * <p> Apps requiring more sophisticated networking should implement their own
  * {@link NetworkFetcher}.
+ *
+ * <p> By default, {@link #NUM_NETWORK_THREADS} images are downloaded at the same time. Given an
+ * {@link AdaptiveConcurrencyLimiter}, the number of downloads instead follows the limit, so that
+ * more of them run in parallel on a fast link with a high latency and fewer on a congested one.
+ * Downloads then wait in the fetcher until the limit lets them start, and only then are handed to
+ * the executor.
+ *
+ * <p> The bytes range of the request, if any, is sent as a "Range" header, with an "If-Range"
+ * header if the request has the validator of the content the range belongs to. The validator of
+ * the response, its strong ETag or else its Last-Modified date, is passed on with the image. A
+ * fetcher created with {@link #createChunked} requests large images as several ranges, which are
+ * downloaded in parallel over separate connections and handed to the pipeline in order.
  */
 public class HttpUrlConnectionNetworkFetcher extends BaseNetworkFetcher<FetchState> {
 
   private static final int NUM_NETWORK_THREADS = 3;
+  private static final int MAX_NETWORK_THREADS = 16;
+  private static final long NETWORK_THREAD_KEEP_ALIVE_MS = 60000;
   private static final int MAX_REDIRECTS = 5;
 
   public static final int HTTP_TEMPORARY_REDIRECT = 307;
@@ -36,9 +66,25 @@ public class HttpUrlConnectionNetworkFetcher extends BaseNetworkFetcher<FetchSta
 
   public static final int HTTP_DEFAULT_TIMEOUT = 30000;
 
+  /**
+   * Size of response up to which the latency of a download is reported as is to the concurrency
+   * limiter. Past it, the latency is scaled down to the time this size takes at the same
+   * throughput.
+   */
+  @VisibleForTesting static final int LATENCY_REFERENCE_SIZE_BYTES = 64 * 1024;
+
   private int mHttpConnectionTimeout;
 
   private final ExecutorService mExecutorService;
+  private final @Nullable AdaptiveConcurrencyLimiter mConcurrencyLimiter;
+  private final int mChunkSizeBytes;
+  private final int mMaxParallelChunks;
+  private final @Nullable Executor mChunkExecutor;
+
+  @GuardedBy("this")
+  private final Deque<Runnable> mPendingFetches = new ArrayDeque<>();
+  @GuardedBy("this")
+  private int mRunningFetchCount;
 
   public HttpUrlConnectionNetworkFetcher() {
     this(Executors.newFixedThreadPool(NUM_NETWORK_THREADS));
@@ -49,9 +95,99 @@ public class HttpUrlConnectionNetworkFetcher extends BaseNetworkFetcher<FetchSta
     mHttpConnectionTimeout = httpConnectionTimeout;
   }
 
+  /**
+   * Creates a fetcher whose number of simultaneous downloads is adjusted to the observed latency.
+   * @param httpConnectionTimeout the connection timeout in milliseconds
+   */
+  public static HttpUrlConnectionNetworkFetcher createAdaptive(int httpConnectionTimeout) {
+    AdaptiveConcurrencyLimiter concurrencyLimiter =
+        new AdaptiveConcurrencyLimiter(1, MAX_NETWORK_THREADS);
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        MAX_NETWORK_THREADS,
+        MAX_NETWORK_THREADS,
+        NETWORK_THREAD_KEEP_ALIVE_MS,
+        TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>());
+    // the threads above the current limit stop once idle
+    executor.allowCoreThreadTimeOut(true);
+    HttpUrlConnectionNetworkFetcher fetcher =
+        new HttpUrlConnectionNetworkFetcher(executor, concurrencyLimiter);
+    fetcher.mHttpConnectionTimeout = httpConnectionTimeout;
+    return fetcher;
+  }
+
+  /**
+   * Creates a fetcher that downloads images larger than a chunk as several ranges in parallel.
+   * Servers that do not support range requests send the whole image in a single response instead.
+   * At most {@code maxParallelChunks - 1} chunks of an image are downloaded ahead of the one being
+   * read, so that an image being read slowly does not take more memory than that.
+   * @param httpConnectionTimeout the connection timeout in milliseconds
+   * @param chunkSizeBytes the size of the range requested by each connection
+   * @param maxParallelChunks the max number of chunks of an image downloaded at the same time
+   * @param chunkExecutor executor downloading the chunks ahead of the one being read, which the
+   *     fetcher does not own, for instance {@link
+   *     com.facebook.imagepipeline.core.ExecutorSupplier#forBackgroundTasks} of the pipeline. If
+   *     null, the chunks are downloaded one after the other by the thread reading the image.
+   */
+  public static HttpUrlConnectionNetworkFetcher createChunked(
+      int httpConnectionTimeout,
+      int chunkSizeBytes,
+      int maxParallelChunks,
+      @Nullable Executor chunkExecutor) {
+    Preconditions.checkArgument(chunkSizeBytes > 0);
+    Preconditions.checkArgument(maxParallelChunks > 0);
+    HttpUrlConnectionNetworkFetcher fetcher = new HttpUrlConnectionNetworkFetcher(
+        Executors.newFixedThreadPool(NUM_NETWORK_THREADS),
+        null,
+        chunkSizeBytes,
+        chunkExecutor != null ? maxParallelChunks : 1,
+        chunkExecutor);
+    fetcher.mHttpConnectionTimeout = httpConnectionTimeout;
+    return fetcher;
+  }
+
   @VisibleForTesting
   HttpUrlConnectionNetworkFetcher(ExecutorService executorService) {
+    this(executorService, null);
+  }
+
+  /**
+   * @param executorService executor running the downloads. If a concurrency limiter is given, it
+   *     needs as many threads as the max limit for the downloads to follow the limit.
+   * @param concurrencyLimiter limiter adjusting the number of simultaneous downloads, or null
+   */
+  @VisibleForTesting
+  HttpUrlConnectionNetworkFetcher(
+      ExecutorService executorService,
+      @Nullable AdaptiveConcurrencyLimiter concurrencyLimiter) {
+    this(executorService, concurrencyLimiter, 0, 1, null);
+  }
+
+  /**
+   * @param chunkSizeBytes the size of the range requested by each connection, or 0 to download
+   *     each image over a single connection
+   * @param chunkExecutor executor running the downloads of the chunks after the first one, or
+   *     null to download them one after the other
+   */
+  private HttpUrlConnectionNetworkFetcher(
+      ExecutorService executorService,
+      @Nullable AdaptiveConcurrencyLimiter concurrencyLimiter,
+      int chunkSizeBytes,
+      int maxParallelChunks,
+      @Nullable Executor chunkExecutor) {
     mExecutorService = executorService;
+    mConcurrencyLimiter = concurrencyLimiter;
+    mChunkSizeBytes = chunkSizeBytes;
+    mMaxParallelChunks = maxParallelChunks;
+    mChunkExecutor = chunkExecutor;
+  }
+
+  /**
+   * @return the limiter adjusting the number of simultaneous downloads, or null if it is fixed
+   */
+  @Nullable
+  public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+    return mConcurrencyLimiter;
   }
 
   @Override
@@ -61,37 +197,195 @@ public class HttpUrlConnectionNetworkFetcher extends BaseNetworkFetcher<FetchSta
 
   @Override
   public void fetch(final FetchState fetchState, final Callback callback) {
+    if (mConcurrencyLimiter != null) {
+      fetchWhenAllowed(fetchState, callback);
+      return;
+    }
+    final long submitTime = SystemClock.uptimeMillis();
+    final AtomicBoolean isClaimed = new AtomicBoolean();
     final Future<?> future = mExecutorService.submit(
         new Runnable() {
           @Override
           public void run() {
-            fetchSync(fetchState, callback);
+            if (isClaimed.compareAndSet(false, true)) {
+              RequestTrace.recordQueueWait(
+                  fetchState.getContext(),
+                  RequestTrace.STAGE_NETWORK_FETCH,
+                  SystemClock.uptimeMillis() - submitTime);
+              fetchSync(fetchState, callback);
+            }
           }
         });
     fetchState.getContext().addCallbacks(
         new BaseProducerContextCallbacks() {
           @Override
           public void onCancellationRequested() {
-            if (future.cancel(false)) {
+            // a fetch that has started sees the cancellation through its response stream, and
+            // ends itself once the callback has had a chance to keep the bytes received so far
+            if (isClaimed.compareAndSet(false, true)) {
+              future.cancel(false);
               callback.onCancellation();
             }
           }
         });
   }
 
+  /**
+   * Queues the fetch until the concurrency limit lets it start. Whichever of the download and the
+   * cancellation claims the fetch first wins, so that a download handed to the executor always
+   * gives its slot back, even if it is cancelled before it runs.
+   */
+  private void fetchWhenAllowed(final FetchState fetchState, final Callback callback) {
+    final long submitTime = SystemClock.uptimeMillis();
+    final AtomicBoolean isClaimed = new AtomicBoolean();
+    final Runnable fetchRunnable = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (isClaimed.compareAndSet(false, true)) {
+            RequestTrace.recordQueueWait(
+                fetchState.getContext(),
+                RequestTrace.STAGE_NETWORK_FETCH,
+                SystemClock.uptimeMillis() - submitTime);
+            fetchSync(fetchState, callback);
+          }
+        } finally {
+          onFetchFinished();
+        }
+      }
+    };
+    synchronized (this) {
+      mPendingFetches.add(fetchRunnable);
+    }
+    fetchState.getContext().addCallbacks(
+        new BaseProducerContextCallbacks() {
+          @Override
+          public void onCancellationRequested() {
+            if (isClaimed.compareAndSet(false, true)) {
+              synchronized (HttpUrlConnectionNetworkFetcher.this) {
+                mPendingFetches.remove(fetchRunnable);
+              }
+              callback.onCancellation();
+            }
+          }
+        });
+    startPendingFetches();
+  }
+
+  private void onFetchFinished() {
+    synchronized (this) {
+      mRunningFetchCount--;
+    }
+    startPendingFetches();
+  }
+
+  private void startPendingFetches() {
+    while (true) {
+      Runnable fetchRunnable;
+      synchronized (this) {
+        if (mPendingFetches.isEmpty() || mRunningFetchCount >= mConcurrencyLimiter.getLimit()) {
+          return;
+        }
+        fetchRunnable = mPendingFetches.poll();
+        mRunningFetchCount++;
+      }
+      mExecutorService.execute(fetchRunnable);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int getPendingFetchCount() {
+    return mPendingFetches.size();
+  }
+
+  @VisibleForTesting
+  synchronized int getRunningFetchCount() {
+    return mRunningFetchCount;
+  }
+
   @VisibleForTesting
   void fetchSync(FetchState fetchState, Callback callback) {
     HttpURLConnection connection = null;
     InputStream is = null;
+    long startTimeMs = 0;
+    long responseLength = -1;
+    boolean isRequestReported = true;
+    if (mConcurrencyLimiter != null) {
+      startTimeMs = SystemClock.uptimeMillis();
+      mConcurrencyLimiter.onRequestStart();
+      isRequestReported = false;
+    }
     try {
-      connection = downloadFrom(fetchState.getUri(), MAX_REDIRECTS);
+      final BytesRange bytesRange = fetchState.getContext().getImageRequest().getBytesRange();
+      final String contentValidator = fetchState.getRequestContentValidator();
+      if (mChunkSizeBytes > 0
+          && (bytesRange == null || bytesRange.to == BytesRange.TO_END_OF_CONTENT)) {
+        final int from = bytesRange == null ? 0 : bytesRange.from;
+        connection = downloadFrom(
+            fetchState.getUri(),
+            new BytesRange(from, from + mChunkSizeBytes - 1),
+            contentValidator,
+            MAX_REDIRECTS);
+        fetchState.setResponseContentValidator(getContentValidator(connection));
+        final int totalLength = getContentRangeTotalLength(connection);
+        if (totalLength > from + mChunkSizeBytes) {
+          is = new ChunkedDownload(
+              fetchState,
+              connection,
+              getContentValidator(connection),
+              from,
+              totalLength).start();
+          if (from > 0) {
+            setPartialResponse(fetchState, new BytesRange(from, BytesRange.TO_END_OF_CONTENT));
+          }
+          responseLength = totalLength - from;
+          callback.onResponse(new CancellableInputStream(is, fetchState), totalLength - from);
+        } else {
+          // the image fits in a single chunk, or the server does not support ranges
+          is = getResponseStream(fetchState, connection);
+          responseLength = connection.getContentLength();
+          callback.onResponse(new CancellableInputStream(is, fetchState), -1);
+        }
+      } else {
+        connection = downloadFrom(
+            fetchState.getUri(),
+            bytesRange,
+            contentValidator,
+            MAX_REDIRECTS);
 
-      if (connection != null) {
-        is = connection.getInputStream();
-        callback.onResponse(is, -1);
+        if (connection != null) {
+          fetchState.setResponseContentValidator(getContentValidator(connection));
+          is = getResponseStream(fetchState, connection);
+          responseLength = connection.getContentLength();
+          callback.onResponse(new CancellableInputStream(is, fetchState), -1);
+        }
+      }
+      if (mConcurrencyLimiter != null) {
+        isRequestReported = true;
+        if (fetchState.isCancelled()) {
+          mConcurrencyLimiter.onRequestIgnored();
+        } else {
+          long endTimeMs = SystemClock.uptimeMillis();
+          mConcurrencyLimiter.onRequestSuccess(
+              startTimeMs,
+              endTimeMs,
+              getNormalizedLatencyMs(endTimeMs - startTimeMs, responseLength));
+        }
       }
     } catch (IOException e) {
-      callback.onFailure(e);
+      if (mConcurrencyLimiter != null) {
+        isRequestReported = true;
+        if (e instanceof SocketTimeoutException) {
+          mConcurrencyLimiter.onRequestDropped(startTimeMs, SystemClock.uptimeMillis());
+        } else {
+          mConcurrencyLimiter.onRequestIgnored();
+        }
+      }
+      if (fetchState.isCancelled()) {
+        callback.onCancellation();
+      } else {
+        callback.onFailure(e);
+      }
     } finally {
       if (is != null) {
         try {
@@ -103,13 +397,48 @@ public class HttpUrlConnectionNetworkFetcher extends BaseNetworkFetcher<FetchSta
       if (connection != null) {
         connection.disconnect();
       }
+      if (!isRequestReported) {
+        // a runtime exception, for instance thrown by the callback
+        mConcurrencyLimiter.onRequestIgnored();
+      }
     }
 
   }
 
-  private HttpURLConnection downloadFrom(Uri uri, int maxRedirects) throws IOException {
+  /**
+   * Gets the latency reported to the concurrency limiter for a download. Past
+   * {@link #LATENCY_REFERENCE_SIZE_BYTES}, the time of a download grows with its size rather than
+   * with the load of the link, so it is scaled down to the time the reference size takes at the
+   * same throughput. Otherwise, a large image would be taken for congestion, and small ones would
+   * set a baseline that large ones can never meet.
+   * @param latencyMs time the download took
+   * @param responseLength size of the response in bytes, or -1 if unknown
+   */
+  @VisibleForTesting
+  static long getNormalizedLatencyMs(long latencyMs, long responseLength) {
+    if (responseLength <= LATENCY_REFERENCE_SIZE_BYTES) {
+      return latencyMs;
+    }
+    return latencyMs * LATENCY_REFERENCE_SIZE_BYTES / responseLength;
+  }
+
+  /**
+   * @param contentValidator validator the content must still have for the server to send the
+   *     bytes range rather than the whole content, or null
+   */
+  private HttpURLConnection downloadFrom(
+      Uri uri,
+      @Nullable BytesRange bytesRange,
+      @Nullable String contentValidator,
+      int maxRedirects) throws IOException {
     HttpURLConnection connection = openConnectionTo(uri);
     connection.setConnectTimeout(mHttpConnectionTimeout);
+    if (bytesRange != null) {
+      connection.setRequestProperty("Range", bytesRange.toHttpRangeHeaderValue());
+      if (contentValidator != null) {
+        connection.setRequestProperty("If-Range", contentValidator);
+      }
+    }
     int responseCode = connection.getResponseCode();
 
     if (isHttpSuccess(responseCode)) {
@@ -123,7 +452,7 @@ public class HttpUrlConnectionNetworkFetcher extends BaseNetworkFetcher<FetchSta
         String originalScheme = uri.getScheme();
 
         if (maxRedirects > 0 && nextUri != null && !nextUri.getScheme().equals(originalScheme)) {
-          return downloadFrom(nextUri, maxRedirects - 1);
+          return downloadFrom(nextUri, bytesRange, contentValidator, maxRedirects - 1);
         } else {
           String message = maxRedirects == 0
               ? error("URL %s follows too many redirects", uri.toString())
@@ -138,6 +467,60 @@ public class HttpUrlConnectionNetworkFetcher extends BaseNetworkFetcher<FetchSta
     }
   }
 
+  private static InputStream getResponseStream(
+      FetchState fetchState,
+      HttpURLConnection connection) throws IOException {
+    if (connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+      BytesRange responseRange =
+          BytesRange.fromContentRangeHeader(connection.getHeaderField("Content-Range"));
+      if (responseRange != null
+          && !(responseRange.from == 0 && responseRange.to == BytesRange.TO_END_OF_CONTENT)) {
+        // Only treat as a partial image if the range is not all of the content
+        setPartialResponse(fetchState, responseRange);
+      }
+    }
+    return connection.getInputStream();
+  }
+
+  private static void setPartialResponse(FetchState fetchState, BytesRange responseRange) {
+    fetchState.setResponseBytesRange(responseRange);
+    fetchState.setOnNewResultStatusFlags(Consumer.IS_PARTIAL_RESULT);
+  }
+
+  /**
+   * @return the strong ETag of the response, else its Last-Modified date, or null if it has
+   *     neither. A weak ETag cannot be used in an "If-Range" header.
+   */
+  @Nullable
+  private static String getContentValidator(HttpURLConnection connection) {
+    String entityTag = connection.getHeaderField("ETag");
+    if (entityTag != null && !entityTag.startsWith("W/")) {
+      return entityTag;
+    }
+    return connection.getHeaderField("Last-Modified");
+  }
+
+  /**
+   * @return the length of the whole content according to the "Content-Range" header of a partial
+   *     response, or -1 if the response is not partial or the length is unknown
+   */
+  private static int getContentRangeTotalLength(HttpURLConnection connection) throws IOException {
+    if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+      return -1;
+    }
+    String header = connection.getHeaderField("Content-Range");
+    int separatorIndex = header == null ? -1 : header.lastIndexOf('/');
+    if (separatorIndex < 0) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(header.substring(separatorIndex + 1).trim());
+    } catch (NumberFormatException nfe) {
+      // the length is "*"
+      return -1;
+    }
+  }
+
   @VisibleForTesting
   static HttpURLConnection openConnectionTo(Uri uri) throws IOException {
     URL url = UriUtil.uriToUrl(uri);
@@ -167,4 +550,294 @@ public class HttpUrlConnectionNetworkFetcher extends BaseNetworkFetcher<FetchSta
     return String.format(Locale.getDefault(), format, args);
   }
 
+  /**
+   * Stream of an image downloaded as several ranges.
+   *
+   * <p> The first chunk is read from the connection that found out the length of the image. The
+   * next ones are downloaded in order by helper threads, or by the thread reading the stream if it
+   * gets to a chunk no helper started yet, so that it never waits for a helper that is not
+   * running. The helpers only download chunks less than the max number of parallel chunks ahead
+   * of the one being read, and stop when they get that far. They are started again as the reading
+   * moves on. If a chunk fails, the read fails once the chunks before it are consumed, which keeps
+   * the bytes before it for a resumable download.
+   *
+   * <p> The chunks are requested with the validator of the first response, if any, so that they
+   * all belong to the same content.
+   */
+  private class ChunkedDownload extends InputStream {
+
+    private final FetchState mFetchState;
+    private final HttpURLConnection mFirstConnection;
+    private final @Nullable String mContentValidator;
+    private final int mFrom;
+    private final int mTotalLength;
+    private final int mChunkCount;
+
+    @GuardedBy("this")
+    private final byte[][] mChunks;
+    @GuardedBy("this")
+    private int mNextUnclaimedChunk;
+    @GuardedBy("this")
+    private int mReadChunk;
+    @GuardedBy("this")
+    private int mHelperCount;
+    @GuardedBy("this")
+    private int mFailedChunk;
+    @GuardedBy("this")
+    private @Nullable IOException mFailure;
+    @GuardedBy("this")
+    private boolean mIsClosed;
+
+    // only used by the thread reading the stream
+    private int mCurrentChunk;
+    private @Nullable InputStream mCurrentStream;
+    private int mCurrentBytesLeft;
+
+    private ChunkedDownload(
+        FetchState fetchState,
+        HttpURLConnection firstConnection,
+        @Nullable String contentValidator,
+        int from,
+        int totalLength) {
+      mFetchState = fetchState;
+      mFirstConnection = firstConnection;
+      mContentValidator = contentValidator;
+      mFrom = from;
+      mTotalLength = totalLength;
+      mChunkCount = (totalLength - from + mChunkSizeBytes - 1) / mChunkSizeBytes;
+      mChunks = new byte[mChunkCount][];
+      mNextUnclaimedChunk = 1;
+      mFailedChunk = mChunkCount;
+    }
+
+    private InputStream start() throws IOException {
+      mCurrentChunk = 0;
+      mCurrentStream = mFirstConnection.getInputStream();
+      mCurrentBytesLeft = getChunkLength(0);
+      startHelpers();
+      return this;
+    }
+
+    private void startHelpers() {
+      if (mChunkExecutor == null) {
+        return;
+      }
+      int helpersToStart;
+      synchronized (this) {
+        helpersToStart =
+            Math.min(mMaxParallelChunks - 1, getClaimableChunkCount()) - mHelperCount;
+        if (helpersToStart <= 0) {
+          return;
+        }
+        mHelperCount += helpersToStart;
+      }
+      for (int i = 0; i < helpersToStart; i++) {
+        mChunkExecutor.execute(
+            new Runnable() {
+              @Override
+              public void run() {
+                downloadUnclaimedChunks();
+              }
+            });
+      }
+    }
+
+    /**
+     * @return the number of chunks that can be claimed without buffering more chunks ahead of the
+     *     one being read than allowed
+     */
+    @GuardedBy("this")
+    private int getClaimableChunkCount() {
+      if (mIsClosed || mFailure != null) {
+        return 0;
+      }
+      return Math.max(
+          Math.min(mChunkCount, mReadChunk + mMaxParallelChunks) - mNextUnclaimedChunk,
+          0);
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] buffer = new byte[1];
+      return read(buffer, 0, 1) < 0 ? -1 : buffer[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      while (mCurrentBytesLeft == 0) {
+        if (mCurrentChunk == mChunkCount - 1) {
+          return -1;
+        }
+        mCurrentChunk++;
+        mCurrentStream = new ByteArrayInputStream(awaitChunk(mCurrentChunk));
+        mCurrentBytesLeft = getChunkLength(mCurrentChunk);
+      }
+      int bytesRead = mCurrentStream.read(buffer, offset, Math.min(length, mCurrentBytesLeft));
+      if (bytesRead < 0) {
+        throw new IOException(
+            error("Range %d of %s ended early", mCurrentChunk, mFetchState.getUri()));
+      }
+      mCurrentBytesLeft -= bytesRead;
+      return bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+      synchronized (this) {
+        mIsClosed = true;
+        for (int i = 0; i < mChunkCount; i++) {
+          mChunks[i] = null;
+        }
+      }
+      mFirstConnection.getInputStream().close();
+    }
+
+    private void downloadUnclaimedChunks() {
+      while (true) {
+        int chunk;
+        synchronized (this) {
+          if (getClaimableChunkCount() == 0) {
+            mHelperCount--;
+            return;
+          }
+          chunk = mNextUnclaimedChunk++;
+        }
+        downloadChunk(chunk);
+      }
+    }
+
+    private byte[] awaitChunk(int chunk) throws IOException {
+      boolean isClaimed = false;
+      synchronized (this) {
+        mReadChunk = chunk;
+        if (mNextUnclaimedChunk == chunk) {
+          mNextUnclaimedChunk++;
+          isClaimed = true;
+        }
+      }
+      startHelpers();
+      if (isClaimed) {
+        downloadChunk(chunk);
+      }
+      synchronized (this) {
+        while (true) {
+          if (mChunks[chunk] != null) {
+            byte[] data = mChunks[chunk];
+            mChunks[chunk] = null;
+            return data;
+          }
+          if (mFailedChunk <= chunk) {
+            throw mFailure;
+          }
+          try {
+            wait();
+          } catch (InterruptedException ie) {
+            throw new InterruptedIOException();
+          }
+        }
+      }
+    }
+
+    private void downloadChunk(int chunk) {
+      byte[] data = null;
+      IOException failure = null;
+      try {
+        if (mFetchState.isCancelled()) {
+          throw new IOException("Cancelled");
+        }
+        data = fetchChunk(chunk);
+      } catch (IOException ioe) {
+        failure = ioe;
+      }
+      synchronized (this) {
+        if (data != null) {
+          if (!mIsClosed) {
+            mChunks[chunk] = data;
+          }
+        } else if (chunk < mFailedChunk) {
+          mFailedChunk = chunk;
+          mFailure = failure;
+        }
+        notifyAll();
+      }
+    }
+
+    private byte[] fetchChunk(int chunk) throws IOException {
+      final int chunkFrom = mFrom + chunk * mChunkSizeBytes;
+      final int chunkLength = getChunkLength(chunk);
+      HttpURLConnection connection = downloadFrom(
+          mFetchState.getUri(),
+          new BytesRange(chunkFrom, chunkFrom + chunkLength - 1),
+          mContentValidator,
+          MAX_REDIRECTS);
+      InputStream is = null;
+      try {
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+          throw new IOException(error(
+              "URL %s returned HTTP code %d to a range request",
+              mFetchState.getUri(),
+              connection.getResponseCode()));
+        }
+        is = connection.getInputStream();
+        byte[] data = new byte[chunkLength];
+        int offset = 0;
+        while (offset < chunkLength) {
+          int bytesRead = is.read(data, offset, chunkLength - offset);
+          if (bytesRead < 0) {
+            throw new IOException(error("Range %d of %s ended early", chunk, mFetchState.getUri()));
+          }
+          offset += bytesRead;
+        }
+        return data;
+      } finally {
+        if (is != null) {
+          is.close();
+        }
+        connection.disconnect();
+      }
+    }
+
+    private int getChunkLength(int chunk) {
+      return Math.min(mChunkSizeBytes, mTotalLength - mFrom - chunk * mChunkSizeBytes);
+    }
+  }
+
+  /**
+   * Response stream that fails once the fetch is cancelled, so that a fetch that has started stops
+   * downloading.
+   */
+  private static class CancellableInputStream extends FilterInputStream {
+
+    private final FetchState mFetchState;
+
+    private CancellableInputStream(InputStream in, FetchState fetchState) {
+      super(in);
+      mFetchState = fetchState;
+    }
+
+    @Override
+    public int read() throws IOException {
+      throwIfCancelled();
+      return super.read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      throwIfCancelled();
+      return super.read(buffer, offset, length);
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+      throwIfCancelled();
+      return super.skip(count);
+    }
+
+    private void throwIfCancelled() throws IOException {
+      if (mFetchState.isCancelled()) {
+        throw new InterruptedIOException("The fetch is cancelled");
+      }
+    }
+  }
+
 }
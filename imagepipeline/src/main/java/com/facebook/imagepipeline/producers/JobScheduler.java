@@ -61,6 +61,8 @@ public class JobScheduler {
   @GuardedBy("this")
   @VisibleForTesting long mJobSubmitTime;
   @GuardedBy("this")
+  @VisibleForTesting long mJobEnqueueTime;
+  @GuardedBy("this")
   @VisibleForTesting long mJobStartTime;
 
   public JobScheduler(Executor executor, JobRunnable jobRunnable, int minimumJobIntervalMs) {
@@ -83,6 +85,7 @@ public class JobScheduler {
     mStatus = 0;
     mJobState = JobState.IDLE;
     mJobSubmitTime = 0;
+    mJobEnqueueTime = 0;
     mJobStartTime = 0;
   }
 
@@ -180,6 +183,9 @@ public class JobScheduler {
   }
 
   private void submitJob() {
+    synchronized (this) {
+      mJobEnqueueTime = SystemClock.uptimeMillis();
+    }
     mExecutor.execute(mDoJobRunnable);
   }
 
@@ -242,4 +248,24 @@ public class JobScheduler {
   public synchronized long getQueuedTime() {
     return mJobStartTime - mJobSubmitTime;
   }
+
+  /**
+   * Gets the part of the queued time during which the currently running job was held back to
+   * respect the minimum interval between jobs.
+   *
+   * <p> The result is only valid if called from {@link JobRunnable#run}.
+   */
+  public synchronized long getDelayedTime() {
+    return mJobEnqueueTime - mJobSubmitTime;
+  }
+
+  /**
+   * Gets the part of the queued time during which the currently running job waited for a thread
+   * of the executor.
+   *
+   * <p> The result is only valid if called from {@link JobRunnable#run}.
+   */
+  public synchronized long getExecutorQueuedTime() {
+    return mJobStartTime - mJobEnqueueTime;
+  }
 }
@@ -123,7 +123,8 @@ public class LocalExifThumbnailProducer implements ThumbnailProducer<EncodedImag
             cancellableProducerRunnable.cancel();
           }
         });
-    mExecutor.execute(cancellableProducerRunnable);
+    ProducerContextExecutor.forContext(mExecutor, producerContext)
+        .execute(cancellableProducerRunnable);
   }
 
   @VisibleForTesting @Nullable ExifInterface getExifInterface(Uri uri) {
@@ -72,7 +72,8 @@ public abstract class LocalFetchProducer implements Producer<EncodedImage> {
             cancellableProducerRunnable.cancel();
           }
         });
-    mExecutor.execute(cancellableProducerRunnable);
+    ProducerContextExecutor.forContext(mExecutor, producerContext)
+        .execute(cancellableProducerRunnable);
   }
 
   /** Creates a memory-backed encoded image from the stream. The stream is closed. */
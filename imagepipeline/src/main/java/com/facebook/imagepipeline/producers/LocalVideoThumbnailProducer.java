@@ -113,7 +113,8 @@ public class LocalVideoThumbnailProducer implements
             cancellableProducerRunnable.cancel();
           }
         });
-    mExecutor.execute(cancellableProducerRunnable);
+    ProducerContextExecutor.forContext(mExecutor, producerContext)
+        .execute(cancellableProducerRunnable);
   }
 
   private static int calculateKind(ImageRequest imageRequest) {
@@ -326,7 +326,8 @@ public abstract class MultiplexProducer<K, T extends Closeable> implements Produ
             producerContext.getLowestPermittedRequestLevel(),
             computeIsPrefetch(),
             computeIsIntermediateResultExpected(),
-            computePriority());
+            computePriority(),
+            producerContext.getRequestTrace());
 
         mForwardingConsumer = new ForwardingConsumer();
         multiplexProducerContext = mMultiplexProducerContext;
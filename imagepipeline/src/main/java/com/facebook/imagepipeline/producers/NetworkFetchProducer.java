@@ -18,6 +18,7 @@ import com.facebook.imagepipeline.common.BytesRange;
 import com.facebook.imagepipeline.image.EncodedImage;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import javax.annotation.Nullable;
 
@@ -27,8 +28,14 @@ import javax.annotation.Nullable;
  * <p> Downloaded bytes may be passed to the consumer as they are downloaded, but not more often
  * than {@link #TIME_BETWEEN_PARTIAL_RESULTS_MS}.
 
+ * <p> If resumable downloads are enabled, the bytes received by a download that is cancelled or
+ * fails are passed to the consumer with {@link Consumer#IS_RESUMABLE_PREFIX} before the
+ * cancellation or failure, so that the partial disk cache can keep them and the download can be
+ * resumed with a range request.
+ *
  * <p>Clients should provide an instance of {@link NetworkFetcher} to make use of their networking
- * stack. Use {@link HttpUrlConnectionNetworkFetcher} as a model.
+ * stack. Use {@link HttpUrlConnectionNetworkFetcher} as a model. Fetchers that read responses
+ * without blocking a thread can push the body through {@link NetworkFetcher.StreamingCallback}.
  */
 public class NetworkFetchProducer implements Producer<EncodedImage> {
 
@@ -46,49 +53,51 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
   private final PooledByteBufferFactory mPooledByteBufferFactory;
   private final ByteArrayPool mByteArrayPool;
   private final NetworkFetcher mNetworkFetcher;
+  private final boolean mResumableDownloadsEnabled;
 
   public NetworkFetchProducer(
       PooledByteBufferFactory pooledByteBufferFactory,
       ByteArrayPool byteArrayPool,
       NetworkFetcher networkFetcher) {
+    this(pooledByteBufferFactory, byteArrayPool, networkFetcher, false);
+  }
+
+  /**
+   * @param resumableDownloadsEnabled whether the bytes received by downloads that are cancelled or
+   *     fail should be passed on to resume the downloads later. Only useful if a partial disk
+   *     cache is further down the sequence.
+   */
+  public NetworkFetchProducer(
+      PooledByteBufferFactory pooledByteBufferFactory,
+      ByteArrayPool byteArrayPool,
+      NetworkFetcher networkFetcher,
+      boolean resumableDownloadsEnabled) {
     mPooledByteBufferFactory = pooledByteBufferFactory;
     mByteArrayPool = byteArrayPool;
     mNetworkFetcher = networkFetcher;
+    mResumableDownloadsEnabled = resumableDownloadsEnabled;
   }
 
   @Override
   public void produceResults(Consumer<EncodedImage> consumer, ProducerContext context) {
     context.getListener()
         .onProducerStart(context.getId(), PRODUCER_NAME);
+    RequestTrace.recordStageStart(context, RequestTrace.STAGE_NETWORK_FETCH);
     final FetchState fetchState = mNetworkFetcher.createFetchState(consumer, context);
-    mNetworkFetcher.fetch(
-        fetchState, new NetworkFetcher.Callback() {
-          @Override
-          public void onResponse(InputStream response, int responseLength) throws IOException {
-            NetworkFetchProducer.this.onResponse(fetchState, response, responseLength);
-          }
-
-          @Override
-          public void onFailure(Throwable throwable) {
-            NetworkFetchProducer.this.onFailure(fetchState, throwable);
-          }
-
-          @Override
-          public void onCancellation() {
-            NetworkFetchProducer.this.onCancellation(fetchState);
-          }
-        });
+    mNetworkFetcher.fetch(fetchState, new FetchCallback(fetchState));
   }
 
   protected void onResponse(
       FetchState fetchState, InputStream responseData, int responseContentLength)
       throws IOException {
+    fetchState.setResponseContentLength(responseContentLength);
     final PooledByteBufferOutputStream pooledOutputStream;
     if (responseContentLength > 0) {
       pooledOutputStream = mPooledByteBufferFactory.newOutputStream(responseContentLength);
     } else {
       pooledOutputStream = mPooledByteBufferFactory.newOutputStream();
     }
+    final boolean isResumable = isResumable(fetchState);
     final byte[] ioArray = mByteArrayPool.get(READ_SIZE);
     try {
       int length;
@@ -99,15 +108,52 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
           float progress = calculateProgress(pooledOutputStream.size(), responseContentLength);
           fetchState.getConsumer().onProgressUpdate(progress);
         }
+        if (isResumable && fetchState.isCancelled()) {
+          // no need to wait for the fetcher to give up, the rest will be fetched on the next try
+          handleResumablePrefix(pooledOutputStream, fetchState);
+          onCancellation(fetchState);
+          return;
+        }
       }
       mNetworkFetcher.onFetchCompletion(fetchState, pooledOutputStream.size());
       handleFinalResult(pooledOutputStream, fetchState);
+    } catch (IOException ioe) {
+      if (isResumable) {
+        handleResumablePrefix(pooledOutputStream, fetchState);
+      }
+      throw ioe;
     } finally {
       mByteArrayPool.release(ioArray);
       pooledOutputStream.close();
     }
   }
 
+  /**
+   * Copies bytes pushed by the fetcher into the output stream, without an intermediate array if
+   * the buffer has one.
+   */
+  private void write(ByteBuffer bytes, PooledByteBufferOutputStream pooledOutputStream)
+      throws IOException {
+    if (bytes.hasArray()) {
+      pooledOutputStream.write(
+          bytes.array(),
+          bytes.arrayOffset() + bytes.position(),
+          bytes.remaining());
+      bytes.position(bytes.limit());
+      return;
+    }
+    final byte[] ioArray = mByteArrayPool.get(READ_SIZE);
+    try {
+      while (bytes.hasRemaining()) {
+        int length = Math.min(bytes.remaining(), READ_SIZE);
+        bytes.get(ioArray, 0, length);
+        pooledOutputStream.write(ioArray, 0, length);
+      }
+    } finally {
+      mByteArrayPool.release(ioArray);
+    }
+  }
+
   protected static float calculateProgress(int downloaded, int total) {
     if (total > 0) {
       return (float) downloaded / total;
@@ -139,20 +185,57 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
           pooledOutputStream,
           fetchState.getOnNewResultStatusFlags(),
           fetchState.getResponseBytesRange(),
+          fetchState.getResponseContentValidator(),
+          getExpectedSize(fetchState),
           fetchState.getConsumer());
     }
   }
 
+  /**
+   * @return the size of the complete image, if the response is for all of it and its length is
+   *     known
+   */
+  private static int getExpectedSize(FetchState fetchState) {
+    return fetchState.getResponseBytesRange() == null && fetchState.getResponseContentLength() > 0
+        ? fetchState.getResponseContentLength()
+        : EncodedImage.UNKNOWN_EXPECTED_SIZE;
+  }
+
   protected void handleFinalResult(
       PooledByteBufferOutputStream pooledOutputStream, FetchState fetchState) {
     Map<String, String> extraMap = getExtraMap(fetchState, pooledOutputStream.size());
     ProducerListener listener = fetchState.getListener();
     listener.onProducerFinishWithSuccess(fetchState.getId(), PRODUCER_NAME, extraMap);
     listener.onUltimateProducerReached(fetchState.getId(), PRODUCER_NAME, true);
+    RequestTrace.recordByteCount(
+        fetchState.getContext(), RequestTrace.STAGE_NETWORK_FETCH, pooledOutputStream.size());
+    RequestTrace.recordStageFinish(
+        fetchState.getContext(), RequestTrace.STAGE_NETWORK_FETCH, RequestTrace.STATUS_SUCCESS);
     notifyConsumer(
         pooledOutputStream,
         Consumer.IS_LAST | fetchState.getOnNewResultStatusFlags(),
         fetchState.getResponseBytesRange(),
+        fetchState.getResponseContentValidator(),
+        EncodedImage.UNKNOWN_EXPECTED_SIZE,
+        fetchState.getConsumer());
+  }
+
+  /**
+   * Passes the bytes received so far on, so that they can be kept to resume the download.
+   */
+  private void handleResumablePrefix(
+      PooledByteBufferOutputStream pooledOutputStream, FetchState fetchState) {
+    if (pooledOutputStream.size() == 0) {
+      return;
+    }
+    notifyConsumer(
+        pooledOutputStream,
+        fetchState.getOnNewResultStatusFlags()
+            | Consumer.IS_PARTIAL_RESULT
+            | Consumer.IS_RESUMABLE_PREFIX,
+        fetchState.getResponseBytesRange(),
+        fetchState.getResponseContentValidator(),
+        EncodedImage.UNKNOWN_EXPECTED_SIZE,
         fetchState.getConsumer());
   }
 
@@ -160,6 +243,8 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
       PooledByteBufferOutputStream pooledOutputStream,
       @Consumer.Status int status,
       @Nullable BytesRange responseBytesRange,
+      @Nullable String contentValidator,
+      int expectedSize,
       Consumer<EncodedImage> consumer) {
     CloseableReference<PooledByteBuffer> result =
         CloseableReference.of(pooledOutputStream.toByteBuffer());
@@ -167,6 +252,8 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
     try {
       encodedImage = new EncodedImage(result);
       encodedImage.setBytesRange(responseBytesRange);
+      encodedImage.setContentValidator(contentValidator);
+      encodedImage.setExpectedSize(expectedSize);
       encodedImage.parseMetaData();
       consumer.onNewResult(encodedImage, status);
     } finally {
@@ -180,15 +267,26 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
         .onProducerFinishWithFailure(fetchState.getId(), PRODUCER_NAME, e, null);
     fetchState.getListener()
         .onUltimateProducerReached(fetchState.getId(), PRODUCER_NAME, false);
+    RequestTrace.recordStageFinish(
+        fetchState.getContext(), RequestTrace.STAGE_NETWORK_FETCH, RequestTrace.STATUS_FAILURE);
     fetchState.getConsumer().onFailure(e);
   }
 
   private void onCancellation(FetchState fetchState) {
     fetchState.getListener()
         .onProducerFinishWithCancellation(fetchState.getId(), PRODUCER_NAME, null);
+    RequestTrace.recordStageFinish(
+        fetchState.getContext(),
+        RequestTrace.STAGE_NETWORK_FETCH,
+        RequestTrace.STATUS_CANCELLATION);
     fetchState.getConsumer().onCancellation();
   }
 
+  private boolean isResumable(FetchState fetchState) {
+    return mResumableDownloadsEnabled
+        && fetchState.getContext().getImageRequest().isDiskCacheEnabled();
+  }
+
   private boolean shouldPropagateIntermediateResults(FetchState fetchState) {
     if (!fetchState.getContext().isIntermediateResultExpected()) {
       return false;
@@ -203,4 +301,88 @@ public class NetworkFetchProducer implements Producer<EncodedImage> {
     }
     return mNetworkFetcher.getExtraMap(fetchState, byteSize);
   }
+
+  /**
+   * Callback of one fetch. The response is either read from the stream handed over by the
+   * fetcher, or pushed by it into the output stream held here.
+   */
+  private class FetchCallback implements NetworkFetcher.StreamingCallback {
+
+    private final FetchState mFetchState;
+    private @Nullable PooledByteBufferOutputStream mPooledOutputStream;
+    private int mResponseLength;
+
+    private FetchCallback(FetchState fetchState) {
+      mFetchState = fetchState;
+    }
+
+    @Override
+    public void onResponse(InputStream response, int responseLength) throws IOException {
+      NetworkFetchProducer.this.onResponse(mFetchState, response, responseLength);
+    }
+
+    @Override
+    public void onFailure(Throwable throwable) {
+      releaseStreamedResponse();
+      NetworkFetchProducer.this.onFailure(mFetchState, throwable);
+    }
+
+    @Override
+    public void onCancellation() {
+      releaseStreamedResponse();
+      NetworkFetchProducer.this.onCancellation(mFetchState);
+    }
+
+    @Override
+    public void onResponseStart(int responseLength) {
+      mResponseLength = responseLength;
+      mFetchState.setResponseContentLength(responseLength);
+      mPooledOutputStream = responseLength > 0
+          ? mPooledByteBufferFactory.newOutputStream(responseLength)
+          : mPooledByteBufferFactory.newOutputStream();
+    }
+
+    @Override
+    public void onResponseBytes(ByteBuffer bytes) throws IOException {
+      if (mPooledOutputStream == null || !bytes.hasRemaining()) {
+        return;
+      }
+      write(bytes, mPooledOutputStream);
+      maybeHandleIntermediateResult(mPooledOutputStream, mFetchState);
+      mFetchState.getConsumer().onProgressUpdate(
+          calculateProgress(mPooledOutputStream.size(), mResponseLength));
+    }
+
+    @Override
+    public void onResponseEnd() {
+      if (mPooledOutputStream == null) {
+        return;
+      }
+      try {
+        mNetworkFetcher.onFetchCompletion(mFetchState, mPooledOutputStream.size());
+        handleFinalResult(mPooledOutputStream, mFetchState);
+      } finally {
+        mPooledOutputStream.close();
+        mPooledOutputStream = null;
+      }
+    }
+
+    /**
+     * Closes the output stream of a response that did not complete, passing its bytes on first if
+     * the download can be resumed.
+     */
+    private void releaseStreamedResponse() {
+      if (mPooledOutputStream == null) {
+        return;
+      }
+      try {
+        if (isResumable(mFetchState)) {
+          handleResumablePrefix(mPooledOutputStream, mFetchState);
+        }
+      } finally {
+        mPooledOutputStream.close();
+        mPooledOutputStream = null;
+      }
+    }
+  }
 }
@@ -10,6 +10,7 @@ package com.facebook.imagepipeline.producers;
 import com.facebook.imagepipeline.image.EncodedImage;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import javax.annotation.Nullable;
 
@@ -53,6 +54,38 @@ public interface NetworkFetcher<FETCH_STATE extends FetchState> {
     void onCancellation();
   }
 
+  /**
+   * Callback for fetchers that read the response without blocking a thread, which push the body
+   * as it arrives instead of handing over a stream to read it from. The network fetch producer
+   * copies the body straight into the buffer of the image.
+   *
+   * <p> The callback given to {@link #fetch} implements this interface if the producer supports
+   * it. Calls for one fetch must not overlap. Once {@link #onResponseStart} is called, the fetch
+   * ends with a call to {@link #onResponseEnd}, {@link #onFailure} or {@link #onCancellation}.
+   */
+  interface StreamingCallback extends Callback {
+
+    /**
+     * Called once the response is received, before any bytes of its body.
+     *
+     * @param responseLength the length of the body if known, -1 otherwise
+     */
+    void onResponseStart(int responseLength);
+
+    /**
+     * Called with the next bytes of the body. They are consumed before returning, so the buffer
+     * can be reused.
+     *
+     * @param bytes the bytes between the position and the limit of the buffer
+     */
+    void onResponseBytes(ByteBuffer bytes) throws IOException;
+
+    /**
+     * Called once the whole body was passed to {@link #onResponseBytes}.
+     */
+    void onResponseEnd();
+  }
+
   /**
    * Creates a new instance of the {@link FetchState}-derived object used to store state.
    *
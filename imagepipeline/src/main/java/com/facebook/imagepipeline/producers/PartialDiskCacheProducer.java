@@ -29,6 +29,7 @@ import com.facebook.imagepipeline.request.ImageRequestBuilder;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.CancellationException;
@@ -44,12 +45,21 @@ import javax.annotation.Nullable;
  *
  * <p>When the final result comes from the input producer, the two parts are stitched back together
  * and returned as a whole.
+ *
+ * <p>Results flagged with {@link Consumer#IS_RESUMABLE_PREFIX}, the bytes received by a download
+ * that is cancelled or fails, are appended to the cached part instead of being passed on.
+ *
+ * <p>The validator of the content the cached part belongs to, such as its ETag, is cached next to
+ * it and sent with the request for the remainder. If the content changed, the server sends it
+ * whole and the cached part is dropped.
  */
 public class PartialDiskCacheProducer implements Producer<EncodedImage> {
   public static final String PRODUCER_NAME = "PartialDiskCacheProducer";
   public static final String EXTRA_CACHED_VALUE_FOUND = ProducerConstants.EXTRA_CACHED_VALUE_FOUND;
   public static final String ENCODED_IMAGE_SIZE = ProducerConstants.ENCODED_IMAGE_SIZE;
 
+  private static final Charset CONTENT_VALIDATOR_CHARSET = Charset.forName("UTF-8");
+
   private final BufferedDiskCache mDefaultBufferedDiskCache;
   private final CacheKeyFactory mCacheKeyFactory;
   private final PooledByteBufferFactory mPooledByteBufferFactory;
@@ -85,12 +95,20 @@ public class PartialDiskCacheProducer implements Producer<EncodedImage> {
         imageRequest,
         uriForPartialCacheKey,
         producerContext.getCallerContext());
+    final CacheKey contentValidatorCacheKey = mCacheKeyFactory.getEncodedCacheKey(
+        imageRequest,
+        createUriForContentValidatorCacheKey(imageRequest),
+        producerContext.getCallerContext());
     final AtomicBoolean isCancelled = new AtomicBoolean(false);
 
     final Task<EncodedImage> diskLookupTask =
         mDefaultBufferedDiskCache.get(partialImageCacheKey, isCancelled);
-    final Continuation<EncodedImage, Void> continuation =
-        onFinishDiskReads(consumer, producerContext, partialImageCacheKey);
+    final Continuation<EncodedImage, Void> continuation = onFinishDiskReads(
+        consumer,
+        producerContext,
+        partialImageCacheKey,
+        contentValidatorCacheKey,
+        isCancelled);
 
     diskLookupTask.continueWith(continuation);
     subscribeTaskForRequestCancellation(isCancelled, producerContext);
@@ -99,7 +117,9 @@ public class PartialDiskCacheProducer implements Producer<EncodedImage> {
   private Continuation<EncodedImage, Void> onFinishDiskReads(
       final Consumer<EncodedImage> consumer,
       final ProducerContext producerContext,
-      final CacheKey partialImageCacheKey) {
+      final CacheKey partialImageCacheKey,
+      final CacheKey contentValidatorCacheKey,
+      final AtomicBoolean isCancelled) {
     final String requestId = producerContext.getId();
     final ProducerListener listener = producerContext.getListener();
     return new Continuation<EncodedImage, Void>() {
@@ -111,7 +131,12 @@ public class PartialDiskCacheProducer implements Producer<EncodedImage> {
           consumer.onCancellation();
         } else if (task.isFaulted()) {
           listener.onProducerFinishWithFailure(requestId, PRODUCER_NAME, task.getError(), null);
-          startInputProducer(consumer, producerContext, partialImageCacheKey, null);
+          startInputProducer(
+              consumer,
+              producerContext,
+              partialImageCacheKey,
+              contentValidatorCacheKey,
+              null);
         } else {
           EncodedImage cachedReference = task.getResult();
           if (cachedReference != null) {
@@ -138,19 +163,41 @@ public class PartialDiskCacheProducer implements Producer<EncodedImage> {
                   .build();
               final SettableProducerContext contextForRemainingRequest =
                   new SettableProducerContext(remainingRequest, producerContext);
-
-              startInputProducer(
-                  consumer,
-                  contextForRemainingRequest,
-                  partialImageCacheKey,
-                  cachedReference);
+              final EncodedImage partialImage = cachedReference;
+
+              // the remainder has to be of the same content as the cached part
+              mDefaultBufferedDiskCache.get(contentValidatorCacheKey, isCancelled).continueWith(
+                  new Continuation<EncodedImage, Void>() {
+                    @Override
+                    public Void then(Task<EncodedImage> validatorTask) throws Exception {
+                      if (isTaskCancelled(validatorTask)) {
+                        partialImage.close();
+                        consumer.onCancellation();
+                        return null;
+                      }
+                      contextForRemainingRequest.setContentValidator(
+                          readContentValidator(validatorTask));
+                      startInputProducer(
+                          consumer,
+                          contextForRemainingRequest,
+                          partialImageCacheKey,
+                          contentValidatorCacheKey,
+                          partialImage);
+                      return null;
+                    }
+                  });
             }
           } else {
             listener.onProducerFinishWithSuccess(
                 requestId,
                 PRODUCER_NAME,
                 getExtraMap(listener, requestId, false, 0));
-            startInputProducer(consumer, producerContext, partialImageCacheKey, cachedReference);
+            startInputProducer(
+                consumer,
+                producerContext,
+                partialImageCacheKey,
+                contentValidatorCacheKey,
+                cachedReference);
           }
         }
         return null;
@@ -162,11 +209,13 @@ public class PartialDiskCacheProducer implements Producer<EncodedImage> {
       Consumer<EncodedImage> consumerOfPartialDiskCacheProducer,
       ProducerContext producerContext,
       CacheKey partialImageCacheKey,
+      CacheKey contentValidatorCacheKey,
       @Nullable EncodedImage partialResultFromCache) {
     Consumer<EncodedImage> consumer = new PartialDiskCacheConsumer(
         consumerOfPartialDiskCacheProducer,
         mDefaultBufferedDiskCache,
         partialImageCacheKey,
+        contentValidatorCacheKey,
         mPooledByteBufferFactory,
         mByteArrayPool,
         partialResultFromCache);
@@ -174,6 +223,29 @@ public class PartialDiskCacheProducer implements Producer<EncodedImage> {
     mInputProducer.produceResults(consumer, producerContext);
   }
 
+  /**
+   * @return the content validator read from the cache, or null if none could be read
+   */
+  @Nullable
+  private static String readContentValidator(Task<EncodedImage> task) {
+    if (task.isFaulted() || task.getResult() == null) {
+      return null;
+    }
+    EncodedImage encodedValidator = task.getResult();
+    CloseableReference<PooledByteBuffer> bufferRef = encodedValidator.getByteBufferRef();
+    try {
+      if (bufferRef == null) {
+        return null;
+      }
+      byte[] bytes = new byte[bufferRef.get().size()];
+      bufferRef.get().read(0, bytes, 0, bytes.length);
+      return new String(bytes, CONTENT_VALIDATOR_CHARSET);
+    } finally {
+      CloseableReference.closeSafely(bufferRef);
+      encodedValidator.close();
+    }
+  }
+
   private static boolean isTaskCancelled(Task<?> task) {
     return task.isCancelled() ||
         (task.isFaulted() && task.getError() instanceof CancellationException);
@@ -220,6 +292,12 @@ public class PartialDiskCacheProducer implements Producer<EncodedImage> {
         .build();
   }
 
+  private static Uri createUriForContentValidatorCacheKey(ImageRequest imageRequest) {
+    return imageRequest.getSourceUri().buildUpon()
+        .appendQueryParameter("fresco_partial_validator", "true")
+        .build();
+  }
+
   /**
    * Consumer that consumes results from next producer in the sequence.
    *
@@ -236,6 +314,7 @@ public class PartialDiskCacheProducer implements Producer<EncodedImage> {
 
     private final BufferedDiskCache mDefaultBufferedDiskCache;
     private final CacheKey mPartialImageCacheKey;
+    private final CacheKey mContentValidatorCacheKey;
     private final PooledByteBufferFactory mPooledByteBufferFactory;
     private final ByteArrayPool mByteArrayPool;
     private final @Nullable EncodedImage mPartialEncodedImageFromCache;
@@ -244,12 +323,14 @@ public class PartialDiskCacheProducer implements Producer<EncodedImage> {
         final Consumer<EncodedImage> consumer,
         final BufferedDiskCache defaultBufferedDiskCache,
         final CacheKey partialImageCacheKey,
+        final CacheKey contentValidatorCacheKey,
         final PooledByteBufferFactory pooledByteBufferFactory,
         final ByteArrayPool byteArrayPool,
         final @Nullable EncodedImage partialEncodedImageFromCache) {
       super(consumer);
       mDefaultBufferedDiskCache = defaultBufferedDiskCache;
       mPartialImageCacheKey = partialImageCacheKey;
+      mContentValidatorCacheKey = contentValidatorCacheKey;
       mPooledByteBufferFactory = pooledByteBufferFactory;
       mByteArrayPool = byteArrayPool;
       mPartialEncodedImageFromCache = partialEncodedImageFromCache;
@@ -258,6 +339,9 @@ public class PartialDiskCacheProducer implements Producer<EncodedImage> {
     @Override
     public void onNewResultImpl(EncodedImage newResult, @Status int status) {
       if (isNotLast(status)) {
+        if (statusHasFlag(status, IS_RESUMABLE_PREFIX)) {
+          storeResumablePrefix(newResult);
+        }
         // TODO 19247361 Consider merging of non-final results
         return;
       }
@@ -276,15 +360,95 @@ public class PartialDiskCacheProducer implements Producer<EncodedImage> {
           mPartialEncodedImageFromCache.close();
         }
 
-        mDefaultBufferedDiskCache.remove(mPartialImageCacheKey);
+        removePartialImage();
       } else if (statusHasFlag(status, IS_PARTIAL_RESULT) && isLast(status)) {
-        mDefaultBufferedDiskCache.put(mPartialImageCacheKey, newResult);
+        putPartialImage(newResult);
         getConsumer().onNewResult(newResult, status);
       } else {
+        if (mPartialEncodedImageFromCache != null) {
+          // the server ignored the range request, or the content changed, and sent the whole image
+          mPartialEncodedImageFromCache.close();
+          removePartialImage();
+        }
         getConsumer().onNewResult(newResult, status);
       }
     }
 
+    @Override
+    protected void onFailureImpl(Throwable t) {
+      EncodedImage.closeSafely(mPartialEncodedImageFromCache);
+      super.onFailureImpl(t);
+    }
+
+    @Override
+    protected void onCancellationImpl() {
+      EncodedImage.closeSafely(mPartialEncodedImageFromCache);
+      super.onCancellationImpl();
+    }
+
+    /**
+     * Stores the bytes received by a download that did not complete, appended to the ones
+     * already cached, so that the next request for the image only fetches the remainder.
+     */
+    private void storeResumablePrefix(EncodedImage prefix) {
+      final BytesRange prefixRange = prefix.getBytesRange();
+      if (mPartialEncodedImageFromCache == null || prefixRange == null) {
+        // nothing was cached, or the server sent the whole content because it changed or because
+        // it ignores ranges: the cached bytes may not belong to the same content
+        putPartialImage(prefix);
+        return;
+      }
+      if (prefixRange.from == 0) {
+        // the download started from the first byte, only keep it if it got further
+        if (prefix.getSize() > mPartialEncodedImageFromCache.getSize()) {
+          putPartialImage(prefix);
+        }
+        return;
+      }
+      EncodedImage mergedImage = null;
+      CloseableReference<PooledByteBuffer> mergedRef = null;
+      try {
+        final PooledByteBufferOutputStream pooledOutputStream =
+            merge(mPartialEncodedImageFromCache, prefix);
+        mergedRef = CloseableReference.of(pooledOutputStream.toByteBuffer());
+        mergedImage = new EncodedImage(mergedRef);
+        mergedImage.setContentValidator(prefix.getContentValidator());
+        putPartialImage(mergedImage);
+      } catch (IOException e) {
+        FLog.e(PRODUCER_NAME, "Error while merging resumable image data", e);
+      } finally {
+        EncodedImage.closeSafely(mergedImage);
+        CloseableReference.closeSafely(mergedRef);
+      }
+    }
+
+    /**
+     * Caches the partial image, and the validator of its content next to it.
+     */
+    private void putPartialImage(EncodedImage partialImage) {
+      mDefaultBufferedDiskCache.put(mPartialImageCacheKey, partialImage);
+      final String contentValidator = partialImage.getContentValidator();
+      if (contentValidator == null) {
+        mDefaultBufferedDiskCache.remove(mContentValidatorCacheKey);
+        return;
+      }
+      CloseableReference<PooledByteBuffer> validatorRef = CloseableReference.of(
+          mPooledByteBufferFactory.newByteBuffer(
+              contentValidator.getBytes(CONTENT_VALIDATOR_CHARSET)));
+      EncodedImage encodedValidator = new EncodedImage(validatorRef);
+      try {
+        mDefaultBufferedDiskCache.put(mContentValidatorCacheKey, encodedValidator);
+      } finally {
+        encodedValidator.close();
+        CloseableReference.closeSafely(validatorRef);
+      }
+    }
+
+    private void removePartialImage() {
+      mDefaultBufferedDiskCache.remove(mPartialImageCacheKey);
+      mDefaultBufferedDiskCache.remove(mContentValidatorCacheKey);
+    }
+
     private PooledByteBufferOutputStream merge(EncodedImage initialData, EncodedImage remainingData)
         throws IOException {
       final int totalLength = remainingData.getSize() + remainingData.getBytesRange().from;
@@ -0,0 +1,383 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import android.graphics.Bitmap;
+import android.media.ExifInterface;
+import bolts.Continuation;
+import bolts.Task;
+import com.facebook.cache.common.CacheKey;
+import com.facebook.common.internal.ImmutableMap;
+import com.facebook.common.internal.VisibleForTesting;
+import com.facebook.common.logging.FLog;
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.memory.PooledByteBufferFactory;
+import com.facebook.common.memory.PooledByteBufferOutputStream;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.imageformat.DefaultImageFormats;
+import com.facebook.imagepipeline.cache.BufferedDiskCache;
+import com.facebook.imagepipeline.cache.CacheKeyFactory;
+import com.facebook.imagepipeline.common.ImageDecodeOptions;
+import com.facebook.imagepipeline.decoder.ImageDecoder;
+import com.facebook.imagepipeline.image.CloseableImage;
+import com.facebook.imagepipeline.image.CloseableStaticBitmap;
+import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.image.ImmutableQualityInfo;
+import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.imagepipeline.request.Postprocessor;
+import com.facebook.imagepipeline.request.RepeatedPostprocessor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Disk cache producer for the results of postprocessors.
+ *
+ * <p>This producer looks in a dedicated disk cache for the result of the postprocessor of the
+ * request, keyed by {@link Postprocessor#getPostprocessorCacheKey()}. If the result is found, it
+ * is decoded and passed to the consumer, and neither the source image nor the postprocessor are
+ * requested. If it is not found, the request is passed to the next producer in the sequence, and
+ * the final postprocessed bitmap is encoded losslessly as PNG and written to the disk cache in
+ * the background.
+ *
+ * <p>The rotation angle and the EXIF orientation of the postprocessed bitmap are stored in a
+ * private ancillary chunk of the PNG, right after its header, so that the cached result is
+ * displayed with the same orientation as the original one.
+ *
+ * <p>Results of {@link RepeatedPostprocessor}s change over time, and are not cached on disk.
+ */
+public class PostprocessedBitmapDiskCacheProducer
+    implements Producer<CloseableReference<CloseableImage>> {
+
+  public static final String PRODUCER_NAME = "PostprocessedBitmapDiskCacheProducer";
+  @VisibleForTesting static final String VALUE_FOUND = "cached_value_found";
+
+  private static final Class<?> TAG = PostprocessedBitmapDiskCacheProducer.class;
+  private static final int PNG_QUALITY = 100;
+
+  /** Length of the PNG signature and of the IHDR chunk, which start every PNG */
+  private static final int PNG_HEADER_LENGTH = 8 + 12 + 13;
+  /** Ancillary, private and safe-to-copy chunk type for the orientation of the bitmap */
+  private static final byte[] ORIENTATION_CHUNK_TYPE = {'f', 'r', 'O', 't'};
+  private static final int ORIENTATION_CHUNK_DATA_LENGTH = 8;
+  private static final int ORIENTATION_CHUNK_LENGTH = 12 + ORIENTATION_CHUNK_DATA_LENGTH;
+  private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+  private final BufferedDiskCache mDiskCache;
+  private final CacheKeyFactory mCacheKeyFactory;
+  private final ImageDecoder mImageDecoder;
+  private final PooledByteBufferFactory mPooledByteBufferFactory;
+  private final Executor mExecutor;
+  private final Producer<CloseableReference<CloseableImage>> mInputProducer;
+
+  /**
+   * @param diskCache the disk cache of the postprocessed bitmaps
+   * @param executor the executor to decode and encode the postprocessed bitmaps on
+   */
+  public PostprocessedBitmapDiskCacheProducer(
+      BufferedDiskCache diskCache,
+      CacheKeyFactory cacheKeyFactory,
+      ImageDecoder imageDecoder,
+      PooledByteBufferFactory pooledByteBufferFactory,
+      Executor executor,
+      Producer<CloseableReference<CloseableImage>> inputProducer) {
+    mDiskCache = diskCache;
+    mCacheKeyFactory = cacheKeyFactory;
+    mImageDecoder = imageDecoder;
+    mPooledByteBufferFactory = pooledByteBufferFactory;
+    mExecutor = executor;
+    mInputProducer = inputProducer;
+  }
+
+  @Override
+  public void produceResults(
+      final Consumer<CloseableReference<CloseableImage>> consumer,
+      final ProducerContext producerContext) {
+    final ImageRequest imageRequest = producerContext.getImageRequest();
+    final Postprocessor postprocessor = imageRequest.getPostprocessor();
+    if (postprocessor == null
+        || postprocessor.getPostprocessorCacheKey() == null
+        || postprocessor instanceof RepeatedPostprocessor
+        || !imageRequest.isDiskCacheEnabled()) {
+      mInputProducer.produceResults(consumer, producerContext);
+      return;
+    }
+
+    producerContext.getListener().onProducerStart(producerContext.getId(), PRODUCER_NAME);
+    final CacheKey cacheKey = mCacheKeyFactory.getPostprocessedBitmapCacheKey(
+        imageRequest,
+        producerContext.getCallerContext());
+    final AtomicBoolean isCancelled = new AtomicBoolean(false);
+    mDiskCache.get(cacheKey, isCancelled).continueWith(
+        onFinishDiskRead(consumer, producerContext, cacheKey),
+        ProducerContextExecutor.forContext(mExecutor, producerContext));
+    producerContext.addCallbacks(
+        new BaseProducerContextCallbacks() {
+          @Override
+          public void onCancellationRequested() {
+            isCancelled.set(true);
+          }
+        });
+  }
+
+  private Continuation<EncodedImage, Void> onFinishDiskRead(
+      final Consumer<CloseableReference<CloseableImage>> consumer,
+      final ProducerContext producerContext,
+      final CacheKey cacheKey) {
+    final String requestId = producerContext.getId();
+    final ProducerListener listener = producerContext.getListener();
+    return new Continuation<EncodedImage, Void>() {
+      @Override
+      public Void then(Task<EncodedImage> task) throws Exception {
+        if (task.isCancelled()
+            || (task.isFaulted() && task.getError() instanceof CancellationException)) {
+          listener.onProducerFinishWithCancellation(requestId, PRODUCER_NAME, null);
+          consumer.onCancellation();
+          return null;
+        }
+        if (task.isFaulted()) {
+          listener.onProducerFinishWithFailure(requestId, PRODUCER_NAME, task.getError(), null);
+          mInputProducer.produceResults(
+              new DiskCacheWriteConsumer(consumer, cacheKey),
+              producerContext);
+          return null;
+        }
+        final CloseableReference<CloseableImage> cachedReference =
+            decode(task.getResult(), producerContext.getImageRequest());
+        if (cachedReference != null) {
+          listener.onProducerFinishWithSuccess(
+              requestId,
+              PRODUCER_NAME,
+              getExtraMap(listener, requestId, true));
+          listener.onUltimateProducerReached(requestId, PRODUCER_NAME, true);
+          consumer.onProgressUpdate(1f);
+          consumer.onNewResult(cachedReference, Consumer.IS_LAST);
+          cachedReference.close();
+        } else {
+          listener.onProducerFinishWithSuccess(
+              requestId,
+              PRODUCER_NAME,
+              getExtraMap(listener, requestId, false));
+          mInputProducer.produceResults(
+              new DiskCacheWriteConsumer(consumer, cacheKey),
+              producerContext);
+        }
+        return null;
+      }
+    };
+  }
+
+  /**
+   * Decodes the postprocessed bitmap read from the disk cache, and closes the encoded image.
+   * @return the decoded image, or null if there was no image or it could not be decoded
+   */
+  private CloseableReference<CloseableImage> decode(
+      EncodedImage encodedImage,
+      ImageRequest imageRequest) {
+    if (encodedImage == null) {
+      return null;
+    }
+    try {
+      encodedImage.parseMetaData();
+      readOrientationChunk(encodedImage);
+      // the custom decoder of the request is meant for the source image, not for the PNG
+      final ImageDecodeOptions options = ImageDecodeOptions.newBuilder()
+          .setFrom(imageRequest.getImageDecodeOptions())
+          .setCustomImageDecoder(null)
+          .build();
+      return CloseableReference.of(
+          mImageDecoder.decode(
+              encodedImage,
+              encodedImage.getSize(),
+              ImmutableQualityInfo.FULL_QUALITY,
+              options));
+    } catch (RuntimeException e) {
+      FLog.w(TAG, e, "Could not decode the cached postprocessed bitmap");
+      return null;
+    } finally {
+      EncodedImage.closeSafely(encodedImage);
+    }
+  }
+
+  @VisibleForTesting
+  static Map<String, String> getExtraMap(
+      final ProducerListener listener,
+      final String requestId,
+      final boolean valueFound) {
+    if (!listener.requiresExtraMap(requestId)) {
+      return null;
+    }
+    return ImmutableMap.of(VALUE_FOUND, String.valueOf(valueFound));
+  }
+
+  /**
+   * Forwards the results, and writes the final postprocessed bitmap to the disk cache.
+   */
+  private class DiskCacheWriteConsumer extends DelegatingConsumer<
+      CloseableReference<CloseableImage>,
+      CloseableReference<CloseableImage>> {
+
+    private final CacheKey mCacheKey;
+
+    private DiskCacheWriteConsumer(
+        Consumer<CloseableReference<CloseableImage>> consumer,
+        CacheKey cacheKey) {
+      super(consumer);
+      mCacheKey = cacheKey;
+    }
+
+    @Override
+    protected void onNewResultImpl(
+        CloseableReference<CloseableImage> newResult,
+        @Status int status) {
+      if (isLast(status) && CloseableReference.isValid(newResult)
+          && newResult.get() instanceof CloseableStaticBitmap) {
+        final CloseableReference<CloseableImage> imageRef = newResult.clone();
+        try {
+          mExecutor.execute(
+              new Runnable() {
+                @Override
+                public void run() {
+                  try {
+                    writeToDiskCache(mCacheKey, (CloseableStaticBitmap) imageRef.get());
+                  } finally {
+                    CloseableReference.closeSafely(imageRef);
+                  }
+                }
+              });
+        } catch (RuntimeException e) {
+          CloseableReference.closeSafely(imageRef);
+          FLog.w(TAG, e, "Could not schedule the disk cache write of the postprocessed bitmap");
+        }
+      }
+      getConsumer().onNewResult(newResult, status);
+    }
+  }
+
+  private void writeToDiskCache(CacheKey cacheKey, CloseableStaticBitmap image) {
+    final Bitmap bitmap = image.getUnderlyingBitmap();
+    final PooledByteBufferOutputStream outputStream = mPooledByteBufferFactory.newOutputStream();
+    CloseableReference<PooledByteBuffer> bytesRef = null;
+    try {
+      if (!bitmap.compress(Bitmap.CompressFormat.PNG, PNG_QUALITY, outputStream)) {
+        FLog.w(TAG, "Could not encode the postprocessed bitmap");
+        return;
+      }
+      bytesRef = CloseableReference.of(outputStream.toByteBuffer());
+      if (image.getRotationAngle() != 0
+          || image.getExifOrientation() != ExifInterface.ORIENTATION_UNDEFINED) {
+        final CloseableReference<PooledByteBuffer> pngRef = bytesRef;
+        bytesRef = null;
+        try {
+          bytesRef = CloseableReference.of(
+              addOrientationChunk(
+                  pngRef.get(),
+                  image.getRotationAngle(),
+                  image.getExifOrientation()));
+        } finally {
+          pngRef.close();
+        }
+      }
+      final EncodedImage encodedImage = new EncodedImage(bytesRef);
+      try {
+        encodedImage.setImageFormat(DefaultImageFormats.PNG);
+        mDiskCache.put(cacheKey, encodedImage);
+      } finally {
+        EncodedImage.closeSafely(encodedImage);
+      }
+    } catch (IOException e) {
+      FLog.w(TAG, e, "Could not encode the orientation of the postprocessed bitmap");
+    } finally {
+      CloseableReference.closeSafely(bytesRef);
+      outputStream.close();
+    }
+  }
+
+  /**
+   * Copies the PNG with the orientation chunk inserted after its header.
+   */
+  private PooledByteBuffer addOrientationChunk(
+      PooledByteBuffer png,
+      int rotationAngle,
+      int exifOrientation) throws IOException {
+    final PooledByteBufferOutputStream outputStream =
+        mPooledByteBufferFactory.newOutputStream(png.size() + ORIENTATION_CHUNK_LENGTH);
+    try {
+      final byte[] buffer = new byte[Math.min(png.size(), COPY_BUFFER_SIZE)];
+      copy(png, 0, PNG_HEADER_LENGTH, buffer, outputStream);
+      outputStream.write(createOrientationChunk(rotationAngle, exifOrientation));
+      copy(png, PNG_HEADER_LENGTH, png.size(), buffer, outputStream);
+      return outputStream.toByteBuffer();
+    } finally {
+      outputStream.close();
+    }
+  }
+
+  private static void copy(
+      PooledByteBuffer source,
+      int start,
+      int end,
+      byte[] buffer,
+      PooledByteBufferOutputStream outputStream) throws IOException {
+    for (int offset = start; offset < end; offset += buffer.length) {
+      final int length = Math.min(buffer.length, end - offset);
+      source.read(offset, buffer, 0, length);
+      outputStream.write(buffer, 0, length);
+    }
+  }
+
+  @VisibleForTesting
+  static byte[] createOrientationChunk(int rotationAngle, int exifOrientation) {
+    final ByteBuffer chunk = ByteBuffer.allocate(ORIENTATION_CHUNK_LENGTH);
+    chunk.putInt(ORIENTATION_CHUNK_DATA_LENGTH);
+    chunk.put(ORIENTATION_CHUNK_TYPE);
+    chunk.putInt(rotationAngle);
+    chunk.putInt(exifOrientation);
+    // the CRC covers the type and the data of the chunk
+    final CRC32 crc = new CRC32();
+    crc.update(chunk.array(), 4, 4 + ORIENTATION_CHUNK_DATA_LENGTH);
+    chunk.putInt((int) crc.getValue());
+    return chunk.array();
+  }
+
+  /**
+   * Sets the rotation angle and the EXIF orientation of the image from its orientation chunk, if
+   * it has one.
+   */
+  @VisibleForTesting
+  static void readOrientationChunk(EncodedImage encodedImage) {
+    final CloseableReference<PooledByteBuffer> bytesRef = encodedImage.getByteBufferRef();
+    if (bytesRef == null) {
+      return;
+    }
+    try {
+      final PooledByteBuffer png = bytesRef.get();
+      if (png.size() < PNG_HEADER_LENGTH + ORIENTATION_CHUNK_LENGTH) {
+        return;
+      }
+      final byte[] bytes = new byte[ORIENTATION_CHUNK_LENGTH];
+      png.read(PNG_HEADER_LENGTH, bytes, 0, ORIENTATION_CHUNK_LENGTH);
+      if (!Arrays.equals(bytes, createOrientationChunk(readInt(bytes, 8), readInt(bytes, 12)))) {
+        return;
+      }
+      encodedImage.setRotationAngle(readInt(bytes, 8));
+      encodedImage.setExifOrientation(readInt(bytes, 12));
+    } finally {
+      bytesRef.close();
+    }
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return ByteBuffer.wrap(bytes, offset, 4).getInt();
+  }
+}
@@ -8,6 +8,7 @@
 package com.facebook.imagepipeline.producers;
 
 import android.graphics.Bitmap;
+import android.os.SystemClock;
 import com.facebook.common.internal.ImmutableMap;
 import com.facebook.common.internal.Preconditions;
 import com.facebook.common.internal.VisibleForTesting;
@@ -77,6 +78,8 @@ public class PostprocessorProducer implements Producer<CloseableReference<Closea
     private final ProducerListener mListener;
     private final String mRequestId;
     private final Postprocessor mPostprocessor;
+    private final Executor mPostprocessingExecutor;
+    private final ProducerContext mProducerContext;
 
     @GuardedBy("PostprocessorConsumer.this")
     private boolean mIsClosed;
@@ -100,6 +103,8 @@ public class PostprocessorProducer implements Producer<CloseableReference<Closea
       mListener = listener;
       mRequestId = requestId;
       mPostprocessor = postprocessor;
+      mPostprocessingExecutor = ProducerContextExecutor.forContext(mExecutor, producerContext);
+      mProducerContext = producerContext;
       producerContext.addCallbacks(
           new BaseProducerContextCallbacks() {
             @Override
@@ -156,10 +161,15 @@ public class PostprocessorProducer implements Producer<CloseableReference<Closea
     }
 
     private void submitPostprocessing() {
-      mExecutor.execute(
+      final long submitTime = SystemClock.uptimeMillis();
+      mPostprocessingExecutor.execute(
           new Runnable() {
             @Override
             public void run() {
+              RequestTrace.recordQueueWait(
+                  mProducerContext,
+                  RequestTrace.STAGE_POSTPROCESSOR,
+                  SystemClock.uptimeMillis() - submitTime);
               CloseableReference<CloseableImage> closeableImageRef;
               int status;
               synchronized (PostprocessorConsumer.this) {
@@ -211,6 +221,7 @@ public class PostprocessorProducer implements Producer<CloseableReference<Closea
         return;
       }
       mListener.onProducerStart(mRequestId, NAME);
+      RequestTrace.recordStageStart(mProducerContext, RequestTrace.STAGE_POSTPROCESSOR);
       CloseableReference<CloseableImage> destImageRef = null;
       try {
         try {
@@ -218,11 +229,15 @@ public class PostprocessorProducer implements Producer<CloseableReference<Closea
         } catch (Exception e) {
           mListener.onProducerFinishWithFailure(
               mRequestId, NAME, e, getExtraMap(mListener, mRequestId, mPostprocessor));
+          RequestTrace.recordStageFinish(
+              mProducerContext, RequestTrace.STAGE_POSTPROCESSOR, RequestTrace.STATUS_FAILURE);
           maybeNotifyOnFailure(e);
           return;
         }
         mListener.onProducerFinishWithSuccess(
             mRequestId, NAME, getExtraMap(mListener, mRequestId, mPostprocessor));
+        RequestTrace.recordStageFinish(
+            mProducerContext, RequestTrace.STAGE_POSTPROCESSOR, RequestTrace.STATUS_SUCCESS);
         maybeNotifyOnNewResult(destImageRef, status);
       } finally {
         CloseableReference.closeSafely(destImageRef);
@@ -9,6 +9,7 @@ package com.facebook.imagepipeline.producers;
 
 import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.request.ImageRequest;
+import javax.annotation.Nullable;
 
 /**
  * Used to pass context information to producers.
@@ -69,4 +70,11 @@ public interface ProducerContext {
    * @param callbacks callbacks to be executed
    */
   void addCallbacks(ProducerContextCallbacks callbacks);
+
+  /**
+   * @return the typed trace of this request, or null if the request is not traced. Producers
+   * should record into it with the static methods of {@link RequestTrace}.
+   */
+  @Nullable
+  RequestTrace getRequestTrace();
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import android.os.SystemClock;
+import com.facebook.common.time.LatencyHistogram;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.core.PrioritizedRunnable;
+import com.facebook.imagepipeline.core.PriorityExecutor;
+import com.facebook.imagepipeline.core.QueueWaitTrackingExecutor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Submits the work of a request to a {@link PriorityExecutor} at the priority of the request.
+ *
+ * <p> The work is queued at the current priority of the {@link ProducerContext}, and moved when
+ * that priority changes while the work is still queued. The executor only listens to the priority
+ * of a {@link BaseProducerContext} while it has work queued, so that the short-lived executors of
+ * the stages of a request don't accumulate callbacks. If the executor is wrapped in a
+ * {@link QueueWaitTrackingExecutor}, the work is submitted to the executor it wraps, so that it
+ * can be moved, and records its wait itself.
+ */
+@ThreadSafe
+public class ProducerContextExecutor implements Executor {
+
+  private final PriorityExecutor mExecutor;
+  private final ProducerContext mProducerContext;
+  private final @Nullable LatencyHistogram mQueueWaitHistogram;
+
+  private final ProducerContextCallbacks mCallbacks =
+      new BaseProducerContextCallbacks() {
+        @Override
+        public void onPriorityChanged() {
+          reprioritizeQueuedRunnables();
+        }
+      };
+
+  @GuardedBy("this")
+  private final List<PrioritizedRunnable> mQueuedRunnables = new ArrayList<>(1);
+  @GuardedBy("this")
+  private boolean mCallbacksAdded;
+
+  private ProducerContextExecutor(
+      PriorityExecutor executor,
+      ProducerContext producerContext,
+      @Nullable LatencyHistogram queueWaitHistogram) {
+    mExecutor = executor;
+    mProducerContext = producerContext;
+    mQueueWaitHistogram = queueWaitHistogram;
+  }
+
+  /**
+   * Gets an executor that submits work to the given executor at the priority of the request.
+   * Executors that are not a {@link PriorityExecutor} are returned as they are.
+   * @param executor the executor to run the work on
+   * @param producerContext the context of the request
+   */
+  public static Executor forContext(Executor executor, ProducerContext producerContext) {
+    Executor delegate = executor;
+    LatencyHistogram queueWaitHistogram = null;
+    if (executor instanceof QueueWaitTrackingExecutor) {
+      delegate = ((QueueWaitTrackingExecutor) executor).getDelegate();
+      queueWaitHistogram = ((QueueWaitTrackingExecutor) executor).getQueueWaitHistogram();
+    }
+    if (!(delegate instanceof PriorityExecutor)) {
+      return executor;
+    }
+    return new ProducerContextExecutor(
+        (PriorityExecutor) delegate,
+        producerContext,
+        queueWaitHistogram);
+  }
+
+  @Override
+  public void execute(final Runnable runnable) {
+    final long submitTime = mQueueWaitHistogram != null ? SystemClock.uptimeMillis() : 0;
+    PrioritizedRunnable prioritizedRunnable =
+        new PrioritizedRunnable() {
+          @Override
+          public Priority getPriority() {
+            return mProducerContext.getPriority();
+          }
+
+          @Override
+          public void run() {
+            dequeue(this);
+            if (mQueueWaitHistogram != null) {
+              mQueueWaitHistogram.record(SystemClock.uptimeMillis() - submitTime);
+            }
+            runnable.run();
+          }
+        };
+    synchronized (this) {
+      mQueuedRunnables.add(prioritizedRunnable);
+      if (!mCallbacksAdded) {
+        mProducerContext.addCallbacks(mCallbacks);
+        mCallbacksAdded = true;
+      }
+    }
+    try {
+      mExecutor.execute(prioritizedRunnable);
+    } catch (RejectedExecutionException e) {
+      dequeue(prioritizedRunnable);
+      throw e;
+    }
+  }
+
+  /**
+   * Stops tracking a runnable that left the queue, either because it started to run or because the
+   * executor rejected it. Stops listening to the priority of the context once nothing is queued.
+   */
+  private synchronized void dequeue(PrioritizedRunnable prioritizedRunnable) {
+    mQueuedRunnables.remove(prioritizedRunnable);
+    if (mQueuedRunnables.isEmpty() && mProducerContext instanceof BaseProducerContext) {
+      ((BaseProducerContext) mProducerContext).removeCallbacks(mCallbacks);
+      mCallbacksAdded = false;
+    }
+  }
+
+  private void reprioritizeQueuedRunnables() {
+    List<PrioritizedRunnable> queuedRunnables;
+    synchronized (this) {
+      if (mQueuedRunnables.isEmpty()) {
+        return;
+      }
+      queuedRunnables = new ArrayList<>(mQueuedRunnables);
+    }
+    for (int i = 0; i < queuedRunnables.size(); i++) {
+      mExecutor.reprioritize(queuedRunnables.get(i));
+    }
+  }
+}
@@ -0,0 +1,455 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+import android.os.SystemClock;
+import android.support.annotation.IntDef;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.VisibleForTesting;
+import com.facebook.common.util.TriState;
+import java.lang.annotation.Retention;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Typed record of what the producers did for one request: per stage start and end times, status,
+ * byte count, cache hit and time spent waiting in an executor queue, plus the sample size the
+ * image was decoded with and the time the request spent in the pipeline's own queues, see
+ * {@link Wait}.
+ *
+ * <p> Unlike the extra maps passed to {@link ProducerListener}, recording into a trace does not
+ * allocate: all the values are primitives kept in preallocated arrays, and instances are recycled
+ * once the request has completed. See
+ * {@link com.facebook.imagepipeline.listener.RequestTraceListener}.
+ *
+ * <p> Producers record values with the static {@code record*} methods, which do nothing if the
+ * request is not traced. A trace only accepts values for the request it was obtained for, so that
+ * a producer finishing late cannot write into an instance that has been recycled and reused.
+ */
+@ThreadSafe
+public class RequestTrace {
+
+  @Retention(SOURCE)
+  @IntDef({
+    STAGE_BITMAP_MEMORY_CACHE,
+    STAGE_ENCODED_MEMORY_CACHE,
+    STAGE_DISK_CACHE,
+    STAGE_NETWORK_FETCH,
+    STAGE_DECODE,
+    STAGE_RESIZE_AND_ROTATE,
+    STAGE_POSTPROCESSOR,
+  })
+  public @interface Stage {}
+
+  public static final int STAGE_BITMAP_MEMORY_CACHE = 0;
+  public static final int STAGE_ENCODED_MEMORY_CACHE = 1;
+  public static final int STAGE_DISK_CACHE = 2;
+  public static final int STAGE_NETWORK_FETCH = 3;
+  public static final int STAGE_DECODE = 4;
+  public static final int STAGE_RESIZE_AND_ROTATE = 5;
+  public static final int STAGE_POSTPROCESSOR = 6;
+  public static final int STAGE_COUNT = 7;
+
+  private static final String[] STAGE_NAMES = {
+    "BitmapMemoryCache",
+    "EncodedMemoryCache",
+    "DiskCache",
+    "NetworkFetch",
+    "Decode",
+    "ResizeAndRotate",
+    "Postprocessor",
+  };
+
+  @Retention(SOURCE)
+  @IntDef({
+    STATUS_NONE,
+    STATUS_STARTED,
+    STATUS_SUCCESS,
+    STATUS_FAILURE,
+    STATUS_CANCELLATION,
+  })
+  public @interface StageStatus {}
+
+  /** The stage did not run for this request */
+  public static final int STATUS_NONE = 0;
+  /** The stage started but did not finish */
+  public static final int STATUS_STARTED = 1;
+  public static final int STATUS_SUCCESS = 2;
+  public static final int STATUS_FAILURE = 3;
+  public static final int STATUS_CANCELLATION = 4;
+
+  @Retention(SOURCE)
+  @IntDef({
+    WAIT_THREAD_HANDOFF,
+    WAIT_THROTTLING,
+    WAIT_DECODE_INTERVAL,
+  })
+  public @interface Wait {}
+
+  /**
+   * Time between the submission of the request and its handoff to a background thread, including
+   * the time held in a paused {@link ThreadHandoffProducerQueue}
+   */
+  public static final int WAIT_THREAD_HANDOFF = 0;
+  /** Time spent in the pending queue of a {@link ThrottlingProducer} */
+  public static final int WAIT_THROTTLING = 1;
+  /** Time a decode was delayed by the minimum interval between two decodes of the request */
+  public static final int WAIT_DECODE_INTERVAL = 2;
+  public static final int WAIT_COUNT = 3;
+
+  private static final String[] WAIT_NAMES = {
+    "ThreadHandoff",
+    "Throttling",
+    "DecodeInterval",
+  };
+
+  /** Value of the times, counts and sizes that were not recorded */
+  public static final int UNSET = -1;
+
+  private static final Object RECYCLER_LOCK = new Object();
+  private static final int MAX_RECYCLED = 10;
+
+  private static RequestTrace sFirstRecycledTrace;
+  private static int sRecycledCount;
+
+  @GuardedBy("this")
+  private @Nullable String mRequestId;
+  @GuardedBy("this")
+  private final long[] mStartTimeMs = new long[STAGE_COUNT];
+  @GuardedBy("this")
+  private final long[] mEndTimeMs = new long[STAGE_COUNT];
+  @GuardedBy("this")
+  private final long[] mQueueWaitMs = new long[STAGE_COUNT];
+  @GuardedBy("this")
+  private final long[] mByteCount = new long[STAGE_COUNT];
+  @GuardedBy("this")
+  private final int[] mStatus = new int[STAGE_COUNT];
+  @GuardedBy("this")
+  private final TriState[] mCacheHit = new TriState[STAGE_COUNT];
+  @GuardedBy("this")
+  private int mSampleSize;
+  @GuardedBy("this")
+  private final long[] mWaitStartTimeMs = new long[WAIT_COUNT];
+  @GuardedBy("this")
+  private final long[] mWaitMs = new long[WAIT_COUNT];
+
+  private RequestTrace mNextRecycledTrace;
+
+  /**
+   * Gets a cleared trace for the given request, recycled if possible.
+   */
+  public static RequestTrace obtain(String requestId) {
+    RequestTrace trace = null;
+    synchronized (RECYCLER_LOCK) {
+      if (sFirstRecycledTrace != null) {
+        trace = sFirstRecycledTrace;
+        sFirstRecycledTrace = trace.mNextRecycledTrace;
+        trace.mNextRecycledTrace = null;
+        sRecycledCount--;
+      }
+    }
+    if (trace == null) {
+      trace = new RequestTrace();
+    }
+    trace.reset(Preconditions.checkNotNull(requestId));
+    return trace;
+  }
+
+  @VisibleForTesting
+  RequestTrace() {
+    reset(null);
+  }
+
+  /**
+   * Detaches this trace from its request and makes it available to {@link #obtain(String)}. The
+   * trace must not be used by the caller afterwards.
+   */
+  public void recycle() {
+    reset(null);
+    synchronized (RECYCLER_LOCK) {
+      if (sRecycledCount < MAX_RECYCLED) {
+        mNextRecycledTrace = sFirstRecycledTrace;
+        sFirstRecycledTrace = this;
+        sRecycledCount++;
+      }
+    }
+  }
+
+  private synchronized void reset(@Nullable String requestId) {
+    mRequestId = requestId;
+    Arrays.fill(mStartTimeMs, UNSET);
+    Arrays.fill(mEndTimeMs, UNSET);
+    Arrays.fill(mQueueWaitMs, UNSET);
+    Arrays.fill(mByteCount, UNSET);
+    Arrays.fill(mStatus, STATUS_NONE);
+    Arrays.fill(mCacheHit, TriState.UNSET);
+    mSampleSize = UNSET;
+    Arrays.fill(mWaitStartTimeMs, UNSET);
+    Arrays.fill(mWaitMs, UNSET);
+  }
+
+  public static String getStageName(@Stage int stage) {
+    return STAGE_NAMES[stage];
+  }
+
+  public static String getWaitName(@Wait int wait) {
+    return WAIT_NAMES[wait];
+  }
+
+  /**
+   * Records the start of a stage. A stage that runs more than once for a request, such as the
+   * decode of a progressive image, keeps the times of its last run.
+   */
+  public static void recordStageStart(ProducerContext producerContext, @Stage int stage) {
+    RequestTrace trace = producerContext.getRequestTrace();
+    if (trace != null) {
+      trace.onStageStart(producerContext.getId(), stage);
+    }
+  }
+
+  /**
+   * Records the end of a stage.
+   * @param status one of {@link #STATUS_SUCCESS}, {@link #STATUS_FAILURE} and
+   *     {@link #STATUS_CANCELLATION}
+   */
+  public static void recordStageFinish(
+      ProducerContext producerContext,
+      @Stage int stage,
+      @StageStatus int status) {
+    RequestTrace trace = producerContext.getRequestTrace();
+    if (trace != null) {
+      trace.onStageFinish(producerContext.getId(), stage, status);
+    }
+  }
+
+  public static void recordCacheHit(
+      ProducerContext producerContext,
+      @Stage int stage,
+      boolean cacheHit) {
+    RequestTrace trace = producerContext.getRequestTrace();
+    if (trace != null) {
+      trace.setCacheHit(producerContext.getId(), stage, cacheHit);
+    }
+  }
+
+  /**
+   * Records the successful end of a cache lookup, with whether it was a hit.
+   */
+  public static void recordCacheLookup(
+      ProducerContext producerContext,
+      @Stage int stage,
+      boolean cacheHit) {
+    RequestTrace trace = producerContext.getRequestTrace();
+    if (trace != null) {
+      trace.setCacheHit(producerContext.getId(), stage, cacheHit);
+      trace.onStageFinish(producerContext.getId(), stage, STATUS_SUCCESS);
+    }
+  }
+
+  public static void recordByteCount(
+      ProducerContext producerContext,
+      @Stage int stage,
+      long byteCount) {
+    RequestTrace trace = producerContext.getRequestTrace();
+    if (trace != null) {
+      trace.setByteCount(producerContext.getId(), stage, byteCount);
+    }
+  }
+
+  public static void recordQueueWait(
+      ProducerContext producerContext,
+      @Stage int stage,
+      long queueWaitMs) {
+    RequestTrace trace = producerContext.getRequestTrace();
+    if (trace != null) {
+      trace.setQueueWaitMs(producerContext.getId(), stage, queueWaitMs);
+    }
+  }
+
+  public static void recordSampleSize(ProducerContext producerContext, int sampleSize) {
+    RequestTrace trace = producerContext.getRequestTrace();
+    if (trace != null) {
+      trace.setSampleSize(producerContext.getId(), sampleSize);
+    }
+  }
+
+  /**
+   * Records the start of a wait, to be ended with {@link #recordWaitEnd}.
+   */
+  public static void recordWaitStart(ProducerContext producerContext, @Wait int wait) {
+    RequestTrace trace = producerContext.getRequestTrace();
+    if (trace != null) {
+      trace.onWaitStart(producerContext.getId(), wait);
+    }
+  }
+
+  /**
+   * Records the end of a wait started with {@link #recordWaitStart}. Does nothing if the wait was
+   * not started.
+   */
+  public static void recordWaitEnd(ProducerContext producerContext, @Wait int wait) {
+    RequestTrace trace = producerContext.getRequestTrace();
+    if (trace != null) {
+      trace.onWaitEnd(producerContext.getId(), wait);
+    }
+  }
+
+  /**
+   * Records a wait measured by the caller. A wait that happens more than once for a request keeps
+   * the duration of the last one.
+   */
+  public static void recordWait(ProducerContext producerContext, @Wait int wait, long waitMs) {
+    RequestTrace trace = producerContext.getRequestTrace();
+    if (trace != null) {
+      trace.setWaitMs(producerContext.getId(), wait, waitMs);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized void onStageStart(String requestId, @Stage int stage) {
+    if (requestId.equals(mRequestId)) {
+      mStartTimeMs[stage] = SystemClock.uptimeMillis();
+      mEndTimeMs[stage] = UNSET;
+      mStatus[stage] = STATUS_STARTED;
+    }
+  }
+
+  @VisibleForTesting
+  synchronized void onStageFinish(String requestId, @Stage int stage, @StageStatus int status) {
+    if (requestId.equals(mRequestId)) {
+      mEndTimeMs[stage] = SystemClock.uptimeMillis();
+      mStatus[stage] = status;
+    }
+  }
+
+  @VisibleForTesting
+  synchronized void setCacheHit(String requestId, @Stage int stage, boolean cacheHit) {
+    if (requestId.equals(mRequestId)) {
+      mCacheHit[stage] = TriState.valueOf(cacheHit);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized void setByteCount(String requestId, @Stage int stage, long byteCount) {
+    if (requestId.equals(mRequestId)) {
+      mByteCount[stage] = byteCount;
+    }
+  }
+
+  @VisibleForTesting
+  synchronized void setQueueWaitMs(String requestId, @Stage int stage, long queueWaitMs) {
+    if (requestId.equals(mRequestId)) {
+      mQueueWaitMs[stage] = queueWaitMs;
+    }
+  }
+
+  @VisibleForTesting
+  synchronized void setSampleSize(String requestId, int sampleSize) {
+    if (requestId.equals(mRequestId)) {
+      mSampleSize = sampleSize;
+    }
+  }
+
+  @VisibleForTesting
+  synchronized void onWaitStart(String requestId, @Wait int wait) {
+    if (requestId.equals(mRequestId)) {
+      mWaitStartTimeMs[wait] = SystemClock.uptimeMillis();
+    }
+  }
+
+  @VisibleForTesting
+  synchronized void onWaitEnd(String requestId, @Wait int wait) {
+    if (requestId.equals(mRequestId) && mWaitStartTimeMs[wait] != UNSET) {
+      mWaitMs[wait] = SystemClock.uptimeMillis() - mWaitStartTimeMs[wait];
+      mWaitStartTimeMs[wait] = UNSET;
+    }
+  }
+
+  @VisibleForTesting
+  synchronized void setWaitMs(String requestId, @Wait int wait, long waitMs) {
+    if (requestId.equals(mRequestId)) {
+      mWaitMs[wait] = waitMs;
+    }
+  }
+
+  /**
+   * @return the id of the request this trace records, or null if it has been recycled
+   */
+  @Nullable
+  public synchronized String getRequestId() {
+    return mRequestId;
+  }
+
+  /**
+   * @return the uptime at which the stage last started, or {@link #UNSET}
+   */
+  public synchronized long getStartTimeMs(@Stage int stage) {
+    return mStartTimeMs[stage];
+  }
+
+  /**
+   * @return the uptime at which the stage last finished, or {@link #UNSET}
+   */
+  public synchronized long getEndTimeMs(@Stage int stage) {
+    return mEndTimeMs[stage];
+  }
+
+  /**
+   * @return the time the stage took on its last run, or {@link #UNSET} if it did not finish
+   */
+  public synchronized long getDurationMs(@Stage int stage) {
+    if (mStartTimeMs[stage] == UNSET || mEndTimeMs[stage] == UNSET) {
+      return UNSET;
+    }
+    return mEndTimeMs[stage] - mStartTimeMs[stage];
+  }
+
+  public synchronized @StageStatus int getStatus(@Stage int stage) {
+    return mStatus[stage];
+  }
+
+  /**
+   * @return {@link TriState#YES} on a hit, {@link TriState#NO} on a miss and
+   *     {@link TriState#UNSET} if the stage is not a cache or did not look the request up
+   */
+  public synchronized TriState getCacheHit(@Stage int stage) {
+    return mCacheHit[stage];
+  }
+
+  /**
+   * @return the number of bytes the stage read or produced, or {@link #UNSET}
+   */
+  public synchronized long getByteCount(@Stage int stage) {
+    return mByteCount[stage];
+  }
+
+  /**
+   * @return the time the stage's work waited for an executor, or {@link #UNSET}
+   */
+  public synchronized long getQueueWaitMs(@Stage int stage) {
+    return mQueueWaitMs[stage];
+  }
+
+  /**
+   * @return the sample size of the last decode, or {@link #UNSET}
+   */
+  public synchronized int getSampleSize() {
+    return mSampleSize;
+  }
+
+  /**
+   * @return the duration of the wait, or {@link #UNSET} if the request did not wait there
+   */
+  public synchronized long getWaitMs(@Wait int wait) {
+    return mWaitMs[wait];
+  }
+}
@@ -177,6 +177,11 @@ public class ResizeAndRotateProducer implements Producer<EncodedImage> {
 
     private void doTransform(EncodedImage encodedImage, @Status int status) {
       mProducerContext.getListener().onProducerStart(mProducerContext.getId(), PRODUCER_NAME);
+      RequestTrace.recordStageStart(mProducerContext, RequestTrace.STAGE_RESIZE_AND_ROTATE);
+      RequestTrace.recordQueueWait(
+          mProducerContext,
+          RequestTrace.STAGE_RESIZE_AND_ROTATE,
+          mJobScheduler.getExecutorQueuedTime());
       ImageRequest imageRequest = mProducerContext.getImageRequest();
       PooledByteBufferOutputStream outputStream = mPooledByteBufferFactory.newOutputStream();
       Map<String, String> extraMap = null;
@@ -231,6 +236,12 @@ public class ResizeAndRotateProducer implements Producer<EncodedImage> {
             ret.parseMetaData();
             mProducerContext.getListener().
                 onProducerFinishWithSuccess(mProducerContext.getId(), PRODUCER_NAME, extraMap);
+            RequestTrace.recordByteCount(
+                mProducerContext, RequestTrace.STAGE_RESIZE_AND_ROTATE, ret.getSize());
+            RequestTrace.recordStageFinish(
+                mProducerContext,
+                RequestTrace.STAGE_RESIZE_AND_ROTATE,
+                RequestTrace.STATUS_SUCCESS);
             if (downsampleRatio != DownsampleUtil.DEFAULT_SAMPLE_SIZE) {
               status |= Consumer.IS_RESIZING_DONE;
             }
@@ -244,6 +255,8 @@ public class ResizeAndRotateProducer implements Producer<EncodedImage> {
       } catch (Exception e) {
         mProducerContext.getListener().
             onProducerFinishWithFailure(mProducerContext.getId(), PRODUCER_NAME, e, extraMap);
+        RequestTrace.recordStageFinish(
+            mProducerContext, RequestTrace.STAGE_RESIZE_AND_ROTATE, RequestTrace.STATUS_FAILURE);
         if (isLast(status)) {
           getConsumer().onFailure(e);
         }
@@ -297,6 +310,10 @@ public class ResizeAndRotateProducer implements Producer<EncodedImage> {
     if (encodedImage.getImageFormat() != DefaultImageFormats.JPEG) {
       return TriState.NO;
     }
+    if (request.getImageDecodeOptions().regionToDecode != null) {
+      // the region is in pixels of the image as encoded
+      return TriState.NO;
+    }
     return TriState.valueOf(
         shouldRotate(request.getRotationOptions(), encodedImage) ||
             shouldResize(getSoftwareNumerator(request, encodedImage, resizingEnabled)));
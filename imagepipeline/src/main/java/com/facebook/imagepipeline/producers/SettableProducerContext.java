@@ -9,6 +9,8 @@ package com.facebook.imagepipeline.producers;
 
 import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.request.ImageRequest;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
@@ -17,6 +19,9 @@ import javax.annotation.concurrent.ThreadSafe;
 @ThreadSafe
 public class SettableProducerContext extends BaseProducerContext {
 
+  @GuardedBy("this")
+  private @Nullable String mContentValidator;
+
   public SettableProducerContext(ProducerContext context) {
     this(
         context.getImageRequest(),
@@ -26,7 +31,8 @@ public class SettableProducerContext extends BaseProducerContext {
         context.getLowestPermittedRequestLevel(),
         context.isPrefetch(),
         context.isIntermediateResultExpected(),
-        context.getPriority());
+        context.getPriority(),
+        context.getRequestTrace());
   }
 
   public SettableProducerContext(ImageRequest overrideRequest, ProducerContext context) {
@@ -38,7 +44,8 @@ public class SettableProducerContext extends BaseProducerContext {
         context.getLowestPermittedRequestLevel(),
         context.isPrefetch(),
         context.isIntermediateResultExpected(),
-        context.getPriority());
+        context.getPriority(),
+        context.getRequestTrace());
   }
 
   public SettableProducerContext(
@@ -50,6 +57,28 @@ public class SettableProducerContext extends BaseProducerContext {
       boolean isPrefetch,
       boolean isIntermediateResultExpected,
       Priority priority) {
+    this(
+        imageRequest,
+        id,
+        producerListener,
+        callerContext,
+        lowestPermittedRequestLevel,
+        isPrefetch,
+        isIntermediateResultExpected,
+        priority,
+        null);
+  }
+
+  public SettableProducerContext(
+      ImageRequest imageRequest,
+      String id,
+      ProducerListener producerListener,
+      Object callerContext,
+      ImageRequest.RequestLevel lowestPermittedRequestLevel,
+      boolean isPrefetch,
+      boolean isIntermediateResultExpected,
+      Priority priority,
+      @Nullable RequestTrace requestTrace) {
     super(
         imageRequest,
         id,
@@ -58,7 +87,8 @@ public class SettableProducerContext extends BaseProducerContext {
         lowestPermittedRequestLevel,
         isPrefetch,
         isIntermediateResultExpected,
-        priority);
+        priority,
+        requestTrace);
   }
 
   /**
@@ -86,4 +116,18 @@ public class SettableProducerContext extends BaseProducerContext {
     BaseProducerContext.callOnPriorityChanged(setPriorityNoCallbacks(priority));
   }
 
+  /**
+   * Set the validator of the content the bytes range of the request belongs to, such as its ETag.
+   * The fetcher asks for the range only if the content still has this validator, and for the
+   * whole content otherwise.
+   * @param contentValidator
+   */
+  public synchronized void setContentValidator(@Nullable String contentValidator) {
+    mContentValidator = contentValidator;
+  }
+
+  @Nullable
+  public synchronized String getContentValidator() {
+    return mContentValidator;
+  }
 }
@@ -30,6 +30,7 @@ public class ThreadHandoffProducer<T> implements Producer<T> {
   public void produceResults(final Consumer<T> consumer, final ProducerContext context) {
     final ProducerListener producerListener = context.getListener();
     final String requestId = context.getId();
+    RequestTrace.recordWaitStart(context, RequestTrace.WAIT_THREAD_HANDOFF);
     final StatefulProducerRunnable<T> statefulRunnable = new StatefulProducerRunnable<T>(
         consumer,
         producerListener,
@@ -38,6 +39,7 @@ public class ThreadHandoffProducer<T> implements Producer<T> {
       @Override
       protected void onSuccess(T ignored) {
         producerListener.onProducerFinishWithSuccess(requestId, PRODUCER_NAME, null);
+        RequestTrace.recordWaitEnd(context, RequestTrace.WAIT_THREAD_HANDOFF);
         mInputProducer.produceResults(consumer, context);
       }
 
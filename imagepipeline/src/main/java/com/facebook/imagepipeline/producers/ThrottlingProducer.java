@@ -7,15 +7,20 @@
 
 package com.facebook.imagepipeline.producers;
 
+import android.os.SystemClock;
 import android.util.Pair;
 import com.facebook.common.internal.Preconditions;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 /**
  * Only permits a configurable number of requests to be kicked off simultaneously. If that number
  * is exceeded, then requests are queued up and kicked off once other requests complete.
+ *
+ * <p> The number can also be given by an {@link AdaptiveConcurrencyLimiter}, which adjusts it to
+ * the time the requests take.
  */
 public class ThrottlingProducer<T> implements Producer<T> {
 
@@ -23,6 +28,7 @@ public class ThrottlingProducer<T> implements Producer<T> {
 
   private final Producer<T> mInputProducer;
   private final int mMaxSimultaneousRequests;
+  private final @Nullable AdaptiveConcurrencyLimiter mConcurrencyLimiter;
 
   @GuardedBy("this")
   private int mNumCurrentRequests;
@@ -34,13 +40,44 @@ public class ThrottlingProducer<T> implements Producer<T> {
       int maxSimultaneousRequests,
       Executor executor,
       final Producer<T> inputProducer) {
+    this(maxSimultaneousRequests, null, executor, inputProducer);
+  }
+
+  public ThrottlingProducer(
+      AdaptiveConcurrencyLimiter concurrencyLimiter,
+      Executor executor,
+      final Producer<T> inputProducer) {
+    this(0, Preconditions.checkNotNull(concurrencyLimiter), executor, inputProducer);
+  }
+
+  private ThrottlingProducer(
+      int maxSimultaneousRequests,
+      @Nullable AdaptiveConcurrencyLimiter concurrencyLimiter,
+      Executor executor,
+      final Producer<T> inputProducer) {
     mMaxSimultaneousRequests = maxSimultaneousRequests;
+    mConcurrencyLimiter = concurrencyLimiter;
     mExecutor = Preconditions.checkNotNull(executor);
     mInputProducer = Preconditions.checkNotNull(inputProducer);
     mPendingRequests = new ConcurrentLinkedQueue<Pair<Consumer<T>, ProducerContext>>();
     mNumCurrentRequests = 0;
   }
 
+  /**
+   * @return the number of requests that can currently be kicked off simultaneously
+   */
+  public int getMaxSimultaneousRequests() {
+    return mConcurrencyLimiter == null ? mMaxSimultaneousRequests : mConcurrencyLimiter.getLimit();
+  }
+
+  /**
+   * @return the limiter adjusting the number of simultaneous requests, or null if it is fixed
+   */
+  @Nullable
+  public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+    return mConcurrencyLimiter;
+  }
+
   @Override
   public void produceResults(final Consumer<T> consumer, final ProducerContext producerContext) {
     final ProducerListener producerListener = producerContext.getListener();
@@ -48,8 +85,9 @@ public class ThrottlingProducer<T> implements Producer<T> {
 
     boolean delayRequest;
     synchronized (this) {
-      if (mNumCurrentRequests >= mMaxSimultaneousRequests) {
+      if (mNumCurrentRequests >= getMaxSimultaneousRequests()) {
         mPendingRequests.add(Pair.create(consumer, producerContext));
+        RequestTrace.recordWaitStart(producerContext, RequestTrace.WAIT_THROTTLING);
         delayRequest = true;
       } else {
         mNumCurrentRequests++;
@@ -63,21 +101,31 @@ public class ThrottlingProducer<T> implements Producer<T> {
   }
 
   void produceResultsInternal(Consumer<T> consumer, ProducerContext producerContext) {
+    RequestTrace.recordWaitEnd(producerContext, RequestTrace.WAIT_THROTTLING);
     ProducerListener producerListener = producerContext.getListener();
     producerListener.onProducerFinishWithSuccess(producerContext.getId(), PRODUCER_NAME, null);
+    if (mConcurrencyLimiter != null) {
+      mConcurrencyLimiter.onRequestStart();
+    }
     mInputProducer.produceResults(new ThrottlerConsumer(consumer), producerContext);
   }
 
   private class ThrottlerConsumer extends DelegatingConsumer<T, T> {
 
+    private final long mStartTimeMs;
+
     private ThrottlerConsumer(Consumer<T> consumer) {
       super(consumer);
+      mStartTimeMs = mConcurrencyLimiter == null ? 0 : SystemClock.uptimeMillis();
     }
 
     @Override
     protected void onNewResultImpl(T newResult, @Status int status) {
       getConsumer().onNewResult(newResult, status);
       if (isLast(status)) {
+        if (mConcurrencyLimiter != null) {
+          mConcurrencyLimiter.onRequestSuccess(mStartTimeMs, SystemClock.uptimeMillis());
+        }
         onRequestFinished();
       }
     }
@@ -85,25 +133,39 @@ public class ThrottlingProducer<T> implements Producer<T> {
     @Override
     protected void onFailureImpl(Throwable t) {
       getConsumer().onFailure(t);
+      if (mConcurrencyLimiter != null) {
+        mConcurrencyLimiter.onRequestIgnored();
+      }
       onRequestFinished();
     }
 
     @Override
     protected void onCancellationImpl() {
       getConsumer().onCancellation();
+      if (mConcurrencyLimiter != null) {
+        mConcurrencyLimiter.onRequestIgnored();
+      }
       onRequestFinished();
     }
 
     private void onRequestFinished() {
-      final Pair<Consumer<T>, ProducerContext> nextRequestPair;
       synchronized (ThrottlingProducer.this) {
-        nextRequestPair = mPendingRequests.poll();
-        if (nextRequestPair == null) {
-          mNumCurrentRequests--;
-        }
+        mNumCurrentRequests--;
       }
+      // the limit may have grown, in which case more than one pending request can be kicked off
+      while (true) {
+        final Pair<Consumer<T>, ProducerContext> nextRequestPair;
+        synchronized (ThrottlingProducer.this) {
+          if (mNumCurrentRequests >= getMaxSimultaneousRequests()) {
+            return;
+          }
+          nextRequestPair = mPendingRequests.poll();
+          if (nextRequestPair == null) {
+            return;
+          }
+          mNumCurrentRequests++;
+        }
 
-      if (nextRequestPair != null) {
         mExecutor.execute(
             new Runnable() {
               @Override
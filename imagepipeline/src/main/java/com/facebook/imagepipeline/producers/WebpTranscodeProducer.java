@@ -143,7 +143,7 @@ public class WebpTranscodeProducer implements Producer<EncodedImage> {
             super.onCancellation();
           }
         };
-    mExecutor.execute(runnable);
+    ProducerContextExecutor.forContext(mExecutor, producerContext).execute(runnable);
   }
 
   private static TriState shouldTranscode(final EncodedImage encodedImage) {
@@ -0,0 +1,406 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.request;
+
+import android.graphics.Bitmap;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.internal.Throwables;
+import com.facebook.common.internal.VisibleForTesting;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
+
+/**
+ * Base class for postprocessors that compute each pixel from a bounded neighbourhood of the
+ * source, and can hence process the bitmap in tiles on several cores.
+ *
+ * <p> The bitmap is split into horizontal bands of full rows, the tiles. Each tile is given the
+ * pixels of its rows plus {@link #getHalo()} rows above and below, read from the source bitmap,
+ * and writes its own rows to the destination bitmap. Workers are forked to the executor, and the
+ * calling thread works on tiles too until all of them are done, so the postprocessing completes
+ * even if the executor is busy.
+ *
+ * <p> Tiles have at most {@link #getMaxTilePixelCount()} pixels, not counting the halo, and each
+ * worker reuses the same buffer for all its tiles, so the memory used does not grow with the size
+ * of the bitmap. Bitmaps smaller than {@link #getMinTilePixelCount()} pixels per worker use fewer
+ * workers.
+ *
+ * <p> The executor is typically {@code ExecutorSupplier.forBackgroundTasks()}, the one that
+ * postprocessors run on.
+ */
+public abstract class TiledPostprocessor extends BasePostprocessor {
+
+  /** Tiles of fewer pixels are not worth the hand-off to another thread */
+  private static final int DEFAULT_MIN_TILE_PIXEL_COUNT = 64 * 1024;
+  /** Larger bitmaps are split in more tiles than workers, a 4MB buffer per worker */
+  private static final int DEFAULT_MAX_TILE_PIXEL_COUNT = 1024 * 1024;
+  /** Tiles have at least that many rows per row of halo, so that the halo adds at most half */
+  private static final int MIN_ROWS_PER_HALO_ROW = 4;
+
+  private final Executor mExecutor;
+  private final int mMaxWorkerCount;
+
+  /**
+   * Creates a postprocessor that uses up to one worker per available processor.
+   * @param executor the executor to fork the workers to
+   */
+  protected TiledPostprocessor(Executor executor) {
+    this(executor, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param executor the executor to fork the workers to
+   * @param maxWorkerCount the max number of threads to process the tiles on, including the
+   *     calling thread
+   */
+  protected TiledPostprocessor(Executor executor, int maxWorkerCount) {
+    Preconditions.checkArgument(maxWorkerCount > 0);
+    mExecutor = Preconditions.checkNotNull(executor);
+    mMaxWorkerCount = maxWorkerCount;
+  }
+
+  /**
+   * The number of rows above and below its own rows that a tile needs to compute them.
+   */
+  protected int getHalo() {
+    return 0;
+  }
+
+  protected int getMinTilePixelCount() {
+    return DEFAULT_MIN_TILE_PIXEL_COUNT;
+  }
+
+  protected int getMaxTilePixelCount() {
+    return DEFAULT_MAX_TILE_PIXEL_COUNT;
+  }
+
+  /**
+   * Processes a tile of the bitmap. Called concurrently for the different tiles.
+   *
+   * <p> The implementation computes the pixels of the rows of the tile, in place in its pixels or
+   * in its bitmap. The pixels of the halo are discarded.
+   *
+   * @param tile the tile to process
+   */
+  protected abstract void processTile(Tile tile);
+
+  @Override
+  public void process(Bitmap destBitmap, Bitmap sourceBitmap) {
+    process(
+        new BitmapRows(destBitmap),
+        new BitmapRows(sourceBitmap),
+        sourceBitmap.getWidth(),
+        sourceBitmap.getHeight());
+  }
+
+  /**
+   * Processes ARGB pixels, in rows of the given width, as {@link #process(Bitmap, Bitmap)} does.
+   */
+  public void process(int[] destPixels, int[] sourcePixels, int width, int height) {
+    process(new ArrayRows(destPixels, width), new ArrayRows(sourcePixels, width), width, height);
+  }
+
+  private void process(Rows dest, Rows source, int width, int height) {
+    final int workerCount = getWorkerCount(width, height);
+    final int rowsPerTile = getRowsPerTile(width, height, workerCount);
+    final int tileCount = (height + rowsPerTile - 1) / rowsPerTile;
+    final TileQueue queue =
+        new TileQueue(dest, source, width, height, rowsPerTile, tileCount, getHalo());
+
+    for (int i = 1; i < workerCount; i++) {
+      mExecutor.execute(new Worker(queue));
+    }
+    new Worker(queue).run();
+    queue.awaitDone();
+  }
+
+  @VisibleForTesting
+  int getWorkerCount(int width, int height) {
+    final long maxWorkerCountForSize = Math.max(
+        1,
+        (long) width * height / Math.max(1, getMinTilePixelCount()));
+    return (int) Math.max(1, Math.min(Math.min(mMaxWorkerCount, maxWorkerCountForSize), height));
+  }
+
+  @VisibleForTesting
+  int getRowsPerTile(int width, int height, int workerCount) {
+    final int maxRowsPerTile = Math.max(
+        Math.max(1, getMaxTilePixelCount() / Math.max(1, width)),
+        MIN_ROWS_PER_HALO_ROW * getHalo());
+    return Math.min((height + workerCount - 1) / workerCount, maxRowsPerTile);
+  }
+
+  /** The tiles of a bitmap, handed out to the workers in order */
+  private class TileQueue {
+
+    private final Rows mDest;
+    private final Rows mSource;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRowsPerTile;
+    private final int mTileCount;
+    private final int mHalo;
+    private final AtomicInteger mNextTile = new AtomicInteger();
+    private final CountDownLatch mDoneLatch;
+    private final AtomicReference<Throwable> mFailure = new AtomicReference<>();
+
+    private TileQueue(
+        Rows dest,
+        Rows source,
+        int width,
+        int height,
+        int rowsPerTile,
+        int tileCount,
+        int halo) {
+      mDest = dest;
+      mSource = source;
+      mWidth = width;
+      mHeight = height;
+      mRowsPerTile = rowsPerTile;
+      mTileCount = tileCount;
+      mHalo = halo;
+      mDoneLatch = new CountDownLatch(tileCount);
+    }
+
+    /** The rows of the largest tile with its halo, that fit in the buffer of a worker */
+    private int getMaxTileHeight() {
+      return Math.min(mRowsPerTile + 2 * mHalo, mHeight);
+    }
+
+    private void awaitDone() {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          mDoneLatch.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      if (mFailure.get() != null) {
+        throw Throwables.propagate(mFailure.get());
+      }
+    }
+  }
+
+  /** Processes tiles until there are none left, with the same buffers for all of them */
+  private class Worker implements Runnable {
+
+    private final TileQueue mQueue;
+    private @Nullable int[] mPixels;
+    private @Nullable Bitmap mBitmap;
+
+    private Worker(TileQueue queue) {
+      mQueue = queue;
+    }
+
+    @Override
+    public void run() {
+      try {
+        int tileIndex;
+        while ((tileIndex = mQueue.mNextTile.getAndIncrement()) < mQueue.mTileCount) {
+          try {
+            if (mQueue.mFailure.get() == null) {
+              runTile(tileIndex * mQueue.mRowsPerTile);
+            }
+          } catch (Throwable t) {
+            mQueue.mFailure.compareAndSet(null, t);
+          } finally {
+            mQueue.mDoneLatch.countDown();
+          }
+        }
+      } finally {
+        if (mBitmap != null) {
+          mBitmap.recycle();
+          mBitmap = null;
+        }
+      }
+    }
+
+    private void runTile(int top) {
+      final int width = mQueue.mWidth;
+      final int bottom = Math.min(top + mQueue.mRowsPerTile, mQueue.mHeight);
+      final int haloTop = Math.max(top - mQueue.mHalo, 0);
+      final int haloBottom = Math.min(bottom + mQueue.mHalo, mQueue.mHeight);
+      if (mPixels == null) {
+        mPixels = new int[width * mQueue.getMaxTileHeight()];
+      }
+      mQueue.mSource.read(mPixels, haloTop, haloBottom - haloTop);
+      final Tile tile = new Tile(
+          this,
+          mPixels,
+          width,
+          haloBottom - haloTop,
+          top - haloTop,
+          bottom - top,
+          top,
+          mQueue.mHeight);
+      processTile(tile);
+      tile.syncPixelsFromBitmap();
+      mQueue.mDest.write(mPixels, (top - haloTop) * width, top, bottom - top);
+    }
+
+    /**
+     * Gets a bitmap of the given size, the same as for the previous tile if it has the same size.
+     */
+    private Bitmap getBitmap(int width, int height) {
+      if (mBitmap == null || mBitmap.getWidth() != width || mBitmap.getHeight() != height) {
+        if (mBitmap != null) {
+          mBitmap.recycle();
+        }
+        mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+      }
+      return mBitmap;
+    }
+  }
+
+  /** Rows of ARGB pixels that tiles are read from and written to */
+  private interface Rows {
+
+    void read(int[] pixels, int top, int rowCount);
+
+    void write(int[] pixels, int offset, int top, int rowCount);
+  }
+
+  private static class BitmapRows implements Rows {
+
+    private final Bitmap mBitmap;
+
+    private BitmapRows(Bitmap bitmap) {
+      mBitmap = bitmap;
+    }
+
+    @Override
+    public void read(int[] pixels, int top, int rowCount) {
+      final int width = mBitmap.getWidth();
+      mBitmap.getPixels(pixels, 0, width, 0, top, width, rowCount);
+    }
+
+    @Override
+    public void write(int[] pixels, int offset, int top, int rowCount) {
+      final int width = mBitmap.getWidth();
+      mBitmap.setPixels(pixels, offset, width, 0, top, width, rowCount);
+    }
+  }
+
+  private static class ArrayRows implements Rows {
+
+    private final int[] mPixels;
+    private final int mWidth;
+
+    private ArrayRows(int[] pixels, int width) {
+      mPixels = pixels;
+      mWidth = width;
+    }
+
+    @Override
+    public void read(int[] pixels, int top, int rowCount) {
+      System.arraycopy(mPixels, top * mWidth, pixels, 0, rowCount * mWidth);
+    }
+
+    @Override
+    public void write(int[] pixels, int offset, int top, int rowCount) {
+      System.arraycopy(pixels, offset, mPixels, top * mWidth, rowCount * mWidth);
+    }
+  }
+
+  /**
+   * The pixels of a tile and of its halo, as ARGB colors in rows of the full bitmap width.
+   *
+   * <p> The pixels are in a buffer reused across tiles, that may be longer than the tile.
+   */
+  public static class Tile {
+
+    private final Worker mWorker;
+    private final int[] mPixels;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFirstRow;
+    private final int mRowCount;
+    private final int mTop;
+    private final int mBitmapHeight;
+    private @Nullable Bitmap mBitmap;
+
+    private Tile(
+        Worker worker,
+        int[] pixels,
+        int width,
+        int height,
+        int firstRow,
+        int rowCount,
+        int top,
+        int bitmapHeight) {
+      mWorker = worker;
+      mPixels = pixels;
+      mWidth = width;
+      mHeight = height;
+      mFirstRow = firstRow;
+      mRowCount = rowCount;
+      mTop = top;
+      mBitmapHeight = bitmapHeight;
+    }
+
+    /** The pixels of the tile and its halo, row by row, in the first width * height entries */
+    public int[] getPixels() {
+      return mPixels;
+    }
+
+    /**
+     * The pixels of the tile and its halo as a mutable ARGB_8888 bitmap, for native processing.
+     * The bitmap is reused for the next tiles, and the changes to it replace the pixels of the
+     * tile once {@link #processTile} returns. Use either the pixels or the bitmap, not both.
+     */
+    public Bitmap getBitmap() {
+      if (mBitmap == null) {
+        mBitmap = mWorker.getBitmap(mWidth, mHeight);
+        mBitmap.setPixels(mPixels, 0, mWidth, 0, 0, mWidth, mHeight);
+      }
+      return mBitmap;
+    }
+
+    /** The width of the tile, that of the bitmap */
+    public int getWidth() {
+      return mWidth;
+    }
+
+    /** The number of rows of the tile and its halo */
+    public int getHeight() {
+      return mHeight;
+    }
+
+    /** The first row of the tile itself, in its pixels */
+    public int getFirstRow() {
+      return mFirstRow;
+    }
+
+    /** The number of rows of the tile itself */
+    public int getRowCount() {
+      return mRowCount;
+    }
+
+    /** The row of the bitmap of the first row of the tile itself */
+    public int getTop() {
+      return mTop;
+    }
+
+    public int getBitmapHeight() {
+      return mBitmapHeight;
+    }
+
+    private void syncPixelsFromBitmap() {
+      if (mBitmap != null) {
+        mBitmap.getPixels(mPixels, mFirstRow * mWidth, mWidth, 0, mFirstRow, mWidth, mRowCount);
+      }
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.cache;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import com.facebook.cache.common.CacheKey;
+import com.facebook.cache.common.SimpleCacheKey;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.common.ImageDecodeOptions;
+import com.facebook.imagepipeline.common.ResizeOptions;
+import com.facebook.imagepipeline.common.RotationOptions;
+import com.facebook.imagepipeline.image.CloseableImage;
+import com.facebook.imagepipeline.image.ImmutableQualityInfo;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.*;
+import org.junit.runner.*;
+import org.mockito.invocation.*;
+import org.mockito.stubbing.*;
+import org.robolectric.*;
+import org.robolectric.annotation.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class BitmapMemoryCacheVariantIndexTest {
+
+  private static final String SOURCE = "http://fresco/image.jpg";
+
+  private MemoryCache<CacheKey, CloseableImage> mMemoryCache;
+  private Map<CacheKey, CloseableImage> mCachedImages;
+  private BitmapMemoryCacheVariantIndex mVariantIndex;
+
+  @Before
+  public void setUp() {
+    mCachedImages = new HashMap<>();
+    mMemoryCache = mock(MemoryCache.class);
+    when(mMemoryCache.get(any(CacheKey.class))).then(
+        new Answer<CloseableReference<CloseableImage>>() {
+          @Override
+          public CloseableReference<CloseableImage> answer(InvocationOnMock invocation) {
+            CloseableImage image = mCachedImages.get(invocation.getArguments()[0]);
+            return image == null ? null : CloseableReference.of(image);
+          }
+        });
+    mVariantIndex = new BitmapMemoryCacheVariantIndex(mMemoryCache);
+  }
+
+  @Test
+  public void testGetsSmallestLargerVariant() {
+    CloseableImage large = cache(newKey(SOURCE, 1080), 1080, 1080);
+    CloseableImage medium = cache(newKey(SOURCE, 400), 400, 400);
+    cache(newKey(SOURCE, 100), 100, 100);
+
+    assertSame(medium, getLargerVariant(newKey(SOURCE, 200)));
+    assertSame(large, getLargerVariant(newKey(SOURCE, 800)));
+    assertNull(getLargerVariant(newKey(SOURCE, 2000)));
+    assertNull(getLargerVariant(newKey("http://fresco/other.jpg", 50)));
+  }
+
+  @Test
+  public void testComparesBothDimensions() {
+    cache(newKey(SOURCE, 1080), 1080, 200);
+    assertNull(getLargerVariant(newKey(SOURCE, 300)));
+  }
+
+  @Test
+  public void testNoVariantForFullSizeRequest() {
+    cache(newKey(SOURCE, 1080), 1080, 1080);
+    assertNull(mVariantIndex.getLargerVariant(newKey(SOURCE, null)));
+  }
+
+  @Test
+  public void testIgnoresIncompatibleVariants() {
+    cache(
+        new BitmapMemoryCacheKey(
+            SOURCE,
+            new ResizeOptions(1080, 1080),
+            RotationOptions.disableRotation(),
+            ImageDecodeOptions.defaults(),
+            null,
+            null,
+            null),
+        1080,
+        1080);
+    BitmapMemoryCacheKey postprocessedKey = new BitmapMemoryCacheKey(
+        SOURCE,
+        new ResizeOptions(1080, 1080),
+        RotationOptions.autoRotate(),
+        ImageDecodeOptions.defaults(),
+        new SimpleCacheKey("postprocessor"),
+        "postprocessor",
+        null);
+    cache(postprocessedKey, 1080, 1080);
+
+    assertEquals(1, mVariantIndex.getVariantCount(SOURCE));
+    assertNull(getLargerVariant(newKey(SOURCE, 200)));
+  }
+
+  @Test
+  public void testIgnoresIntermediateImages() {
+    CloseableImage image = mockImage(1080, 1080);
+    when(image.getQualityInfo()).thenReturn(ImmutableQualityInfo.of(2, false, false));
+    mVariantIndex.addVariant(newKey(SOURCE, 1080), image);
+    assertEquals(0, mVariantIndex.getVariantCount(SOURCE));
+  }
+
+  @Test
+  public void testDropsEvictedVariants() {
+    BitmapMemoryCacheKey largeKey = newKey(SOURCE, 1080);
+    cache(largeKey, 1080, 1080);
+    CloseableImage medium = cache(newKey(SOURCE, 400), 400, 400);
+    mCachedImages.remove(newKey(SOURCE, 400));
+
+    assertNotSame(medium, getLargerVariant(newKey(SOURCE, 200)));
+    assertEquals(1, mVariantIndex.getVariantCount(SOURCE));
+
+    mCachedImages.remove(largeKey);
+    assertNull(getLargerVariant(newKey(SOURCE, 200)));
+    assertEquals(0, mVariantIndex.getVariantCount(SOURCE));
+  }
+
+  @Test
+  public void testLimits() {
+    for (int i = 0; i <= BitmapMemoryCacheVariantIndex.MAX_VARIANTS_PER_SOURCE; i++) {
+      cache(newKey(SOURCE, 100 + i), 100 + i, 100 + i);
+    }
+    cache(newKey(SOURCE, 100 + 1), 100 + 1, 100 + 1);
+    assertEquals(
+        BitmapMemoryCacheVariantIndex.MAX_VARIANTS_PER_SOURCE,
+        mVariantIndex.getVariantCount(SOURCE));
+
+    for (int i = 0; i < BitmapMemoryCacheVariantIndex.MAX_SOURCES; i++) {
+      cache(newKey(SOURCE + i, 100), 100, 100);
+    }
+    assertEquals(0, mVariantIndex.getVariantCount(SOURCE));
+  }
+
+  private CloseableImage cache(BitmapMemoryCacheKey key, int width, int height) {
+    CloseableImage image = mockImage(width, height);
+    mCachedImages.put(key, image);
+    mVariantIndex.addVariant(key, image);
+    return image;
+  }
+
+  private CloseableImage getLargerVariant(BitmapMemoryCacheKey key) {
+    CloseableReference<CloseableImage> reference = mVariantIndex.getLargerVariant(key);
+    try {
+      return reference == null ? null : reference.get();
+    } finally {
+      CloseableReference.closeSafely(reference);
+    }
+  }
+
+  private static CloseableImage mockImage(int width, int height) {
+    CloseableImage image = mock(CloseableImage.class);
+    when(image.getWidth()).thenReturn(width);
+    when(image.getHeight()).thenReturn(height);
+    when(image.getQualityInfo()).thenReturn(ImmutableQualityInfo.FULL_QUALITY);
+    return image;
+  }
+
+  private static BitmapMemoryCacheKey newKey(String source, Integer size) {
+    return new BitmapMemoryCacheKey(
+        source,
+        size == null ? null : new ResizeOptions(size, size),
+        RotationOptions.autoRotate(),
+        ImageDecodeOptions.defaults(),
+        null,
+        null,
+        null);
+  }
+}
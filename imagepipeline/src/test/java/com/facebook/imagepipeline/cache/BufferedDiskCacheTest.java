@@ -7,11 +7,15 @@
 
 package com.facebook.imagepipeline.cache;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyListOf;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -23,21 +27,28 @@ import static org.powermock.api.mockito.PowerMockito.mockStatic;
 
 import bolts.Task;
 import com.facebook.binaryresource.BinaryResource;
+import com.facebook.binaryresource.FileBinaryResource;
 import com.facebook.cache.common.CacheKey;
 import com.facebook.cache.common.MultiCacheKey;
 import com.facebook.cache.common.SimpleCacheKey;
 import com.facebook.cache.common.WriterCallback;
+import com.facebook.cache.disk.BatchFileCache;
 import com.facebook.cache.disk.FileCache;
 import com.facebook.common.memory.PooledByteBuffer;
 import com.facebook.common.memory.PooledByteBufferFactory;
 import com.facebook.common.memory.PooledByteStreams;
 import com.facebook.common.references.CloseableReference;
 import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.memory.MappedPooledByteBuffer;
 import com.facebook.imagepipeline.testing.FakeClock;
 import com.facebook.imagepipeline.testing.TestExecutorService;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -52,6 +63,7 @@ import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareOnlyThisForTest;
 import org.powermock.modules.junit4.rule.PowerMockRule;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
 @RunWith(RobolectricTestRunner.class)
@@ -59,7 +71,7 @@ import org.robolectric.annotation.Config;
 @PrepareOnlyThisForTest(StagingArea.class)
 @Config(manifest=Config.NONE)
 public class BufferedDiskCacheTest {
-  @Mock public FileCache mFileCache;
+  @Mock public BatchFileCache mFileCache;
   @Mock public PooledByteBufferFactory mByteBufferFactory;
   @Mock public PooledByteStreams mPooledByteStreams;
   @Mock public StagingArea mStagingArea;
@@ -149,6 +161,69 @@ public class BufferedDiskCacheTest {
     assertSame(mPooledByteBuffer, result.getByteBufferRef().get());
   }
 
+  @Test
+  public void testMapsStaticImages() throws Exception {
+    byte[] jpeg = Arrays.copyOf(
+        new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, 1, 2, 3},
+        BufferedDiskCache.MIN_MAPPED_READ_SIZE);
+    when(mFileCache.getResource(eq(mCacheKey)))
+        .thenReturn(FileBinaryResource.createOrNull(writeCacheFile(jpeg)));
+    BufferedDiskCache bufferedDiskCache = newBufferedDiskCacheWithMappedReads();
+
+    Task<EncodedImage> readTask = bufferedDiskCache.get(mCacheKey, mIsCancelled);
+    mReadPriorityExecutor.runUntilIdle();
+    PooledByteBuffer result = readTask.getResult().getByteBufferRef().get();
+    assertTrue(result instanceof MappedPooledByteBuffer);
+    byte[] bytes = new byte[jpeg.length];
+    result.read(0, bytes, 0, bytes.length);
+    assertArrayEquals(jpeg, bytes);
+    verify(mByteBufferFactory, never()).newByteBuffer(any(InputStream.class), anyInt());
+  }
+
+  @Test
+  public void testCopiesAnimatedImagesOnlyForNativeCode() throws Exception {
+    byte[] gif = Arrays.copyOf(
+        "GIF89a".getBytes("US-ASCII"),
+        BufferedDiskCache.MIN_MAPPED_READ_SIZE);
+    when(mFileCache.getResource(eq(mCacheKey)))
+        .thenReturn(FileBinaryResource.createOrNull(writeCacheFile(gif)));
+    when(mByteBufferFactory.newByteBuffer(any(InputStream.class), eq(gif.length)))
+        .thenReturn(mPooledByteBuffer);
+    when(mPooledByteBuffer.getNativePtr()).thenReturn(1234L);
+    BufferedDiskCache bufferedDiskCache = newBufferedDiskCacheWithMappedReads();
+
+    Task<EncodedImage> readTask = bufferedDiskCache.get(mCacheKey, mIsCancelled);
+    mReadPriorityExecutor.runUntilIdle();
+    PooledByteBuffer result = readTask.getResult().getByteBufferRef().get();
+    assertTrue(result instanceof MappedPooledByteBuffer);
+    verify(mByteBufferFactory, never()).newByteBuffer(any(InputStream.class), anyInt());
+    assertEquals(1234L, result.getNativePtr());
+  }
+
+  @Test
+  public void testCopiesSmallFiles() throws Exception {
+    byte[] jpeg = new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, 1, 2, 3};
+    when(mFileCache.getResource(eq(mCacheKey)))
+        .thenReturn(FileBinaryResource.createOrNull(writeCacheFile(jpeg)));
+    when(mByteBufferFactory.newByteBuffer(any(InputStream.class), eq(jpeg.length)))
+        .thenReturn(mPooledByteBuffer);
+    BufferedDiskCache bufferedDiskCache = newBufferedDiskCacheWithMappedReads();
+
+    Task<EncodedImage> readTask = bufferedDiskCache.get(mCacheKey, mIsCancelled);
+    mReadPriorityExecutor.runUntilIdle();
+    assertSame(mPooledByteBuffer, readTask.getResult().getByteBufferRef().get());
+  }
+
+  @Test
+  public void testCopiesOtherResources() throws Exception {
+    when(mFileCache.getResource(eq(mCacheKey))).thenReturn(mBinaryResource);
+    BufferedDiskCache bufferedDiskCache = newBufferedDiskCacheWithMappedReads();
+
+    Task<EncodedImage> readTask = bufferedDiskCache.get(mCacheKey, mIsCancelled);
+    mReadPriorityExecutor.runUntilIdle();
+    assertSame(mPooledByteBuffer, readTask.getResult().getByteBufferRef().get());
+  }
+
   @Test
   public void testCacheGetCancellation() throws Exception {
     when(mFileCache.getResource(mCacheKey)).thenReturn(mBinaryResource);
@@ -266,6 +341,66 @@ public class BufferedDiskCacheTest {
     verify(mFileCache, never()).getResource(eq(mCacheKey));
   }
 
+  @Test
+  public void testFilterPresentSync() {
+    CacheKey stagedKey = new SimpleCacheKey("http://staged.uri");
+    CacheKey missingKey = new SimpleCacheKey("http://missing.uri");
+    when(mStagingArea.containsKey(stagedKey)).thenReturn(true);
+    when(mFileCache.filterPresentSync(Arrays.<CacheKey>asList(mCacheKey, missingKey)))
+        .thenReturn(Arrays.<CacheKey>asList(mCacheKey));
+    assertEquals(
+        Arrays.asList(mCacheKey, stagedKey),
+        mBufferedDiskCache.filterPresentSync(Arrays.asList(mCacheKey, stagedKey, missingKey)));
+  }
+
+  @Test
+  public void testFilterPresentChecksMissingKeysInOneTask() throws Exception {
+    CacheKey key1 = new SimpleCacheKey("http://one.uri");
+    CacheKey key2 = new SimpleCacheKey("http://two.uri");
+    List<CacheKey> keys = Arrays.asList(mCacheKey, key1, key2);
+    when(mFileCache.filterPresentSync(keys)).thenReturn(Arrays.<CacheKey>asList(mCacheKey));
+    when(mFileCache.filterPresent(Arrays.asList(key1, key2)))
+        .thenReturn(Arrays.asList(key2));
+    Task<List<CacheKey>> filterTask = mBufferedDiskCache.filterPresent(keys);
+    Task<Boolean> containsAllTask = mBufferedDiskCache.containsAll(keys);
+    assertFalse(filterTask.isCompleted());
+    assertEquals(2, mReadPriorityExecutor.getPendingCount());
+    mReadPriorityExecutor.runUntilIdle();
+    assertEquals(Arrays.asList(mCacheKey, key2), filterTask.getResult());
+    assertFalse(containsAllTask.getResult());
+  }
+
+  @Test
+  public void testFilterPresentKeyByKeyWithoutBatchSupport() throws Exception {
+    FileCache fileCache = mock(FileCache.class);
+    BufferedDiskCache bufferedDiskCache = new BufferedDiskCache(
+        fileCache,
+        mByteBufferFactory,
+        mPooledByteStreams,
+        mReadPriorityExecutor,
+        mWritePriorityExecutor,
+        mImageCacheStatsTracker);
+    CacheKey key1 = new SimpleCacheKey("http://one.uri");
+    CacheKey key2 = new SimpleCacheKey("http://two.uri");
+    when(fileCache.hasKeySync(mCacheKey)).thenReturn(true);
+    when(fileCache.hasKey(key2)).thenReturn(true);
+    Task<List<CacheKey>> filterTask =
+        bufferedDiskCache.filterPresent(Arrays.asList(mCacheKey, key1, key2));
+    mReadPriorityExecutor.runUntilIdle();
+    assertEquals(Arrays.asList(mCacheKey, key2), filterTask.getResult());
+    verify(fileCache, never()).hasKey(mCacheKey);
+  }
+
+  @Test
+  public void testFilterPresentAllFoundSync() throws Exception {
+    List<CacheKey> keys = Arrays.<CacheKey>asList(mCacheKey);
+    when(mFileCache.filterPresentSync(keys)).thenReturn(keys);
+    Task<Boolean> containsAllTask = mBufferedDiskCache.containsAll(keys);
+    assertTrue(containsAllTask.isCompleted());
+    assertTrue(containsAllTask.getResult());
+    verify(mFileCache, never()).filterPresent(anyListOf(CacheKey.class));
+  }
+
   @Test
   public void testRemoveFromStagingArea() {
     mBufferedDiskCache.remove(mCacheKey);
@@ -278,8 +413,137 @@ public class BufferedDiskCacheTest {
     verify(mStagingArea).clearAll();
   }
 
+  @Test
+  public void testWriteBehindBatchesPendingWrites() throws Exception {
+    BufferedDiskCache bufferedDiskCache = newBufferedDiskCacheWithWriteBehind();
+    CacheKey otherKey = new SimpleCacheKey("http://other.uri");
+    when(mFileCache.insertAll(any(List.class), any(List.class)))
+        .thenReturn(Arrays.asList(mBinaryResource, mBinaryResource));
+    bufferedDiskCache.put(mCacheKey, mEncodedImage);
+    bufferedDiskCache.put(otherKey, mEncodedImage);
+    assertEquals(1, mWritePriorityExecutor.getPendingCount());
+    // the images are served from the staging area until the batch has been written
+    verify(mStagingArea).put(mCacheKey, mEncodedImage);
+    verify(mStagingArea).put(otherKey, mEncodedImage);
+
+    mWritePriorityExecutor.runUntilIdle();
+    ArgumentCaptor<List> keysCaptor = ArgumentCaptor.forClass(List.class);
+    ArgumentCaptor<List> writersCaptor = ArgumentCaptor.forClass(List.class);
+    verify(mFileCache).insertAll(keysCaptor.capture(), writersCaptor.capture());
+    verify(mFileCache, never()).insert(any(CacheKey.class), any(WriterCallback.class));
+    assertEquals(Arrays.asList(mCacheKey, otherKey), keysCaptor.getValue());
+    assertEquals(2, writersCaptor.getValue().size());
+    verify(mStagingArea).remove(eq(mCacheKey), any(EncodedImage.class));
+    verify(mStagingArea).remove(eq(otherKey), any(EncodedImage.class));
+    assertEquals(2, mCloseableReference.getUnderlyingReferenceTestOnly().getRefCountTestOnly());
+  }
+
+  @Test
+  public void testWriteBehindInsertsOneByOneWithoutBatchSupport() throws Exception {
+    FileCache fileCache = mock(FileCache.class);
+    BufferedDiskCache bufferedDiskCache = new BufferedDiskCache(
+        fileCache,
+        mByteBufferFactory,
+        mPooledByteStreams,
+        mReadPriorityExecutor,
+        mWritePriorityExecutor,
+        mImageCacheStatsTracker,
+        false,
+        true);
+    CacheKey otherKey = new SimpleCacheKey("http://other.uri");
+    bufferedDiskCache.put(mCacheKey, mEncodedImage);
+    bufferedDiskCache.put(otherKey, mEncodedImage);
+
+    mWritePriorityExecutor.runUntilIdle();
+    verify(fileCache).insert(eq(mCacheKey), any(WriterCallback.class));
+    verify(fileCache).insert(eq(otherKey), any(WriterCallback.class));
+    verify(mStagingArea).remove(eq(mCacheKey), any(EncodedImage.class));
+    verify(mStagingArea).remove(eq(otherKey), any(EncodedImage.class));
+  }
+
+  @Test
+  public void testWriteBehindDropsDuplicateWrites() throws Exception {
+    BufferedDiskCache bufferedDiskCache = newBufferedDiskCacheWithWriteBehind();
+    EncodedImage newerEncodedImage = new EncodedImage(mCloseableReference);
+    when(mFileCache.insertAll(any(List.class), any(List.class)))
+        .thenReturn(Arrays.asList(mBinaryResource));
+    bufferedDiskCache.put(mCacheKey, mEncodedImage);
+    bufferedDiskCache.put(mCacheKey, newerEncodedImage);
+    // the dropped write released its reference
+    assertEquals(4, mCloseableReference.getUnderlyingReferenceTestOnly().getRefCountTestOnly());
+
+    mWritePriorityExecutor.runUntilIdle();
+    ArgumentCaptor<List> keysCaptor = ArgumentCaptor.forClass(List.class);
+    verify(mFileCache).insertAll(keysCaptor.capture(), any(List.class));
+    assertEquals(Arrays.asList(mCacheKey), keysCaptor.getValue());
+    ArgumentCaptor<EncodedImage> captor = ArgumentCaptor.forClass(EncodedImage.class);
+    verify(mStagingArea).remove(eq(mCacheKey), captor.capture());
+    assertSame(
+        newerEncodedImage.getUnderlyingReferenceTestOnly(),
+        captor.getValue().getUnderlyingReferenceTestOnly());
+    assertEquals(3, mCloseableReference.getUnderlyingReferenceTestOnly().getRefCountTestOnly());
+  }
+
+  @Test
+  public void testWriteBehindRemoveDropsPendingWrite() throws Exception {
+    BufferedDiskCache bufferedDiskCache = newBufferedDiskCacheWithWriteBehind();
+    bufferedDiskCache.put(mCacheKey, mEncodedImage);
+    bufferedDiskCache.remove(mCacheKey);
+    assertEquals(2, mCloseableReference.getUnderlyingReferenceTestOnly().getRefCountTestOnly());
+
+    mWritePriorityExecutor.runUntilIdle();
+    verify(mFileCache, never()).insertAll(any(List.class), any(List.class));
+    verify(mFileCache).remove(mCacheKey);
+  }
+
+  @Test
+  public void testWriteBehindClearAllDropsPendingWrites() throws Exception {
+    BufferedDiskCache bufferedDiskCache = newBufferedDiskCacheWithWriteBehind();
+    bufferedDiskCache.put(mCacheKey, mEncodedImage);
+    bufferedDiskCache.clearAll();
+    assertEquals(2, mCloseableReference.getUnderlyingReferenceTestOnly().getRefCountTestOnly());
+
+    mWritePriorityExecutor.runUntilIdle();
+    verify(mFileCache, never()).insertAll(any(List.class), any(List.class));
+    verify(mFileCache).clearAll();
+  }
+
   private static boolean isTaskCancelled(Task<?> task) {
     return task.isCancelled() ||
         (task.isFaulted() && task.getError() instanceof CancellationException);
   }
+
+  private BufferedDiskCache newBufferedDiskCacheWithMappedReads() {
+    return new BufferedDiskCache(
+        mFileCache,
+        mByteBufferFactory,
+        mPooledByteStreams,
+        mReadPriorityExecutor,
+        mWritePriorityExecutor,
+        mImageCacheStatsTracker,
+        true);
+  }
+
+  private BufferedDiskCache newBufferedDiskCacheWithWriteBehind() {
+    return new BufferedDiskCache(
+        mFileCache,
+        mByteBufferFactory,
+        mPooledByteStreams,
+        mReadPriorityExecutor,
+        mWritePriorityExecutor,
+        mImageCacheStatsTracker,
+        false,
+        true);
+  }
+
+  private static File writeCacheFile(byte[] content) throws IOException {
+    File file = new File(RuntimeEnvironment.application.getCacheDir(), "cached");
+    FileOutputStream fos = new FileOutputStream(file);
+    try {
+      fos.write(content);
+    } finally {
+      fos.close();
+    }
+    return file;
+  }
 }
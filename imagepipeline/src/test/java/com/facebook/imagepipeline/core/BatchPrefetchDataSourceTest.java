@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.core;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import com.facebook.datasource.AbstractDataSource;
+import com.facebook.datasource.DataSource;
+import com.facebook.imagepipeline.listener.RequestListener;
+import com.facebook.imagepipeline.listener.RequestTraceListener;
+import com.facebook.imagepipeline.producers.RequestTrace;
+import com.facebook.imagepipeline.request.ImageRequest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.*;
+import org.junit.runner.*;
+import org.robolectric.*;
+import org.robolectric.annotation.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class BatchPrefetchDataSourceTest {
+
+  private List<ImageRequest> mImageRequests;
+  private List<PrefetchDataSource> mSubmittedDataSources;
+  private List<RequestListener> mRequestListeners;
+  private boolean mStartsRequests;
+  private BatchPrefetchDataSource.PrefetchSubmitter mSubmitter;
+
+  @Before
+  public void setUp() {
+    mImageRequests = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      mImageRequests.add(mock(ImageRequest.class));
+    }
+    mSubmittedDataSources = new ArrayList<>();
+    mRequestListeners = new ArrayList<>();
+    mStartsRequests = true;
+    mSubmitter = new BatchPrefetchDataSource.PrefetchSubmitter() {
+      @Override
+      public DataSource<Void> submit(ImageRequest imageRequest, RequestListener requestListener) {
+        mRequestListeners.add(requestListener);
+        if (mStartsRequests) {
+          // as the pipeline does when it creates the data source of a request
+          requestListener.onRequestStart(imageRequest, null, "id", /* isPrefetch */ true);
+        }
+        PrefetchDataSource dataSource = new PrefetchDataSource();
+        mSubmittedDataSources.add(dataSource);
+        return dataSource;
+      }
+    };
+  }
+
+  @Test
+  public void testEmptyBatch() {
+    BatchPrefetchDataSource batch = newBatch(Collections.<ImageRequest>emptyList(), 0, 2, -1);
+    assertTrue(batch.isFinished());
+    assertFalse(batch.hasFailed());
+    assertEquals(1f, batch.getProgress(), 0);
+  }
+
+  @Test
+  public void testLimitsRequestsInFlight() {
+    BatchPrefetchDataSource batch = newBatch(mImageRequests, 0, 2, -1);
+    assertEquals(2, mSubmittedDataSources.size());
+    assertEquals(2, batch.getInFlightCount());
+
+    mSubmittedDataSources.get(0).finish();
+    assertEquals(3, mSubmittedDataSources.size());
+    assertEquals(2, batch.getInFlightCount());
+    assertEquals(0.2f, batch.getProgress(), 0.001f);
+
+    mSubmittedDataSources.get(1).fail();
+    mSubmittedDataSources.get(2).finish();
+    mSubmittedDataSources.get(3).finish();
+    assertFalse(batch.isFinished());
+    assertEquals(5, mSubmittedDataSources.size());
+
+    mSubmittedDataSources.get(4).finish();
+    assertTrue(batch.isFinished());
+    assertFalse(batch.hasFailed());
+    assertEquals(1, batch.getFailedCount());
+    assertEquals(1f, batch.getProgress(), 0);
+  }
+
+  @Test
+  public void testSkippedRequestsCountAsDone() {
+    BatchPrefetchDataSource batch = newBatch(mImageRequests.subList(0, 1), 3, 2, -1);
+    assertEquals(1, mSubmittedDataSources.size());
+    assertEquals(0.75f, batch.getProgress(), 0.001f);
+    assertEquals(3, batch.getSkippedCount());
+
+    mSubmittedDataSources.get(0).finish();
+    assertTrue(batch.isFinished());
+  }
+
+  @Test
+  public void testDropsPendingRequestsOverByteBudget() {
+    BatchPrefetchDataSource batch = newBatch(mImageRequests, 0, 2, 1000);
+    assertTrue(((RequestTraceListener) mRequestListeners.get(0)).requiresRequestTrace("0"));
+
+    completeWithByteCount(0, 600);
+    assertEquals(3, mSubmittedDataSources.size());
+    assertEquals(0, batch.getDroppedCount());
+
+    // the bytes of this request are counted before the next request would be submitted
+    completeWithByteCount(1, 600);
+    assertEquals(3, mSubmittedDataSources.size());
+    assertEquals(2, batch.getDroppedCount());
+    assertEquals(1200, batch.getFetchedByteCount());
+    assertEquals(0.8f, batch.getProgress(), 0.001f);
+
+    completeWithByteCount(2, 600);
+    assertTrue(batch.isFinished());
+    assertEquals(3, mSubmittedDataSources.size());
+  }
+
+  @Test
+  public void testKeepsSlotUntilTraceComplete() {
+    BatchPrefetchDataSource batch = newBatch(mImageRequests, 0, 2, 1000);
+
+    mSubmittedDataSources.get(0).finish();
+    assertEquals(2, mSubmittedDataSources.size());
+    assertEquals(2, batch.getInFlightCount());
+    assertEquals(0.2f, batch.getProgress(), 0.001f);
+
+    completeTrace(0, 100);
+    assertEquals(3, mSubmittedDataSources.size());
+    assertEquals(2, batch.getInFlightCount());
+  }
+
+  @Test
+  public void testFreesSlotOfRequestNotStarted() {
+    mStartsRequests = false;
+    BatchPrefetchDataSource batch = newBatch(mImageRequests, 0, 2, 1000);
+
+    // a request that failed before it started has no trace to wait for
+    mSubmittedDataSources.get(0).fail();
+    assertEquals(3, mSubmittedDataSources.size());
+    assertEquals(2, batch.getInFlightCount());
+  }
+
+  @Test
+  public void testDoesNotTraceWithoutByteBudget() {
+    newBatch(mImageRequests, 0, 2, -1);
+    assertFalse(((RequestTraceListener) mRequestListeners.get(0)).requiresRequestTrace("0"));
+  }
+
+  @Test
+  public void testClose() {
+    BatchPrefetchDataSource batch = newBatch(mImageRequests, 0, 2, -1);
+    assertTrue(batch.close());
+    assertTrue(mSubmittedDataSources.get(0).isClosed());
+    assertTrue(mSubmittedDataSources.get(1).isClosed());
+    assertEquals(2, mSubmittedDataSources.size());
+  }
+
+  private BatchPrefetchDataSource newBatch(
+      List<ImageRequest> imageRequests,
+      int skippedCount,
+      int maxInFlightRequests,
+      long maxBytes) {
+    BatchPrefetchDataSource batch = new BatchPrefetchDataSource(
+        mSubmitter,
+        imageRequests,
+        skippedCount,
+        new PrefetchBudget(maxInFlightRequests, maxBytes));
+    batch.start();
+    return batch;
+  }
+
+  /**
+   * Completes a request the way the pipeline does: the trace is delivered after the result.
+   */
+  private void completeWithByteCount(int index, long byteCount) {
+    mSubmittedDataSources.get(index).finish();
+    completeTrace(index, byteCount);
+  }
+
+  private void completeTrace(int index, long byteCount) {
+    RequestTrace requestTrace = mock(RequestTrace.class);
+    when(requestTrace.getByteCount(RequestTrace.STAGE_NETWORK_FETCH)).thenReturn(byteCount);
+    ((RequestTraceListener) mRequestListeners.get(index)).onRequestTraceComplete(requestTrace);
+  }
+
+  private static class PrefetchDataSource extends AbstractDataSource<Void> {
+
+    private void finish() {
+      setResult(null, /* isLast */ true);
+    }
+
+    private void fail() {
+      setFailure(new Exception());
+    }
+  }
+}
@@ -20,6 +20,7 @@ import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 import android.net.Uri;
+import bolts.Task;
 import com.android.internal.util.Predicate;
 import com.facebook.cache.common.CacheKey;
 import com.facebook.cache.common.MultiCacheKey;
@@ -42,6 +43,8 @@ import com.facebook.imagepipeline.producers.ProducerContext;
 import com.facebook.imagepipeline.producers.ThreadHandoffProducerQueue;
 import com.facebook.imagepipeline.request.ImageRequest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
@@ -188,6 +191,126 @@ public class ImagePipelineTest {
     assertEquals(producerContextArgumentCaptor.getValue().getPriority(), Priority.MEDIUM);
   }
 
+  @Test
+  public void testPrefetchBatchToDiskCacheSkipsCachedAndDuplicateRequests() {
+    ImageRequest cachedInMemoryRequest = mock(ImageRequest.class);
+    ImageRequest cachedOnDiskRequest = mock(ImageRequest.class);
+    ImageRequest duplicateRequest = mock(ImageRequest.class);
+    when(cachedOnDiskRequest.getCacheChoice()).thenReturn(ImageRequest.CacheChoice.SMALL);
+    CacheKey cacheKey = new SimpleCacheKey("key");
+    CacheKey cachedInMemoryKey = new SimpleCacheKey("memory");
+    CacheKey cachedOnDiskKey = new SimpleCacheKey("disk");
+    when(mCacheKeyFactory.getEncodedCacheKey(mImageRequest, mCallerContext)).thenReturn(cacheKey);
+    when(mCacheKeyFactory.getEncodedCacheKey(duplicateRequest, mCallerContext))
+        .thenReturn(cacheKey);
+    when(mCacheKeyFactory.getEncodedCacheKey(cachedInMemoryRequest, mCallerContext))
+        .thenReturn(cachedInMemoryKey);
+    when(mCacheKeyFactory.getEncodedCacheKey(cachedOnDiskRequest, mCallerContext))
+        .thenReturn(cachedOnDiskKey);
+    when(mEncodedMemoryCache.contains(cachedInMemoryKey)).thenReturn(true);
+    when(mSmallImageDiskStorageCache.filterPresentSync(Arrays.asList(cachedOnDiskKey)))
+        .thenReturn(Arrays.asList(cachedOnDiskKey));
+    Producer<Void> prefetchProducerSequence = mock(Producer.class);
+    when(mProducerSequenceFactory.getEncodedImagePrefetchProducerSequence(mImageRequest))
+        .thenReturn(prefetchProducerSequence);
+
+    List<ImageRequest> imageRequests = new ArrayList<>();
+    imageRequests.add(mImageRequest);
+    imageRequests.add(cachedInMemoryRequest);
+    imageRequests.add(duplicateRequest);
+    imageRequests.add(cachedOnDiskRequest);
+    DataSource<Void> dataSource = mImagePipeline.prefetchBatchToDiskCache(
+        imageRequests,
+        mCallerContext,
+        PrefetchBudget.forMaxInFlightRequests(2));
+
+    assertFalse(dataSource.isFinished());
+    assertEquals(0.75f, dataSource.getProgress(), 0.001f);
+    verify(mProducerSequenceFactory).getEncodedImagePrefetchProducerSequence(mImageRequest);
+    verifyNoMoreInteractions(mProducerSequenceFactory);
+    ArgumentCaptor<ProducerContext> producerContextArgumentCaptor =
+        ArgumentCaptor.forClass(ProducerContext.class);
+    verify(prefetchProducerSequence)
+        .produceResults(any(Consumer.class), producerContextArgumentCaptor.capture());
+    assertTrue(producerContextArgumentCaptor.getValue().isPrefetch());
+    assertEquals(Priority.MEDIUM, producerContextArgumentCaptor.getValue().getPriority());
+  }
+
+  @Test
+  public void testPrefetchBatchToBitmapCacheSkipsCachedRequests() {
+    CacheKey cacheKey = new SimpleCacheKey("key");
+    when(mCacheKeyFactory.getBitmapCacheKey(mImageRequest, mCallerContext)).thenReturn(cacheKey);
+    when(mBitmapMemoryCache.contains(cacheKey)).thenReturn(true);
+    DataSource<Void> dataSource = mImagePipeline.prefetchBatchToBitmapCache(
+        Collections.singletonList(mImageRequest),
+        mCallerContext,
+        PrefetchBudget.forMaxInFlightRequests(2));
+    assertTrue(dataSource.isFinished());
+    verifyNoMoreInteractions(mProducerSequenceFactory);
+  }
+
+  @Test
+  public void testPrefetchBatchWithPrefetchDisabled() {
+    when(mPrefetchEnabledSupplier.get()).thenReturn(false);
+    DataSource<Void> dataSource = mImagePipeline.prefetchBatchToDiskCache(
+        Collections.singletonList(mImageRequest),
+        mCallerContext,
+        PrefetchBudget.forMaxInFlightRequests(2));
+    assertTrue(dataSource.hasFailed());
+    verifyNoMoreInteractions(mProducerSequenceFactory);
+  }
+
+  @Test
+  public void testPrefetchBatchCancelsStaleBatchWithSameKey() {
+    when(mCacheKeyFactory.getEncodedCacheKey(mImageRequest, mCallerContext))
+        .thenReturn(new SimpleCacheKey("key"));
+    when(mProducerSequenceFactory.getEncodedImagePrefetchProducerSequence(mImageRequest))
+        .thenReturn(mock(Producer.class));
+    List<ImageRequest> imageRequests = Collections.singletonList(mImageRequest);
+    PrefetchBudget budget = PrefetchBudget.forMaxInFlightRequests(2);
+    Object batchKey = new Object();
+
+    DataSource<Void> staleBatch =
+        mImagePipeline.prefetchBatchToDiskCache(imageRequests, mCallerContext, budget, batchKey);
+    DataSource<Void> otherBatch = mImagePipeline.prefetchBatchToDiskCache(
+        imageRequests,
+        mCallerContext,
+        budget,
+        new Object());
+    assertFalse(staleBatch.isClosed());
+    DataSource<Void> newBatch =
+        mImagePipeline.prefetchBatchToDiskCache(imageRequests, mCallerContext, budget, batchKey);
+    assertTrue(staleBatch.isClosed());
+    assertFalse(otherBatch.isClosed());
+    assertFalse(newBatch.isClosed());
+  }
+
+  @Test
+  public void testFilterInDiskCache() {
+    ImageRequest mainCacheRequest = mock(ImageRequest.class);
+    ImageRequest smallCacheRequest = mock(ImageRequest.class);
+    CacheKey mainCacheKey = new SimpleCacheKey("main");
+    CacheKey smallCacheKey = new SimpleCacheKey("small");
+    CacheKey missingKey = new SimpleCacheKey("missing");
+    when(mCacheKeyFactory.getEncodedCacheKey(mainCacheRequest, null)).thenReturn(mainCacheKey);
+    when(mCacheKeyFactory.getEncodedCacheKey(smallCacheRequest, null)).thenReturn(smallCacheKey);
+    when(mCacheKeyFactory.getEncodedCacheKey(mImageRequest, null)).thenReturn(missingKey);
+    when(mMainDiskStorageCache.filterPresent(
+        Arrays.asList(smallCacheKey, missingKey, mainCacheKey)))
+        .thenReturn(Task.forResult(Arrays.asList(mainCacheKey)));
+    when(mSmallImageDiskStorageCache.filterPresent(Arrays.asList(smallCacheKey, missingKey)))
+        .thenReturn(Task.forResult(Arrays.asList(smallCacheKey)));
+
+    List<ImageRequest> imageRequests =
+        Arrays.asList(smallCacheRequest, mImageRequest, mainCacheRequest);
+    DataSource<List<ImageRequest>> dataSource = mImagePipeline.filterInDiskCache(imageRequests);
+    assertTrue(dataSource.isFinished());
+    assertEquals(Arrays.asList(smallCacheRequest, mainCacheRequest), dataSource.getResult());
+    DataSource<Boolean> containsAllDataSource =
+        mImagePipeline.containsAllInDiskCache(imageRequests);
+    assertFalse(containsAllDataSource.getResult());
+  }
+
   @Test
   public void testFetchLocalEncodedImage() {
     Producer<CloseableReference<PooledByteBuffer>> encodedSequence = mock(Producer.class);
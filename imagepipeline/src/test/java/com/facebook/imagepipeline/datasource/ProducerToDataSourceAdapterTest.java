@@ -14,9 +14,11 @@ import com.facebook.common.executors.CallerThreadExecutor;
 import com.facebook.datasource.DataSource;
 import com.facebook.datasource.DataSubscriber;
 import com.facebook.imagepipeline.listener.RequestListener;
+import com.facebook.imagepipeline.listener.RequestTraceListener;
 import com.facebook.imagepipeline.producers.BaseConsumer;
 import com.facebook.imagepipeline.producers.Consumer;
 import com.facebook.imagepipeline.producers.Producer;
+import com.facebook.imagepipeline.producers.RequestTrace;
 import com.facebook.imagepipeline.producers.SettableProducerContext;
 import org.junit.*;
 import org.junit.runner.*;
@@ -406,4 +408,57 @@ public class ProducerToDataSourceAdapterTest {
     testSubscribe(ON_NEW_RESULT);
     testClose(FINISHED, 2);
   }
+
+  @Test
+  public void testRequestTraceDeliveredOnSuccess() {
+    RequestTrace requestTrace = RequestTrace.obtain(mRequestId);
+    RequestListener requestListener = createTracedRequest(requestTrace);
+
+    mInternalConsumer.onNewResult(mResult1, Consumer.NO_FLAGS);
+    verify((RequestTraceListener) requestListener, never())
+        .onRequestTraceComplete(any(RequestTrace.class));
+    mInternalConsumer.onNewResult(mResult2, Consumer.IS_LAST);
+    verify((RequestTraceListener) requestListener).onRequestTraceComplete(requestTrace);
+    // recycled once delivered
+    assertNull(requestTrace.getRequestId());
+  }
+
+  @Test
+  public void testRequestTraceDeliveredOnFailure() {
+    RequestTrace requestTrace = RequestTrace.obtain(mRequestId);
+    RequestListener requestListener = createTracedRequest(requestTrace);
+
+    mInternalConsumer.onFailure(mException);
+    verify((RequestTraceListener) requestListener).onRequestTraceComplete(requestTrace);
+    assertNull(requestTrace.getRequestId());
+  }
+
+  @Test
+  public void testRequestTraceDeliveredOnCancellation() {
+    RequestTrace requestTrace = RequestTrace.obtain(mRequestId);
+    RequestListener requestListener = createTracedRequest(requestTrace);
+
+    mDataSource.close();
+    verify(mSettableProducerContext).cancel();
+    verify((RequestTraceListener) requestListener).onRequestTraceComplete(requestTrace);
+    assertNull(requestTrace.getRequestId());
+  }
+
+  private RequestListener createTracedRequest(RequestTrace requestTrace) {
+    RequestListener requestListener = mock(
+        RequestListener.class,
+        withSettings().extraInterfaces(RequestTraceListener.class));
+    mSettableProducerContext = mock(SettableProducerContext.class);
+    when(mSettableProducerContext.getId()).thenReturn(mRequestId);
+    when(mSettableProducerContext.getRequestTrace()).thenReturn(requestTrace);
+    mProducer = mock(Producer.class);
+    mDataSource = ProducerToDataSourceAdapter.create(
+        mProducer,
+        mSettableProducerContext,
+        requestListener);
+    ArgumentCaptor<Consumer> captor = ArgumentCaptor.forClass(Consumer.class);
+    verify(mProducer).produceResults(captor.capture(), any(SettableProducerContext.class));
+    mInternalConsumer = captor.getValue();
+    return requestListener;
+  }
 }
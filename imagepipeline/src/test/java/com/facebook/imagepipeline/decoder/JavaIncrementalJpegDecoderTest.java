@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.decoder;
+
+import static org.junit.Assert.*;
+
+import android.graphics.Bitmap;
+import com.facebook.common.internal.ByteStreams;
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.bitmaps.PlatformBitmapFactory;
+import com.facebook.imagepipeline.bitmaps.SimpleBitmapReleaser;
+import com.facebook.imagepipeline.common.ImageDecodeOptions;
+import com.facebook.imagepipeline.image.CloseableImage;
+import com.facebook.imagepipeline.image.CloseableStaticBitmap;
+import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.image.ImmutableQualityInfo;
+import com.facebook.imagepipeline.image.QualityInfo;
+import com.facebook.imagepipeline.testing.TrivialPooledByteBuffer;
+import com.facebook.imageutils.JfifUtil;
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class JavaIncrementalJpegDecoderTest {
+
+  private static final int WIDTH = 550;
+  private static final int HEIGHT = 468;
+
+  private byte[] mJpegBytes;
+  private EncodedImage mEncodedImage;
+  private CountingPlatformBitmapFactory mPlatformBitmapFactory;
+  private JavaIncrementalJpegDecoder mDecoder;
+
+  @Before
+  public void setUp() throws IOException {
+    mJpegBytes = ByteStreams.toByteArray(
+        JavaIncrementalJpegDecoderTest.class.getResourceAsStream("images/image.jpg"));
+    mEncodedImage = new EncodedImage(
+        CloseableReference.<PooledByteBuffer>of(new TrivialPooledByteBuffer(mJpegBytes)));
+    mPlatformBitmapFactory = new CountingPlatformBitmapFactory();
+    mDecoder = new JavaIncrementalJpegDecoder(mPlatformBitmapFactory);
+  }
+
+  @Test
+  public void testDecodesScans() {
+    QualityInfo qualityInfo = ImmutableQualityInfo.of(2, false, false);
+    CloseableImage image = mDecoder.decode(
+        mEncodedImage, getSecondScanEnd(), qualityInfo, ImageDecodeOptions.defaults());
+
+    assertTrue(image instanceof CloseableStaticBitmap);
+    Bitmap bitmap = ((CloseableStaticBitmap) image).getUnderlyingBitmap();
+    assertEquals(WIDTH, bitmap.getWidth());
+    assertEquals(HEIGHT, bitmap.getHeight());
+    assertSame(qualityInfo, image.getQualityInfo());
+    image.close();
+
+    image = mDecoder.decode(
+        mEncodedImage,
+        mJpegBytes.length,
+        ImmutableQualityInfo.FULL_QUALITY,
+        ImageDecodeOptions.defaults());
+    assertNotNull(image);
+    image.close();
+    assertEquals(2, mPlatformBitmapFactory.mCreatedCount);
+  }
+
+  @Test
+  public void testRendersEachScanIntoNewBitmap() {
+    CloseableImage firstImage = mDecoder.decode(
+        mEncodedImage,
+        getSecondScanEnd(),
+        ImmutableQualityInfo.FULL_QUALITY,
+        ImageDecodeOptions.defaults());
+    Bitmap firstBitmap = ((CloseableStaticBitmap) firstImage).getUnderlyingBitmap();
+    int firstPixel = firstBitmap.getPixel(WIDTH / 2, HEIGHT / 2);
+
+    CloseableImage secondImage = mDecoder.decode(
+        mEncodedImage,
+        mJpegBytes.length,
+        ImmutableQualityInfo.FULL_QUALITY,
+        ImageDecodeOptions.defaults());
+
+    // the pixels of the previous image are not changed by the next scans
+    assertNotSame(firstBitmap, ((CloseableStaticBitmap) secondImage).getUnderlyingBitmap());
+    assertEquals(firstPixel, firstBitmap.getPixel(WIDTH / 2, HEIGHT / 2));
+    firstImage.close();
+    secondImage.close();
+  }
+
+  @Test
+  public void testDecodesWithSampleSize() {
+    mEncodedImage.setSampleSize(4);
+    CloseableImage image = mDecoder.decode(
+        mEncodedImage,
+        getSecondScanEnd(),
+        ImmutableQualityInfo.FULL_QUALITY,
+        ImageDecodeOptions.defaults());
+
+    Bitmap bitmap = ((CloseableStaticBitmap) image).getUnderlyingBitmap();
+    assertEquals((WIDTH + 3) / 4, bitmap.getWidth());
+    assertEquals((HEIGHT + 3) / 4, bitmap.getHeight());
+    image.close();
+  }
+
+  @Test
+  public void testReturnsNullForOtherBitmapConfigs() {
+    ImageDecodeOptions options =
+        ImageDecodeOptions.newBuilder().setBitmapConfig(Bitmap.Config.RGB_565).build();
+    assertNull(mDecoder.decode(
+        mEncodedImage, getSecondScanEnd(), ImmutableQualityInfo.FULL_QUALITY, options));
+  }
+
+  @Test
+  public void testReturnsNullForMalformedImage() {
+    byte[] bytes = new byte[] {1, 2, 3, 4};
+    EncodedImage encodedImage = new EncodedImage(
+        CloseableReference.<PooledByteBuffer>of(new TrivialPooledByteBuffer(bytes)));
+    assertNull(mDecoder.decode(
+        encodedImage,
+        bytes.length,
+        ImmutableQualityInfo.FULL_QUALITY,
+        ImageDecodeOptions.defaults()));
+    // the image is not decoded again
+    assertNull(mDecoder.decode(
+        mEncodedImage,
+        mJpegBytes.length,
+        ImmutableQualityInfo.FULL_QUALITY,
+        ImageDecodeOptions.defaults()));
+  }
+
+  @Test
+  public void testReturnsNullOnceClosed() {
+    mDecoder.close();
+    assertNull(mDecoder.decode(
+        mEncodedImage,
+        mJpegBytes.length,
+        ImmutableQualityInfo.FULL_QUALITY,
+        ImageDecodeOptions.defaults()));
+  }
+
+  private static class CountingPlatformBitmapFactory extends PlatformBitmapFactory {
+
+    private int mCreatedCount;
+
+    @Override
+    public CloseableReference<Bitmap> createBitmapInternal(
+        int width,
+        int height,
+        Bitmap.Config bitmapConfig) {
+      mCreatedCount++;
+      return CloseableReference.of(
+          Bitmap.createBitmap(width, height, bitmapConfig),
+          SimpleBitmapReleaser.getInstance());
+    }
+  }
+
+  /**
+   * @return the offset of the start of the third scan
+   */
+  private int getSecondScanEnd() {
+    int scanCount = 0;
+    for (int i = 0; i < mJpegBytes.length - 1; i++) {
+      if ((mJpegBytes[i] & 0xFF) == JfifUtil.MARKER_FIRST_BYTE
+          && (mJpegBytes[i + 1] & 0xFF) == JfifUtil.MARKER_SOS
+          && ++scanCount == 3) {
+        return i;
+      }
+    }
+    throw new AssertionError("Third scan not found");
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.decoder;
+
+import static org.junit.Assert.*;
+
+import com.facebook.common.internal.ByteStreams;
+import com.facebook.imageutils.JfifUtil;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.imageio.ImageIO;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class JpegScanDecoderTest {
+
+  /** The maximum mean difference of each color channel with the reference decoder */
+  private static final double MAX_MEAN_ERROR = 2;
+
+  private byte[] mJpegBytes;
+  private BufferedImage mReferenceImage;
+
+  @Before
+  public void setUp() throws IOException {
+    mJpegBytes = ByteStreams.toByteArray(
+        JpegScanDecoderTest.class.getResourceAsStream("images/image.jpg"));
+    mReferenceImage = ImageIO.read(new ByteArrayInputStream(mJpegBytes));
+  }
+
+  @Test
+  public void testDecodesWholeImage() throws IOException {
+    JpegScanDecoder decoder = new JpegScanDecoder();
+    decoder.feed(mJpegBytes, mJpegBytes.length);
+
+    assertTrue(decoder.isSupported());
+    assertTrue(decoder.isEndOfImageRead());
+    assertEquals(mJpegBytes.length, decoder.getConsumedLength());
+    assertEquals(10, decoder.getScanCount());
+    assertEquals(mReferenceImage.getWidth(), decoder.getWidth());
+    assertEquals(mReferenceImage.getHeight(), decoder.getHeight());
+    assertTrue(getMeanError(render(decoder, 1), mReferenceImage) < MAX_MEAN_ERROR);
+  }
+
+  @Test
+  public void testDecodesScanByScan() throws IOException {
+    JpegScanDecoder decoder = new JpegScanDecoder();
+    List<Integer> scanEnds = getScanEnds(mJpegBytes);
+    int[] previousPixels = null;
+    for (int i = 0; i < scanEnds.size(); i++) {
+      feed(decoder, scanEnds.get(i));
+      assertEquals(scanEnds.get(i).intValue(), decoder.getConsumedLength());
+      assertEquals(i, decoder.getScanCount());
+      if (i > 0) {
+        int[] pixels = render(decoder, 1);
+        assertFalse(Arrays.equals(previousPixels, pixels));
+        previousPixels = pixels;
+      }
+    }
+    feed(decoder, mJpegBytes.length);
+
+    JpegScanDecoder wholeImageDecoder = new JpegScanDecoder();
+    wholeImageDecoder.feed(mJpegBytes, mJpegBytes.length);
+    assertArrayEquals(render(wholeImageDecoder, 1), render(decoder, 1));
+  }
+
+  @Test
+  public void testKeepsIncompleteSegmentForNextFeed() throws IOException {
+    JpegScanDecoder decoder = new JpegScanDecoder();
+    int firstScanStart = getScanEnds(mJpegBytes).get(0);
+    // ends within the header of the first scan
+    feed(decoder, firstScanStart + 3);
+    assertEquals(firstScanStart, decoder.getConsumedLength());
+    assertEquals(0, decoder.getScanCount());
+
+    feed(decoder, mJpegBytes.length);
+    assertEquals(10, decoder.getScanCount());
+  }
+
+  @Test
+  public void testRendersWithSampleSize() throws IOException {
+    JpegScanDecoder decoder = new JpegScanDecoder();
+    decoder.feed(mJpegBytes, mJpegBytes.length);
+    int[] pixels = render(decoder, 1);
+
+    for (int sampleSize : new int[] {2, 8}) {
+      int width = decoder.getOutputWidth(sampleSize);
+      int height = decoder.getOutputHeight(sampleSize);
+      assertEquals((mReferenceImage.getWidth() + sampleSize - 1) / sampleSize, width);
+      assertEquals((mReferenceImage.getHeight() + sampleSize - 1) / sampleSize, height);
+      render(decoder, sampleSize);
+    }
+    assertArrayEquals(pixels, render(decoder, 1));
+  }
+
+  @Test
+  public void testReportsBaselineJpegAsNotSupported() throws IOException {
+    byte[] baselineBytes = Arrays.copyOf(mJpegBytes, mJpegBytes.length);
+    int frameOffset = indexOfMarker(baselineBytes, 0xC2);
+    baselineBytes[frameOffset + 1] = (byte) 0xC0;
+
+    JpegScanDecoder decoder = new JpegScanDecoder();
+    decoder.feed(baselineBytes, baselineBytes.length);
+    assertFalse(decoder.isSupported());
+    assertEquals(0, decoder.getScanCount());
+  }
+
+  @Test
+  public void testReportsOversizedImageAsNotSupported() throws IOException {
+    byte[] oversizedBytes = Arrays.copyOf(mJpegBytes, mJpegBytes.length);
+    int frameOffset = indexOfMarker(oversizedBytes, 0xC2);
+    // 65535x65535, the largest size of the header
+    Arrays.fill(oversizedBytes, frameOffset + 5, frameOffset + 9, (byte) 0xFF);
+
+    JpegScanDecoder decoder = new JpegScanDecoder();
+    decoder.feed(oversizedBytes, oversizedBytes.length);
+    assertFalse(decoder.isSupported());
+    assertEquals(0, decoder.getScanCount());
+  }
+
+  @Test
+  public void testReportsImageWithTooManyPixelsAsNotSupported() throws IOException {
+    byte[] oversizedBytes = Arrays.copyOf(mJpegBytes, mJpegBytes.length);
+    int frameOffset = indexOfMarker(oversizedBytes, 0xC2);
+    // 8192x8192, within the max dimension
+    oversizedBytes[frameOffset + 5] = 0x20;
+    oversizedBytes[frameOffset + 6] = 0;
+    oversizedBytes[frameOffset + 7] = 0x20;
+    oversizedBytes[frameOffset + 8] = 0;
+
+    JpegScanDecoder decoder = new JpegScanDecoder();
+    decoder.feed(oversizedBytes, oversizedBytes.length);
+    assertFalse(decoder.isSupported());
+  }
+
+  @Test(expected = IOException.class)
+  public void testThrowsOnNonJpeg() throws IOException {
+    byte[] bytes = new byte[] {1, 2, 3, 4};
+    new JpegScanDecoder().feed(bytes, bytes.length);
+  }
+
+  private void feed(JpegScanDecoder decoder, int length) throws IOException {
+    int offset = decoder.getConsumedLength();
+    byte[] data = Arrays.copyOfRange(mJpegBytes, offset, length);
+    decoder.feed(data, data.length);
+  }
+
+  private static int[] render(JpegScanDecoder decoder, int sampleSize) {
+    int[] pixels =
+        new int[decoder.getOutputWidth(sampleSize) * decoder.getOutputHeight(sampleSize)];
+    decoder.render(sampleSize, pixels);
+    return pixels;
+  }
+
+  /**
+   * @return the offsets of the start of scan markers
+   */
+  private static List<Integer> getScanEnds(byte[] bytes) {
+    List<Integer> scanEnds = new ArrayList<>();
+    for (int i = 0; i < bytes.length - 1; i++) {
+      if ((bytes[i] & 0xFF) == JfifUtil.MARKER_FIRST_BYTE
+          && (bytes[i + 1] & 0xFF) == JfifUtil.MARKER_SOS) {
+        scanEnds.add(i);
+      }
+    }
+    return scanEnds;
+  }
+
+  private static int indexOfMarker(byte[] bytes, int marker) {
+    for (int i = 0; i < bytes.length - 1; i++) {
+      if ((bytes[i] & 0xFF) == JfifUtil.MARKER_FIRST_BYTE && (bytes[i + 1] & 0xFF) == marker) {
+        return i;
+      }
+    }
+    throw new AssertionError("Marker not found");
+  }
+
+  private static double getMeanError(int[] pixels, BufferedImage referenceImage) {
+    final int width = referenceImage.getWidth();
+    long error = 0;
+    for (int y = 0; y < referenceImage.getHeight(); y++) {
+      for (int x = 0; x < width; x++) {
+        int pixel = pixels[y * width + x];
+        int reference = referenceImage.getRGB(x, y);
+        for (int shift = 0; shift < 24; shift += 8) {
+          error += Math.abs(((pixel >> shift) & 0xFF) - ((reference >> shift) & 0xFF));
+        }
+      }
+    }
+    return (double) error / (3 * pixels.length);
+  }
+}
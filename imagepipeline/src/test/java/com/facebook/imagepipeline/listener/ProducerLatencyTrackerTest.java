@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.listener;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import android.os.SystemClock;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.producers.ProducerContext;
+import com.facebook.imagepipeline.producers.ProducerListener;
+import com.facebook.imagepipeline.producers.RequestTrace;
+import com.facebook.imagepipeline.producers.SettableProducerContext;
+import com.facebook.imagepipeline.request.ImageRequest;
+import org.junit.*;
+import org.junit.runner.*;
+import org.robolectric.*;
+import org.robolectric.annotation.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ProducerLatencyTrackerTest {
+
+  private static final String REQUEST_ID = "requestId";
+
+  private ProducerLatencyTracker mTracker;
+  private RequestTrace mRequestTrace;
+  private ProducerContext mProducerContext;
+
+  @Before
+  public void setUp() {
+    mTracker = new ProducerLatencyTracker(null);
+    mRequestTrace = RequestTrace.obtain(REQUEST_ID);
+    mProducerContext = new SettableProducerContext(
+        mock(ImageRequest.class),
+        REQUEST_ID,
+        mock(ProducerListener.class),
+        mock(Object.class),
+        ImageRequest.RequestLevel.FULL_FETCH,
+        false,
+        true,
+        Priority.MEDIUM,
+        mRequestTrace);
+  }
+
+  @After
+  public void tearDown() {
+    mRequestTrace.recycle();
+  }
+
+  @Test
+  public void testRequiresTrace() {
+    assertTrue(mTracker.requiresRequestTrace(REQUEST_ID));
+    assertNull(mTracker.getExecutorSupplier());
+  }
+
+  @Test
+  public void testSeparatesQueueWaitFromExecution() {
+    SystemClock.setCurrentTimeMillis(1000);
+    RequestTrace.recordStageStart(mProducerContext, RequestTrace.STAGE_DECODE);
+    RequestTrace.recordQueueWait(mProducerContext, RequestTrace.STAGE_DECODE, 30);
+    SystemClock.setCurrentTimeMillis(1040);
+    RequestTrace.recordStageFinish(
+        mProducerContext, RequestTrace.STAGE_DECODE, RequestTrace.STATUS_SUCCESS);
+
+    mTracker.onRequestTraceComplete(mRequestTrace);
+
+    assertEquals(1, mTracker.getExecutionHistogram(RequestTrace.STAGE_DECODE).getTotalCount());
+    assertEquals(40, mTracker.getExecutionHistogram(RequestTrace.STAGE_DECODE).getMax());
+    assertEquals(1, mTracker.getQueueWaitHistogram(RequestTrace.STAGE_DECODE).getTotalCount());
+    assertEquals(30, mTracker.getQueueWaitHistogram(RequestTrace.STAGE_DECODE).getMax());
+    assertEquals(
+        0,
+        mTracker.getExecutionHistogram(RequestTrace.STAGE_NETWORK_FETCH).getTotalCount());
+  }
+
+  @Test
+  public void testWaits() {
+    SystemClock.setCurrentTimeMillis(1000);
+    RequestTrace.recordWaitStart(mProducerContext, RequestTrace.WAIT_THROTTLING);
+    SystemClock.setCurrentTimeMillis(1250);
+    RequestTrace.recordWaitEnd(mProducerContext, RequestTrace.WAIT_THROTTLING);
+    RequestTrace.recordWait(mProducerContext, RequestTrace.WAIT_DECODE_INTERVAL, 100);
+
+    mTracker.onRequestTraceComplete(mRequestTrace);
+
+    assertEquals(250, mTracker.getWaitHistogram(RequestTrace.WAIT_THROTTLING).getMax());
+    assertEquals(100, mTracker.getWaitHistogram(RequestTrace.WAIT_DECODE_INTERVAL).getMax());
+    assertEquals(
+        0,
+        mTracker.getWaitHistogram(RequestTrace.WAIT_THREAD_HANDOFF).getTotalCount());
+  }
+
+  @Test
+  public void testCancelledAndUnfinishedStagesAreNotCounted() {
+    RequestTrace.recordStageStart(mProducerContext, RequestTrace.STAGE_NETWORK_FETCH);
+    RequestTrace.recordStageFinish(
+        mProducerContext, RequestTrace.STAGE_NETWORK_FETCH, RequestTrace.STATUS_CANCELLATION);
+    RequestTrace.recordStageStart(mProducerContext, RequestTrace.STAGE_DECODE);
+
+    mTracker.onRequestTraceComplete(mRequestTrace);
+
+    assertEquals(
+        0,
+        mTracker.getExecutionHistogram(RequestTrace.STAGE_NETWORK_FETCH).getTotalCount());
+    assertEquals(0, mTracker.getExecutionHistogram(RequestTrace.STAGE_DECODE).getTotalCount());
+  }
+}
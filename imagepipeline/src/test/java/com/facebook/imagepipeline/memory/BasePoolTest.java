@@ -8,6 +8,9 @@
 package com.facebook.imagepipeline.memory;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import android.util.SparseIntArray;
 import com.facebook.common.internal.ImmutableMap;
@@ -195,6 +198,58 @@ public class BasePoolTest {
     Assert.assertEquals(1, mStats.mUsedCount);
   }
 
+  // Tests that a free value of a larger bucket is reused, and stays in its own bucket
+  @Test
+  public void testGet_BestFitReuse() throws Exception {
+    mPool.mMaxBestFitIncrease = 4;
+    byte[] b1 = mPool.get(6);
+    mPool.release(b1);
+
+    byte[] b2 = mPool.get(1);
+    Assert.assertSame(b1, b2);
+    mStats.refresh();
+    Assert.assertEquals(
+        ImmutableMap.of(2, new IntPair(0, 0), 6, new IntPair(1, 0)),
+        mStats.mBucketStats);
+    Assert.assertEquals(6, mStats.mUsedBytes);
+    Assert.assertEquals(0, mStats.mFreeBytes);
+
+    mPool.release(b2);
+    mStats.refresh();
+    Assert.assertEquals(
+        ImmutableMap.of(2, new IntPair(0, 0), 6, new IntPair(0, 1)),
+        mStats.mBucketStats);
+  }
+
+  // Tests that best-fit reuse is reported to the trackers that support it
+  @Test
+  public void testGet_BestFitReuseStats() throws Exception {
+    BestFitPoolStatsTracker poolStatsTracker = mock(BestFitPoolStatsTracker.class);
+    TestPool pool = new TestPool(100, 100, null, poolStatsTracker);
+    pool.mMaxBestFitIncrease = 4;
+    pool.release(pool.get(6));
+
+    pool.get(1);
+    verify(poolStatsTracker).onValueReuse(6);
+    verify(poolStatsTracker).onBestFitValueReuse(2, 6);
+  }
+
+  // Tests that values of buckets larger than the best fit max are not reused
+  @Test
+  public void testGet_BestFitTooLarge() throws Exception {
+    mPool.mMaxBestFitIncrease = 2;
+    byte[] b1 = mPool.get(6);
+    mPool.release(b1);
+
+    byte[] b2 = mPool.get(2);
+    Assert.assertNotSame(b1, b2);
+    Assert.assertEquals(2, b2.length);
+    mStats.refresh();
+    Assert.assertEquals(
+        ImmutableMap.of(2, new IntPair(1, 0), 6, new IntPair(0, 1)),
+        mStats.mBucketStats);
+  }
+
   // Get via alloc - exception on max size hard cap
   @Test
   public void testGet_AllocFailure() throws Exception {
@@ -456,6 +511,289 @@ public class BasePoolTest {
         mStats.mBucketStats);
   }
 
+  // a value released to the magazine is reused by the same thread without going to the buckets
+  @Test
+  public void testMagazine_ReleaseAndGet() throws Exception {
+    mPool.setThreadLocalMagazineCapacity(4);
+    byte[] b1 = mPool.get(1);
+    mPool.release(b1);
+
+    // the value is still accounted as used
+    mStats.refresh();
+    Assert.assertEquals(
+        ImmutableMap.of(2, new IntPair(1, 0)),
+        mStats.mBucketStats);
+    Assert.assertEquals(0, mStats.mFreeBytes);
+    Assert.assertEquals(2, mStats.mUsedBytes);
+    Assert.assertTrue(mPool.mInUseValues.contains(b1));
+
+    Assert.assertSame(b1, mPool.get(1));
+    mStats.refresh();
+    Assert.assertEquals(
+        ImmutableMap.of(2, new IntPair(1, 0)),
+        mStats.mBucketStats);
+    Assert.assertEquals(2, mStats.mUsedBytes);
+    Assert.assertEquals(1, mStats.mUsedCount);
+  }
+
+  // a full magazine spills half its values to the bucket, and refills from it in a batch
+  @Test
+  public void testMagazine_SpillAndRefill() throws Exception {
+    mPool = new TestPool(100, 100);
+    mStats.setPool(mPool);
+    mPool.setThreadLocalMagazineCapacity(4);
+    byte[][] values = new byte[6][];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = mPool.get(2);
+    }
+    for (int i = 0; i < values.length; ++i) {
+      mPool.release(values[i]);
+    }
+
+    // the 5th release spilled 2 values along with itself, the 6th went to the magazine
+    mStats.refresh();
+    Assert.assertEquals(
+        ImmutableMap.of(2, new IntPair(3, 3)),
+        mStats.mBucketStats);
+    Assert.assertEquals(3, mStats.mUsedCount);
+    Assert.assertEquals(3, mStats.mFreeCount);
+
+    // empty the magazine
+    for (int i = 0; i < 3; ++i) {
+      mPool.get(2);
+    }
+    mStats.refresh();
+    Assert.assertEquals(3, mStats.mFreeCount);
+
+    // reusing a value from the bucket also moves 2 more values to the magazine
+    mPool.get(2);
+    mStats.refresh();
+    Assert.assertEquals(
+        ImmutableMap.of(2, new IntPair(6, 0)),
+        mStats.mBucketStats);
+    Assert.assertEquals(6, mStats.mUsedCount);
+    Assert.assertEquals(0, mStats.mFreeCount);
+    Assert.assertEquals(6, mPool.mInUseValues.size());
+  }
+
+  // trimming the pool frees the values in the magazines as well
+  @Test
+  public void testMagazine_Trim() throws Exception {
+    mPool.setThreadLocalMagazineCapacity(4);
+    byte[] b1 = mPool.get(1);
+    mPool.release(b1);
+    mPool.trimToNothing();
+
+    mStats.refresh();
+    Assert.assertEquals(0, mStats.mUsedBytes);
+    Assert.assertEquals(0, mStats.mFreeBytes);
+    Assert.assertTrue(mPool.mInUseValues.isEmpty());
+    Assert.assertNotSame(b1, mPool.get(1));
+  }
+
+  // values in magazines are moved back to the pool instead of exceeding the hard cap
+  @Test
+  public void testMagazine_HardCap() throws Exception {
+    TestPool pool = new TestPool(4, 4);
+    pool.setThreadLocalMagazineCapacity(4);
+    pool.release(pool.get(2));
+    pool.get(4);
+    Assert.assertEquals(4, pool.mUsed.mNumBytes);
+    Assert.assertEquals(0, pool.mFree.mNumBytes);
+  }
+
+  // each thread has its own magazine
+  @Test
+  public void testMagazine_PerThread() throws Exception {
+    mPool.setThreadLocalMagazineCapacity(4);
+    final byte[] b1 = mPool.get(1);
+    mPool.release(b1);
+
+    final byte[][] fromOtherThread = new byte[1][];
+    Thread thread = new Thread(
+        new Runnable() {
+          @Override
+          public void run() {
+            fromOtherThread[0] = mPool.get(1);
+          }
+        });
+    thread.start();
+    thread.join();
+
+    Assert.assertNotSame(b1, fromOtherThread[0]);
+    Assert.assertSame(b1, mPool.get(1));
+  }
+
+  // releasing the same value twice doesn't put it twice in the magazine
+  @Test
+  public void testMagazine_DoubleRelease() throws Exception {
+    mPool.setThreadLocalMagazineCapacity(4);
+    byte[] b1 = mPool.get(1);
+    mPool.release(b1);
+    mPool.release(b1);
+    Assert.assertSame(b1, mPool.get(1));
+    Assert.assertNotSame(b1, mPool.get(1));
+  }
+
+  // a value already in the magazine of another thread is not accepted again
+  @Test
+  public void testMagazine_DoubleReleaseFromOtherThread() throws Exception {
+    mPool.setThreadLocalMagazineCapacity(4);
+    final byte[] b1 = mPool.get(1);
+    mPool.release(b1);
+
+    final byte[][] fromOtherThread = new byte[1][];
+    Thread thread = new Thread(
+        new Runnable() {
+          @Override
+          public void run() {
+            mPool.release(b1);
+            fromOtherThread[0] = mPool.get(1);
+          }
+        });
+    thread.start();
+    thread.join();
+
+    Assert.assertNotSame(b1, fromOtherThread[0]);
+    Assert.assertSame(b1, mPool.get(1));
+  }
+
+  // values the pool doesn't know are freed rather than kept in the magazine
+  @Test
+  public void testMagazine_UnknownValue() throws Exception {
+    mPool.setThreadLocalMagazineCapacity(4);
+    byte[] unknown = new byte[2];
+    mPool.release(unknown);
+
+    Assert.assertNotSame(unknown, mPool.get(1));
+    mStats.refresh();
+    Assert.assertEquals(2, mStats.mUsedBytes);
+    Assert.assertEquals(1, mPool.mInUseValues.size());
+  }
+
+  // over the soft cap, released values are freed rather than kept in the magazine
+  @Test
+  public void testMagazine_SoftCap() throws Exception {
+    TestPool pool = new TestPool(4, 14);
+    pool.setThreadLocalMagazineCapacity(4);
+    byte[] b1 = pool.get(2);
+    pool.get(4);
+    pool.release(b1);
+
+    Assert.assertEquals(4, pool.mUsed.mNumBytes);
+    Assert.assertEquals(0, pool.mFree.mNumBytes);
+    Assert.assertFalse(pool.mInUseValues.contains(b1));
+    Assert.assertNotSame(b1, pool.get(2));
+  }
+
+  // the releases and reuses of values in a magazine are reported in a batch, once the magazine
+  // goes through the pool
+  @Test
+  public void testMagazine_Stats() throws Exception {
+    PoolStatsTracker poolStatsTracker = mock(PoolStatsTracker.class);
+    TestPool pool = new TestPool(100, 100, null, poolStatsTracker);
+    pool.setThreadLocalMagazineCapacity(4);
+    byte[] b1 = pool.get(2);
+    byte[] b2 = pool.get(2);
+    pool.release(b1);
+    pool.release(b2);
+    pool.get(2);
+    verify(poolStatsTracker, never()).onValueRelease(2);
+    verify(poolStatsTracker, never()).onValueReuse(2);
+
+    pool.trimToNothing();
+    verify(poolStatsTracker, times(2)).onValueRelease(2);
+    verify(poolStatsTracker, times(1)).onValueReuse(2);
+  }
+
+  // a value handed out by a magazine and released on another thread goes back to the buckets, and
+  // can't be released to the magazine again
+  @Test
+  public void testMagazine_ReleaseFromOtherThread() throws Exception {
+    mPool.setThreadLocalMagazineCapacity(4);
+    final byte[] b1 = mPool.get(1);
+    Thread thread = new Thread(
+        new Runnable() {
+          @Override
+          public void run() {
+            mPool.release(b1);
+          }
+        });
+    thread.start();
+    thread.join();
+
+    mStats.refresh();
+    Assert.assertEquals(
+        ImmutableMap.of(2, new IntPair(0, 1)),
+        mStats.mBucketStats);
+    Assert.assertFalse(mPool.mInUseValues.contains(b1));
+
+    mPool.release(b1);
+    mStats.refresh();
+    Assert.assertEquals(
+        ImmutableMap.of(2, new IntPair(0, 1)),
+        mStats.mBucketStats);
+  }
+
+  // a best-fit reuse refills the magazine from the bucket that served it
+  @Test
+  public void testMagazine_BestFitRefill() throws Exception {
+    mPool = new TestPool(100, 100);
+    mStats.setPool(mPool);
+    mPool.mMaxBestFitIncrease = 4;
+    byte[][] values = new byte[3][];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = mPool.get(6);
+    }
+    for (int i = 0; i < values.length; ++i) {
+      mPool.release(values[i]);
+    }
+    mPool.setThreadLocalMagazineCapacity(4);
+
+    Assert.assertEquals(6, mPool.get(1).length);
+    mStats.refresh();
+    Assert.assertEquals(
+        ImmutableMap.of(2, new IntPair(0, 0), 6, new IntPair(3, 0)),
+        mStats.mBucketStats);
+    Assert.assertEquals(3, mPool.mInUseValues.size());
+  }
+
+  // the magazine of a finished thread is dropped, and its values moved back to the buckets
+  @Test
+  public void testMagazine_DeadThread() throws Exception {
+    mPool.setThreadLocalMagazineCapacity(4);
+    final byte[][] fromOtherThread = new byte[1][];
+    Thread thread = new Thread(
+        new Runnable() {
+          @Override
+          public void run() {
+            fromOtherThread[0] = mPool.get(1);
+            mPool.release(fromOtherThread[0]);
+          }
+        });
+    thread.start();
+    thread.join();
+
+    Assert.assertSame(fromOtherThread[0], mPool.get(1));
+    mStats.refresh();
+    Assert.assertEquals(2, mStats.mUsedBytes);
+    Assert.assertEquals(0, mStats.mFreeBytes);
+  }
+
+  // values that are not reusable bypass the magazine
+  @Test
+  public void testMagazine_NonReusable() throws Exception {
+    mPool.setThreadLocalMagazineCapacity(4);
+    byte[] b1 = mPool.get(1);
+    mPool.mIsReusable = false;
+    mPool.release(b1);
+
+    mStats.refresh();
+    Assert.assertEquals(0, mStats.mUsedBytes);
+    Assert.assertEquals(0, mStats.mFreeBytes);
+    Assert.assertFalse(mPool.mInUseValues.contains(b1));
+  }
+
   @Test
   public void test_canAllocate() throws Exception {
     TestPool pool = new TestPool(4, 8);
@@ -475,6 +813,7 @@ public class BasePoolTest {
    */
   public static class TestPool extends BasePool<byte[]> {
     public boolean mIsReusable;
+    public int mMaxBestFitIncrease;
 
     public TestPool(int maxPoolSizeSoftCap, int maxPoolSizeHardCap) {
       this(maxPoolSizeSoftCap, maxPoolSizeHardCap, null);
@@ -484,10 +823,18 @@ public class BasePoolTest {
         int maxPoolSizeSoftCap,
         int maxPoolSizeHardCap,
         SparseIntArray bucketSizes) {
+      this(maxPoolSizeSoftCap, maxPoolSizeHardCap, bucketSizes, mock(PoolStatsTracker.class));
+    }
+
+    public TestPool(
+        int maxPoolSizeSoftCap,
+        int maxPoolSizeHardCap,
+        SparseIntArray bucketSizes,
+        PoolStatsTracker poolStatsTracker) {
       super(
           mock(MemoryTrimmableRegistry.class),
           new PoolParams(maxPoolSizeSoftCap, maxPoolSizeHardCap, bucketSizes),
-          mock(PoolStatsTracker.class));
+          poolStatsTracker);
       mIsReusable = true;
       initialize();
     }
@@ -520,6 +867,11 @@ public class BasePoolTest {
       return (requestSize % 2 == 0) ? requestSize : requestSize + 1;
     }
 
+    @Override
+    protected int getMaxBestFitBucketedSize(int bucketedSize) {
+      return bucketedSize + mMaxBestFitIncrease;
+    }
+
     @Override
     protected int getBucketedSizeForValue(byte[] value) {
       return value.length;
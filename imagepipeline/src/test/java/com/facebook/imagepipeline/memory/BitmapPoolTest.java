@@ -13,10 +13,12 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
+import com.facebook.common.memory.MemoryTrimmableRegistry;
 import com.facebook.imagepipeline.testing.MockBitmapFactory;
 import com.facebook.imageutils.BitmapUtil;
 import com.facebook.soloader.SoLoader;
@@ -86,6 +88,36 @@ public class BitmapPoolTest {
     assertEquals(56, (int) mPool.getBucketedSize(56));
   }
 
+  @Test
+  public void testGetSizeClass() throws Exception {
+    assertEquals(4, BitmapPool.getSizeClass(1));
+    assertEquals(12, BitmapPool.getSizeClass(12));
+    assertEquals(16, BitmapPool.getSizeClass(13));
+    assertEquals(56, BitmapPool.getSizeClass(56));
+    assertEquals(64, BitmapPool.getSizeClass(57));
+    assertEquals(1024, BitmapPool.getSizeClass(1000));
+    assertEquals(1280, BitmapPool.getSizeClass(1025));
+    assertEquals(2048, BitmapPool.getSizeClass(1793));
+    assertEquals(Integer.MAX_VALUE, BitmapPool.getSizeClass(Integer.MAX_VALUE - 1));
+  }
+
+  @Test
+  public void testGetBucketedSize_SizeClasses() throws Exception {
+    BitmapPool pool = newSizeClassPool();
+    assertEquals(12, pool.getBucketedSize(12));
+    assertEquals(1280, pool.getBucketedSize(1025));
+    assertEquals(1280, pool.getBucketedSize(1280));
+  }
+
+  @Test
+  public void testGetMaxBestFitBucketedSize() throws Exception {
+    assertEquals(1024, mPool.getMaxBestFitBucketedSize(1024));
+    BitmapPool pool = newSizeClassPool();
+    assertEquals(1536, pool.getMaxBestFitBucketedSize(1024));
+    assertEquals(1792, pool.getMaxBestFitBucketedSize(1280));
+    assertEquals(2560, pool.getMaxBestFitBucketedSize(1792));
+  }
+
   // tests out the getBucketedSizeForValue method
   @Test
   public void testGetBucketedSizeForValue() throws Exception {
@@ -121,4 +153,12 @@ public class BitmapPoolTest {
     doReturn(false).when(b5).isMutable();
     assertFalse(mPool.isReusable(b5));
   }
+
+  private static BitmapPool newSizeClassPool() {
+    return new BitmapPool(
+        mock(MemoryTrimmableRegistry.class),
+        new PoolParams(Integer.MAX_VALUE, Integer.MAX_VALUE, null),
+        mock(PoolStatsTracker.class),
+        true);
+  }
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.memory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.memory.PooledByteBufferFactory;
+import com.facebook.common.memory.PooledByteBufferInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Basic tests for {@link MappedPooledByteBuffer}
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MappedPooledByteBufferTest {
+  private static final byte[] BYTES = new byte[] {1, 4, 5, 0, 100, 34, 0, 1, -1, -1};
+
+  private PooledByteBufferFactory mNativeCopyFactory;
+  private MappedPooledByteBuffer mPooledByteBuffer;
+
+  @Before
+  public void setUp() {
+    ByteBuffer buffer = ByteBuffer.wrap(BYTES);
+    // only the region between the position and the limit is used
+    buffer.position(1);
+    buffer.limit(BYTES.length - 1);
+    mNativeCopyFactory = mock(PooledByteBufferFactory.class);
+    mPooledByteBuffer = new MappedPooledByteBuffer(buffer, mNativeCopyFactory);
+  }
+
+  @Test
+  public void testBasic() {
+    assertFalse(mPooledByteBuffer.isClosed());
+    assertEquals(BYTES.length - 2, mPooledByteBuffer.size());
+    assertEquals(BYTES[1], mPooledByteBuffer.read(0));
+    assertEquals(BYTES[BYTES.length - 2], mPooledByteBuffer.read(BYTES.length - 3));
+  }
+
+  @Test
+  public void testReadRange() {
+    byte[] bytes = new byte[5];
+    mPooledByteBuffer.read(2, bytes, 1, 4);
+    assertArrayEquals(new byte[] {0, BYTES[3], BYTES[4], BYTES[5], BYTES[6]}, bytes);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testReadOutOfBounds() {
+    mPooledByteBuffer.read(BYTES.length - 2);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testReadRangeOutOfBounds() {
+    mPooledByteBuffer.read(4, new byte[10], 0, BYTES.length - 5);
+  }
+
+  @Test
+  public void testGetStream() throws Exception {
+    InputStream is = new PooledByteBufferInputStream(mPooledByteBuffer);
+    byte[] bytes = new byte[BYTES.length - 2];
+    assertEquals(bytes.length, is.read(bytes));
+    assertEquals(-1, is.read());
+    for (int i = 0; i < bytes.length; i++) {
+      assertEquals(BYTES[i + 1], bytes[i]);
+    }
+  }
+
+  @Test
+  public void testMap() throws Exception {
+    File file = new File(RuntimeEnvironment.application.getCacheDir(), "mapped");
+    FileOutputStream fos = new FileOutputStream(file);
+    try {
+      fos.write(BYTES);
+    } finally {
+      fos.close();
+    }
+    MappedPooledByteBuffer pooledByteBuffer = MappedPooledByteBuffer.map(file, mNativeCopyFactory);
+    // the mapping outlives the file
+    assertTrue(file.delete());
+    assertEquals(BYTES.length, pooledByteBuffer.size());
+    byte[] bytes = new byte[BYTES.length];
+    pooledByteBuffer.read(0, bytes, 0, bytes.length);
+    assertArrayEquals(BYTES, bytes);
+  }
+
+  @Test
+  public void testGetNativePtrCopiesContentOnce() throws Exception {
+    PooledByteBuffer nativeCopy = mock(PooledByteBuffer.class);
+    when(nativeCopy.getNativePtr()).thenReturn(1234L);
+    ArgumentCaptor<InputStream> inputStream = ArgumentCaptor.forClass(InputStream.class);
+    when(mNativeCopyFactory.newByteBuffer(inputStream.capture(), eq(BYTES.length - 2)))
+        .thenReturn(nativeCopy);
+
+    assertEquals(1234L, mPooledByteBuffer.getNativePtr());
+    assertEquals(1234L, mPooledByteBuffer.getNativePtr());
+    verify(mNativeCopyFactory, times(1))
+        .newByteBuffer(inputStream.getValue(), BYTES.length - 2);
+    byte[] bytes = new byte[BYTES.length - 2];
+    assertEquals(bytes.length, inputStream.getValue().read(bytes));
+    assertEquals(BYTES[1], bytes[0]);
+
+    mPooledByteBuffer.close();
+    verify(nativeCopy).close();
+  }
+
+  @Test
+  public void testClose() {
+    mPooledByteBuffer.close();
+    assertTrue(mPooledByteBuffer.isClosed());
+    // closing again is fine
+    mPooledByteBuffer.close();
+  }
+
+  @Test(expected = PooledByteBuffer.ClosedException.class)
+  public void testReadAfterClose() {
+    mPooledByteBuffer.close();
+    mPooledByteBuffer.read(0);
+  }
+
+  @Test(expected = PooledByteBuffer.ClosedException.class)
+  public void testSizeAfterClose() {
+    mPooledByteBuffer.close();
+    mPooledByteBuffer.size();
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.postprocessors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class TiledRoundAsCirclePostprocessorTest {
+
+  private static final int OPAQUE = 0xff102030;
+  private static final int TRANSPARENT = 0;
+
+  private ExecutorService mExecutor;
+
+  @Before
+  public void setUp() {
+    mExecutor = Executors.newFixedThreadPool(3);
+  }
+
+  @After
+  public void tearDown() {
+    mExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testToCircle() {
+    final int size = 10;
+    final int[] pixels = process(size, size, 1);
+
+    // the center and the middle of the edges are in the circle, the corners are not
+    assertEquals(OPAQUE, pixels[5 * size + 5]);
+    assertEquals(OPAQUE, pixels[5 * size + 1]);
+    assertEquals(OPAQUE, pixels[1 * size + 5]);
+    assertEquals(TRANSPARENT, pixels[0]);
+    assertEquals(TRANSPARENT, pixels[size - 1]);
+    assertEquals(TRANSPARENT, pixels[(size - 1) * size]);
+    assertEquals(TRANSPARENT, pixels[size * size - 1]);
+  }
+
+  @Test
+  public void testToCircle_NonSquare() {
+    final int width = 20;
+    final int height = 10;
+    final int[] pixels = process(width, height, 1);
+
+    // the circle has the diameter of the shorter side, centered
+    assertEquals(OPAQUE, pixels[5 * width + 10]);
+    assertEquals(TRANSPARENT, pixels[5 * width + 2]);
+    assertEquals(TRANSPARENT, pixels[5 * width + 17]);
+  }
+
+  @Test
+  public void testToCircle_RowOutsideOfCircle() {
+    final int[] pixels = new int[8];
+    Arrays.fill(pixels, OPAQUE);
+
+    TiledRoundAsCirclePostprocessor.toCircle(pixels, 0, 8, 0, 8);
+
+    assertArrayEquals(new int[8], pixels);
+  }
+
+  @Test
+  public void testProcess_SameResultForAnyWorkerCount() {
+    final int width = 41;
+    final int height = 67;
+    final int[] expected = process(width, height, 1);
+    for (int workerCount = 2; workerCount <= 8; workerCount++) {
+      assertArrayEquals(
+          workerCount + " workers",
+          expected,
+          process(width, height, workerCount));
+    }
+  }
+
+  private int[] process(final int width, int height, int workerCount) {
+    final int[] source = new int[width * height];
+    Arrays.fill(source, OPAQUE);
+    final int[] dest = new int[width * height];
+    new TiledRoundAsCirclePostprocessor(mExecutor, workerCount) {
+      @Override
+      protected int getMinTilePixelCount() {
+        return 1;
+      }
+
+      @Override
+      protected int getMaxTilePixelCount() {
+        return width * 5;
+      }
+    }.process(dest, source, width, height);
+    return dest;
+  }
+}
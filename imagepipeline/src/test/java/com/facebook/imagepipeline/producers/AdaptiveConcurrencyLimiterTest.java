@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.*;
+import org.junit.runner.*;
+import org.robolectric.*;
+import org.robolectric.annotation.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AdaptiveConcurrencyLimiterTest {
+
+  private static final int MAX_LIMIT = 16;
+  private static final int FIXED_LIMIT = 3;
+  private static final int IMAGE_SIZE = 50000;
+
+  /** 40 Mbps with a 200 ms round trip */
+  private static final SimulatedServer FAST_SERVER = new SimulatedServer(200, 5000);
+  /** 400 kbps with a 300 ms round trip */
+  private static final SimulatedServer CONGESTED_SERVER = new SimulatedServer(300, 50);
+
+  private AdaptiveConcurrencyLimiter mLimiter;
+
+  @Before
+  public void setUp() {
+    mLimiter = new AdaptiveConcurrencyLimiter(1, MAX_LIMIT);
+  }
+
+  @Test
+  public void testSlowStart() {
+    assertEquals(1, mLimiter.getLimit());
+    completeRequest(0, 100);
+    assertEquals(100, mLimiter.getBaselineLatencyMs());
+    assertEquals(2, mLimiter.getLimit());
+    completeRequest(100, 200);
+    assertEquals(3, mLimiter.getLimit());
+  }
+
+  @Test
+  public void testAdditiveIncreaseAfterFirstDecrease() {
+    growLimitTo(4);
+    // too slow: cut by the backoff ratio
+    completeRequest(0, 1000);
+    assertEquals(3, mLimiter.getLimit());
+
+    // grows by 1/limit for each request
+    for (int i = 0; i < 3; i++) {
+      completeRequestInUse(2000, 2100);
+      assertEquals(3, mLimiter.getLimit());
+    }
+    completeRequestInUse(2000, 2100);
+    assertEquals(4, mLimiter.getLimit());
+  }
+
+  @Test
+  public void testNormalizedLatency() {
+    growLimitTo(4);
+    // a long request with a normalized latency within the tolerance does not cut the limit
+    mLimiter.onRequestStart();
+    mLimiter.onRequestSuccess(0, 1000, 100);
+    assertEquals(100, mLimiter.getBaselineLatencyMs());
+    assertEquals(4, mLimiter.getLimit());
+  }
+
+  @Test
+  public void testDoesNotGrowWhenLimitIsNotInUse() {
+    growLimitTo(8);
+    for (int i = 0; i < 10; i++) {
+      completeRequest(0, 100);
+    }
+    assertEquals(8, mLimiter.getLimit());
+  }
+
+  @Test
+  public void testDecreasesOncePerCongestion() {
+    growLimitTo(8);
+    mLimiter.onRequestStart();
+    mLimiter.onRequestStart();
+    mLimiter.onRequestStart();
+    mLimiter.onRequestSuccess(1000, 2000);
+    assertEquals(6, mLimiter.getLimit());
+    // started before the decrease, slowed down by the same congestion
+    mLimiter.onRequestSuccess(1500, 2500);
+    assertEquals(6, mLimiter.getLimit());
+    // started after the decrease
+    mLimiter.onRequestSuccess(2000, 3000);
+    assertEquals(4, mLimiter.getLimit());
+  }
+
+  @Test
+  public void testDropped() {
+    growLimitTo(8);
+    mLimiter.onRequestStart();
+    mLimiter.onRequestDropped(0, 30000);
+    assertEquals(6, mLimiter.getLimit());
+    assertEquals(0, mLimiter.getInFlightCount());
+  }
+
+  @Test
+  public void testIgnored() {
+    growLimitTo(4);
+    mLimiter.onRequestStart();
+    mLimiter.onRequestIgnored();
+    assertEquals(4, mLimiter.getLimit());
+    assertEquals(0, mLimiter.getInFlightCount());
+  }
+
+  @Test
+  public void testMinAndMaxLimits() {
+    growLimitTo(MAX_LIMIT);
+    completeRequest(0, 100);
+    assertEquals(MAX_LIMIT, mLimiter.getLimit());
+    for (int i = 0; i < 20; i++) {
+      mLimiter.onRequestStart();
+      mLimiter.onRequestDropped(i * 1000, i * 1000 + 1);
+    }
+    assertEquals(1, mLimiter.getLimit());
+  }
+
+  @Test
+  public void testBaselineFollowsSlowerResource() {
+    completeRequest(0, 100);
+    for (int i = 0; i < AdaptiveConcurrencyLimiter.BASELINE_WINDOW_SIZE * 2; i++) {
+      completeRequest(0, 300);
+    }
+    assertEquals(300, mLimiter.getBaselineLatencyMs());
+    completeRequest(0, 200);
+    assertEquals(200, mLimiter.getBaselineLatencyMs());
+  }
+
+  @Test
+  public void testUsesFastLink() {
+    SimulationResult adaptive = simulate(FAST_SERVER, mLimiter, 0, 0, 60000);
+    SimulationResult fixed = simulate(FAST_SERVER, null, FIXED_LIMIT, 0, 60000);
+    assertTrue(mLimiter.getLimit() > FIXED_LIMIT);
+    assertTrue(adaptive.getCompletedCount() > fixed.getCompletedCount() * 2);
+  }
+
+  @Test
+  public void testKeepsLatencyLowOnCongestedLink() {
+    SimulationResult adaptive = simulate(CONGESTED_SERVER, mLimiter, 0, 0, 300000);
+    SimulationResult fixed = simulate(CONGESTED_SERVER, null, FIXED_LIMIT, 0, 300000);
+    assertTrue(mLimiter.getLimit() <= FIXED_LIMIT);
+    assertTrue(adaptive.getLatencyAtPercentile(90) <= fixed.getLatencyAtPercentile(90));
+    // the link is saturated either way
+    assertTrue(adaptive.getCompletedCount() >= fixed.getCompletedCount() * 0.9);
+  }
+
+  @Test
+  public void testAdaptsWhenLinkSlowsDown() {
+    simulate(FAST_SERVER, mLimiter, 0, 0, 30000);
+    assertTrue(mLimiter.getLimit() > FIXED_LIMIT);
+    SimulationResult congested = simulate(CONGESTED_SERVER, mLimiter, 0, 30000, 330000);
+    assertTrue(mLimiter.getLimit() <= FIXED_LIMIT);
+    assertTrue(congested.getLatencyAtPercentile(50) < 4000);
+  }
+
+  private void completeRequest(long startTimeMs, long endTimeMs) {
+    mLimiter.onRequestStart();
+    mLimiter.onRequestSuccess(startTimeMs, endTimeMs);
+  }
+
+  /**
+   * Completes a request while another one is in flight, so that a limit up to 4 is in use.
+   */
+  private void completeRequestInUse(long startTimeMs, long endTimeMs) {
+    mLimiter.onRequestStart();
+    mLimiter.onRequestStart();
+    mLimiter.onRequestSuccess(startTimeMs, endTimeMs);
+    mLimiter.onRequestIgnored();
+  }
+
+  /**
+   * Grows the limit in slow start with requests completing in 100 ms.
+   */
+  private void growLimitTo(int limit) {
+    while (mLimiter.getLimit() < limit) {
+      int inFlightCount = mLimiter.getLimit();
+      for (int i = 0; i < inFlightCount; i++) {
+        mLimiter.onRequestStart();
+      }
+      mLimiter.onRequestSuccess(0, 100);
+      for (int i = 1; i < inFlightCount; i++) {
+        mLimiter.onRequestIgnored();
+      }
+    }
+  }
+
+  /**
+   * Runs as many requests for an image as the limit allows against the server, 1 ms at a time.
+   * @param limiter limiter to follow, or null to use the fixed limit
+   */
+  private static SimulationResult simulate(
+      SimulatedServer server,
+      AdaptiveConcurrencyLimiter limiter,
+      int fixedLimit,
+      long startTimeMs,
+      long endTimeMs) {
+    List<SimulatedRequest> requests = new ArrayList<>();
+    List<Long> latencies = new ArrayList<>();
+    for (long now = startTimeMs; now < endTimeMs; now++) {
+      int limit = limiter == null ? fixedLimit : limiter.getLimit();
+      while (requests.size() < limit) {
+        requests.add(new SimulatedRequest(now, server.mRoundTripMs, IMAGE_SIZE));
+        if (limiter != null) {
+          limiter.onRequestStart();
+        }
+      }
+      server.transfer(requests, now);
+      for (Iterator<SimulatedRequest> iterator = requests.iterator(); iterator.hasNext(); ) {
+        SimulatedRequest request = iterator.next();
+        if (request.mRemainingBytes <= 0) {
+          iterator.remove();
+          latencies.add(now - request.mStartTimeMs);
+          if (limiter != null) {
+            limiter.onRequestSuccess(request.mStartTimeMs, now);
+          }
+        }
+      }
+    }
+    for (int i = 0; limiter != null && i < requests.size(); i++) {
+      limiter.onRequestIgnored();
+    }
+    return new SimulationResult(latencies);
+  }
+
+  /**
+   * Stand-in for an HTTP server behind a link of limited bandwidth: the response starts after a
+   * round trip, then the bandwidth is shared equally among the responses being transferred.
+   */
+  private static class SimulatedServer {
+
+    private final long mRoundTripMs;
+    private final int mBytesPerMs;
+
+    private SimulatedServer(long roundTripMs, int bytesPerMs) {
+      mRoundTripMs = roundTripMs;
+      mBytesPerMs = bytesPerMs;
+    }
+
+    private void transfer(List<SimulatedRequest> requests, long now) {
+      int transferringCount = 0;
+      for (SimulatedRequest request : requests) {
+        if (now >= request.mFirstByteTimeMs) {
+          transferringCount++;
+        }
+      }
+      for (SimulatedRequest request : requests) {
+        if (now >= request.mFirstByteTimeMs) {
+          request.mRemainingBytes -= (double) mBytesPerMs / transferringCount;
+        }
+      }
+    }
+  }
+
+  private static class SimulatedRequest {
+
+    private final long mStartTimeMs;
+    private final long mFirstByteTimeMs;
+    private double mRemainingBytes;
+
+    private SimulatedRequest(long startTimeMs, long roundTripMs, int size) {
+      mStartTimeMs = startTimeMs;
+      mFirstByteTimeMs = startTimeMs + roundTripMs;
+      mRemainingBytes = size;
+    }
+  }
+
+  private static class SimulationResult {
+
+    private final long[] mLatencies;
+
+    private SimulationResult(List<Long> latencies) {
+      mLatencies = new long[latencies.size()];
+      for (int i = 0; i < mLatencies.length; i++) {
+        mLatencies[i] = latencies.get(i);
+      }
+      Arrays.sort(mLatencies);
+    }
+
+    private int getCompletedCount() {
+      return mLatencies.length;
+    }
+
+    private long getLatencyAtPercentile(int percentile) {
+      return mLatencies[(mLatencies.length - 1) * percentile / 100];
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AdaptiveProgressiveDecodeSchedulerTest {
+
+  private static final int PIXEL_COUNT = 1000 * 1000;
+  private static final int UNKNOWN = -1;
+
+  private AdaptiveProgressiveDecodeScheduler mScheduler;
+  private AdaptiveProgressiveDecodeScheduler.ImageState mImageState;
+
+  @Before
+  public void setUp() {
+    mScheduler = new AdaptiveProgressiveDecodeScheduler();
+    mImageState = mScheduler.newImageState();
+  }
+
+  @Test
+  public void testDecodesFirstScanWhenNothingIsKnown() {
+    mImageState.onNewData(1000, UNKNOWN, 0);
+    assertTrue(mImageState.shouldDecodeScan(false, UNKNOWN, true, 0));
+  }
+
+  @Test
+  public void testSkipsScansOfImagesNotVisible() {
+    mImageState.onNewData(1000, UNKNOWN, 0);
+    assertFalse(mImageState.shouldDecodeScan(true, PIXEL_COUNT, false, 0));
+    assertTrue(mImageState.shouldDecodeScan(true, PIXEL_COUNT, true, 10));
+  }
+
+  @Test
+  public void testSpacesDecodesByDecodeTime() {
+    mImageState.onNewData(1000, UNKNOWN, 0);
+    assertTrue(mImageState.shouldDecodeScan(false, PIXEL_COUNT, true, 0));
+    mImageState.onDecodeFinished(PIXEL_COUNT, 100);
+
+    assertFalse(mImageState.shouldDecodeScan(false, PIXEL_COUNT, true, 100));
+    assertFalse(mImageState.shouldDecodeScan(false, PIXEL_COUNT, true, 299));
+    assertTrue(mImageState.shouldDecodeScan(false, PIXEL_COUNT, true, 300));
+    assertFalse(mImageState.shouldDecodeScan(false, PIXEL_COUNT, true, 400));
+  }
+
+  @Test
+  public void testDecodesFirstGoodEnoughScanRightAway() {
+    mImageState.onNewData(1000, UNKNOWN, 0);
+    assertTrue(mImageState.shouldDecodeScan(false, PIXEL_COUNT, true, 0));
+    mImageState.onDecodeFinished(PIXEL_COUNT, 100);
+
+    assertTrue(mImageState.shouldDecodeScan(true, PIXEL_COUNT, true, 100));
+    assertFalse(mImageState.shouldDecodeScan(true, PIXEL_COUNT, true, 200));
+  }
+
+  @Test
+  public void testSkipsScansWhenFinalBytesArriveSoon() {
+    mImageState.onDecodeFinished(PIXEL_COUNT, 300);
+    mImageState.onNewData(1000, 100000, 0);
+    // 100 bytes per ms, the remaining 49000 bytes arrive in 490 ms, before two decodes
+    mImageState.onNewData(51000, 100000, 500);
+    assertFalse(mImageState.shouldDecodeScan(true, PIXEL_COUNT, true, 500));
+
+    mImageState.onDecodeFinished(PIXEL_COUNT, 100);
+    assertTrue(mImageState.shouldDecodeScan(true, PIXEL_COUNT, true, 500));
+  }
+
+  @Test
+  public void testSkipsScansWhenAllBytesAreReceived() {
+    mImageState.onNewData(1000, 2000, 0);
+    mImageState.onNewData(2000, 2000, 10);
+    assertFalse(mImageState.shouldDecodeScan(true, UNKNOWN, true, 10));
+  }
+
+  @Test
+  public void testDecodesWhenDownloadRateIsUnknown() {
+    mImageState.onDecodeFinished(PIXEL_COUNT, 300);
+    mImageState.onNewData(1000, 100000, 0);
+    assertTrue(mImageState.shouldDecodeScan(true, PIXEL_COUNT, true, 0));
+  }
+
+  @Test
+  public void testEstimatesDecodeTimeFromOtherImages() {
+    assertEquals(-1, mScheduler.estimateDecodeTimeMs(PIXEL_COUNT));
+    mScheduler.newImageState().onDecodeFinished(PIXEL_COUNT, 50);
+    assertEquals(100, mScheduler.estimateDecodeTimeMs(2 * PIXEL_COUNT));
+
+    // 100 bytes per ms, the remaining 15000 bytes arrive in 150 ms, before two decodes of 100 ms
+    mImageState.onNewData(0, 20000, 0);
+    mImageState.onNewData(5000, 20000, 50);
+    assertFalse(mImageState.shouldDecodeScan(true, 2 * PIXEL_COUNT, true, 50));
+    assertTrue(mImageState.shouldDecodeScan(true, PIXEL_COUNT / 2, true, 50));
+  }
+
+  @Test
+  public void testAveragesDecodeTimePerPixel() {
+    mScheduler.newImageState().onDecodeFinished(PIXEL_COUNT, 100);
+    mScheduler.newImageState().onDecodeFinished(PIXEL_COUNT, 200);
+    assertEquals(125, mScheduler.estimateDecodeTimeMs(PIXEL_COUNT));
+  }
+}
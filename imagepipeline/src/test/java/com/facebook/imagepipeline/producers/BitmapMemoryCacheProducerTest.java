@@ -15,6 +15,7 @@ import com.facebook.cache.common.CacheKey;
 import com.facebook.common.internal.ImmutableMap;
 import com.facebook.common.references.CloseableReference;
 import com.facebook.imagepipeline.cache.BitmapMemoryCacheKey;
+import com.facebook.imagepipeline.cache.BitmapMemoryCacheVariantIndex;
 import com.facebook.imagepipeline.cache.CacheKeyFactory;
 import com.facebook.imagepipeline.cache.MemoryCache;
 import com.facebook.imagepipeline.image.CloseableImage;
@@ -321,6 +322,42 @@ public class BitmapMemoryCacheProducerTest {
         .onUltimateProducerReached(anyString(), anyString(), anyBoolean());
   }
 
+  @Test
+  public void testBitmapMemoryCacheGetLargerVariant() {
+    BitmapMemoryCacheVariantIndex variantIndex = mock(BitmapMemoryCacheVariantIndex.class);
+    mBitmapMemoryCacheProducer = new BitmapMemoryCacheProducer(
+        mMemoryCache,
+        mCacheKeyFactory,
+        mInputProducer,
+        variantIndex);
+    setupBitmapMemoryCacheGetNotFound();
+    when(variantIndex.getLargerVariant(mBitmapMemoryCacheKey)).thenReturn(mFinalImageReference);
+    mBitmapMemoryCacheProducer.produceResults(mConsumer, mProducerContext);
+    verify(mConsumer).onNewResult(mFinalImageReference, Consumer.IS_LAST);
+    Map<String, String> extraMap =
+        ImmutableMap.of(BitmapMemoryCacheProducer.EXTRA_CACHED_VALUE_FOUND, "true");
+    verify(mProducerListener).onProducerFinishWithSuccess(mRequestId, PRODUCER_NAME, extraMap);
+    verify(mProducerListener).onUltimateProducerReached(mRequestId, PRODUCER_NAME, true);
+    verifyNoMoreInteractions(mInputProducer);
+    Assert.assertTrue(!mFinalImageReference.isValid());
+  }
+
+  @Test
+  public void testFinalImageAddedToVariantIndex() {
+    BitmapMemoryCacheVariantIndex variantIndex = mock(BitmapMemoryCacheVariantIndex.class);
+    mBitmapMemoryCacheProducer = new BitmapMemoryCacheProducer(
+        mMemoryCache,
+        mCacheKeyFactory,
+        mInputProducer,
+        variantIndex);
+    setupBitmapMemoryCacheGetNotFound();
+    setupInputProducerStreamingSuccess();
+    mBitmapMemoryCacheProducer.produceResults(mConsumer, mProducerContext);
+    verify(variantIndex).getLargerVariant(mBitmapMemoryCacheKey);
+    verify(variantIndex).addVariant(mBitmapMemoryCacheKey, mCloseableImage1);
+    verify(variantIndex, never()).addVariant(mBitmapMemoryCacheKey, mCloseableImage2);
+  }
+
   private void setupBitmapMemoryCacheGetSuccess() {
     when(mMemoryCache.get(eq(mBitmapMemoryCacheKey)))
         .thenReturn(mFinalImageReference);
@@ -11,11 +11,13 @@ import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import android.graphics.Rect;
 import android.media.ExifInterface;
 import android.net.Uri;
 import com.facebook.common.memory.PooledByteBuffer;
 import com.facebook.common.references.CloseableReference;
 import com.facebook.imageformat.DefaultImageFormats;
+import com.facebook.imagepipeline.common.ImageDecodeOptions;
 import com.facebook.imagepipeline.common.ResizeOptions;
 import com.facebook.imagepipeline.common.RotationOptions;
 import com.facebook.imagepipeline.image.EncodedImage;
@@ -37,6 +39,7 @@ public class DownsampleUtilTest {
     Uri uri = mock(Uri.class);
     when(uri.toString()).thenReturn("test");
     when(mImageRequest.getSourceUri()).thenReturn(uri);
+    when(mImageRequest.getImageDecodeOptions()).thenReturn(ImageDecodeOptions.defaults());
   }
 
   @Test
@@ -131,6 +134,72 @@ public class DownsampleUtilTest {
     assertEquals(2, DownsampleUtil.determineSampleSize(mImageRequest, mEncodedImage));
   }
 
+  @Test
+  public void testDetermineSampleSize_RegionToDecode() {
+    whenImageWidthAndHeight(8000, 6000);
+    whenRequestResizeWidthAndHeightWithExifRotation(100, 100);
+    when(mImageRequest.getImageDecodeOptions()).thenReturn(
+        ImageDecodeOptions.newBuilder()
+            .setRegionToDecode(new Rect(0, 0, 1024, 1024))
+            .setRegionSampleSize(4)
+            .build());
+    // the sample size of the region, regardless of the resize options and max bitmap size
+    assertEquals(4, DownsampleUtil.determineSampleSize(mImageRequest, mEncodedImage));
+  }
+
+  @Test
+  public void testDetermineTargetSize_PNG() {
+    whenImageWidthAndHeight(1000, 600);
+    mEncodedImage.setImageFormat(DefaultImageFormats.PNG);
+    whenRequestResizeWidthAndHeightWithExifRotation(300, 100);
+    assertEquals(true, DownsampleUtil.determineTargetSize(mImageRequest, mEncodedImage));
+    assertEquals(2, mEncodedImage.getSampleSize());
+    assertEquals(300, mEncodedImage.getTargetWidth());
+    assertEquals(180, mEncodedImage.getTargetHeight());
+  }
+
+  @Test
+  public void testDetermineTargetSize_WithRotation() {
+    whenImageWidthHeightAndRotation(600, 1000, 90);
+    mEncodedImage.setImageFormat(DefaultImageFormats.WEBP_SIMPLE);
+    whenRequestResizeWidthAndHeightWithExifRotation(300, 100);
+    assertEquals(true, DownsampleUtil.determineTargetSize(mImageRequest, mEncodedImage));
+    assertEquals(2, mEncodedImage.getSampleSize());
+    assertEquals(180, mEncodedImage.getTargetWidth());
+    assertEquals(300, mEncodedImage.getTargetHeight());
+  }
+
+  @Test
+  public void testDetermineTargetSize_NotLargerThanRequested() {
+    whenImageWidthAndHeight(100, 100);
+    whenRequestResizeWidthAndHeightWithExifRotation(100, 50);
+    assertEquals(false, DownsampleUtil.determineTargetSize(mImageRequest, mEncodedImage));
+    assertEquals(1, mEncodedImage.getSampleSize());
+    assertEquals(EncodedImage.UNKNOWN_TARGET_SIZE, mEncodedImage.getTargetWidth());
+    assertEquals(EncodedImage.UNKNOWN_TARGET_SIZE, mEncodedImage.getTargetHeight());
+  }
+
+  @Test
+  public void testDetermineTargetSize_CustomMaxPossibleSize() {
+    whenImageWidthAndHeight(8000, 4000);
+    whenRequestResizeWidthHeightAndMaxBitmapSize(8000, 4000, 4096);
+    assertEquals(true, DownsampleUtil.determineTargetSize(mImageRequest, mEncodedImage));
+    assertEquals(1, mEncodedImage.getSampleSize());
+    assertEquals(4096, mEncodedImage.getTargetWidth());
+    assertEquals(2048, mEncodedImage.getTargetHeight());
+  }
+
+  @Test
+  public void testRatioToSampleSizeForTargetSize() {
+    assertEquals(1, DownsampleUtil.ratioToSampleSizeForTargetSize(1.000f));
+    assertEquals(1, DownsampleUtil.ratioToSampleSizeForTargetSize(0.501f));
+    assertEquals(2, DownsampleUtil.ratioToSampleSizeForTargetSize(0.500f));
+    assertEquals(2, DownsampleUtil.ratioToSampleSizeForTargetSize(0.251f));
+    assertEquals(4, DownsampleUtil.ratioToSampleSizeForTargetSize(0.250f));
+    assertEquals(4, DownsampleUtil.ratioToSampleSizeForTargetSize(0.126f));
+    assertEquals(8, DownsampleUtil.ratioToSampleSizeForTargetSize(0.125f));
+  }
+
   @Test
   public void testRatioToSampleSize() {
     assertEquals(1, DownsampleUtil.ratioToSampleSize(1.000f));
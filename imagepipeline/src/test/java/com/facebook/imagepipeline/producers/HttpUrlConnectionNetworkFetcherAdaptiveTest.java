@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import android.net.Uri;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.imagepipeline.request.ImageRequestBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+import org.junit.runner.*;
+import org.robolectric.*;
+import org.robolectric.annotation.*;
+
+/**
+ * Tests how {@link HttpUrlConnectionNetworkFetcher} follows its concurrency limit, against a local
+ * server and with an executor run by hand.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class HttpUrlConnectionNetworkFetcherAdaptiveTest {
+
+  private static final int IMAGE_SIZE = 100;
+
+  private HttpServer mServer;
+  private ManualExecutor mExecutor;
+  private AdaptiveConcurrencyLimiter mConcurrencyLimiter;
+  private HttpUrlConnectionNetworkFetcher mFetcher;
+  private NetworkFetcher.Callback mCallback;
+
+  @Before
+  public void setUp() throws IOException {
+    mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    mServer.createContext(
+        "/image",
+        new HttpHandler() {
+          @Override
+          public void handle(HttpExchange exchange) throws IOException {
+            exchange.sendResponseHeaders(200, IMAGE_SIZE);
+            OutputStream body = exchange.getResponseBody();
+            body.write(new byte[IMAGE_SIZE]);
+            body.close();
+          }
+        });
+    mServer.setExecutor(Executors.newCachedThreadPool());
+    mServer.start();
+    mExecutor = new ManualExecutor();
+    mConcurrencyLimiter = new AdaptiveConcurrencyLimiter(1, 4);
+    mFetcher = new HttpUrlConnectionNetworkFetcher(mExecutor, mConcurrencyLimiter);
+    mCallback = mock(NetworkFetcher.Callback.class);
+  }
+
+  @After
+  public void tearDown() {
+    mServer.stop(0);
+  }
+
+  @Test
+  public void testStartsFetchesUpToTheLimit() {
+    for (int i = 0; i < 4; i++) {
+      mFetcher.fetch(newFetchState(), mCallback);
+    }
+    assertEquals(1, mExecutor.mRunnables.size());
+    assertEquals(3, mFetcher.getPendingFetchCount());
+
+    // the limit grows while the fetches complete in time
+    mExecutor.runNext();
+    assertEquals(2, mConcurrencyLimiter.getLimit());
+    assertEquals(2, mExecutor.mRunnables.size());
+    assertEquals(1, mFetcher.getPendingFetchCount());
+    assertEquals(2, mFetcher.getRunningFetchCount());
+  }
+
+  @Test
+  public void testCancelledPendingFetchIsDropped() {
+    mFetcher.fetch(newFetchState(), mCallback);
+    FetchState pendingFetchState = newFetchState();
+    mFetcher.fetch(pendingFetchState, mCallback);
+
+    ((BaseProducerContext) pendingFetchState.getContext()).cancel();
+
+    verify(mCallback).onCancellation();
+    assertEquals(0, mFetcher.getPendingFetchCount());
+    mExecutor.runNext();
+    assertTrue(mExecutor.mRunnables.isEmpty());
+    assertEquals(0, mFetcher.getRunningFetchCount());
+  }
+
+  @Test
+  public void testFetchCancelledBeforeRunningGivesItsSlotBack() {
+    FetchState fetchState = newFetchState();
+    mFetcher.fetch(fetchState, mCallback);
+    mFetcher.fetch(newFetchState(), mCallback);
+
+    ((BaseProducerContext) fetchState.getContext()).cancel();
+    mExecutor.runNext();
+
+    verify(mCallback).onCancellation();
+    assertEquals(0, mConcurrencyLimiter.getInFlightCount());
+    assertEquals(1, mFetcher.getRunningFetchCount());
+    assertEquals(1, mExecutor.mRunnables.size());
+  }
+
+  @Test
+  public void testCallbackExceptionReleasesTheRequest() throws IOException {
+    doThrow(new IllegalStateException())
+        .when(mCallback).onResponse(any(InputStream.class), anyInt());
+    mFetcher.fetch(newFetchState(), mCallback);
+    mFetcher.fetch(newFetchState(), mCallback);
+
+    try {
+      mExecutor.runNext();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+
+    assertEquals(0, mConcurrencyLimiter.getInFlightCount());
+    assertEquals(1, mFetcher.getRunningFetchCount());
+    assertEquals(1, mExecutor.mRunnables.size());
+  }
+
+  @Test
+  public void testNormalizedLatency() {
+    int referenceSize = HttpUrlConnectionNetworkFetcher.LATENCY_REFERENCE_SIZE_BYTES;
+    assertEquals(100, HttpUrlConnectionNetworkFetcher.getNormalizedLatencyMs(100, -1));
+    assertEquals(100, HttpUrlConnectionNetworkFetcher.getNormalizedLatencyMs(100, 1000));
+    assertEquals(
+        100,
+        HttpUrlConnectionNetworkFetcher.getNormalizedLatencyMs(100, referenceSize));
+    assertEquals(
+        25,
+        HttpUrlConnectionNetworkFetcher.getNormalizedLatencyMs(100, referenceSize * 4));
+  }
+
+  private FetchState newFetchState() {
+    Uri uri = Uri.parse(
+        String.format(
+            (Locale) null,
+            "http://127.0.0.1:%d/image",
+            mServer.getAddress().getPort()));
+    SettableProducerContext producerContext = new SettableProducerContext(
+        ImageRequestBuilder.newBuilderWithSource(uri).build(),
+        "id",
+        mock(ProducerListener.class),
+        new Object(),
+        ImageRequest.RequestLevel.FULL_FETCH,
+        false /* isPrefetch */,
+        true /* isIntermediateResultExpected */,
+        Priority.MEDIUM);
+    return new FetchState(mock(Consumer.class), producerContext);
+  }
+
+  /**
+   * Keeps the runnables until the test runs them, in order.
+   */
+  private static class ManualExecutor extends AbstractExecutorService {
+
+    private final List<Runnable> mRunnables = new ArrayList<>();
+
+    private void runNext() {
+      mRunnables.remove(0).run();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      mRunnables.add(command);
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return mRunnables;
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return false;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return false;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      return true;
+    }
+  }
+}
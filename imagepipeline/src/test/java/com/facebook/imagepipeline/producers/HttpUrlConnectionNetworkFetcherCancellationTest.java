@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import android.net.Uri;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.imagepipeline.request.ImageRequestBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.*;
+import org.junit.runner.*;
+import org.robolectric.*;
+import org.robolectric.annotation.*;
+
+/**
+ * Tests how {@link HttpUrlConnectionNetworkFetcher} handles a cancellation in the middle of the
+ * body, against a local server and with a real executor.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class HttpUrlConnectionNetworkFetcherCancellationTest {
+
+  private static final int IMAGE_SIZE = 2000;
+  private static final int PREFIX_SIZE = 1000;
+
+  private HttpServer mServer;
+  private ExecutorService mServerExecutor;
+  private ExecutorService mFetchExecutor;
+  private CountDownLatch mRestOfBodyLatch;
+  private HttpUrlConnectionNetworkFetcher mFetcher;
+  private SettableProducerContext mProducerContext;
+
+  @Before
+  public void setUp() throws IOException {
+    mRestOfBodyLatch = new CountDownLatch(1);
+    mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    mServer.createContext(
+        "/image",
+        new HttpHandler() {
+          @Override
+          public void handle(HttpExchange exchange) throws IOException {
+            exchange.sendResponseHeaders(200, IMAGE_SIZE);
+            OutputStream body = exchange.getResponseBody();
+            body.write(new byte[PREFIX_SIZE]);
+            body.flush();
+            try {
+              mRestOfBodyLatch.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              throw new IOException(e);
+            }
+            body.write(new byte[IMAGE_SIZE - PREFIX_SIZE]);
+            body.close();
+          }
+        });
+    mServerExecutor = Executors.newCachedThreadPool();
+    mServer.setExecutor(mServerExecutor);
+    mServer.start();
+    mFetchExecutor = Executors.newSingleThreadExecutor();
+    mFetcher = new HttpUrlConnectionNetworkFetcher(mFetchExecutor);
+    Uri uri = Uri.parse(
+        String.format(
+            (Locale) null,
+            "http://127.0.0.1:%d/image",
+            mServer.getAddress().getPort()));
+    mProducerContext = new SettableProducerContext(
+        ImageRequestBuilder.newBuilderWithSource(uri).build(),
+        "id",
+        mock(ProducerListener.class),
+        new Object(),
+        ImageRequest.RequestLevel.FULL_FETCH,
+        false /* isPrefetch */,
+        true /* isIntermediateResultExpected */,
+        Priority.MEDIUM);
+  }
+
+  @After
+  public void tearDown() {
+    mRestOfBodyLatch.countDown();
+    mServer.stop(0);
+    mServerExecutor.shutdownNow();
+    mFetchExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testRunningFetchKeepsPrefixOnCancellation() throws Exception {
+    final PrefixCallback callback = new PrefixCallback(false);
+
+    mFetcher.fetch(new FetchState(mock(Consumer.class), mProducerContext), callback);
+    assertTrue(callback.mPrefixReadLatch.await(10, TimeUnit.SECONDS));
+    mProducerContext.cancel();
+    callback.mCancelledLatch.countDown();
+    assertTrue(callback.mDoneLatch.await(10, TimeUnit.SECONDS));
+
+    // the callback kept the bytes it received, and ended the fetch itself
+    assertEquals(PREFIX_SIZE, callback.mBytesRead);
+    assertEquals(0, callback.mCancellationCount.get());
+    assertNull(callback.mFailure);
+  }
+
+  @Test
+  public void testRunningFetchStopsReadingOnCancellation() throws Exception {
+    final PrefixCallback callback = new PrefixCallback(true);
+
+    mFetcher.fetch(new FetchState(mock(Consumer.class), mProducerContext), callback);
+    assertTrue(callback.mPrefixReadLatch.await(10, TimeUnit.SECONDS));
+    mProducerContext.cancel();
+    callback.mCancelledLatch.countDown();
+    assertTrue(callback.mDoneLatch.await(10, TimeUnit.SECONDS));
+
+    assertEquals(PREFIX_SIZE, callback.mBytesRead);
+    assertEquals(1, callback.mCancellationCount.get());
+    assertNull(callback.mFailure);
+  }
+
+  @Test
+  public void testQueuedFetchIsCancelled() throws Exception {
+    final CountDownLatch blockLatch = new CountDownLatch(1);
+    mFetchExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              blockLatch.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              // the test is over
+            }
+          }
+        });
+    final PrefixCallback callback = new PrefixCallback(false);
+
+    mFetcher.fetch(new FetchState(mock(Consumer.class), mProducerContext), callback);
+    mProducerContext.cancel();
+    blockLatch.countDown();
+    mFetchExecutor.shutdown();
+    assertTrue(mFetchExecutor.awaitTermination(10, TimeUnit.SECONDS));
+
+    assertEquals(1, callback.mCancellationCount.get());
+    assertEquals(0, callback.mBytesRead);
+  }
+
+  /**
+   * Reads the first part of the body, waits for the cancellation, then either stops as the
+   * resumable downloads of {@link NetworkFetchProducer} do, or keeps reading.
+   */
+  private static class PrefixCallback implements NetworkFetcher.Callback {
+
+    private final boolean mReadsAfterCancellation;
+    private final CountDownLatch mPrefixReadLatch = new CountDownLatch(1);
+    private final CountDownLatch mCancelledLatch = new CountDownLatch(1);
+    private final CountDownLatch mDoneLatch = new CountDownLatch(1);
+    private final AtomicInteger mCancellationCount = new AtomicInteger();
+    private volatile int mBytesRead;
+    private volatile Throwable mFailure;
+
+    private PrefixCallback(boolean readsAfterCancellation) {
+      mReadsAfterCancellation = readsAfterCancellation;
+    }
+
+    @Override
+    public void onResponse(InputStream response, int responseLength) throws IOException {
+      final byte[] buffer = new byte[PREFIX_SIZE];
+      int bytesRead = 0;
+      while (bytesRead < PREFIX_SIZE) {
+        bytesRead += response.read(buffer, bytesRead, PREFIX_SIZE - bytesRead);
+      }
+      mBytesRead = bytesRead;
+      mPrefixReadLatch.countDown();
+      try {
+        mCancelledLatch.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      try {
+        if (mReadsAfterCancellation) {
+          while (response.read(buffer) >= 0) {
+            mBytesRead += buffer.length;
+          }
+        }
+      } finally {
+        if (!mReadsAfterCancellation) {
+          mDoneLatch.countDown();
+        }
+      }
+    }
+
+    @Override
+    public void onFailure(Throwable throwable) {
+      mFailure = throwable;
+      mDoneLatch.countDown();
+    }
+
+    @Override
+    public void onCancellation() {
+      mCancellationCount.incrementAndGet();
+      mDoneLatch.countDown();
+    }
+  }
+}
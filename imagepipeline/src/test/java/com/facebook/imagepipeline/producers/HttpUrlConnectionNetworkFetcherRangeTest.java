@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import android.net.Uri;
+import com.facebook.imagepipeline.common.BytesRange;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.imagepipeline.request.ImageRequestBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import org.junit.*;
+import org.junit.runner.*;
+import org.robolectric.*;
+import org.robolectric.annotation.*;
+
+/**
+ * Tests the range requests of {@link HttpUrlConnectionNetworkFetcher} against a local server.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class HttpUrlConnectionNetworkFetcherRangeTest {
+
+  private static final int IMAGE_SIZE = 10500;
+  private static final int CHUNK_SIZE = 1000;
+  private static final String ENTITY_TAG = "\"v1\"";
+
+  private byte[] mImage;
+  private RangeHandler mHandler;
+  private HttpServer mServer;
+  private ExecutorService mChunkExecutor;
+  private volatile RecordingCallback mSlowCallback;
+
+  @Before
+  public void setUp() throws IOException {
+    mImage = new byte[IMAGE_SIZE];
+    new Random(42).nextBytes(mImage);
+    mHandler = new RangeHandler();
+    mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    mServer.createContext("/image", mHandler);
+    mServer.setExecutor(Executors.newCachedThreadPool());
+    mServer.start();
+    mChunkExecutor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    mServer.stop(0);
+    mChunkExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testSendsBytesRangeOfRequest() {
+    HttpUrlConnectionNetworkFetcher fetcher = new HttpUrlConnectionNetworkFetcher(5000);
+    FetchState fetchState = newFetchState(BytesRange.from(4000));
+    RecordingCallback callback = new RecordingCallback();
+
+    fetcher.fetchSync(fetchState, callback);
+
+    assertNull(callback.mFailure);
+    assertArrayEquals(slice(4000, IMAGE_SIZE), callback.mBytes);
+    assertEquals(1, mHandler.mRequestCount.get());
+    assertEquals(
+        new BytesRange(4000, BytesRange.TO_END_OF_CONTENT),
+        fetchState.getResponseBytesRange());
+    assertEquals(Consumer.IS_PARTIAL_RESULT, fetchState.getOnNewResultStatusFlags());
+  }
+
+  @Test
+  public void testWholeImageIsNotPartial() {
+    HttpUrlConnectionNetworkFetcher fetcher = new HttpUrlConnectionNetworkFetcher(5000);
+    FetchState fetchState = newFetchState(null);
+    RecordingCallback callback = new RecordingCallback();
+
+    fetcher.fetchSync(fetchState, callback);
+
+    assertArrayEquals(mImage, callback.mBytes);
+    assertNull(fetchState.getResponseBytesRange());
+    assertEquals(Consumer.NO_FLAGS, fetchState.getOnNewResultStatusFlags());
+  }
+
+  @Test
+  public void testSendsContentValidatorWithRange() {
+    HttpUrlConnectionNetworkFetcher fetcher = new HttpUrlConnectionNetworkFetcher(5000);
+    FetchState fetchState = newFetchState(BytesRange.from(4000));
+    ((SettableProducerContext) fetchState.getContext()).setContentValidator(ENTITY_TAG);
+    RecordingCallback callback = new RecordingCallback();
+
+    fetcher.fetchSync(fetchState, callback);
+
+    assertArrayEquals(slice(4000, IMAGE_SIZE), callback.mBytes);
+    assertEquals(1, mHandler.mIfRangeCount.get());
+    assertEquals(ENTITY_TAG, fetchState.getResponseContentValidator());
+    assertEquals(Consumer.IS_PARTIAL_RESULT, fetchState.getOnNewResultStatusFlags());
+  }
+
+  @Test
+  public void testChangedContentIsSentWhole() {
+    HttpUrlConnectionNetworkFetcher fetcher = new HttpUrlConnectionNetworkFetcher(5000);
+    FetchState fetchState = newFetchState(BytesRange.from(4000));
+    ((SettableProducerContext) fetchState.getContext()).setContentValidator("\"v0\"");
+    RecordingCallback callback = new RecordingCallback();
+
+    fetcher.fetchSync(fetchState, callback);
+
+    assertArrayEquals(mImage, callback.mBytes);
+    assertNull(fetchState.getResponseBytesRange());
+    assertEquals(ENTITY_TAG, fetchState.getResponseContentValidator());
+  }
+
+  @Test
+  public void testChunkedDownloadReassemblesImage() {
+    HttpUrlConnectionNetworkFetcher fetcher =
+        HttpUrlConnectionNetworkFetcher.createChunked(5000, CHUNK_SIZE, 3, mChunkExecutor);
+    RecordingCallback callback = new RecordingCallback();
+
+    fetcher.fetchSync(newFetchState(null), callback);
+
+    assertNull(callback.mFailure);
+    assertArrayEquals(mImage, callback.mBytes);
+    assertEquals(IMAGE_SIZE, callback.mResponseLength);
+    assertEquals(11, mHandler.mRequestCount.get());
+  }
+
+  @Test
+  public void testChunksAreRequestedForContentOfFirstResponse() {
+    HttpUrlConnectionNetworkFetcher fetcher =
+        HttpUrlConnectionNetworkFetcher.createChunked(5000, CHUNK_SIZE, 3, mChunkExecutor);
+    RecordingCallback callback = new RecordingCallback();
+
+    fetcher.fetchSync(newFetchState(null), callback);
+
+    assertArrayEquals(mImage, callback.mBytes);
+    assertEquals(10, mHandler.mIfRangeCount.get());
+  }
+
+  @Test
+  public void testChunkedDownloadOnlyBuffersChunksCloseToTheReader() {
+    HttpUrlConnectionNetworkFetcher fetcher =
+        HttpUrlConnectionNetworkFetcher.createChunked(5000, CHUNK_SIZE, 3, mChunkExecutor);
+    RecordingCallback callback = new RecordingCallback();
+    callback.mReadDelayMs = 5;
+    mSlowCallback = callback;
+
+    fetcher.fetchSync(newFetchState(null), callback);
+
+    assertArrayEquals(mImage, callback.mBytes);
+    assertEquals(11, mHandler.mRequestCount.get());
+    // a chunk is only requested once the reader is at most two chunks behind it
+    assertTrue(mHandler.mMaxDistanceToReader.get() <= 2 * CHUNK_SIZE);
+  }
+
+  @Test
+  public void testChunkedDownloadOfRemainder() {
+    HttpUrlConnectionNetworkFetcher fetcher =
+        HttpUrlConnectionNetworkFetcher.createChunked(5000, CHUNK_SIZE, 2, mChunkExecutor);
+    FetchState fetchState = newFetchState(BytesRange.from(6499));
+    RecordingCallback callback = new RecordingCallback();
+
+    fetcher.fetchSync(fetchState, callback);
+
+    assertArrayEquals(slice(6499, IMAGE_SIZE), callback.mBytes);
+    assertEquals(5, mHandler.mRequestCount.get());
+    assertEquals(6499, fetchState.getResponseBytesRange().from);
+    assertEquals(Consumer.IS_PARTIAL_RESULT, fetchState.getOnNewResultStatusFlags());
+  }
+
+  @Test
+  public void testChunkedDownloadWithoutRangeSupport() {
+    mHandler.mSupportsRanges = false;
+    HttpUrlConnectionNetworkFetcher fetcher =
+        HttpUrlConnectionNetworkFetcher.createChunked(5000, CHUNK_SIZE, 3, mChunkExecutor);
+    FetchState fetchState = newFetchState(null);
+    RecordingCallback callback = new RecordingCallback();
+
+    fetcher.fetchSync(fetchState, callback);
+
+    assertArrayEquals(mImage, callback.mBytes);
+    assertEquals(1, mHandler.mRequestCount.get());
+    assertNull(fetchState.getResponseBytesRange());
+  }
+
+  @Test
+  public void testChunkedDownloadKeepsBytesBeforeFailedChunk() {
+    mHandler.mFailingOffset = 5000;
+    HttpUrlConnectionNetworkFetcher fetcher =
+        HttpUrlConnectionNetworkFetcher.createChunked(5000, CHUNK_SIZE, 3, mChunkExecutor);
+    RecordingCallback callback = new RecordingCallback();
+
+    fetcher.fetchSync(newFetchState(null), callback);
+
+    assertTrue(callback.mFailure instanceof IOException);
+    assertArrayEquals(slice(0, 5000), callback.mBytes);
+  }
+
+  private FetchState newFetchState(@Nullable BytesRange bytesRange) {
+    Uri uri = Uri.parse(
+        String.format(
+            (Locale) null,
+            "http://127.0.0.1:%d/image",
+            mServer.getAddress().getPort()));
+    ImageRequest imageRequest = ImageRequestBuilder.newBuilderWithSource(uri)
+        .setBytesRange(bytesRange)
+        .build();
+    SettableProducerContext producerContext = new SettableProducerContext(
+        imageRequest,
+        "id",
+        mock(ProducerListener.class),
+        new Object(),
+        ImageRequest.RequestLevel.FULL_FETCH,
+        false /* isPrefetch */,
+        true /* isIntermediateResultExpected */,
+        Priority.MEDIUM);
+    return new FetchState(mock(Consumer.class), producerContext);
+  }
+
+  private byte[] slice(int from, int to) {
+    byte[] slice = new byte[to - from];
+    System.arraycopy(mImage, from, slice, 0, slice.length);
+    return slice;
+  }
+
+  /**
+   * Reads the response the way {@link NetworkFetchProducer} does, keeping the bytes read before a
+   * failure.
+   */
+  private static class RecordingCallback implements NetworkFetcher.Callback {
+
+    private byte[] mBytes;
+    private int mResponseLength;
+    private Throwable mFailure;
+    private long mReadDelayMs;
+    private volatile int mBytesRead;
+
+    @Override
+    public void onResponse(InputStream response, int responseLength) throws IOException {
+      mResponseLength = responseLength;
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      byte[] buffer = new byte[300];
+      try {
+        int length;
+        while ((length = response.read(buffer)) >= 0) {
+          outputStream.write(buffer, 0, length);
+          mBytesRead += length;
+          if (mReadDelayMs > 0) {
+            Thread.sleep(mReadDelayMs);
+          }
+        }
+      } catch (InterruptedException ie) {
+        throw new IOException(ie);
+      } finally {
+        mBytes = outputStream.toByteArray();
+      }
+    }
+
+    @Override
+    public void onFailure(Throwable throwable) {
+      mFailure = throwable;
+    }
+
+    @Override
+    public void onCancellation() {
+      fail();
+    }
+  }
+
+  /**
+   * Serves the image, honouring single "Range" headers of the form "bytes=from-[to]".
+   */
+  private class RangeHandler implements HttpHandler {
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mIfRangeCount = new AtomicInteger();
+    private final AtomicInteger mMaxDistanceToReader = new AtomicInteger();
+    private volatile boolean mSupportsRanges = true;
+    private volatile int mFailingOffset = -1;
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      mRequestCount.incrementAndGet();
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+      if (ifRange != null) {
+        mIfRangeCount.incrementAndGet();
+      }
+      int from = 0;
+      int to = IMAGE_SIZE - 1;
+      boolean isPartial =
+          mSupportsRanges && range != null && (ifRange == null || ifRange.equals(ENTITY_TAG));
+      if (isPartial) {
+        String[] bounds = range.substring("bytes=".length()).split("-", -1);
+        from = Integer.parseInt(bounds[0]);
+        if (!bounds[1].isEmpty()) {
+          to = Math.min(to, Integer.parseInt(bounds[1]));
+        }
+      }
+      RecordingCallback slowCallback = mSlowCallback;
+      if (slowCallback != null) {
+        int distance = from - slowCallback.mBytesRead;
+        while (true) {
+          int maxDistance = mMaxDistanceToReader.get();
+          if (distance <= maxDistance
+              || mMaxDistanceToReader.compareAndSet(maxDistance, distance)) {
+            break;
+          }
+        }
+      }
+      if (from == mFailingOffset) {
+        exchange.sendResponseHeaders(500, -1);
+        exchange.close();
+        return;
+      }
+      if (isPartial) {
+        exchange.getResponseHeaders().set(
+            "Content-Range",
+            String.format((Locale) null, "bytes %d-%d/%d", from, to, IMAGE_SIZE));
+      }
+      exchange.getResponseHeaders().set("ETag", ENTITY_TAG);
+      exchange.sendResponseHeaders(isPartial ? 206 : 200, to - from + 1);
+      OutputStream body = exchange.getResponseBody();
+      body.write(mImage, from, to - from + 1);
+      body.close();
+    }
+  }
+}
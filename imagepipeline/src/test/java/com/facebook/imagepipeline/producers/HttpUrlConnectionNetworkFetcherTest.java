@@ -18,6 +18,7 @@ import static org.mockito.Mockito.when;
 
 import android.net.Uri;
 import com.facebook.common.util.UriUtil;
+import com.facebook.imagepipeline.request.ImageRequest;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
@@ -111,6 +112,7 @@ public class HttpUrlConnectionNetworkFetcherTest {
 
   private void mockFetchState() {
     when(mMockFetchState.getContext()).thenReturn(mMockProducerContext);
+    when(mMockProducerContext.getImageRequest()).thenReturn(mock(ImageRequest.class));
     when(mMockFetchState.getUri()).then(new Answer<Uri>() {
       @Override
       public Uri answer(InvocationOnMock invocation) throws Throwable {
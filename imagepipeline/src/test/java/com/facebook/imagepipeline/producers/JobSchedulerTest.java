@@ -211,6 +211,33 @@ public class JobSchedulerTest {
     assertJobsEqual(mTestJobRunnable.jobs.get(0), encodedImage, Consumer.NO_FLAGS);
   }
 
+  @Test
+  public void testQueuedTimes() {
+    mJobScheduler.updateJob(fakeEncodedImage(), Consumer.NO_FLAGS);
+    assertTrue(mJobScheduler.scheduleJob());
+    mFakeClockForTime.incrementBy(10);
+    mFakeClockForWorker.incrementBy(10);
+    mFakeClockForScheduled.incrementBy(10);
+    assertEquals(1, mTestJobRunnable.jobs.size());
+    assertEquals(10, mJobScheduler.getQueuedTime());
+    assertEquals(0, mJobScheduler.getDelayedTime());
+    assertEquals(10, mJobScheduler.getExecutorQueuedTime());
+
+    // the second job is held back until the interval since the first one has elapsed
+    mJobScheduler.updateJob(fakeEncodedImage(), Consumer.IS_LAST);
+    assertTrue(mJobScheduler.scheduleJob());
+    assertEquals(1, mTestScheduledExecutorService.getPendingCount());
+    mFakeClockForTime.incrementBy(INTERVAL);
+    mFakeClockForScheduled.incrementBy(INTERVAL);
+    assertEquals(1, mTestExecutorService.getPendingCount());
+    mFakeClockForTime.incrementBy(5);
+    mFakeClockForWorker.incrementBy(5);
+    assertEquals(2, mTestJobRunnable.jobs.size());
+    assertEquals(INTERVAL + 5, mJobScheduler.getQueuedTime());
+    assertEquals(INTERVAL, mJobScheduler.getDelayedTime());
+    assertEquals(5, mJobScheduler.getExecutorQueuedTime());
+  }
+
   @Test
   public void testSchedule_Intermediate_Invalid() {
     mJobScheduler.updateJob(null, Consumer.NO_FLAGS);
@@ -19,6 +19,7 @@ import com.facebook.common.memory.PooledByteBufferFactory;
 import com.facebook.common.memory.PooledByteBufferOutputStream;
 import com.facebook.common.references.CloseableReference;
 import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.image.EncodedImage;
 import com.facebook.imagepipeline.request.ImageRequest;
 import java.io.IOException;
 import java.io.InputStream;
@@ -237,6 +238,75 @@ public class NetworkFetchProducerTest {
     }
   }
 
+  @Test
+  public void testResumablePrefixPassedOnFailure() throws IOException {
+    mNetworkFetchProducer = newResumableNetworkFetchProducer();
+    NetworkFetcher.Callback callback = performFetch();
+    InputStream inputStream = mock(InputStream.class);
+    when(inputStream.read(any(byte[].class))).thenReturn(10).thenThrow(new IOException());
+    when(mNetworkFetcher.shouldPropagate(any(FetchState.class))).thenReturn(false);
+    when(mPooledByteBufferOutputStream.size()).thenReturn(10);
+    try {
+      callback.onResponse(inputStream, 100);
+      fail();
+    } catch (IOException e) {
+      verify(mConsumer).onNewResult(
+          any(EncodedImage.class),
+          eq(Consumer.IS_PARTIAL_RESULT | Consumer.IS_RESUMABLE_PREFIX));
+      verify(mConsumer, never()).onNewResult(any(EncodedImage.class), eq(Consumer.IS_LAST));
+      verifyPooledByteBufferUsed(1);
+      verify(mPooledByteBufferOutputStream).close();
+    }
+  }
+
+  @Test
+  public void testResumableDownloadStopsOnCancellation() throws IOException {
+    mNetworkFetchProducer = newResumableNetworkFetchProducer();
+    NetworkFetcher.Callback callback = performFetch();
+    InputStream inputStream = mock(InputStream.class);
+    when(inputStream.read(any(byte[].class))).thenReturn(10);
+    when(mNetworkFetcher.shouldPropagate(any(FetchState.class))).thenReturn(false);
+    when(mPooledByteBufferOutputStream.size()).thenReturn(10);
+    mProducerContext.cancel();
+
+    callback.onResponse(inputStream, 100);
+
+    verify(inputStream).read(any(byte[].class));
+    verify(mConsumer).onNewResult(
+        any(EncodedImage.class),
+        eq(Consumer.IS_PARTIAL_RESULT | Consumer.IS_RESUMABLE_PREFIX));
+    verify(mConsumer).onCancellation();
+    verify(mProducerListener).onProducerFinishWithCancellation(
+        mRequestId, NetworkFetchProducer.PRODUCER_NAME, null);
+    verify(mNetworkFetcher, never()).onFetchCompletion(any(FetchState.class), anyInt());
+  }
+
+  @Test
+  public void testNoResumablePrefixWithoutDiskCache() throws IOException {
+    mNetworkFetchProducer = newResumableNetworkFetchProducer();
+    when(mImageRequest.isDiskCacheEnabled()).thenReturn(false);
+    NetworkFetcher.Callback callback = performFetch();
+    InputStream inputStream = mock(InputStream.class);
+    when(inputStream.read(any(byte[].class))).thenReturn(10).thenThrow(new IOException());
+    when(mNetworkFetcher.shouldPropagate(any(FetchState.class))).thenReturn(false);
+    when(mPooledByteBufferOutputStream.size()).thenReturn(10);
+    try {
+      callback.onResponse(inputStream, 100);
+      fail();
+    } catch (IOException e) {
+      verify(mConsumer, never()).onNewResult(any(EncodedImage.class), anyInt());
+    }
+  }
+
+  private NetworkFetchProducer newResumableNetworkFetchProducer() {
+    when(mImageRequest.isDiskCacheEnabled()).thenReturn(true);
+    return new NetworkFetchProducer(
+        mPooledByteBufferFactory,
+        mByteArrayPool,
+        mNetworkFetcher,
+        /* resumableDownloadsEnabled */ true);
+  }
+
   private void verifyPooledByteBufferUsed(int times) {
     verify(mPooledByteBufferOutputStream, times(times)).toByteBuffer();
     verify(mPooledByteBuffer, times(times)).close();
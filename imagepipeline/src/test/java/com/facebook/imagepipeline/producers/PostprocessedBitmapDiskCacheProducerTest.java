@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import android.graphics.Bitmap;
+import android.media.ExifInterface;
+import bolts.Task;
+import com.facebook.cache.common.CacheKey;
+import com.facebook.cache.common.SimpleCacheKey;
+import com.facebook.common.executors.CallerThreadExecutor;
+import com.facebook.common.internal.ImmutableMap;
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.memory.PooledByteBufferFactory;
+import com.facebook.common.memory.PooledByteBufferOutputStream;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.cache.BufferedDiskCache;
+import com.facebook.imagepipeline.cache.CacheKeyFactory;
+import com.facebook.imagepipeline.common.ImageDecodeOptions;
+import com.facebook.imagepipeline.decoder.ImageDecoder;
+import com.facebook.imagepipeline.image.CloseableImage;
+import com.facebook.imagepipeline.image.CloseableStaticBitmap;
+import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.image.QualityInfo;
+import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.imagepipeline.request.Postprocessor;
+import com.facebook.imagepipeline.request.RepeatedPostprocessor;
+import com.facebook.imagepipeline.testing.TrivialPooledByteBuffer;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class PostprocessedBitmapDiskCacheProducerTest {
+  private static final String PRODUCER_NAME = PostprocessedBitmapDiskCacheProducer.PRODUCER_NAME;
+
+  @Mock public BufferedDiskCache mDiskCache;
+  @Mock public CacheKeyFactory mCacheKeyFactory;
+  @Mock public ImageDecoder mImageDecoder;
+  @Mock public PooledByteBufferFactory mPooledByteBufferFactory;
+  @Mock public PooledByteBufferOutputStream mOutputStream;
+  @Mock public PooledByteBuffer mPooledByteBuffer;
+  @Mock public Producer mInputProducer;
+  @Mock public Consumer mConsumer;
+  @Mock public ProducerContext mProducerContext;
+  @Mock public ImageRequest mImageRequest;
+  @Mock public Postprocessor mPostprocessor;
+  @Mock public RepeatedPostprocessor mRepeatedPostprocessor;
+  @Mock public ProducerListener mProducerListener;
+  @Mock public EncodedImage mEncodedImage;
+  @Mock public CloseableImage mDecodedImage;
+  @Mock public CloseableStaticBitmap mPostprocessedImage;
+  @Mock public Bitmap mPostprocessedBitmap;
+  private CacheKey mPostprocessedBitmapCacheKey;
+  private PostprocessedBitmapDiskCacheProducer mDiskCacheProducer;
+  private final String mRequestId = "mRequestId";
+  private final Map<String, String> mExtraOnHit =
+      ImmutableMap.of(PostprocessedBitmapDiskCacheProducer.VALUE_FOUND, "true");
+  private final Map<String, String> mExtraOnMiss =
+      ImmutableMap.of(PostprocessedBitmapDiskCacheProducer.VALUE_FOUND, "false");
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    mDiskCacheProducer = new PostprocessedBitmapDiskCacheProducer(
+        mDiskCache,
+        mCacheKeyFactory,
+        mImageDecoder,
+        mPooledByteBufferFactory,
+        CallerThreadExecutor.getInstance(),
+        mInputProducer);
+    mPostprocessedBitmapCacheKey = new SimpleCacheKey("http://dummy.uri:blur");
+
+    when(mProducerContext.getImageRequest()).thenReturn(mImageRequest);
+    when(mProducerContext.getListener()).thenReturn(mProducerListener);
+    when(mProducerListener.requiresExtraMap(mRequestId)).thenReturn(true);
+    when(mProducerContext.getId()).thenReturn(mRequestId);
+    when(mProducerContext.getCallerContext()).thenReturn(PRODUCER_NAME);
+    when(mImageRequest.getPostprocessor()).thenReturn(mPostprocessor);
+    when(mImageRequest.isDiskCacheEnabled()).thenReturn(true);
+    when(mImageRequest.getImageDecodeOptions()).thenReturn(ImageDecodeOptions.defaults());
+    when(mPostprocessor.getPostprocessorCacheKey()).thenReturn(new SimpleCacheKey("blur"));
+    when(mRepeatedPostprocessor.getPostprocessorCacheKey()).thenReturn(new SimpleCacheKey("blur"));
+    when(mCacheKeyFactory.getPostprocessedBitmapCacheKey(mImageRequest, PRODUCER_NAME))
+        .thenReturn(mPostprocessedBitmapCacheKey);
+    when(mPooledByteBufferFactory.newOutputStream()).thenReturn(mOutputStream);
+    when(mOutputStream.toByteBuffer()).thenReturn(mPooledByteBuffer);
+    when(mPostprocessedImage.getUnderlyingBitmap()).thenReturn(mPostprocessedBitmap);
+  }
+
+  @Test
+  public void testNoPostprocessorCaching() {
+    when(mPostprocessor.getPostprocessorCacheKey()).thenReturn(null);
+    mDiskCacheProducer.produceResults(mConsumer, mProducerContext);
+    verify(mInputProducer).produceResults(mConsumer, mProducerContext);
+    verifyNoMoreInteractions(mDiskCache, mProducerListener);
+  }
+
+  @Test
+  public void testRepeatedPostprocessorNotCached() {
+    when(mImageRequest.getPostprocessor()).thenReturn(mRepeatedPostprocessor);
+    mDiskCacheProducer.produceResults(mConsumer, mProducerContext);
+    verify(mInputProducer).produceResults(mConsumer, mProducerContext);
+    verifyNoMoreInteractions(mDiskCache, mProducerListener);
+  }
+
+  @Test
+  public void testDiskCacheDisabled() {
+    when(mImageRequest.isDiskCacheEnabled()).thenReturn(false);
+    mDiskCacheProducer.produceResults(mConsumer, mProducerContext);
+    verify(mInputProducer).produceResults(mConsumer, mProducerContext);
+    verifyNoMoreInteractions(mDiskCache, mProducerListener);
+  }
+
+  @Test
+  public void testCacheHit() {
+    when(mDiskCache.get(eq(mPostprocessedBitmapCacheKey), any(AtomicBoolean.class)))
+        .thenReturn(Task.forResult(mEncodedImage));
+    when(mImageDecoder.decode(
+        eq(mEncodedImage),
+        anyInt(),
+        any(QualityInfo.class),
+        any(ImageDecodeOptions.class)))
+        .thenReturn(mDecodedImage);
+
+    final CloseableImage[] resultImage = new CloseableImage[1];
+    doAnswer(
+        new Answer() {
+          @Override
+          public Object answer(InvocationOnMock invocation) throws Throwable {
+            resultImage[0] =
+                ((CloseableReference<CloseableImage>) invocation.getArguments()[0]).get();
+            return null;
+          }
+        }).when(mConsumer).onNewResult(any(CloseableReference.class), eq(Consumer.IS_LAST));
+
+    mDiskCacheProducer.produceResults(mConsumer, mProducerContext);
+
+    verify(mInputProducer, never()).produceResults(any(Consumer.class), any(ProducerContext.class));
+    verify(mProducerListener).onProducerStart(mRequestId, PRODUCER_NAME);
+    verify(mProducerListener).onProducerFinishWithSuccess(mRequestId, PRODUCER_NAME, mExtraOnHit);
+    verify(mProducerListener).onUltimateProducerReached(mRequestId, PRODUCER_NAME, true);
+    assertSame(mDecodedImage, resultImage[0]);
+    verify(mEncodedImage).close();
+    // reference must be closed after `consumer.onNewResult` returns
+    verify(mDecodedImage).close();
+  }
+
+  @Test
+  public void testCacheHit_DecodeFailureFetchesSource() {
+    when(mDiskCache.get(eq(mPostprocessedBitmapCacheKey), any(AtomicBoolean.class)))
+        .thenReturn(Task.forResult(mEncodedImage));
+    when(mImageDecoder.decode(
+        eq(mEncodedImage),
+        anyInt(),
+        any(QualityInfo.class),
+        any(ImageDecodeOptions.class)))
+        .thenThrow(new IllegalArgumentException());
+
+    mDiskCacheProducer.produceResults(mConsumer, mProducerContext);
+
+    verify(mInputProducer).produceResults(any(Consumer.class), eq(mProducerContext));
+    verify(mProducerListener).onProducerFinishWithSuccess(mRequestId, PRODUCER_NAME, mExtraOnMiss);
+    verify(mEncodedImage).close();
+  }
+
+  @Test
+  public void testCacheMiss_WritesFinalResult() throws Exception {
+    when(mPostprocessedBitmap.compress(
+        eq(Bitmap.CompressFormat.PNG),
+        anyInt(),
+        any(OutputStream.class)))
+        .thenReturn(true);
+    CloseableReference<CloseableImage> intermediateRef =
+        CloseableReference.<CloseableImage>of(mock(CloseableStaticBitmap.class));
+    CloseableReference<CloseableImage> finalRef =
+        CloseableReference.<CloseableImage>of(mPostprocessedImage);
+
+    Consumer consumer = performCacheMiss();
+    consumer.onNewResult(intermediateRef, Consumer.NO_FLAGS);
+    consumer.onNewResult(finalRef, Consumer.IS_LAST);
+    finalRef.close();
+
+    verify(mConsumer).onNewResult(intermediateRef, Consumer.NO_FLAGS);
+    verify(mConsumer).onNewResult(finalRef, Consumer.IS_LAST);
+    verify(mPostprocessedBitmap)
+        .compress(eq(Bitmap.CompressFormat.PNG), anyInt(), eq(mOutputStream));
+    verify(mDiskCache).put(eq(mPostprocessedBitmapCacheKey), any(EncodedImage.class));
+    verify(mOutputStream).close();
+    // the bitmap is released once written
+    verify(mPostprocessedImage).close();
+  }
+
+  @Test
+  public void testCacheMiss_WritesOrientationChunk() throws Exception {
+    final int pngSize = 100;
+    PooledByteBufferOutputStream orientedOutputStream = mock(PooledByteBufferOutputStream.class);
+    when(mPooledByteBufferFactory.newOutputStream(anyInt())).thenReturn(orientedOutputStream);
+    when(orientedOutputStream.toByteBuffer()).thenReturn(mock(PooledByteBuffer.class));
+    when(mPooledByteBuffer.size()).thenReturn(pngSize);
+    when(mPostprocessedBitmap.compress(
+        eq(Bitmap.CompressFormat.PNG),
+        anyInt(),
+        any(OutputStream.class)))
+        .thenReturn(true);
+    when(mPostprocessedImage.getRotationAngle()).thenReturn(90);
+    when(mPostprocessedImage.getExifOrientation()).thenReturn(ExifInterface.ORIENTATION_ROTATE_90);
+    CloseableReference<CloseableImage> finalRef =
+        CloseableReference.<CloseableImage>of(mPostprocessedImage);
+
+    Consumer consumer = performCacheMiss();
+    consumer.onNewResult(finalRef, Consumer.IS_LAST);
+
+    byte[] orientationChunk = PostprocessedBitmapDiskCacheProducer.createOrientationChunk(
+        90,
+        ExifInterface.ORIENTATION_ROTATE_90);
+    verify(mPooledByteBufferFactory).newOutputStream(pngSize + orientationChunk.length);
+    // the PNG header, the orientation chunk and the rest of the PNG
+    verify(orientedOutputStream).write(any(byte[].class), eq(0), eq(33));
+    verify(orientedOutputStream).write(orientationChunk);
+    verify(orientedOutputStream).write(any(byte[].class), eq(0), eq(pngSize - 33));
+    verify(mDiskCache).put(eq(mPostprocessedBitmapCacheKey), any(EncodedImage.class));
+    verify(mPooledByteBuffer).close();
+    verify(mOutputStream).close();
+    verify(orientedOutputStream).close();
+  }
+
+  @Test
+  public void testReadOrientationChunk() {
+    byte[] orientationChunk = PostprocessedBitmapDiskCacheProducer.createOrientationChunk(
+        270,
+        ExifInterface.ORIENTATION_TRANSVERSE);
+    byte[] png = new byte[33 + orientationChunk.length + 12];
+    System.arraycopy(orientationChunk, 0, png, 33, orientationChunk.length);
+    EncodedImage encodedImage = newEncodedImage(png);
+
+    PostprocessedBitmapDiskCacheProducer.readOrientationChunk(encodedImage);
+
+    assertEquals(270, encodedImage.getRotationAngle());
+    assertEquals(ExifInterface.ORIENTATION_TRANSVERSE, encodedImage.getExifOrientation());
+  }
+
+  @Test
+  public void testReadOrientationChunk_NoChunk() {
+    byte[] orientationChunk = PostprocessedBitmapDiskCacheProducer.createOrientationChunk(
+        270,
+        ExifInterface.ORIENTATION_TRANSVERSE);
+    // a corrupted chunk is ignored
+    orientationChunk[orientationChunk.length - 1]++;
+    byte[] png = new byte[33 + orientationChunk.length + 12];
+    System.arraycopy(orientationChunk, 0, png, 33, orientationChunk.length);
+    EncodedImage encodedImage = newEncodedImage(png);
+    encodedImage.setRotationAngle(0);
+
+    PostprocessedBitmapDiskCacheProducer.readOrientationChunk(encodedImage);
+
+    assertEquals(0, encodedImage.getRotationAngle());
+    assertEquals(ExifInterface.ORIENTATION_UNDEFINED, encodedImage.getExifOrientation());
+  }
+
+  @Test
+  public void testCacheMiss_EncodeFailure() {
+    when(mPostprocessedBitmap.compress(
+        any(Bitmap.CompressFormat.class),
+        anyInt(),
+        any(OutputStream.class)))
+        .thenReturn(false);
+    CloseableReference<CloseableImage> finalRef =
+        CloseableReference.<CloseableImage>of(mPostprocessedImage);
+
+    Consumer consumer = performCacheMiss();
+    consumer.onNewResult(finalRef, Consumer.IS_LAST);
+
+    verify(mConsumer).onNewResult(finalRef, Consumer.IS_LAST);
+    verify(mDiskCache, never()).put(any(CacheKey.class), any(EncodedImage.class));
+    verify(mOutputStream).close();
+  }
+
+  @Test
+  public void testCacheMiss_UnderlyingNull() {
+    Consumer consumer = performCacheMiss();
+    consumer.onNewResult(null, Consumer.IS_LAST);
+    verify(mConsumer).onNewResult(null, Consumer.IS_LAST);
+    verify(mDiskCache, never()).put(any(CacheKey.class), any(EncodedImage.class));
+  }
+
+  @Test
+  public void testCacheReadFailure() {
+    when(mDiskCache.get(eq(mPostprocessedBitmapCacheKey), any(AtomicBoolean.class)))
+        .thenReturn(Task.<EncodedImage>forError(new RuntimeException()));
+
+    mDiskCacheProducer.produceResults(mConsumer, mProducerContext);
+
+    verify(mProducerListener).onProducerFinishWithFailure(
+        eq(mRequestId),
+        eq(PRODUCER_NAME),
+        any(RuntimeException.class),
+        isNull(Map.class));
+    verify(mInputProducer).produceResults(any(Consumer.class), eq(mProducerContext));
+  }
+
+  @Test
+  public void testCacheReadCancelled() {
+    when(mDiskCache.get(eq(mPostprocessedBitmapCacheKey), any(AtomicBoolean.class)))
+        .thenReturn(Task.<EncodedImage>cancelled());
+
+    mDiskCacheProducer.produceResults(mConsumer, mProducerContext);
+
+    verify(mProducerListener).onProducerFinishWithCancellation(mRequestId, PRODUCER_NAME, null);
+    verify(mConsumer).onCancellation();
+    verify(mInputProducer, never()).produceResults(any(Consumer.class), any(ProducerContext.class));
+  }
+
+  private static EncodedImage newEncodedImage(byte[] bytes) {
+    return new EncodedImage(
+        CloseableReference.<PooledByteBuffer>of(new TrivialPooledByteBuffer(bytes)));
+  }
+
+  private Consumer performCacheMiss() {
+    when(mDiskCache.get(eq(mPostprocessedBitmapCacheKey), any(AtomicBoolean.class)))
+        .thenReturn(Task.<EncodedImage>forResult(null));
+
+    mDiskCacheProducer.produceResults(mConsumer, mProducerContext);
+
+    verify(mProducerListener).onProducerStart(mRequestId, PRODUCER_NAME);
+    ArgumentCaptor<Consumer> captor = ArgumentCaptor.forClass(Consumer.class);
+    verify(mInputProducer).produceResults(captor.capture(), eq(mProducerContext));
+    verify(mProducerListener).onProducerFinishWithSuccess(mRequestId, PRODUCER_NAME, mExtraOnMiss);
+    verify(mProducerListener, never())
+        .onUltimateProducerReached(anyString(), anyString(), anyBoolean());
+    return captor.getValue();
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.core.PrioritizedRunnable;
+import com.facebook.imagepipeline.core.PriorityExecutor;
+import com.facebook.imagepipeline.request.ImageRequest;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.*;
+import org.junit.runner.*;
+import org.mockito.*;
+import org.robolectric.*;
+import org.robolectric.annotation.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest= Config.NONE)
+public class ProducerContextExecutorTest {
+  @Mock public PriorityExecutor mPriorityExecutor;
+  @Mock public Runnable mRunnable;
+  private SettableProducerContext mProducerContext;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    mProducerContext = new SettableProducerContext(
+        mock(ImageRequest.class),
+        "mRequestId",
+        mock(ProducerListener.class),
+        mock(Object.class),
+        ImageRequest.RequestLevel.FULL_FETCH,
+        true,
+        true,
+        Priority.LOW);
+  }
+
+  @Test
+  public void testOtherExecutorsAreNotWrapped() {
+    Executor executor = mock(Executor.class);
+    assertSame(executor, ProducerContextExecutor.forContext(executor, mProducerContext));
+  }
+
+  @Test
+  public void testExecuteAtPriorityOfContext() {
+    ProducerContextExecutor.forContext(mPriorityExecutor, mProducerContext).execute(mRunnable);
+    PrioritizedRunnable prioritizedRunnable = getSubmittedRunnable();
+    assertEquals(Priority.LOW, prioritizedRunnable.getPriority());
+    mProducerContext.setPriority(Priority.HIGH);
+    assertEquals(Priority.HIGH, prioritizedRunnable.getPriority());
+
+    prioritizedRunnable.run();
+    verify(mRunnable).run();
+  }
+
+  @Test
+  public void testReprioritizeQueuedRunnables() {
+    ProducerContextExecutor.forContext(mPriorityExecutor, mProducerContext).execute(mRunnable);
+    PrioritizedRunnable prioritizedRunnable = getSubmittedRunnable();
+    mProducerContext.setPriority(Priority.HIGH);
+    verify(mPriorityExecutor).reprioritize(prioritizedRunnable);
+
+    // started runnables are not moved anymore
+    prioritizedRunnable.run();
+    mProducerContext.setPriority(Priority.MEDIUM);
+    verify(mPriorityExecutor, times(1)).reprioritize(any(PrioritizedRunnable.class));
+  }
+
+  @Test
+  public void testCallbacksAreOnlyAddedWhileWorkIsQueued() {
+    mProducerContext = spy(mProducerContext);
+    Executor executor = ProducerContextExecutor.forContext(mPriorityExecutor, mProducerContext);
+    verify(mProducerContext, never()).addCallbacks(any(ProducerContextCallbacks.class));
+
+    executor.execute(mRunnable);
+    ArgumentCaptor<ProducerContextCallbacks> callbacks =
+        ArgumentCaptor.forClass(ProducerContextCallbacks.class);
+    verify(mProducerContext).addCallbacks(callbacks.capture());
+    getSubmittedRunnable().run();
+    verify(mProducerContext).removeCallbacks(callbacks.getValue());
+
+    // queued again, the executor listens again
+    executor.execute(mRunnable);
+    verify(mProducerContext, times(2)).addCallbacks(callbacks.getValue());
+  }
+
+  @Test
+  public void testRejectedRunnableIsDequeued() {
+    mProducerContext = spy(mProducerContext);
+    Executor executor = ProducerContextExecutor.forContext(mPriorityExecutor, mProducerContext);
+    RejectedExecutionException rejection = new RejectedExecutionException();
+    doThrow(rejection).when(mPriorityExecutor).execute(any(Runnable.class));
+
+    try {
+      executor.execute(mRunnable);
+      fail();
+    } catch (RejectedExecutionException e) {
+      assertSame(rejection, e);
+    }
+    ArgumentCaptor<ProducerContextCallbacks> callbacks =
+        ArgumentCaptor.forClass(ProducerContextCallbacks.class);
+    verify(mProducerContext).addCallbacks(callbacks.capture());
+    verify(mProducerContext).removeCallbacks(callbacks.getValue());
+
+    // nothing is left to move
+    mProducerContext.setPriority(Priority.HIGH);
+    verify(mPriorityExecutor, never()).reprioritize(any(PrioritizedRunnable.class));
+  }
+
+  private PrioritizedRunnable getSubmittedRunnable() {
+    ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+    verify(mPriorityExecutor).execute(captor.capture());
+    assertTrue(captor.getValue() instanceof PrioritizedRunnable);
+    return (PrioritizedRunnable) captor.getValue();
+  }
+}
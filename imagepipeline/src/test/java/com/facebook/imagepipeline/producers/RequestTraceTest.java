@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.producers;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import android.os.SystemClock;
+import com.facebook.common.util.TriState;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.request.ImageRequest;
+import org.junit.*;
+import org.junit.runner.*;
+import org.robolectric.*;
+import org.robolectric.annotation.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class RequestTraceTest {
+
+  private static final String REQUEST_ID = "requestId";
+
+  private RequestTrace mRequestTrace;
+  private SettableProducerContext mProducerContext;
+
+  @Before
+  public void setUp() {
+    mRequestTrace = RequestTrace.obtain(REQUEST_ID);
+    mProducerContext = newProducerContext(REQUEST_ID, mRequestTrace);
+  }
+
+  @Test
+  public void testInitialState() {
+    assertEquals(REQUEST_ID, mRequestTrace.getRequestId());
+    for (int stage = 0; stage < RequestTrace.STAGE_COUNT; stage++) {
+      assertEquals(RequestTrace.STATUS_NONE, mRequestTrace.getStatus(stage));
+      assertEquals(RequestTrace.UNSET, mRequestTrace.getStartTimeMs(stage));
+      assertEquals(RequestTrace.UNSET, mRequestTrace.getDurationMs(stage));
+      assertEquals(RequestTrace.UNSET, mRequestTrace.getByteCount(stage));
+      assertEquals(RequestTrace.UNSET, mRequestTrace.getQueueWaitMs(stage));
+      assertEquals(TriState.UNSET, mRequestTrace.getCacheHit(stage));
+    }
+    assertEquals(RequestTrace.UNSET, mRequestTrace.getSampleSize());
+  }
+
+  @Test
+  public void testRecordStage() {
+    SystemClock.setCurrentTimeMillis(1000);
+    RequestTrace.recordStageStart(mProducerContext, RequestTrace.STAGE_DECODE);
+    assertEquals(RequestTrace.STATUS_STARTED, mRequestTrace.getStatus(RequestTrace.STAGE_DECODE));
+    assertEquals(RequestTrace.UNSET, mRequestTrace.getDurationMs(RequestTrace.STAGE_DECODE));
+
+    SystemClock.setCurrentTimeMillis(1025);
+    RequestTrace.recordQueueWait(mProducerContext, RequestTrace.STAGE_DECODE, 12);
+    RequestTrace.recordByteCount(mProducerContext, RequestTrace.STAGE_DECODE, 4096);
+    RequestTrace.recordSampleSize(mProducerContext, 2);
+    RequestTrace.recordStageFinish(
+        mProducerContext, RequestTrace.STAGE_DECODE, RequestTrace.STATUS_SUCCESS);
+
+    assertEquals(RequestTrace.STATUS_SUCCESS, mRequestTrace.getStatus(RequestTrace.STAGE_DECODE));
+    assertEquals(25, mRequestTrace.getDurationMs(RequestTrace.STAGE_DECODE));
+    assertEquals(12, mRequestTrace.getQueueWaitMs(RequestTrace.STAGE_DECODE));
+    assertEquals(4096, mRequestTrace.getByteCount(RequestTrace.STAGE_DECODE));
+    assertEquals(2, mRequestTrace.getSampleSize());
+    assertEquals(RequestTrace.STATUS_NONE, mRequestTrace.getStatus(RequestTrace.STAGE_DISK_CACHE));
+  }
+
+  @Test
+  public void testRecordCacheHit() {
+    RequestTrace.recordCacheHit(mProducerContext, RequestTrace.STAGE_DISK_CACHE, true);
+    RequestTrace.recordCacheHit(mProducerContext, RequestTrace.STAGE_BITMAP_MEMORY_CACHE, false);
+    assertEquals(TriState.YES, mRequestTrace.getCacheHit(RequestTrace.STAGE_DISK_CACHE));
+    assertEquals(TriState.NO, mRequestTrace.getCacheHit(RequestTrace.STAGE_BITMAP_MEMORY_CACHE));
+    assertEquals(
+        TriState.UNSET, mRequestTrace.getCacheHit(RequestTrace.STAGE_ENCODED_MEMORY_CACHE));
+  }
+
+  @Test
+  public void testRecordWithoutTrace() {
+    ProducerContext producerContext = newProducerContext(REQUEST_ID, null);
+    RequestTrace.recordStageStart(producerContext, RequestTrace.STAGE_DECODE);
+    RequestTrace.recordSampleSize(producerContext, 2);
+    assertEquals(RequestTrace.STATUS_NONE, mRequestTrace.getStatus(RequestTrace.STAGE_DECODE));
+  }
+
+  @Test
+  public void testRecycleClearsAndReuses() {
+    RequestTrace.recordStageStart(mProducerContext, RequestTrace.STAGE_DECODE);
+    RequestTrace.recordSampleSize(mProducerContext, 4);
+    mRequestTrace.recycle();
+    assertNull(mRequestTrace.getRequestId());
+
+    RequestTrace reused = RequestTrace.obtain("otherRequestId");
+    assertSame(mRequestTrace, reused);
+    assertEquals("otherRequestId", reused.getRequestId());
+    assertEquals(RequestTrace.STATUS_NONE, reused.getStatus(RequestTrace.STAGE_DECODE));
+    assertEquals(RequestTrace.UNSET, reused.getSampleSize());
+    reused.recycle();
+  }
+
+  @Test
+  public void testLateRecordAfterRecycleIsIgnored() {
+    mRequestTrace.recycle();
+    RequestTrace reused = RequestTrace.obtain("otherRequestId");
+    assertSame(mRequestTrace, reused);
+
+    // the producers of the first request still hold its context
+    RequestTrace.recordStageStart(mProducerContext, RequestTrace.STAGE_NETWORK_FETCH);
+    RequestTrace.recordByteCount(mProducerContext, RequestTrace.STAGE_NETWORK_FETCH, 100);
+    assertEquals(RequestTrace.STATUS_NONE, reused.getStatus(RequestTrace.STAGE_NETWORK_FETCH));
+    assertEquals(RequestTrace.UNSET, reused.getByteCount(RequestTrace.STAGE_NETWORK_FETCH));
+    reused.recycle();
+  }
+
+  @Test
+  public void testCopiedContextKeepsTrace() {
+    assertSame(mRequestTrace, new SettableProducerContext(mProducerContext).getRequestTrace());
+  }
+
+  private static SettableProducerContext newProducerContext(
+      String requestId, RequestTrace requestTrace) {
+    return new SettableProducerContext(
+        mock(ImageRequest.class),
+        requestId,
+        mock(ProducerListener.class),
+        mock(Object.class),
+        ImageRequest.RequestLevel.FULL_FETCH,
+        false,
+        true,
+        Priority.MEDIUM,
+        requestTrace);
+  }
+}
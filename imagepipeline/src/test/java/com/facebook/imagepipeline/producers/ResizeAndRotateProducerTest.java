@@ -22,6 +22,7 @@ import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import android.graphics.Rect;
 import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.SystemClock;
@@ -32,6 +33,7 @@ import com.facebook.common.memory.PooledByteBufferOutputStream;
 import com.facebook.common.references.CloseableReference;
 import com.facebook.imageformat.DefaultImageFormats;
 import com.facebook.imageformat.ImageFormat;
+import com.facebook.imagepipeline.common.ImageDecodeOptions;
 import com.facebook.imagepipeline.common.ResizeOptions;
 import com.facebook.imagepipeline.common.RotationOptions;
 import com.facebook.imagepipeline.image.EncodedImage;
@@ -116,6 +118,7 @@ public class ResizeAndRotateProducerTest {
         });
 
     when(mImageRequest.getSourceUri()).thenReturn(Uri.parse("http://testuri"));
+    when(mImageRequest.getImageDecodeOptions()).thenReturn(ImageDecodeOptions.defaults());
     mTestExecutorService = new TestExecutorService(mFakeClockForWorker);
     mTestScheduledExecutorService = new TestScheduledExecutorService(mFakeClockForScheduled);
     mUiThreadImmediateExecutorService = mock(UiThreadImmediateExecutorService.class);
@@ -372,6 +375,27 @@ public class ResizeAndRotateProducerTest {
     verifyJpegTranscoderInteractions(4, 0);
   }
 
+  @Test
+  public void testDoesNotTransformIfRegionToDecode() throws Exception {
+    whenResizingEnabled();
+    final int preferredWidth = 300;
+    final int preferredHeight = 600;
+    whenRequestWidthAndHeight(preferredWidth, preferredHeight);
+    whenRequestSpecificRotation(RotationOptions.ROTATE_90);
+    when(mImageRequest.getImageDecodeOptions()).thenReturn(
+        ImageDecodeOptions.newBuilder().setRegionToDecode(new Rect(0, 0, 256, 256)).build());
+
+    provideFinalResult(
+        DefaultImageFormats.JPEG,
+        preferredWidth * 2,
+        preferredHeight * 2,
+        0,
+        ExifInterface.ORIENTATION_NORMAL);
+    verifyFinalResultPassedThroughUnchanged();
+
+    verifyZeroJpegTranscoderInteractions();
+  }
+
   @Test
   public void testDoesNotResizeIfJpegButResizingDisabled() throws Exception {
     whenResizingDisabled();
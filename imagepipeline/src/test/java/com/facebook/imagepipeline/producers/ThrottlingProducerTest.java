@@ -163,4 +163,36 @@ public class ThrottlingProducerTest {
     mThrottlerConsumers[2].onNewResult(mResults[3], Consumer.IS_LAST);
     mThrottlerConsumers[3].onNewResult(mResults[4], Consumer.IS_LAST);
   }
+
+  @Test
+  public void testAdaptiveLimit() {
+    AdaptiveConcurrencyLimiter concurrencyLimiter = new AdaptiveConcurrencyLimiter(1, 4);
+    mThrottlingProducer = new ThrottlingProducer<Object>(
+        concurrencyLimiter,
+        CallerThreadExecutor.getInstance(),
+        mInputProducer);
+    assertEquals(1, mThrottlingProducer.getMaxSimultaneousRequests());
+
+    // First request is passed on immediately, the next two are queued up
+    mThrottlingProducer.produceResults(mConsumers[0], mProducerContexts[0]);
+    assertNotNull(mThrottlerConsumers[0]);
+    assertEquals(1, concurrencyLimiter.getInFlightCount());
+    mThrottlingProducer.produceResults(mConsumers[1], mProducerContexts[1]);
+    mThrottlingProducer.produceResults(mConsumers[2], mProducerContexts[2]);
+    assertNull(mThrottlerConsumers[1]);
+    assertNull(mThrottlerConsumers[2]);
+
+    // First request finishes in time, the limit grows and both queued requests are kicked off
+    mThrottlerConsumers[0].onNewResult(mResults[0], Consumer.IS_LAST);
+    assertEquals(2, mThrottlingProducer.getMaxSimultaneousRequests());
+    assertNotNull(mThrottlerConsumers[1]);
+    assertNotNull(mThrottlerConsumers[2]);
+    assertEquals(2, concurrencyLimiter.getInFlightCount());
+
+    // Failures and cancellations do not change the limit
+    mThrottlerConsumers[1].onFailure(mException);
+    mThrottlerConsumers[2].onCancellation();
+    assertEquals(2, mThrottlingProducer.getMaxSimultaneousRequests());
+    assertEquals(0, concurrencyLimiter.getInFlightCount());
+  }
 }
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2015-present, Facebook, Inc.
+ *
+ * This source code is licensed under the MIT license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.facebook.imagepipeline.request;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.graphics.Bitmap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class TiledPostprocessorTest {
+
+  private static final int WIDTH = 37;
+  private static final int HEIGHT = 53;
+
+  private ExecutorService mExecutor;
+  private int[] mSourcePixels;
+  private int[] mDestPixels;
+
+  @Before
+  public void setUp() {
+    mExecutor = Executors.newFixedThreadPool(3);
+    final Random random = new Random(0);
+    mSourcePixels = new int[WIDTH * HEIGHT];
+    for (int i = 0; i < mSourcePixels.length; i++) {
+      mSourcePixels[i] = random.nextInt(1000);
+    }
+    mDestPixels = new int[WIDTH * HEIGHT];
+  }
+
+  @After
+  public void tearDown() {
+    mExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testProcess_SameResultForAnyTiling() {
+    for (int halo = 0; halo <= 4; halo++) {
+      final int[] expected = sumColumns(mSourcePixels, WIDTH, HEIGHT, halo);
+      for (int workerCount = 1; workerCount <= 8; workerCount++) {
+        for (int maxTilePixelCount : new int[] {1, WIDTH * 5, WIDTH * HEIGHT}) {
+          Arrays.fill(mDestPixels, 0);
+          new ColumnSumPostprocessor(halo, workerCount, maxTilePixelCount)
+              .process(mDestPixels, mSourcePixels, WIDTH, HEIGHT);
+          assertArrayEquals(
+              "halo " + halo + ", " + workerCount + " workers, " + maxTilePixelCount + " pixels",
+              expected,
+              mDestPixels);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testProcess_ReusesBuffersOfWorkers() {
+    final ColumnSumPostprocessor postprocessor = new ColumnSumPostprocessor(1, 2, WIDTH * 4);
+
+    postprocessor.process(mDestPixels, mSourcePixels, WIDTH, HEIGHT);
+
+    // tiles of 4 rows, with a halo of 1 row above and below
+    assertEquals(14, postprocessor.mTileCount.get());
+    assertTrue(postprocessor.mBuffers.size() <= 2);
+    for (int[] buffer : postprocessor.mBuffers) {
+      assertEquals(WIDTH * 6, buffer.length);
+    }
+  }
+
+  @Test
+  public void testRowsPerTile() {
+    // one tile per worker for small bitmaps
+    assertEquals(5, new ColumnSumPostprocessor(1, 4, 1000).getRowsPerTile(100, 20, 4));
+    // tiles have at most 1000 pixels
+    assertEquals(10, new ColumnSumPostprocessor(1, 4, 1000).getRowsPerTile(100, 200, 4));
+    // unless the halo would then add more than half of the rows
+    assertEquals(20, new ColumnSumPostprocessor(5, 4, 1000).getRowsPerTile(100, 200, 4));
+  }
+
+  @Test
+  public void testWorkerCount() {
+    final ColumnSumPostprocessor postprocessor =
+        new ColumnSumPostprocessor(0, 4, Integer.MAX_VALUE);
+
+    assertEquals(4, postprocessor.getWorkerCount(WIDTH, HEIGHT));
+    assertEquals(2, postprocessor.getWorkerCount(WIDTH, 2));
+    postprocessor.mMinTilePixelCount = WIDTH * HEIGHT / 2;
+    assertEquals(2, postprocessor.getWorkerCount(WIDTH, HEIGHT));
+  }
+
+  @Test
+  public void testProcess_ReusesTileBitmaps() {
+    final Set<Bitmap> bitmaps = Collections.synchronizedSet(
+        Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>()));
+    final TiledPostprocessor postprocessor =
+        new ColumnSumPostprocessor(1, 1, WIDTH * 4) {
+          @Override
+          protected void processTile(Tile tile) {
+            final Bitmap bitmap = tile.getBitmap();
+            assertEquals(tile.getWidth(), bitmap.getWidth());
+            assertEquals(tile.getHeight(), bitmap.getHeight());
+            assertEquals(Bitmap.Config.ARGB_8888, bitmap.getConfig());
+            bitmaps.add(bitmap);
+          }
+        };
+
+    postprocessor.process(mDestPixels, mSourcePixels, WIDTH, HEIGHT);
+
+    // the first, middle and last tiles have different heights
+    assertEquals(3, bitmaps.size());
+  }
+
+  @Test
+  public void testProcess_PropagatesFailure() {
+    final TiledPostprocessor postprocessor =
+        new ColumnSumPostprocessor(1, 4, WIDTH) {
+          @Override
+          protected void processTile(Tile tile) {
+            if (tile.getTop() > 0) {
+              throw new IllegalStateException();
+            }
+            super.processTile(tile);
+          }
+        };
+    try {
+      postprocessor.process(mDestPixels, mSourcePixels, WIDTH, HEIGHT);
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Sums each pixel with the pixels of the {@code halo} rows above and below it, repeating the
+   * edge rows.
+   */
+  private static int[] sumColumns(int[] pixels, int width, int height, int halo) {
+    final int[] sums = new int[width * height];
+    for (int row = 0; row < height; row++) {
+      for (int col = 0; col < width; col++) {
+        int sum = 0;
+        for (int i = row - halo; i <= row + halo; i++) {
+          sum += pixels[Math.min(Math.max(i, 0), height - 1) * width + col];
+        }
+        sums[row * width + col] = sum;
+      }
+    }
+    return sums;
+  }
+
+  private class ColumnSumPostprocessor extends TiledPostprocessor {
+
+    private final int mHalo;
+    private final int mMaxTilePixelCount;
+    private final Set<int[]> mBuffers = Collections.synchronizedSet(
+        Collections.newSetFromMap(new IdentityHashMap<int[], Boolean>()));
+    private final AtomicInteger mTileCount = new AtomicInteger();
+    private int mMinTilePixelCount = 1;
+
+    private ColumnSumPostprocessor(int halo, int maxWorkerCount, int maxTilePixelCount) {
+      super(mExecutor, maxWorkerCount);
+      mHalo = halo;
+      mMaxTilePixelCount = maxTilePixelCount;
+    }
+
+    @Override
+    protected int getHalo() {
+      return mHalo;
+    }
+
+    @Override
+    protected int getMinTilePixelCount() {
+      return mMinTilePixelCount;
+    }
+
+    @Override
+    protected int getMaxTilePixelCount() {
+      return mMaxTilePixelCount;
+    }
+
+    @Override
+    protected void processTile(Tile tile) {
+      mTileCount.incrementAndGet();
+      mBuffers.add(tile.getPixels());
+      final int width = tile.getWidth();
+      final int[] pixels = tile.getPixels();
+      final int[] tilePixels = Arrays.copyOf(pixels, width * tile.getHeight());
+      final int[] sums = sumColumns(tilePixels, width, tile.getHeight(), mHalo);
+      final int first = tile.getFirstRow() * width;
+      System.arraycopy(sums, first, pixels, first, tile.getRowCount() * width);
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * This file provided by Facebook is for non-commercial testing and evaluation
+ * purposes only.  Facebook reserves all rights not expressly granted.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * FACEBOOK BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.samples.zoomable;
+
+import android.graphics.Rect;
+import com.facebook.common.internal.Objects;
+import com.facebook.common.internal.Preconditions;
+import java.util.List;
+
+/**
+ * A tile of a tiled image: a region of the image, decoded at a sample size.
+ *
+ * <p> The tiles of a sample size form a grid over the image, each tile covering
+ * {@code tileSize * sampleSize} pixels of the image in each direction, so that all the tiles
+ * decode to bitmaps of at most {@code tileSize} pixels in each direction.
+ */
+public class ImageTile {
+
+  private final Rect mRegion;
+  private final int mSampleSize;
+
+  public ImageTile(Rect region, int sampleSize) {
+    mRegion = new Rect(Preconditions.checkNotNull(region));
+    mSampleSize = sampleSize;
+  }
+
+  /**
+   * Gets the region of the tile, in pixels of the image.
+   */
+  public Rect getRegion() {
+    return mRegion;
+  }
+
+  public int getSampleSize() {
+    return mSampleSize;
+  }
+
+  /**
+   * Gets the width of the bitmap the tile decodes to.
+   */
+  public int getDecodedWidth() {
+    return Math.max(mRegion.width() / mSampleSize, 1);
+  }
+
+  /**
+   * Gets the height of the bitmap the tile decodes to.
+   */
+  public int getDecodedHeight() {
+    return Math.max(mRegion.height() / mSampleSize, 1);
+  }
+
+  /**
+   * Gets the largest sample size, a power of two, that doesn't show fewer bitmap pixels than
+   * screen pixels.
+   *
+   * @param scale the screen pixels per pixel of the image
+   * @param maxSampleSize the max sample size
+   */
+  public static int getSampleSize(float scale, int maxSampleSize) {
+    int sampleSize = 1;
+    while (sampleSize * 2 <= maxSampleSize && sampleSize * 2 * scale <= 1) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  /**
+   * Adds the tiles of the given sample size that intersect the visible region to outTiles.
+   *
+   * @param imageWidth the width of the image
+   * @param imageHeight the height of the image
+   * @param visibleRegion the visible region, in pixels of the image
+   * @param sampleSize the sample size of the tiles
+   * @param tileSize the max width and height of the decoded tiles
+   * @param outTiles the list to add the tiles to
+   */
+  public static void getTiles(
+      int imageWidth,
+      int imageHeight,
+      Rect visibleRegion,
+      int sampleSize,
+      int tileSize,
+      List<ImageTile> outTiles) {
+    final Rect visible = new Rect(visibleRegion);
+    if (!visible.intersect(0, 0, imageWidth, imageHeight)) {
+      return;
+    }
+    final int tileImageSize = tileSize * sampleSize;
+    final int firstColumn = visible.left / tileImageSize;
+    final int lastColumn = (visible.right - 1) / tileImageSize;
+    final int firstRow = visible.top / tileImageSize;
+    final int lastRow = (visible.bottom - 1) / tileImageSize;
+    for (int row = firstRow; row <= lastRow; row++) {
+      for (int column = firstColumn; column <= lastColumn; column++) {
+        final Rect region = new Rect(
+            column * tileImageSize,
+            row * tileImageSize,
+            Math.min((column + 1) * tileImageSize, imageWidth),
+            Math.min((row + 1) * tileImageSize, imageHeight));
+        outTiles.add(new ImageTile(region, sampleSize));
+      }
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof ImageTile)) {
+      return false;
+    }
+    final ImageTile that = (ImageTile) o;
+    return mSampleSize == that.mSampleSize && mRegion.equals(that.mRegion);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(mRegion, mSampleSize);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("region", mRegion)
+        .add("sampleSize", mSampleSize)
+        .toString();
+  }
+}
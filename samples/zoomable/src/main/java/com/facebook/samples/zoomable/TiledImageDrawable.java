@@ -0,0 +1,98 @@
+/*
+ * This file provided by Facebook is for non-commercial testing and evaluation
+ * purposes only.  Facebook reserves all rights not expressly granted.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * FACEBOOK BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.samples.zoomable;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import com.facebook.common.internal.Preconditions;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drawable that composites the loaded tiles of a {@link TiledImageSource}.
+ *
+ * <p> The bounds of the drawable are those of the whole image. The tiles are drawn over them,
+ * sharpest last, and parts of the image without a tile are left as is, e.g. for the downsampled
+ * image drawn below.
+ */
+public class TiledImageDrawable extends Drawable implements TiledImageSource.Listener {
+
+  private final TiledImageSource mTiledImageSource;
+  private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+  private final List<ImageTile> mTiles = new ArrayList<>();
+  private final RectF mTileBounds = new RectF();
+
+  public TiledImageDrawable(TiledImageSource tiledImageSource) {
+    mTiledImageSource = Preconditions.checkNotNull(tiledImageSource);
+    mTiledImageSource.setListener(this);
+  }
+
+  public TiledImageSource getTiledImageSource() {
+    return mTiledImageSource;
+  }
+
+  @Override
+  public void draw(Canvas canvas) {
+    final Rect bounds = getBounds();
+    if (!mTiledImageSource.isTileable() || bounds.isEmpty()) {
+      return;
+    }
+    final float scaleX = (float) bounds.width() / mTiledImageSource.getImageWidth();
+    final float scaleY = (float) bounds.height() / mTiledImageSource.getImageHeight();
+    mTiles.clear();
+    mTiledImageSource.getLoadedTiles(mTiles);
+    for (int i = 0; i < mTiles.size(); i++) {
+      final ImageTile tile = mTiles.get(i);
+      final Bitmap bitmap = mTiledImageSource.getBitmap(tile);
+      if (bitmap == null) {
+        continue;
+      }
+      final Rect region = tile.getRegion();
+      mTileBounds.set(
+          bounds.left + region.left * scaleX,
+          bounds.top + region.top * scaleY,
+          bounds.left + region.right * scaleX,
+          bounds.top + region.bottom * scaleY);
+      canvas.drawBitmap(bitmap, null, mTileBounds, mPaint);
+    }
+    mTiles.clear();
+  }
+
+  @Override
+  public void onTilesChanged() {
+    invalidateSelf();
+  }
+
+  @Override
+  public void setAlpha(int alpha) {
+    mPaint.setAlpha(alpha);
+    invalidateSelf();
+  }
+
+  @Override
+  public void setColorFilter(ColorFilter colorFilter) {
+    mPaint.setColorFilter(colorFilter);
+    invalidateSelf();
+  }
+
+  @Override
+  public int getOpacity() {
+    return PixelFormat.TRANSLUCENT;
+  }
+}
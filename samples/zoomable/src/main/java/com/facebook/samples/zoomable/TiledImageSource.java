@@ -0,0 +1,405 @@
+/*
+ * This file provided by Facebook is for non-commercial testing and evaluation
+ * purposes only.  Facebook reserves all rights not expressly granted.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * FACEBOOK BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.facebook.samples.zoomable;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
+import com.facebook.common.executors.UiThreadImmediateExecutorService;
+import com.facebook.common.internal.Preconditions;
+import com.facebook.common.logging.FLog;
+import com.facebook.common.memory.PooledByteBuffer;
+import com.facebook.common.references.CloseableReference;
+import com.facebook.datasource.BaseDataSubscriber;
+import com.facebook.datasource.DataSource;
+import com.facebook.imageformat.DefaultImageFormats;
+import com.facebook.imagepipeline.common.ImageDecodeOptions;
+import com.facebook.imagepipeline.common.RotationOptions;
+import com.facebook.imagepipeline.core.ImagePipeline;
+import com.facebook.imagepipeline.image.CloseableImage;
+import com.facebook.imagepipeline.image.CloseableStaticBitmap;
+import com.facebook.imagepipeline.image.EncodedImage;
+import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.imagepipeline.request.ImageRequestBuilder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Source of the tiles of an image too large to be shown whole at full resolution.
+ *
+ * <p> Given the part of the image that is visible and the scale it is shown at, the source
+ * requests the tiles of the visible part at the sample size that matches the scale, and cancels
+ * the requests of the tiles that are not visible anymore. The tiles are requests for a region of
+ * the image at a sample size, so they are decoded from the encoded image in the encoded memory
+ * cache, shared by all the tiles, and they are cached in the bitmap memory cache by region.
+ * The encoded image is held by the source until it is closed.
+ *
+ * <p> Tiles of other sample sizes that are still loaded keep being shown until all the tiles of
+ * the current sample size are loaded, so that zooming never shows empty tiles.
+ *
+ * <p> Images are tiled only when their region can be decoded: static JPEG, PNG and WebP images,
+ * on Lollipop and above, and without rotation. Else, the source has no tiles.
+ *
+ * <p> All the methods must be called on the UI thread.
+ */
+public class TiledImageSource {
+
+  private static final Class<?> TAG = TiledImageSource.class;
+
+  /** The size of the decoded tiles, that keeps the number of tiles and the waste low */
+  public static final int DEFAULT_TILE_SIZE = 512;
+
+  /** Listener of the tiles that are loaded, to redraw them */
+  public interface Listener {
+
+    void onTilesChanged();
+  }
+
+  private final ImagePipeline mImagePipeline;
+  private final ImageRequest mImageRequest;
+  private final @Nullable Object mCallerContext;
+  private final int mTileSize;
+
+  private final Map<ImageTile, TileState> mTiles = new HashMap<>();
+  private final List<ImageTile> mWantedTiles = new ArrayList<>();
+  private final RectF mVisibleRect = new RectF();
+  private float mDisplayedWidth;
+
+  private @Nullable Listener mListener;
+  private @Nullable DataSource<CloseableReference<PooledByteBuffer>> mEncodedDataSource;
+  private @Nullable CloseableReference<PooledByteBuffer> mEncodedBytes;
+  private int mImageWidth;
+  private int mImageHeight;
+  private boolean mIsTileable;
+  private boolean mIsClosed;
+  private boolean mIsUpdatingTiles;
+
+  /**
+   * @param imagePipeline the image pipeline to request the tiles from
+   * @param imageRequest the request of the whole image
+   * @param callerContext the caller context of the tile requests
+   */
+  public TiledImageSource(
+      ImagePipeline imagePipeline,
+      ImageRequest imageRequest,
+      @Nullable Object callerContext) {
+    this(imagePipeline, imageRequest, callerContext, DEFAULT_TILE_SIZE);
+  }
+
+  /**
+   * @param tileSize the max width and height of the decoded tiles
+   */
+  public TiledImageSource(
+      ImagePipeline imagePipeline,
+      ImageRequest imageRequest,
+      @Nullable Object callerContext,
+      int tileSize) {
+    Preconditions.checkArgument(tileSize > 0);
+    mImagePipeline = Preconditions.checkNotNull(imagePipeline);
+    mImageRequest = Preconditions.checkNotNull(imageRequest);
+    mCallerContext = callerContext;
+    mTileSize = tileSize;
+  }
+
+  public void setListener(@Nullable Listener listener) {
+    mListener = listener;
+  }
+
+  /**
+   * Fetches the encoded image to learn its dimensions, and keeps it for the tiles.
+   */
+  public void open() {
+    if (mEncodedDataSource != null || mIsClosed) {
+      return;
+    }
+    mEncodedDataSource = mImagePipeline.fetchEncodedImage(mImageRequest, mCallerContext);
+    final DataSource<CloseableReference<PooledByteBuffer>> dataSource = mEncodedDataSource;
+    dataSource.subscribe(
+        new BaseDataSubscriber<CloseableReference<PooledByteBuffer>>() {
+          @Override
+          protected void onNewResultImpl(
+              DataSource<CloseableReference<PooledByteBuffer>> dataSource) {
+            if (dataSource.isFinished()) {
+              onEncodedImageFetched(dataSource, dataSource.getResult());
+            }
+          }
+
+          @Override
+          protected void onFailureImpl(
+              DataSource<CloseableReference<PooledByteBuffer>> dataSource) {
+            FLog.w(TAG, dataSource.getFailureCause(), "Could not fetch %s", mImageRequest);
+          }
+        },
+        UiThreadImmediateExecutorService.getInstance());
+  }
+
+  private void onEncodedImageFetched(
+      DataSource<CloseableReference<PooledByteBuffer>> dataSource,
+      @Nullable CloseableReference<PooledByteBuffer> encodedBytes) {
+    if (mIsClosed || dataSource != mEncodedDataSource || encodedBytes == null) {
+      CloseableReference.closeSafely(encodedBytes);
+      return;
+    }
+    mEncodedBytes = encodedBytes;
+    final EncodedImage encodedImage = new EncodedImage(encodedBytes.clone());
+    try {
+      encodedImage.parseMetaData();
+      mImageWidth = encodedImage.getWidth();
+      mImageHeight = encodedImage.getHeight();
+      mIsTileable = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+          && mImageWidth > 0
+          && mImageHeight > 0
+          && encodedImage.getRotationAngle() <= 0
+          && isRegionDecodable(encodedImage);
+    } finally {
+      EncodedImage.closeSafely(encodedImage);
+    }
+    updateTiles();
+  }
+
+  private static boolean isRegionDecodable(EncodedImage encodedImage) {
+    return encodedImage.getImageFormat() == DefaultImageFormats.JPEG
+        || encodedImage.getImageFormat() == DefaultImageFormats.PNG
+        || encodedImage.getImageFormat() == DefaultImageFormats.WEBP_SIMPLE
+        || encodedImage.getImageFormat() == DefaultImageFormats.WEBP_LOSSLESS
+        || encodedImage.getImageFormat() == DefaultImageFormats.WEBP_EXTENDED
+        || encodedImage.getImageFormat() == DefaultImageFormats.WEBP_EXTENDED_WITH_ALPHA;
+  }
+
+  /**
+   * Whether the image is known and can be tiled.
+   */
+  public boolean isTileable() {
+    return mIsTileable && !mIsClosed;
+  }
+
+  public int getImageWidth() {
+    return mImageWidth;
+  }
+
+  public int getImageHeight() {
+    return mImageHeight;
+  }
+
+  /**
+   * Sets the part of the image that is visible, and requests its tiles.
+   *
+   * @param visibleRect the visible part, as fractions of the width and height of the image
+   * @param displayedWidth the width in pixels of the whole image as shown
+   */
+  public void setViewport(RectF visibleRect, float displayedWidth) {
+    mVisibleRect.set(visibleRect);
+    mDisplayedWidth = displayedWidth;
+    updateTiles();
+  }
+
+  /**
+   * Adds the tiles with a bitmap to outTiles, those of the largest sample size first, so that
+   * drawing them in order shows the sharpest tiles.
+   */
+  public void getLoadedTiles(List<ImageTile> outTiles) {
+    for (Map.Entry<ImageTile, TileState> entry : mTiles.entrySet()) {
+      if (entry.getValue().mBitmap != null) {
+        outTiles.add(entry.getKey());
+      }
+    }
+    Collections.sort(outTiles, SAMPLE_SIZE_DESCENDING);
+  }
+
+  /**
+   * Gets the bitmap of a loaded tile, valid until the next change of the tiles.
+   */
+  @Nullable
+  public Bitmap getBitmap(ImageTile tile) {
+    final TileState state = mTiles.get(tile);
+    if (state == null || state.mBitmap == null) {
+      return null;
+    }
+    return ((CloseableStaticBitmap) state.mBitmap.get()).getUnderlyingBitmap();
+  }
+
+  /**
+   * Cancels the tile requests and releases the tiles and the encoded image.
+   */
+  public void close() {
+    mIsClosed = true;
+    for (TileState state : mTiles.values()) {
+      state.close();
+    }
+    mTiles.clear();
+    if (mEncodedDataSource != null) {
+      mEncodedDataSource.close();
+    }
+    CloseableReference.closeSafely(mEncodedBytes);
+    mEncodedBytes = null;
+  }
+
+  private void updateTiles() {
+    if (!isTileable() || mIsUpdatingTiles) {
+      return;
+    }
+    mIsUpdatingTiles = true;
+    try {
+      updateTilesInternal();
+    } finally {
+      mIsUpdatingTiles = false;
+    }
+  }
+
+  private void updateTilesInternal() {
+    final Rect visibleRegion = new Rect(
+        (int) Math.floor(mVisibleRect.left * mImageWidth),
+        (int) Math.floor(mVisibleRect.top * mImageHeight),
+        (int) Math.ceil(mVisibleRect.right * mImageWidth),
+        (int) Math.ceil(mVisibleRect.bottom * mImageHeight));
+    final int sampleSize = ImageTile.getSampleSize(
+        mDisplayedWidth / mImageWidth,
+        Integer.highestOneBit(Math.max(mImageWidth, mImageHeight) / mTileSize + 1));
+    mWantedTiles.clear();
+    if (mDisplayedWidth > 0) {
+      ImageTile.getTiles(
+          mImageWidth,
+          mImageHeight,
+          visibleRegion,
+          sampleSize,
+          mTileSize,
+          mWantedTiles);
+    }
+
+    boolean allWantedTilesLoaded = true;
+    for (ImageTile tile : mWantedTiles) {
+      TileState state = mTiles.get(tile);
+      if (state == null) {
+        state = new TileState();
+        mTiles.put(tile, state);
+        submit(tile, state);
+      }
+      allWantedTilesLoaded &= state.mBitmap != null;
+    }
+
+    boolean tilesChanged = false;
+    final Iterator<Map.Entry<ImageTile, TileState>> iterator = mTiles.entrySet().iterator();
+    while (iterator.hasNext()) {
+      final Map.Entry<ImageTile, TileState> entry = iterator.next();
+      final ImageTile tile = entry.getKey();
+      if (mWantedTiles.contains(tile)) {
+        continue;
+      }
+      final TileState state = entry.getValue();
+      // loaded tiles of other sample sizes still cover the visible part until replaced
+      final boolean isPlaceholder = state.mBitmap != null
+          && !allWantedTilesLoaded
+          && Rect.intersects(tile.getRegion(), visibleRegion);
+      if (!isPlaceholder) {
+        tilesChanged |= state.mBitmap != null;
+        state.close();
+        iterator.remove();
+      }
+    }
+    if (tilesChanged && mListener != null) {
+      mListener.onTilesChanged();
+    }
+  }
+
+  private void submit(final ImageTile tile, final TileState state) {
+    final ImageRequest tileRequest = ImageRequestBuilder.fromRequest(mImageRequest)
+        .setImageDecodeOptions(
+            ImageDecodeOptions.newBuilder()
+                .setFrom(mImageRequest.getImageDecodeOptions())
+                .setForceStaticImage(true)
+                .setRegionToDecode(tile.getRegion())
+                .setRegionSampleSize(tile.getSampleSize())
+                .build())
+        .setResizeOptions(null)
+        .setRotationOptions(RotationOptions.disableRotation())
+        .setPostprocessor(null)
+        .setProgressiveRenderingEnabled(false)
+        .build();
+    state.mDataSource = mImagePipeline.fetchDecodedImage(tileRequest, mCallerContext);
+    state.mDataSource.subscribe(
+        new BaseDataSubscriber<CloseableReference<CloseableImage>>() {
+          @Override
+          protected void onNewResultImpl(
+              DataSource<CloseableReference<CloseableImage>> dataSource) {
+            if (dataSource.isFinished()) {
+              onTileLoaded(tile, state, dataSource.getResult());
+            }
+          }
+
+          @Override
+          protected void onFailureImpl(DataSource<CloseableReference<CloseableImage>> dataSource) {
+            FLog.w(TAG, dataSource.getFailureCause(), "Could not load tile %s", tile);
+          }
+        },
+        UiThreadImmediateExecutorService.getInstance());
+  }
+
+  private void onTileLoaded(
+      ImageTile tile,
+      TileState state,
+      @Nullable CloseableReference<CloseableImage> result) {
+    if (mTiles.get(tile) != state
+        || result == null
+        || !(result.get() instanceof CloseableStaticBitmap)) {
+      CloseableReference.closeSafely(result);
+      return;
+    }
+    final Bitmap bitmap = ((CloseableStaticBitmap) result.get()).getUnderlyingBitmap();
+    if (bitmap.getWidth() != tile.getDecodedWidth()
+        || bitmap.getHeight() != tile.getDecodedHeight()) {
+      // the region was not decoded, e.g. by a custom decoder
+      FLog.w(TAG, "Tile %s decoded to %dx%d", tile, bitmap.getWidth(), bitmap.getHeight());
+      CloseableReference.closeSafely(result);
+      return;
+    }
+    state.mBitmap = result;
+    state.mDataSource = null;
+    // the placeholders of other sample sizes may not be needed anymore. Tiles found in the bitmap
+    // memory cache are loaded while updating the tiles, which takes them into account.
+    updateTiles();
+    if (mListener != null) {
+      mListener.onTilesChanged();
+    }
+  }
+
+  private static final Comparator<ImageTile> SAMPLE_SIZE_DESCENDING =
+      new Comparator<ImageTile>() {
+        @Override
+        public int compare(ImageTile lhs, ImageTile rhs) {
+          return rhs.getSampleSize() - lhs.getSampleSize();
+        }
+      };
+
+  private static class TileState {
+
+    private @Nullable DataSource<CloseableReference<CloseableImage>> mDataSource;
+    private @Nullable CloseableReference<CloseableImage> mBitmap;
+
+    private void close() {
+      if (mDataSource != null) {
+        // cancels the request if no one else waits for the tile
+        mDataSource.close();
+        mDataSource = null;
+      }
+      CloseableReference.closeSafely(mBitmap);
+      mBitmap = null;
+    }
+  }
+}
@@ -18,6 +18,7 @@ import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.RectF;
 import android.graphics.drawable.Animatable;
+import android.graphics.drawable.Drawable;
 import android.support.v4.view.ScrollingView;
 import android.util.AttributeSet;
 import android.view.GestureDetector;
@@ -49,11 +50,14 @@ public class ZoomableDraweeView extends DraweeView<GenericDraweeHierarchy>
 
   private final RectF mImageBounds = new RectF();
   private final RectF mViewBounds = new RectF();
+  private final RectF mVisibleRect = new RectF();
+  private final Matrix mInverseTransform = new Matrix();
 
   private DraweeController mHugeImageController;
   private ZoomableController mZoomableController;
   private GestureDetector mTapGestureDetector;
   private boolean mAllowTouchInterceptionWhileZoomed = true;
+  private @Nullable TiledImageDrawable mTiledImageDrawable;
 
   private final ControllerListener mControllerListener = new BaseControllerListener<Object>() {
     @Override
@@ -238,6 +242,59 @@ public class ZoomableDraweeView extends DraweeView<GenericDraweeHierarchy>
     setControllersInternal(controller, hugeImageController);
   }
 
+  /**
+   * Sets the source of the tiles of the image, drawn over it when zoomed in, or null to only
+   * show the image of the controller.
+   *
+   * <p> The tiles are those of the same image as the controller. The view opens the source, but
+   * the caller closes it when done with it.
+   */
+  public void setTiledImageSource(@Nullable TiledImageSource tiledImageSource) {
+    if (mTiledImageDrawable != null) {
+      mTiledImageDrawable.setCallback(null);
+      mTiledImageDrawable.getTiledImageSource().setListener(null);
+      mTiledImageDrawable = null;
+    }
+    if (tiledImageSource != null) {
+      mTiledImageDrawable = new TiledImageDrawable(tiledImageSource);
+      mTiledImageDrawable.setCallback(this);
+      tiledImageSource.open();
+      updateTiledImageViewport();
+    }
+    invalidate();
+  }
+
+  @Nullable
+  public TiledImageSource getTiledImageSource() {
+    return mTiledImageDrawable != null ? mTiledImageDrawable.getTiledImageSource() : null;
+  }
+
+  /**
+   * Sets the part of the image that is visible, and its scale, to the source of the tiles.
+   */
+  private void updateTiledImageViewport() {
+    if (mTiledImageDrawable == null || mImageBounds.isEmpty()) {
+      return;
+    }
+    mZoomableController.getTransform().invert(mInverseTransform);
+    mVisibleRect.set(0, 0, getWidth(), getHeight());
+    mInverseTransform.mapRect(mVisibleRect);
+    if (!mVisibleRect.intersect(mImageBounds)) {
+      mVisibleRect.setEmpty();
+    } else {
+      // as fractions of the image
+      mVisibleRect.offset(-mImageBounds.left, -mImageBounds.top);
+      mVisibleRect.set(
+          mVisibleRect.left / mImageBounds.width(),
+          mVisibleRect.top / mImageBounds.height(),
+          mVisibleRect.right / mImageBounds.width(),
+          mVisibleRect.bottom / mImageBounds.height());
+    }
+    mTiledImageDrawable.getTiledImageSource().setViewport(
+        mVisibleRect,
+        mImageBounds.width() * mZoomableController.getScaleFactor());
+  }
+
   private void setControllersInternal(
       @Nullable DraweeController controller,
       @Nullable DraweeController hugeImageController) {
@@ -274,6 +331,14 @@ public class ZoomableDraweeView extends DraweeView<GenericDraweeHierarchy>
     canvas.concat(mZoomableController.getTransform());
     try {
       super.onDraw(canvas);
+      if (mTiledImageDrawable != null) {
+        mTiledImageDrawable.setBounds(
+            Math.round(mImageBounds.left),
+            Math.round(mImageBounds.top),
+            Math.round(mImageBounds.right),
+            Math.round(mImageBounds.bottom));
+        mTiledImageDrawable.draw(canvas);
+      }
     } catch (Exception e) {
       DraweeController controller = getController();
       if (controller != null && controller instanceof AbstractDraweeController) {
@@ -378,14 +443,21 @@ public class ZoomableDraweeView extends DraweeView<GenericDraweeHierarchy>
   protected void onTransformChanged(Matrix transform) {
     FLog.v(getLogTag(), "onTransformChanged: view %x, transform: %s", this.hashCode(), transform);
     maybeSetHugeImageController();
+    updateTiledImageViewport();
     invalidate();
   }
 
+  @Override
+  protected boolean verifyDrawable(Drawable who) {
+    return who == mTiledImageDrawable || super.verifyDrawable(who);
+  }
+
   protected void updateZoomableControllerBounds() {
     getImageBounds(mImageBounds);
     getLimitBounds(mViewBounds);
     mZoomableController.setImageBounds(mImageBounds);
     mZoomableController.setViewBounds(mViewBounds);
+    updateTiledImageViewport();
     FLog.v(
         getLogTag(),
         "updateZoomableControllerBounds: view %x, view bounds: %s, image bounds: %s",
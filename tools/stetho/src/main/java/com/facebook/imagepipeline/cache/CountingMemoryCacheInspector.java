@@ -12,7 +12,6 @@ import com.facebook.common.internal.Preconditions;
 import com.facebook.common.references.CloseableReference;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -94,31 +93,24 @@ public class CountingMemoryCacheInspector<K, V> {
    * examining cache contents
    */
   public DumpInfo dumpCacheContent() {
-    synchronized (mCountingBitmapCache) {
-      DumpInfo<K, V> dumpInfo = new DumpInfo<>(
-          mCountingBitmapCache.getSizeInBytes(),
-          mCountingBitmapCache.getEvictionQueueSizeInBytes(),
-          mCountingBitmapCache.mMemoryCacheParams);
-
-      final List<LinkedHashMap.Entry<K, CountingMemoryCache.Entry<K, V>>> cachedEntries =
-          mCountingBitmapCache.mCachedEntries.getMatchingEntries(null);
-      for (LinkedHashMap.Entry<K, CountingMemoryCache.Entry<K, V>> cachedEntry : cachedEntries) {
-        CountingMemoryCache.Entry<K, V> entry = cachedEntry.getValue();
-        DumpInfoEntry<K, V> dumpEntry = new DumpInfoEntry<>(entry.key, entry.valueRef);
-        if (entry.clientCount > 0) {
-          dumpInfo.sharedEntries.add(dumpEntry);
-        } else {
-          dumpInfo.lruEntries.add(dumpEntry);
-        }
+    DumpInfo<K, V> dumpInfo = new DumpInfo<>(
+        mCountingBitmapCache.getSizeInBytes(),
+        mCountingBitmapCache.getEvictionQueueSizeInBytes(),
+        mCountingBitmapCache.getMemoryCacheParams());
+
+    final List<CountingMemoryCache.EntrySnapshot<K, V>> snapshots =
+        mCountingBitmapCache.getEntrySnapshots();
+    for (CountingMemoryCache.EntrySnapshot<K, V> snapshot : snapshots) {
+      DumpInfoEntry<K, V> dumpEntry = new DumpInfoEntry<>(snapshot.key, snapshot.valueRef);
+      if (snapshot.isShared) {
+        dumpInfo.sharedEntries.add(dumpEntry);
+      } else {
+        dumpInfo.lruEntries.add(dumpEntry);
       }
-      for (Map.Entry<Bitmap, Object> entry
-          : mCountingBitmapCache.mOtherEntries.entrySet()) {
-        if (entry != null && !entry.getKey().isRecycled()) {
-          dumpInfo.otherEntries.put(entry.getKey(), entry.getValue());
-        }
-      }
-
-      return dumpInfo;
+      snapshot.valueRef.close();
     }
+    dumpInfo.otherEntries.putAll(mCountingBitmapCache.getOtherEntries());
+
+    return dumpInfo;
   }
 }